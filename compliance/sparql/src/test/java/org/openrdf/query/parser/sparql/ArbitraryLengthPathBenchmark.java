@@ -0,0 +1,182 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.parser.sparql;
+
+import junit.framework.TestCase;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Measures the evaluation of arbitrary-length paths over a generated class
+ * hierarchy.
+ */
+public class ArbitraryLengthPathBenchmark extends TestCase {
+
+	private static final String NS = "urn:test:class";
+
+	/**
+	 * The number of subclasses of every non-leaf class.
+	 */
+	private static final int BRANCHING_FACTOR = 4;
+
+	/**
+	 * The number of levels below the root class, which results in a hierarchy
+	 * of about 87,000 classes.
+	 */
+	private static final int DEPTH = 8;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private Repository repo;
+
+	private RepositoryConnection con;
+
+	private int classCount;
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		con = repo.getConnection();
+
+		ValueFactory vf = con.getValueFactory();
+		con.begin();
+		classCount = 1;
+		addSubclasses(vf, vf.createURI(NS, "0"), "0", 1);
+		con.commit();
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			con.close();
+			repo.shutDown();
+		}
+		finally {
+			super.tearDown();
+		}
+	}
+
+	private void addSubclasses(ValueFactory vf, URI superClass, String id, int level)
+		throws Exception
+	{
+		if (level > DEPTH) {
+			return;
+		}
+
+		for (int i = 0; i < BRANCHING_FACTOR; i++) {
+			String subId = id + "." + i;
+			URI subClass = vf.createURI(NS, subId);
+			con.add(subClass, RDFS.SUBCLASSOF, superClass);
+			classCount++;
+			addSubclasses(vf, subClass, subId, level + 1);
+		}
+	}
+
+	public void testDescendants()
+		throws Exception
+	{
+		long startTime = System.currentTimeMillis();
+
+		int count = count("SELECT ?c WHERE { ?c <" + RDFS.SUBCLASSOF + ">* <" + NS + "0> }");
+
+		long endTime = System.currentTimeMillis();
+		assertEquals(classCount, count);
+		printTime(startTime, endTime, "testDescendants");
+	}
+
+	public void testAncestors()
+		throws Exception
+	{
+		String leaf = leafID();
+
+		long startTime = System.currentTimeMillis();
+
+		for (int i = 0; i < 1000; i++) {
+			int count = count("SELECT ?c WHERE { <" + NS + leaf + "> <" + RDFS.SUBCLASSOF + ">+ ?c }");
+			assertEquals(DEPTH, count);
+		}
+
+		long endTime = System.currentTimeMillis();
+		printTime(startTime, endTime, "testAncestors");
+	}
+
+	public void testSubClassCheck()
+		throws Exception
+	{
+		String leaf = leafID();
+		String sparql = "ASK { <" + NS + leaf + "> <" + RDFS.SUBCLASSOF + ">+ <" + NS + "0> }";
+
+		long startTime = System.currentTimeMillis();
+
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(con.prepareBooleanQuery(QueryLanguage.SPARQL, sparql).evaluate());
+		}
+
+		long endTime = System.currentTimeMillis();
+		printTime(startTime, endTime, "testSubClassCheck");
+	}
+
+	public void testAllPairs()
+		throws Exception
+	{
+		long startTime = System.currentTimeMillis();
+
+		int count = count("SELECT ?c ?d WHERE { ?c <" + RDFS.SUBCLASSOF + ">+ ?d }");
+
+		long endTime = System.currentTimeMillis();
+		assertTrue(count > classCount);
+		printTime(startTime, endTime, "testAllPairs");
+	}
+
+	private String leafID() {
+		StringBuilder sb = new StringBuilder("0");
+		for (int level = 1; level <= DEPTH; level++) {
+			sb.append('.').append(level % BRANCHING_FACTOR);
+		}
+		return sb.toString();
+	}
+
+	private int count(String sparql)
+		throws Exception
+	{
+		TupleQueryResult result = con.prepareTupleQuery(QueryLanguage.SPARQL, sparql).evaluate();
+		try {
+			int count = 0;
+			while (result.hasNext()) {
+				result.next();
+				count++;
+			}
+			return count;
+		}
+		finally {
+			result.close();
+		}
+	}
+
+	private void printTime(long startTime, long endTime, String methodName) {
+		System.out.println((endTime - startTime) + " ms for " + methodName + "()");
+	}
+}
@@ -13,6 +13,7 @@ import org.junit.Test;
 
 import org.openrdf.model.ValueFactory;
 import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQueryResult;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
@@ -90,6 +91,91 @@ public class ArbitraryLengthPathTest extends TestCase {
 		assertTrue(con.prepareBooleanQuery(QueryLanguage.SPARQL, sparql).evaluate());
 	}
 
+	@Test
+	public void testDeepChainStartBound()
+		throws Exception
+	{
+		populateChain(2000);
+		String sparql = "SELECT ?x WHERE { <urn:test:node0> <urn:test:hasChild>+ ?x }";
+		assertEquals(1999, count(sparql));
+	}
+
+	@Test
+	public void testDeepChainEndBound()
+		throws Exception
+	{
+		populateChain(2000);
+		String sparql = "SELECT ?x WHERE { ?x <urn:test:hasChild>* <urn:test:node1999> }";
+		assertEquals(2000, count(sparql));
+	}
+
+	@Test
+	public void testDeepChainBothBound()
+		throws Exception
+	{
+		populateChain(2000);
+		String sparql = "ASK { <urn:test:node0> <urn:test:hasChild>+ <urn:test:node1999> }";
+		assertTrue(con.prepareBooleanQuery(QueryLanguage.SPARQL, sparql).evaluate());
+
+		sparql = "ASK { <urn:test:node1999> <urn:test:hasChild>+ <urn:test:node0> }";
+		assertFalse(con.prepareBooleanQuery(QueryLanguage.SPARQL, sparql).evaluate());
+	}
+
+	@Test
+	public void testUnbound()
+		throws Exception
+	{
+		populateChain(50);
+		String sparql = "SELECT ?x ?y WHERE { ?x <urn:test:hasChild>+ ?y }";
+		assertEquals(50 * 49 / 2, count(sparql));
+	}
+
+	@Test
+	public void testCycle()
+		throws Exception
+	{
+		populateChain(100);
+		ValueFactory vf = con.getValueFactory();
+		con.add(vf.createURI("urn:test:node99"), vf.createURI("urn:test:hasChild"),
+				vf.createURI("urn:test:node0"));
+
+		String sparql = "SELECT ?x WHERE { <urn:test:node50> <urn:test:hasChild>+ ?x }";
+		assertEquals(100, count(sparql));
+
+		sparql = "SELECT ?x WHERE { ?x <urn:test:hasChild>+ ?x }";
+		assertEquals(100, count(sparql));
+
+		sparql = "ASK { <urn:test:node50> <urn:test:hasChild>+ <urn:test:node50> }";
+		assertTrue(con.prepareBooleanQuery(QueryLanguage.SPARQL, sparql).evaluate());
+	}
+
+	private int count(String sparql)
+		throws Exception
+	{
+		TupleQueryResult result = con.prepareTupleQuery(QueryLanguage.SPARQL, sparql).evaluate();
+		try {
+			int count = 0;
+			while (result.hasNext()) {
+				result.next();
+				count++;
+			}
+			return count;
+		}
+		finally {
+			result.close();
+		}
+	}
+
+	private void populateChain(int n)
+		throws RepositoryException
+	{
+		ValueFactory vf = con.getValueFactory();
+		for (int i = 1; i < n; i++) {
+			con.add(vf.createURI("urn:test:node" + (i - 1)), vf.createURI("urn:test:hasChild"),
+					vf.createURI("urn:test:node" + i));
+		}
+	}
+
 	private void populate(int n)
 		throws RepositoryException
 	{
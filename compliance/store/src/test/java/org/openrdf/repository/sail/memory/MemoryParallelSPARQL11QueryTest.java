@@ -0,0 +1,58 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.repository.sail.memory;
+
+import junit.framework.Test;
+
+import org.openrdf.query.Dataset;
+import org.openrdf.query.parser.sparql.SPARQL11ManifestTest;
+import org.openrdf.query.parser.sparql.SPARQLQueryTest;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.dataset.DatasetRepository;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Runs the SPARQL 1.1 query tests on a MemoryStore that evaluates unions and
+ * hash joins concurrently.
+ */
+public class MemoryParallelSPARQL11QueryTest extends SPARQLQueryTest {
+
+	public static Test suite()
+		throws Exception
+	{
+		return SPARQL11ManifestTest.suite(new Factory() {
+
+			public MemoryParallelSPARQL11QueryTest createSPARQLQueryTest(String testURI, String name,
+					String queryFileURL, String resultFileURL, Dataset dataSet, boolean laxCardinality)
+			{
+				return createSPARQLQueryTest(testURI, name, queryFileURL, resultFileURL, dataSet,
+						laxCardinality, false);
+			}
+
+			public MemoryParallelSPARQL11QueryTest createSPARQLQueryTest(String testURI, String name,
+					String queryFileURL, String resultFileURL, Dataset dataSet, boolean laxCardinality,
+					boolean checkOrder)
+			{
+				return new MemoryParallelSPARQL11QueryTest(testURI, name, queryFileURL, resultFileURL, dataSet,
+						laxCardinality, checkOrder);
+			}
+		});
+	}
+
+	protected MemoryParallelSPARQL11QueryTest(String testURI, String name, String queryFileURL,
+			String resultFileURL, Dataset dataSet, boolean laxCardinality, boolean checkOrder)
+	{
+		super(testURI, name, queryFileURL, resultFileURL, dataSet, laxCardinality, checkOrder);
+	}
+
+	@Override
+	protected Repository newRepository() {
+		MemoryStore sail = new MemoryStore();
+		sail.setEvaluationThreads(2);
+		return new DatasetRepository(new SailRepository(sail));
+	}
+}
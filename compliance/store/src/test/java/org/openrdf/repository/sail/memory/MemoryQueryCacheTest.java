@@ -0,0 +1,271 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.repository.sail.memory;
+
+import junit.framework.TestCase;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.sail.ParsedQueryCache;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.repository.sail.SailTupleQuery;
+import org.openrdf.sail.helpers.QueryPlanCache;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Tests the caching of parsed queries by a {@link SailRepository} and of
+ * optimized query plans by a {@link MemoryStore}.
+ */
+public class MemoryQueryCacheTest extends TestCase {
+
+	private static final String NS = "http://example.org/";
+
+	private static final String QUERY = "SELECT ?o WHERE { ?s <" + NS + "p> ?o }";
+
+	private SailRepository repository;
+
+	private SailRepositoryConnection con;
+
+	private MemoryStore store;
+
+	private URI a;
+
+	private URI b;
+
+	private URI p;
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		store = new MemoryStore();
+		store.setQueryPlanCacheSize(10);
+		repository = new SailRepository(store);
+		repository.setQueryCacheSize(10);
+		repository.initialize();
+		con = repository.getConnection();
+
+		ValueFactory vf = con.getValueFactory();
+		a = vf.createURI(NS, "a");
+		b = vf.createURI(NS, "b");
+		p = vf.createURI(NS, "p");
+		con.add(a, p, vf.createLiteral("1"));
+		con.add(b, p, vf.createLiteral("2"));
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			con.close();
+			repository.shutDown();
+		}
+		finally {
+			super.tearDown();
+		}
+	}
+
+	public void testParsedQueryCache()
+		throws Exception
+	{
+		ParsedQueryCache queryCache = repository.getQueryCache();
+
+		SailTupleQuery query1 = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY, null);
+		SailTupleQuery query2 = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY, null);
+		assertSame(query1.getParsedQuery(), query2.getParsedQuery());
+		assertEquals(1, queryCache.getHitCount());
+		assertEquals(1, queryCache.getMissCount());
+
+		// The base URI is part of the key
+		con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY, NS);
+		assertEquals(2, queryCache.getMissCount());
+		assertEquals(2, queryCache.size());
+
+		// Cached queries are still checked for their type
+		try {
+			con.prepareBooleanQuery(QueryLanguage.SPARQL, QUERY);
+			fail("expected IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testPlanCache()
+		throws Exception
+	{
+		QueryPlanCache planCache = store.getQueryPlanCache();
+
+		TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY);
+		query.setBinding("s", a);
+		assertEquals("1", evaluate(query).stringValue());
+		assertEquals(0, planCache.getHitCount());
+		assertEquals(1, planCache.getMissCount());
+
+		assertEquals("1", evaluate(query).stringValue());
+		assertEquals(1, planCache.getHitCount());
+
+		// Queries prepared from the same string share the plan
+		TupleQuery query2 = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY);
+		query2.setBinding("s", a);
+		assertEquals("1", evaluate(query2).stringValue());
+		assertEquals(2, planCache.getHitCount());
+		assertEquals(1, planCache.getMissCount());
+	}
+
+	public void testPlanCacheBindingValues()
+		throws Exception
+	{
+		QueryPlanCache planCache = store.getQueryPlanCache();
+
+		TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY);
+		query.setBinding("s", a);
+		assertEquals("1", evaluate(query).stringValue());
+		assertEquals(0, planCache.getHitCount());
+		assertEquals(1, planCache.getMissCount());
+
+		// Plans are shared by evaluations that bind the same variables
+		query.setBinding("s", b);
+		assertEquals("2", evaluate(query).stringValue());
+		assertEquals(1, planCache.getHitCount());
+		assertEquals(1, planCache.getMissCount());
+
+		query.setBinding("s", p);
+		assertNull(evaluate(query));
+		assertEquals(2, planCache.getHitCount());
+
+		query.setBinding("s", a);
+		assertEquals("1", evaluate(query).stringValue());
+		assertEquals(3, planCache.getHitCount());
+
+		// but are specific to the names of the bound variables
+		query.removeBinding("s");
+		query.setBinding("o", con.getValueFactory().createLiteral("2"));
+		assertEquals("2", evaluate(query).stringValue());
+		assertEquals(3, planCache.getHitCount());
+		assertEquals(2, planCache.getMissCount());
+		assertEquals(2, planCache.size());
+	}
+
+	public void testInvalidation()
+		throws Exception
+	{
+		QueryPlanCache planCache = store.getQueryPlanCache();
+
+		TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY);
+		query.setBinding("s", a);
+		evaluate(query);
+		evaluate(query);
+		assertEquals(1, planCache.getHitCount());
+
+		long epoch = planCache.getEpoch();
+		con.remove(a, p, null);
+		con.add(a, p, con.getValueFactory().createLiteral("3"));
+		assertTrue(planCache.getEpoch() > epoch);
+		assertEquals(0, planCache.size());
+
+		assertEquals("3", evaluate(query).stringValue());
+		assertEquals(1, planCache.getHitCount());
+		assertEquals(2, planCache.getMissCount());
+	}
+
+	public void testSmallChanges()
+		throws Exception
+	{
+		QueryPlanCache planCache = store.getQueryPlanCache();
+		ValueFactory vf = con.getValueFactory();
+
+		con.begin();
+		for (int i = 0; i < 100; i++) {
+			con.add(vf.createURI(NS, "s" + i), p, vf.createLiteral(i));
+		}
+		con.commit();
+
+		TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY);
+		query.setBinding("s", a);
+		evaluate(query);
+
+		// Changes to less than a tenth of the statements keep the cached plans
+		long epoch = planCache.getEpoch();
+		con.remove(a, p, null);
+		con.add(a, p, vf.createLiteral("3"));
+		assertEquals(epoch, planCache.getEpoch());
+		assertEquals("3", evaluate(query).stringValue());
+		assertEquals(1, planCache.getHitCount());
+
+		con.begin();
+		for (int i = 0; i < 10; i++) {
+			con.remove(vf.createURI(NS, "s" + i), p, null);
+		}
+		con.commit();
+		assertTrue(planCache.getEpoch() > epoch);
+	}
+
+	public void testTransaction()
+		throws Exception
+	{
+		QueryPlanCache planCache = store.getQueryPlanCache();
+
+		TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY);
+		query.setBinding("s", a);
+		evaluate(query);
+
+		con.begin();
+		con.remove(a, p, null);
+		assertNull(evaluate(query));
+		con.rollback();
+
+		// Queries inside the transaction bypass the cache
+		assertEquals(0, planCache.getHitCount());
+		assertEquals(1, planCache.getMissCount());
+
+		assertEquals("1", evaluate(query).stringValue());
+		assertEquals(1, planCache.getHitCount());
+	}
+
+	public void testEviction()
+		throws Exception
+	{
+		QueryPlanCache planCache = store.getQueryPlanCache();
+		ParsedQueryCache queryCache = repository.getQueryCache();
+
+		for (int i = 0; i < 11; i++) {
+			TupleQuery query = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY + " LIMIT " + (i + 1));
+			evaluate(query);
+		}
+
+		assertEquals(10, planCache.size());
+		assertEquals(1, planCache.getEvictionCount());
+		assertEquals(10, queryCache.size());
+		assertEquals(1, queryCache.getEvictionCount());
+	}
+
+	/**
+	 * Evaluates the query and returns the value of <tt>?o</tt> in its first
+	 * result, or <tt>null</tt> if there are no results.
+	 */
+	private Value evaluate(TupleQuery query)
+		throws Exception
+	{
+		TupleQueryResult result = query.evaluate();
+		try {
+			if (result.hasNext()) {
+				return result.next().getValue("o");
+			}
+			return null;
+		}
+		finally {
+			result.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.repository.sail.memory;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Test;
+
+import info.aduna.io.FileUtil;
+
+import org.openrdf.query.Dataset;
+import org.openrdf.query.parser.sparql.SPARQL11ManifestTest;
+import org.openrdf.query.parser.sparql.SPARQLQueryTest;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.dataset.DatasetRepository;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Runs the SPARQL 1.1 query tests on a MemoryStore that writes all but the
+ * smallest intermediate results to disk.
+ */
+public class MemorySpillingSPARQL11QueryTest extends SPARQLQueryTest {
+
+	public static Test suite()
+		throws Exception
+	{
+		return SPARQL11ManifestTest.suite(new Factory() {
+
+			public MemorySpillingSPARQL11QueryTest createSPARQLQueryTest(String testURI, String name,
+					String queryFileURL, String resultFileURL, Dataset dataSet, boolean laxCardinality)
+			{
+				return createSPARQLQueryTest(testURI, name, queryFileURL, resultFileURL, dataSet,
+						laxCardinality, false);
+			}
+
+			public MemorySpillingSPARQL11QueryTest createSPARQLQueryTest(String testURI, String name,
+					String queryFileURL, String resultFileURL, Dataset dataSet, boolean laxCardinality,
+					boolean checkOrder)
+			{
+				return new MemorySpillingSPARQL11QueryTest(testURI, name, queryFileURL, resultFileURL, dataSet,
+						laxCardinality, checkOrder);
+			}
+		});
+	}
+
+	private File tempDir;
+
+	protected MemorySpillingSPARQL11QueryTest(String testURI, String name, String queryFileURL,
+			String resultFileURL, Dataset dataSet, boolean laxCardinality, boolean checkOrder)
+	{
+		super(testURI, name, queryFileURL, resultFileURL, dataSet, laxCardinality, checkOrder);
+	}
+
+	@Override
+	protected Repository newRepository()
+		throws IOException
+	{
+		tempDir = FileUtil.createTempDir("spill");
+		MemoryStore sail = new MemoryStore();
+		sail.setSpillThreshold(2);
+		sail.setTempDir(tempDir);
+		return new DatasetRepository(new SailRepository(sail));
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			super.tearDown();
+			assertEquals("temporary files have not been deleted", 0, tempDir.list().length);
+		}
+		finally {
+			FileUtil.deleteDir(tempDir);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.repository.sail.memory;
+
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnectionTest;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.memory.MemoryStore;
+
+public class MemoryStoreQueryCacheConnectionTest extends RepositoryConnectionTest {
+
+	public MemoryStoreQueryCacheConnectionTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected Repository createRepository() {
+		MemoryStore sail = new MemoryStore();
+		sail.setQueryPlanCacheSize(10);
+
+		SailRepository repository = new SailRepository(sail);
+		repository.setQueryCacheSize(10);
+		return repository;
+	}
+}
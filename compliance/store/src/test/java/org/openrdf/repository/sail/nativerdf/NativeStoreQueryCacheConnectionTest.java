@@ -0,0 +1,50 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.repository.sail.nativerdf;
+
+import java.io.File;
+import java.io.IOException;
+
+import info.aduna.io.FileUtil;
+
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnectionTest;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.nativerdf.NativeStore;
+
+public class NativeStoreQueryCacheConnectionTest extends RepositoryConnectionTest {
+
+	private File dataDir;
+
+	public NativeStoreQueryCacheConnectionTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected Repository createRepository()
+		throws IOException
+	{
+		dataDir = FileUtil.createTempDir("nativestore");
+		NativeStore sail = new NativeStore(dataDir, "spoc");
+		sail.setQueryPlanCacheSize(10);
+
+		SailRepository repository = new SailRepository(sail);
+		repository.setQueryCacheSize(10);
+		return repository;
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			super.tearDown();
+		}
+		finally {
+			FileUtil.deleteDir(dataDir);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.io.File;
+import java.io.IOException;
+
+import info.aduna.io.FileUtil;
+import info.aduna.iteration.CloseableIteration;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.NotifyingSail;
+import org.openrdf.sail.RDFNotifyingStoreTest;
+import org.openrdf.sail.SailException;
+
+/**
+ * An extension of RDFStoreTest for testing the class
+ * <tt>org.openrdf.sesame.sail.memory.MemoryStore</tt> in compact storage mode,
+ * with a data file.
+ */
+public class CompactMemoryStoreTest extends RDFNotifyingStoreTest {
+
+	private volatile File dataDir;
+
+	public CompactMemoryStoreTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected NotifyingSail createSail()
+		throws SailException
+	{
+		try {
+			dataDir = FileUtil.createTempDir(CompactMemoryStoreTest.class.getSimpleName());
+			return createSail(dataDir);
+		}
+		catch (IOException e) {
+			throw new SailException(e);
+		}
+	}
+
+	private MemoryStore createSail(File dataDir)
+		throws SailException
+	{
+		MemoryStore sail = new MemoryStore(dataDir);
+		sail.setCompactStorage(true);
+		sail.initialize();
+		return sail;
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			super.tearDown();
+		}
+		finally {
+			FileUtil.deleteDir(dataDir);
+		}
+	}
+
+	public void testDataFile()
+		throws Exception
+	{
+		con.begin();
+		con.addStatement(picasso, paints, guernica, context1);
+		con.addStatement(picasso, RDFS.LABEL, vf.createLiteral("Pablo Picasso", "es"));
+		con.addStatement(guernica, RDFS.LABEL, vf.createLiteral("Guernica"));
+		con.addStatement(guernica, RDFS.COMMENT, vf.createLiteral(1937));
+		con.addStatement(rembrandt, paints, nightwatch);
+		con.commit();
+
+		con.close();
+		sail.shutDown();
+
+		sail = createSail(dataDir);
+		con = sail.getConnection();
+
+		assertEquals(5, countAllElements());
+		assertEquals(1, countElements(con.getStatements(picasso, paints, guernica, false, context1)));
+		assertEquals(1, countElements(con.getStatements(null, null, vf.createLiteral("Pablo Picasso", "es"),
+				false)));
+		assertEquals(1, countElements(con.getStatements(null, null, vf.createLiteral(1937), false)));
+		assertEquals(0, countElements(con.getStatements(null, null, vf.createLiteral("Pablo Picasso"),
+				false)));
+
+		CloseableIteration<? extends Statement, SailException> iter = con.getStatements(guernica,
+				RDFS.COMMENT, null, false);
+		try {
+			assertTrue(iter.hasNext());
+			assertEquals(1937, ((Literal)iter.next().getObject()).intValue());
+		}
+		finally {
+			iter.close();
+		}
+	}
+
+	/**
+	 * Checks that the snapshot cleanup merges the runs of the statement table,
+	 * drops the removed statements and removes the values they used.
+	 */
+	public void testSnapshotCleanup()
+		throws Exception
+	{
+		MemoryStore store = (MemoryStore)sail;
+		StatementTable statementTable = store.getStatementTable();
+
+		for (int txn = 0; txn < 10; txn++) {
+			con.begin();
+			for (int i = 0; i < 1000; i++) {
+				URI subj = vf.createURI("urn:s" + (txn * 1000 + i));
+				con.addStatement(subj, paints, vf.createLiteral("value " + (txn * 1000 + i)));
+				con.addStatement(subj, RDFS.LABEL, vf.createLiteral(i % 10), i % 2 == 0 ? context1 : null);
+			}
+			con.commit();
+		}
+
+		con.begin();
+		con.removeStatements(null, paints, null);
+		con.commit();
+
+		store.cleanSnapshots();
+
+		assertEquals(10000, store.size());
+		assertEquals(10000, countAllElements());
+		assertEquals(0, countElements(con.getStatements(null, paints, null, false)));
+		assertEquals(5000, countElements(con.getStatements(null, null, null, false, context1)));
+		assertEquals(1000, countElements(con.getStatements(null, RDFS.LABEL, vf.createLiteral(3), false)));
+
+		// the 10000 literals are no longer used
+		assertTrue(statementTable.getState().getDictionary().size() < 10100);
+		assertEquals(1, countElements(con.getStatements(vf.createURI("urn:s1234"), RDFS.LABEL, null, false)));
+	}
+
+	public void testChangeExplicitFlag()
+		throws Exception
+	{
+		con.begin();
+		((MemoryStoreConnection)con).addInferredStatement(picasso, paints, guernica);
+		con.commit();
+
+		assertEquals(0, countElements(con.getStatements(picasso, paints, guernica, false)));
+		assertEquals(1, countElements(con.getStatements(picasso, paints, guernica, true)));
+
+		con.begin();
+		con.addStatement(picasso, paints, guernica);
+		con.commit();
+
+		assertEquals(1, countElements(con.getStatements(picasso, paints, guernica, false)));
+		assertEquals(1, countElements(con.getStatements(picasso, paints, guernica, true)));
+
+		con.begin();
+		con.removeStatements(picasso, paints, guernica);
+		con.commit();
+
+		assertEquals(0, countElements(con.getStatements(picasso, paints, guernica, true)));
+	}
+
+	private int countElements(CloseableIteration<?, SailException> iter)
+		throws SailException
+	{
+		int count = 0;
+		try {
+			while (iter.hasNext()) {
+				iter.next();
+				count++;
+			}
+		}
+		finally {
+			iter.close();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import org.openrdf.sail.NotifyingSail;
+import org.openrdf.sail.RDFNotifyingStoreTest;
+import org.openrdf.sail.SailException;
+
+/**
+ * An extension of RDFStoreTest for testing the class
+ * <tt>org.openrdf.sesame.sail.memory.MemoryStore</tt> with composite indexes.
+ */
+public class CompositeIndexMemoryStoreTest extends RDFNotifyingStoreTest {
+
+	public CompositeIndexMemoryStoreTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected NotifyingSail createSail()
+		throws SailException
+	{
+		MemoryStore sail = new MemoryStore();
+		sail.setCompositeIndexes("po,sp,oc");
+		sail.initialize();
+		return sail;
+	}
+}
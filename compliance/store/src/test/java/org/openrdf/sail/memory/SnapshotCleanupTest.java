@@ -0,0 +1,293 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import info.aduna.iteration.CloseableIteration;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.model.MemStatement;
+import org.openrdf.sail.memory.model.MemStatementList;
+import org.openrdf.sail.memory.model.MemURI;
+
+/**
+ * Checks that the incremental snapshot cleanup of {@link MemoryStore} removes
+ * all stale statements while readers keep seeing a consistent snapshot.
+ */
+public class SnapshotCleanupTest extends TestCase {
+
+	private static final int STATEMENT_COUNT = 25000;
+
+	private MemoryStore store;
+
+	private URI pred;
+
+	private URI[] objects;
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		store = new MemoryStore();
+		store.setEvaluationThreads(2);
+		store.setCompositeIndexes("po");
+		store.initialize();
+
+		ValueFactory vf = store.getValueFactory();
+		pred = vf.createURI("urn:p");
+		objects = new URI[10];
+		for (int i = 0; i < objects.length; i++) {
+			objects[i] = vf.createURI("urn:o" + i);
+		}
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		store.shutDown();
+		super.tearDown();
+	}
+
+	public void testCleanupWithConcurrentReaders()
+		throws Exception
+	{
+		ValueFactory vf = store.getValueFactory();
+
+		SailConnection con = store.getConnection();
+		try {
+			con.begin();
+			for (int i = 0; i < STATEMENT_COUNT; i++) {
+				con.addStatement(vf.createURI("urn:s" + i), pred, objects[i % objects.length]);
+			}
+			con.commit();
+
+			// remove the statements with an odd object
+			con.begin();
+			for (int i = 1; i < objects.length; i += 2) {
+				con.removeStatements(null, pred, objects[i]);
+			}
+			con.commit();
+		}
+		finally {
+			con.close();
+		}
+
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread reader = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					while (!done.get()) {
+						assertEquals(STATEMENT_COUNT / 2, count(null));
+						assertEquals(STATEMENT_COUNT / objects.length, count(objects[4]));
+						assertEquals(0, count(objects[5]));
+					}
+				}
+				catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+
+		reader.start();
+		try {
+			store.cleanSnapshots();
+		}
+		finally {
+			done.set(true);
+			reader.join();
+		}
+
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		assertEquals(STATEMENT_COUNT / 2, store.getStatements().size());
+		assertEquals(STATEMENT_COUNT / 2, count(null));
+		assertEquals(STATEMENT_COUNT / objects.length, count(objects[4]));
+		assertEquals(0, count(objects[5]));
+	}
+
+	/**
+	 * Verifies that the snapshot cleanup does not wait for a reader that is
+	 * still iterating over an older snapshot, and that it leaves the
+	 * statements of that snapshot until the reader is done.
+	 */
+	public void testCleanupDuringRead()
+		throws Exception
+	{
+		ValueFactory vf = store.getValueFactory();
+
+		SailConnection con = store.getConnection();
+		try {
+			con.begin();
+			for (int i = 0; i < 1000; i++) {
+				con.addStatement(vf.createURI("urn:s" + i), pred, objects[i % objects.length]);
+			}
+			con.commit();
+
+			SailConnection reader = store.getConnection();
+			try {
+				CloseableIteration<? extends Statement, SailException> iter = reader.getStatements(null, pred,
+						null, false);
+				try {
+					assertTrue(iter.hasNext());
+
+					con.begin();
+					con.removeStatements(null, pred, null);
+					con.commit();
+
+					Thread cleanupThread = new Thread() {
+
+						@Override
+						public void run() {
+							try {
+								store.cleanSnapshots();
+							}
+							catch (InterruptedException e) {
+								// the test fails below
+							}
+						}
+					};
+					cleanupThread.start();
+					cleanupThread.join(10000);
+					assertFalse("cleanup blocked by reader", cleanupThread.isAlive());
+
+					assertEquals(1000, store.getStatements().size());
+
+					int count = 0;
+					while (iter.hasNext()) {
+						iter.next();
+						count++;
+					}
+					assertEquals(1000, count);
+				}
+				finally {
+					iter.close();
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		finally {
+			con.close();
+		}
+
+		// the cleanup that was deferred for the reader runs now
+		for (int i = 0; i < 100 && store.getStatements().size() > 0; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(0, store.getStatements().size());
+	}
+
+	/**
+	 * Verifies that a list that is cleaned in slices keeps the statements that
+	 * are added between the slices, and that its contents are only replaced
+	 * after the last slice.
+	 */
+	public void testCleanInSlices()
+		throws Exception
+	{
+		MemURI uri = new MemURI(this, "urn:", "x");
+		MemStatementList list = new MemStatementList();
+
+		for (int i = 0; i < 100; i++) {
+			MemStatement st = new MemStatement(uri, uri, uri, null, true, 1);
+			st.setTillSnapshot(i % 3 == 0 ? Integer.MAX_VALUE : 5);
+			list.add(st);
+		}
+
+		final List<MemStatement> removed = new ArrayList<MemStatement>();
+		StatementListCleanup cleanup = new StatementListCleanup(list, 5, 7) {
+
+			@Override
+			protected void statementRemoved(MemStatement st) {
+				removed.add(st);
+			}
+		};
+
+		int addedCount = 0;
+		while (!cleanup.isDone()) {
+			cleanup.call();
+
+			if (!cleanup.isDone()) {
+				assertEquals(100 + addedCount, list.size());
+
+				// statements that are added during the cleanup are kept
+				list.add(new MemStatement(uri, uri, uri, null, true, 6));
+				addedCount++;
+			}
+		}
+
+		assertEquals(66, removed.size());
+		assertEquals(34 + addedCount, list.size());
+		for (int i = 0; i < list.size(); i++) {
+			assertEquals(Integer.MAX_VALUE, list.get(i).getTillSnapshot());
+		}
+	}
+
+	public void testCleanClearedList()
+		throws Exception
+	{
+		MemURI uri = new MemURI(this, "urn:", "x");
+		MemStatementList list = new MemStatementList();
+
+		for (int i = 0; i < 100; i++) {
+			MemStatement st = new MemStatement(uri, uri, uri, null, true, 1);
+			st.setTillSnapshot(5);
+			list.add(st);
+		}
+
+		StatementListCleanup cleanup = new StatementListCleanup(list, 5, 7);
+		cleanup.call();
+		list.clear();
+		cleanup.call();
+
+		assertTrue(cleanup.isDone());
+		assertEquals(0, list.size());
+	}
+
+	private int count(Value obj)
+		throws SailException
+	{
+		SailConnection con = store.getConnection();
+		try {
+			CloseableIteration<? extends Statement, SailException> iter = con.getStatements(null, pred, obj,
+					false);
+			try {
+				int count = 0;
+				while (iter.hasNext()) {
+					iter.next();
+					count++;
+				}
+				return count;
+			}
+			finally {
+				iter.close();
+			}
+		}
+		finally {
+			con.close();
+		}
+	}
+}
@@ -5,18 +5,30 @@
  */
 package org.openrdf.sail.memory;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.TestCase;
 
 import info.aduna.io.FileUtil;
 import info.aduna.iteration.CloseableIteration;
 
+import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
+import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ContextStatementImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.XMLSchema;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.QueryLanguage;
@@ -26,6 +38,7 @@ import org.openrdf.query.parser.ParsedTupleQuery;
 import org.openrdf.query.parser.QueryParserUtil;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
+import org.openrdf.sail.inferencer.InferencerConnection;
 
 public class StoreSerializationTest extends TestCase {
 
@@ -35,6 +48,8 @@ public class StoreSerializationTest extends TestCase {
 
 	private File dataDir;
 
+	private File copyDir;
+
 	/*---------*
 	 * Methods *
 	 *---------*/
@@ -53,6 +68,9 @@ public class StoreSerializationTest extends TestCase {
 	{
 		super.tearDown();
 		FileUtil.deleteDir(dataDir);
+		if (copyDir != null) {
+			FileUtil.deleteDir(copyDir);
+		}
 	}
 
 	public void testSerialization()
@@ -151,4 +169,321 @@ public class StoreSerializationTest extends TestCase {
 		con.close();
 		store.shutDown();		
 	}
+
+	public void testChangeLog()
+		throws Exception
+	{
+		MemoryStore store = new MemoryStore(dataDir);
+		store.setChangeLog(true);
+		store.initialize();
+
+		File dataFile = new File(dataDir, MemoryStore.DATA_FILE_NAME);
+		long dataFileLength = dataFile.length();
+
+		ValueFactory factory = store.getValueFactory();
+		URI foo = factory.createURI("http://www.foo.example/foo");
+		URI bar = factory.createURI("http://www.foo.example/bar");
+
+		InferencerConnection con = (InferencerConnection)store.getConnection();
+		con.begin();
+		con.addStatement(foo, RDF.TYPE, bar);
+		con.addStatement(bar, RDF.TYPE, foo, foo);
+		con.addStatement(foo, RDF.VALUE, bar);
+		con.setNamespace("foo", "http://www.foo.example/");
+		con.commit();
+
+		con.begin();
+		con.removeStatements(bar, RDF.TYPE, foo, foo);
+		con.removeStatements(foo, RDF.VALUE, bar);
+		con.addInferredStatement(foo, RDF.VALUE, bar);
+		con.addInferredStatement(bar, RDF.VALUE, foo);
+		con.commit();
+		con.close();
+
+		// The data file is not rewritten
+		assertEquals(dataFileLength, dataFile.length());
+
+		// Replay the files as they would be left behind by a crash
+		MemoryStore copy = copyStore();
+		assertChangeLogContents(copy);
+		copy.shutDown();
+
+		store.shutDown();
+
+		store = new MemoryStore(dataDir);
+		store.setChangeLog(true);
+		store.initialize();
+		assertChangeLogContents(store);
+		store.shutDown();
+	}
+
+	private void assertChangeLogContents(MemoryStore store)
+		throws Exception
+	{
+		ValueFactory factory = store.getValueFactory();
+		URI foo = factory.createURI("http://www.foo.example/foo");
+		URI bar = factory.createURI("http://www.foo.example/bar");
+
+		SailConnection con = store.getConnection();
+		try {
+			assertTrue(hasStatement(con, foo, RDF.TYPE, bar, false));
+			assertFalse(hasStatement(con, bar, RDF.TYPE, foo, false));
+			assertTrue(hasStatement(con, foo, RDF.VALUE, bar, true));
+			assertFalse(hasStatement(con, foo, RDF.VALUE, bar, false));
+			assertTrue(hasStatement(con, bar, RDF.VALUE, foo, true));
+			assertFalse(hasStatement(con, bar, RDF.VALUE, foo, false));
+			assertEquals("http://www.foo.example/", con.getNamespace("foo"));
+		}
+		finally {
+			con.close();
+		}
+	}
+
+	public void testChangeLogCompaction()
+		throws Exception
+	{
+		MemoryStore store = new MemoryStore(dataDir);
+		store.setChangeLog(true);
+		store.initialize();
+
+		ValueFactory factory = store.getValueFactory();
+		URI foo = factory.createURI("http://www.foo.example/foo");
+		URI bar = factory.createURI("http://www.foo.example/bar");
+
+		SailConnection con = store.getConnection();
+		con.begin();
+		con.addStatement(foo, RDF.TYPE, bar);
+		con.commit();
+
+		File logFile = new File(dataDir, MemoryStore.LOG_FILE_NAME);
+		long emptyLogLength = logFile.length();
+
+		con.begin();
+		con.addStatement(bar, RDF.TYPE, foo);
+		con.commit();
+		assertTrue(logFile.length() > emptyLogLength);
+
+		store.sync();
+		emptyLogLength = logFile.length();
+		assertFalse(new File(dataDir, MemoryStore.OLD_LOG_FILE_NAME).exists());
+
+		// Commits after compaction are appended to the log again
+		con.begin();
+		con.removeStatements(foo, RDF.TYPE, bar);
+		con.commit();
+		con.close();
+		assertTrue(logFile.length() > emptyLogLength);
+
+		MemoryStore copy = copyStore();
+		con = copy.getConnection();
+		assertFalse(hasStatement(con, foo, RDF.TYPE, bar, false));
+		assertTrue(hasStatement(con, bar, RDF.TYPE, foo, false));
+		con.close();
+		copy.shutDown();
+
+		store.shutDown();
+	}
+
+	public void testIncompleteChangeLogRecord()
+		throws Exception
+	{
+		MemoryStore store = new MemoryStore(dataDir);
+		store.setChangeLog(true);
+		store.initialize();
+
+		ValueFactory factory = store.getValueFactory();
+		URI foo = factory.createURI("http://www.foo.example/foo");
+		URI bar = factory.createURI("http://www.foo.example/bar");
+
+		SailConnection con = store.getConnection();
+		con.begin();
+		con.addStatement(foo, RDF.TYPE, bar);
+		con.commit();
+		con.begin();
+		con.addStatement(bar, RDF.TYPE, foo);
+		con.commit();
+		con.close();
+		store.shutDown();
+
+		// Cut off the end of the last record
+		RandomAccessFile raf = new RandomAccessFile(new File(dataDir, MemoryStore.LOG_FILE_NAME), "rw");
+		try {
+			raf.setLength(raf.length() - 3);
+		}
+		finally {
+			raf.close();
+		}
+
+		store = new MemoryStore(dataDir);
+		store.setChangeLog(true);
+		store.initialize();
+
+		con = store.getConnection();
+		assertTrue(hasStatement(con, foo, RDF.TYPE, bar, false));
+		assertFalse(hasStatement(con, bar, RDF.TYPE, foo, false));
+
+		// New records replace the incomplete one
+		con.begin();
+		con.addStatement(foo, RDF.VALUE, bar);
+		con.commit();
+		con.close();
+		store.shutDown();
+
+		store = new MemoryStore(dataDir);
+		store.initialize();
+
+		// Without a change log, the log is folded into the data file
+		assertFalse(new File(dataDir, MemoryStore.LOG_FILE_NAME).exists());
+
+		con = store.getConnection();
+		assertTrue(hasStatement(con, foo, RDF.TYPE, bar, false));
+		assertFalse(hasStatement(con, bar, RDF.TYPE, foo, false));
+		assertTrue(hasStatement(con, foo, RDF.VALUE, bar, false));
+		con.close();
+		store.shutDown();
+	}
+
+	public void testLargeDataFile()
+		throws Exception
+	{
+		// more statements and values than fit in a single block
+		int count = 70000;
+
+		MemoryStore store = new MemoryStore(dataDir);
+		store.initialize();
+
+		ValueFactory factory = store.getValueFactory();
+		URI pred = factory.createURI("urn:p");
+		URI graph = factory.createURI("urn:g");
+		BNode bnode = factory.createBNode("b1");
+		Literal langLiteral = factory.createLiteral("h\u00e9llo", "fr");
+
+		SailConnection con = store.getConnection();
+		con.begin();
+		con.setNamespace("ex", "urn:ex#");
+		for (int i = 0; i < count; i++) {
+			if (i % 2 == 0) {
+				con.addStatement(factory.createURI("urn:s" + i), pred, factory.createLiteral(i), graph);
+			}
+			else {
+				con.addStatement(factory.createURI("urn:s" + i), pred, factory.createLiteral(i));
+			}
+		}
+		con.addStatement(bnode, RDF.VALUE, langLiteral);
+		((InferencerConnection)con).addInferredStatement(graph, RDF.TYPE, RDF.BAG);
+		con.commit();
+		con.close();
+		store.shutDown();
+
+		store = new MemoryStore(dataDir);
+		store.initialize();
+
+		con = store.getConnection();
+		try {
+			assertEquals(count + 1, con.size());
+			assertEquals(count / 2, con.size(graph));
+			assertEquals("urn:ex#", con.getNamespace("ex"));
+			assertTrue(hasStatement(con, factory.createURI("urn:s69999"), pred, factory.createLiteral(69999),
+					false));
+			assertTrue(hasStatement(con, null, RDF.VALUE, langLiteral, false));
+			assertFalse(hasStatement(con, graph, RDF.TYPE, RDF.BAG, false));
+			assertTrue(hasStatement(con, graph, RDF.TYPE, RDF.BAG, true));
+		}
+		finally {
+			con.close();
+			store.shutDown();
+		}
+	}
+
+	public void testVersion2DataFile()
+		throws Exception
+	{
+		ValueFactory factory = ValueFactoryImpl.getInstance();
+		URI foo = factory.createURI("http://www.foo.example/foo");
+		URI bar = factory.createURI("http://www.foo.example/bar");
+		Literal value = factory.createLiteral("5", XMLSchema.INT);
+
+		// write a data file in the format that was used before value tables
+		FileIO fileIO = new FileIO(new MemoryStore());
+		File dataFile = new File(dataDir, MemoryStore.DATA_FILE_NAME);
+		OutputStream out = new FileOutputStream(dataFile);
+		out.write(new byte[] { 'B', 'M', 'S', 'F', 2 });
+		DataOutputStream dataOut = new DataOutputStream(new GZIPOutputStream(out));
+		dataOut.writeByte(FileIO.NAMESPACE_MARKER);
+		fileIO.writeString("ex", dataOut);
+		fileIO.writeString("urn:ex#", dataOut);
+		fileIO.writeStatement(new StatementImpl(foo, RDF.TYPE, bar), true, dataOut);
+		fileIO.writeStatement(new ContextStatementImpl(foo, RDF.VALUE, value, bar), false, dataOut);
+		dataOut.writeByte(FileIO.EOF_MARKER);
+		dataOut.close();
+
+		for (int i = 0; i < 2; i++) {
+			MemoryStore store = new MemoryStore(dataDir);
+			store.initialize();
+
+			SailConnection con = store.getConnection();
+			try {
+				assertEquals("urn:ex#", con.getNamespace("ex"));
+				assertTrue(hasStatement(con, foo, RDF.TYPE, bar, false));
+				assertFalse(hasStatement(con, foo, RDF.VALUE, value, false));
+				assertTrue(hasStatement(con, foo, RDF.VALUE, value, true));
+			}
+			finally {
+				con.close();
+				store.shutDown();
+			}
+
+			// the data file has been rewritten in the current format
+			RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+			try {
+				file.seek(4);
+				assertTrue(file.read() > 2);
+			}
+			finally {
+				file.close();
+			}
+		}
+	}
+
+	private boolean hasStatement(SailConnection con, Resource subj, URI pred, Value obj,
+			boolean includeInferred)
+		throws SailException
+	{
+		CloseableIteration<? extends Statement, SailException> iter = con.getStatements(subj, pred, obj,
+				includeInferred);
+		try {
+			return iter.hasNext();
+		}
+		finally {
+			iter.close();
+		}
+	}
+
+	/**
+	 * Creates a store from copies of the files in the data directory.
+	 */
+	private MemoryStore copyStore()
+		throws Exception
+	{
+		if (copyDir != null) {
+			FileUtil.deleteDir(copyDir);
+		}
+		copyDir = FileUtil.createTempDir("memorystore");
+
+		for (String name : new String[] {
+				MemoryStore.DATA_FILE_NAME,
+				MemoryStore.LOG_FILE_NAME,
+				MemoryStore.OLD_LOG_FILE_NAME })
+		{
+			File file = new File(dataDir, name);
+			if (file.exists()) {
+				FileUtil.copyFile(file, new File(copyDir, name));
+			}
+		}
+
+		MemoryStore copy = new MemoryStore(copyDir);
+		copy.setChangeLog(true);
+		copy.initialize();
+		return copy;
+	}
 }
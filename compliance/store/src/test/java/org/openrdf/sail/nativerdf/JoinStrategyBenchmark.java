@@ -0,0 +1,180 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.FileUtil;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+
+/**
+ * Compares hash joins to nested loop joins on star and chain queries over a
+ * generated dataset of people, the companies they work for and the cities
+ * these are located in, stored in a {@link NativeStore}. The optimizer does
+ * not choose hash joins for queries with a limit, so the nested loop plans are
+ * obtained by adding a limit that exceeds the number of results.
+ */
+public class JoinStrategyBenchmark extends TestCase {
+
+	private static final String NS = "urn:test:";
+
+	private static final int PERSON_COUNT = 100000;
+
+	private static final int COMPANY_COUNT = 2000;
+
+	private static final int CITY_COUNT = 100;
+
+	private static final String NO_LIMIT = " LIMIT 1000000000";
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private File dataDir;
+
+	private Repository repo;
+
+	private RepositoryConnection con;
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		dataDir = FileUtil.createTempDir("nativestore");
+		repo = new SailRepository(new NativeStore(dataDir, "spoc,posc,opsc"));
+		repo.initialize();
+		con = repo.getConnection();
+
+		ValueFactory vf = con.getValueFactory();
+		URI name = vf.createURI(NS, "name");
+		URI age = vf.createURI(NS, "age");
+		URI worksFor = vf.createURI(NS, "worksFor");
+		URI locatedIn = vf.createURI(NS, "locatedIn");
+		URI population = vf.createURI(NS, "population");
+
+		con.begin();
+		for (int i = 0; i < CITY_COUNT; i++) {
+			URI city = vf.createURI(NS, "city" + i);
+			con.add(city, name, vf.createLiteral("City " + i));
+			con.add(city, population, vf.createLiteral(i * 1000));
+		}
+		for (int i = 0; i < COMPANY_COUNT; i++) {
+			URI company = vf.createURI(NS, "company" + i);
+			con.add(company, name, vf.createLiteral("Company " + i));
+			con.add(company, locatedIn, vf.createURI(NS, "city" + (i % CITY_COUNT)));
+		}
+		for (int i = 0; i < PERSON_COUNT; i++) {
+			URI person = vf.createURI(NS, "person" + i);
+			con.add(person, name, vf.createLiteral("Person " + i));
+			con.add(person, age, vf.createLiteral(i % 80));
+			con.add(person, worksFor, vf.createURI(NS, "company" + (i % COMPANY_COUNT)));
+		}
+		con.commit();
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			con.close();
+			repo.shutDown();
+			FileUtil.deleteDir(dataDir);
+		}
+		finally {
+			super.tearDown();
+		}
+	}
+
+	public void testStar()
+		throws Exception
+	{
+		String sparql = "PREFIX : <" + NS + "> SELECT * WHERE { ?p :name ?n ; :age ?a ; :worksFor ?c }";
+
+		assertEquals(PERSON_COUNT, compare(sparql, "testStar"));
+	}
+
+	public void testChain()
+		throws Exception
+	{
+		String sparql = "PREFIX : <" + NS + "> SELECT * WHERE { "
+				+ "?p :worksFor ?c . ?c :locatedIn ?city . ?city :population ?pop }";
+
+		assertEquals(PERSON_COUNT, compare(sparql, "testChain"));
+	}
+
+	public void testSelectiveChain()
+		throws Exception
+	{
+		// Few results, for which index lookups are cheaper than hashing
+		String sparql = "PREFIX : <" + NS + "> SELECT * WHERE { "
+				+ "?c :locatedIn :city7 . ?p :worksFor ?c . ?p :name ?n }";
+
+		assertEquals(PERSON_COUNT / CITY_COUNT, compare(sparql, "testSelectiveChain"));
+	}
+
+	/**
+	 * Evaluates a query with the join strategies chosen by the optimizer and
+	 * with nested loop joins only, and checks that both produce the same number
+	 * of results.
+	 */
+	private int compare(String sparql, String methodName)
+		throws Exception
+	{
+		// Warm up
+		for (int i = 0; i < 5; i++) {
+			count(sparql);
+			count(sparql + NO_LIMIT);
+		}
+
+		long startTime = System.currentTimeMillis();
+		int count = count(sparql);
+		long endTime = System.currentTimeMillis();
+		printTime(startTime, endTime, methodName + " (optimizer)");
+
+		startTime = System.currentTimeMillis();
+		assertEquals(count, count(sparql + NO_LIMIT));
+		endTime = System.currentTimeMillis();
+		printTime(startTime, endTime, methodName + " (nested loops)");
+
+		return count;
+	}
+
+	private int count(String sparql)
+		throws Exception
+	{
+		TupleQueryResult result = con.prepareTupleQuery(QueryLanguage.SPARQL, sparql).evaluate();
+		try {
+			int count = 0;
+			while (result.hasNext()) {
+				result.next();
+				count++;
+			}
+			return count;
+		}
+		finally {
+			result.close();
+		}
+	}
+
+	private void printTime(long startTime, long endTime, String methodName) {
+		System.out.println((endTime - startTime) + " ms for " + methodName + "()");
+	}
+}
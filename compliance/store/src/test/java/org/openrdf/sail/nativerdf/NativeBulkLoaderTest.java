@@ -0,0 +1,139 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.FileUtil;
+import info.aduna.iteration.CloseableIteration;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.Rio;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+/**
+ * Tests bulk loading data into a {@link NativeStore} using the
+ * {@link NativeBulkLoader}.
+ */
+public class NativeBulkLoaderTest extends TestCase {
+
+	private static final String NS = "http://example.org/";
+
+	private File dataDir;
+
+	private NativeStore sail;
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		dataDir = FileUtil.createTempDir("nativestore");
+		sail = new NativeStore(dataDir, "spoc,posc,cosp");
+		sail.initialize();
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			sail.shutDown();
+			FileUtil.deleteDir(dataDir);
+		}
+		finally {
+			super.tearDown();
+		}
+	}
+
+	public void testLoad()
+		throws Exception
+	{
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			data.append("<" + NS + "s" + i + "> <" + NS + "p" + (i % 10) + "> \"" + i + "\" <" + NS + "g"
+					+ (i % 3) + "> .\n");
+		}
+		// duplicate statement
+		data.append("<" + NS + "s0> <" + NS + "p0> \"0\" <" + NS + "g0> .\n");
+		// statement in the default context
+		data.append("<" + NS + "s0> <" + NS + "p0> \"0\" .\n");
+
+		long count = new NativeBulkLoader(sail).load(Rio.createParser(RDFFormat.NQUADS),
+				new ByteArrayInputStream(data.toString().getBytes("UTF-8")), NS);
+		assertEquals(1001L, count);
+
+		ValueFactory vf = sail.getValueFactory();
+		URI p3 = vf.createURI(NS, "p3");
+		URI g1 = vf.createURI(NS, "g1");
+
+		SailConnection con = sail.getConnection();
+		try {
+			assertEquals(1001, countStatements(con.getStatements(null, null, null, false)));
+			assertEquals(100, countStatements(con.getStatements(null, p3, null, false)));
+			assertEquals(333, countStatements(con.getStatements(null, null, null, false, g1)));
+			assertEquals(1, countStatements(con.getStatements(vf.createURI(NS, "s0"), null, null, false,
+					(URI)null)));
+
+			// The store must be updatable after a bulk load
+			con.begin();
+			con.removeStatements(null, p3, null);
+			con.commit();
+			assertEquals(901, countStatements(con.getStatements(null, null, null, false)));
+		}
+		finally {
+			con.close();
+		}
+	}
+
+	public void testLoadIntoNonEmptyStore()
+		throws Exception
+	{
+		ValueFactory vf = sail.getValueFactory();
+
+		SailConnection con = sail.getConnection();
+		try {
+			con.begin();
+			con.addStatement(vf.createURI(NS, "s"), vf.createURI(NS, "p"), vf.createURI(NS, "o"));
+			con.commit();
+		}
+		finally {
+			con.close();
+		}
+
+		try {
+			new NativeBulkLoader(sail).load(Rio.createParser(RDFFormat.NTRIPLES), new ByteArrayInputStream(
+					new byte[0]), NS);
+			fail("Bulk load into a non-empty store should fail");
+		}
+		catch (SailException e) {
+			// expected
+		}
+	}
+
+	private int countStatements(CloseableIteration<? extends Statement, SailException> iter)
+		throws SailException
+	{
+		try {
+			int count = 0;
+			while (iter.hasNext()) {
+				iter.next();
+				count++;
+			}
+			return count;
+		}
+		finally {
+			iter.close();
+		}
+	}
+}
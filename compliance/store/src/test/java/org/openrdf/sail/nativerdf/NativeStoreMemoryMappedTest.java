@@ -0,0 +1,97 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+
+import info.aduna.io.FileUtil;
+import info.aduna.iteration.CloseableIteration;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.NotifyingSail;
+import org.openrdf.sail.RDFNotifyingStoreTest;
+import org.openrdf.sail.SailException;
+
+/**
+ * An extension of RDFStoreTest for testing the class {@link NativeStore} with
+ * memory mapped reads enabled.
+ */
+public class NativeStoreMemoryMappedTest extends RDFNotifyingStoreTest {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private File dataDir;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	public NativeStoreMemoryMappedTest(String name) {
+		super(name);
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		dataDir = FileUtil.createTempDir("nativestore");
+		super.setUp();
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			super.tearDown();
+		}
+		finally {
+			FileUtil.deleteDir(dataDir);
+		}
+	}
+
+	@Override
+	protected NotifyingSail createSail()
+		throws SailException
+	{
+		NativeStore sail = new NativeStore(dataDir, "spoc,posc");
+		sail.setMemoryMapped(true);
+		sail.initialize();
+		return sail;
+	}
+
+	public void testReopenMemoryMapped()
+		throws Exception
+	{
+		con.begin();
+		con.setNamespace("rdf", RDF.NAMESPACE);
+		con.addStatement(painter, RDF.TYPE, RDFS.CLASS);
+		con.commit();
+
+		con.close();
+		sail.shutDown();
+		sail.initialize();
+		con = sail.getConnection();
+
+		assertEquals(RDF.NAMESPACE, con.getNamespace("rdf"));
+		CloseableIteration<? extends Statement, SailException> iter = con.getStatements(painter, RDF.TYPE,
+				RDFS.CLASS, false);
+		try {
+			assertTrue(iter.hasNext());
+		}
+		finally {
+			iter.close();
+		}
+	}
+}
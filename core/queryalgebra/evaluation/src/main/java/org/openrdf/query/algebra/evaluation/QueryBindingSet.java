@@ -5,49 +5,100 @@
  */
 package org.openrdf.query.algebra.evaluation;
 
+import java.util.AbstractSet;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.openrdf.model.Value;
 import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.impl.BindingImpl;
 import org.openrdf.query.impl.MapBindingSet;
-import org.openrdf.util.iterators.ConvertingIterator;
 
 /**
  * An implementation of the {@link BindingSet} interface that is used to evalate
  * query object models. This implementations differs from {@link MapBindingSet}
  * in that it maps variable names to Value objects and that the Binding objects
  * are created lazily.
+ * <p>
+ * Bindings are stored in slots: an array of variable names and an array of
+ * values at the same positions. Binding sets that are copied from another
+ * QueryBindingSet share its array of names, only the values are copied. When
+ * the copies are extended with the same variables in the same order, which is
+ * the case for all results of a single operator, they also share the slots for
+ * these variables. This avoids allocating a map entry for every binding of
+ * every intermediate solution.
  */
 public class QueryBindingSet implements BindingSet {
 
 	private static final long serialVersionUID = -2010715346095527301L;
 
-	private final Map<String, Value> bindings;
+	/**
+	 * The number of free slots that are reserved for new bindings when a
+	 * binding set is created from another binding set.
+	 */
+	private static final int EXTRA_CAPACITY = 8;
+
+	/**
+	 * The names of the bindings, possibly shared with other binding sets. Slots
+	 * below {@link #length} are never modified. Slots above it are claimed by
+	 * the first binding set that adds a binding to it.
+	 */
+	private AtomicReferenceArray<String> names;
+
+	/**
+	 * The values of the bindings, <tt>null</tt> for unbound slots.
+	 */
+	private Value[] values;
+
+	/**
+	 * The number of slots used by this binding set.
+	 */
+	private int length;
+
+	/**
+	 * The number of bound slots.
+	 */
+	private int size;
 
 	public QueryBindingSet() {
-		this(8);
+		this(EXTRA_CAPACITY);
 	}
 
 	public QueryBindingSet(int capacity) {
-		// Create bindings map with some extra space for new bindings and
-		// compensating for HashMap's load factor
-		bindings = new HashMap<String, Value>(capacity * 2);
+		capacity = Math.max(capacity, 1);
+		names = new AtomicReferenceArray<String>(capacity);
+		values = new Value[capacity];
 	}
 
 	public QueryBindingSet(BindingSet bindingSet) {
-		this(bindingSet.size());
-		addAll(bindingSet);
+		if (bindingSet instanceof QueryBindingSet) {
+			QueryBindingSet other = (QueryBindingSet)bindingSet;
+			names = other.names;
+			values = new Value[names.length()];
+			System.arraycopy(other.values, 0, values, 0, other.length);
+			length = other.length;
+			size = other.size;
+		}
+		else {
+			int capacity = bindingSet.size() + EXTRA_CAPACITY;
+			names = new AtomicReferenceArray<String>(capacity);
+			values = new Value[capacity];
+			addAll(bindingSet);
+		}
 	}
 
 	public void addAll(BindingSet bindingSet) {
 		if (bindingSet instanceof QueryBindingSet) {
-			bindings.putAll(((QueryBindingSet)bindingSet).bindings);
+			QueryBindingSet other = (QueryBindingSet)bindingSet;
+			for (int i = 0; i < other.length; i++) {
+				if (other.values[i] != null) {
+					setBinding(other.names.get(i), other.values[i]);
+				}
+			}
 		}
 		else {
 			for (Binding binding : bindingSet) {
@@ -59,7 +110,7 @@ public class QueryBindingSet implements BindingSet {
 	/**
 	 * Adds a new binding to the binding set. The binding's name must not already
 	 * be part of this binding set.
-	 * 
+	 *
 	 * @param binding
 	 *        The binding to add this this BindingSet.
 	 */
@@ -70,14 +121,14 @@ public class QueryBindingSet implements BindingSet {
 	/**
 	 * Adds a new binding to the binding set. The binding's name must not already
 	 * be part of this binding set.
-	 * 
+	 *
 	 * @param name
 	 *        The binding's name, must not be bound in this binding set already.
 	 * @param value
 	 *        The binding's value.
 	 */
 	public void addBinding(String name, Value value) {
-		assert !bindings.containsKey(name) : "variable already bound: " + name;
+		assert !hasBinding(name) : "variable already bound: " + name;
 		setBinding(name, value);
 	}
 
@@ -87,27 +138,77 @@ public class QueryBindingSet implements BindingSet {
 
 	public void setBinding(String name, Value value) {
 		assert value != null : "null value for variable " + name;
-		bindings.put(name, value);
+
+		int i = indexOf(name);
+
+		if (i < 0) {
+			i = addSlot(name);
+		}
+
+		if (values[i] == null) {
+			size++;
+		}
+		values[i] = value;
 	}
 
 	public void removeBinding(String name) {
-		bindings.remove(name);
+		int i = indexOf(name);
+
+		if (i >= 0 && values[i] != null) {
+			values[i] = null;
+			size--;
+		}
 	}
 
 	public void removeAll(Collection<String> bindingNames) {
-		bindings.keySet().removeAll(bindingNames);
+		for (String name : bindingNames) {
+			removeBinding(name);
+		}
 	}
 
 	public void retainAll(Collection<String> bindingNames) {
-		bindings.keySet().retainAll(bindingNames);
+		for (int i = 0; i < length; i++) {
+			if (values[i] != null && !bindingNames.contains(names.get(i))) {
+				values[i] = null;
+				size--;
+			}
+		}
 	}
 
 	public Set<String> getBindingNames() {
-		return bindings.keySet();
+		return new AbstractSet<String>() {
+
+			@Override
+			public Iterator<String> iterator() {
+				return new SlotIterator<String>() {
+
+					@Override
+					protected String get(int slot) {
+						return names.get(slot);
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof String && hasBinding((String)o);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
 	}
 
 	public Value getValue(String bindingName) {
-		return bindings.get(bindingName);
+		int i = indexOf(bindingName);
+
+		if (i >= 0) {
+			return values[i];
+		}
+
+		return null;
 	}
 
 	public Binding getBinding(String bindingName) {
@@ -121,23 +222,70 @@ public class QueryBindingSet implements BindingSet {
 	}
 
 	public boolean hasBinding(String bindingName) {
-		return bindings.containsKey(bindingName);
+		return getValue(bindingName) != null;
 	}
 
 	public Iterator<Binding> iterator() {
-		Iterator<Map.Entry<String, Value>> entries = bindings.entrySet().iterator();
-
-		return new ConvertingIterator<Map.Entry<String, Value>, Binding>(entries) {
+		return new SlotIterator<Binding>() {
 
 			@Override
-			protected Binding convert(Map.Entry<String, Value> entry) {
-				return new BindingImpl(entry.getKey(), entry.getValue());
+			protected Binding get(int slot) {
+				return new BindingImpl(names.get(slot), values[slot]);
 			}
 		};
 	}
 
 	public int size() {
-		return bindings.size();
+		return size;
+	}
+
+	/**
+	 * Gets the slot of the binding with the specified name.
+	 *
+	 * @return The slot, or <tt>-1</tt> if this binding set has no slot for the
+	 *         name.
+	 */
+	private int indexOf(String name) {
+		for (int i = 0; i < length; i++) {
+			if (name.equals(names.get(i))) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Adds a slot for the binding with the specified name. The next slot in the
+	 * shared array of names is reused if it is still free or if another binding
+	 * set has already claimed it for the same name.
+	 *
+	 * @return The new slot.
+	 */
+	private int addSlot(String name) {
+		int slot = length;
+
+		if (slot >= names.length() || !names.compareAndSet(slot, null, name)
+				&& !name.equals(names.get(slot)))
+		{
+			// Copy the names of the existing slots to an array of our own
+			AtomicReferenceArray<String> newNames = new AtomicReferenceArray<String>(slot
+					+ EXTRA_CAPACITY);
+			for (int i = 0; i < slot; i++) {
+				newNames.set(i, names.get(i));
+			}
+			newNames.set(slot, name);
+			names = newNames;
+		}
+
+		if (slot >= values.length) {
+			Value[] newValues = new Value[names.length()];
+			System.arraycopy(values, 0, newValues, 0, slot);
+			values = newValues;
+		}
+
+		length++;
+		return slot;
 	}
 
 	@Override
@@ -145,27 +293,21 @@ public class QueryBindingSet implements BindingSet {
 		if (this == other) {
 			return true;
 		}
-		else if (other instanceof QueryBindingSet) {
-			return bindings.equals(((QueryBindingSet)other).bindings);
-		}
 		else if (other instanceof BindingSet) {
-			int otherSize = 0;
+			BindingSet o = (BindingSet)other;
 
-			// Compare other's bindings to own
-			for (Binding binding : (BindingSet)other) {
-				Value ownValue = getValue(binding.getName());
+			if (size != o.size()) {
+				return false;
+			}
 
-				if (!binding.getValue().equals(ownValue)) {
-					// Unequal bindings for this name
+			// Compare own bindings to other's
+			for (int i = 0; i < length; i++) {
+				if (values[i] != null && !values[i].equals(o.getValue(names.get(i)))) {
 					return false;
 				}
-
-				otherSize++;
 			}
 
-			// All bindings have been matched, sets are equal if this binding set
-			// doesn't have any additional bindings.
-			return otherSize == bindings.size();
+			return true;
 		}
 
 		return false;
@@ -175,8 +317,10 @@ public class QueryBindingSet implements BindingSet {
 	public int hashCode() {
 		int hashCode = 0;
 
-		for (Map.Entry<String, Value> entry : bindings.entrySet()) {
-			hashCode ^= entry.getKey().hashCode() ^ entry.getValue().hashCode();
+		for (int i = 0; i < length; i++) {
+			if (values[i] != null) {
+				hashCode ^= names.get(i).hashCode() ^ values[i].hashCode();
+			}
 		}
 
 		return hashCode;
@@ -200,4 +344,39 @@ public class QueryBindingSet implements BindingSet {
 
 		return sb.toString();
 	}
+
+	/**
+	 * Iterates over the bound slots of this binding set.
+	 */
+	private abstract class SlotIterator<E> implements Iterator<E> {
+
+		private int nextSlot = findSlot(0);
+
+		private int findSlot(int slot) {
+			while (slot < length && values[slot] == null) {
+				slot++;
+			}
+			return slot;
+		}
+
+		public boolean hasNext() {
+			return nextSlot < length;
+		}
+
+		public E next() {
+			if (nextSlot >= length) {
+				throw new NoSuchElementException();
+			}
+
+			E result = get(nextSlot);
+			nextSlot = findSlot(nextSlot + 1);
+			return result;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		protected abstract E get(int slot);
+	}
 }
@@ -0,0 +1,402 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import info.aduna.iteration.CloseableIteration;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.QueryModelVisitor;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.iterator.AdaptiveJoinIterator;
+
+/**
+ * Joins a number of statement patterns, optionally wrapped in filters, as
+ * nested loops in an order that is adapted to the cardinalities that are
+ * observed during evaluation. The arguments are initially evaluated in the
+ * order chosen by the query optimizer. The node records how many results each
+ * argument produces for the variables that are bound when it is evaluated, and
+ * these observations replace the estimates of the {@link EvaluationStatistics}
+ * once enough of them have been made. The observations are kept with the node,
+ * so repeated evaluations of the node, e.g. as the right argument of an
+ * optional join, benefit from earlier ones.
+ * @see AdaptiveJoinIterator
+ */
+public class AdaptiveJoin extends ExternalSet {
+
+	private static final long serialVersionUID = 4427587165837049722L;
+
+	/**
+	 * The number of evaluations of an argument that is needed before the
+	 * observed number of results per evaluation replaces the estimate, unless
+	 * the argument does not share any variables with the preceding arguments.
+	 */
+	public static final int MIN_OBSERVATIONS = 100;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private List<TupleExpr> args;
+
+	private EvaluationStrategy strategy;
+
+	private EvaluationStatistics statistics;
+
+	/**
+	 * The names of the (non-constant) variables of each argument.
+	 */
+	private List<Set<String>> argVars;
+
+	/**
+	 * Cardinality estimates and observations per argument and set of bound
+	 * variables.
+	 */
+	private Map<ArgKey, ArgStatistics> argStatistics;
+
+	private volatile boolean observed;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	public AdaptiveJoin(List<TupleExpr> args, EvaluationStrategy strategy, EvaluationStatistics statistics) {
+		this.strategy = strategy;
+		this.statistics = statistics;
+		setArgs(args);
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Checks whether the supplied tuple expression can be evaluated by an
+	 * adaptive join, i.e. whether it is a tree of nested loop joins over
+	 * statement patterns and filters on statement patterns.
+	 */
+	public static boolean isSupported(TupleExpr expr) {
+		if (expr instanceof Join) {
+			Join join = (Join)expr;
+			return !join.isHashJoin() && isSupportedArg(join.getLeftArg())
+					&& isSupportedArg(join.getRightArg());
+		}
+		return false;
+	}
+
+	private static boolean isSupportedArg(TupleExpr expr) {
+		if (expr instanceof Join) {
+			return isSupported(expr);
+		}
+		return getPattern(expr) != null;
+	}
+
+	/**
+	 * Gets the statement pattern of a join argument, skipping any filters on
+	 * it.
+	 *
+	 * @return The statement pattern, or <tt>null</tt> if the argument is not a
+	 *         (filtered) statement pattern.
+	 */
+	private static StatementPattern getPattern(TupleExpr expr) {
+		while (expr instanceof Filter) {
+			expr = ((Filter)expr).getArg();
+		}
+		return expr instanceof StatementPattern ? (StatementPattern)expr : null;
+	}
+
+	/**
+	 * Collects the arguments of a supported tree of joins, in evaluation order.
+	 */
+	public static List<TupleExpr> getJoinArgs(TupleExpr expr, List<TupleExpr> joinArgs) {
+		if (expr instanceof Join) {
+			Join join = (Join)expr;
+			getJoinArgs(join.getLeftArg(), joinArgs);
+			getJoinArgs(join.getRightArg(), joinArgs);
+		}
+		else {
+			joinArgs.add(expr);
+		}
+		return joinArgs;
+	}
+
+	private void setArgs(List<TupleExpr> args) {
+		this.args = new ArrayList<TupleExpr>(args);
+		this.argVars = new ArrayList<Set<String>>(args.size());
+		this.argStatistics = new HashMap<ArgKey, ArgStatistics>();
+		this.observed = false;
+
+		for (TupleExpr arg : args) {
+			Set<String> vars = new HashSet<String>();
+			for (Var var : getPattern(arg).getVarList()) {
+				if (!var.hasValue()) {
+					vars.add(var.getName());
+				}
+			}
+			argVars.add(vars);
+			arg.setParentNode(this);
+		}
+	}
+
+	public EvaluationStrategy getStrategy() {
+		return strategy;
+	}
+
+	public int getArgCount() {
+		return args.size();
+	}
+
+	public TupleExpr getArg(int index) {
+		return args.get(index);
+	}
+
+	/**
+	 * Gets the names of the variables that are bound by the argument with the
+	 * specified index.
+	 */
+	public Set<String> getArgVars(int index) {
+		return argVars.get(index);
+	}
+
+	/**
+	 * Gets the cardinality estimates and observations of an argument.
+	 *
+	 * @param index
+	 *        The index of the argument.
+	 * @param boundVars
+	 *        The names of the variables that are bound when the argument is
+	 *        evaluated.
+	 */
+	public synchronized ArgStatistics getArgStatistics(int index, Set<String> boundVars) {
+		Set<String> argBoundVars = new HashSet<String>(argVars.get(index));
+		argBoundVars.retainAll(boundVars);
+
+		ArgKey key = new ArgKey(index, argBoundVars);
+		ArgStatistics result = argStatistics.get(key);
+		if (result == null) {
+			result = new ArgStatistics(index, argBoundVars);
+			argStatistics.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Checks whether any of the arguments has been evaluated completely by an
+	 * earlier evaluation of this node.
+	 */
+	public boolean hasObservations() {
+		return observed;
+	}
+
+	@Override
+	public double cardinality() {
+		double cardinality = 1.0;
+		for (TupleExpr arg : args) {
+			cardinality *= statistics.getCardinality(arg);
+		}
+		return cardinality;
+	}
+
+	@Override
+	public Set<String> getBindingNames() {
+		Set<String> bindingNames = new LinkedHashSet<String>();
+		for (TupleExpr arg : args) {
+			bindingNames.addAll(arg.getBindingNames());
+		}
+		return bindingNames;
+	}
+
+	@Override
+	public Set<String> getAssuredBindingNames() {
+		Set<String> bindingNames = new LinkedHashSet<String>();
+		for (TupleExpr arg : args) {
+			bindingNames.addAll(arg.getAssuredBindingNames());
+		}
+		return bindingNames;
+	}
+
+	@Override
+	public <X extends Exception> void visitChildren(QueryModelVisitor<X> visitor)
+		throws X
+	{
+		for (TupleExpr arg : args) {
+			arg.visit(visitor);
+		}
+	}
+
+	@Override
+	public void replaceChildNode(QueryModelNode current, QueryModelNode replacement) {
+		for (int i = 0; i < args.size(); i++) {
+			if (args.get(i) == current && replacement instanceof TupleExpr
+					&& getPattern((TupleExpr)replacement) != null)
+			{
+				List<TupleExpr> newArgs = new ArrayList<TupleExpr>(args);
+				newArgs.set(i, (TupleExpr)replacement);
+				setArgs(newArgs);
+				return;
+			}
+		}
+
+		super.replaceChildNode(current, replacement);
+	}
+
+	@Override
+	public AdaptiveJoin clone() {
+		AdaptiveJoin clone = (AdaptiveJoin)super.clone();
+
+		List<TupleExpr> argClones = new ArrayList<TupleExpr>(args.size());
+		for (TupleExpr arg : args) {
+			argClones.add(arg.clone());
+		}
+		clone.setArgs(argClones);
+
+		return clone;
+	}
+
+	@Override
+	public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(BindingSet bindings)
+		throws QueryEvaluationException
+	{
+		return new AdaptiveJoinIterator(this, bindings);
+	}
+
+	/*--------------------*
+	 * Inner class ArgKey *
+	 *--------------------*/
+
+	private static class ArgKey {
+
+		private final int index;
+
+		private final Set<String> boundVars;
+
+		public ArgKey(int index, Set<String> boundVars) {
+			this.index = index;
+			this.boundVars = boundVars;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof ArgKey) {
+				ArgKey o = (ArgKey)other;
+				return index == o.index && boundVars.equals(o.boundVars);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return index ^ boundVars.hashCode();
+		}
+	}
+
+	/*---------------------------*
+	 * Inner class ArgStatistics *
+	 *---------------------------*/
+
+	/**
+	 * The estimated and observed number of results of an argument, for every
+	 * evaluation with a specific set of bound variables.
+	 */
+	public class ArgStatistics {
+
+		private final int index;
+
+		private final Set<String> boundVars;
+
+		private double estimate = Double.NaN;
+
+		private double lowerBound = 0.0;
+
+		private long evaluations;
+
+		private long results;
+
+		ArgStatistics(int index, Set<String> boundVars) {
+			this.index = index;
+			this.boundVars = boundVars;
+		}
+
+		/**
+		 * Records the number of results of a complete evaluation of the
+		 * argument.
+		 */
+		public synchronized void addObservation(long resultCount) {
+			evaluations++;
+			results += resultCount;
+			observed = true;
+		}
+
+		/**
+		 * Records that the argument is known to produce at least the specified
+		 * number of results per evaluation.
+		 */
+		public synchronized void setLowerBound(double lowerBound) {
+			this.lowerBound = Math.max(this.lowerBound, lowerBound);
+		}
+
+		/**
+		 * Checks whether the number of results per evaluation is based on
+		 * observations rather than on estimates.
+		 */
+		public synchronized boolean isObserved() {
+			// Without bound variables, every evaluation produces the same results
+			return evaluations >= MIN_OBSERVATIONS || evaluations > 0 && boundVars.isEmpty();
+		}
+
+		/**
+		 * Gets the observed number of results per evaluation of the argument,
+		 * or an estimate if not enough evaluations have been observed yet.
+		 */
+		public synchronized double getCardinality() {
+			if (isObserved()) {
+				return Math.max((double)results / evaluations, lowerBound);
+			}
+
+			if (Double.isNaN(estimate)) {
+				estimate = estimateCardinality();
+			}
+
+			return Math.max(estimate, lowerBound);
+		}
+
+		private double estimateCardinality() {
+			TupleExpr arg = args.get(index);
+
+			if (!boundVars.isEmpty()) {
+				double cardinality = statistics.getCardinality(getPattern(arg), boundVars);
+				if (cardinality >= 0.0) {
+					return cardinality;
+				}
+			}
+
+			double cardinality = statistics.getCardinality(arg);
+
+			// Compensate for the bound variables, like the QueryJoinOptimizer
+			int varCount = argVars.get(index).size();
+			if (varCount > 0) {
+				double exp = (double)(varCount - boundVars.size()) / varCount;
+				cardinality = Math.pow(cardinality, exp);
+			}
+
+			return cardinality;
+		}
+	}
+}
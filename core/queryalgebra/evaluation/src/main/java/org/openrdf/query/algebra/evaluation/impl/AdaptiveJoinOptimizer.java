@@ -0,0 +1,72 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.ArbitraryLengthPath;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.Service;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ZeroLengthPath;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.QueryOptimizer;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+
+/**
+ * A query optimizer that replaces trees of nested loop joins over statement
+ * patterns with {@link AdaptiveJoin}s, which adapt the order of the joins to
+ * the cardinalities that they observe during evaluation. The nodes are bound
+ * to the evaluation strategy, so this optimizer should be applied to each
+ * evaluated copy of a query plan, after all other optimizations.
+ */
+public class AdaptiveJoinOptimizer implements QueryOptimizer {
+
+	private final EvaluationStrategy strategy;
+
+	private final EvaluationStatistics statistics;
+
+	public AdaptiveJoinOptimizer(EvaluationStrategy strategy, EvaluationStatistics statistics) {
+		this.strategy = strategy;
+		this.statistics = statistics;
+	}
+
+	public void optimize(TupleExpr tupleExpr, Dataset dataset, BindingSet bindings) {
+		tupleExpr.visit(new AdaptiveJoinVisitor());
+	}
+
+	protected class AdaptiveJoinVisitor extends QueryModelVisitorBase<RuntimeException> {
+
+		@Override
+		public void meet(Join node) {
+			if (AdaptiveJoin.isSupported(node)) {
+				List<TupleExpr> joinArgs = AdaptiveJoin.getJoinArgs(node, new ArrayList<TupleExpr>());
+				node.replaceWith(new AdaptiveJoin(joinArgs, strategy, statistics));
+			}
+			else {
+				super.meet(node);
+			}
+		}
+
+		@Override
+		public void meet(ArbitraryLengthPath node) {
+			// Path expressions are rewritten during evaluation
+		}
+
+		@Override
+		public void meet(ZeroLengthPath node) {
+			// Path expressions are rewritten during evaluation
+		}
+
+		@Override
+		public void meet(Service node) {
+			// Service expressions are evaluated remotely
+		}
+	}
+}
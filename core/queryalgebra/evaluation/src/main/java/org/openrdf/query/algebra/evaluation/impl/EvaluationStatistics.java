@@ -8,6 +8,7 @@ package org.openrdf.query.algebra.evaluation.impl;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.openrdf.query.algebra.ArbitraryLengthPath;
 import org.openrdf.query.algebra.BinaryTupleOperator;
@@ -49,6 +50,36 @@ public class EvaluationStatistics {
 		return new CardinalityCalculator();
 	}
 
+	/**
+	 * Estimates the cardinality of a statement pattern, assuming that the
+	 * variables with the specified names have already been bound to values that
+	 * are not known in advance, e.g. by statement patterns that are evaluated
+	 * earlier in a join. The default implementation has no data to base such an
+	 * estimate on and returns <tt>-1</tt>; stores that maintain statistics on
+	 * their data can override this method.
+	 * 
+	 * @param sp
+	 *        The statement pattern to estimate the cardinality for.
+	 * @param boundVars
+	 *        The names of the variables that have been bound.
+	 * @return The estimated cardinality, or a negative value if no estimate is
+	 *         available, in which case callers should derive an estimate from
+	 *         {@link #getCardinality(TupleExpr)}.
+	 */
+	public double getCardinality(StatementPattern sp, Set<String> boundVars) {
+		return -1.0;
+	}
+
+	/**
+	 * Gets the estimated cost of evaluating a statement pattern once, e.g. by
+	 * looking up its matches in an index, relative to the cost of reading or
+	 * hashing a single result. The default implementation assumes disk-based
+	 * indexes.
+	 */
+	public double getLookupCost() {
+		return 20.0;
+	}
+
 	/*-----------------------------------*
 	 * Inner class CardinalityCalculator *
 	 *-----------------------------------*/
@@ -5,13 +5,18 @@
  */
 package org.openrdf.query.algebra.evaluation.impl;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Pattern;
 
 import info.aduna.iteration.CloseableIteration;
@@ -119,17 +124,23 @@ import org.openrdf.query.algebra.evaluation.iterator.BottomUpJoinIterator;
 import org.openrdf.query.algebra.evaluation.iterator.ExtensionIterator;
 import org.openrdf.query.algebra.evaluation.iterator.FilterIterator;
 import org.openrdf.query.algebra.evaluation.iterator.GroupIterator;
+import org.openrdf.query.algebra.evaluation.iterator.HashJoinIterator;
 import org.openrdf.query.algebra.evaluation.iterator.JoinIterator;
 import org.openrdf.query.algebra.evaluation.iterator.LeftJoinIterator;
 import org.openrdf.query.algebra.evaluation.iterator.MultiProjectionIterator;
 import org.openrdf.query.algebra.evaluation.iterator.OrderIterator;
+import org.openrdf.query.algebra.evaluation.iterator.ParallelEvaluationIteration;
 import org.openrdf.query.algebra.evaluation.iterator.ProjectionIterator;
 import org.openrdf.query.algebra.evaluation.iterator.SPARQLMinusIteration;
 import org.openrdf.query.algebra.evaluation.iterator.SilentIteration;
+import org.openrdf.query.algebra.evaluation.iterator.SpillingDistinctIteration;
+import org.openrdf.query.algebra.evaluation.iterator.SpillingMinusIteration;
+import org.openrdf.query.algebra.evaluation.util.CompiledValueExpr;
 import org.openrdf.query.algebra.evaluation.util.MathUtil;
 import org.openrdf.query.algebra.evaluation.util.OrderComparator;
 import org.openrdf.query.algebra.evaluation.util.QueryEvaluationUtil;
 import org.openrdf.query.algebra.evaluation.util.ValueComparator;
+import org.openrdf.query.algebra.evaluation.util.ValueExprCompiler;
 import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
 import org.openrdf.query.algebra.helpers.VarNameCollector;
 
@@ -148,10 +159,27 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 	 * Constants *
 	 *-----------*/
 
+	/**
+	 * The maximum number of compiled expressions that are cached by a strategy.
+	 */
+	private static final int MAX_COMPILED_EXPRS = 1000;
+
 	protected final TripleSource tripleSource;
 
 	protected final Dataset dataset;
 
+	/**
+	 * The compiled versions of the filter conditions that have been evaluated,
+	 * by identity of the condition.
+	 */
+	private final Map<ValueExpr, CompiledValueExpr> compiledExprs = new IdentityHashMap<ValueExpr, CompiledValueExpr>();
+
+	private int spillThreshold = 0;
+
+	private File tempDir;
+
+	private ExecutorService executor;
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -169,6 +197,78 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 	 * Methods *
 	 *---------*/
 
+	/**
+	 * Sets the maximum number of solutions that operators that need to see all
+	 * of their input, such as ORDER BY, keep in memory. For DISTINCT, GROUP BY
+	 * and MINUS, the threshold applies to the number of distinct solutions,
+	 * groups and excluded solutions respectively, and for hash joins to the
+	 * results of the smaller argument. Solutions in excess of this number are
+	 * written to temporary files. The default value is <tt>0</tt>, which means
+	 * that all solutions are kept in memory, except that hash joins fall back
+	 * to nested loops when both arguments are large.
+	 */
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the directory for the temporary files that solutions are written to
+	 * when the spill threshold has been exceeded. By default, the system's
+	 * temporary-file directory is used.
+	 *
+	 * @see #setSpillThreshold(int)
+	 */
+	public void setTempDir(File tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	public File getTempDir() {
+		return tempDir;
+	}
+
+	/**
+	 * Sets the executor on which the arguments of unions and of hash joins are
+	 * evaluated concurrently and on which groups are aggregated in parallel. The
+	 * executor is shared by all queries and should have a bounded number of
+	 * threads. By default, no executor is set and all arguments are evaluated
+	 * sequentially in the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Compiles a value expression for repeated evaluation with this strategy.
+	 * Compiled expressions are cached by identity of the expression, so
+	 * evaluating a filter for each result of the left argument of a join
+	 * compiles its condition only once.
+	 *
+	 * @see ValueExprCompiler
+	 */
+	public CompiledValueExpr compile(ValueExpr expr) {
+		synchronized (compiledExprs) {
+			CompiledValueExpr result = compiledExprs.get(expr);
+
+			if (result == null) {
+				result = new ValueExprCompiler(this, tripleSource.getValueFactory()).compile(expr);
+
+				if (compiledExprs.size() < MAX_COMPILED_EXPRS) {
+					compiledExprs.put(expr, result);
+				}
+			}
+
+			return result;
+		}
+	}
+
 	public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(TupleExpr expr,
 			BindingSet bindings)
 		throws QueryEvaluationException
@@ -222,112 +322,160 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 		return new PathIteration(scope, subjectVar, pathExpression, objVar, contextVar, minLength, bindings);
 	}
 
-	private class ValuePair {
+	/**
+	 * A node that is reached while evaluating an arbitrary-length path: a value
+	 * and, if the context of the path is not bound, the context in which the
+	 * value was reached.
+	 */
+	private static class PathNode {
 
-		private final Value startValue;
+		private final Value value;
 
-		private final Value endValue;
+		private final Value context;
 
-		public ValuePair(Value startValue, Value endValue) {
-			this.startValue = startValue;
-			this.endValue = endValue;
+		public PathNode(Value value, Value context) {
+			this.value = value;
+			this.context = context;
 		}
 
-		/**
-		 * @return Returns the startValue.
-		 */
-		public Value getStartValue() {
-			return startValue;
+		public Value getValue() {
+			return value;
 		}
 
-		/**
-		 * @return Returns the endValue.
-		 */
-		public Value getEndValue() {
-			return endValue;
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + getOuterType().hashCode();
-			result = prime * result + ((endValue == null) ? 0 : endValue.hashCode());
-			result = prime * result + ((startValue == null) ? 0 : startValue.hashCode());
-			return result;
+		public Value getContext() {
+			return context;
 		}
 
 		@Override
-		public boolean equals(Object obj) {
-			if (this == obj) {
+		public boolean equals(Object other) {
+			if (this == other) {
 				return true;
 			}
-			if (obj == null) {
-				return false;
-			}
-			if (!(obj instanceof ValuePair)) {
-				return false;
-			}
-			ValuePair other = (ValuePair)obj;
-			if (!getOuterType().equals(other.getOuterType())) {
-				return false;
+			if (other instanceof PathNode) {
+				PathNode o = (PathNode)other;
+				return value.equals(o.value) && (context == null ? o.context == null : context.equals(o.context));
 			}
-			if (endValue == null) {
-				if (other.endValue != null) {
-					return false;
-				}
-			}
-			else if (!endValue.equals(other.endValue)) {
-				return false;
-			}
-			if (startValue == null) {
-				if (other.startValue != null) {
-					return false;
-				}
-			}
-			else if (!startValue.equals(other.startValue)) {
-				return false;
-			}
-			return true;
+			return false;
 		}
 
-		private EvaluationStrategyImpl getOuterType() {
-			return EvaluationStrategyImpl.this;
+		@Override
+		public int hashCode() {
+			return 31 * value.hashCode() + (context == null ? 0 : context.hashCode());
 		}
-
 	}
 
+	/**
+	 * Evaluates an arbitrary-length path by computing the transitive closure of
+	 * the path expression. The path expression is evaluated once per reached
+	 * node to find its direct neighbours, and every node is visited at most
+	 * once per traversal:
+	 * <ul>
+	 * <li>If the start of the path is bound, a breadth-first search follows the
+	 * path forward from the start value.</li>
+	 * <li>If only the end of the path is bound, the search follows the path
+	 * backward from the end value.</li>
+	 * <li>If both ends are bound, a bidirectional search alternately expands
+	 * the smaller of the forward and backward frontier until they meet.</li>
+	 * <li>If neither end is bound, a forward search is started from every
+	 * distinct start value of the path expression.</li>
+	 * </ul>
+	 * If the path has a context variable that is not bound, each traversal is
+	 * restricted to the context of its first step.
+	 */
 	private class PathIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
 
-		private long currentLength;
+		private static final String START_VAR_PREFIX = "path-start-";
 
-		private CloseableIteration<BindingSet, QueryEvaluationException> currentIter;
+		private static final String END_VAR_PREFIX = "path-end-";
 
-		private BindingSet bindings;
+		private final BindingSet bindings;
+
+		private final Scope scope;
+
+		private final Var startVar;
 
-		private Scope scope;
+		private final Var endVar;
 
-		private Var startVar;
+		private final Var contextVar;
 
-		private Var endVar;
+		private final long minLength;
 
-		private final boolean startVarFixed;
+		/**
+		 * The bound values of the start and end of the path, if any.
+		 */
+		private final Value startValue, endValue;
+
+		/**
+		 * Flag indicating that the path has a context variable that is not bound,
+		 * in which case nodes are tracked per context.
+		 */
+		private final boolean contextUnbound;
+
+		/**
+		 * Flag indicating that the start and end of the path are the same
+		 * variable, in which case only cycles are reported.
+		 */
+		private final boolean sameVar;
+
+		/**
+		 * A copy of the path expression in which the start and end variable have
+		 * been replaced with the variables named {@link #edgeStartName} and
+		 * {@link #edgeEndName}. Evaluating it with one of these variables bound
+		 * produces the direct neighbours of a node.
+		 */
+		private final TupleExpr edgeExpr;
+
+		private final String edgeStartName;
+
+		private final String edgeEndName;
+
+		/**
+		 * Results that have been found but not yet returned.
+		 */
+		private final Queue<BindingSet> results = new LinkedList<BindingSet>();
+
+		/**
+		 * Start values of the path expression, used if neither end of the path
+		 * is bound.
+		 */
+		private CloseableIteration<BindingSet, QueryEvaluationException> startIter;
 
-		private final boolean endVarFixed;
+		/**
+		 * Zero-length results, used if neither end of the path is bound.
+		 */
+		private CloseableIteration<BindingSet, QueryEvaluationException> zeroLengthIter;
 
-		private Queue<ValuePair> valueQueue = new LinkedList<ValuePair>();
+		private Set<PathNode> startNodes;
 
-		private List<ValuePair> reportedValues = new ArrayList<ValuePair>();
+		private boolean started;
 
-		private List<ValuePair> unreportedValues = new ArrayList<ValuePair>();
+		/*
+		 * State of the current traversal.
+		 */
+
+		private boolean traverseForward;
 
-		private TupleExpr pathExpression;
+		private PathNode origin;
 
-		private Var contextVar;
+		private boolean originReported;
 
-		private ValuePair currentVp;
+		/**
+		 * Flag indicating that a step from the origin to itself has been
+		 * reported. Such a step is reported even if the zero-length path has
+		 * been reported already, as the path expression may itself match
+		 * zero-length paths.
+		 */
+		private boolean selfStepReported;
 
-		private static final String JOINVAR_PREFIX = "intermediate-join-";
+		private Set<PathNode> visited;
+
+		private Queue<PathNode> frontier;
+
+		/**
+		 * The value that is searched for by the current traversal, or
+		 * <tt>null</tt> if all reached nodes are reported.
+		 */
+		private Value target;
 
 		public PathIteration(Scope scope, Var startVar, TupleExpr pathExpression, Var endVar, Var contextVar,
 				long minLength, BindingSet bindings)
@@ -336,336 +484,356 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 			this.scope = scope;
 			this.startVar = startVar;
 			this.endVar = endVar;
-
-			this.startVarFixed = startVar.hasValue() || bindings.hasBinding(startVar.getName());
-			this.endVarFixed = endVar.hasValue() || bindings.hasBinding(endVar.getName());
-
-			this.pathExpression = pathExpression;
 			this.contextVar = contextVar;
-
-			this.currentLength = minLength;
+			this.minLength = minLength;
 			this.bindings = bindings;
 
-			createIteration();
+			startValue = getBoundValue(startVar);
+			endValue = getBoundValue(endVar);
+			contextUnbound = contextVar != null && getBoundValue(contextVar) == null;
+			sameVar = startVar.getName().equals(endVar.getName());
+
+			edgeStartName = START_VAR_PREFIX + pathExpression.hashCode();
+			edgeEndName = END_VAR_PREFIX + pathExpression.hashCode();
+
+			edgeExpr = pathExpression.clone();
+			if (sameVar && edgeExpr instanceof StatementPattern) {
+				// Distinguish start and end by position, the direction of a single
+				// step does not matter for finding cycles
+				StatementPattern sp = (StatementPattern)edgeExpr;
+				sp.setSubjectVar(createAnonVar(edgeStartName));
+				sp.setObjectVar(createAnonVar(edgeEndName));
+			}
+			else {
+				replaceVar(edgeExpr, startVar.getName(), edgeStartName);
+				if (!sameVar) {
+					replaceVar(edgeExpr, endVar.getName(), edgeEndName);
+				}
+			}
 		}
 
-		@Override
-		protected BindingSet getNextElement()
+		/**
+		 * Replaces the variables with the specified name. Constants are matched
+		 * by name rather than by value, which allows the start and end of a path
+		 * to be the same constant.
+		 */
+		private void replaceVar(TupleExpr expr, final String name, final String replacementName)
 			throws QueryEvaluationException
 		{
-			again: while (true) {
-				while (!currentIter.hasNext()) {
-					createIteration();
-					// stop condition: if the iter is an EmptyIteration
-					if (currentIter instanceof EmptyIteration<?, ?>) {
-						break;
+			expr.visit(new QueryModelVisitorBase<QueryEvaluationException>() {
+
+				@Override
+				public void meet(Var var) {
+					if (var.getName().equals(name)) {
+						var.replaceWith(createAnonVar(replacementName));
 					}
 				}
+			});
+		}
 
-				while (currentIter.hasNext()) {
-					BindingSet nextElement = currentIter.next();
+		private Value getBoundValue(Var var) {
+			Value value = var.getValue();
+			if (value == null) {
+				value = bindings.getValue(var.getName());
+			}
+			return value;
+		}
 
-					if (!startVarFixed && !endVarFixed && currentVp != null) {
-						Value startValue = currentVp.getStartValue();
+		@Override
+		protected BindingSet getNextElement()
+			throws QueryEvaluationException
+		{
+			while (results.isEmpty()) {
+				if (frontier != null && !frontier.isEmpty()) {
+					expand(frontier.poll());
+				}
+				else if (!nextTraversal()) {
+					return null;
+				}
+			}
 
-						if (startValue != null) {
-							nextElement = new QueryBindingSet(nextElement);
-							((QueryBindingSet)nextElement).addBinding(startVar.getName(), startValue);
-						}
-					}
+			return results.poll();
+		}
 
-					Value v1, v2;
+		/**
+		 * Starts the next traversal, or adds results directly.
+		 * 
+		 * @return <tt>false</tt> if all traversals have been completed.
+		 */
+		private boolean nextTraversal()
+			throws QueryEvaluationException
+		{
+			frontier = null;
+			visited = null;
 
-					if (startVarFixed && endVarFixed && currentLength > 2) {
-						v1 = getVarValue(startVar, startVarFixed, nextElement);
-						v2 = nextElement.getValue("END_" + JOINVAR_PREFIX + pathExpression.hashCode());
-					}
-					else if (startVarFixed && endVarFixed && currentLength == 2) {
-						v1 = getVarValue(startVar, startVarFixed, nextElement);
-						v2 = nextElement.getValue(JOINVAR_PREFIX + (currentLength - 1) + "-"
-								+ pathExpression.hashCode());
-					}
-					else {
-						v1 = getVarValue(startVar, startVarFixed, nextElement);
-						v2 = getVarValue(endVar, endVarFixed, nextElement);
-					}
+			if (startValue != null || endValue != null) {
+				if (started) {
+					return false;
+				}
+				started = true;
 
-					if (!isCyclicPath(v1, v2)) {
-
-						ValuePair vp = new ValuePair(v1, v2);
-						if (startVarFixed && endVarFixed) {
-							Value endValue = getVarValue(endVar, endVarFixed, nextElement);
-							if (endValue.equals(v2)) {
-								reportedValues.add(vp);
-								if (!v1.equals(v2)) {
-									valueQueue.add(vp);
-								}
-								if (!nextElement.hasBinding(startVar.getName())) {
-									((QueryBindingSet)nextElement).addBinding(startVar.getName(), v1);
-								}
-								if (!nextElement.hasBinding(endVar.getName())) {
-									((QueryBindingSet)nextElement).addBinding(endVar.getName(), v2);
-								}
-								return nextElement;
-							}
-							else {
-								if (!unreportedValues.contains(vp)) {
-									unreportedValues.add(vp);
-									if (!v1.equals(v2)) {
-										valueQueue.add(vp);
-									}
-								}
-								continue again;
-							}
-						}
-						else {
-							reportedValues.add(vp);
-							if (!v1.equals(v2)) {
-								valueQueue.add(vp);
-							}
-							if (!nextElement.hasBinding(startVar.getName())) {
-								((QueryBindingSet)nextElement).addBinding(startVar.getName(), v1);
-							}
-							if (!nextElement.hasBinding(endVar.getName())) {
-								((QueryBindingSet)nextElement).addBinding(endVar.getName(), v2);
-							}
-							return nextElement;
-						}
+				if (startValue != null && endValue != null) {
+					if (contextUnbound) {
+						// Report the contexts in which the end is reachable
+						startTraversal(new PathNode(startValue, null), true, endValue);
 					}
-					else {
-						continue again;
+					else if (isReachable(startValue, endValue, null)) {
+						results.add(createResult(startValue, endValue, null));
 					}
 				}
+				else if (startValue != null) {
+					startTraversal(new PathNode(startValue, null), true, null);
+				}
+				else {
+					startTraversal(new PathNode(endValue, null), false, null);
+				}
 
-				// if we're done, throw away the cached lists of values to avoid
-				// hogging resources
-				reportedValues = null;
-				unreportedValues = null;
-				valueQueue = null;
-				return null;
+				return true;
 			}
-		}
 
-		private Value getVarValue(Var var, boolean fixedValue, BindingSet bindingSet) {
-			Value v;
-			if (fixedValue) {
-				v = var.getValue();
-				if (v == null) {
-					v = this.bindings.getValue(var.getName());
+			// Neither end is bound
+			if (!started) {
+				started = true;
+				startNodes = new HashSet<PathNode>();
+				if (minLength == 0L) {
+					zeroLengthIter = evaluate(new ZeroLengthPath(scope, startVar, endVar, contextVar), bindings);
 				}
 			}
-			else {
-				v = bindingSet.getValue(var.getName());
-			}
 
-			return v;
-		}
+			if (zeroLengthIter != null) {
+				if (zeroLengthIter.hasNext()) {
+					results.add(zeroLengthIter.next());
+					return true;
+				}
+				zeroLengthIter.close();
+				zeroLengthIter = null;
 
-		private boolean isCyclicPath(Value v1, Value v2) {
-			if (currentLength <= 2) {
-				return false;
+				if (sameVar) {
+					// All nodes have been reported
+					return false;
+				}
 			}
 
-			return reportedValues.contains(new ValuePair(v1, v2));
-
-		}
-
-		private void createIteration()
-			throws QueryEvaluationException
-		{
-
-			if (currentLength == 0L) {
-				ZeroLengthPath zlp = new ZeroLengthPath(scope, startVar, endVar, contextVar);
-				currentIter = evaluate(zlp, bindings);
-				currentLength++;
+			if (startIter == null) {
+				startIter = evaluate(edgeExpr, bindings);
 			}
-			else if (currentLength == 1) {
-				TupleExpr pathExprClone = pathExpression.clone();
 
-				if (startVarFixed && endVarFixed) {
-					Var replacement = createAnonVar(JOINVAR_PREFIX + currentLength + "-"
-							+ pathExpression.hashCode());
+			while (startIter.hasNext()) {
+				PathNode start = createNode(startIter.next(), edgeStartName);
 
-					VarReplacer replacer = new VarReplacer(endVar, replacement, 0, false);
-					pathExprClone.visit(replacer);
+				if (start != null && startNodes.add(start)) {
+					if (sameVar) {
+						if (isReachable(start.getValue(), start.getValue(), start.getContext())) {
+							results.add(createResult(start.getValue(), start.getValue(), start.getContext()));
+						}
+					}
+					else {
+						startTraversal(start, true, null);
+					}
+					return true;
 				}
-				currentIter = evaluate(pathExprClone, bindings);
-				currentLength++;
 			}
-			else {
 
-				currentVp = valueQueue.poll();
+			startIter.close();
+			startIter = null;
+			startNodes = null;
+			return false;
+		}
 
-				if (currentVp != null) {
+		private void startTraversal(PathNode start, boolean forward, Value target) {
+			this.traverseForward = forward;
+			this.origin = start;
+			this.target = target;
 
-					TupleExpr pathExprClone = pathExpression.clone();
+			visited = new HashSet<PathNode>();
+			visited.add(start);
+			frontier = new LinkedList<PathNode>();
+			frontier.add(start);
 
-					if (startVarFixed && endVarFixed) {
+			originReported = minLength == 0L && !sameVar;
+			selfStepReported = false;
+			if (originReported && (startValue != null || endValue != null)) {
+				if (target == null || target.equals(start.getValue())) {
+					results.add(createResult(start.getValue(), start.getValue(), start.getContext()));
+				}
+			}
+		}
 
-						Var startReplacement = createAnonVar(JOINVAR_PREFIX + currentLength + "-"
-								+ pathExpression.hashCode());
-						Var endReplacement = createAnonVar("END_" + JOINVAR_PREFIX + pathExpression.hashCode());
-						startReplacement.setAnonymous(false);
-						endReplacement.setAnonymous(false);
+		/**
+		 * Evaluates the direct neighbours of a node in the current traversal,
+		 * reporting and enqueueing the nodes that have not been visited yet.
+		 */
+		private void expand(PathNode node)
+			throws QueryEvaluationException
+		{
+			String fromName = traverseForward ? edgeStartName : edgeEndName;
+			String toName = traverseForward ? edgeEndName : edgeStartName;
 
-						Value v = currentVp.getEndValue();
-						startReplacement.setValue(v);
+			CloseableIteration<BindingSet, QueryEvaluationException> iter = evaluate(edgeExpr,
+					createEdgeBindings(fromName, node.getValue(), node.getContext()));
+			try {
+				while (iter.hasNext()) {
+					PathNode next = createNode(iter.next(), toName);
 
-						VarReplacer replacer = new VarReplacer(startVar, startReplacement, 0, false);
-						pathExprClone.visit(replacer);
+					if (next == null) {
+						continue;
+					}
 
-						replacer = new VarReplacer(endVar, endReplacement, 0, false);
-						pathExprClone.visit(replacer);
+					if (visited.add(next)) {
+						frontier.add(next);
+						report(next);
 					}
-					else {
-						Var toBeReplaced;
-						Value v;
-						if (!endVarFixed) {
-							toBeReplaced = startVar;
-							v = currentVp.getEndValue();
+					else if (next.equals(origin)) {
+						if (node == origin && !selfStepReported) {
+							// Origin has been reached in a single step
+							selfStepReported = true;
+							originReported = true;
+							report(next);
 						}
-						else {
-							toBeReplaced = endVar;
-							v = currentVp.getStartValue();
+						else if (!originReported) {
+							// Origin has been reached through a cycle
+							originReported = true;
+							report(next);
 						}
-
-						Var replacement = createAnonVar(JOINVAR_PREFIX + currentLength + "-"
-								+ pathExpression.hashCode());
-						replacement.setValue(v);
-
-						VarReplacer replacer = new VarReplacer(toBeReplaced, replacement, 0, false);
-						pathExprClone.visit(replacer);
 					}
-
-					currentIter = evaluate(pathExprClone, bindings);
-				}
-				else {
-					currentIter = new EmptyIteration<BindingSet, QueryEvaluationException>();
 				}
-				currentLength++;
-
+			}
+			finally {
+				iter.close();
 			}
 		}
 
-		/*
-		private ValueExpr createPairwiseDistinctExpr(Var beginVar, Var endVar, List<Var> variables) {
-			ValueExpr pairwiseDistinct = null;
-
-			variables.add(beginVar);
-			variables.add(endVar);
-
-			int numberOfVars = variables.size();
-
-			// all intermediate vars should be pairwise distinct,
-			// begin and end var should be pairwise distinct from all
-			// intermediates, but not each other.
-			for (int i = 0; i < numberOfVars; i++) {
-				Var var1 = variables.get(i);
-				for (int j = i + 1; j < numberOfVars; j++) {
-					Var var2 = variables.get(j);
-
-					if (var1.equals(beginVar) || var1.equals(endVar)) {
-						if (var2.equals(endVar) || var2.equals(beginVar)) {
-							continue;
-						}
-					}
-
-					Compare compare = new Compare(var1, var2, CompareOp.NE);
-					if (pairwiseDistinct == null) {
-						pairwiseDistinct = compare;
-					}
-					else {
-						And and = new And();
-						and.setLeftArg(pairwiseDistinct);
-						and.setRightArg(compare);
-						pairwiseDistinct = and;
-					}
-				}
+		private void report(PathNode node) {
+			if (target != null && !target.equals(node.getValue())) {
+				return;
 			}
 
-			return pairwiseDistinct;
+			if (traverseForward) {
+				results.add(createResult(origin.getValue(), node.getValue(), node.getContext()));
+			}
+			else {
+				results.add(createResult(node.getValue(), origin.getValue(), node.getContext()));
+			}
 		}
-		*/
 
-		/*
-		private Join createMultiJoin(Scope scope, Var subjVar, TupleExpr pathExpression, Var endVar,
-				Var contextVar, long numberOfJoins)
+		/**
+		 * Checks whether there is a path of at least the minimum length from the
+		 * start to the end value, using a bidirectional breadth-first search.
+		 */
+		private boolean isReachable(Value start, Value end, Value context)
 			throws QueryEvaluationException
 		{
-			Join join = new Join();
-			Join currentJoin = join;
-
-			Var subjectJoinVar = subjVar;
-
-			// we only need to replace unvalued anonymous vars in the path
-			// expression if it is not a statement pattern.
-			boolean replaceAnonVars = !(pathExpression instanceof StatementPattern);
+			if (minLength == 0L && start.equals(end)) {
+				return true;
+			}
 
-			for (long i = 0L; i < numberOfJoins; i++) {
-				Var joinVar = createAnonVar("path-join-" + numberOfJoins + "-" + i);
+			Set<Value> forwardVisited = new HashSet<Value>();
+			Queue<Value> forwardFrontier = new LinkedList<Value>();
+			forwardVisited.add(start);
+			forwardFrontier.add(start);
 
-				TupleExpr clone = pathExpression.clone();
-				VarReplacer replacer = new VarReplacer(endVar, joinVar, i, replaceAnonVars);
-				clone.visit(replacer);
+			Set<Value> backwardVisited = new HashSet<Value>();
+			Queue<Value> backwardFrontier = new LinkedList<Value>();
+			backwardVisited.add(end);
+			backwardFrontier.add(end);
 
-				replacer = new VarReplacer(subjVar, subjectJoinVar, i, false);
-				clone.visit(replacer);
+			while (!forwardFrontier.isEmpty() && !backwardFrontier.isEmpty()) {
+				boolean forward = forwardFrontier.size() <= backwardFrontier.size();
 
-				currentJoin.setLeftArg(clone);
+				Queue<Value> frontier = forward ? forwardFrontier : backwardFrontier;
+				Set<Value> visited = forward ? forwardVisited : backwardVisited;
+				Set<Value> opposite = forward ? backwardVisited : forwardVisited;
+				String fromName = forward ? edgeStartName : edgeEndName;
+				String toName = forward ? edgeEndName : edgeStartName;
 
-				if (i == numberOfJoins - 1L) {
+				// Expand a complete level of the smaller frontier
+				for (int i = frontier.size(); i > 0; i--) {
+					Value node = frontier.poll();
 
-					clone = pathExpression.clone();
-					replacer = new VarReplacer(subjVar, joinVar, i + 1, replaceAnonVars);
-					clone.visit(replacer);
+					CloseableIteration<BindingSet, QueryEvaluationException> iter = evaluate(edgeExpr,
+							createEdgeBindings(fromName, node, context));
+					try {
+						while (iter.hasNext()) {
+							Value next = iter.next().getValue(toName);
 
-					currentJoin.setRightArg(clone);
-				}
-				else {
-					Join newJoin = new Join();
-					currentJoin.setRightArg(newJoin);
-					currentJoin = newJoin;
+							if (next == null) {
+								continue;
+							}
+							if (opposite.contains(next)) {
+								// The searches meet through this step
+								return true;
+							}
+							if (visited.add(next)) {
+								frontier.add(next);
+							}
+						}
+					}
+					finally {
+						iter.close();
+					}
 				}
-				subjectJoinVar = joinVar;
 			}
 
-			return join;
+			return false;
 		}
-		*/
-	}
 
-	private class VarReplacer extends QueryModelVisitorBase<QueryEvaluationException> {
+		private BindingSet createEdgeBindings(String name, Value value, Value context) {
+			QueryBindingSet edgeBindings = new QueryBindingSet(bindings);
+			edgeBindings.setBinding(name, value);
+			if (contextUnbound && context != null) {
+				edgeBindings.setBinding(contextVar.getName(), context);
+			}
+			return edgeBindings;
+		}
+
+		private PathNode createNode(BindingSet edgeBindings, String name) {
+			Value value = edgeBindings.getValue(name);
+			if (value == null) {
+				return null;
+			}
 
-		private Var toBeReplaced;
+			Value context = null;
+			if (contextUnbound) {
+				context = edgeBindings.getValue(contextVar.getName());
+			}
 
-		private Var replacement;
+			return new PathNode(value, context);
+		}
 
-		private long index;
+		private BindingSet createResult(Value start, Value end, Value context) {
+			QueryBindingSet result = new QueryBindingSet(bindings);
 
-		private boolean replaceAnons;
+			if (!result.hasBinding(startVar.getName())) {
+				result.addBinding(startVar.getName(), start);
+			}
+			if (!result.hasBinding(endVar.getName())) {
+				result.addBinding(endVar.getName(), end);
+			}
+			if (context != null && !result.hasBinding(contextVar.getName())) {
+				result.addBinding(contextVar.getName(), context);
+			}
 
-		public VarReplacer(Var toBeReplaced, Var replacement, long index, boolean replaceAnons) {
-			this.toBeReplaced = toBeReplaced;
-			this.replacement = replacement;
-			this.index = index;
-			this.replaceAnons = replaceAnons;
+			return result;
 		}
 
 		@Override
-		public void meet(Var var) {
-			if (toBeReplaced.equals(var)
-					|| (toBeReplaced.isAnonymous() && var.isAnonymous() && (toBeReplaced.hasValue() && toBeReplaced.getValue().equals(
-							var.getValue()))))
-			{
-				QueryModelNode parent = var.getParentNode();
-				parent.replaceChildNode(var, replacement);
-				replacement.setParentNode(parent);
+		protected void handleClose()
+			throws QueryEvaluationException
+		{
+			try {
+				super.handleClose();
 			}
-			else if (replaceAnons && var.isAnonymous() && !var.hasValue()) {
-				Var replacementVar = createAnonVar("anon-replace-" + var.getName() + index);
-				QueryModelNode parent = var.getParentNode();
-				parent.replaceChildNode(var, replacementVar);
-				replacementVar.setParentNode(parent);
+			finally {
+				try {
+					if (zeroLengthIter != null) {
+						zeroLengthIter.close();
+					}
+				}
+				finally {
+					if (startIter != null) {
+						startIter.close();
+					}
+				}
 			}
 		}
 	}
@@ -725,7 +893,7 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 
 		private CloseableIteration<BindingSet, QueryEvaluationException> objectIter;
 
-		private List<Value> reportedValues = new ArrayList<Value>();
+		private Set<Value> reportedValues = new HashSet<Value>();
 
 		public ZeroLengthPathIteration(Var subjectVar, Var objVar, Value subj, Value obj, BindingSet bindings) {
 			result = new QueryBindingSet(bindings);
@@ -1021,12 +1189,16 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 			}
 		};
 
+		// Copy the bindings once, so that all results share the slots of the
+		// pattern's variables
+		final QueryBindingSet baseBindings = new QueryBindingSet(bindings);
+
 		// Return an iterator that converts the statements to var bindings
 		return new ConvertingIteration<Statement, BindingSet, QueryEvaluationException>(stIter) {
 
 			@Override
 			protected BindingSet convert(Statement st) {
-				QueryBindingSet result = new QueryBindingSet(bindings);
+				QueryBindingSet result = new QueryBindingSet(baseBindings);
 
 				if (subjVar != null && !result.hasBinding(subjVar.getName())) {
 					result.addBinding(subjVar.getName(), st.getSubject());
@@ -1163,7 +1335,7 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 	{
 		CloseableIteration<BindingSet, QueryEvaluationException> result;
 		result = this.evaluate(filter.getArg(), bindings);
-		result = new FilterIterator(filter, result, this);
+		result = new FilterIterator(filter, result, this, compile(filter.getCondition()));
 		return result;
 	}
 
@@ -1205,6 +1377,10 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 			BindingSet bindings)
 		throws QueryEvaluationException
 	{
+		if (spillThreshold > 0 && !isOrdered(distinct.getArg())) {
+			return new SpillingDistinctIteration(evaluate(distinct.getArg(), bindings), spillThreshold, tempDir);
+		}
+
 		return new DistinctIteration<BindingSet, QueryEvaluationException>(
 				evaluate(distinct.getArg(), bindings));
 	}
@@ -1219,7 +1395,7 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 	public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(Group node, BindingSet bindings)
 		throws QueryEvaluationException
 	{
-		return new GroupIterator(this, node, bindings);
+		return new GroupIterator(this, node, bindings, spillThreshold, tempDir, isParallel() ? executor : null);
 	}
 
 	public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(Order node, BindingSet bindings)
@@ -1229,7 +1405,8 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 		OrderComparator cmp = new OrderComparator(this, node, vcmp);
 		boolean reduced = isReduced(node);
 		long limit = getLimit(node);
-		return new OrderIterator(evaluate(node.getArg(), bindings), cmp, limit, reduced);
+		return new OrderIterator(evaluate(node.getArg(), bindings), cmp, limit, reduced, spillThreshold,
+				tempDir);
 	}
 
 	public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(BinaryTupleOperator expr,
@@ -1270,7 +1447,25 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 			return new ServiceJoinIterator(leftIter, (Service)join.getRightArg(), bindings, this);
 		}
 
-		if (join.hasSubSelectInRightArg()) {
+		if (join.isHashJoin()) {
+			return new HashJoinIterator(this, join, bindings, spillThreshold, tempDir);
+		}
+		else if (join.hasSubSelectInRightArg()) {
+			if (isParallel()) {
+				// Both sides are independent, evaluate them concurrently
+				CloseableIteration<BindingSet, QueryEvaluationException> leftIter, rightIter;
+				leftIter = new ParallelEvaluationIteration(this, executor,
+						Collections.singletonList(join.getLeftArg()), bindings);
+				try {
+					rightIter = new ParallelEvaluationIteration(this, executor,
+							Collections.singletonList(join.getRightArg()), bindings);
+				}
+				catch (QueryEvaluationException e) {
+					leftIter.close();
+					throw e;
+				}
+				return new BottomUpJoinIterator(join, leftIter, rightIter);
+			}
 			return new BottomUpJoinIterator(this, join, bindings);
 		}
 		else {
@@ -1308,6 +1503,12 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 			final BindingSet bindings)
 		throws QueryEvaluationException
 	{
+		if (isParallel() && !isOrdered(union)) {
+			List<TupleExpr> args = new ArrayList<TupleExpr>();
+			collectUnionArgs(union, args);
+			return new ParallelEvaluationIteration(this, executor, args, bindings);
+		}
+
 		Iteration<BindingSet, QueryEvaluationException> leftArg, rightArg;
 
 		leftArg = new DelayedIteration<BindingSet, QueryEvaluationException>() {
@@ -1366,7 +1567,7 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 			final BindingSet bindings)
 		throws QueryEvaluationException
 	{
-		Iteration<BindingSet, QueryEvaluationException> leftArg, rightArg;
+		CloseableIteration<BindingSet, QueryEvaluationException> leftArg, rightArg;
 
 		leftArg = new DelayedIteration<BindingSet, QueryEvaluationException>() {
 
@@ -1388,6 +1589,10 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 			}
 		};
 
+		if (spillThreshold > 0) {
+			return new SpillingMinusIteration(leftArg, rightArg, spillThreshold, tempDir);
+		}
+
 		return new SPARQLMinusIteration<QueryEvaluationException>(leftArg, rightArg);
 	}
 
@@ -1832,33 +2037,7 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 			if (farg != null) {
 				flags = ((Literal)farg).getLabel();
 			}
-			// TODO should this Pattern be cached?
-			int f = 0;
-			for (char c : flags.toCharArray()) {
-				switch (c) {
-					case 's':
-						f |= Pattern.DOTALL;
-						break;
-					case 'm':
-						f |= Pattern.MULTILINE;
-						break;
-					case 'i':
-						f |= Pattern.CASE_INSENSITIVE;
-						break;
-					case 'x':
-						f |= Pattern.COMMENTS;
-						break;
-					case 'd':
-						f |= Pattern.UNIX_LINES;
-						break;
-					case 'u':
-						f |= Pattern.UNICODE_CASE;
-						break;
-					default:
-						throw new ValueExprEvaluationException(flags);
-				}
-			}
-			Pattern pattern = Pattern.compile(ptn, f);
+			Pattern pattern = QueryEvaluationUtil.compileRegex(ptn, flags);
 			boolean result = pattern.matcher(text).find();
 			return BooleanLiteralImpl.valueOf(result);
 		}
@@ -2291,6 +2470,48 @@ public class EvaluationStrategyImpl implements EvaluationStrategy {
 		}
 	}
 
+	/**
+	 * Checks whether arguments can be evaluated concurrently. Arguments that are
+	 * themselves being evaluated concurrently are evaluated sequentially, so
+	 * that the executor's threads never wait for each other.
+	 */
+	private boolean isParallel() {
+		return executor != null && !ParallelEvaluationIteration.isWorkerThread();
+	}
+
+	/**
+	 * Collects the arguments of a union and of any unions directly nested in
+	 * it, so that they can all be evaluated concurrently.
+	 */
+	private void collectUnionArgs(TupleExpr expr, List<TupleExpr> args) {
+		if (expr instanceof Union) {
+			Union union = (Union)expr;
+			collectUnionArgs(union.getLeftArg(), args);
+			collectUnionArgs(union.getRightArg(), args);
+		}
+		else {
+			args.add(expr);
+		}
+	}
+
+	/**
+	 * Checks whether the expression contains an ORDER BY, in which case its
+	 * results must be returned in the order in which they are produced.
+	 */
+	private boolean isOrdered(TupleExpr expr) {
+		final boolean[] ordered = { false };
+
+		expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+
+			@Override
+			public void meet(Order node) {
+				ordered[0] = true;
+			}
+		});
+
+		return ordered[0];
+	}
+
 	private boolean isReduced(QueryModelNode node) {
 		QueryModelNode parent = node.getParentNode();
 		if (parent instanceof Slice) {
@@ -15,11 +15,15 @@ import java.util.Set;
 
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.Group;
 import org.openrdf.query.algebra.Join;
 import org.openrdf.query.algebra.LeftJoin;
+import org.openrdf.query.algebra.Order;
 import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.Slice;
 import org.openrdf.query.algebra.StatementPattern;
 import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.UnaryTupleOperator;
 import org.openrdf.query.algebra.Union;
 import org.openrdf.query.algebra.Var;
 import org.openrdf.query.algebra.ZeroLengthPath;
@@ -37,28 +41,98 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 
 	protected final EvaluationStatistics statistics;
 
+	/**
+	 * Indicates whether join arguments may be joined with a hash join.
+	 */
+	protected final boolean hashJoinsAllowed;
+
 	public QueryJoinOptimizer() {
 		this(new EvaluationStatistics());
 	}
 
 	public QueryJoinOptimizer(EvaluationStatistics statistics) {
+		this(statistics, true);
+	}
+
+	/**
+	 * Creates a new QueryJoinOptimizer.
+	 * 
+	 * @param statistics
+	 *        The statistics to estimate the cost of joins with.
+	 * @param hashJoins
+	 *        Indicates whether join arguments may be joined with a hash join.
+	 *        Stores that evaluate nested loop joins in a more efficient way
+	 *        can disable this.
+	 */
+	public QueryJoinOptimizer(EvaluationStatistics statistics, boolean hashJoins) {
 		this.statistics = statistics;
+		this.hashJoinsAllowed = hashJoins;
 	}
 
 	/**
 	 * Applies generally applicable optimizations: path expressions are sorted
-	 * from more to less specific.
+	 * from more to less specific. Statement patterns that are expected to
+	 * produce fewer results when evaluated once than when evaluated for every
+	 * result of the preceding join arguments are joined with a hash join,
+	 * unless the query's results are limited, in which case a nested loop
+	 * produces the first results sooner.
 	 * 
 	 * @param tupleExpr
 	 */
 	public void optimize(TupleExpr tupleExpr, Dataset dataset, BindingSet bindings) {
-		tupleExpr.visit(new JoinVisitor());
+		JoinVisitor visitor = new JoinVisitor();
+		if (bindings != null) {
+			// Variables that are bound by the supplied bindings may not have been
+			// assigned a value yet
+			visitor.boundVars.addAll(bindings.getBindingNames());
+		}
+		tupleExpr.visit(visitor);
 	}
 
 	protected class JoinVisitor extends QueryModelVisitorBase<RuntimeException> {
 
 		Set<String> boundVars = new HashSet<String>();
 
+		/**
+		 * Indicates whether only part of the results of the current expression
+		 * are expected to be needed, as is the case below a LIMIT that is not
+		 * preceded by an operator that needs all of its input.
+		 */
+		boolean limited = false;
+
+		@Override
+		public void meet(Slice node) {
+			boolean origLimited = limited;
+			try {
+				limited = limited || node.hasLimit();
+				super.meet(node);
+			}
+			finally {
+				limited = origLimited;
+			}
+		}
+
+		@Override
+		public void meet(Order node) {
+			meetUnlimited(node);
+		}
+
+		@Override
+		public void meet(Group node) {
+			meetUnlimited(node);
+		}
+
+		private void meetUnlimited(UnaryTupleOperator node) {
+			boolean origLimited = limited;
+			try {
+				limited = false;
+				node.getArg().visit(this);
+			}
+			finally {
+				limited = origLimited;
+			}
+		}
+
 		@Override
 		public void meet(LeftJoin leftJoin) {
 			leftJoin.getLeftArg().visit(this);
@@ -88,6 +162,10 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 				// Reorder the (recursive) join arguments to a more optimal sequence
 				List<TupleExpr> orderedJoinArgs = new ArrayList<TupleExpr>(joinArgs.size());
 
+				// Indicates for each ordered join argument whether it is joined
+				// with the preceding ones as a hash join
+				List<Boolean> hashJoins = new ArrayList<Boolean>(joinArgs.size());
+
 				// first get all subselects and order them
 				List<TupleExpr> orderedSubselects = reorderSubselects(selectProjections(joinArgs));
 				joinArgs.removeAll(orderedSubselects);
@@ -115,13 +193,26 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 						getVarFreqMap(varList, varFreqMap);
 					}
 
+					// The estimated number of results of the ordered join arguments
+					double leftCardinality = 1.0;
+
 					// order all other join arguments based on available statistics
 					while (!joinArgs.isEmpty()) {
 						TupleExpr tupleExpr = selectNextTupleExpr(joinArgs, cardinalityMap, varsMap, varFreqMap,
 								boundVars);
 
+						double boundCardinality = getBoundCardinality(tupleExpr, cardinalityMap.get(tupleExpr),
+								varsMap.get(tupleExpr));
+
+						boolean hashJoin = hashJoinsAllowed && !orderedJoinArgs.isEmpty() && !limited
+								&& isHashJoinCheaper(tupleExpr, leftCardinality, cardinalityMap.get(tupleExpr),
+										boundCardinality);
+
+						leftCardinality *= boundCardinality;
+
 						joinArgs.remove(tupleExpr);
 						orderedJoinArgs.add(tupleExpr);
+						hashJoins.add(hashJoin);
 
 						// Recursively optimize join arguments
 						tupleExpr.visit(this);
@@ -140,15 +231,8 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 				}
 
 				if (orderedJoinArgs.size() > 0) {
-					// Note: generated hierarchy is right-recursive to help the
-					// IterativeEvaluationOptimizer to factor out the left-most join
-					// argument
-					int i = orderedJoinArgs.size() - 1;
-					TupleExpr replacement = orderedJoinArgs.get(i);
-					for (i--; i >= 0; i--) {
-						replacement = new Join(orderedJoinArgs.get(i), replacement);
-					}
-					
+					TupleExpr replacement = buildJoinTree(orderedJoinArgs, hashJoins);
+
 					if (subselectJoins != null) {
 						replacement = new Join(subselectJoins, replacement);
 					}
@@ -167,6 +251,52 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 			}
 		}
 
+		/**
+		 * Builds a tree of joins for ordered join arguments. Each argument that
+		 * is hash joined is joined with the tree of all preceding arguments, the
+		 * arguments in between are joined with nested loops.
+		 */
+		protected TupleExpr buildJoinTree(List<TupleExpr> orderedJoinArgs, List<Boolean> hashJoins) {
+			TupleExpr result = null;
+
+			int start = 0;
+			while (start < orderedJoinArgs.size()) {
+				int end = start + 1;
+				while (end < orderedJoinArgs.size() && !hashJoins.get(end)) {
+					end++;
+				}
+
+				if (result == null) {
+					result = buildNestedLoopJoins(orderedJoinArgs.subList(start, end));
+				}
+				else {
+					Join hashJoin = new Join(result, orderedJoinArgs.get(start));
+					hashJoin.setHashJoin(true);
+					result = hashJoin;
+
+					if (start + 1 < end) {
+						result = new Join(result, buildNestedLoopJoins(orderedJoinArgs.subList(start + 1, end)));
+					}
+				}
+
+				start = end;
+			}
+
+			return result;
+		}
+
+		private TupleExpr buildNestedLoopJoins(List<TupleExpr> joinArgs) {
+			// Note: generated hierarchy is right-recursive to help the
+			// IterativeEvaluationOptimizer to factor out the left-most join
+			// argument
+			int i = joinArgs.size() - 1;
+			TupleExpr result = joinArgs.get(i);
+			for (i--; i >= 0; i--) {
+				result = new Join(joinArgs.get(i), result);
+			}
+			return result;
+		}
+
 		protected <L extends List<TupleExpr>> L getJoinArgs(TupleExpr tupleExpr, L joinArgs) {
 			if (tupleExpr instanceof Join) {
 				Join join = (Join)tupleExpr;
@@ -384,18 +514,13 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 		protected double getTupleExprCardinality(TupleExpr tupleExpr, Map<TupleExpr, Double> cardinalityMap,
 				Map<TupleExpr, List<Var>> varsMap, Map<Var, Integer> varFreqMap, Set<String> boundVars)
 		{
-			double cardinality = cardinalityMap.get(tupleExpr);
-
 			List<Var> vars = varsMap.get(tupleExpr);
 
-			// Compensate for variables that are bound earlier in the evaluation
+			double cardinality = getBoundCardinality(tupleExpr, cardinalityMap.get(tupleExpr), vars);
+
 			List<Var> unboundVars = getUnboundVars(vars);
 			List<Var> constantVars = getConstantVars(vars);
 			int nonConstantVarCount = vars.size() - constantVars.size();
-			if (nonConstantVarCount > 0) {
-				double exp = (double)unboundVars.size() / nonConstantVarCount;
-				cardinality = Math.pow(cardinality, exp);
-			}
 
 			if (unboundVars.isEmpty()) {
 				// Prefer patterns with more bound vars
@@ -421,6 +546,74 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 			return cardinality;
 		}
 
+		/**
+		 * Estimates the number of results of a tuple expression for every result
+		 * of the tuple expressions that are evaluated before it, compensating
+		 * for the variables that these bind.
+		 */
+		protected double getBoundCardinality(TupleExpr tupleExpr, double cardinality, List<Var> vars) {
+			List<Var> unboundVars = getUnboundVars(vars);
+			List<Var> constantVars = getConstantVars(vars);
+			int nonConstantVarCount = vars.size() - constantVars.size();
+
+			if (tupleExpr instanceof StatementPattern && unboundVars.size() < nonConstantVarCount) {
+				// Some variables are bound, ask the statistics for an estimate
+				double boundCardinality = statistics.getCardinality((StatementPattern)tupleExpr, boundVars);
+				if (boundCardinality >= 0.0) {
+					return boundCardinality;
+				}
+			}
+
+			if (nonConstantVarCount > 0) {
+				double exp = (double)unboundVars.size() / nonConstantVarCount;
+				return Math.pow(cardinality, exp);
+			}
+
+			return cardinality;
+		}
+
+		/**
+		 * Checks whether a tuple expression should be joined with the tuple
+		 * expressions that are evaluated before it as a hash join. Only
+		 * statement patterns are hash joined, as other expressions may depend
+		 * on the bindings of the preceding expressions. A nested loop evaluates
+		 * the expression once for every preceding result, a hash join evaluates
+		 * it once and hashes the results of either side. Patterns that share
+		 * variables with the preceding expressions are only hash joined if the
+		 * statistics can estimate their cardinality for bound variables, as the
+		 * generic estimate tends to overrate it.
+		 * 
+		 * @param tupleExpr
+		 *        The tuple expression to join.
+		 * @param leftCardinality
+		 *        The estimated number of results of the preceding expressions.
+		 * @param cardinality
+		 *        The estimated number of results of the tuple expression.
+		 * @param boundCardinality
+		 *        The estimated number of results of the tuple expression for
+		 *        every preceding result.
+		 */
+		protected boolean isHashJoinCheaper(TupleExpr tupleExpr, double leftCardinality,
+				double cardinality, double boundCardinality)
+		{
+			if (!(tupleExpr instanceof StatementPattern)) {
+				return false;
+			}
+
+			StatementPattern sp = (StatementPattern)tupleExpr;
+			List<Var> unboundVars = getUnboundVars(sp.getVarList());
+			int nonConstantVarCount = sp.getVarList().size() - getConstantVars(sp.getVarList()).size();
+
+			if (unboundVars.size() < nonConstantVarCount && statistics.getCardinality(sp, boundVars) < 0.0) {
+				return false;
+			}
+
+			double nestedLoopCost = leftCardinality * (statistics.getLookupCost() + boundCardinality);
+			double hashJoinCost = leftCardinality + cardinality;
+
+			return hashJoinCost < nestedLoopCost;
+		}
+
 		protected List<Var> getConstantVars(Iterable<Var> vars) {
 			List<Var> constantVars = new ArrayList<Var>();
 
@@ -0,0 +1,343 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.impl.AdaptiveJoin;
+import org.openrdf.query.algebra.evaluation.impl.AdaptiveJoin.ArgStatistics;
+
+/**
+ * Evaluates an {@link AdaptiveJoin} as a pipeline of nested loops, one level
+ * per join argument, and re-plans the order of the arguments when their
+ * observed cardinalities deviate from the planned ones.
+ * <p>
+ * Before producing any results, the first {@link #SAMPLE_SIZE} results of the
+ * first argument are read ahead. If the argument turns out to produce many
+ * more results than planned, the arguments are re-ordered, and evaluation
+ * restarts if another argument should come first. While the results of a
+ * level are produced, the order of the levels below it can still be changed:
+ * the variables that are bound for these levels are the same in any order.
+ * Whenever a level has been evaluated completely, the number of results is
+ * recorded with the join, and if the number of results per evaluation deviates
+ * from the planned one by more than a factor {@link #THRESHOLD}, the levels
+ * from that one down are re-planned before the level is evaluated again.
+ * <p>
+ * The arguments are planned greedily, choosing the argument with the lowest
+ * cardinality for the variables that have been bound so far. Arguments that
+ * share variables with the preceding arguments are preferred, to avoid
+ * cartesian products.
+ */
+public class AdaptiveJoinIterator extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	/**
+	 * The number of results of the first argument that is read ahead to check
+	 * its cardinality.
+	 */
+	public static final int SAMPLE_SIZE = 1000;
+
+	/**
+	 * The factor by which an observed cardinality must deviate from the
+	 * planned one to re-plan the join order.
+	 */
+	public static final double THRESHOLD = 10.0;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final AdaptiveJoin join;
+
+	private final EvaluationStrategy strategy;
+
+	private final BindingSet bindings;
+
+	/**
+	 * The indexes of the join arguments that are evaluated at each level.
+	 */
+	private final int[] order;
+
+	/**
+	 * The statistics of the argument at each level, for the variables that are
+	 * bound at that level.
+	 */
+	private final ArgStatistics[] argStatistics;
+
+	/**
+	 * The number of results per evaluation that was planned for each level.
+	 */
+	private final double[] plannedCardinalities;
+
+	private final List<CloseableIteration<BindingSet, QueryEvaluationException>> iters;
+
+	/**
+	 * The number of results of the current evaluation of each level.
+	 */
+	private final long[] resultCounts;
+
+	/**
+	 * The deepest level that is being evaluated, <tt>-1</tt> before evaluation
+	 * has started.
+	 */
+	private int level = -1;
+
+	/**
+	 * The results of the first level that were read ahead.
+	 */
+	private List<BindingSet> sample;
+
+	private int sampleIndex;
+
+	private boolean replanNeeded = false;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	public AdaptiveJoinIterator(AdaptiveJoin join, BindingSet bindings) {
+		this.join = join;
+		this.strategy = join.getStrategy();
+		this.bindings = bindings;
+
+		int argCount = join.getArgCount();
+		order = new int[argCount];
+		argStatistics = new ArgStatistics[argCount];
+		plannedCardinalities = new double[argCount];
+		resultCounts = new long[argCount];
+
+		iters = new ArrayList<CloseableIteration<BindingSet, QueryEvaluationException>>(argCount);
+		for (int i = 0; i < argCount; i++) {
+			order[i] = i;
+			iters.add(null);
+		}
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Gets the indexes of the join arguments in the order in which they are
+	 * currently evaluated.
+	 */
+	public int[] getOrder() {
+		return order.clone();
+	}
+
+	@Override
+	protected BindingSet getNextElement()
+		throws QueryEvaluationException
+	{
+		if (level == -1) {
+			start();
+		}
+
+		while (level >= 0) {
+			BindingSet next = nextResult(level);
+
+			if (next == null) {
+				finish(level);
+				level--;
+			}
+			else {
+				resultCounts[level]++;
+
+				if (level == order.length - 1) {
+					return next;
+				}
+
+				open(level + 1, next);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Opens the first level and reads ahead its first results, re-planning the
+	 * join order if the first argument produces more results than planned.
+	 */
+	private void start()
+		throws QueryEvaluationException
+	{
+		if (join.hasObservations()) {
+			// Earlier evaluations of the join give better estimates
+			plan(0);
+		}
+		else {
+			updateStatistics(0);
+		}
+
+		while (true) {
+			open(0, bindings);
+
+			sample = new ArrayList<BindingSet>();
+			CloseableIteration<BindingSet, QueryEvaluationException> iter = iters.get(0);
+			while (sample.size() < SAMPLE_SIZE && iter.hasNext()) {
+				sample.add(iter.next());
+			}
+
+			if (sample.size() < SAMPLE_SIZE || SAMPLE_SIZE <= plannedCardinalities[0] * THRESHOLD) {
+				break;
+			}
+
+			// Underestimated the first argument
+			argStatistics[0].setLowerBound(SAMPLE_SIZE);
+
+			int first = order[0];
+			plan(0);
+
+			if (order[0] == first) {
+				break;
+			}
+
+			iter.close();
+			iters.set(0, null);
+			sample = null;
+		}
+	}
+
+	private BindingSet nextResult(int level)
+		throws QueryEvaluationException
+	{
+		if (level == 0 && sample != null) {
+			if (sampleIndex < sample.size()) {
+				return sample.get(sampleIndex++);
+			}
+			sample = null;
+		}
+
+		CloseableIteration<BindingSet, QueryEvaluationException> iter = iters.get(level);
+		return iter.hasNext() ? iter.next() : null;
+	}
+
+	private void open(int level, BindingSet bindings)
+		throws QueryEvaluationException
+	{
+		if (replanNeeded) {
+			replanNeeded = false;
+			plan(level);
+		}
+
+		iters.set(level, strategy.evaluate(join.getArg(order[level]), bindings));
+		resultCounts[level] = 0;
+		this.level = level;
+	}
+
+	private void finish(int level)
+		throws QueryEvaluationException
+	{
+		iters.get(level).close();
+		iters.set(level, null);
+
+		ArgStatistics statistics = argStatistics[level];
+		statistics.addObservation(resultCounts[level]);
+
+		if (level > 0 && statistics.isObserved()) {
+			// Smoothed, to ignore deviations between small cardinalities
+			double ratio = (statistics.getCardinality() + 1.0) / (plannedCardinalities[level] + 1.0);
+			if (ratio > THRESHOLD || ratio < 1.0 / THRESHOLD) {
+				replanNeeded = true;
+			}
+		}
+	}
+
+	/**
+	 * Re-orders the join arguments from the specified level down.
+	 */
+	private void plan(int fromLevel) {
+		Set<String> boundVars = getBoundVars(fromLevel);
+
+		for (int i = fromLevel; i < order.length; i++) {
+			int best = -1;
+			boolean bestConnected = false;
+			double bestCardinality = Double.POSITIVE_INFINITY;
+
+			for (int j = i; j < order.length; j++) {
+				Set<String> argVars = join.getArgVars(order[j]);
+				boolean connected = false;
+				for (String name : argVars) {
+					if (boundVars.contains(name)) {
+						connected = true;
+						break;
+					}
+				}
+
+				double cardinality = join.getArgStatistics(order[j], boundVars).getCardinality();
+
+				if (best == -1 || connected && !bestConnected || connected == bestConnected
+						&& cardinality < bestCardinality)
+				{
+					best = j;
+					bestConnected = connected;
+					bestCardinality = cardinality;
+				}
+			}
+
+			// Move the chosen argument to level i, keeping the others in order
+			int arg = order[best];
+			System.arraycopy(order, i, order, i + 1, best - i);
+			order[i] = arg;
+
+			boundVars.addAll(join.getArgVars(arg));
+		}
+
+		updateStatistics(fromLevel);
+	}
+
+	private void updateStatistics(int fromLevel) {
+		Set<String> boundVars = getBoundVars(fromLevel);
+
+		for (int i = fromLevel; i < order.length; i++) {
+			argStatistics[i] = join.getArgStatistics(order[i], boundVars);
+			plannedCardinalities[i] = argStatistics[i].getCardinality();
+			boundVars.addAll(join.getArgVars(order[i]));
+		}
+	}
+
+	/**
+	 * Gets the names of the variables that are bound when the specified level
+	 * is evaluated.
+	 */
+	private Set<String> getBoundVars(int level) {
+		Set<String> boundVars = new HashSet<String>(bindings.getBindingNames());
+		for (int i = 0; i < level; i++) {
+			boundVars.addAll(join.getArgVars(order[i]));
+		}
+		return boundVars;
+	}
+
+	@Override
+	protected void handleClose()
+		throws QueryEvaluationException
+	{
+		try {
+			super.handleClose();
+		}
+		finally {
+			sample = null;
+
+			for (int i = iters.size() - 1; i >= 0; i--) {
+				if (iters.get(i) != null) {
+					iters.get(i).close();
+				}
+			}
+		}
+	}
+}
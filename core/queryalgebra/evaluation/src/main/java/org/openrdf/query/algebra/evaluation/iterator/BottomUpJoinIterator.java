@@ -57,8 +57,19 @@ public class BottomUpJoinIterator extends LookAheadIteration<BindingSet, QueryEv
 	public BottomUpJoinIterator(EvaluationStrategy strategy, Join join, BindingSet bindings)
 		throws QueryEvaluationException
 	{
-		leftIter = strategy.evaluate(join.getLeftArg(), bindings);
-		rightIter = strategy.evaluate(join.getRightArg(), bindings);
+		this(join, strategy.evaluate(join.getLeftArg(), bindings), strategy.evaluate(join.getRightArg(),
+				bindings));
+	}
+
+	/**
+	 * Creates a join of the results of the join's arguments that have already
+	 * been evaluated, e.g. concurrently.
+	 */
+	public BottomUpJoinIterator(Join join, CloseableIteration<BindingSet, QueryEvaluationException> leftIter,
+			CloseableIteration<BindingSet, QueryEvaluationException> rightIter)
+	{
+		this.leftIter = leftIter;
+		this.rightIter = rightIter;
 
 		joinAttributes = join.getLeftArg().getBindingNames();
 		joinAttributes.retainAll(join.getRightArg().getBindingNames());
@@ -18,6 +18,7 @@ import org.openrdf.query.algebra.SubQueryValueOperator;
 import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
 import org.openrdf.query.algebra.evaluation.QueryBindingSet;
 import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
+import org.openrdf.query.algebra.evaluation.util.CompiledValueExpr;
 
 public class FilterIterator extends FilterIteration<BindingSet, QueryEvaluationException> {
 
@@ -36,6 +37,17 @@ public class FilterIterator extends FilterIteration<BindingSet, QueryEvaluationE
 	 */
 	private final Set<String> scopeBindingNames;
 
+	/**
+	 * Indicates whether the bindings are limited to the ones in scope.
+	 */
+	private final boolean limitBindings;
+
+	/**
+	 * The compiled condition of the filter, or <tt>null</tt> if the condition
+	 * is evaluated by the strategy.
+	 */
+	private final CompiledValueExpr condition;
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -43,12 +55,29 @@ public class FilterIterator extends FilterIteration<BindingSet, QueryEvaluationE
 	public FilterIterator(Filter filter, CloseableIteration<BindingSet, QueryEvaluationException> iter,
 			EvaluationStrategy strategy)
 		throws QueryEvaluationException
+	{
+		this(filter, iter, strategy, null);
+	}
+
+	/**
+	 * Creates a FilterIterator that evaluates a compiled version of the
+	 * filter's condition.
+	 */
+	public FilterIterator(Filter filter, CloseableIteration<BindingSet, QueryEvaluationException> iter,
+			EvaluationStrategy strategy, CompiledValueExpr condition)
+		throws QueryEvaluationException
 	{
 		super(iter);
 		this.filter = filter;
 		this.strategy = strategy;
 		this.scopeBindingNames = filter.getBindingNames();
-		
+		this.condition = condition;
+
+		// FIXME J1 scopeBindingNames should include bindings from superquery if
+		// the filter is part of a subquery. This is a workaround: we should fix
+		// the settings of scopeBindingNames, rather than skipping the limiting of
+		// bindings.
+		this.limitBindings = !isPartOfSubQuery(filter);
 	}
 
 	/*---------*
@@ -75,13 +104,16 @@ public class FilterIterator extends FilterIteration<BindingSet, QueryEvaluationE
 	{
 		try {
 			// Limit the bindings to the ones that are in scope for this filter
-			QueryBindingSet scopeBindings = new QueryBindingSet(bindings);
-			
-			// FIXME J1 scopeBindingNames should include bindings from superquery if the filter
-			// is part of a subquery. This is a workaround: we should fix the settings of scopeBindingNames, 
-			// rather than skipping the limiting of bindings.
-			if (!isPartOfSubQuery(filter)) {
-				scopeBindings.retainAll(scopeBindingNames);
+			BindingSet scopeBindings = bindings;
+
+			if (limitBindings && !scopeBindingNames.containsAll(bindings.getBindingNames())) {
+				QueryBindingSet limitedBindings = new QueryBindingSet(bindings);
+				limitedBindings.retainAll(scopeBindingNames);
+				scopeBindings = limitedBindings;
+			}
+
+			if (condition != null) {
+				return condition.isTrue(scopeBindings);
 			}
 
 			return strategy.isTrue(filter.getCondition(), scopeBindings);
@@ -5,18 +5,25 @@
  */
 package org.openrdf.query.algebra.evaluation.iterator;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import info.aduna.iteration.CloseableIteration;
-import info.aduna.iteration.CloseableIteratorIteration;
+import info.aduna.iteration.LookAheadIteration;
 import info.aduna.lang.ObjectUtil;
 
 import org.openrdf.model.Literal;
@@ -39,25 +46,55 @@ import org.openrdf.query.algebra.Min;
 import org.openrdf.query.algebra.Sample;
 import org.openrdf.query.algebra.Sum;
 import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
 import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
 import org.openrdf.query.algebra.evaluation.QueryBindingSet;
 import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
 import org.openrdf.query.algebra.evaluation.util.MathUtil;
+import org.openrdf.query.algebra.evaluation.util.NumericSum;
+import org.openrdf.query.algebra.evaluation.util.SpillFile;
+import org.openrdf.query.algebra.evaluation.util.SpillPartitions;
 import org.openrdf.query.algebra.evaluation.util.ValueComparator;
 import org.openrdf.query.impl.EmptyBindingSet;
 
 /**
+ * Groups the solutions of the group's argument and computes the aggregates of
+ * each group.
+ * <p>
+ * If a spill threshold has been specified, at most that number of groups is
+ * kept in memory. Once it has been reached, solutions for the groups in memory
+ * are still aggregated directly, but solutions for other groups are
+ * partitioned to disk by their group key. The partitions are grouped one by
+ * one after the groups in memory have been returned.
+ * <p>
+ * If an executor has been specified and all aggregates can be merged (COUNT,
+ * SUM, AVG, MIN and MAX without DISTINCT, over a variable or <tt>*</tt>),
+ * the solutions are aggregated in parallel instead. Chunks of solutions are
+ * distributed over a number of partitions that each aggregate their chunks
+ * into their own groups, and the partial aggregates of these groups are
+ * merged at the end. Other aggregates are evaluated sequentially, as their
+ * result depends on the order of the solutions or their evaluation may access
+ * the triple source, which is not guaranteed to be thread-safe. Parallel
+ * aggregation keeps all groups in memory and is therefore only used without a
+ * spill threshold.
+ *
  * @author David Huynh
  * @author Arjohn Kampman
  * @author Jeen Broekstra
  * @author James Leigh
  */
-public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryEvaluationException> {
+public class GroupIterator extends LookAheadIteration<BindingSet, QueryEvaluationException> {
 
 	/*-----------*
 	 * Constants *
 	 *-----------*/
 
+	/**
+	 * The number of solutions that is aggregated by a single task when
+	 * aggregating in parallel.
+	 */
+	private static final int PARALLEL_CHUNK_SIZE = 1024;
+
 	private final ValueFactoryImpl vf = ValueFactoryImpl.getInstance();
 
 	private final EvaluationStrategy strategy;
@@ -65,21 +102,96 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 	private final BindingSet parentBindings;
 
 	private final Group group;
-	
-	private boolean initialized = false;
 
-	private final Object lock = new Object();
-	
+	private final int spillThreshold;
+
+	private final File tempDir;
+
+	/**
+	 * The executor to aggregate solutions on in parallel, or <tt>null</tt> to
+	 * aggregate them sequentially.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The partitioning level of the solutions that are grouped, <tt>0</tt> for
+	 * the solutions of the group's argument.
+	 */
+	private final int level;
+
+	/**
+	 * The solutions to group, or <tt>null</tt> if the group's argument has not
+	 * been evaluated yet.
+	 */
+	private CloseableIteration<BindingSet, QueryEvaluationException> iter;
+
+	private Iterator<Entry> entryIter;
+
+	private SpillPartitions partitions;
+
+	private int nextPartition = 0;
+
+	private GroupIterator partitionIter;
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
 
 	public GroupIterator(EvaluationStrategy strategy, Group group, BindingSet parentBindings)
 		throws QueryEvaluationException
+	{
+		this(strategy, group, parentBindings, 0, null);
+	}
+
+	/**
+	 * Creates a new GroupIterator.
+	 *
+	 * @param spillThreshold
+	 *        The maximum number of groups to keep in memory, or <tt>0</tt> to
+	 *        keep all groups in memory.
+	 * @param tempDir
+	 *        The directory to store the partitions in, or <tt>null</tt> to use
+	 *        the default temporary-file directory.
+	 */
+	public GroupIterator(EvaluationStrategy strategy, Group group, BindingSet parentBindings,
+			int spillThreshold, File tempDir)
+		throws QueryEvaluationException
+	{
+		this(strategy, group, parentBindings, spillThreshold, tempDir, null);
+	}
+
+	/**
+	 * Creates a new GroupIterator.
+	 *
+	 * @param spillThreshold
+	 *        The maximum number of groups to keep in memory, or <tt>0</tt> to
+	 *        keep all groups in memory.
+	 * @param tempDir
+	 *        The directory to store the partitions in, or <tt>null</tt> to use
+	 *        the default temporary-file directory.
+	 * @param executor
+	 *        The executor to aggregate the solutions on in parallel, or
+	 *        <tt>null</tt> to aggregate them sequentially.
+	 */
+	public GroupIterator(EvaluationStrategy strategy, Group group, BindingSet parentBindings,
+			int spillThreshold, File tempDir, ExecutorService executor)
+		throws QueryEvaluationException
+	{
+		this(strategy, group, parentBindings, spillThreshold, tempDir, executor, 0, null);
+	}
+
+	private GroupIterator(EvaluationStrategy strategy, Group group, BindingSet parentBindings,
+			int spillThreshold, File tempDir, ExecutorService executor, int level,
+			CloseableIteration<BindingSet, QueryEvaluationException> iter)
 	{
 		this.strategy = strategy;
 		this.group = group;
 		this.parentBindings = parentBindings;
+		this.spillThreshold = spillThreshold;
+		this.tempDir = tempDir;
+		this.executor = executor;
+		this.level = level;
+		this.iter = iter;
 	}
 
 	/*---------*
@@ -87,73 +199,82 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 	 *---------*/
 
 	@Override
-	public boolean hasNext() throws QueryEvaluationException {
-		if (!initialized) {
-			synchronized(lock) {
-				if (!initialized) {
-					super.setIterator(createIterator());
-					initialized = true;
-				}
-			}
+	protected BindingSet getNextElement()
+		throws QueryEvaluationException
+	{
+		if (entryIter == null) {
+			entryIter = buildEntries().iterator();
 		}
-		return super.hasNext();
-	}
 
-	@Override
-	public BindingSet next() throws QueryEvaluationException {
-		if (!initialized) {
-			synchronized(lock) {
-				if (!initialized) {
-					super.setIterator(createIterator());
-					initialized = true;
+		if (entryIter.hasNext()) {
+			return createSolution(entryIter.next());
+		}
+
+		while (partitions != null) {
+			if (partitionIter != null) {
+				if (partitionIter.hasNext()) {
+					return partitionIter.next();
 				}
+
+				partitionIter.close();
+				partitionIter = null;
+				partitions.get(nextPartition - 1).delete();
+			}
+
+			if (nextPartition >= partitions.size()) {
+				return null;
+			}
+
+			SpillFile partition = partitions.get(nextPartition++);
+			if (!partition.isEmpty()) {
+				int threshold = partitions.canRepartition() ? spillThreshold : 0;
+				partitionIter = new GroupIterator(strategy, group, parentBindings, threshold, tempDir, null,
+						level + 1, partition.read());
 			}
 		}
-		return super.next();
+
+		return null;
 	}
-	
-	private Iterator<BindingSet> createIterator()
+
+	private BindingSet createSolution(Entry entry)
 		throws QueryEvaluationException
 	{
-		Collection<Entry> entries = buildEntries();
-		Collection<BindingSet> bindingSets = new LinkedList<BindingSet>();
+		QueryBindingSet sol = new QueryBindingSet(parentBindings);
 
-		for (Entry entry : entries) {
-			QueryBindingSet sol = new QueryBindingSet(parentBindings);
-
-			for (String name : group.getGroupBindingNames()) {
-				BindingSet prototype = entry.getPrototype();
-				if (prototype != null) {
-					Value value = prototype.getValue(name);
-					if (value != null) {
-						// Potentially overwrites bindings from super
-						sol.setBinding(name, value);
-					}
+		for (String name : group.getGroupBindingNames()) {
+			BindingSet prototype = entry.getPrototype();
+			if (prototype != null) {
+				Value value = prototype.getValue(name);
+				if (value != null) {
+					// Potentially overwrites bindings from super
+					sol.setBinding(name, value);
 				}
 			}
-
-			entry.bindSolution(sol);
-
-			bindingSets.add(sol);
 		}
 
-		return bindingSets.iterator();
+		entry.bindSolution(sol);
+
+		return sol;
 	}
 
 	private Collection<Entry> buildEntries()
 		throws QueryEvaluationException
 	{
-		CloseableIteration<BindingSet, QueryEvaluationException> iter;
-		iter = strategy.evaluate(group.getArg(), parentBindings);
+		if (iter == null) {
+			iter = strategy.evaluate(group.getArg(), parentBindings);
+		}
 
 		try {
 			Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>();
 
-			if (!iter.hasNext()) {
+			if (level == 0 && !iter.hasNext()) {
 				// no solutions, still need to process aggregates to produce a
 				// zero-result.
 				entries.put(new Key(new EmptyBindingSet()), new Entry(new EmptyBindingSet()));
 			}
+			else if (executor != null && spillThreshold == 0 && isMergeable()) {
+				return buildEntriesInParallel();
+			}
 
 			while (iter.hasNext()) {
 				BindingSet sol;
@@ -167,6 +288,15 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 				Entry entry = entries.get(key);
 
 				if (entry == null) {
+					if (spillThreshold > 0 && entries.size() >= spillThreshold) {
+						// Group this solution later
+						if (partitions == null) {
+							partitions = new SpillPartitions(level, tempDir, "group");
+						}
+						partitions.add(key.hashCode(), sol);
+						continue;
+					}
+
 					entry = new Entry(sol);
 					entries.put(key, entry);
 				}
@@ -182,6 +312,159 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 
 	}
 
+	/**
+	 * Checks whether the aggregates of partial groups can be merged.
+	 */
+	private boolean isMergeable() {
+		for (GroupElem ge : group.getGroupElements()) {
+			AggregateOperator operator = ge.getOperator();
+
+			if (!(operator instanceof Count || operator instanceof Sum || operator instanceof Avg
+					|| operator instanceof Min || operator instanceof Max))
+			{
+				return false;
+			}
+
+			AggregateOperatorBase aggregate = (AggregateOperatorBase)operator;
+			ValueExpr arg = aggregate.getArg();
+			if (aggregate.isDistinct() || arg != null && !(arg instanceof Var)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Aggregates the solutions in parallel partitions and merges the groups of
+	 * the partitions.
+	 */
+	private Collection<Entry> buildEntriesInParallel()
+		throws QueryEvaluationException
+	{
+		int partitionCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+		List<Map<Key, Entry>> partitionEntries = new ArrayList<Map<Key, Entry>>(partitionCount);
+		List<Future<Object>> tasks = new ArrayList<Future<Object>>(partitionCount);
+		for (int i = 0; i < partitionCount; i++) {
+			partitionEntries.add(new LinkedHashMap<Key, Entry>());
+			tasks.add(null);
+		}
+
+		boolean success = false;
+		try {
+			int partition = 0;
+
+			while (iter.hasNext()) {
+				List<BindingSet> chunk = new ArrayList<BindingSet>(PARALLEL_CHUNK_SIZE);
+				try {
+					while (chunk.size() < PARALLEL_CHUNK_SIZE && iter.hasNext()) {
+						chunk.add(iter.next());
+					}
+				}
+				catch (NoSuchElementException e) {
+					// closed, aggregate the solutions that have been read
+				}
+
+				// Each partition is updated by at most one task at a time
+				waitFor(tasks.get(partition));
+				tasks.set(partition, submit(new ChunkAggregation(partitionEntries.get(partition), chunk)));
+				partition = (partition + 1) % partitionCount;
+			}
+
+			for (Future<Object> task : tasks) {
+				waitFor(task);
+			}
+			success = true;
+		}
+		finally {
+			if (!success) {
+				for (Future<Object> task : tasks) {
+					if (task != null) {
+						task.cancel(false);
+					}
+				}
+			}
+		}
+
+		Map<Key, Entry> entries = partitionEntries.get(0);
+		for (int i = 1; i < partitionCount; i++) {
+			for (Map.Entry<Key, Entry> partitionEntry : partitionEntries.get(i).entrySet()) {
+				Entry entry = entries.get(partitionEntry.getKey());
+				if (entry == null) {
+					entries.put(partitionEntry.getKey(), partitionEntry.getValue());
+				}
+				else {
+					entry.merge(partitionEntry.getValue());
+				}
+			}
+		}
+
+		return entries.values();
+	}
+
+	private Future<Object> submit(Callable<Object> task)
+		throws QueryEvaluationException
+	{
+		try {
+			return executor.submit(task);
+		}
+		catch (RejectedExecutionException e) {
+			throw new QueryEvaluationException("Unable to start parallel aggregation", e);
+		}
+	}
+
+	private void waitFor(Future<Object> task)
+		throws QueryEvaluationException
+	{
+		if (task == null) {
+			return;
+		}
+
+		try {
+			task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryEvaluationException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof QueryEvaluationException) {
+				throw (QueryEvaluationException)cause;
+			}
+			else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new QueryEvaluationException(cause);
+		}
+	}
+
+	@Override
+	protected void handleClose()
+		throws QueryEvaluationException
+	{
+		try {
+			super.handleClose();
+
+			if (iter != null) {
+				iter.close();
+			}
+
+			if (partitionIter != null) {
+				partitionIter.close();
+			}
+		}
+		finally {
+			if (partitions != null) {
+				partitions.delete();
+			}
+		}
+	}
+
 	/**
 	 * A unique key for a set of existing bindings.
 	 * 
@@ -261,6 +544,18 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 			}
 		}
 
+		/**
+		 * Merges the aggregates of an entry for the same group, computed over
+		 * other solutions, into the aggregates of this entry.
+		 */
+		public void merge(Entry other)
+			throws QueryEvaluationException
+		{
+			for (Map.Entry<String, Aggregate> aggregate : aggregates.entrySet()) {
+				aggregate.getValue().merge(other.aggregates.get(aggregate.getKey()));
+			}
+		}
+
 		public void bindSolution(QueryBindingSet sol)
 			throws QueryEvaluationException
 		{
@@ -331,6 +626,19 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 		public abstract void processAggregate(BindingSet bindingSet)
 			throws QueryEvaluationException;
 
+		/**
+		 * Merges an aggregate of the same type, computed over other solutions,
+		 * into this aggregate.
+		 *
+		 * @throws UnsupportedOperationException
+		 *         If this aggregate cannot be merged.
+		 */
+		public void merge(Aggregate other)
+			throws QueryEvaluationException
+		{
+			throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be merged");
+		}
+
 		protected boolean distinct(Value value) {
 			return distinct == null || distinct.add(value);
 		}
@@ -342,6 +650,13 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 		protected Value evaluate(BindingSet s)
 			throws QueryEvaluationException
 		{
+			if (arg instanceof Var) {
+				// Plain variables are by far the most common argument, look them
+				// up directly
+				Var var = (Var)arg;
+				return var.hasValue() ? var.getValue() : s.getValue(var.getName());
+			}
+
 			try {
 				return strategy.evaluate(getArg(), s);
 			}
@@ -349,6 +664,28 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 				return null; // treat missing or invalid expressions as null
 			}
 		}
+
+		/**
+		 * Gets the value of a literal with an integer datatype as a long, so that
+		 * it can be compared without parsing it again.
+		 *
+		 * @return The value, or <tt>null</tt> if the value is not an integer
+		 *         literal or does not fit in a long.
+		 */
+		protected Long integerValue(Value value) {
+			if (value instanceof Literal) {
+				Literal literal = (Literal)value;
+				if (literal.getDatatype() != null && XMLDatatypeUtil.isIntegerDatatype(literal.getDatatype())) {
+					try {
+						return NumericSum.longValue(literal);
+					}
+					catch (NumberFormatException e) {
+						// compared by the value comparator
+					}
+				}
+			}
+			return null;
+		}
 	}
 
 	private class CountAggregate extends Aggregate {
@@ -374,6 +711,11 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 			}
 		}
 
+		@Override
+		public void merge(Aggregate other) {
+			count += ((CountAggregate)other).count;
+		}
+
 		@Override
 		public Value getValue() {
 			return vf.createLiteral(Long.toString(count), XMLSchema.INTEGER);
@@ -386,6 +728,11 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 
 		private Value min = null;
 
+		/**
+		 * The value of {@link #min} as a long, if it is an integer.
+		 */
+		private Long minLong = null;
+
 		public MinAggregate(Min operator) {
 			super(operator);
 		}
@@ -396,13 +743,33 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 		{
 			Value v = evaluate(s);
 			if (distinct(v)) {
-				if (min == null) {
-					min = v;
-				}
-				else if (comparator.compare(v, min) < 0) {
+				update(v, integerValue(v));
+			}
+		}
+
+		@Override
+		public void merge(Aggregate other) {
+			MinAggregate otherMin = (MinAggregate)other;
+			if (otherMin.min != null) {
+				update(otherMin.min, otherMin.minLong);
+			}
+		}
+
+		private void update(Value v, Long vLong) {
+			if (min == null) {
+				min = v;
+				minLong = vLong;
+			}
+			else if (vLong != null && minLong != null) {
+				if (vLong < minLong) {
 					min = v;
+					minLong = vLong;
 				}
 			}
+			else if (comparator.compare(v, min) < 0) {
+				min = v;
+				minLong = vLong;
+			}
 		}
 
 		@Override
@@ -417,6 +784,11 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 
 		private Value max = null;
 
+		/**
+		 * The value of {@link #max} as a long, if it is an integer.
+		 */
+		private Long maxLong = null;
+
 		public MaxAggregate(Max operator) {
 			super(operator);
 		}
@@ -427,13 +799,35 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 		{
 			Value v = evaluate(s);
 			if (distinct(v)) {
-				if (max == null) {
-					max = v;
-				}
-				else if (comparator.compare(v, max) > 0) {
+				update(v, integerValue(v));
+			}
+		}
+
+		@Override
+		public void merge(Aggregate other) {
+			MaxAggregate otherMax = (MaxAggregate)other;
+			if (otherMax.max != null) {
+				update(otherMax.max, otherMax.maxLong);
+			}
+		}
+
+		private void update(Value v, Long vLong) {
+			if (max == null) {
+				max = v;
+				maxLong = vLong;
+			}
+			else if (vLong != null && maxLong != null) {
+				// The comparator orders equal numbers with different labels after
+				// the current maximum
+				if (vLong > maxLong || vLong.equals(maxLong) && !v.equals(max)) {
 					max = v;
+					maxLong = vLong;
 				}
 			}
+			else if (comparator.compare(v, max) > 0) {
+				max = v;
+				maxLong = vLong;
+			}
 		}
 
 		@Override
@@ -444,7 +838,7 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 
 	private class SumAggregate extends Aggregate {
 
-		private Literal sum = vf.createLiteral("0", XMLSchema.INTEGER);
+		private final NumericSum sum = new NumericSum();
 
 		private ValueExprEvaluationException typeError = null;
 
@@ -468,7 +862,7 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 					if (nextLiteral.getDatatype() != null
 							&& XMLDatatypeUtil.isNumericDatatype(nextLiteral.getDatatype()))
 					{
-						sum = MathUtil.compute(sum, nextLiteral, MathOp.PLUS);
+						sum.add(nextLiteral);
 					}
 					else {
 						typeError = new ValueExprEvaluationException("not a number: " + v);
@@ -480,6 +874,19 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 			}
 		}
 
+		@Override
+		public void merge(Aggregate other)
+			throws QueryEvaluationException
+		{
+			SumAggregate otherSum = (SumAggregate)other;
+			if (typeError == null) {
+				typeError = otherSum.typeError;
+			}
+			if (typeError == null) {
+				sum.add(otherSum.sum);
+			}
+		}
+
 		@Override
 		public Value getValue()
 			throws ValueExprEvaluationException
@@ -488,7 +895,7 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 				throw typeError;
 			}
 
-			return sum;
+			return sum.getValue();
 		}
 	}
 
@@ -496,7 +903,7 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 
 		private long count = 0;
 
-		private Literal sum = vf.createLiteral("0", XMLSchema.INTEGER);
+		private final NumericSum sum = new NumericSum();
 
 		private ValueExprEvaluationException typeError = null;
 
@@ -522,7 +929,7 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 					if (nextLiteral.getDatatype() != null
 							&& XMLDatatypeUtil.isNumericDatatype(nextLiteral.getDatatype()))
 					{
-						sum = MathUtil.compute(sum, nextLiteral, MathOp.PLUS);
+						sum.add(nextLiteral);
 					}
 					else {
 						typeError = new ValueExprEvaluationException("not a number: " + v);
@@ -538,6 +945,20 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 			}
 		}
 
+		@Override
+		public void merge(Aggregate other)
+			throws QueryEvaluationException
+		{
+			AvgAggregate otherAvg = (AvgAggregate)other;
+			if (typeError == null) {
+				typeError = otherAvg.typeError;
+			}
+			if (typeError == null) {
+				count += otherAvg.count;
+				sum.add(otherAvg.sum);
+			}
+		}
+
 		@Override
 		public Value getValue()
 			throws ValueExprEvaluationException
@@ -553,7 +974,40 @@ public class GroupIterator extends CloseableIteratorIteration<BindingSet, QueryE
 			}
 
 			Literal sizeLit = vf.createLiteral(count);
-			return MathUtil.compute(sum, sizeLit, MathOp.DIVIDE);
+			return MathUtil.compute(sum.getValue(), sizeLit, MathOp.DIVIDE);
+		}
+	}
+
+	/**
+	 * Aggregates a chunk of solutions into the groups of a partition.
+	 */
+	private class ChunkAggregation implements Callable<Object> {
+
+		private final Map<Key, Entry> entries;
+
+		private final List<BindingSet> solutions;
+
+		public ChunkAggregation(Map<Key, Entry> entries, List<BindingSet> solutions) {
+			this.entries = entries;
+			this.solutions = solutions;
+		}
+
+		public Object call()
+			throws QueryEvaluationException
+		{
+			for (BindingSet sol : solutions) {
+				Key key = new Key(sol);
+				Entry entry = entries.get(key);
+
+				if (entry == null) {
+					entry = new Entry(sol);
+					entries.put(key, entry);
+				}
+
+				entry.addSolution(sol);
+			}
+
+			return null;
 		}
 	}
 
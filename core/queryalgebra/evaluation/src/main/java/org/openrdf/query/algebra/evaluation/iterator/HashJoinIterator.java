@@ -0,0 +1,636 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+import info.aduna.iteration.EmptyIteration;
+import info.aduna.iteration.LookAheadIteration;
+import info.aduna.iteration.UnionIteration;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryResultUtil;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.util.SpillFile;
+import org.openrdf.query.algebra.evaluation.util.SpillPartitions;
+
+/**
+ * Evaluates a join by building a hash table on the results of one argument and
+ * probing it with the results of the other one. Both arguments are evaluated
+ * once, independently of each other.
+ * <p>
+ * The hash table is built on the smaller argument, which is found by reading
+ * both arguments in turn until one of them is exhausted. The larger argument
+ * is only read as far as the smaller one, so the size of neither argument
+ * needs to be known in advance. The table is keyed on the variables that both
+ * arguments always bind, and matches are checked for compatibility on any
+ * other variables that they share. Results that lack a value for one of these
+ * variables nonetheless are compared with all results of the other argument,
+ * which requires them to be held in memory.
+ * <p>
+ * The memory use is bounded. If both arguments exceed the spill threshold,
+ * they are partitioned to disk on the values of the key and each pair of
+ * partitions is joined on its own. Without a spill threshold, or if the
+ * arguments do not share any variables that they always bind, the join falls
+ * back to a nested loop once both arguments exceed {@link #MAX_BUILD_SIZE}
+ * results.
+ */
+public class HashJoinIterator extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	/**
+	 * The maximum number of results that are hashed in memory when no spill
+	 * threshold has been set.
+	 */
+	public static final int MAX_BUILD_SIZE = 100000;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	/**
+	 * The strategy and bindings to evaluate the join as a nested loop with, or
+	 * <tt>null</tt> for the joins of partitions.
+	 */
+	private final EvaluationStrategy strategy;
+
+	private final Join join;
+
+	private final CloseableIteration<BindingSet, QueryEvaluationException> leftIter;
+
+	private final CloseableIteration<BindingSet, QueryEvaluationException> rightIter;
+
+	/**
+	 * The names of the variables that the hash table is keyed on.
+	 */
+	private final String[] keyNames;
+
+	/**
+	 * Indicates whether the arguments share variables that are not part of the
+	 * key, in which case matches must be checked for compatibility.
+	 */
+	private final boolean checkCompatibility;
+
+	private final int spillThreshold;
+
+	private final File tempDir;
+
+	private final int level;
+
+	private boolean initialized = false;
+
+	/**
+	 * The results of the argument that the hash table was built on, keyed on
+	 * the values of the key variables. Cleared when this iterator is closed,
+	 * which a time limit can do while another thread is probing the table.
+	 */
+	private volatile Map<List<Value>, List<BindingSet>> hashTable;
+
+	/**
+	 * The results of the argument that the hash table was built on that lack a
+	 * value for one of the key variables. Cleared after {@link #hashTable}.
+	 */
+	private volatile List<BindingSet> unkeyed;
+
+	/**
+	 * The results of the other argument.
+	 */
+	private CloseableIteration<BindingSet, QueryEvaluationException> probeIter;
+
+	private BindingSet probe;
+
+	private List<BindingSet> candidates = Collections.emptyList();
+
+	private int nextCandidate;
+
+	/**
+	 * Indicates whether the current candidates must be checked for
+	 * compatibility with the probe.
+	 */
+	private boolean verifyCandidates;
+
+	/**
+	 * The lists of candidates that the probe is compared with after the
+	 * current candidates.
+	 */
+	private Iterator<List<BindingSet>> candidateLists;
+
+	/**
+	 * The iteration that evaluates the right argument for a single result of
+	 * the left argument, when falling back to a nested loop.
+	 */
+	private CloseableIteration<BindingSet, QueryEvaluationException> nestedIter;
+
+	private SpillPartitions leftPartitions;
+
+	private SpillPartitions rightPartitions;
+
+	/**
+	 * The results of the left argument that lack a key value, when partitioned.
+	 */
+	private SpillFile leftUnkeyed;
+
+	/**
+	 * The results of the right argument that lack a key value, when
+	 * partitioned.
+	 */
+	private SpillFile rightUnkeyed;
+
+	/**
+	 * The pair of partitions to join next. The negative numbers stand for the
+	 * joins of the results that lack a key value with all results of the other
+	 * argument, which precede the joins of the partitions.
+	 */
+	private int nextPartition = -2;
+
+	private CloseableIteration<BindingSet, QueryEvaluationException> partitionIter;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new HashJoinIterator.
+	 *
+	 * @param strategy
+	 *        The strategy to evaluate the join's arguments with.
+	 * @param join
+	 *        The join to evaluate.
+	 * @param bindings
+	 *        The bindings to evaluate the join with.
+	 * @param spillThreshold
+	 *        The maximum number of results to hash in memory, or <tt>0</tt> to
+	 *        fall back to a nested loop rather than partition the results to
+	 *        disk when both arguments exceed {@link #MAX_BUILD_SIZE} results.
+	 * @param tempDir
+	 *        The directory to store the partitions in, or <tt>null</tt> to use
+	 *        the default temporary-file directory.
+	 */
+	public HashJoinIterator(EvaluationStrategy strategy, Join join, BindingSet bindings, int spillThreshold,
+			File tempDir)
+		throws QueryEvaluationException
+	{
+		this.strategy = strategy;
+		this.join = join;
+		this.spillThreshold = spillThreshold;
+		this.tempDir = tempDir;
+		this.level = 0;
+
+		Set<String> keyNames = join.getLeftArg().getAssuredBindingNames();
+		keyNames.retainAll(join.getRightArg().getAssuredBindingNames());
+		this.keyNames = keyNames.toArray(new String[keyNames.size()]);
+
+		Set<String> sharedNames = join.getLeftArg().getBindingNames();
+		sharedNames.retainAll(join.getRightArg().getBindingNames());
+		this.checkCompatibility = !keyNames.containsAll(sharedNames);
+
+		leftIter = strategy.evaluate(join.getLeftArg(), bindings);
+		try {
+			rightIter = strategy.evaluate(join.getRightArg(), bindings);
+		}
+		catch (QueryEvaluationException e) {
+			leftIter.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a HashJoinIterator that joins a pair of partitions.
+	 */
+	private HashJoinIterator(HashJoinIterator parent,
+			CloseableIteration<BindingSet, QueryEvaluationException> leftIter,
+			CloseableIteration<BindingSet, QueryEvaluationException> rightIter, int spillThreshold)
+	{
+		this.strategy = null;
+		this.join = null;
+		this.leftIter = leftIter;
+		this.rightIter = rightIter;
+		this.keyNames = parent.keyNames;
+		this.checkCompatibility = parent.checkCompatibility;
+		this.spillThreshold = spillThreshold;
+		this.tempDir = parent.tempDir;
+		this.level = parent.level + 1;
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	@Override
+	protected BindingSet getNextElement()
+		throws QueryEvaluationException
+	{
+		if (!initialized) {
+			initialized = true;
+			build();
+		}
+
+		// Read the unkeyed results first, as handleClose() clears them last
+		List<BindingSet> unkeyed = this.unkeyed;
+		Map<List<Value>, List<BindingSet>> hashTable = this.hashTable;
+
+		if (hashTable != null) {
+			return nextProbeResult(hashTable, unkeyed);
+		}
+		else if (isClosed()) {
+			return null;
+		}
+		else if (leftPartitions != null) {
+			return nextPartitionResult();
+		}
+		else {
+			return nextNestedLoopResult();
+		}
+	}
+
+	/**
+	 * Reads both arguments in turn until one of them has been exhausted, in
+	 * which case the hash table is built on it, or until both exceed the
+	 * maximum build size.
+	 */
+	private void build()
+		throws QueryEvaluationException
+	{
+		int maxBuildSize = getMaxBuildSize();
+
+		List<BindingSet> leftBuffer = new ArrayList<BindingSet>();
+		List<BindingSet> rightBuffer = new ArrayList<BindingSet>();
+
+		while (true) {
+			// Prefer the right argument for the hash table, which preserves the
+			// order of the left argument
+			if (!rightIter.hasNext()) {
+				buildHashTable(rightBuffer);
+				probeIter = concat(leftBuffer, leftIter);
+				return;
+			}
+			rightBuffer.add(rightIter.next());
+
+			if (!leftIter.hasNext()) {
+				buildHashTable(leftBuffer);
+				probeIter = concat(rightBuffer, rightIter);
+				return;
+			}
+			leftBuffer.add(leftIter.next());
+
+			if (rightBuffer.size() > maxBuildSize) {
+				break;
+			}
+		}
+
+		if (spillThreshold > 0 && keyNames.length > 0 || strategy == null) {
+			partition(leftBuffer, rightBuffer);
+		}
+		else {
+			// Evaluate the right argument for every result of the left argument
+			rightIter.close();
+			probeIter = concat(leftBuffer, leftIter);
+			nestedIter = new EmptyIteration<BindingSet, QueryEvaluationException>();
+		}
+	}
+
+	private int getMaxBuildSize() {
+		if (spillThreshold > 0) {
+			return spillThreshold;
+		}
+		else if (strategy == null) {
+			// Partitions that can not be partitioned again are hashed in full
+			return Integer.MAX_VALUE;
+		}
+		else {
+			return MAX_BUILD_SIZE;
+		}
+	}
+
+	private void buildHashTable(List<BindingSet> buildSide) {
+		Map<List<Value>, List<BindingSet>> hashTable = new HashMap<List<Value>, List<BindingSet>>();
+		List<BindingSet> unkeyed = new ArrayList<BindingSet>();
+
+		for (BindingSet bindingSet : buildSide) {
+			List<Value> key = getKey(bindingSet);
+
+			if (key == null) {
+				unkeyed.add(bindingSet);
+				continue;
+			}
+
+			List<BindingSet> values = hashTable.get(key);
+			if (values == null) {
+				values = new ArrayList<BindingSet>(1);
+				hashTable.put(key, values);
+			}
+			values.add(bindingSet);
+		}
+
+		if (!isClosed()) {
+			this.unkeyed = unkeyed;
+			this.hashTable = hashTable;
+		}
+	}
+
+	/**
+	 * Gets the values of the key variables of a binding set.
+	 *
+	 * @return The values, or <tt>null</tt> if the binding set lacks a value for
+	 *         one of the key variables.
+	 */
+	private List<Value> getKey(BindingSet bindingSet) {
+		Value[] values = new Value[keyNames.length];
+		for (int i = 0; i < keyNames.length; i++) {
+			values[i] = bindingSet.getValue(keyNames[i]);
+			if (values[i] == null) {
+				return null;
+			}
+		}
+		return Arrays.asList(values);
+	}
+
+	private BindingSet nextProbeResult(Map<List<Value>, List<BindingSet>> hashTable,
+			List<BindingSet> unkeyed)
+		throws QueryEvaluationException
+	{
+		if (hashTable.isEmpty() && unkeyed.isEmpty()) {
+			return null;
+		}
+
+		while (!isClosed()) {
+			while (nextCandidate < candidates.size()) {
+				BindingSet candidate = candidates.get(nextCandidate++);
+
+				if (!verifyCandidates || QueryResultUtil.bindingSetsCompatible(probe, candidate)) {
+					return merge(probe, candidate);
+				}
+			}
+
+			if (candidateLists != null && candidateLists.hasNext()) {
+				candidates = candidateLists.next();
+				nextCandidate = 0;
+				verifyCandidates = true;
+				continue;
+			}
+
+			if (!probeIter.hasNext()) {
+				return null;
+			}
+
+			probe = probeIter.next();
+			setCandidates(hashTable, unkeyed);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Determines the results that the current probe is compared with.
+	 */
+	private void setCandidates(Map<List<Value>, List<BindingSet>> hashTable, List<BindingSet> unkeyed) {
+		List<Value> key = getKey(probe);
+
+		if (key != null) {
+			candidates = hashTable.get(key);
+			if (candidates == null) {
+				candidates = Collections.emptyList();
+			}
+			verifyCandidates = checkCompatibility;
+
+			if (unkeyed.isEmpty()) {
+				candidateLists = null;
+			}
+			else {
+				candidateLists = Collections.singletonList(unkeyed).iterator();
+			}
+		}
+		else {
+			List<List<BindingSet>> lists = new ArrayList<List<BindingSet>>(hashTable.values());
+			lists.add(unkeyed);
+
+			candidates = Collections.emptyList();
+			candidateLists = lists.iterator();
+		}
+
+		nextCandidate = 0;
+	}
+
+	/**
+	 * Merges two compatible binding sets.
+	 */
+	private BindingSet merge(BindingSet bindingSet1, BindingSet bindingSet2) {
+		QueryBindingSet result = new QueryBindingSet(bindingSet1);
+
+		// Shared variables are bound to the same value in both
+		if (bindingSet2 instanceof QueryBindingSet) {
+			result.addAll(bindingSet2);
+		}
+		else {
+			for (Binding binding : bindingSet2) {
+				result.setBinding(binding);
+			}
+		}
+
+		return result;
+	}
+
+	private BindingSet nextNestedLoopResult()
+		throws QueryEvaluationException
+	{
+		while (true) {
+			if (nestedIter.hasNext()) {
+				// Not all expressions include the bindings they are evaluated with
+				return merge(probe, nestedIter.next());
+			}
+
+			nestedIter.close();
+
+			if (!probeIter.hasNext()) {
+				return null;
+			}
+
+			probe = probeIter.next();
+			nestedIter = strategy.evaluate(join.getRightArg(), probe);
+		}
+	}
+
+	/**
+	 * Partitions the results of both arguments to disk on the values of their
+	 * keys.
+	 */
+	private void partition(List<BindingSet> leftBuffer, List<BindingSet> rightBuffer)
+		throws QueryEvaluationException
+	{
+		leftPartitions = new SpillPartitions(level, tempDir, "hashjoin");
+		rightPartitions = new SpillPartitions(level, tempDir, "hashjoin");
+		leftUnkeyed = new SpillFile(tempDir, "hashjoin");
+		rightUnkeyed = new SpillFile(tempDir, "hashjoin");
+
+		addAll(leftPartitions, leftUnkeyed, concat(leftBuffer, leftIter));
+		addAll(rightPartitions, rightUnkeyed, concat(rightBuffer, rightIter));
+	}
+
+	private void addAll(SpillPartitions partitions, SpillFile unkeyed,
+			CloseableIteration<BindingSet, QueryEvaluationException> iter)
+		throws QueryEvaluationException
+	{
+		try {
+			while (iter.hasNext()) {
+				BindingSet bindingSet = iter.next();
+				List<Value> key = getKey(bindingSet);
+
+				if (key != null) {
+					partitions.add(key.hashCode(), bindingSet);
+				}
+				else {
+					unkeyed.add(bindingSet);
+				}
+			}
+		}
+		finally {
+			iter.close();
+		}
+	}
+
+	private BindingSet nextPartitionResult()
+		throws QueryEvaluationException
+	{
+		while (true) {
+			if (partitionIter != null) {
+				if (partitionIter.hasNext()) {
+					return partitionIter.next();
+				}
+
+				partitionIter.close();
+				partitionIter = null;
+
+				if (nextPartition > 0) {
+					leftPartitions.get(nextPartition - 1).delete();
+					rightPartitions.get(nextPartition - 1).delete();
+				}
+			}
+
+			if (nextPartition >= leftPartitions.size()) {
+				return null;
+			}
+
+			partitionIter = joinPartitions(nextPartition++);
+		}
+	}
+
+	/**
+	 * Joins a pair of partitions.
+	 *
+	 * @return The results of the join, or <tt>null</tt> if one of the
+	 *         partitions is empty.
+	 */
+	private CloseableIteration<BindingSet, QueryEvaluationException> joinPartitions(int partition)
+		throws QueryEvaluationException
+	{
+		if (partition == -2) {
+			if (leftUnkeyed.isEmpty()) {
+				return null;
+			}
+
+			List<CloseableIteration<BindingSet, QueryEvaluationException>> right = readAll(rightPartitions);
+			right.add(rightUnkeyed.read());
+			return new HashJoinIterator(this, leftUnkeyed.read(), union(right), 0);
+		}
+		else if (partition == -1) {
+			if (rightUnkeyed.isEmpty()) {
+				return null;
+			}
+
+			return new HashJoinIterator(this, union(readAll(leftPartitions)), rightUnkeyed.read(), 0);
+		}
+
+		SpillFile leftPartition = leftPartitions.get(partition);
+		SpillFile rightPartition = rightPartitions.get(partition);
+
+		if (leftPartition.isEmpty() || rightPartition.isEmpty()) {
+			return null;
+		}
+
+		int threshold = leftPartitions.canRepartition() ? spillThreshold : 0;
+		return new HashJoinIterator(this, leftPartition.read(), rightPartition.read(), threshold);
+	}
+
+	private List<CloseableIteration<BindingSet, QueryEvaluationException>> readAll(
+			SpillPartitions partitions)
+		throws QueryEvaluationException
+	{
+		List<CloseableIteration<BindingSet, QueryEvaluationException>> result = new ArrayList<CloseableIteration<BindingSet, QueryEvaluationException>>();
+		for (int i = 0; i < partitions.size(); i++) {
+			if (!partitions.get(i).isEmpty()) {
+				result.add(partitions.get(i).read());
+			}
+		}
+		return result;
+	}
+
+	private CloseableIteration<BindingSet, QueryEvaluationException> union(
+			List<CloseableIteration<BindingSet, QueryEvaluationException>> iters)
+	{
+		return new UnionIteration<BindingSet, QueryEvaluationException>(iters);
+	}
+
+	private CloseableIteration<BindingSet, QueryEvaluationException> concat(List<BindingSet> buffer,
+			CloseableIteration<BindingSet, QueryEvaluationException> iter)
+	{
+		if (buffer.isEmpty()) {
+			return iter;
+		}
+
+		return new UnionIteration<BindingSet, QueryEvaluationException>(
+				new CloseableIteratorIteration<BindingSet, QueryEvaluationException>(buffer.iterator()), iter);
+	}
+
+	@Override
+	protected void handleClose()
+		throws QueryEvaluationException
+	{
+		try {
+			super.handleClose();
+			leftIter.close();
+			rightIter.close();
+
+			if (probeIter != null) {
+				probeIter.close();
+			}
+			if (nestedIter != null) {
+				nestedIter.close();
+			}
+			if (partitionIter != null) {
+				partitionIter.close();
+			}
+		}
+		finally {
+			hashTable = null;
+			unkeyed = null;
+
+			if (leftPartitions != null) {
+				leftPartitions.delete();
+				rightPartitions.delete();
+				leftUnkeyed.delete();
+				rightUnkeyed.delete();
+			}
+		}
+	}
+}
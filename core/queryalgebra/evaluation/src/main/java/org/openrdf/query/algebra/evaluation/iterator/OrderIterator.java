@@ -5,25 +5,42 @@
  */
 package org.openrdf.query.algebra.evaluation.iterator;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.TreeMap;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
 import info.aduna.iteration.DelayedIteration;
 import info.aduna.iteration.Iteration;
 import info.aduna.iteration.LookAheadIteration;
 
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.util.SpillFile;
 
 /**
  * Sorts the input and optionally applies limit and distinct.
- * 
+ * <p>
+ * If a spill threshold has been specified, at most that number of solutions is
+ * kept in memory. When the threshold is reached, the buffered solutions are
+ * sorted and written to a temporary file in the binary query result format.
+ * The sorted runs are merged when the results are read. Small limits are
+ * applied while reading the input, without buffering all solutions.
+ *
  * @author James Leigh
  * @author Arjohn Kampman
  */
@@ -33,6 +50,8 @@ public class OrderIterator extends DelayedIteration<BindingSet, QueryEvaluationE
 	 * Variables *
 	 *-----------*/
 
+	private final Logger logger = LoggerFactory.getLogger(OrderIterator.class);
+
 	private final CloseableIteration<BindingSet, QueryEvaluationException> iter;
 
 	private final Comparator<BindingSet> comparator;
@@ -41,6 +60,15 @@ public class OrderIterator extends DelayedIteration<BindingSet, QueryEvaluationE
 
 	private final boolean distinct;
 
+	private final int spillThreshold;
+
+	private final File tempDir;
+
+	/**
+	 * The sorted runs that have been spilled to disk.
+	 */
+	private final List<SpillFile> runFiles = new ArrayList<SpillFile>();
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -53,11 +81,29 @@ public class OrderIterator extends DelayedIteration<BindingSet, QueryEvaluationE
 
 	public OrderIterator(CloseableIteration<BindingSet, QueryEvaluationException> iter,
 			Comparator<BindingSet> comparator, long limit, boolean distinct)
+	{
+		this(iter, comparator, limit, distinct, 0, null);
+	}
+
+	/**
+	 * Creates a new OrderIterator.
+	 *
+	 * @param spillThreshold
+	 *        The maximum number of solutions to sort in memory, or <tt>0</tt> to
+	 *        sort all solutions in memory.
+	 * @param tempDir
+	 *        The directory to store the sorted runs in, or <tt>null</tt> to use
+	 *        the default temporary-file directory.
+	 */
+	public OrderIterator(CloseableIteration<BindingSet, QueryEvaluationException> iter,
+			Comparator<BindingSet> comparator, long limit, boolean distinct, int spillThreshold, File tempDir)
 	{
 		this.iter = iter;
 		this.comparator = comparator;
 		this.limit = limit;
 		this.distinct = distinct;
+		this.spillThreshold = spillThreshold;
+		this.tempDir = tempDir;
 	}
 
 	/*---------*
@@ -66,6 +112,45 @@ public class OrderIterator extends DelayedIteration<BindingSet, QueryEvaluationE
 
 	protected Iteration<BindingSet, QueryEvaluationException> createIteration()
 		throws QueryEvaluationException
+	{
+		if (limit < Integer.MAX_VALUE && (spillThreshold <= 0 || limit <= spillThreshold)) {
+			return createTopNIteration();
+		}
+
+		List<BindingSet> buffer = new ArrayList<BindingSet>();
+
+		try {
+			while (iter.hasNext()) {
+				buffer.add(iter.next());
+
+				if (spillThreshold > 0 && buffer.size() >= spillThreshold) {
+					spill(buffer);
+					buffer.clear();
+				}
+			}
+		}
+		finally {
+			iter.close();
+		}
+
+		Collections.sort(buffer, comparator);
+
+		Iteration<BindingSet, QueryEvaluationException> sorted;
+		if (runFiles.isEmpty()) {
+			sorted = new CloseableIteratorIteration<BindingSet, QueryEvaluationException>(buffer.iterator());
+		}
+		else {
+			sorted = new MergeIteration(buffer);
+		}
+
+		return new SliceIteration(sorted);
+	}
+
+	/**
+	 * Keeps the first <tt>limit</tt> solutions of the input in a sorted map.
+	 */
+	private Iteration<BindingSet, QueryEvaluationException> createTopNIteration()
+		throws QueryEvaluationException
 	{
 		TreeMap<BindingSet, Collection<BindingSet>> map;
 		map = new TreeMap<BindingSet, Collection<BindingSet>>(comparator);
@@ -139,6 +224,25 @@ public class OrderIterator extends DelayedIteration<BindingSet, QueryEvaluationE
 		};
 	}
 
+	/**
+	 * Sorts the buffered solutions and writes them to a new temporary file.
+	 */
+	private void spill(List<BindingSet> buffer)
+		throws QueryEvaluationException
+	{
+		Collections.sort(buffer, comparator);
+
+		logger.debug("Writing {} sorted solutions to disk", buffer.size());
+
+		// Write the run as a single segment
+		SpillFile file = new SpillFile(tempDir, "order", buffer.size());
+		runFiles.add(file);
+
+		for (BindingSet bindingSet : buffer) {
+			file.add(bindingSet);
+		}
+	}
+
 	@Override
 	public void remove()
 		throws QueryEvaluationException
@@ -150,7 +254,203 @@ public class OrderIterator extends DelayedIteration<BindingSet, QueryEvaluationE
 	protected void handleClose()
 		throws QueryEvaluationException
 	{
-		iter.close();
-		super.handleClose();
+		try {
+			iter.close();
+			super.handleClose();
+		}
+		finally {
+			for (SpillFile file : runFiles) {
+				file.delete();
+			}
+			runFiles.clear();
+		}
+	}
+
+	/*----------------------------*
+	 * Inner class SliceIteration *
+	 *----------------------------*/
+
+	/**
+	 * Applies the limit and distinct to the sorted solutions. Duplicates are
+	 * only removed among solutions that are equal according to the comparator,
+	 * which are adjacent in the sorted sequence.
+	 */
+	private class SliceIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+		private final Iteration<BindingSet, QueryEvaluationException> sorted;
+
+		private final Set<BindingSet> group = new HashSet<BindingSet>();
+
+		private BindingSet groupKey;
+
+		private long count = 0;
+
+		public SliceIteration(Iteration<BindingSet, QueryEvaluationException> sorted) {
+			this.sorted = sorted;
+		}
+
+		@Override
+		protected BindingSet getNextElement()
+			throws QueryEvaluationException
+		{
+			while (count < limit && sorted.hasNext()) {
+				BindingSet next = sorted.next();
+
+				if (distinct) {
+					if (groupKey == null || comparator.compare(groupKey, next) != 0) {
+						group.clear();
+						groupKey = next;
+					}
+					if (!group.add(next)) {
+						continue;
+					}
+				}
+
+				count++;
+				return next;
+			}
+
+			return null;
+		}
+
+		@Override
+		protected void handleClose()
+			throws QueryEvaluationException
+		{
+			try {
+				super.handleClose();
+			}
+			finally {
+				if (sorted instanceof CloseableIteration<?, ?>) {
+					((CloseableIteration<?, QueryEvaluationException>)sorted).close();
+				}
+			}
+		}
+	}
+
+	/*----------------------------*
+	 * Inner class MergeIteration *
+	 *----------------------------*/
+
+	/**
+	 * Merges the sorted runs that have been written to disk and the sorted
+	 * solutions that are still in memory. Equal solutions are returned in the
+	 * order of the runs, which keeps the sort stable.
+	 */
+	private class MergeIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+		private final List<Run> runs = new ArrayList<Run>();
+
+		private final PriorityQueue<Run> queue;
+
+		public MergeIteration(List<BindingSet> buffer)
+			throws QueryEvaluationException
+		{
+			queue = new PriorityQueue<Run>(runFiles.size() + 1, new Comparator<Run>() {
+
+				public int compare(Run r1, Run r2) {
+					int result = comparator.compare(r1.head, r2.head);
+					if (result == 0) {
+						result = r1.index - r2.index;
+					}
+					return result;
+				}
+			});
+
+			try {
+				for (SpillFile file : runFiles) {
+					addRun(new Run(runs.size(), file.read()));
+				}
+			}
+			catch (QueryEvaluationException e) {
+				handleClose();
+				throw e;
+			}
+
+			addRun(new Run(runs.size(), new CloseableIteratorIteration<BindingSet, QueryEvaluationException>(
+					buffer.iterator())));
+		}
+
+		private void addRun(Run run)
+			throws QueryEvaluationException
+		{
+			runs.add(run);
+			if (run.advance()) {
+				queue.add(run);
+			}
+		}
+
+		@Override
+		protected BindingSet getNextElement()
+			throws QueryEvaluationException
+		{
+			Run run = queue.poll();
+
+			if (run == null) {
+				return null;
+			}
+
+			BindingSet result = run.head;
+
+			if (run.advance()) {
+				queue.add(run);
+			}
+
+			return result;
+		}
+
+		@Override
+		protected void handleClose()
+			throws QueryEvaluationException
+		{
+			try {
+				super.handleClose();
+			}
+			finally {
+				for (Run run : runs) {
+					run.solutions.close();
+				}
+				queue.clear();
+			}
+		}
+	}
+
+	/*-----------------*
+	 * Inner class Run *
+	 *-----------------*/
+
+	/**
+	 * A sorted run of solutions and the solution that is currently at its head.
+	 */
+	private static class Run {
+
+		private final int index;
+
+		private final CloseableIteration<BindingSet, QueryEvaluationException> solutions;
+
+		private BindingSet head;
+
+		public Run(int index, CloseableIteration<BindingSet, QueryEvaluationException> solutions) {
+			this.index = index;
+			this.solutions = solutions;
+		}
+
+		/**
+		 * Moves the head of this run to the next solution.
+		 *
+		 * @return <tt>false</tt> if the run has been exhausted.
+		 */
+		public boolean advance()
+			throws QueryEvaluationException
+		{
+			if (!solutions.hasNext()) {
+				head = null;
+				solutions.close();
+				return false;
+			}
+
+			head = solutions.next();
+			return true;
+		}
 	}
 }
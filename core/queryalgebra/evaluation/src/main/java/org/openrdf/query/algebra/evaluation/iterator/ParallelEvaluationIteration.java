@@ -0,0 +1,325 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+
+/**
+ * Evaluates a number of tuple expressions concurrently on an executor and
+ * returns the union of their results, in the order in which they are
+ * produced. Each expression is evaluated by a separate task that puts its
+ * results on a bounded queue, so that the tasks block when the consumer falls
+ * behind.
+ * <p>
+ * Tasks are stopped by closing this iteration. They check for this after each
+ * result rather than being interrupted, as interrupting a thread that is
+ * reading from a file channel closes the channel. Closing waits for the running
+ * tasks to close their iterations. Expressions that are evaluated by a task do
+ * not start new tasks themselves (see {@link #isWorkerThread()}), so that tasks
+ * never wait for other tasks of the same executor.
+ */
+public class ParallelEvaluationIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	/**
+	 * The maximum number of results that are buffered.
+	 */
+	public static final int QUEUE_CAPACITY = 256;
+
+	/**
+	 * The interval at which blocked tasks check whether the iteration has been
+	 * closed, in milliseconds.
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * Marks the end of the results of a task.
+	 */
+	private static final Object END_OF_TASK = new Object();
+
+	private static final ThreadLocal<Boolean> worker = new ThreadLocal<Boolean>();
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final EvaluationStrategy strategy;
+
+	private final BindingSet bindings;
+
+	private final List<Task> tasks;
+
+	private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+
+	private final CountDownLatch finishedTasks;
+
+	private volatile boolean closed = false;
+
+	private volatile Throwable exception;
+
+	/**
+	 * The number of tasks whose results have all been returned.
+	 */
+	private int endedTasks = 0;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new ParallelEvaluationIteration and submits the evaluation of
+	 * the expressions to the executor.
+	 *
+	 * @param strategy
+	 *        The strategy to evaluate the expressions with.
+	 * @param executor
+	 *        The executor to evaluate the expressions on.
+	 * @param args
+	 *        The expressions to evaluate.
+	 * @param bindings
+	 *        The bindings to evaluate the expressions with.
+	 * @throws QueryEvaluationException
+	 *         If the executor rejected the tasks.
+	 */
+	public ParallelEvaluationIteration(EvaluationStrategy strategy, ExecutorService executor,
+			List<? extends TupleExpr> args, BindingSet bindings)
+		throws QueryEvaluationException
+	{
+		this.strategy = strategy;
+		this.bindings = bindings;
+		this.tasks = new ArrayList<Task>(args.size());
+		this.finishedTasks = new CountDownLatch(args.size());
+
+		for (TupleExpr arg : args) {
+			tasks.add(new Task(arg));
+		}
+
+		try {
+			for (Task task : tasks) {
+				executor.execute(task);
+			}
+		}
+		catch (RejectedExecutionException e) {
+			close();
+			throw new QueryEvaluationException("Unable to start parallel evaluation", e);
+		}
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Checks whether the current thread is evaluating an expression for a
+	 * ParallelEvaluationIteration.
+	 */
+	public static boolean isWorkerThread() {
+		return worker.get() != null;
+	}
+
+	@Override
+	protected BindingSet getNextElement()
+		throws QueryEvaluationException
+	{
+		while (endedTasks < tasks.size()) {
+			Object next;
+			try {
+				next = queue.take();
+			}
+			catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new QueryEvaluationException(e);
+			}
+
+			if (next == END_OF_TASK) {
+				endedTasks++;
+				checkException();
+			}
+			else {
+				return (BindingSet)next;
+			}
+		}
+
+		return null;
+	}
+
+	private void checkException()
+		throws QueryEvaluationException
+	{
+		Throwable e = exception;
+
+		if (e instanceof QueryEvaluationException) {
+			throw new QueryEvaluationException(e.getMessage(), e);
+		}
+		else if (e instanceof RuntimeException) {
+			throw (RuntimeException)e;
+		}
+		else if (e instanceof Error) {
+			throw (Error)e;
+		}
+		else if (e != null) {
+			throw new QueryEvaluationException(e);
+		}
+	}
+
+	@Override
+	protected void handleClose()
+		throws QueryEvaluationException
+	{
+		closed = true;
+
+		try {
+			super.handleClose();
+		}
+		finally {
+			for (Task task : tasks) {
+				task.cancel();
+			}
+
+			// Unblock tasks that are waiting for room in the queue
+			queue.clear();
+
+			boolean interrupted = false;
+			while (true) {
+				try {
+					finishedTasks.await();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			queue.clear();
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Puts an element on the queue, waiting for room to become available.
+	 *
+	 * @return <tt>false</tt> if the iteration was closed before the element
+	 *         could be added.
+	 */
+	private boolean put(Object element)
+		throws InterruptedException
+	{
+		while (!closed) {
+			if (queue.offer(element, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/*------------------*
+	 * Inner class Task *
+	 *------------------*/
+
+	/**
+	 * Evaluates one of the expressions.
+	 */
+	private class Task implements Runnable {
+
+		private static final int PENDING = 0;
+
+		private static final int RUNNING = 1;
+
+		private static final int FINISHED = 2;
+
+		private final TupleExpr arg;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		public Task(TupleExpr arg) {
+			this.arg = arg;
+		}
+
+		public void run() {
+			if (!state.compareAndSet(PENDING, RUNNING)) {
+				// Cancelled before it was started
+				return;
+			}
+
+			worker.set(Boolean.TRUE);
+			try {
+				evaluate();
+			}
+			finally {
+				worker.remove();
+				state.set(FINISHED);
+				finishedTasks.countDown();
+			}
+		}
+
+		private void evaluate() {
+			try {
+				CloseableIteration<BindingSet, QueryEvaluationException> iter = strategy.evaluate(arg, bindings);
+				try {
+					while (!closed && iter.hasNext()) {
+						if (!put(iter.next())) {
+							break;
+						}
+					}
+				}
+				finally {
+					iter.close();
+				}
+			}
+			catch (InterruptedException e) {
+				exception = e;
+			}
+			catch (Throwable e) {
+				if (exception == null) {
+					exception = e;
+				}
+			}
+
+			try {
+				put(END_OF_TASK);
+			}
+			catch (InterruptedException e) {
+				// the consumer is waiting for this task's end, keep trying
+				while (!closed && !queue.offer(END_OF_TASK)) {
+					Thread.yield();
+				}
+			}
+		}
+
+		/**
+		 * Prevents this task from running if it has not been started yet.
+		 */
+		public void cancel() {
+			if (state.compareAndSet(PENDING, FINISHED)) {
+				finishedTasks.countDown();
+			}
+		}
+	}
+}
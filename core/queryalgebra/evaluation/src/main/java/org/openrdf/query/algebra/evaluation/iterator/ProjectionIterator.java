@@ -37,7 +37,9 @@ public class ProjectionIterator extends ConvertingIteration<BindingSet, BindingS
 	{
 		super(iter);
 		this.projection = projection;
-		this.parentBindings = parentBindings;
+		// Copy the parent bindings once, so that all results share the slots of
+		// the projected variables
+		this.parentBindings = new QueryBindingSet(parentBindings);
 	}
 
 	/*---------*
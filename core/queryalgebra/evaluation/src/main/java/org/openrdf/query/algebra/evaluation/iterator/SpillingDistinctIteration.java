@@ -0,0 +1,166 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.util.SpillFile;
+import org.openrdf.query.algebra.evaluation.util.SpillPartitions;
+
+/**
+ * Filters duplicate solutions from its input, keeping at most a fixed number
+ * of distinct solutions in memory.
+ * <p>
+ * Solutions are returned as soon as they are read until the threshold is
+ * reached. From then on, solutions that have not been seen before are
+ * partitioned to disk by their hash code. Duplicates of the solutions in
+ * memory are still filtered directly. When the input has been exhausted, each
+ * partition is processed on its own, which partitions it again if it too
+ * exceeds the threshold. Solutions that are partitioned to disk are returned
+ * after all other solutions, so the order of the input is only preserved if
+ * the threshold is not reached.
+ */
+public class SpillingDistinctIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final CloseableIteration<BindingSet, QueryEvaluationException> iter;
+
+	private final int spillThreshold;
+
+	private final File tempDir;
+
+	private final int level;
+
+	/**
+	 * The solutions that have already been returned.
+	 */
+	private final Set<BindingSet> excludeSet = new HashSet<BindingSet>();
+
+	private SpillPartitions partitions;
+
+	private int nextPartition = 0;
+
+	private CloseableIteration<BindingSet, QueryEvaluationException> partitionIter;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new SpillingDistinctIteration.
+	 *
+	 * @param iter
+	 *        The underlying iteration.
+	 * @param spillThreshold
+	 *        The maximum number of distinct solutions to keep in memory, or
+	 *        <tt>0</tt> to keep all of them in memory.
+	 * @param tempDir
+	 *        The directory to store the partitions in, or <tt>null</tt> to use
+	 *        the default temporary-file directory.
+	 */
+	public SpillingDistinctIteration(CloseableIteration<BindingSet, QueryEvaluationException> iter,
+			int spillThreshold, File tempDir)
+	{
+		this(iter, spillThreshold, tempDir, 0);
+	}
+
+	private SpillingDistinctIteration(CloseableIteration<BindingSet, QueryEvaluationException> iter,
+			int spillThreshold, File tempDir, int level)
+	{
+		this.iter = iter;
+		this.spillThreshold = spillThreshold;
+		this.tempDir = tempDir;
+		this.level = level;
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	@Override
+	protected BindingSet getNextElement()
+		throws QueryEvaluationException
+	{
+		while (iter.hasNext()) {
+			BindingSet next = iter.next();
+
+			if (excludeSet.contains(next)) {
+				continue;
+			}
+
+			if (partitions == null && spillThreshold > 0 && excludeSet.size() >= spillThreshold) {
+				partitions = new SpillPartitions(level, tempDir, "distinct");
+			}
+
+			if (partitions == null) {
+				excludeSet.add(next);
+				return next;
+			}
+
+			partitions.add(next.hashCode(), next);
+		}
+
+		if (partitions == null) {
+			return null;
+		}
+
+		// The solutions in the partitions differ from the ones in memory
+		excludeSet.clear();
+
+		while (true) {
+			if (partitionIter != null) {
+				if (partitionIter.hasNext()) {
+					return partitionIter.next();
+				}
+
+				partitionIter.close();
+				partitionIter = null;
+				partitions.get(nextPartition - 1).delete();
+			}
+
+			if (nextPartition >= partitions.size()) {
+				return null;
+			}
+
+			SpillFile partition = partitions.get(nextPartition++);
+			if (!partition.isEmpty()) {
+				int threshold = partitions.canRepartition() ? spillThreshold : 0;
+				partitionIter = new SpillingDistinctIteration(partition.read(), threshold, tempDir, level + 1);
+			}
+		}
+	}
+
+	@Override
+	protected void handleClose()
+		throws QueryEvaluationException
+	{
+		try {
+			super.handleClose();
+			iter.close();
+
+			if (partitionIter != null) {
+				partitionIter.close();
+			}
+		}
+		finally {
+			excludeSet.clear();
+
+			if (partitions != null) {
+				partitions.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.util.SpillFile;
+import org.openrdf.query.algebra.evaluation.util.SpillPartitions;
+
+/**
+ * An Iteration that returns the results of the left argument minus the results
+ * that are compatible with, and share at least one variable with, a result of
+ * the right argument, like {@link SPARQLMinusIteration}, while keeping at most
+ * a fixed number of results of the right argument in memory.
+ * <p>
+ * The results of the right argument are indexed on the variables that all of
+ * them bind. If they do not fit in memory, both arguments are partitioned to
+ * disk on the values of these variables, Grace hash join style, and the
+ * partitions are processed one by one. Results that do not bind all of the
+ * variables can be compatible with results in any partition; they are stored
+ * separately and compared to all partitions. A partition that exceeds the
+ * threshold is read in chunks of the threshold's size, comparing the left
+ * partition to each chunk in turn. Results from the left argument are returned
+ * in partition order once they have been partitioned.
+ */
+public class SpillingMinusIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final CloseableIteration<BindingSet, QueryEvaluationException> leftArg;
+
+	private final CloseableIteration<BindingSet, QueryEvaluationException> rightArg;
+
+	private final int spillThreshold;
+
+	private final File tempDir;
+
+	private boolean initialized = false;
+
+	/**
+	 * The results of the right argument, if they fit in memory.
+	 */
+	private ExcludeIndex excludeIndex;
+
+	/**
+	 * The variables that the results are partitioned on.
+	 */
+	private List<String> keyNames;
+
+	private SpillPartitions leftPartitions;
+
+	private SpillPartitions rightPartitions;
+
+	/**
+	 * The results of the left argument that do not bind all key variables.
+	 */
+	private SpillFile leftUnkeyed;
+
+	/**
+	 * The results of the right argument that do not bind all key variables.
+	 */
+	private SpillFile rightUnkeyed;
+
+	/**
+	 * The positions of the results in {@link #leftUnkeyed} that have been found
+	 * to be compatible with a result of the right argument.
+	 */
+	private BitSet unkeyedExcluded;
+
+	private int nextPartition = 0;
+
+	private boolean unkeyedReturned = false;
+
+	private CloseableIteration<BindingSet, QueryEvaluationException> partitionIter;
+
+	private BitSet partitionExcluded;
+
+	private int partitionPos;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new SpillingMinusIteration.
+	 *
+	 * @param leftArg
+	 *        An Iteration containing the main set of elements.
+	 * @param rightArg
+	 *        An Iteration containing the set of elements that should be filtered
+	 *        from the main set.
+	 * @param spillThreshold
+	 *        The maximum number of results of the right argument to keep in
+	 *        memory, or <tt>0</tt> to keep all of them in memory.
+	 * @param tempDir
+	 *        The directory to store the partitions in, or <tt>null</tt> to use
+	 *        the default temporary-file directory.
+	 */
+	public SpillingMinusIteration(CloseableIteration<BindingSet, QueryEvaluationException> leftArg,
+			CloseableIteration<BindingSet, QueryEvaluationException> rightArg, int spillThreshold, File tempDir)
+	{
+		this.leftArg = leftArg;
+		this.rightArg = rightArg;
+		this.spillThreshold = spillThreshold;
+		this.tempDir = tempDir;
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	@Override
+	protected BindingSet getNextElement()
+		throws QueryEvaluationException
+	{
+		if (!initialized) {
+			initialize();
+			initialized = true;
+		}
+
+		if (excludeIndex != null) {
+			while (leftArg.hasNext()) {
+				BindingSet next = leftArg.next();
+				if (!excludeIndex.excludes(next)) {
+					return next;
+				}
+			}
+			return null;
+		}
+
+		while (true) {
+			if (partitionIter != null) {
+				while (partitionIter.hasNext()) {
+					BindingSet next = partitionIter.next();
+					if (!partitionExcluded.get(partitionPos++)) {
+						return next;
+					}
+				}
+
+				partitionIter.close();
+				partitionIter = null;
+			}
+
+			if (nextPartition < leftPartitions.size()) {
+				startPartition(nextPartition++);
+			}
+			else if (!unkeyedReturned) {
+				unkeyedReturned = true;
+				startOutput(leftUnkeyed, unkeyedExcluded);
+			}
+			else {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Reads the right argument and, if it does not fit in memory, partitions
+	 * both arguments to disk.
+	 */
+	private void initialize()
+		throws QueryEvaluationException
+	{
+		List<BindingSet> buffer = new ArrayList<BindingSet>();
+
+		try {
+			while (rightArg.hasNext()) {
+				BindingSet next = rightArg.next();
+
+				if (rightPartitions != null) {
+					partition(next, rightPartitions, rightUnkeyed);
+				}
+				else {
+					buffer.add(next);
+
+					if (spillThreshold > 0 && buffer.size() > spillThreshold) {
+						startSpilling(buffer);
+						buffer = null;
+					}
+				}
+			}
+		}
+		finally {
+			rightArg.close();
+		}
+
+		if (rightPartitions == null) {
+			excludeIndex = new ExcludeIndex(buffer);
+			return;
+		}
+
+		try {
+			while (leftArg.hasNext()) {
+				partition(leftArg.next(), leftPartitions, leftUnkeyed);
+			}
+		}
+		finally {
+			leftArg.close();
+		}
+
+		unkeyedExcluded = new BitSet();
+		exclude(leftUnkeyed, rightUnkeyed, unkeyedExcluded);
+	}
+
+	private void startSpilling(List<BindingSet> buffer)
+		throws QueryEvaluationException
+	{
+		keyNames = getCommonBindingNames(buffer);
+
+		leftPartitions = new SpillPartitions(0, tempDir, "minus");
+		rightPartitions = new SpillPartitions(0, tempDir, "minus");
+		leftUnkeyed = new SpillFile(tempDir, "minus");
+		rightUnkeyed = new SpillFile(tempDir, "minus");
+
+		for (BindingSet bindingSet : buffer) {
+			partition(bindingSet, rightPartitions, rightUnkeyed);
+		}
+	}
+
+	private void partition(BindingSet bindingSet, SpillPartitions partitions, SpillFile unkeyed)
+		throws QueryEvaluationException
+	{
+		List<Value> key = getKey(bindingSet, keyNames);
+
+		if (key != null) {
+			partitions.add(key.hashCode(), bindingSet);
+		}
+		else {
+			unkeyed.add(bindingSet);
+		}
+	}
+
+	/**
+	 * Compares the left results of a partition to the right results that they
+	 * can be compatible with and starts returning the remaining ones.
+	 */
+	private void startPartition(int partition)
+		throws QueryEvaluationException
+	{
+		SpillFile left = leftPartitions.get(partition);
+		SpillFile right = rightPartitions.get(partition);
+
+		BitSet excluded = new BitSet();
+		exclude(left, right, excluded);
+		exclude(left, rightUnkeyed, excluded);
+		exclude(leftUnkeyed, right, unkeyedExcluded);
+		right.delete();
+
+		startOutput(left, excluded);
+	}
+
+	private void startOutput(SpillFile left, BitSet excluded)
+		throws QueryEvaluationException
+	{
+		if (!left.isEmpty()) {
+			partitionIter = left.read();
+			partitionExcluded = excluded;
+			partitionPos = 0;
+		}
+	}
+
+	/**
+	 * Marks the left results that are compatible with a right result as
+	 * excluded. The right results are read in chunks that fit in memory.
+	 */
+	private void exclude(SpillFile left, SpillFile right, BitSet excluded)
+		throws QueryEvaluationException
+	{
+		if (left.isEmpty() || right.isEmpty()) {
+			return;
+		}
+
+		CloseableIteration<BindingSet, QueryEvaluationException> rightIter = right.read();
+		try {
+			List<BindingSet> chunk = new ArrayList<BindingSet>();
+
+			while (rightIter.hasNext()) {
+				chunk.add(rightIter.next());
+
+				if (chunk.size() >= spillThreshold || !rightIter.hasNext()) {
+					exclude(left, new ExcludeIndex(chunk), excluded);
+					chunk = new ArrayList<BindingSet>();
+				}
+			}
+		}
+		finally {
+			rightIter.close();
+		}
+	}
+
+	private void exclude(SpillFile left, ExcludeIndex index, BitSet excluded)
+		throws QueryEvaluationException
+	{
+		CloseableIteration<BindingSet, QueryEvaluationException> leftIter = left.read();
+		try {
+			for (int pos = 0; leftIter.hasNext(); pos++) {
+				BindingSet next = leftIter.next();
+				if (!excluded.get(pos) && index.excludes(next)) {
+					excluded.set(pos);
+				}
+			}
+		}
+		finally {
+			leftIter.close();
+		}
+	}
+
+	@Override
+	protected void handleClose()
+		throws QueryEvaluationException
+	{
+		try {
+			super.handleClose();
+			leftArg.close();
+			rightArg.close();
+
+			if (partitionIter != null) {
+				partitionIter.close();
+			}
+		}
+		finally {
+			excludeIndex = null;
+
+			if (leftPartitions != null) {
+				leftPartitions.delete();
+				rightPartitions.delete();
+				leftUnkeyed.delete();
+				rightUnkeyed.delete();
+			}
+		}
+	}
+
+	/**
+	 * Gets the names of the bindings that all of the specified binding sets
+	 * have.
+	 */
+	private static List<String> getCommonBindingNames(List<BindingSet> bindingSets) {
+		List<String> result = new ArrayList<String>();
+
+		if (!bindingSets.isEmpty()) {
+			result.addAll(bindingSets.get(0).getBindingNames());
+			for (BindingSet bindingSet : bindingSets) {
+				result.retainAll(bindingSet.getBindingNames());
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Gets the values of the specified bindings.
+	 *
+	 * @return The values, or <tt>null</tt> if there are no names or if not all
+	 *         of them are bound.
+	 */
+	private static List<Value> getKey(BindingSet bindingSet, List<String> names) {
+		if (names.isEmpty()) {
+			return null;
+		}
+
+		List<Value> key = new ArrayList<Value>(names.size());
+
+		for (String name : names) {
+			Value value = bindingSet.getValue(name);
+			if (value == null) {
+				return null;
+			}
+			key.add(value);
+		}
+
+		return key;
+	}
+
+	/*--------------------------*
+	 * Inner class ExcludeIndex *
+	 *--------------------------*/
+
+	/**
+	 * An in-memory set of results of the right argument, indexed on the values
+	 * of the bindings that all of them have.
+	 */
+	private static class ExcludeIndex {
+
+		private final List<BindingSet> excludeSet;
+
+		private final List<String> keyNames;
+
+		private final Map<List<Value>, List<BindingSet>> index = new HashMap<List<Value>, List<BindingSet>>();
+
+		public ExcludeIndex(List<BindingSet> excludeSet) {
+			this.excludeSet = excludeSet;
+			this.keyNames = getCommonBindingNames(excludeSet);
+
+			if (!keyNames.isEmpty()) {
+				for (BindingSet excluded : excludeSet) {
+					List<Value> key = getKey(excluded, keyNames);
+
+					List<BindingSet> bucket = index.get(key);
+					if (bucket == null) {
+						bucket = new ArrayList<BindingSet>(1);
+						index.put(key, bucket);
+					}
+					bucket.add(excluded);
+				}
+			}
+		}
+
+		/**
+		 * Checks whether the specified result of the left argument is compatible
+		 * with a result in this index with which it shares a variable.
+		 */
+		public boolean excludes(BindingSet bindingSet) {
+			List<BindingSet> candidates = excludeSet;
+
+			List<Value> key = getKey(bindingSet, keyNames);
+			if (key != null) {
+				candidates = index.get(key);
+
+				if (candidates == null) {
+					return false;
+				}
+			}
+
+			for (BindingSet excluded : candidates) {
+				if (isCompatible(bindingSet, excluded)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Checks whether two binding sets share at least one variable and have
+		 * equal values for all shared variables. Two binding sets that share no
+		 * variables are compatible by definition, but the formal definition of
+		 * SPARQL MINUS does not filter them out.
+		 */
+		private boolean isCompatible(BindingSet bindingSet, BindingSet excluded) {
+			boolean shared = false;
+
+			for (Binding binding : excluded) {
+				Value value = bindingSet.getValue(binding.getName());
+
+				if (value != null) {
+					if (!value.equals(binding.getValue())) {
+						return false;
+					}
+					shared = true;
+				}
+			}
+
+			return shared;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.util;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
+
+/**
+ * A value expression that has been compiled by a {@link ValueExprCompiler}.
+ * Compiled expressions do not hold any state that depends on the bindings
+ * they are evaluated with, and can be evaluated by several threads at once.
+ */
+public abstract class CompiledValueExpr {
+
+	/**
+	 * Evaluates the expression with the supplied bindings.
+	 *
+	 * @throws ValueExprEvaluationException
+	 *         If the expression could not be evaluated, e.g. because a variable
+	 *         is unbound or the operands have incompatible types.
+	 */
+	public abstract Value evaluate(BindingSet bindings)
+		throws ValueExprEvaluationException, QueryEvaluationException;
+
+	/**
+	 * Evaluates the effective boolean value of the expression with the
+	 * supplied bindings. Boolean expressions override this method to avoid
+	 * creating intermediate literals.
+	 *
+	 * @throws ValueExprEvaluationException
+	 *         If the expression could not be evaluated, or if its value does
+	 *         not have an effective boolean value.
+	 */
+	public boolean evaluateBoolean(BindingSet bindings)
+		throws ValueExprEvaluationException, QueryEvaluationException
+	{
+		return QueryEvaluationUtil.getEffectiveBooleanValue(evaluate(bindings));
+	}
+
+	/**
+	 * Checks whether the expression is true for the supplied bindings, treating
+	 * evaluation errors as <tt>false</tt>, like a filter condition.
+	 */
+	public boolean isTrue(BindingSet bindings)
+		throws QueryEvaluationException
+	{
+		try {
+			return evaluateBoolean(bindings);
+		}
+		catch (ValueExprEvaluationException e) {
+			return false;
+		}
+	}
+}
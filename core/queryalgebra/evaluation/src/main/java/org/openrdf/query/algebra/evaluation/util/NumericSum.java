@@ -0,0 +1,142 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.util;
+
+import java.math.BigInteger;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.datatypes.XMLDatatypeUtil;
+import org.openrdf.model.impl.IntegerLiteralImpl;
+import org.openrdf.model.impl.NumericLiteralImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.algebra.MathExpr.MathOp;
+import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
+
+/**
+ * Computes the sum of numeric literals, with the same result as repeatedly
+ * applying {@link MathUtil#compute(Literal, Literal, MathOp)} starting from
+ * <tt>0</tt>. Integers are added as longs and doubles as doubles, without
+ * creating intermediate literals. The sum switches to exact arithmetic on
+ * literals when a long would overflow or when a decimal or float is added to
+ * an integer sum.
+ * <p>
+ * Sums of parts of the input can be combined with {@link #add(NumericSum)}.
+ */
+public class NumericSum {
+
+	/**
+	 * The maximum length of labels that are parsed as longs. Any integer with
+	 * at most 18 digits fits in a long.
+	 */
+	private static final int MAX_LONG_LABEL_LENGTH = 18;
+
+	private enum Mode {
+		INTEGER,
+		DOUBLE,
+		EXACT
+	}
+
+	private Mode mode = Mode.INTEGER;
+
+	private long longSum = 0;
+
+	private double doubleSum = 0.0;
+
+	private Literal exactSum;
+
+	/**
+	 * Adds a numeric literal to this sum.
+	 *
+	 * @throws ValueExprEvaluationException
+	 *         If the literal's label is not a valid number.
+	 */
+	public void add(Literal value)
+		throws ValueExprEvaluationException
+	{
+		URI datatype = value.getDatatype();
+
+		if (mode == Mode.INTEGER) {
+			if (XMLDatatypeUtil.isIntegerDatatype(datatype)) {
+				try {
+					long l = longValue(value);
+					long result = longSum + l;
+
+					// Overflow if both operands differ in sign from the result
+					if (((longSum ^ result) & (l ^ result)) >= 0) {
+						longSum = result;
+						return;
+					}
+				}
+				catch (NumberFormatException e) {
+					// handled by exact arithmetic
+				}
+			}
+			else if (XMLSchema.DOUBLE.equals(datatype)) {
+				mode = Mode.DOUBLE;
+				doubleSum = longSum;
+			}
+
+			if (mode == Mode.INTEGER) {
+				mode = Mode.EXACT;
+				exactSum = new IntegerLiteralImpl(BigInteger.valueOf(longSum));
+			}
+		}
+
+		if (mode == Mode.DOUBLE) {
+			try {
+				doubleSum += value.doubleValue();
+			}
+			catch (NumberFormatException e) {
+				throw new ValueExprEvaluationException(e);
+			}
+		}
+		else {
+			exactSum = MathUtil.compute(exactSum, value, MathOp.PLUS);
+		}
+	}
+
+	/**
+	 * Adds another sum to this sum.
+	 */
+	public void add(NumericSum other)
+		throws ValueExprEvaluationException
+	{
+		add(other.getValue());
+	}
+
+	/**
+	 * Gets the value of this sum as a literal.
+	 */
+	public Literal getValue() {
+		switch (mode) {
+			case INTEGER:
+				return new IntegerLiteralImpl(BigInteger.valueOf(longSum));
+			case DOUBLE:
+				return new NumericLiteralImpl(doubleSum);
+			default:
+				return exactSum;
+		}
+	}
+
+	/**
+	 * Gets the value of a literal with an integer datatype as a long. Only
+	 * labels that are short enough to always fit in a long are parsed, so that
+	 * large values are never truncated.
+	 *
+	 * @throws NumberFormatException
+	 *         If the label is not a valid integer or is too long.
+	 */
+	public static long longValue(Literal literal) {
+		String label = literal.getLabel();
+
+		if (label.length() > MAX_LONG_LABEL_LENGTH) {
+			throw new NumberFormatException("Label too long: " + label);
+		}
+
+		return XMLDatatypeUtil.parseLong(label);
+	}
+}
@@ -5,6 +5,8 @@
  */
 package org.openrdf.query.algebra.evaluation.util;
 
+import java.util.regex.Pattern;
+
 import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.XMLGregorianCalendar;
 
@@ -391,6 +393,49 @@ public class QueryEvaluationUtil {
 		return datatype == null || datatype.equals(XMLSchema.STRING);
 	}
 
+	/**
+	 * Compiles the pattern of the <tt>regex</tt> operator with the specified
+	 * flags.
+	 * 
+	 * @param pattern
+	 *        The regular expression.
+	 * @param flags
+	 *        The flags of the <tt>regex</tt> operator, e.g. <tt>"i"</tt> for
+	 *        case-insensitive matching.
+	 * @throws ValueExprEvaluationException
+	 *         If the flags contain an unknown flag.
+	 */
+	public static Pattern compileRegex(String pattern, String flags)
+		throws ValueExprEvaluationException
+	{
+		int f = 0;
+		for (char c : flags.toCharArray()) {
+			switch (c) {
+				case 's':
+					f |= Pattern.DOTALL;
+					break;
+				case 'm':
+					f |= Pattern.MULTILINE;
+					break;
+				case 'i':
+					f |= Pattern.CASE_INSENSITIVE;
+					break;
+				case 'x':
+					f |= Pattern.COMMENTS;
+					break;
+				case 'd':
+					f |= Pattern.UNIX_LINES;
+					break;
+				case 'u':
+					f |= Pattern.UNICODE_CASE;
+					break;
+				default:
+					throw new ValueExprEvaluationException(flags);
+			}
+		}
+		return Pattern.compile(pattern, f);
+	}
+
 	private static boolean isSupportedDatatype(URI datatype) {
 		return (XMLSchema.STRING.equals(datatype) || XMLDatatypeUtil.isNumericDatatype(datatype) || XMLDatatypeUtil.isCalendarDatatype(datatype));
 	}
@@ -0,0 +1,333 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.resultio.QueryResultParseException;
+import org.openrdf.query.resultio.binary.BinaryQueryResultParser;
+import org.openrdf.query.resultio.binary.BinaryQueryResultWriter;
+
+/**
+ * A temporary file that query operators write binding sets to when they exceed
+ * their memory budget. Binding sets are appended in segments; each segment is
+ * a complete result in the binary query result format, with the binding names
+ * of the binding sets in that segment as its columns. The file is created when
+ * the first segment is written, so empty spill files do not use any disk
+ * space.
+ * <p>
+ * Binding sets can be added until the file is read. The file is removed by
+ * {@link #delete()}.
+ */
+public class SpillFile {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	/**
+	 * The default maximum number of binding sets in a segment.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 1024;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final Logger logger = LoggerFactory.getLogger(SpillFile.class);
+
+	private final File tempDir;
+
+	private final String prefix;
+
+	private final int segmentSize;
+
+	private final List<BindingSet> segment = new ArrayList<BindingSet>();
+
+	private File file;
+
+	private OutputStream out;
+
+	private long size = 0;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new SpillFile with the default segment size.
+	 *
+	 * @param tempDir
+	 *        The directory to create the file in, or <tt>null</tt> to use the
+	 *        default temporary-file directory.
+	 * @param prefix
+	 *        The prefix for the file's name, at least three characters long.
+	 */
+	public SpillFile(File tempDir, String prefix) {
+		this(tempDir, prefix, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Creates a new SpillFile.
+	 *
+	 * @param tempDir
+	 *        The directory to create the file in, or <tt>null</tt> to use the
+	 *        default temporary-file directory.
+	 * @param prefix
+	 *        The prefix for the file's name, at least three characters long.
+	 * @param segmentSize
+	 *        The maximum number of binding sets that are buffered in memory
+	 *        before they are written to the file.
+	 */
+	public SpillFile(File tempDir, String prefix, int segmentSize) {
+		this.tempDir = tempDir;
+		this.prefix = prefix;
+		this.segmentSize = Math.max(segmentSize, 1);
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Gets the number of binding sets that have been added to this file.
+	 */
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Appends a binding set to this file.
+	 */
+	public void add(BindingSet bindingSet)
+		throws QueryEvaluationException
+	{
+		segment.add(bindingSet);
+		size++;
+
+		if (segment.size() >= segmentSize) {
+			writeSegment();
+		}
+	}
+
+	private void writeSegment()
+		throws QueryEvaluationException
+	{
+		if (segment.isEmpty()) {
+			return;
+		}
+
+		Set<String> bindingNames = new LinkedHashSet<String>();
+		for (BindingSet bindingSet : segment) {
+			bindingNames.addAll(bindingSet.getBindingNames());
+		}
+
+		try {
+			if (out == null) {
+				file = File.createTempFile(prefix, ".brt", tempDir);
+				logger.debug("Spilling binding sets to {}", file);
+				out = new BufferedOutputStream(new FileOutputStream(file));
+			}
+
+			BinaryQueryResultWriter writer = new BinaryQueryResultWriter(out);
+			writer.startQueryResult(new ArrayList<String>(bindingNames));
+			for (BindingSet bindingSet : segment) {
+				writer.handleSolution(bindingSet);
+			}
+			writer.endQueryResult();
+		}
+		catch (IOException e) {
+			throw new QueryEvaluationException("Unable to write binding sets to disk", e);
+		}
+		catch (TupleQueryResultHandlerException e) {
+			throw new QueryEvaluationException("Unable to write binding sets to disk", e);
+		}
+
+		segment.clear();
+	}
+
+	/**
+	 * Reads the binding sets from this file, in the order in which they were
+	 * added. No more binding sets can be added once this file has been read,
+	 * but it can be read more than once.
+	 */
+	public CloseableIteration<BindingSet, QueryEvaluationException> read()
+		throws QueryEvaluationException
+	{
+		writeSegment();
+
+		try {
+			if (out != null) {
+				out.close();
+			}
+
+			if (file == null) {
+				return new SegmentIteration(null);
+			}
+
+			return new SegmentIteration(new BufferedInputStream(new FileInputStream(file)));
+		}
+		catch (IOException e) {
+			throw new QueryEvaluationException("Unable to read binding sets from disk", e);
+		}
+	}
+
+	/**
+	 * Deletes this file. Any open iterations over its binding sets must have
+	 * been closed.
+	 */
+	public void delete() {
+		segment.clear();
+
+		try {
+			if (out != null) {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			logger.warn("Unable to close temporary file " + file, e);
+		}
+
+		if (file != null && !file.delete()) {
+			logger.warn("Unable to delete temporary file {}", file);
+		}
+
+		out = null;
+		file = null;
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "SpillFile[" + (file != null ? file.getPath() : prefix) + ", size=" + size + "]";
+	}
+
+	/*------------------------------*
+	 * Inner class SegmentIteration *
+	 *------------------------------*/
+
+	/**
+	 * Reads the segments of the file one after the other.
+	 */
+	private static class SegmentIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+		private final InputStream in;
+
+		private TupleQueryResult segment;
+
+		/**
+		 * An empty binding set that the binding sets of the current segment are
+		 * copied from, so that they share the slots for their bindings.
+		 */
+		private QueryBindingSet template;
+
+		public SegmentIteration(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		protected BindingSet getNextElement()
+			throws QueryEvaluationException
+		{
+			if (in == null) {
+				return null;
+			}
+
+			try {
+				while (true) {
+					if (segment == null) {
+						// Check for the end of the file
+						in.mark(1);
+						if (in.read() == -1) {
+							return null;
+						}
+						in.reset();
+
+						segment = new BinaryQueryResultParser().parseIncrementally(new FilterInputStream(in) {
+
+							@Override
+							public void close() {
+								// the stream is shared by all segments
+							}
+						});
+						template = new QueryBindingSet();
+					}
+
+					if (segment.hasNext()) {
+						// The segment has a column for every binding name in the
+						// segment, also for the ones that are unbound in this
+						// binding set
+						QueryBindingSet bindingSet = new QueryBindingSet(template);
+						for (Binding binding : segment.next()) {
+							bindingSet.addBinding(binding);
+						}
+						return bindingSet;
+					}
+
+					segment.close();
+					segment = null;
+				}
+			}
+			catch (IOException e) {
+				throw new QueryEvaluationException("Unable to read binding sets from disk", e);
+			}
+			catch (QueryResultParseException e) {
+				throw new QueryEvaluationException("Unable to read binding sets from disk", e);
+			}
+		}
+
+		@Override
+		protected void handleClose()
+			throws QueryEvaluationException
+		{
+			try {
+				super.handleClose();
+
+				if (segment != null) {
+					segment.close();
+				}
+			}
+			finally {
+				if (in != null) {
+					try {
+						in.close();
+					}
+					catch (IOException e) {
+						throw new QueryEvaluationException(e);
+					}
+				}
+			}
+		}
+	}
+}
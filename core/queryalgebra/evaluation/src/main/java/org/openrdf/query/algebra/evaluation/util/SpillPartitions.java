@@ -0,0 +1,131 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.util;
+
+import java.io.File;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+
+/**
+ * A fixed number of {@link SpillFile}s that binding sets are distributed over
+ * by hash code, as used for Grace-style hashing: binding sets with equal keys
+ * always end up in the same partition, so that each partition can be processed
+ * on its own with a hash table that is a fraction of the size of the input.
+ * <p>
+ * A partition that is still too large can be partitioned again at the next
+ * level. Each level mixes the hash codes differently, so that binding sets from
+ * one partition are spread out over all partitions of the next level.
+ */
+public class SpillPartitions {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	/**
+	 * The number of partitions.
+	 */
+	public static final int PARTITION_COUNT = 16;
+
+	/**
+	 * The deepest level that partitions are created at. Partitions at this
+	 * level are not partitioned any further; they are processed in memory
+	 * regardless of their size. Hash codes that collide on all levels can
+	 * otherwise never be separated.
+	 */
+	public static final int MAX_LEVEL = 4;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final int level;
+
+	private final SpillFile[] partitions;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new set of partitions.
+	 *
+	 * @param level
+	 *        The level of the partitions, starting at <tt>0</tt>.
+	 * @param tempDir
+	 *        The directory to create the partitions in, or <tt>null</tt> to use
+	 *        the default temporary-file directory.
+	 * @param prefix
+	 *        The prefix for the names of the partitions' files.
+	 */
+	public SpillPartitions(int level, File tempDir, String prefix) {
+		this.level = level;
+
+		partitions = new SpillFile[PARTITION_COUNT];
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = new SpillFile(tempDir, prefix);
+		}
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Checks whether the partitions of this set can be partitioned again.
+	 */
+	public boolean canRepartition() {
+		return level < MAX_LEVEL;
+	}
+
+	/**
+	 * Adds a binding set to the partition for the specified hash code.
+	 */
+	public void add(int hash, BindingSet bindingSet)
+		throws QueryEvaluationException
+	{
+		partitions[partitionOf(hash)].add(bindingSet);
+	}
+
+	public int size() {
+		return partitions.length;
+	}
+
+	public SpillFile get(int partition) {
+		return partitions[partition];
+	}
+
+	/**
+	 * Gets the partition that binding sets with the specified hash code are
+	 * added to.
+	 */
+	public int partitionOf(int hash) {
+		int h = hash + level * 0x9E3779B9;
+
+		// Finalization step of MurmurHash3
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+
+		return (h & 0x7fffffff) % partitions.length;
+	}
+
+	/**
+	 * Deletes the files of all partitions.
+	 */
+	public void delete() {
+		for (SpillFile partition : partitions) {
+			partition.delete();
+		}
+	}
+}
@@ -0,0 +1,667 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.datatypes.XMLDatatypeUtil;
+import org.openrdf.model.impl.BooleanLiteralImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.And;
+import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.Compare.CompareOp;
+import org.openrdf.query.algebra.FunctionCall;
+import org.openrdf.query.algebra.MathExpr;
+import org.openrdf.query.algebra.MathExpr.MathOp;
+import org.openrdf.query.algebra.Not;
+import org.openrdf.query.algebra.Or;
+import org.openrdf.query.algebra.Regex;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
+import org.openrdf.query.algebra.evaluation.function.Function;
+import org.openrdf.query.algebra.evaluation.function.FunctionRegistry;
+
+/**
+ * Compiles value expressions into trees of {@link CompiledValueExpr}s, which
+ * evaluate them without dispatching on the type of every node for every
+ * evaluation. Work that does not depend on the bindings is done once, at
+ * compile time:
+ * <ul>
+ * <li>Variables with a value and value constants are resolved.
+ * <li>Functions are looked up in the {@link FunctionRegistry}.
+ * <li>Regular expressions with a constant pattern and constant flags are
+ * compiled.
+ * <li>Comparisons of an expression with a numeric constant parse the constant
+ * and compare numeric values of the datatypes that they encounter directly,
+ * rather than determining a common datatype for every comparison.
+ * </ul>
+ * Expressions of other types are evaluated by the evaluation strategy.
+ */
+public class ValueExprCompiler {
+
+	private final EvaluationStrategy strategy;
+
+	private final ValueFactory valueFactory;
+
+	/**
+	 * Creates a new ValueExprCompiler.
+	 *
+	 * @param strategy
+	 *        The strategy that evaluates the expressions that are not compiled.
+	 * @param valueFactory
+	 *        The value factory for the results of functions, or <tt>null</tt>
+	 *        to let the strategy evaluate function calls.
+	 */
+	public ValueExprCompiler(EvaluationStrategy strategy, ValueFactory valueFactory) {
+		this.strategy = strategy;
+		this.valueFactory = valueFactory;
+	}
+
+	public CompiledValueExpr compile(ValueExpr expr) {
+		if (expr instanceof ValueConstant) {
+			return new ConstantExpr(((ValueConstant)expr).getValue());
+		}
+		else if (expr instanceof Var) {
+			Var var = (Var)expr;
+			if (var.hasValue()) {
+				return new ConstantExpr(var.getValue());
+			}
+			return new VarExpr(var.getName());
+		}
+		else if (expr instanceof And) {
+			And and = (And)expr;
+			return new AndExpr(compile(and.getLeftArg()), compile(and.getRightArg()));
+		}
+		else if (expr instanceof Or) {
+			Or or = (Or)expr;
+			return new OrExpr(compile(or.getLeftArg()), compile(or.getRightArg()));
+		}
+		else if (expr instanceof Not) {
+			return new NotExpr(compile(((Not)expr).getArg()));
+		}
+		else if (expr instanceof Compare) {
+			return compileCompare((Compare)expr);
+		}
+		else if (expr instanceof MathExpr) {
+			MathExpr mathExpr = (MathExpr)expr;
+			return new MathOpExpr(compile(mathExpr.getLeftArg()), compile(mathExpr.getRightArg()),
+					mathExpr.getOperator());
+		}
+		else if (expr instanceof Regex) {
+			return compileRegex((Regex)expr);
+		}
+		else if (expr instanceof FunctionCall) {
+			return compileFunctionCall((FunctionCall)expr);
+		}
+
+		return new StrategyExpr(strategy, expr);
+	}
+
+	private CompiledValueExpr compileCompare(Compare compare) {
+		CompiledValueExpr leftArg = compile(compare.getLeftArg());
+		CompiledValueExpr rightArg = compile(compare.getRightArg());
+
+		Value leftValue = getConstantValue(leftArg);
+		Value rightValue = getConstantValue(rightArg);
+
+		if (rightValue instanceof Literal && leftValue == null) {
+			NumericConstant constant = NumericConstant.create((Literal)rightValue);
+			if (constant != null) {
+				return new NumericCompareExpr(leftArg, constant, compare.getOperator(), false);
+			}
+		}
+		else if (leftValue instanceof Literal && rightValue == null) {
+			NumericConstant constant = NumericConstant.create((Literal)leftValue);
+			if (constant != null) {
+				return new NumericCompareExpr(rightArg, constant, compare.getOperator(), true);
+			}
+		}
+
+		return new CompareExpr(leftArg, rightArg, compare.getOperator());
+	}
+
+	private CompiledValueExpr compileRegex(Regex regex) {
+		Value patternValue = getConstantValue(compile(regex.getPatternArg()));
+		Value flagsValue = null;
+		if (regex.getFlagsArg() != null) {
+			flagsValue = getConstantValue(compile(regex.getFlagsArg()));
+			if (flagsValue == null) {
+				return new StrategyExpr(strategy, regex);
+			}
+		}
+
+		if (QueryEvaluationUtil.isSimpleLiteral(patternValue)
+				&& (flagsValue == null || QueryEvaluationUtil.isSimpleLiteral(flagsValue)))
+		{
+			String flags = flagsValue == null ? "" : ((Literal)flagsValue).getLabel();
+			try {
+				Pattern pattern = QueryEvaluationUtil.compileRegex(((Literal)patternValue).getLabel(), flags);
+				return new RegexExpr(compile(regex.getArg()), pattern);
+			}
+			catch (ValueExprEvaluationException e) {
+				// Unknown flags, fail on evaluation
+			}
+			catch (PatternSyntaxException e) {
+				// Invalid pattern, fail on evaluation
+			}
+		}
+
+		return new StrategyExpr(strategy, regex);
+	}
+
+	private CompiledValueExpr compileFunctionCall(FunctionCall functionCall) {
+		Function function = FunctionRegistry.getInstance().get(functionCall.getURI());
+
+		if (function == null || valueFactory == null) {
+			return new StrategyExpr(strategy, functionCall);
+		}
+
+		List<ValueExpr> args = functionCall.getArgs();
+		CompiledValueExpr[] compiledArgs = new CompiledValueExpr[args.size()];
+		for (int i = 0; i < compiledArgs.length; i++) {
+			compiledArgs[i] = compile(args.get(i));
+		}
+
+		return new FunctionExpr(function, compiledArgs, valueFactory);
+	}
+
+	private static Value getConstantValue(CompiledValueExpr expr) {
+		return expr instanceof ConstantExpr ? ((ConstantExpr)expr).value : null;
+	}
+
+	private static boolean compare(int compareResult, CompareOp operator) {
+		switch (operator) {
+			case LT:
+				return compareResult < 0;
+			case LE:
+				return compareResult <= 0;
+			case EQ:
+				return compareResult == 0;
+			case NE:
+				return compareResult != 0;
+			case GE:
+				return compareResult >= 0;
+			case GT:
+				return compareResult > 0;
+			default:
+				throw new IllegalArgumentException("Unknown operator: " + operator);
+		}
+	}
+
+	/*----------------------*
+	 * Compiled expressions *
+	 *----------------------*/
+
+	/**
+	 * A compiled expression with a boolean value.
+	 */
+	private static abstract class BooleanExpr extends CompiledValueExpr {
+
+		@Override
+		public Value evaluate(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			return BooleanLiteralImpl.valueOf(evaluateBoolean(bindings));
+		}
+
+		@Override
+		public abstract boolean evaluateBoolean(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException;
+	}
+
+	private static class StrategyExpr extends CompiledValueExpr {
+
+		private final EvaluationStrategy strategy;
+
+		private final ValueExpr expr;
+
+		public StrategyExpr(EvaluationStrategy strategy, ValueExpr expr) {
+			this.strategy = strategy;
+			this.expr = expr;
+		}
+
+		@Override
+		public Value evaluate(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			return strategy.evaluate(expr, bindings);
+		}
+	}
+
+	private static class ConstantExpr extends CompiledValueExpr {
+
+		private final Value value;
+
+		public ConstantExpr(Value value) {
+			this.value = value;
+		}
+
+		@Override
+		public Value evaluate(BindingSet bindings) {
+			return value;
+		}
+	}
+
+	private static class VarExpr extends CompiledValueExpr {
+
+		private final String name;
+
+		public VarExpr(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Value evaluate(BindingSet bindings)
+			throws ValueExprEvaluationException
+		{
+			Value value = bindings.getValue(name);
+
+			if (value == null) {
+				throw new ValueExprEvaluationException();
+			}
+
+			return value;
+		}
+	}
+
+	private static class AndExpr extends BooleanExpr {
+
+		private final CompiledValueExpr leftArg;
+
+		private final CompiledValueExpr rightArg;
+
+		public AndExpr(CompiledValueExpr leftArg, CompiledValueExpr rightArg) {
+			this.leftArg = leftArg;
+			this.rightArg = rightArg;
+		}
+
+		@Override
+		public boolean evaluateBoolean(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			try {
+				if (!leftArg.evaluateBoolean(bindings)) {
+					return false;
+				}
+			}
+			catch (ValueExprEvaluationException e) {
+				// Result is 'false' when the right argument evaluates to 'false',
+				// failure otherwise
+				if (!rightArg.evaluateBoolean(bindings)) {
+					return false;
+				}
+				throw new ValueExprEvaluationException();
+			}
+
+			return rightArg.evaluateBoolean(bindings);
+		}
+	}
+
+	private static class OrExpr extends BooleanExpr {
+
+		private final CompiledValueExpr leftArg;
+
+		private final CompiledValueExpr rightArg;
+
+		public OrExpr(CompiledValueExpr leftArg, CompiledValueExpr rightArg) {
+			this.leftArg = leftArg;
+			this.rightArg = rightArg;
+		}
+
+		@Override
+		public boolean evaluateBoolean(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			try {
+				if (leftArg.evaluateBoolean(bindings)) {
+					return true;
+				}
+			}
+			catch (ValueExprEvaluationException e) {
+				// Result is 'true' when the right argument evaluates to 'true',
+				// failure otherwise
+				if (rightArg.evaluateBoolean(bindings)) {
+					return true;
+				}
+				throw new ValueExprEvaluationException();
+			}
+
+			return rightArg.evaluateBoolean(bindings);
+		}
+	}
+
+	private static class NotExpr extends BooleanExpr {
+
+		private final CompiledValueExpr arg;
+
+		public NotExpr(CompiledValueExpr arg) {
+			this.arg = arg;
+		}
+
+		@Override
+		public boolean evaluateBoolean(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			return !arg.evaluateBoolean(bindings);
+		}
+	}
+
+	private static class CompareExpr extends BooleanExpr {
+
+		private final CompiledValueExpr leftArg;
+
+		private final CompiledValueExpr rightArg;
+
+		private final CompareOp operator;
+
+		public CompareExpr(CompiledValueExpr leftArg, CompiledValueExpr rightArg, CompareOp operator) {
+			this.leftArg = leftArg;
+			this.rightArg = rightArg;
+			this.operator = operator;
+		}
+
+		@Override
+		public boolean evaluateBoolean(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			Value leftValue = leftArg.evaluate(bindings);
+			Value rightValue = rightArg.evaluate(bindings);
+			return QueryEvaluationUtil.compare(leftValue, rightValue, operator);
+		}
+	}
+
+	/**
+	 * Compares the value of an expression with a numeric constant. Literals
+	 * whose datatype is compared numerically with that of the constant are
+	 * compared with the constant's pre-parsed value, all other values are
+	 * compared with {@link QueryEvaluationUtil#compare}.
+	 */
+	private static class NumericCompareExpr extends BooleanExpr {
+
+		private final CompiledValueExpr arg;
+
+		private final NumericConstant constant;
+
+		private final CompareOp operator;
+
+		/**
+		 * Indicates whether the constant is the left operand of the comparison.
+		 */
+		private final boolean constantFirst;
+
+		/**
+		 * The type of comparison for the datatype that was encountered last.
+		 */
+		private volatile ComparisonType lastType;
+
+		public NumericCompareExpr(CompiledValueExpr arg, NumericConstant constant, CompareOp operator,
+				boolean constantFirst)
+		{
+			this.arg = arg;
+			this.constant = constant;
+			this.operator = operator;
+			this.constantFirst = constantFirst;
+		}
+
+		@Override
+		public boolean evaluateBoolean(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			Value value = arg.evaluate(bindings);
+
+			if (value instanceof Literal) {
+				Literal literal = (Literal)value;
+				URI datatype = literal.getDatatype();
+
+				if (datatype != null) {
+					ComparisonType type = lastType;
+					if (type == null || type.datatype != datatype && !type.datatype.equals(datatype)) {
+						type = new ComparisonType(datatype, constant.getCommonDatatype(datatype));
+						lastType = type;
+					}
+
+					try {
+						int result = constant.compare(literal, type.commonDatatype);
+						if (result != NumericConstant.INCOMPARABLE) {
+							return compare(constantFirst ? -result : result, operator);
+						}
+					}
+					catch (IllegalArgumentException e) {
+						// Invalid value, let the general comparison handle it
+					}
+				}
+			}
+
+			if (constantFirst) {
+				return QueryEvaluationUtil.compare(constant.literal, value, operator);
+			}
+			return QueryEvaluationUtil.compare(value, constant.literal, operator);
+		}
+	}
+
+	/**
+	 * The common datatype of the constant of a {@link NumericCompareExpr} and
+	 * the literals of a specific datatype.
+	 */
+	private static class ComparisonType {
+
+		private final URI datatype;
+
+		private final URI commonDatatype;
+
+		public ComparisonType(URI datatype, URI commonDatatype) {
+			this.datatype = datatype;
+			this.commonDatatype = commonDatatype;
+		}
+	}
+
+	/**
+	 * The pre-parsed value of a numeric constant.
+	 */
+	private static class NumericConstant {
+
+		/**
+		 * The result of {@link #compare} for literals that are not compared
+		 * numerically with the constant.
+		 */
+		public static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+		private final Literal literal;
+
+		private final URI datatype;
+
+		private final double doubleValue;
+
+		private final float floatValue;
+
+		private final BigDecimal decimalValue;
+
+		/**
+		 * The integer value of the constant, or <tt>null</tt> if the constant
+		 * does not have an integer datatype.
+		 */
+		private final BigInteger integerValue;
+
+		private NumericConstant(Literal literal) {
+			this.literal = literal;
+			this.datatype = literal.getDatatype();
+			this.doubleValue = literal.doubleValue();
+			this.floatValue = literal.floatValue();
+			this.decimalValue = literal.decimalValue();
+			this.integerValue = XMLDatatypeUtil.isIntegerDatatype(datatype) ? literal.integerValue() : null;
+		}
+
+		/**
+		 * Parses a numeric literal.
+		 *
+		 * @return The parsed literal, or <tt>null</tt> if the literal does not
+		 *         have a numeric datatype or has an invalid value.
+		 */
+		public static NumericConstant create(Literal literal) {
+			URI datatype = literal.getDatatype();
+			if (datatype == null || !XMLDatatypeUtil.isNumericDatatype(datatype)) {
+				return null;
+			}
+
+			try {
+				return new NumericConstant(literal);
+			}
+			catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Determines the datatype in which literals of the specified datatype
+		 * are compared with this constant, like
+		 * {@link QueryEvaluationUtil#compareLiterals}.
+		 *
+		 * @return The common datatype, or <tt>null</tt> if the literals are not
+		 *         compared numerically.
+		 */
+		public URI getCommonDatatype(URI otherDatatype) {
+			if (otherDatatype.equals(datatype)) {
+				return datatype;
+			}
+			else if (XMLDatatypeUtil.isNumericDatatype(otherDatatype)) {
+				if (otherDatatype.equals(XMLSchema.DOUBLE) || datatype.equals(XMLSchema.DOUBLE)) {
+					return XMLSchema.DOUBLE;
+				}
+				else if (otherDatatype.equals(XMLSchema.FLOAT) || datatype.equals(XMLSchema.FLOAT)) {
+					return XMLSchema.FLOAT;
+				}
+				else if (otherDatatype.equals(XMLSchema.DECIMAL) || datatype.equals(XMLSchema.DECIMAL)) {
+					return XMLSchema.DECIMAL;
+				}
+				else {
+					return XMLSchema.INTEGER;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Compares a literal with this constant in the specified datatype.
+		 *
+		 * @return A negative number, zero or a positive number if the literal is
+		 *         smaller than, equal to or larger than the constant, or
+		 *         {@link #INCOMPARABLE}.
+		 * @throws IllegalArgumentException
+		 *         If the literal's value is invalid for its datatype.
+		 */
+		public int compare(Literal literal, URI commonDatatype) {
+			if (commonDatatype == null) {
+				return INCOMPARABLE;
+			}
+			else if (commonDatatype.equals(XMLSchema.DOUBLE)) {
+				return Double.compare(literal.doubleValue(), doubleValue);
+			}
+			else if (commonDatatype.equals(XMLSchema.FLOAT)) {
+				return Float.compare(literal.floatValue(), floatValue);
+			}
+			else if (commonDatatype.equals(XMLSchema.DECIMAL)) {
+				return literal.decimalValue().compareTo(decimalValue);
+			}
+			else if (integerValue != null && XMLDatatypeUtil.isIntegerDatatype(commonDatatype)) {
+				return literal.integerValue().compareTo(integerValue);
+			}
+			return INCOMPARABLE;
+		}
+	}
+
+	private static class MathOpExpr extends CompiledValueExpr {
+
+		private final CompiledValueExpr leftArg;
+
+		private final CompiledValueExpr rightArg;
+
+		private final MathOp operator;
+
+		public MathOpExpr(CompiledValueExpr leftArg, CompiledValueExpr rightArg, MathOp operator) {
+			this.leftArg = leftArg;
+			this.rightArg = rightArg;
+			this.operator = operator;
+		}
+
+		@Override
+		public Value evaluate(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			Value leftValue = leftArg.evaluate(bindings);
+			Value rightValue = rightArg.evaluate(bindings);
+
+			if (leftValue instanceof Literal && rightValue instanceof Literal) {
+				return MathUtil.compute((Literal)leftValue, (Literal)rightValue, operator);
+			}
+
+			throw new ValueExprEvaluationException("Both arguments must be numeric literals");
+		}
+	}
+
+	private static class RegexExpr extends BooleanExpr {
+
+		private final CompiledValueExpr arg;
+
+		private final Pattern pattern;
+
+		public RegexExpr(CompiledValueExpr arg, Pattern pattern) {
+			this.arg = arg;
+			this.pattern = pattern;
+		}
+
+		@Override
+		public boolean evaluateBoolean(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			Value value = arg.evaluate(bindings);
+
+			if (QueryEvaluationUtil.isStringLiteral(value)) {
+				return pattern.matcher(((Literal)value).getLabel()).find();
+			}
+
+			throw new ValueExprEvaluationException();
+		}
+	}
+
+	private static class FunctionExpr extends CompiledValueExpr {
+
+		private final Function function;
+
+		private final CompiledValueExpr[] args;
+
+		private final ValueFactory valueFactory;
+
+		public FunctionExpr(Function function, CompiledValueExpr[] args, ValueFactory valueFactory) {
+			this.function = function;
+			this.args = args;
+			this.valueFactory = valueFactory;
+		}
+
+		@Override
+		public Value evaluate(BindingSet bindings)
+			throws ValueExprEvaluationException, QueryEvaluationException
+		{
+			Value[] argValues = new Value[args.length];
+			for (int i = 0; i < args.length; i++) {
+				argValues[i] = args[i].evaluate(bindings);
+			}
+			return function.evaluate(valueFactory, argValues);
+		}
+	}
+}
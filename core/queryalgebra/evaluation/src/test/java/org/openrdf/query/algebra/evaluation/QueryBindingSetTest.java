@@ -0,0 +1,181 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+public class QueryBindingSetTest {
+
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	private final Value a = vf.createLiteral("a");
+
+	private final Value b = vf.createLiteral("b");
+
+	private final Value c = vf.createLiteral("c");
+
+	@Test
+	public void testBindings() {
+		QueryBindingSet bs = new QueryBindingSet();
+		bs.addBinding("x", a);
+		bs.addBinding("y", b);
+		assertEquals(2, bs.size());
+		assertEquals(a, bs.getValue("x"));
+		assertEquals(b, bs.getBinding("y").getValue());
+		assertNull(bs.getValue("z"));
+		assertNull(bs.getBinding("z"));
+
+		bs.setBinding("x", c);
+		assertEquals(c, bs.getValue("x"));
+		assertEquals(2, bs.size());
+
+		bs.removeBinding("x");
+		assertFalse(bs.hasBinding("x"));
+		assertEquals(1, bs.size());
+		assertEquals(new HashSet<String>(Arrays.asList("y")), bs.getBindingNames());
+
+		bs.setBinding("x", a);
+		assertEquals(a, bs.getValue("x"));
+		assertEquals(2, bs.size());
+	}
+
+	@Test
+	public void testGrow() {
+		QueryBindingSet bs = new QueryBindingSet(1);
+		for (int i = 0; i < 50; i++) {
+			bs.addBinding("v" + i, vf.createLiteral(i));
+		}
+
+		assertEquals(50, bs.size());
+		for (int i = 0; i < 50; i++) {
+			assertEquals(vf.createLiteral(i), bs.getValue("v" + i));
+		}
+	}
+
+	@Test
+	public void testCopies() {
+		QueryBindingSet parent = new QueryBindingSet(EmptyBindingSet.getInstance());
+		parent.addBinding("x", a);
+
+		QueryBindingSet child1 = new QueryBindingSet(parent);
+		child1.addBinding("y", b);
+
+		// Same variable in the same slot
+		QueryBindingSet child2 = new QueryBindingSet(parent);
+		child2.addBinding("y", c);
+
+		// Different variable in the same slot
+		QueryBindingSet child3 = new QueryBindingSet(parent);
+		child3.addBinding("z", c);
+
+		// Parent extended after the children were created
+		parent.addBinding("w", c);
+
+		assertEquals(b, child1.getValue("y"));
+		assertEquals(c, child2.getValue("y"));
+		assertNull(child3.getValue("y"));
+		assertEquals(c, child3.getValue("z"));
+		assertNull(child1.getValue("w"));
+		assertEquals(c, parent.getValue("w"));
+		assertNull(parent.getValue("y"));
+
+		for (QueryBindingSet bs : Arrays.asList(parent, child1, child2, child3)) {
+			assertEquals(a, bs.getValue("x"));
+			assertEquals(2, bs.size());
+		}
+
+		// Modifying a copy does not affect the original
+		child1.removeBinding("x");
+		assertEquals(a, parent.getValue("x"));
+		assertEquals(a, child2.getValue("x"));
+	}
+
+	@Test
+	public void testRetainAll() {
+		QueryBindingSet bs = new QueryBindingSet();
+		bs.addBinding("x", a);
+		bs.addBinding("y", b);
+		bs.addBinding("z", c);
+
+		bs.retainAll(Arrays.asList("x", "z"));
+		assertEquals(new HashSet<String>(Arrays.asList("x", "z")), bs.getBindingNames());
+
+		bs.removeAll(Arrays.asList("z"));
+		assertEquals(1, bs.size());
+
+		int count = 0;
+		for (Binding binding : bs) {
+			assertEquals("x", binding.getName());
+			count++;
+		}
+		assertEquals(1, count);
+	}
+
+	@Test
+	public void testEquals() {
+		QueryBindingSet bs = new QueryBindingSet();
+		bs.addBinding("x", a);
+		bs.addBinding("y", b);
+
+		MapBindingSet mbs = new MapBindingSet();
+		mbs.addBinding("y", b);
+		mbs.addBinding("x", a);
+
+		QueryBindingSet reversed = new QueryBindingSet();
+		reversed.addBinding("y", b);
+		reversed.addBinding("x", a);
+
+		assertEquals(bs, mbs);
+		assertEquals(mbs, bs);
+		assertEquals(bs, reversed);
+		assertEquals(mbs.hashCode(), bs.hashCode());
+		assertEquals(bs.hashCode(), reversed.hashCode());
+
+		reversed.removeBinding("x");
+		assertFalse(bs.equals(reversed));
+		assertFalse(reversed.equals(bs));
+	}
+
+	@Test
+	public void testSerialization()
+		throws Exception
+	{
+		QueryBindingSet bs = new QueryBindingSet();
+		bs.addBinding("x", a);
+		bs.addBinding("y", b);
+		bs.removeBinding("x");
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(baos);
+		out.writeObject(bs);
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		QueryBindingSet copy = (QueryBindingSet)in.readObject();
+		assertEquals(bs, copy);
+		assertTrue(copy.getBindingNames().contains("y"));
+		assertEquals(1, copy.size());
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+import info.aduna.iteration.Iterations;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.impl.AdaptiveJoin;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+
+/**
+ * Checks that {@link AdaptiveJoinIterator} re-orders join arguments whose
+ * cardinalities have been misestimated, and that it produces the same results
+ * as a nested loop in the original order.
+ */
+public class AdaptiveJoinIteratorTest {
+
+	private static final String NS = "urn:test:";
+
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	private final List<Statement> statements = new ArrayList<Statement>();
+
+	/**
+	 * The estimated cardinalities of statement patterns, per predicate.
+	 */
+	private final Map<URI, Double> estimates = new HashMap<URI, Double>();
+
+	private final EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(new ListTripleSource());
+
+	@Test
+	public void testUnderestimatedFirstArg()
+		throws Exception
+	{
+		for (int i = 0; i < 2000; i++) {
+			URI person = vf.createURI(NS, "person" + i);
+			add(person, "type", vf.createURI(NS, "Person"));
+			add(person, "name", vf.createLiteral("Person " + i));
+			if (i % 400 == 0) {
+				add(person, "knows", vf.createURI(NS, "bob"));
+			}
+		}
+		estimate("type", 10);
+		estimate("name", 1000);
+		estimate("knows", 500);
+
+		List<TupleExpr> args = new ArrayList<TupleExpr>();
+		args.add(pattern("x", "type", vf.createURI(NS, "Person")));
+		args.add(pattern("x", "name", "n"));
+		args.add(pattern("x", "knows", vf.createURI(NS, "bob")));
+
+		AdaptiveJoinIterator iter = assertJoin(args, EmptyBindingSet.getInstance(), 5);
+
+		// The first pattern produces more results than sampled
+		assertArrayEquals(new int[] { 2, 0, 1 }, iter.getOrder());
+	}
+
+	@Test
+	public void testDeviatingCardinality()
+		throws Exception
+	{
+		for (int i = 0; i < 200; i++) {
+			URI b = vf.createURI(NS, "b" + i);
+			add(vf.createURI(NS, "a" + (i % 10)), "p", b);
+			add(b, "r", vf.createLiteral(i));
+			for (int j = 0; j < 50; j++) {
+				add(b, "q", vf.createLiteral(j));
+			}
+		}
+		estimate("p", 1000);
+		estimate("q", 1);
+		estimate("r", 1000);
+
+		List<TupleExpr> args = new ArrayList<TupleExpr>();
+		args.add(pattern("a", "p", "b"));
+		args.add(pattern("b", "q", "c"));
+		args.add(pattern("b", "r", "d"));
+
+		AdaptiveJoinIterator iter = assertJoin(args, EmptyBindingSet.getInstance(), 200 * 50);
+
+		// The second pattern produces 50 results per value of ?b
+		assertArrayEquals(new int[] { 0, 2, 1 }, iter.getOrder());
+	}
+
+	@Test
+	public void testBindings()
+		throws Exception
+	{
+		for (int i = 0; i < 100; i++) {
+			URI b = vf.createURI(NS, "b" + i);
+			add(vf.createURI(NS, "a" + (i % 10)), "p", b);
+			add(b, "q", vf.createLiteral(i % 7));
+		}
+		estimate("p", 1000);
+		estimate("q", 1000);
+
+		List<TupleExpr> args = new ArrayList<TupleExpr>();
+		args.add(pattern("a", "p", "b"));
+		args.add(pattern("b", "q", "c"));
+
+		QueryBindingSet bindings = new QueryBindingSet();
+		bindings.addBinding("a", vf.createURI(NS, "a3"));
+		assertJoin(args, bindings, 10);
+
+		bindings = new QueryBindingSet();
+		bindings.addBinding("c", vf.createLiteral(2));
+		assertJoin(args, bindings, 14);
+	}
+
+	private AdaptiveJoinIterator assertJoin(List<TupleExpr> args, BindingSet bindings, int expectedCount)
+		throws Exception
+	{
+		TupleExpr nestedLoops = args.get(0).clone();
+		for (int i = 1; i < args.size(); i++) {
+			nestedLoops = new Join(nestedLoops, args.get(i).clone());
+		}
+		List<BindingSet> expected = Iterations.asList(strategy.evaluate(nestedLoops, bindings));
+
+		AdaptiveJoin join = new AdaptiveJoin(args, strategy, new TestStatistics());
+		AdaptiveJoinIterator iter = new AdaptiveJoinIterator(join, bindings);
+		List<BindingSet> actual = Iterations.asList(iter);
+
+		assertEquals(expectedCount, expected.size());
+		assertEquals(sort(expected), sort(actual));
+		return iter;
+	}
+
+	private void add(Resource subj, String pred, Value obj) {
+		statements.add(vf.createStatement(subj, vf.createURI(NS, pred), obj));
+	}
+
+	private void estimate(String pred, double cardinality) {
+		estimates.put(vf.createURI(NS, pred), cardinality);
+	}
+
+	private StatementPattern pattern(String subj, String pred, Object obj) {
+		Var objVar;
+		if (obj instanceof Value) {
+			objVar = new Var("-const-" + obj, (Value)obj);
+			objVar.setAnonymous(true);
+		}
+		else {
+			objVar = new Var((String)obj);
+		}
+
+		Var predVar = new Var("-const-" + pred, vf.createURI(NS, pred));
+		predVar.setAnonymous(true);
+
+		return new StatementPattern(new Var(subj), predVar, objVar);
+	}
+
+	private List<String> sort(List<BindingSet> bindingSets) {
+		List<String> result = new ArrayList<String>();
+		for (BindingSet bindingSet : bindingSets) {
+			Map<String, Value> bindings = new TreeMap<String, Value>();
+			for (Binding binding : bindingSet) {
+				bindings.put(binding.getName(), binding.getValue());
+			}
+			result.add(bindings.toString());
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Estimates the cardinalities of statement patterns from the estimates per
+	 * predicate.
+	 */
+	private class TestStatistics extends EvaluationStatistics {
+
+		@Override
+		protected CardinalityCalculator createCardinalityCalculator() {
+			return new CardinalityCalculator() {
+
+				@Override
+				protected double getCardinality(StatementPattern sp) {
+					return estimates.get(sp.getPredicateVar().getValue());
+				}
+			};
+		}
+	}
+
+	/**
+	 * Matches statement patterns against the statements of the test.
+	 */
+	private class ListTripleSource implements TripleSource {
+
+		public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(
+				Resource subj, URI pred, Value obj, Resource... contexts)
+		{
+			List<Statement> result = new ArrayList<Statement>();
+			for (Statement st : statements) {
+				if ((subj == null || subj.equals(st.getSubject()))
+						&& (pred == null || pred.equals(st.getPredicate()))
+						&& (obj == null || obj.equals(st.getObject())))
+				{
+					result.add(st);
+				}
+			}
+			return new CloseableIteratorIteration<Statement, QueryEvaluationException>(result.iterator());
+		}
+
+		public ValueFactory getValueFactory() {
+			return vf;
+		}
+	}
+}
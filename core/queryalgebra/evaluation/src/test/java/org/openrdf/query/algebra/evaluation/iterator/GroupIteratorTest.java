@@ -0,0 +1,169 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import info.aduna.iteration.Iterations;
+
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.algebra.Avg;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.Count;
+import org.openrdf.query.algebra.Group;
+import org.openrdf.query.algebra.GroupConcat;
+import org.openrdf.query.algebra.GroupElem;
+import org.openrdf.query.algebra.Max;
+import org.openrdf.query.algebra.Min;
+import org.openrdf.query.algebra.Sum;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+
+public class GroupIteratorTest {
+
+	private static final int GROUP_COUNT = 7;
+
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	private ThreadPoolExecutor executor;
+
+	private EvaluationStrategyImpl strategy;
+
+	@Before
+	public void setUp() {
+		executor = (ThreadPoolExecutor)Executors.newFixedThreadPool(2);
+		strategy = new EvaluationStrategyImpl(null);
+	}
+
+	@After
+	public void tearDown()
+		throws Exception
+	{
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testParallelAggregates()
+		throws Exception
+	{
+		List<BindingSet> input = new ArrayList<BindingSet>();
+		for (int i = 0; i < 10000; i++) {
+			input.add(createSolution(i % GROUP_COUNT, vf.createLiteral(i)));
+		}
+		// Values that change the type of the sums
+		input.add(createSolution(3, vf.createLiteral("0.5", XMLSchema.DECIMAL)));
+		input.add(createSolution(4, vf.createLiteral(0.25)));
+		input.add(createSolution(5, vf.createLiteral(Long.MAX_VALUE)));
+
+		Group group = createGroup(input);
+		Map<Value, BindingSet> expected = evaluate(group, null);
+		Map<Value, BindingSet> actual = evaluate(group, executor);
+
+		assertEquals(GROUP_COUNT, actual.size());
+		assertEquals(expected, actual);
+		assertTrue(executor.getTaskCount() > 1);
+
+		BindingSet group0 = actual.get(vf.createLiteral(0));
+		assertEquals("1429", group0.getValue("count").stringValue());
+		assertEquals("0", group0.getValue("min").stringValue());
+		assertEquals("9996", group0.getValue("max").stringValue());
+	}
+
+	@Test
+	public void testParallelTypeError()
+		throws Exception
+	{
+		List<BindingSet> input = new ArrayList<BindingSet>();
+		for (int i = 0; i < 5000; i++) {
+			input.add(createSolution(i % GROUP_COUNT, vf.createLiteral(i)));
+		}
+		input.add(2500, createSolution(1, vf.createLiteral("x")));
+
+		Map<Value, BindingSet> actual = evaluate(createGroup(input), executor);
+
+		assertNull(actual.get(vf.createLiteral(1)).getValue("sum"));
+		assertNull(actual.get(vf.createLiteral(1)).getValue("avg"));
+		assertEquals(evaluate(createGroup(input), null), actual);
+	}
+
+	@Test
+	public void testSequentialFallback()
+		throws Exception
+	{
+		List<BindingSet> input = new ArrayList<BindingSet>();
+		for (int i = 0; i < 5000; i++) {
+			input.add(createSolution(i % GROUP_COUNT, vf.createLiteral(i)));
+		}
+
+		// GROUP_CONCAT depends on the order of the solutions
+		Group group = createGroup(input);
+		group.addGroupElement(new GroupElem("concat", new GroupConcat(new Var("v"))));
+
+		assertEquals(evaluate(group, null), evaluate(group, executor));
+		assertEquals(0, executor.getTaskCount());
+	}
+
+	private Group createGroup(List<BindingSet> input) {
+		BindingSetAssignment arg = new BindingSetAssignment();
+		arg.setBindingSets(input);
+
+		Group group = new Group(arg, Collections.singleton("g"));
+		group.addGroupElement(new GroupElem("count", new Count(null)));
+		group.addGroupElement(new GroupElem("sum", new Sum(new Var("v"))));
+		group.addGroupElement(new GroupElem("avg", new Avg(new Var("v"))));
+		group.addGroupElement(new GroupElem("min", new Min(new Var("v"))));
+		group.addGroupElement(new GroupElem("max", new Max(new Var("v"))));
+		return group;
+	}
+
+	private BindingSet createSolution(int group, Value value) {
+		QueryBindingSet bs = new QueryBindingSet();
+		bs.addBinding("g", vf.createLiteral(group));
+		bs.addBinding("v", value);
+		return bs;
+	}
+
+	/**
+	 * Evaluates the group and returns its solutions by the value of the group
+	 * variable.
+	 */
+	private Map<Value, BindingSet> evaluate(Group group, ExecutorService executor)
+		throws Exception
+	{
+		List<BindingSet> solutions = Iterations.asList(new GroupIterator(strategy, group,
+				EmptyBindingSet.getInstance(), 0, null, executor));
+
+		Map<Value, BindingSet> result = new HashMap<Value, BindingSet>();
+		for (BindingSet solution : solutions) {
+			result.put(solution.getValue("g"), solution);
+		}
+		assertEquals(solutions.size(), result.size());
+		return result;
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import info.aduna.iteration.Iterations;
+
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryResultUtil;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+
+/**
+ * Compares the results of {@link HashJoinIterator} to those of a nested loop.
+ */
+public class HashJoinIteratorTest {
+
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	private final EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(null);
+
+	private File tempDir;
+
+	@Before
+	public void setUp()
+		throws Exception
+	{
+		tempDir = File.createTempFile("hashjoin", "");
+		tempDir.delete();
+		tempDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		tempDir.delete();
+	}
+
+	@Test
+	public void testBuildOnRight()
+		throws Exception
+	{
+		List<BindingSet> left = createBindingSets(200, "x", "y", 0);
+		List<BindingSet> right = createBindingSets(50, "x", "z", 0);
+
+		assertJoin(left, right, 0);
+		assertJoin(left, right, 100);
+	}
+
+	@Test
+	public void testBuildOnLeft()
+		throws Exception
+	{
+		List<BindingSet> left = createBindingSets(50, "x", "y", 0);
+		List<BindingSet> right = createBindingSets(200, "x", "z", 0);
+
+		assertJoin(left, right, 0);
+		assertJoin(left, right, 100);
+	}
+
+	@Test
+	public void testSpilling()
+		throws Exception
+	{
+		List<BindingSet> left = createBindingSets(300, "x", "y", 0);
+		List<BindingSet> right = createBindingSets(200, "x", "z", 0);
+
+		assertJoin(left, right, 10);
+	}
+
+	@Test
+	public void testSharedVariables()
+		throws Exception
+	{
+		// ?y is only bound by some of the right solutions
+		List<BindingSet> left = createBindingSets(100, "x", "y", 0);
+		List<BindingSet> right = new ArrayList<BindingSet>(createBindingSets(60, "x", "z", 0));
+		right.addAll(createBindingSets(60, "x", "y", 0));
+
+		assertJoin(left, right, 0);
+		assertJoin(left, right, 8);
+	}
+
+	@Test
+	public void testUnboundKeys()
+		throws Exception
+	{
+		// Every third left solution and every fifth right solution lack ?x
+		List<BindingSet> left = createBindingSets(200, "x", "y", 3);
+		List<BindingSet> right = createBindingSets(80, "x", "z", 5);
+
+		assertJoin(left, right, 0);
+		assertJoin(left, right, 7);
+	}
+
+	@Test
+	public void testNoSharedVariables()
+		throws Exception
+	{
+		// Falls back to a nested loop once both arguments exceed the threshold
+		List<BindingSet> left = createBindingSets(30, "x", "y", 0);
+		List<BindingSet> right = createBindingSets(40, "z", "w", 0);
+
+		assertJoin(left, right, 0);
+		assertJoin(left, right, 5);
+	}
+
+	@Test
+	public void testEmptyArguments()
+		throws Exception
+	{
+		List<BindingSet> empty = Collections.emptyList();
+		List<BindingSet> bindingSets = createBindingSets(50, "x", "y", 0);
+
+		assertJoin(empty, bindingSets, 10);
+		assertJoin(bindingSets, empty, 10);
+		assertJoin(empty, empty, 10);
+	}
+
+	@Test
+	public void testCloseWhileProbing()
+		throws Exception
+	{
+		Join join = new Join(createAssignment(createBindingSets(20000, "x", "y", 0)),
+				createAssignment(createBindingSets(50, "x", "z", 7)));
+		join.setHashJoin(true);
+
+		final HashJoinIterator iter = new HashJoinIterator(strategy, join, EmptyBindingSet.getInstance(), 0,
+				tempDir);
+		iter.next();
+
+		// A time limit closes the iterator from another thread
+		Thread closer = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					iter.close();
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		closer.start();
+
+		while (iter.hasNext()) {
+			iter.next();
+		}
+		closer.join();
+
+		assertFalse(iter.hasNext());
+	}
+
+	private void assertJoin(List<BindingSet> left, List<BindingSet> right, int spillThreshold)
+		throws Exception
+	{
+		List<BindingSet> expected = new ArrayList<BindingSet>();
+		for (BindingSet leftBindings : left) {
+			for (BindingSet rightBindings : right) {
+				if (QueryResultUtil.bindingSetsCompatible(leftBindings, rightBindings)) {
+					QueryBindingSet bs = new QueryBindingSet(leftBindings);
+					for (Binding binding : rightBindings) {
+						if (!bs.hasBinding(binding.getName())) {
+							bs.addBinding(binding);
+						}
+					}
+					expected.add(bs);
+				}
+			}
+		}
+
+		Join join = new Join(createAssignment(left), createAssignment(right));
+		join.setHashJoin(true);
+
+		List<BindingSet> actual = Iterations.asList(new HashJoinIterator(strategy, join,
+				EmptyBindingSet.getInstance(), spillThreshold, tempDir));
+
+		assertEquals(sort(expected), sort(actual));
+		assertEquals(0, tempDir.list().length);
+	}
+
+	private BindingSetAssignment createAssignment(List<BindingSet> bindingSets) {
+		BindingSetAssignment result = new BindingSetAssignment();
+		result.setBindingSets(bindingSets);
+		return result;
+	}
+
+	private List<String> sort(List<BindingSet> bindingSets) {
+		List<String> result = new ArrayList<String>();
+		for (BindingSet bindingSet : bindingSets) {
+			// The order of the bindings depends on the argument that was probed
+			Map<String, Value> bindings = new TreeMap<String, Value>();
+			for (Binding binding : bindingSet) {
+				bindings.put(binding.getName(), binding.getValue());
+			}
+			result.add(bindings.toString());
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Creates binding sets that bind two variables to numbers, the first one to
+	 * a number between 0 and 20. If <tt>unbound</tt> is larger than zero, the
+	 * first variable is left unbound in every n-th binding set.
+	 */
+	private List<BindingSet> createBindingSets(int count, String name1, String name2, int unbound) {
+		List<BindingSet> result = new ArrayList<BindingSet>();
+		for (int i = 0; i < count; i++) {
+			QueryBindingSet bs = new QueryBindingSet();
+			if (unbound == 0 || i % unbound != 0) {
+				bs.addBinding(name1, vf.createLiteral((i * 7) % 20));
+			}
+			bs.addBinding(name2, vf.createLiteral(i % 13));
+			result.add(bs);
+		}
+		return result;
+	}
+}
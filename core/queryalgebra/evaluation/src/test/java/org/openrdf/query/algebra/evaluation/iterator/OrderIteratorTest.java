@@ -5,6 +5,7 @@
  */
 package org.openrdf.query.algebra.evaluation.iterator;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -18,9 +19,12 @@ import junit.framework.TestCase;
 import info.aduna.iteration.CloseableIteratorIteration;
 
 import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
 
 
 /**
@@ -175,6 +179,91 @@ public class OrderIteratorTest extends TestCase {
 		assertFalse(order.hasNext());
 	}
 
+	public void testSpilling() throws Exception {
+		File tempDir = createTempDir();
+		try {
+			List<BindingSet> input = createBindingSets(100);
+			List<BindingSet> sorted = new ArrayList<BindingSet>(input);
+			Collections.sort(sorted, new ValueComparator());
+
+			OrderIterator spilling = createSpillingIterator(input, Long.MAX_VALUE, false, 7, tempDir);
+			for (BindingSet b : sorted) {
+				assertEquals(b, spilling.next());
+			}
+			assertFalse(spilling.hasNext());
+			assertEquals(14, tempDir.list().length);
+
+			spilling.close();
+			assertEquals(0, tempDir.list().length);
+		}
+		finally {
+			tempDir.delete();
+		}
+	}
+
+	public void testSpillingLimitDistinct() throws Exception {
+		File tempDir = createTempDir();
+		try {
+			List<BindingSet> input = new ArrayList<BindingSet>(createBindingSets(50));
+			input.addAll(createBindingSets(50));
+			List<BindingSet> sorted = new ArrayList<BindingSet>(createBindingSets(50));
+			Collections.sort(sorted, new ValueComparator());
+
+			OrderIterator spilling = createSpillingIterator(input, 20, true, 10, tempDir);
+			for (BindingSet b : sorted.subList(0, 20)) {
+				assertEquals(b, spilling.next());
+			}
+			assertFalse(spilling.hasNext());
+
+			spilling.close();
+			assertEquals(0, tempDir.list().length);
+		}
+		finally {
+			tempDir.delete();
+		}
+	}
+
+	private OrderIterator createSpillingIterator(List<BindingSet> input, long limit, boolean distinct,
+			int spillThreshold, File tempDir)
+	{
+		IterationStub stub = new IterationStub();
+		stub.setIterator(input.iterator());
+		return new OrderIterator(stub, new ValueComparator(), limit, distinct, spillThreshold, tempDir);
+	}
+
+	/**
+	 * Creates binding sets with a numeric binding <tt>n</tt> and, for odd
+	 * numbers, a binding <tt>odd</tt>.
+	 */
+	private List<BindingSet> createBindingSets(int count) {
+		ValueFactory vf = ValueFactoryImpl.getInstance();
+		List<BindingSet> result = new ArrayList<BindingSet>();
+		for (int i = 0; i < count; i++) {
+			QueryBindingSet bs = new QueryBindingSet();
+			bs.addBinding("n", vf.createLiteral((i * 37) % count));
+			if (i % 2 == 1) {
+				bs.addBinding("odd", vf.createURI("urn:odd"));
+			}
+			result.add(bs);
+		}
+		return result;
+	}
+
+	private File createTempDir() throws Exception {
+		File tempDir = File.createTempFile("order", "");
+		tempDir.delete();
+		tempDir.mkdir();
+		return tempDir;
+	}
+
+	class ValueComparator implements Comparator<BindingSet> {
+		public int compare(BindingSet o1, BindingSet o2) {
+			int n1 = Integer.parseInt(o1.getValue("n").stringValue());
+			int n2 = Integer.parseInt(o2.getValue("n").stringValue());
+			return n1 < n2 ? -1 : n1 == n2 ? 0 : 1;
+		}
+	}
+
 	@Override
 	protected void setUp() throws Exception {
 		list = Arrays.asList(b3, b5, b2, b1, b4, b2);
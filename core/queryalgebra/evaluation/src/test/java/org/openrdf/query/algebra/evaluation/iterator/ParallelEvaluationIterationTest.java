@@ -0,0 +1,227 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.IterationWrapper;
+import info.aduna.iteration.Iterations;
+
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.Distinct;
+import org.openrdf.query.algebra.EmptySet;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Union;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+
+public class ParallelEvaluationIterationTest {
+
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	private ExecutorService executor;
+
+	private CountingStrategy strategy;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(2);
+		strategy = new CountingStrategy();
+		strategy.setExecutor(executor);
+	}
+
+	@After
+	public void tearDown()
+		throws Exception
+	{
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testUnion()
+		throws Exception
+	{
+		// More arms than threads and more results than fit in the queue
+		List<TupleExpr> args = new ArrayList<TupleExpr>();
+		for (int i = 0; i < 10; i++) {
+			args.add(createAssignment(i, 100));
+		}
+
+		List<BindingSet> result = evaluate(args);
+
+		assertEquals(sort(expected(args)), sort(result));
+		assertEquals(0, strategy.openIterations.get());
+	}
+
+	@Test
+	public void testNestedUnions()
+		throws Exception
+	{
+		// A single thread must not be blocked by the unions inside its arms
+		executor.shutdown();
+		executor = Executors.newSingleThreadExecutor();
+		strategy.setExecutor(executor);
+
+		TupleExpr arg1 = createAssignment(1, 10);
+		TupleExpr arg2 = createAssignment(2, 10);
+		TupleExpr arg3 = createAssignment(3, 10);
+		TupleExpr arg4 = createAssignment(4, 10);
+		Union union = new Union(new Union(arg1, arg2), new Distinct(new Union(arg3, arg4)));
+
+		List<BindingSet> result = Iterations.asList(strategy.evaluate(union, EmptyBindingSet.getInstance()));
+
+		assertEquals(sort(expected(Arrays.asList(arg1, arg2, arg3, arg4))), sort(result));
+		assertEquals(0, strategy.openIterations.get());
+	}
+
+	@Test
+	public void testCloseEarly()
+		throws Exception
+	{
+		List<TupleExpr> args = new ArrayList<TupleExpr>();
+		for (int i = 0; i < 10; i++) {
+			args.add(createAssignment(i, 10000));
+		}
+
+		ParallelEvaluationIteration iter = new ParallelEvaluationIteration(strategy, executor, args,
+				EmptyBindingSet.getInstance());
+		for (int i = 0; i < 10; i++) {
+			iter.next();
+		}
+		iter.close();
+
+		assertFalse(iter.hasNext());
+		assertEquals(0, strategy.openIterations.get());
+
+		// The threads are available for other tasks
+		assertEquals(10, evaluate(Collections.singletonList(createAssignment(0, 10))).size());
+	}
+
+	@Test
+	public void testException()
+		throws Exception
+	{
+		List<TupleExpr> args = new ArrayList<TupleExpr>();
+		args.add(createAssignment(0, 1000));
+		args.add(new EmptySet());
+		args.add(createAssignment(1, 1000));
+
+		try {
+			evaluate(args);
+			fail("expected QueryEvaluationException");
+		}
+		catch (QueryEvaluationException e) {
+			// expected
+		}
+		assertEquals(0, strategy.openIterations.get());
+	}
+
+	private List<BindingSet> evaluate(List<? extends TupleExpr> args)
+		throws QueryEvaluationException
+	{
+		return Iterations.asList(new ParallelEvaluationIteration(strategy, executor, args,
+				EmptyBindingSet.getInstance()));
+	}
+
+	private List<BindingSet> expected(List<? extends TupleExpr> args) {
+		List<BindingSet> result = new ArrayList<BindingSet>();
+		for (TupleExpr arg : args) {
+			for (BindingSet bs : ((BindingSetAssignment)arg).getBindingSets()) {
+				result.add(bs);
+			}
+		}
+		return result;
+	}
+
+	private List<String> sort(List<BindingSet> bindingSets) {
+		List<String> result = new ArrayList<String>();
+		for (BindingSet bindingSet : bindingSets) {
+			result.add(bindingSet.toString());
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Creates an expression with <tt>count</tt> solutions that bind <tt>arm</tt>
+	 * to the specified number and <tt>n</tt> to the solution's number.
+	 */
+	private BindingSetAssignment createAssignment(int arm, int count) {
+		List<BindingSet> bindingSets = new ArrayList<BindingSet>();
+		for (int i = 0; i < count; i++) {
+			QueryBindingSet bs = new QueryBindingSet();
+			bs.addBinding("arm", vf.createLiteral(arm));
+			bs.addBinding("n", vf.createLiteral(i));
+			bindingSets.add(bs);
+		}
+
+		BindingSetAssignment result = new BindingSetAssignment();
+		result.setBindingSets(bindingSets);
+		return result;
+	}
+
+	/**
+	 * Counts the iterations of binding set assignments that have not been
+	 * closed and fails on empty sets.
+	 */
+	private static class CountingStrategy extends EvaluationStrategyImpl {
+
+		final AtomicInteger openIterations = new AtomicInteger();
+
+		public CountingStrategy() {
+			super(null);
+		}
+
+		@Override
+		public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(TupleExpr expr,
+				BindingSet bindings)
+			throws QueryEvaluationException
+		{
+			if (expr instanceof EmptySet) {
+				throw new QueryEvaluationException("evaluation failed");
+			}
+			else if (expr instanceof BindingSetAssignment) {
+				openIterations.incrementAndGet();
+				return new IterationWrapper<BindingSet, QueryEvaluationException>(super.evaluate(expr,
+						bindings))
+				{
+
+					@Override
+					protected void handleClose()
+						throws QueryEvaluationException
+					{
+						openIterations.decrementAndGet();
+						super.handleClose();
+					}
+				};
+			}
+			return super.evaluate(expr, bindings);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import info.aduna.iteration.CloseableIteratorIteration;
+import info.aduna.iteration.Iterations;
+
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+
+public class SpillingDistinctIterationTest {
+
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	private File tempDir;
+
+	@Before
+	public void setUp()
+		throws Exception
+	{
+		tempDir = File.createTempFile("distinct", "");
+		tempDir.delete();
+		tempDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		tempDir.delete();
+	}
+
+	@Test
+	public void testInMemory()
+		throws Exception
+	{
+		List<BindingSet> input = createBindingSets(100, 30);
+
+		List<BindingSet> result = Iterations.asList(createIteration(input, 50));
+		assertEquals(createBindingSets(30, 30), result);
+		assertEquals(0, tempDir.list().length);
+	}
+
+	@Test
+	public void testSpilling()
+		throws Exception
+	{
+		List<BindingSet> input = createBindingSets(1000, 300);
+
+		SpillingDistinctIteration iter = createIteration(input, 10);
+		List<BindingSet> result = new ArrayList<BindingSet>();
+		while (iter.hasNext()) {
+			result.add(iter.next());
+		}
+
+		// The solutions below the threshold are returned in order
+		assertEquals(createBindingSets(10, 10), result.subList(0, 10));
+		assertEquals(300, result.size());
+		assertEquals(new HashSet<BindingSet>(createBindingSets(300, 300)), new HashSet<BindingSet>(result));
+
+		iter.close();
+		assertEquals(0, tempDir.list().length);
+	}
+
+	@Test
+	public void testRepartitioning()
+		throws Exception
+	{
+		// More distinct solutions than fit in a single level of partitions
+		List<BindingSet> input = createBindingSets(2000, 1000);
+
+		Set<BindingSet> result = new HashSet<BindingSet>();
+		SpillingDistinctIteration iter = createIteration(input, 2);
+		while (iter.hasNext()) {
+			assertTrue(result.add(iter.next()));
+		}
+		iter.close();
+
+		assertEquals(1000, result.size());
+		assertEquals(0, tempDir.list().length);
+	}
+
+	@Test
+	public void testCloseEarly()
+		throws Exception
+	{
+		SpillingDistinctIteration iter = createIteration(createBindingSets(100, 100), 10);
+		for (int i = 0; i < 20; i++) {
+			iter.next();
+		}
+		assertTrue(tempDir.list().length > 0);
+
+		iter.close();
+		assertEquals(0, tempDir.list().length);
+	}
+
+	private SpillingDistinctIteration createIteration(List<BindingSet> input, int spillThreshold) {
+		return new SpillingDistinctIteration(new CloseableIteratorIteration<BindingSet, QueryEvaluationException>(
+				input.iterator()), spillThreshold, tempDir);
+	}
+
+	/**
+	 * Creates binding sets with a numeric binding <tt>n</tt> that repeats after
+	 * <tt>distinct</tt> values and, for odd numbers, a binding <tt>odd</tt>.
+	 */
+	private List<BindingSet> createBindingSets(int count, int distinct) {
+		List<BindingSet> result = new ArrayList<BindingSet>();
+		for (int i = 0; i < count; i++) {
+			int n = i % distinct;
+			QueryBindingSet bs = new QueryBindingSet();
+			bs.addBinding("n", vf.createLiteral(n));
+			if (n % 2 == 1) {
+				bs.addBinding("odd", vf.createURI("urn:odd"));
+			}
+			result.add(bs);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.iterator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+import info.aduna.iteration.Iterations;
+
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+
+/**
+ * Compares the results of {@link SpillingMinusIteration} to those of
+ * {@link SPARQLMinusIteration}.
+ */
+public class SpillingMinusIterationTest {
+
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	private File tempDir;
+
+	@Before
+	public void setUp()
+		throws Exception
+	{
+		tempDir = File.createTempFile("minus", "");
+		tempDir.delete();
+		tempDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		tempDir.delete();
+	}
+
+	@Test
+	public void testInMemory()
+		throws Exception
+	{
+		List<BindingSet> left = createBindingSets(200, "x", "y", 0);
+		List<BindingSet> right = createBindingSets(50, "x", "z", 0);
+
+		assertMinus(left, right, 0);
+		assertMinus(left, right, 100);
+	}
+
+	@Test
+	public void testSpilling()
+		throws Exception
+	{
+		List<BindingSet> left = createBindingSets(200, "x", "y", 0);
+		List<BindingSet> right = createBindingSets(50, "x", "z", 0);
+
+		assertMinus(left, right, 10);
+	}
+
+	@Test
+	public void testUnboundKeys()
+		throws Exception
+	{
+		// Every third left solution and every fifth right solution lack ?x
+		List<BindingSet> left = createBindingSets(200, "x", "y", 3);
+		List<BindingSet> right = createBindingSets(80, "x", "y", 5);
+
+		assertMinus(left, right, 7);
+	}
+
+	@Test
+	public void testNoCommonBindings()
+		throws Exception
+	{
+		List<BindingSet> left = createBindingSets(100, "x", "y", 0);
+		List<BindingSet> right = new ArrayList<BindingSet>(createBindingSets(30, "x", "z", 0));
+		right.addAll(createBindingSets(30, "y", "z", 0));
+
+		assertMinus(left, right, 8);
+	}
+
+	@Test
+	public void testNoSharedVariables()
+		throws Exception
+	{
+		List<BindingSet> left = createBindingSets(50, "x", "y", 0);
+		List<BindingSet> right = createBindingSets(50, "z", "w", 0);
+
+		assertMinus(left, right, 5);
+	}
+
+	private void assertMinus(List<BindingSet> left, List<BindingSet> right, int spillThreshold)
+		throws Exception
+	{
+		List<BindingSet> expected = Iterations.asList(new SPARQLMinusIteration<QueryEvaluationException>(
+				iterate(left), iterate(right)));
+
+		List<BindingSet> actual = Iterations.asList(new SpillingMinusIteration(iterate(left), iterate(right),
+				spillThreshold, tempDir));
+
+		assertEquals(sort(expected), sort(actual));
+		assertEquals(0, tempDir.list().length);
+	}
+
+	private CloseableIteration<BindingSet, QueryEvaluationException> iterate(List<BindingSet> bindingSets) {
+		return new CloseableIteratorIteration<BindingSet, QueryEvaluationException>(bindingSets.iterator());
+	}
+
+	private List<String> sort(List<BindingSet> bindingSets) {
+		List<String> result = new ArrayList<String>();
+		for (BindingSet bindingSet : bindingSets) {
+			result.add(bindingSet.toString());
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Creates binding sets that bind two variables to numbers, the first one to
+	 * a number between 0 and 20. If <tt>unbound</tt> is larger than zero, the
+	 * first variable is left unbound in every n-th binding set.
+	 */
+	private List<BindingSet> createBindingSets(int count, String name1, String name2, int unbound) {
+		List<BindingSet> result = new ArrayList<BindingSet>();
+		for (int i = 0; i < count; i++) {
+			QueryBindingSet bs = new QueryBindingSet();
+			if (unbound == 0 || i % unbound != 0) {
+				bs.addBinding(name1, vf.createLiteral((i * 7) % 20));
+			}
+			bs.addBinding(name2, vf.createLiteral(i % 13));
+			result.add(bs);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.algebra.MathExpr.MathOp;
+import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
+
+/**
+ * Checks that {@link NumericSum} computes the same sums as
+ * {@link MathUtil#compute(Literal, Literal, MathOp)}.
+ */
+public class NumericSumTest {
+
+	private final ValueFactory f = ValueFactoryImpl.getInstance();
+
+	@Test
+	public void testEmpty() {
+		assertEquals(f.createLiteral("0", XMLSchema.INTEGER), new NumericSum().getValue());
+	}
+
+	@Test
+	public void testIntegers()
+		throws Exception
+	{
+		assertSum(f.createLiteral(1), f.createLiteral(2L), f.createLiteral("+3", XMLSchema.INTEGER),
+				f.createLiteral("-4", XMLSchema.NON_POSITIVE_INTEGER));
+	}
+
+	@Test
+	public void testOverflow()
+		throws Exception
+	{
+		assertSum(f.createLiteral(Long.MAX_VALUE), f.createLiteral(1), f.createLiteral(Long.MAX_VALUE));
+		assertSum(f.createLiteral(Long.MIN_VALUE), f.createLiteral(-1));
+		assertSum(f.createLiteral("123456789012345678901234567890", XMLSchema.INTEGER), f.createLiteral(1));
+	}
+
+	@Test
+	public void testMixed()
+		throws Exception
+	{
+		assertSum(f.createLiteral(1), f.createLiteral(0.5));
+		assertSum(f.createLiteral(1), f.createLiteral("1.5", XMLSchema.DECIMAL), f.createLiteral(2));
+		assertSum(f.createLiteral(1), f.createLiteral(1.5f), f.createLiteral(2.5));
+		assertSum(f.createLiteral(0.1), f.createLiteral("0.2", XMLSchema.DECIMAL), f.createLiteral(3));
+	}
+
+	@Test
+	public void testMerge()
+		throws Exception
+	{
+		NumericSum part1 = new NumericSum();
+		part1.add(f.createLiteral(40));
+		part1.add(f.createLiteral(Long.MAX_VALUE));
+
+		NumericSum part2 = new NumericSum();
+		part2.add(f.createLiteral(2));
+
+		part1.add(part2);
+		assertEquals(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.valueOf(42)),
+				part1.getValue().integerValue());
+	}
+
+	@Test
+	public void testInvalid()
+		throws Exception
+	{
+		NumericSum sum = new NumericSum();
+		sum.add(f.createLiteral(1.0));
+
+		try {
+			sum.add(f.createLiteral("abc", XMLSchema.DOUBLE));
+			fail("expected ValueExprEvaluationException");
+		}
+		catch (ValueExprEvaluationException e) {
+			// expected
+		}
+
+		sum = new NumericSum();
+		try {
+			sum.add(f.createLiteral("abc", XMLSchema.INTEGER));
+			fail("expected ValueExprEvaluationException");
+		}
+		catch (ValueExprEvaluationException e) {
+			// expected
+		}
+	}
+
+	private void assertSum(Literal... values)
+		throws Exception
+	{
+		Literal expected = f.createLiteral("0", XMLSchema.INTEGER);
+		NumericSum sum = new NumericSum();
+
+		for (Literal value : values) {
+			expected = MathUtil.compute(expected, value, MathOp.PLUS);
+			sum.add(value);
+		}
+
+		assertEquals(expected, sum.getValue());
+	}
+}
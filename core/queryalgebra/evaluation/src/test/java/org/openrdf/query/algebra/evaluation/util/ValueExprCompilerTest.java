@@ -0,0 +1,238 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.query.algebra.evaluation.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.EmptyIteration;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.And;
+import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.Compare.CompareOp;
+import org.openrdf.query.algebra.FunctionCall;
+import org.openrdf.query.algebra.MathExpr;
+import org.openrdf.query.algebra.MathExpr.MathOp;
+import org.openrdf.query.algebra.Not;
+import org.openrdf.query.algebra.Or;
+import org.openrdf.query.algebra.Regex;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+
+/**
+ * Checks that expressions compiled by {@link ValueExprCompiler} evaluate to
+ * the same values, and fail for the same bindings, as the expressions
+ * evaluated by {@link EvaluationStrategyImpl}.
+ */
+public class ValueExprCompilerTest {
+
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	private final EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(new EmptyTripleSource());
+
+	private final ValueExprCompiler compiler = new ValueExprCompiler(strategy, vf);
+
+	@Test
+	public void testNumericCompare()
+		throws Exception
+	{
+		for (CompareOp op : CompareOp.values()) {
+			assertSameResults(new Compare(new Var("x"), constant(vf.createLiteral(5)), op));
+			assertSameResults(new Compare(constant(vf.createLiteral(5)), new Var("x"), op));
+			assertSameResults(new Compare(new Var("x"), constant(vf.createLiteral(2.5)), op));
+			assertSameResults(new Compare(constant(vf.createLiteral(2.5f)), new Var("x"), op));
+			assertSameResults(new Compare(new Var("x"), constant(vf.createLiteral("2.50", XMLSchema.DECIMAL)),
+					op));
+			assertSameResults(new Compare(new Var("x"), constant(vf.createLiteral("5", XMLSchema.INT)), op));
+			assertSameResults(new Compare(new Var("x"), constant(vf.createLiteral("five", XMLSchema.INT)), op));
+		}
+	}
+
+	@Test
+	public void testGenericCompare()
+		throws Exception
+	{
+		for (CompareOp op : CompareOp.values()) {
+			assertSameResults(new Compare(new Var("x"), new Var("x"), op));
+			assertSameResults(new Compare(new Var("x"), constant(vf.createLiteral("abc")), op));
+			assertSameResults(new Compare(new Var("x"), new Var("y"), op));
+		}
+	}
+
+	@Test
+	public void testBooleanOperators()
+		throws Exception
+	{
+		ValueExpr positive = new Compare(new Var("x"), constant(vf.createLiteral(0)), CompareOp.GT);
+		ValueExpr unbound = new Compare(new Var("y"), constant(vf.createLiteral(0)), CompareOp.GT);
+
+		assertSameResults(new And(positive, unbound));
+		assertSameResults(new And(unbound, positive));
+		assertSameResults(new Or(positive, unbound));
+		assertSameResults(new Or(unbound, positive));
+		assertSameResults(new Not(positive));
+		assertSameResults(new Not(new Var("x")));
+	}
+
+	@Test
+	public void testMath()
+		throws Exception
+	{
+		for (MathOp op : MathOp.values()) {
+			assertSameResults(new MathExpr(new Var("x"), constant(vf.createLiteral(2)), op));
+		}
+	}
+
+	@Test
+	public void testRegex()
+		throws Exception
+	{
+		assertSameResults(new Regex(new Var("x"), constant(vf.createLiteral("^a.C")), null));
+		assertSameResults(new Regex(new Var("x"), constant(vf.createLiteral("^a.C")),
+				constant(vf.createLiteral("i"))));
+		assertSameResults(new Regex(new Var("x"), constant(vf.createLiteral("^a")),
+				constant(vf.createLiteral("q"))));
+		assertSameResults(new Regex(new Var("x"), constant(vf.createLiteral("(")), null));
+		assertSameResults(new Regex(new Var("x"), new Var("x"), null));
+	}
+
+	@Test
+	public void testFunctionCall()
+		throws Exception
+	{
+		assertSameResults(new FunctionCall(XMLSchema.DOUBLE.toString(), new Var("x")));
+		assertSameResults(new FunctionCall(XMLSchema.INTEGER.toString(), new MathExpr(new Var("x"),
+				constant(vf.createLiteral(1)), MathOp.PLUS)));
+	}
+
+	@Test
+	public void testUnknownFunction()
+		throws Exception
+	{
+		CompiledValueExpr compiled = compiler.compile(new FunctionCall("urn:unknown", new Var("x")));
+
+		try {
+			compiled.evaluate(bindings(vf.createLiteral(1)));
+			fail("unknown function should not evaluate");
+		}
+		catch (QueryEvaluationException e) {
+			// expected
+			assertFalse(e instanceof ValueExprEvaluationException);
+		}
+	}
+
+	@Test
+	public void testIsTrue()
+		throws Exception
+	{
+		CompiledValueExpr compiled = compiler.compile(new Compare(new Var("x"),
+				constant(vf.createLiteral(3)), CompareOp.LT));
+
+		assertTrue(compiled.isTrue(bindings(vf.createLiteral(2))));
+		assertFalse(compiled.isTrue(bindings(vf.createLiteral(4))));
+		assertFalse(compiled.isTrue(bindings(vf.createURI("urn:x"))));
+		assertFalse(compiled.isTrue(new QueryBindingSet()));
+	}
+
+	private void assertSameResults(ValueExpr expr)
+		throws Exception
+	{
+		CompiledValueExpr compiled = compiler.compile(expr);
+
+		for (Value value : getValues()) {
+			QueryBindingSet bindings = bindings(value);
+
+			String expected;
+			try {
+				expected = String.valueOf(strategy.evaluate(expr, bindings));
+			}
+			catch (Exception e) {
+				expected = e.getClass().getName();
+			}
+
+			String actual;
+			try {
+				actual = String.valueOf(compiled.evaluate(bindings));
+			}
+			catch (Exception e) {
+				actual = e.getClass().getName();
+			}
+
+			assertEquals(expr + " for " + value, expected, actual);
+		}
+	}
+
+	private List<Value> getValues() {
+		List<Value> values = new ArrayList<Value>();
+		values.add(vf.createLiteral(4));
+		values.add(vf.createLiteral(5));
+		values.add(vf.createLiteral(6L));
+		values.add(vf.createLiteral(-3));
+		values.add(vf.createLiteral(2.5));
+		values.add(vf.createLiteral(2.49f));
+		values.add(vf.createLiteral(Double.NaN));
+		values.add(vf.createLiteral("2.5", XMLSchema.DECIMAL));
+		values.add(vf.createLiteral("5", XMLSchema.INT));
+		values.add(vf.createLiteral("5", XMLSchema.UNSIGNED_BYTE));
+		values.add(vf.createLiteral("five", XMLSchema.INT));
+		values.add(vf.createLiteral("five", XMLSchema.DOUBLE));
+		values.add(vf.createLiteral("true", XMLSchema.BOOLEAN));
+		values.add(vf.createLiteral("abc"));
+		values.add(vf.createLiteral("AbC"));
+		values.add(vf.createLiteral("abc", XMLSchema.STRING));
+		values.add(vf.createLiteral("abc", "en"));
+		values.add(vf.createURI("urn:abc"));
+		values.add(vf.createBNode("abc"));
+		values.add(null);
+		return values;
+	}
+
+	private QueryBindingSet bindings(Value value) {
+		QueryBindingSet bindings = new QueryBindingSet();
+		if (value != null) {
+			bindings.addBinding("x", value);
+		}
+		return bindings;
+	}
+
+	private ValueConstant constant(Value value) {
+		return new ValueConstant(value);
+	}
+
+	private class EmptyTripleSource implements TripleSource {
+
+		public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(
+				Resource subj, URI pred, Value obj, Resource... contexts)
+		{
+			return new EmptyIteration<Statement, QueryEvaluationException>();
+		}
+
+		public ValueFactory getValueFactory() {
+			return vf;
+		}
+	}
+}
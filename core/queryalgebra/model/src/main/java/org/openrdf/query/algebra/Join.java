@@ -15,6 +15,12 @@ import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
  */
 public class Join extends BinaryTupleOperator {
 
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private boolean hashJoin = false;
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -37,6 +43,20 @@ public class Join extends BinaryTupleOperator {
 		return containsProjection(rightArg);
 	}
 
+	/**
+	 * Checks whether this join should be evaluated as a hash join, evaluating
+	 * both arguments independently and joining their results on the variables
+	 * that they share. By default, joins are evaluated as nested loops that
+	 * evaluate the right argument for every result of the left argument.
+	 */
+	public boolean isHashJoin() {
+		return hashJoin;
+	}
+
+	public void setHashJoin(boolean hashJoin) {
+		this.hashJoin = hashJoin;
+	}
+
 	public Set<String> getBindingNames() {
 		Set<String> bindingNames = new LinkedHashSet<String>(16);
 		bindingNames.addAll(getLeftArg().getBindingNames());
@@ -57,9 +77,17 @@ public class Join extends BinaryTupleOperator {
 		visitor.meet(this);
 	}
 
+	@Override
+	public String getSignature() {
+		if (hashJoin) {
+			return super.getSignature() + " (hash)";
+		}
+		return super.getSignature();
+	}
+
 	@Override
 	public boolean equals(Object other) {
-		return other instanceof Join && super.equals(other);
+		return other instanceof Join && super.equals(other) && hashJoin == ((Join)other).isHashJoin();
 	}
 
 	@Override
@@ -36,6 +36,7 @@ import java.util.Collections;
 import java.util.List;
 
 import info.aduna.io.IOUtil;
+import info.aduna.iteration.LookAheadIteration;
 
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
@@ -43,9 +44,13 @@ import org.openrdf.model.URI;
 import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
 import org.openrdf.query.TupleQueryResultHandlerException;
 import org.openrdf.query.impl.EmptyBindingSet;
 import org.openrdf.query.impl.ListBindingSet;
+import org.openrdf.query.impl.TupleQueryResultImpl;
 import org.openrdf.query.resultio.QueryResultParseException;
 import org.openrdf.query.resultio.TupleQueryResultFormat;
 import org.openrdf.query.resultio.TupleQueryResultParserBase;
@@ -68,6 +73,10 @@ public class BinaryQueryResultParser extends TupleQueryResultParserBase {
 
 	private String[] namespaceArray = new String[32];
 
+	private List<String> columnHeaders;
+
+	private List<Value> previousTuple;
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -106,6 +115,79 @@ public class BinaryQueryResultParser extends TupleQueryResultParserBase {
 			throw new IllegalArgumentException("listener can not be 'null'");
 		}
 
+		handler.startQueryResult(readHeader(in));
+
+		BindingSet solution;
+		while ((solution = readSolution()) != null) {
+			handler.handleSolution(solution);
+		}
+
+		handler.endQueryResult();
+	}
+
+	/**
+	 * Parses a binary query result incrementally. The column headers are read
+	 * immediately, the solutions are only read from the input stream when the
+	 * returned query result is iterated over. The parser can not be used to
+	 * parse other results until the returned result has been read completely
+	 * or has been closed. Closing the returned result closes the input stream.
+	 * 
+	 * @param in
+	 *        The input stream to read the query result from.
+	 * @return The query result.
+	 */
+	public TupleQueryResult parseIncrementally(final InputStream in)
+		throws IOException, QueryResultParseException
+	{
+		if (in == null) {
+			throw new IllegalArgumentException("Input stream can not be 'null'");
+		}
+
+		List<String> columnHeaders = readHeader(in);
+
+		return new TupleQueryResultImpl(columnHeaders,
+				new LookAheadIteration<BindingSet, QueryEvaluationException>() {
+
+					@Override
+					protected BindingSet getNextElement()
+						throws QueryEvaluationException
+					{
+						try {
+							return readSolution();
+						}
+						catch (IOException e) {
+							throw new QueryEvaluationException(e);
+						}
+						catch (QueryResultParseException e) {
+							throw new QueryEvaluationException(e);
+						}
+					}
+
+					@Override
+					protected void handleClose()
+						throws QueryEvaluationException
+					{
+						try {
+							super.handleClose();
+						}
+						finally {
+							try {
+								in.close();
+							}
+							catch (IOException e) {
+								throw new QueryEvaluationException(e);
+							}
+						}
+					}
+				});
+	}
+
+	/**
+	 * Reads the header of the query result and returns the column headers.
+	 */
+	private List<String> readHeader(InputStream in)
+		throws IOException, QueryResultParseException
+	{
 		this.in = new DataInputStream(in);
 
 		// Check magic number
@@ -135,13 +217,23 @@ public class BinaryQueryResultParser extends TupleQueryResultParserBase {
 		for (int i = 0; i < columnCount; i++) {
 			columnHeaders.add(readString());
 		}
-		columnHeaders = Collections.unmodifiableList(columnHeaders);
+		this.columnHeaders = Collections.unmodifiableList(columnHeaders);
+		this.previousTuple = Collections.nCopies(columnCount, (Value)null);
 
-		handler.startQueryResult(columnHeaders);
+		return this.columnHeaders;
+	}
 
-		// Read value tuples
+	/**
+	 * Reads the next solution from the query result.
+	 * 
+	 * @return The next solution, or <tt>null</tt> if the end of the result has
+	 *         been reached.
+	 */
+	private BindingSet readSolution()
+		throws IOException, QueryResultParseException
+	{
+		int columnCount = columnHeaders.size();
 		List<Value> currentTuple = new ArrayList<Value>(columnCount);
-		List<Value> previousTuple = Collections.nCopies(columnCount, (Value)null);
 
 		int recordTypeMarker = this.in.readByte();
 
@@ -153,7 +245,7 @@ public class BinaryQueryResultParser extends TupleQueryResultParserBase {
 				processNamespace();
 			}
 			else if (recordTypeMarker == EMPTY_ROW_RECORD_MARKER) {
-				handler.handleSolution(EmptyBindingSet.getInstance());
+				return EmptyBindingSet.getInstance();
 			}
 			else {
 				Value value = null;
@@ -185,16 +277,14 @@ public class BinaryQueryResultParser extends TupleQueryResultParserBase {
 
 				if (currentTuple.size() == columnCount) {
 					previousTuple = Collections.unmodifiableList(currentTuple);
-					currentTuple = new ArrayList<Value>(columnCount);
-
-					handler.handleSolution(new ListBindingSet(columnHeaders, previousTuple));
+					return new ListBindingSet(columnHeaders, previousTuple);
 				}
 			}
 
 			recordTypeMarker = this.in.readByte();
 		}
 
-		handler.endQueryResult();
+		return null;
 	}
 
 	private void processError()
@@ -0,0 +1,204 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.repository.sail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.QueryParserUtil;
+
+/**
+ * A bounded, thread-safe cache of parsed queries, keyed on the query language,
+ * the query string and the base URI. The cached query models are shared by all
+ * queries that are prepared from the same query string. This allows the Sail
+ * to recognize repeated evaluations of the same query, e.g. to reuse an
+ * optimized query plan, but also means that the query models must not be
+ * modified.
+ * <p>
+ * When the cache is full, the least recently used query is evicted.
+ * @see SailRepository#setQueryCacheSize(int)
+ */
+public class ParsedQueryCache {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final int maxSize;
+
+	private final LinkedHashMap<Key, ParsedQuery> queries;
+
+	private long hitCount = 0L;
+
+	private long missCount = 0L;
+
+	private long evictionCount = 0L;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new ParsedQueryCache that stores at most <tt>maxSize</tt>
+	 * queries.
+	 */
+	public ParsedQueryCache(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be larger than 0, is: " + maxSize);
+		}
+
+		this.maxSize = maxSize;
+		this.queries = new LinkedHashMap<Key, ParsedQuery>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = -4382197362517740153L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, ParsedQuery> eldest) {
+				if (size() > ParsedQueryCache.this.maxSize) {
+					evictionCount++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the parsed query for the supplied query string, parsing the query if
+	 * it has not been cached yet.
+	 *
+	 * @see QueryParserUtil#parseQuery(QueryLanguage, String, String)
+	 */
+	public ParsedQuery parseQuery(QueryLanguage ql, String query, String baseURI)
+		throws MalformedQueryException
+	{
+		Key key = new Key(ql, query, baseURI);
+
+		synchronized (queries) {
+			ParsedQuery parsedQuery = queries.get(key);
+			if (parsedQuery != null) {
+				hitCount++;
+				return parsedQuery;
+			}
+			missCount++;
+		}
+
+		// Parse outside of the lock; concurrent misses for the same query simply
+		// parse it more than once
+		ParsedQuery parsedQuery = QueryParserUtil.parseQuery(ql, query, baseURI);
+
+		synchronized (queries) {
+			ParsedQuery cached = queries.get(key);
+			if (cached != null) {
+				return cached;
+			}
+			queries.put(key, parsedQuery);
+		}
+
+		return parsedQuery;
+	}
+
+	/**
+	 * Removes all queries from this cache and resets its statistics.
+	 */
+	public void clear() {
+		synchronized (queries) {
+			queries.clear();
+			hitCount = missCount = evictionCount = 0L;
+		}
+	}
+
+	public int size() {
+		synchronized (queries) {
+			return queries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of lookups that returned a cached query.
+	 */
+	public long getHitCount() {
+		synchronized (queries) {
+			return hitCount;
+		}
+	}
+
+	/**
+	 * Gets the number of lookups that required the query to be parsed.
+	 */
+	public long getMissCount() {
+		synchronized (queries) {
+			return missCount;
+		}
+	}
+
+	/**
+	 * Gets the number of queries that have been evicted to make room for new
+	 * ones.
+	 */
+	public long getEvictionCount() {
+		synchronized (queries) {
+			return evictionCount;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (queries) {
+			return "ParsedQueryCache[size=" + queries.size() + ", maxSize=" + maxSize + ", hits=" + hitCount
+					+ ", misses=" + missCount + ", evictions=" + evictionCount + "]";
+		}
+	}
+
+	/*-----------------*
+	 * Inner class Key *
+	 *-----------------*/
+
+	private static class Key {
+
+		private final QueryLanguage ql;
+
+		private final String query;
+
+		private final String baseURI;
+
+		public Key(QueryLanguage ql, String query, String baseURI) {
+			this.ql = ql;
+			this.query = query;
+			this.baseURI = baseURI;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof Key) {
+				Key o = (Key)other;
+				return ql.equals(o.ql) && query.equals(o.query)
+						&& (baseURI == null ? o.baseURI == null : baseURI.equals(o.baseURI));
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = ql.hashCode() ^ query.hashCode();
+			if (baseURI != null) {
+				result = 31 * result + baseURI.hashCode();
+			}
+			return result;
+		}
+	}
+}
@@ -52,6 +52,12 @@ public class SailRepository extends RepositoryBase {
 
 	private final Sail sail;
 
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private volatile ParsedQueryCache queryCache;
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -118,6 +124,40 @@ public class SailRepository extends RepositoryBase {
 		return sail;
 	}
 
+	/**
+	 * Sets the maximum number of parsed queries that are cached by this
+	 * repository. Queries that are prepared from a cached query string are not
+	 * parsed again and share the same query model, which also allows the Sail
+	 * to reuse any plans it has cached for that model. A size of <tt>0</tt>,
+	 * the default, disables the cache.
+	 * 
+	 * @param queryCacheSize
+	 *        The maximum number of cached queries.
+	 */
+	public void setQueryCacheSize(int queryCacheSize) {
+		if (queryCacheSize > 0) {
+			queryCache = new ParsedQueryCache(queryCacheSize);
+		}
+		else {
+			queryCache = null;
+		}
+	}
+
+	public int getQueryCacheSize() {
+		ParsedQueryCache queryCache = this.queryCache;
+		return queryCache == null ? 0 : queryCache.getMaxSize();
+	}
+
+	/**
+	 * Gets the cache of parsed queries, which can be used to monitor its hit,
+	 * miss and eviction counts.
+	 * 
+	 * @return The query cache, or <tt>null</tt> if queries are not cached.
+	 */
+	public ParsedQueryCache getQueryCache() {
+		return queryCache;
+	}
+
 	public boolean isWritable()
 		throws RepositoryException
 	{
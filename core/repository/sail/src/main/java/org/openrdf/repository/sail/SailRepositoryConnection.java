@@ -77,6 +77,11 @@ public class SailRepositoryConnection extends RepositoryConnectionBase {
 		return sailConnection;
 	}
 
+	@Override
+	public SailRepository getRepository() {
+		return (SailRepository)super.getRepository();
+	}
+
 	public void begin()
 		throws RepositoryException
 	{
@@ -138,7 +143,7 @@ public class SailRepositoryConnection extends RepositoryConnectionBase {
 	public SailQuery prepareQuery(QueryLanguage ql, String queryString, String baseURI)
 		throws MalformedQueryException
 	{
-		ParsedQuery parsedQuery = QueryParserUtil.parseQuery(ql, queryString, baseURI);
+		ParsedQuery parsedQuery = parseQuery(ql, queryString, baseURI);
 
 		if (parsedQuery instanceof ParsedTupleQuery) {
 			return new SailTupleQuery((ParsedTupleQuery)parsedQuery, this);
@@ -157,22 +162,53 @@ public class SailRepositoryConnection extends RepositoryConnectionBase {
 	public SailTupleQuery prepareTupleQuery(QueryLanguage ql, String queryString, String baseURI)
 		throws MalformedQueryException
 	{
-		ParsedTupleQuery parsedQuery = QueryParserUtil.parseTupleQuery(ql, queryString, baseURI);
-		return new SailTupleQuery(parsedQuery, this);
+		ParsedQuery parsedQuery = parseQuery(ql, queryString, baseURI);
+
+		if (parsedQuery instanceof ParsedTupleQuery) {
+			return new SailTupleQuery((ParsedTupleQuery)parsedQuery, this);
+		}
+
+		throw new IllegalArgumentException("query is not a tuple query: " + queryString);
 	}
 
 	public SailGraphQuery prepareGraphQuery(QueryLanguage ql, String queryString, String baseURI)
 		throws MalformedQueryException
 	{
-		ParsedGraphQuery parsedQuery = QueryParserUtil.parseGraphQuery(ql, queryString, baseURI);
-		return new SailGraphQuery(parsedQuery, this);
+		ParsedQuery parsedQuery = parseQuery(ql, queryString, baseURI);
+
+		if (parsedQuery instanceof ParsedGraphQuery) {
+			return new SailGraphQuery((ParsedGraphQuery)parsedQuery, this);
+		}
+
+		throw new IllegalArgumentException("query is not a graph query: " + queryString);
 	}
 
 	public SailBooleanQuery prepareBooleanQuery(QueryLanguage ql, String queryString, String baseURI)
 		throws MalformedQueryException
 	{
-		ParsedBooleanQuery parsedQuery = QueryParserUtil.parseBooleanQuery(ql, queryString, baseURI);
-		return new SailBooleanQuery(parsedQuery, this);
+		ParsedQuery parsedQuery = parseQuery(ql, queryString, baseURI);
+
+		if (parsedQuery instanceof ParsedBooleanQuery) {
+			return new SailBooleanQuery((ParsedBooleanQuery)parsedQuery, this);
+		}
+
+		throw new IllegalArgumentException("query is not a boolean query: " + queryString);
+	}
+
+	/**
+	 * Parses the supplied query, using the repository's query cache if it has
+	 * one.
+	 */
+	private ParsedQuery parseQuery(QueryLanguage ql, String queryString, String baseURI)
+		throws MalformedQueryException
+	{
+		ParsedQueryCache queryCache = getRepository().getQueryCache();
+
+		if (queryCache != null) {
+			return queryCache.parseQuery(ql, queryString, baseURI);
+		}
+
+		return QueryParserUtil.parseQuery(ql, queryString, baseURI);
 	}
 
 	public Update prepareUpdate(QueryLanguage ql, String update, String baseURI)
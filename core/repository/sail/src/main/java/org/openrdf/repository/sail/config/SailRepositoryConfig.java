@@ -5,6 +5,7 @@
  */
 package org.openrdf.repository.sail.config;
 
+import static org.openrdf.repository.sail.config.SailRepositorySchema.QUERY_CACHE_SIZE;
 import static org.openrdf.repository.sail.config.SailRepositorySchema.SAILIMPL;
 import static org.openrdf.sail.config.SailConfigSchema.SAILTYPE;
 
@@ -27,6 +28,8 @@ public class SailRepositoryConfig extends RepositoryImplConfigBase {
 
 	private SailImplConfig sailImplConfig;
 
+	private int queryCacheSize = 0;
+
 	public SailRepositoryConfig() {
 		super(SailRepositoryFactory.REPOSITORY_TYPE);
 	}
@@ -44,6 +47,14 @@ public class SailRepositoryConfig extends RepositoryImplConfigBase {
 		this.sailImplConfig = sailImplConfig;
 	}
 
+	public int getQueryCacheSize() {
+		return queryCacheSize;
+	}
+
+	public void setQueryCacheSize(int queryCacheSize) {
+		this.queryCacheSize = queryCacheSize;
+	}
+
 	@Override
 	public void validate()
 		throws RepositoryConfigException
@@ -71,6 +82,10 @@ public class SailRepositoryConfig extends RepositoryImplConfigBase {
 			graph.add(repImplNode, SAILIMPL, sailImplNode);
 		}
 
+		if (queryCacheSize != 0) {
+			graph.add(repImplNode, QUERY_CACHE_SIZE, graph.getValueFactory().createLiteral(queryCacheSize));
+		}
+
 		return repImplNode;
 	}
 
@@ -95,6 +110,18 @@ public class SailRepositoryConfig extends RepositoryImplConfigBase {
 					sailImplConfig.parse(graph, sailImplNode);
 				}
 			}
+
+			Literal queryCacheSizeLit = GraphUtil.getOptionalObjectLiteral(graph, repImplNode,
+					QUERY_CACHE_SIZE);
+			if (queryCacheSizeLit != null) {
+				try {
+					setQueryCacheSize(queryCacheSizeLit.intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new RepositoryConfigException("Integer value required for " + QUERY_CACHE_SIZE
+							+ " property, found " + queryCacheSizeLit);
+				}
+			}
 		}
 		catch (GraphUtilException e) {
 			throw new RepositoryConfigException(e.getMessage(), e);
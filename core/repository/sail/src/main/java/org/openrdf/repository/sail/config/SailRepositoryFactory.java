@@ -60,7 +60,9 @@ public class SailRepositoryFactory implements RepositoryFactory {
 
 			try {
 				Sail sail = createSailStack(sailRepConfig.getSailImplConfig());
-				return new SailRepository(sail);
+				SailRepository repository = new SailRepository(sail);
+				repository.setQueryCacheSize(sailRepConfig.getQueryCacheSize());
+				return repository;
 			}
 			catch (SailConfigException e) {
 				throw new RepositoryConfigException(e.getMessage(), e);
@@ -24,8 +24,12 @@ public class SailRepositorySchema {
 	/** <tt>http://www.openrdf.org/config/repository/sail#sailImpl</tt> */
 	public final static URI SAILIMPL;
 
+	/** <tt>http://www.openrdf.org/config/repository/sail#queryCacheSize</tt> */
+	public final static URI QUERY_CACHE_SIZE;
+
 	static {
 		ValueFactory factory = ValueFactoryImpl.getInstance();
 		SAILIMPL = factory.createURI(NAMESPACE, "sailImpl");
+		QUERY_CACHE_SIZE = factory.createURI(NAMESPACE, "queryCacheSize");
 	}
 }
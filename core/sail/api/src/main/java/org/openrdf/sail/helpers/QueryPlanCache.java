@@ -0,0 +1,306 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.helpers;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.URI;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.TupleExpr;
+
+/**
+ * A bounded, thread-safe cache of optimized query plans. Plans are keyed on
+ * the query model that was passed to the Sail, the dataset, the names of the
+ * supplied bindings and the include-inferred flag. The query model is compared
+ * by identity, so repeated evaluations of the same prepared query hit the
+ * cache while structurally equal but separately parsed queries do not. A copy
+ * of the query model is kept with each plan to detect query models that have
+ * been modified after they were cached.
+ * <p>
+ * As the values of the bindings are not part of the key, cached plans must not
+ * depend on them. Stores should cache the plan before the bindings are
+ * assigned to it and apply the optimizations that depend on the binding values
+ * to the copy that is returned by
+ * {@link #get(TupleExpr, Dataset, BindingSet, boolean)}.
+ * <p>
+ * Optimized plans depend on the contents of the store through the cardinality
+ * estimates that were used to order the joins. Stores should therefore call
+ * {@link #invalidate()} when their contents have changed enough to affect
+ * these estimates materially. This increments the cache's epoch, which makes
+ * all plans that were created during an earlier epoch stale. Plans must not
+ * depend on the contents of the store in any other way, as they may be reused
+ * after smaller changes.
+ * <p>
+ * When the cache is full, the least recently used plan is evicted.
+ */
+public class QueryPlanCache {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final int maxSize;
+
+	private final LinkedHashMap<Key, Entry> entries;
+
+	private volatile long epoch = 0L;
+
+	private long hitCount = 0L;
+
+	private long missCount = 0L;
+
+	private long evictionCount = 0L;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new QueryPlanCache that stores at most <tt>maxSize</tt> plans.
+	 */
+	public QueryPlanCache(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be larger than 0, is: " + maxSize);
+		}
+
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 7125358426342183612L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				if (size() > QueryPlanCache.this.maxSize) {
+					evictionCount++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the current epoch of this cache. Callers should retrieve the epoch
+	 * before optimizing a query and pass it to
+	 * {@link #put(TupleExpr, Dataset, BindingSet, boolean, TupleExpr, long)}
+	 * so that plans that were created concurrently with a change to the store
+	 * are not reused.
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Gets a copy of the plan that was cached for the specified query.
+	 *
+	 * @return A copy of the cached plan that can be modified and evaluated by
+	 *         the caller, or <tt>null</tt> if no valid plan was cached for the
+	 *         query.
+	 */
+	public TupleExpr get(TupleExpr query, Dataset dataset, BindingSet bindings, boolean includeInferred) {
+		Key key = new Key(query, dataset, bindings, includeInferred);
+		TupleExpr plan = null;
+
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+
+			if (entry != null) {
+				if (entry.epoch == epoch && entry.query.equals(query)) {
+					plan = entry.plan;
+				}
+				else {
+					// Stale plan or a query model that has been modified
+					entries.remove(key);
+				}
+			}
+
+			if (plan == null) {
+				missCount++;
+				return null;
+			}
+
+			hitCount++;
+		}
+
+		return plan.clone();
+	}
+
+	/**
+	 * Caches a copy of the optimized plan for the specified query, unless the
+	 * store has been changed since <tt>epoch</tt>.
+	 */
+	public void put(TupleExpr query, Dataset dataset, BindingSet bindings, boolean includeInferred,
+			TupleExpr plan, long epoch)
+	{
+		Key key = new Key(query, dataset, bindings, includeInferred);
+		Entry entry = new Entry(query.clone(), plan.clone(), epoch);
+
+		synchronized (entries) {
+			if (epoch == this.epoch) {
+				entries.put(key, entry);
+			}
+		}
+	}
+
+	/**
+	 * Makes all cached plans stale. Stores call this method when their contents
+	 * have changed materially.
+	 */
+	public void invalidate() {
+		synchronized (entries) {
+			epoch++;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Removes all plans from this cache and resets its statistics.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			hitCount = missCount = evictionCount = 0L;
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of lookups that returned a cached plan.
+	 */
+	public long getHitCount() {
+		synchronized (entries) {
+			return hitCount;
+		}
+	}
+
+	/**
+	 * Gets the number of lookups for which no valid plan was cached.
+	 */
+	public long getMissCount() {
+		synchronized (entries) {
+			return missCount;
+		}
+	}
+
+	/**
+	 * Gets the number of plans that have been evicted to make room for new
+	 * ones.
+	 */
+	public long getEvictionCount() {
+		synchronized (entries) {
+			return evictionCount;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (entries) {
+			return "QueryPlanCache[size=" + entries.size() + ", maxSize=" + maxSize + ", hits=" + hitCount
+					+ ", misses=" + missCount + ", evictions=" + evictionCount + "]";
+		}
+	}
+
+	/*-------------------*
+	 * Inner class Entry *
+	 *-------------------*/
+
+	private static class Entry {
+
+		private final TupleExpr query;
+
+		private final TupleExpr plan;
+
+		private final long epoch;
+
+		public Entry(TupleExpr query, TupleExpr plan, long epoch) {
+			this.query = query;
+			this.plan = plan;
+			this.epoch = epoch;
+		}
+	}
+
+	/*-----------------*
+	 * Inner class Key *
+	 *-----------------*/
+
+	private static class Key {
+
+		private final TupleExpr query;
+
+		private final List<Object> dataset;
+
+		private final Set<String> bindingNames;
+
+		private final boolean includeInferred;
+
+		private final int hashCode;
+
+		public Key(TupleExpr query, Dataset dataset, BindingSet bindings, boolean includeInferred) {
+			this.query = query;
+			this.includeInferred = includeInferred;
+
+			// Copy the dataset and binding names as both can be modified by the
+			// caller after the plan has been cached
+			if (dataset != null) {
+				this.dataset = Arrays.<Object> asList(copy(dataset.getDefaultGraphs()),
+						copy(dataset.getNamedGraphs()), copy(dataset.getDefaultRemoveGraphs()),
+						dataset.getDefaultInsertGraph());
+			}
+			else {
+				this.dataset = null;
+			}
+
+			this.bindingNames = new HashSet<String>();
+			if (bindings != null) {
+				this.bindingNames.addAll(bindings.getBindingNames());
+			}
+
+			int result = System.identityHashCode(query);
+			result = 31 * result + (this.dataset == null ? 0 : this.dataset.hashCode());
+			result = 31 * result + this.bindingNames.hashCode();
+			hashCode = includeInferred ? ~result : result;
+		}
+
+		private static Set<URI> copy(Set<URI> graphs) {
+			return graphs == null ? null : new HashSet<URI>(graphs);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof Key) {
+				Key o = (Key)other;
+				return query == o.query && includeInferred == o.includeInferred
+						&& (dataset == null ? o.dataset == null : dataset.equals(o.dataset))
+						&& bindingNames.equals(o.bindingNames);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.io.IOUtil;
+import info.aduna.iteration.CloseableIteration;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.model.MemStatement;
+import org.openrdf.sail.memory.model.ReadMode;
+
+/**
+ * An append-only log of the changes to a MemoryStore that have not been
+ * written to its data file yet. Each transaction is appended as a single
+ * record, so the cost of making a commit durable is proportional to the size
+ * of the transaction rather than to the size of the store. When the store is
+ * initialized, the log is replayed on top of the data file.
+ * <p>
+ * A record consists of its length, the changes, encoded like the namespaces
+ * and statements in the data file, and a CRC-32 checksum. Replaying a record
+ * sets the state of the statements and namespaces it mentions, so replaying
+ * records whose changes are already contained in the data file is harmless.
+ * An incomplete or corrupt record, e.g. one that was being written when the
+ * system crashed, ends the log and is discarded.
+ */
+class ChangeLog {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	/** Magic number for Binary Memory Store Logs */
+	private static final byte[] MAGIC_NUMBER = new byte[] { 'B', 'M', 'S', 'L' };
+
+	/** The version number of the current format. */
+	private static final int BMSL_VERSION = 1;
+
+	private static final int HEADER_LENGTH = MAGIC_NUMBER.length + 1;
+
+	/* RECORD TYPES, in addition to those of FileIO */
+	public static final int REMOVAL_MARKER = 11;
+
+	public static final int NAMESPACE_REMOVAL_MARKER = 12;
+
+	public static final int NAMESPACES_CLEARED_MARKER = 13;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final Logger logger = LoggerFactory.getLogger(ChangeLog.class);
+
+	private final MemoryStore store;
+
+	private final File file;
+
+	private final FileIO fileIO;
+
+	/**
+	 * The stream that records are appended to, <tt>null</tt> if the log has
+	 * not been opened.
+	 */
+	private FileOutputStream out;
+
+	/**
+	 * The length of the valid part of the log file.
+	 */
+	private volatile long length = 0L;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	public ChangeLog(MemoryStore store, File file) {
+		this.store = store;
+		this.file = file;
+		this.fileIO = new FileIO(store);
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the length of the valid part of the log file in bytes.
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Checks whether the log contains any records.
+	 */
+	public boolean hasRecords() {
+		return length > HEADER_LENGTH;
+	}
+
+	/**
+	 * Replays the records in the log file, if it exists, on the store. Each
+	 * record is applied in a separate transaction. The caller must prevent
+	 * concurrent modifications of the store.
+	 *
+	 * @return The number of records that were replayed.
+	 */
+	public synchronized int replay()
+		throws IOException, SailException
+	{
+		length = 0L;
+
+		if (!file.exists()) {
+			return 0;
+		}
+
+		long fileLength = file.length();
+		int recordCount = 0;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (fileLength < HEADER_LENGTH) {
+				// The log was being created
+				return 0;
+			}
+
+			byte[] magicNumber = IOUtil.readBytes(in, MAGIC_NUMBER.length);
+			if (!Arrays.equals(magicNumber, MAGIC_NUMBER)) {
+				throw new IOException("File is not a MemoryStore change log: " + file);
+			}
+
+			int version = in.read();
+			if (version != BMSL_VERSION) {
+				throw new IOException("Incompatible change log version: " + version);
+			}
+
+			length = HEADER_LENGTH;
+
+			while (fileLength - length >= 12) {
+				int recordLength = in.readInt();
+				if (recordLength < 0 || recordLength > fileLength - length - 12) {
+					break;
+				}
+
+				byte[] record = IOUtil.readBytes(in, recordLength);
+				long checksum = in.readLong();
+				if (record.length != recordLength || checksum != getChecksum(record)) {
+					break;
+				}
+
+				replayRecord(record);
+				recordCount++;
+				length += 4 + recordLength + 8;
+			}
+		}
+		catch (EOFException e) {
+			// Incomplete record at the end of the log
+		}
+		finally {
+			in.close();
+		}
+
+		if (length < fileLength) {
+			logger.warn("Ignoring incomplete record at the end of change log {}", file);
+		}
+
+		return recordCount;
+	}
+
+	private void replayRecord(byte[] record)
+		throws IOException, SailException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+		store.startTransaction();
+		boolean committed = false;
+
+		try {
+			int recordTypeMarker;
+			while ((recordTypeMarker = in.readByte()) != FileIO.EOF_MARKER) {
+				switch (recordTypeMarker) {
+					case FileIO.NAMESPACE_MARKER:
+						String prefix = fileIO.readString(in);
+						String name = fileIO.readString(in);
+						store.getNamespaceStore().setNamespace(prefix, name);
+						break;
+					case NAMESPACE_REMOVAL_MARKER:
+						store.getNamespaceStore().removeNamespace(fileIO.readString(in));
+						break;
+					case NAMESPACES_CLEARED_MARKER:
+						store.getNamespaceStore().clear();
+						break;
+					case REMOVAL_MARKER:
+						replayStatement(in.readByte(), false, in);
+						break;
+					default:
+						replayStatement(recordTypeMarker, true, in);
+						break;
+				}
+			}
+
+			store.commit();
+			committed = true;
+		}
+		finally {
+			if (!committed) {
+				store.rollback();
+			}
+		}
+	}
+
+	private void replayStatement(int recordTypeMarker, boolean added, DataInputStream in)
+		throws IOException, SailException
+	{
+		boolean hasContext;
+		boolean isExplicit;
+
+		switch (recordTypeMarker) {
+			case FileIO.EXPL_TRIPLE_MARKER:
+				hasContext = false;
+				isExplicit = true;
+				break;
+			case FileIO.EXPL_QUAD_MARKER:
+				hasContext = true;
+				isExplicit = true;
+				break;
+			case FileIO.INF_TRIPLE_MARKER:
+				hasContext = false;
+				isExplicit = false;
+				break;
+			case FileIO.INF_QUAD_MARKER:
+				hasContext = true;
+				isExplicit = false;
+				break;
+			default:
+				throw new IOException("Invalid record type marker: " + recordTypeMarker);
+		}
+
+		Resource subj = (Resource)fileIO.readValue(in);
+		URI pred = (URI)fileIO.readValue(in);
+		Value obj = fileIO.readValue(in);
+		Resource context = hasContext ? (Resource)fileIO.readValue(in) : null;
+
+		if (added) {
+			store.addStatement(subj, pred, obj, context, isExplicit);
+		}
+		else {
+			CloseableIteration<MemStatement, SailException> stIter = store.createStatementIterator(
+					SailException.class, subj, pred, obj, isExplicit, store.getCurrentSnapshot() + 1,
+					ReadMode.TRANSACTION, context);
+			try {
+				while (stIter.hasNext()) {
+					store.removeStatement(stIter.next(), isExplicit);
+				}
+			}
+			finally {
+				stIter.close();
+			}
+		}
+	}
+
+	/**
+	 * Opens the log for appending records, creating the log file if it does
+	 * not exist. Any invalid data after the records that have been replayed is
+	 * discarded.
+	 */
+	public synchronized void open()
+		throws IOException
+	{
+		if (length < HEADER_LENGTH) {
+			out = new FileOutputStream(file);
+			out.write(MAGIC_NUMBER);
+			out.write(BMSL_VERSION);
+			out.getChannel().force(false);
+			length = HEADER_LENGTH;
+		}
+		else {
+			out = new FileOutputStream(file, true);
+			out.getChannel().truncate(length);
+		}
+	}
+
+	/**
+	 * Appends a record to the log.
+	 *
+	 * @param force
+	 *        Indicates whether the record should be forced to disk before this
+	 *        method returns.
+	 */
+	public synchronized void append(Record record, boolean force)
+		throws IOException
+	{
+		byte[] data = record.toByteArray();
+
+		ByteBuffer buf = ByteBuffer.allocate(4 + data.length + 8);
+		buf.putInt(data.length);
+		buf.put(data);
+		buf.putLong(getChecksum(data));
+
+		try {
+			out.write(buf.array());
+
+			if (force) {
+				out.getChannel().force(false);
+			}
+		}
+		catch (IOException e) {
+			// Remove the partially written record, if possible
+			try {
+				out.getChannel().truncate(length);
+			}
+			catch (IOException e2) {
+				logger.warn("Failed to truncate change log " + file, e2);
+			}
+			throw e;
+		}
+
+		length += buf.capacity();
+	}
+
+	/**
+	 * Moves the records of this log to the end of another log file, or to a
+	 * new log file if it does not exist, and restarts this log with no
+	 * records.
+	 */
+	public synchronized void moveTo(File target)
+		throws IOException
+	{
+		close();
+
+		if (target.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				OutputStream targetOut = new FileOutputStream(target, true);
+				try {
+					IOUtil.readBytes(in, HEADER_LENGTH);
+					transfer(in, targetOut, length - HEADER_LENGTH);
+					((FileOutputStream)targetOut).getChannel().force(false);
+				}
+				finally {
+					targetOut.close();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		else if (!file.renameTo(target)) {
+			open();
+			throw new IOException("Could not rename " + file + " to " + target.getName());
+		}
+
+		length = 0L;
+		open();
+	}
+
+	/**
+	 * Creates an empty record for the changes of a transaction.
+	 */
+	public Record createRecord() {
+		return new Record();
+	}
+
+	public synchronized void close()
+		throws IOException
+	{
+		if (out != null) {
+			try {
+				out.close();
+			}
+			finally {
+				out = null;
+			}
+		}
+	}
+
+	private static void transfer(InputStream in, OutputStream out, long count)
+		throws IOException
+	{
+		byte[] buf = new byte[8192];
+
+		while (count > 0) {
+			int bytesRead = in.read(buf, 0, (int)Math.min(buf.length, count));
+			if (bytesRead == -1) {
+				throw new EOFException();
+			}
+			out.write(buf, 0, bytesRead);
+			count -= bytesRead;
+		}
+	}
+
+	private static long getChecksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	/*--------------------*
+	 * Inner class Record *
+	 *--------------------*/
+
+	/**
+	 * The changes of a single transaction.
+	 */
+	public class Record {
+
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		private final DataOutputStream dataOut = new DataOutputStream(buffer);
+
+		public boolean isEmpty() {
+			return buffer.size() == 0;
+		}
+
+		public void addStatement(Statement st, boolean isExplicit)
+			throws IOException
+		{
+			fileIO.writeStatement(st, isExplicit, dataOut);
+		}
+
+		public void removeStatement(Statement st, boolean isExplicit)
+			throws IOException
+		{
+			dataOut.writeByte(REMOVAL_MARKER);
+			fileIO.writeStatement(st, isExplicit, dataOut);
+		}
+
+		public void setNamespace(String prefix, String name)
+			throws IOException
+		{
+			dataOut.writeByte(FileIO.NAMESPACE_MARKER);
+			fileIO.writeString(prefix, dataOut);
+			fileIO.writeString(name, dataOut);
+		}
+
+		public void removeNamespace(String prefix)
+			throws IOException
+		{
+			dataOut.writeByte(NAMESPACE_REMOVAL_MARKER);
+			fileIO.writeString(prefix, dataOut);
+		}
+
+		public void clearNamespaces()
+			throws IOException
+		{
+			dataOut.writeByte(NAMESPACES_CLEARED_MARKER);
+		}
+
+		byte[] toByteArray()
+			throws IOException
+		{
+			dataOut.flush();
+			byte[] data = buffer.toByteArray();
+			byte[] result = new byte[data.length + 1];
+			System.arraycopy(data, 0, result, 0, data.length);
+			result[data.length] = FileIO.EOF_MARKER;
+			return result;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.model.MemResource;
+import org.openrdf.sail.memory.model.MemStatement;
+import org.openrdf.sail.memory.model.MemStatementList;
+import org.openrdf.sail.memory.model.MemURI;
+import org.openrdf.sail.memory.model.MemValue;
+
+/**
+ * A hash index on two of the components of the statements in a
+ * {@link MemoryStore}, e.g. on predicate and object. The index maps each
+ * combination of values to the statements that contain them, which allows
+ * statement patterns with both components bound to be evaluated in time
+ * proportional to the number of matching statements.
+ * <p>
+ * Like the statement lists of the values, the index contains the statements
+ * of all snapshots. Statements are added by the (single) transaction that
+ * creates them and removed during snapshot cleanup, which holds the
+ * transaction lock and replaces the lists with compacted copies.
+ */
+class CompositeIndex {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final String fieldSeq;
+
+	private final ConcurrentMap<Key, MemStatementList> statementLists;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new index on the two statement components specified by
+	 * <tt>fieldSeq</tt>, e.g. <tt>po</tt> for an index on predicate and
+	 * object.
+	 */
+	public CompositeIndex(String fieldSeq) {
+		this.fieldSeq = fieldSeq;
+		this.statementLists = new ConcurrentHashMap<Key, MemStatementList>();
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Parses a list of composite index specifications, e.g. <tt>po,sp</tt>.
+	 * Each specification consists of two different characters from
+	 * <tt>s</tt>, <tt>p</tt>, <tt>o</tt> and <tt>c</tt>. Specifications for
+	 * the same components in a different order are considered equal.
+	 */
+	public static Set<String> parseIndexSpecList(String indexSpecStr)
+		throws SailException
+	{
+		Set<String> indexes = new LinkedHashSet<String>();
+		Set<String> normalized = new HashSet<String>();
+
+		if (indexSpecStr != null) {
+			StringTokenizer tok = new StringTokenizer(indexSpecStr, ", \t");
+			while (tok.hasMoreTokens()) {
+				String index = tok.nextToken().toLowerCase();
+
+				// sanity checks
+				if (index.length() != 2 || index.charAt(0) == index.charAt(1)
+						|| "spoc".indexOf(index.charAt(0)) == -1 || "spoc".indexOf(index.charAt(1)) == -1)
+				{
+					throw new SailException("invalid value '" + index + "' in index specification: "
+							+ indexSpecStr);
+				}
+
+				String reverse = new StringBuilder(index).reverse().toString();
+				if (normalized.add(index) && normalized.add(reverse)) {
+					indexes.add(index);
+				}
+			}
+		}
+
+		return indexes;
+	}
+
+	public String getFieldSeq() {
+		return fieldSeq;
+	}
+
+	/**
+	 * Gets the statements that match the bound components of the specified
+	 * pattern, if this index covers the pattern.
+	 *
+	 * @param context
+	 *        The context of the pattern, or <tt>null</tt> if the pattern does
+	 *        not specify exactly one named context.
+	 * @return The candidate statements, an empty list if the index does not
+	 *         contain any statements with the specified values, or
+	 *         <tt>null</tt> if one of the indexed components is not bound.
+	 */
+	public MemStatementList getStatements(MemResource subj, MemURI pred, MemValue obj, MemResource context)
+	{
+		MemValue first = getComponent(fieldSeq.charAt(0), subj, pred, obj, context);
+		MemValue second = getComponent(fieldSeq.charAt(1), subj, pred, obj, context);
+
+		if (first == null || second == null) {
+			return null;
+		}
+
+		MemStatementList statements = statementLists.get(new Key(first, second));
+		if (statements == null) {
+			statements = new MemStatementList(0);
+		}
+		return statements;
+	}
+
+	public void add(MemStatement st) {
+		Key key = getKey(st);
+
+		MemStatementList statements = statementLists.get(key);
+		if (statements == null) {
+			statements = new MemStatementList(1);
+			statementLists.put(key, statements);
+		}
+
+		statements.add(st);
+	}
+
+	/**
+	 * Creates the cleanups that remove the statements from old snapshots from
+	 * the lists that contain the specified stale statements. Lists that end up
+	 * empty are removed from the index.
+	 */
+	public void addCleanups(List<MemStatement> staleStatements, int currentSnapshot, int sliceSize,
+			Collection<StatementListCleanup> cleanups)
+	{
+		Set<Key> processedKeys = new HashSet<Key>();
+
+		for (MemStatement st : staleStatements) {
+			final Key key = getKey(st);
+
+			if (processedKeys.add(key)) {
+				final MemStatementList statements = statementLists.get(key);
+
+				if (statements != null) {
+					cleanups.add(new StatementListCleanup(statements, currentSnapshot, sliceSize) {
+
+						@Override
+						protected void listEmptied() {
+							statementLists.remove(key, statements);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	public void trimToSize() {
+		for (MemStatementList statements : statementLists.values()) {
+			statements.trimToSize();
+		}
+	}
+
+	public void clear() {
+		statementLists.clear();
+	}
+
+	private Key getKey(MemStatement st) {
+		MemValue first = getComponent(fieldSeq.charAt(0), st.getSubject(), st.getPredicate(),
+				st.getObject(), st.getContext());
+		MemValue second = getComponent(fieldSeq.charAt(1), st.getSubject(), st.getPredicate(),
+				st.getObject(), st.getContext());
+		return new Key(first, second);
+	}
+
+	private MemValue getComponent(char field, MemResource subj, MemURI pred, MemValue obj,
+			MemResource context)
+	{
+		switch (field) {
+			case 's':
+				return subj;
+			case 'p':
+				return pred;
+			case 'o':
+				return obj;
+			default:
+				return context;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return fieldSeq;
+	}
+
+	/*-------------*
+	 * Inner class *
+	 *-------------*/
+
+	/**
+	 * A combination of two values. Values are compared by identity, as the
+	 * value factory of the store creates a single MemValue for each value.
+	 */
+	private static class Key {
+
+		private final MemValue first;
+
+		private final MemValue second;
+
+		public Key(MemValue first, MemValue second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof Key) {
+				Key o = (Key)other;
+				return first == o.first && second == o.second;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(first) + System.identityHashCode(second);
+		}
+	}
+}
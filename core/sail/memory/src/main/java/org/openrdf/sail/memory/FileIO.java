@@ -5,6 +5,10 @@
  */
 package org.openrdf.sail.memory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -13,15 +17,30 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import info.aduna.io.IOUtil;
 import info.aduna.iteration.CloseableIteration;
@@ -30,11 +49,13 @@ import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
 import org.openrdf.model.Namespace;
 import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.memory.model.MemResource;
 import org.openrdf.sail.memory.model.MemStatement;
+import org.openrdf.sail.memory.model.MemStatementList;
 import org.openrdf.sail.memory.model.MemURI;
 import org.openrdf.sail.memory.model.MemValue;
 import org.openrdf.sail.memory.model.ReadMode;
@@ -57,7 +78,26 @@ class FileIO {
 	// Version 1: initial version
 	// Version 2: don't use read/writeUTF() to remove 64k limit on strings,
 	// removed dummy "up-to-date status" boolean for namespace records
-	private static final int BMSF_VERSION = 2;
+	// Version 3: values are written once to a value table and statements refer
+	// to them by ID; namespaces, values and statements are written in blocks
+	// that are compressed separately and can be decoded concurrently
+	private static final int BMSF_VERSION = 3;
+
+	/* BLOCK TYPES (version 3) */
+	private static final int NAMESPACE_BLOCK = 20;
+
+	private static final int VALUE_BLOCK = 21;
+
+	private static final int STATEMENT_BLOCK = 22;
+
+	private static final int VALUES_PER_BLOCK = 16384;
+
+	private static final int STATEMENTS_PER_BLOCK = 65536;
+
+	/* STATEMENT FLAGS (version 3) */
+	private static final int EXPLICIT_FLAG = 1;
+
+	private static final int CONTEXT_FLAG = 2;
 
 	/* RECORD TYPES */
 	public static final int NAMESPACE_MARKER = 1;
@@ -94,6 +134,11 @@ class FileIO {
 
 	private int formatVersion;
 
+	/**
+	 * The number of threads that decode the blocks of a version 3 file.
+	 */
+	private int readerThreads = Runtime.getRuntime().availableProcessors();
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -106,10 +151,28 @@ class FileIO {
 	 * Methods *
 	 *---------*/
 
+	/**
+	 * Sets the number of threads that decode the blocks of a version 3 file,
+	 * which defaults to the number of available processors.
+	 */
+	void setReaderThreads(int readerThreads) {
+		this.readerThreads = readerThreads;
+	}
+
 	public synchronized void write(File syncFile, File dataFile)
 		throws IOException, SailException
 	{
-		write(syncFile);
+		write(syncFile, dataFile, store.getCurrentSnapshot());
+	}
+
+	/**
+	 * Writes the statements of the specified snapshot to the sync file and
+	 * renames it to the data file.
+	 */
+	public synchronized void write(File syncFile, File dataFile, int snapshot)
+		throws IOException, SailException
+	{
+		write(syncFile, snapshot);
 
 		// prefer atomic renameTo operations
 		boolean renamed = syncFile.renameTo(dataFile);
@@ -129,7 +192,7 @@ class FileIO {
 		}
 	}
 
-	private void write(File dataFile)
+	private void write(File dataFile, int snapshot)
 		throws IOException, SailException
 	{
 		OutputStream out = new FileOutputStream(dataFile);
@@ -138,13 +201,27 @@ class FileIO {
 			out.write(MAGIC_NUMBER);
 			out.write(BMSF_VERSION);
 
-			// The rest of the data is GZIP-compressed
-			DataOutputStream dataOut = new DataOutputStream(new GZIPOutputStream(out));
+			DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, 65536));
 			out = dataOut;
 
-			writeNamespaces(dataOut);
+			StatementTable statementTable = store.getStatementTable();
+			if (statementTable != null) {
+				writeTable(statementTable.getState(), snapshot, dataOut);
+				return;
+			}
+
+			// Assign IDs to the values of the statements in the snapshot
+			Map<Value, Integer> valueIDs = new IdentityHashMap<Value, Integer>();
+			List<Value> values = new ArrayList<Value>();
+			collectValues(snapshot, valueIDs, values);
+
+			dataOut.writeInt(values.size());
 
-			writeStatements(dataOut);
+			writeNamespaceBlock(dataOut);
+
+			writeValueBlocks(values, dataOut);
+
+			writeStatementBlocks(snapshot, valueIDs, dataOut);
 
 			dataOut.writeByte(EOF_MARKER);
 		}
@@ -153,6 +230,99 @@ class FileIO {
 		}
 	}
 
+	/**
+	 * Writes the statements of the specified snapshot of a statement table in
+	 * compact storage mode. The values that the statements use are written in
+	 * the order of their IDs in the dictionary.
+	 */
+	private void writeTable(StatementTable.State state, int snapshot, DataOutputStream dataOut)
+		throws IOException
+	{
+		final ValueDictionary dictionary = state.getDictionary();
+
+		// the file ID of each value in the dictionary plus one, 0 if the
+		// statements of the snapshot do not use it
+		int[] fileIDs = new int[dictionary.size()];
+
+		StatementTable.RowCursor rows = state.getRows(snapshot);
+		while (rows.next()) {
+			fileIDs[rows.getSubjectID()] = 1;
+			fileIDs[rows.getPredicateID()] = 1;
+			fileIDs[rows.getObjectID()] = 1;
+			fileIDs[rows.getContextID()] = 1;
+		}
+		// the default context is not a value
+		fileIDs[0] = 0;
+
+		int valueCount = 0;
+		for (int id = 1; id < fileIDs.length; id++) {
+			if (fileIDs[id] != 0) {
+				fileIDs[id] = ++valueCount;
+			}
+		}
+
+		final int[] valueIDs = new int[valueCount];
+		for (int id = 1; id < fileIDs.length; id++) {
+			if (fileIDs[id] != 0) {
+				valueIDs[fileIDs[id] - 1] = id;
+			}
+		}
+
+		dataOut.writeInt(valueCount);
+
+		writeNamespaceBlock(dataOut);
+
+		writeValueBlocks(new AbstractList<Value>() {
+
+			@Override
+			public Value get(int index) {
+				return dictionary.getValue(valueIDs[index]);
+			}
+
+			@Override
+			public int size() {
+				return valueIDs.length;
+			}
+		}, dataOut);
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream blockOut = new DataOutputStream(buf);
+		int count = 0;
+
+		rows = state.getRows(snapshot);
+		while (rows.next()) {
+			int contextID = rows.getContextID();
+
+			int flags = 0;
+			if (rows.isExplicit()) {
+				flags |= EXPLICIT_FLAG;
+			}
+			if (contextID != 0) {
+				flags |= CONTEXT_FLAG;
+			}
+
+			blockOut.writeByte(flags);
+			blockOut.writeInt(fileIDs[rows.getSubjectID()] - 1);
+			blockOut.writeInt(fileIDs[rows.getPredicateID()] - 1);
+			blockOut.writeInt(fileIDs[rows.getObjectID()] - 1);
+			if (contextID != 0) {
+				blockOut.writeInt(fileIDs[contextID] - 1);
+			}
+
+			if (++count == STATEMENTS_PER_BLOCK) {
+				writeBlock(STATEMENT_BLOCK, buf, dataOut);
+				buf.reset();
+				count = 0;
+			}
+		}
+
+		if (count > 0) {
+			writeBlock(STATEMENT_BLOCK, buf, dataOut);
+		}
+
+		dataOut.writeByte(EOF_MARKER);
+	}
+
 	public synchronized void read(File dataFile)
 		throws IOException
 	{
@@ -168,6 +338,11 @@ class FileIO {
 				throw new IOException("Incompatible format version: " + formatVersion);
 			}
 
+			if (formatVersion >= 3) {
+				readBlocks(new DataInputStream(new BufferedInputStream(in, 65536)));
+				return;
+			}
+
 			// The rest of the data is GZIP-compressed
 			DataInputStream dataIn = new DataInputStream(new GZIPInputStream(in));
 			in = dataIn;
@@ -194,19 +369,53 @@ class FileIO {
 						throw new IOException("Invalid record type marker: " + recordTypeMarker);
 				}
 			}
+
+			finishTableLoad();
 		}
 		finally {
 			in.close();
 		}
 	}
 
-	private void writeNamespaces(DataOutputStream dataOut)
+	/**
+	 * Adds the statements that have been read to the statement table in compact
+	 * storage mode.
+	 */
+	private void finishTableLoad() {
+		StatementTable statementTable = store.getStatementTable();
+		if (statementTable != null) {
+			statementTable.finishLoad(store.getCurrentSnapshot());
+		}
+	}
+
+	/**
+	 * Checks whether the last file that was read is in the current format.
+	 */
+	public boolean isCurrentFormat() {
+		return formatVersion == BMSF_VERSION;
+	}
+
+	private void writeNamespaceBlock(DataOutputStream dataOut)
 		throws IOException
 	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream blockOut = new DataOutputStream(buf);
+
 		for (Namespace ns : store.getNamespaceStore()) {
-			dataOut.writeByte(NAMESPACE_MARKER);
-			writeString(ns.getPrefix(), dataOut);
-			writeString(ns.getName(), dataOut);
+			writeString(ns.getPrefix(), blockOut);
+			writeString(ns.getName(), blockOut);
+		}
+
+		writeBlock(NAMESPACE_BLOCK, buf, dataOut);
+	}
+
+	private void readNamespaceBlock(DataInputStream blockIn)
+		throws IOException
+	{
+		while (blockIn.available() > 0) {
+			String prefix = readString(blockIn);
+			String name = readString(blockIn);
+			store.getNamespaceStore().setNamespace(prefix, name);
 		}
 	}
 
@@ -224,45 +433,459 @@ class FileIO {
 		store.getNamespaceStore().setNamespace(prefix, name);
 	}
 
-	private void writeStatements(DataOutputStream dataOut)
+	private void collectValues(int snapshot, Map<Value, Integer> valueIDs, List<Value> values)
+		throws SailException
+	{
+		CloseableIteration<MemStatement, SailException> stIter = store.createStatementIterator(
+				SailException.class, null, null, null, false, snapshot, ReadMode.COMMITTED);
+
+		try {
+			while (stIter.hasNext()) {
+				MemStatement st = stIter.next();
+				collectValue(st.getSubject(), valueIDs, values);
+				collectValue(st.getPredicate(), valueIDs, values);
+				collectValue(st.getObject(), valueIDs, values);
+				if (st.getContext() != null) {
+					collectValue(st.getContext(), valueIDs, values);
+				}
+			}
+		}
+		finally {
+			stIter.close();
+		}
+	}
+
+	private void collectValue(Value value, Map<Value, Integer> valueIDs, List<Value> values) {
+		if (!valueIDs.containsKey(value)) {
+			valueIDs.put(value, values.size());
+			values.add(value);
+		}
+	}
+
+	private void writeValueBlocks(List<Value> values, DataOutputStream dataOut)
+		throws IOException
+	{
+		for (int firstID = 0; firstID < values.size(); firstID += VALUES_PER_BLOCK) {
+			int count = Math.min(VALUES_PER_BLOCK, values.size() - firstID);
+
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream blockOut = new DataOutputStream(buf);
+			blockOut.writeInt(firstID);
+			blockOut.writeInt(count);
+
+			for (int i = 0; i < count; i++) {
+				writeValue(values.get(firstID + i), blockOut);
+			}
+
+			writeBlock(VALUE_BLOCK, buf, dataOut);
+		}
+	}
+
+	private void writeStatementBlocks(int snapshot, Map<Value, Integer> valueIDs, DataOutputStream dataOut)
 		throws IOException, SailException
 	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream blockOut = new DataOutputStream(buf);
+		int count = 0;
+
 		CloseableIteration<MemStatement, SailException> stIter = store.createStatementIterator(
-				SailException.class, null, null, null, false, store.getCurrentSnapshot(), ReadMode.COMMITTED);
+				SailException.class, null, null, null, false, snapshot, ReadMode.COMMITTED);
 
 		try {
 			while (stIter.hasNext()) {
 				MemStatement st = stIter.next();
-				Resource context = st.getContext();
+				MemResource context = st.getContext();
 
+				int flags = 0;
 				if (st.isExplicit()) {
-					if (context == null) {
-						dataOut.writeByte(EXPL_TRIPLE_MARKER);
-					}
-					else {
-						dataOut.writeByte(EXPL_QUAD_MARKER);
-					}
+					flags |= EXPLICIT_FLAG;
 				}
-				else {
-					if (context == null) {
-						dataOut.writeByte(INF_TRIPLE_MARKER);
-					}
-					else {
-						dataOut.writeByte(INF_QUAD_MARKER);
-					}
+				if (context != null) {
+					flags |= CONTEXT_FLAG;
 				}
 
-				writeValue(st.getSubject(), dataOut);
-				writeValue(st.getPredicate(), dataOut);
-				writeValue(st.getObject(), dataOut);
+				blockOut.writeByte(flags);
+				blockOut.writeInt(valueIDs.get(st.getSubject()));
+				blockOut.writeInt(valueIDs.get(st.getPredicate()));
+				blockOut.writeInt(valueIDs.get(st.getObject()));
 				if (context != null) {
-					writeValue(context, dataOut);
+					blockOut.writeInt(valueIDs.get(context));
+				}
+
+				if (++count == STATEMENTS_PER_BLOCK) {
+					writeBlock(STATEMENT_BLOCK, buf, dataOut);
+					buf.reset();
+					count = 0;
 				}
 			}
 		}
 		finally {
 			stIter.close();
 		}
+
+		if (count > 0) {
+			writeBlock(STATEMENT_BLOCK, buf, dataOut);
+		}
+	}
+
+	/**
+	 * Writes a block of the specified type, compressing its contents if this
+	 * reduces its size. A block consists of the block type, the length of the
+	 * (uncompressed) contents, the length of the stored data, and the stored
+	 * data. The stored data is compressed iff the two lengths differ.
+	 */
+	private void writeBlock(int blockType, ByteArrayOutputStream buf, DataOutputStream dataOut)
+		throws IOException
+	{
+		byte[] data = buf.toByteArray();
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+
+			byte[] chunk = new byte[8192];
+			while (!deflater.finished() && compressed.size() < data.length) {
+				int n = deflater.deflate(chunk);
+				compressed.write(chunk, 0, n);
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		dataOut.writeByte(blockType);
+		dataOut.writeInt(data.length);
+
+		if (compressed.size() < data.length) {
+			dataOut.writeInt(compressed.size());
+			compressed.writeTo(dataOut);
+		}
+		else {
+			dataOut.writeInt(data.length);
+			dataOut.write(data);
+		}
+	}
+
+	/**
+	 * Reads the blocks of a version 3 file. Value and statement blocks are
+	 * decompressed and decoded on a pool of threads; the decoded statements
+	 * are added to the store's statement list in file order. Once all blocks
+	 * have been read, the statement lists of the values and the composite
+	 * indexes are filled on the same pool.
+	 */
+	private void readBlocks(DataInputStream dataIn)
+		throws IOException
+	{
+		final MemValue[] values = new MemValue[dataIn.readInt()];
+		int firstStatement = store.getStatements().size();
+
+		int threadCount = readerThreads;
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MemoryStore data file reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// Blocks that are being decoded, limited to bound memory usage
+		LinkedList<Future<MemStatement[]>> pending = new LinkedList<Future<MemStatement[]>>();
+		boolean valuesComplete = false;
+
+		try {
+			int blockType;
+			while ((blockType = dataIn.readByte()) != EOF_MARKER) {
+				final int length = dataIn.readInt();
+				final byte[] storedData = readBlockData(dataIn, dataIn.readInt());
+
+				switch (blockType) {
+					case NAMESPACE_BLOCK:
+						readNamespaceBlock(decompress(storedData, length));
+						break;
+					case VALUE_BLOCK:
+						pending.add(executor.submit(new Callable<MemStatement[]>() {
+
+							public MemStatement[] call()
+								throws IOException
+							{
+								readValueBlock(decompress(storedData, length), values);
+								return null;
+							}
+						}));
+						break;
+					case STATEMENT_BLOCK:
+						if (!valuesComplete) {
+							// statements can only be decoded when all values are known
+							while (!pending.isEmpty()) {
+								addStatements(getResult(pending.removeFirst()));
+							}
+							valuesComplete = true;
+						}
+
+						pending.add(executor.submit(new Callable<MemStatement[]>() {
+
+							public MemStatement[] call()
+								throws IOException
+							{
+								return readStatementBlock(decompress(storedData, length), length, values);
+							}
+						}));
+						break;
+					default:
+						throw new IOException("Invalid block type marker: " + blockType);
+				}
+
+				while (pending.size() > 2 * threadCount) {
+					addStatements(getResult(pending.removeFirst()));
+				}
+			}
+
+			while (!pending.isEmpty()) {
+				addStatements(getResult(pending.removeFirst()));
+			}
+
+			if (store.getStatementTable() == null) {
+				addToStatementLists(executor, threadCount, firstStatement);
+			}
+
+			finishTableLoad();
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private byte[] readBlockData(DataInputStream dataIn, int storedLength)
+		throws IOException
+	{
+		byte[] data = new byte[storedLength];
+		dataIn.readFully(data);
+		return data;
+	}
+
+	private DataInputStream decompress(byte[] storedData, int length)
+		throws IOException
+	{
+		if (storedData.length == length) {
+			return new DataInputStream(new ByteArrayInputStream(storedData));
+		}
+
+		byte[] data = new byte[length];
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(storedData);
+
+			int offset = 0;
+			while (offset < length) {
+				int n = inflater.inflate(data, offset, length - offset);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new EOFException("Compressed block is shorter than " + length + " bytes");
+				}
+				offset += n;
+			}
+		}
+		catch (DataFormatException e) {
+			IOException ioe = new IOException("Corrupt compressed block");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		finally {
+			inflater.end();
+		}
+
+		return new DataInputStream(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * Decodes a block of values into the value table. This method is called
+	 * concurrently for different blocks and uses its own {@link FileIO} to
+	 * decode strings. The values are registered with the store's value factory,
+	 * which does not lock, so the blocks are also registered concurrently. In
+	 * compact storage mode, the values are added to the dictionary of the
+	 * statement table instead.
+	 */
+	private void readValueBlock(DataInputStream blockIn, MemValue[] values)
+		throws IOException
+	{
+		FileIO valueIO = new FileIO(store);
+
+		StatementTable statementTable = store.getStatementTable();
+		ValueDictionary dictionary = null;
+		if (statementTable != null) {
+			dictionary = statementTable.getState().getDictionary();
+		}
+
+		int firstID = blockIn.readInt();
+		int count = blockIn.readInt();
+
+		if (firstID < 0 || count < 0 || firstID + count > values.length) {
+			throw new IOException("Invalid value block: " + firstID + "+" + count);
+		}
+
+		for (int i = 0; i < count; i++) {
+			Value value = valueIO.readValue(blockIn);
+			if (dictionary != null) {
+				value = dictionary.getValue(dictionary.getOrAddID(value));
+			}
+			values[firstID + i] = (MemValue)value;
+		}
+	}
+
+	/**
+	 * Decodes a block of statements. This method is called concurrently for
+	 * different blocks, the statements are added to the store by the reading
+	 * thread.
+	 */
+	private MemStatement[] readStatementBlock(DataInputStream blockIn, int length, MemValue[] values)
+		throws IOException
+	{
+		List<MemStatement> statements = new ArrayList<MemStatement>(length / 13);
+		int snapshot = store.getCurrentSnapshot();
+
+		while (blockIn.available() > 0) {
+			int flags = blockIn.readByte();
+
+			try {
+				MemResource subj = (MemResource)getValue(blockIn.readInt(), values);
+				MemURI pred = (MemURI)getValue(blockIn.readInt(), values);
+				MemValue obj = getValue(blockIn.readInt(), values);
+				MemResource context = null;
+				if ((flags & CONTEXT_FLAG) != 0) {
+					context = (MemResource)getValue(blockIn.readInt(), values);
+				}
+
+				boolean explicit = (flags & EXPLICIT_FLAG) != 0;
+				statements.add(new MemStatement(subj, pred, obj, context, explicit, snapshot));
+			}
+			catch (ClassCastException e) {
+				throw new IOException("Invalid statement component type: " + e.getMessage());
+			}
+		}
+
+		return statements.toArray(new MemStatement[statements.size()]);
+	}
+
+	private MemValue getValue(int id, MemValue[] values)
+		throws IOException
+	{
+		if (id < 0 || id >= values.length || values[id] == null) {
+			throw new IOException("Invalid value ID: " + id);
+		}
+		return values[id];
+	}
+
+	private <T> T getResult(Future<T> future)
+		throws IOException
+	{
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			IOException ioe = new InterruptedIOException("Interrupted while reading data file");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			IOException ioe = new IOException("Failed to decode block");
+			ioe.initCause(cause);
+			throw ioe;
+		}
+	}
+
+	private void addStatements(MemStatement[] statements) {
+		StatementTable statementTable = store.getStatementTable();
+
+		if (statements != null && statementTable != null) {
+			for (MemStatement st : statements) {
+				statementTable.addLoadedStatement(st.getSubject(), st.getPredicate(), st.getObject(),
+						st.getContext(), st.isExplicit());
+			}
+		}
+		else if (statements != null) {
+			MemStatementList storeStatements = store.getStatements();
+			for (MemStatement st : statements) {
+				storeStatements.add(st);
+			}
+		}
+	}
+
+	/**
+	 * Adds the statements from the store's statement list, starting at
+	 * <tt>firstStatement</tt>, to the statement lists of their values and to
+	 * the composite indexes. With more than one thread, each task fills a
+	 * different kind of list, so the tasks never modify the same list and can
+	 * run concurrently without locking. With a single thread, one pass fills
+	 * all lists. Each list receives its statements in file order.
+	 */
+	private void addToStatementLists(ExecutorService executor, int threadCount, int firstStatement)
+		throws IOException
+	{
+		CompositeIndex[] indexes = store.getIndexes();
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+		if (threadCount == 1) {
+			tasks.add(new StatementListBuilder("spoc", indexes, firstStatement));
+		}
+		else {
+			for (String component : new String[] { "s", "p", "o", "c" }) {
+				tasks.add(new StatementListBuilder(component, new CompositeIndex[0], firstStatement));
+			}
+			for (CompositeIndex index : indexes) {
+				tasks.add(new StatementListBuilder("", new CompositeIndex[] { index }, firstStatement));
+			}
+		}
+
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+		for (Callable<Object> task : tasks) {
+			futures.add(executor.submit(task));
+		}
+		for (Future<Object> future : futures) {
+			getResult(future);
+		}
+	}
+
+	void writeStatement(Statement st, boolean isExplicit, DataOutputStream dataOut)
+		throws IOException
+	{
+		Resource context = st.getContext();
+
+		if (isExplicit) {
+			if (context == null) {
+				dataOut.writeByte(EXPL_TRIPLE_MARKER);
+			}
+			else {
+				dataOut.writeByte(EXPL_QUAD_MARKER);
+			}
+		}
+		else {
+			if (context == null) {
+				dataOut.writeByte(INF_TRIPLE_MARKER);
+			}
+			else {
+				dataOut.writeByte(INF_QUAD_MARKER);
+			}
+		}
+
+		writeValue(st.getSubject(), dataOut);
+		writeValue(st.getPredicate(), dataOut);
+		writeValue(st.getObject(), dataOut);
+		if (context != null) {
+			writeValue(context, dataOut);
+		}
 	}
 
 	private void readStatement(boolean hasContext, boolean isExplicit, DataInputStream dataIn)
@@ -276,13 +899,20 @@ class FileIO {
 			memContext = (MemResource)readValue(dataIn);
 		}
 
+		StatementTable statementTable = store.getStatementTable();
+		if (statementTable != null) {
+			statementTable.addLoadedStatement(memSubj, memPred, memObj, memContext, isExplicit);
+			return;
+		}
+
 		MemStatement st = new MemStatement(memSubj, memPred, memObj, memContext, isExplicit,
 				store.getCurrentSnapshot());
 		store.getStatements().add(st);
 		st.addToComponentLists();
+		store.addToCompositeIndexes(st);
 	}
 
-	private void writeValue(Value value, DataOutputStream dataOut)
+	void writeValue(Value value, DataOutputStream dataOut)
 		throws IOException
 	{
 		if (value instanceof URI) {
@@ -320,7 +950,7 @@ class FileIO {
 		}
 	}
 
-	private Value readValue(DataInputStream dataIn)
+	Value readValue(DataInputStream dataIn)
 		throws IOException, ClassCastException
 	{
 		int valueTypeMarker = dataIn.readByte();
@@ -352,7 +982,7 @@ class FileIO {
 		}
 	}
 
-	private void writeString(String s, DataOutputStream dataOut)
+	void writeString(String s, DataOutputStream dataOut)
 		throws IOException
 	{
 		ByteBuffer byteBuf = charsetEncoder.encode(CharBuffer.wrap(s));
@@ -360,7 +990,7 @@ class FileIO {
 		dataOut.write(byteBuf.array(), 0, byteBuf.remaining());
 	}
 
-	private String readString(DataInputStream dataIn)
+	String readString(DataInputStream dataIn)
 		throws IOException
 	{
 		if (formatVersion == 1) {
@@ -402,4 +1032,68 @@ class FileIO {
 
 		return charBuf.toString();
 	}
+
+	/*----------------------------------*
+	 * Inner class StatementListBuilder *
+	 *----------------------------------*/
+
+	/**
+	 * Adds statements to the statement lists of some of their components and
+	 * to some of the composite indexes.
+	 */
+	private class StatementListBuilder implements Callable<Object> {
+
+		private final boolean subjects;
+
+		private final boolean predicates;
+
+		private final boolean objects;
+
+		private final boolean contexts;
+
+		private final CompositeIndex[] indexes;
+
+		private final int firstStatement;
+
+		/**
+		 * @param components
+		 *        The components whose statement lists are filled, any of
+		 *        <tt>s</tt>, <tt>p</tt>, <tt>o</tt> and <tt>c</tt>.
+		 */
+		public StatementListBuilder(String components, CompositeIndex[] indexes, int firstStatement) {
+			this.subjects = components.indexOf('s') != -1;
+			this.predicates = components.indexOf('p') != -1;
+			this.objects = components.indexOf('o') != -1;
+			this.contexts = components.indexOf('c') != -1;
+			this.indexes = indexes;
+			this.firstStatement = firstStatement;
+		}
+
+		public Object call() {
+			MemStatementList statements = store.getStatements();
+			int statementCount = statements.size();
+
+			for (int i = firstStatement; i < statementCount; i++) {
+				MemStatement st = statements.get(i);
+
+				if (subjects) {
+					st.getSubject().addSubjectStatement(st);
+				}
+				if (predicates) {
+					st.getPredicate().addPredicateStatement(st);
+				}
+				if (objects) {
+					st.getObject().addObjectStatement(st);
+				}
+				if (contexts && st.getContext() != null) {
+					st.getContext().addContextStatement(st);
+				}
+				for (CompositeIndex index : indexes) {
+					index.add(st);
+				}
+			}
+
+			return null;
+		}
+	}
 }
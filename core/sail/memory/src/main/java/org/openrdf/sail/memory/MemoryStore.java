@@ -7,12 +7,22 @@ package org.openrdf.sail.memory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import info.aduna.concurrent.locks.ExclusiveLockManager;
 import info.aduna.concurrent.locks.Lock;
@@ -30,6 +40,7 @@ import org.openrdf.sail.SailException;
 import org.openrdf.sail.helpers.DefaultSailChangedEvent;
 import org.openrdf.sail.helpers.DirectoryLockManager;
 import org.openrdf.sail.helpers.NotifyingSailBase;
+import org.openrdf.sail.helpers.QueryPlanCache;
 import org.openrdf.sail.memory.model.MemResource;
 import org.openrdf.sail.memory.model.MemStatement;
 import org.openrdf.sail.memory.model.MemStatementIterator;
@@ -62,6 +73,40 @@ public class MemoryStore extends NotifyingSailBase {
 
 	protected static final String SYNC_FILE_NAME = "memorystore.sync";
 
+	protected static final String LOG_FILE_NAME = "memorystore.log";
+
+	protected static final String OLD_LOG_FILE_NAME = "memorystore.log.old";
+
+	/**
+	 * The size in bytes that the change log must reach before it is folded into
+	 * the data file, regardless of the size of the data file.
+	 */
+	private static final long MIN_COMPACTION_LOG_SIZE = 1024 * 1024;
+
+	/**
+	 * The maximum number of statements that the snapshot cleanup processes in
+	 * one go while holding the transaction lock.
+	 */
+	private static final int CLEANUP_CHUNK_SIZE = 10000;
+
+	/**
+	 * The maximum number of threads that clean the statement lists of a chunk
+	 * concurrently.
+	 */
+	private static final int MAX_CLEANUP_THREADS = 4;
+
+	/**
+	 * The snapshot number at which the snapshots of all statements are reset to
+	 * 1, well before they can overflow.
+	 */
+	private static final int SNAPSHOT_RESET_THRESHOLD = Integer.MAX_VALUE / 2;
+
+	/**
+	 * The fraction of the statements that must have been added or removed
+	 * before the cached query plans are invalidated.
+	 */
+	private static final double PLAN_CACHE_CHANGE_RATIO = 0.1;
+
 	/*-----------*
 	 * Variables *
 	 *-----------*/
@@ -92,8 +137,9 @@ public class MemoryStore extends NotifyingSailBase {
 	private final MemNamespaceStore namespaceStore = new MemNamespaceStore();
 
 	/**
-	 * Lock manager used to give the snapshot cleanup thread exclusive access to
-	 * the statement list.
+	 * Lock manager used by readers of the statement lists. The snapshot cleanup
+	 * does not use this lock; only the shutdown and the (very rare) reset of
+	 * the snapshots need exclusive access to the statements.
 	 */
 	private final ReadWriteLockManager statementListLockManager = new ReadPrefReadWriteLockManager(
 			debugEnabled());
@@ -115,6 +161,18 @@ public class MemoryStore extends NotifyingSailBase {
 	 */
 	private volatile File syncFile;
 
+	/**
+	 * The file that the change log is appended to, null if this is a volatile
+	 * RDF store.
+	 */
+	private volatile File logFile;
+
+	/**
+	 * The file that holds the change log while it is folded into the data file,
+	 * null if this is a volatile RDF store.
+	 */
+	private volatile File oldLogFile;
+
 	/**
 	 * The directory lock, null if this is read-only or a volatile RDF store.
 	 */
@@ -132,6 +190,148 @@ public class MemoryStore extends NotifyingSailBase {
 	 */
 	private volatile long syncDelay = 0L;
 
+	/**
+	 * Flag indicating whether changes are appended to a change log.
+	 * 
+	 * @see #setChangeLog
+	 */
+	private volatile boolean changeLog = false;
+
+	/**
+	 * The change log that commits are appended to, null if no change log is
+	 * used.
+	 */
+	private volatile ChangeLog log;
+
+	/**
+	 * The record for the changes of the active transaction, null if no change
+	 * log is used.
+	 */
+	private volatile ChangeLog.Record txnLogRecord;
+
+	/**
+	 * Semaphore used to make appending a transaction to the change log and
+	 * committing it to a new snapshot atomic with respect to compaction of the
+	 * change log.
+	 */
+	private final Object logSemaphore = new Object();
+
+	/**
+	 * The maximum number of optimized query plans that are cached.
+	 * 
+	 * @see #setQueryPlanCacheSize
+	 */
+	private volatile int queryPlanCacheSize = 0;
+
+	private volatile QueryPlanCache queryPlanCache;
+
+	/**
+	 * The number of statements in the store when the cached query plans were
+	 * last invalidated.
+	 */
+	private int planCacheStatementCount = 0;
+
+	/**
+	 * The number of statements that have been added or removed since the cached
+	 * query plans were last invalidated. The plans are invalidated when this
+	 * exceeds {@link #PLAN_CACHE_CHANGE_RATIO} of
+	 * {@link #planCacheStatementCount}, as smaller changes are not expected to
+	 * affect the estimates that the plans are based on.
+	 */
+	private int planCacheChangeCount = 0;
+
+	/**
+	 * The maximum number of solutions that query operators keep in memory.
+	 * 
+	 * @see #setSpillThreshold
+	 */
+	private volatile int spillThreshold = 0;
+
+	/**
+	 * The directory for the temporary files of query operators.
+	 * 
+	 * @see #setTempDir
+	 */
+	private volatile File tempDir;
+
+	/**
+	 * The number of threads on which parts of queries are evaluated
+	 * concurrently.
+	 * 
+	 * @see #setEvaluationThreads
+	 */
+	private volatile int evaluationThreads = 0;
+
+	/**
+	 * Flag indicating whether the order of joins is adapted to the
+	 * cardinalities that are observed during query evaluation.
+	 * 
+	 * @see #setAdaptiveJoinOrder
+	 */
+	private volatile boolean adaptiveJoinOrder = false;
+
+	/**
+	 * Specifies which composite indexes this memory store must maintain.
+	 * 
+	 * @see #setCompositeIndexes
+	 */
+	private volatile String compositeIndexes;
+
+	/**
+	 * The composite indexes that are maintained in addition to the statement
+	 * lists of the values.
+	 */
+	private volatile CompositeIndex[] indexes = new CompositeIndex[0];
+
+	/**
+	 * Flag indicating whether statements are stored as rows of value IDs rather
+	 * than as objects.
+	 * 
+	 * @see #setCompactStorage
+	 */
+	private volatile boolean compactStorage = false;
+
+	/**
+	 * The statements and values of the store in compact storage mode,
+	 * <tt>null</tt> otherwise.
+	 */
+	private volatile StatementTable statementTable;
+
+	private volatile ExecutorService evaluationExecutor;
+
+	/**
+	 * The threads on which the statement lists of a cleanup chunk are
+	 * cleaned, or <tt>null</tt> if they are cleaned on the snapshot cleanup
+	 * thread itself.
+	 */
+	private volatile ExecutorService cleanupExecutor;
+
+	/**
+	 * The snapshots that were current when the active readers acquired their
+	 * lock, mapped to the number of readers. The snapshot cleanup leaves the
+	 * statements that these readers can still see alone. Guarded by itself.
+	 */
+	private final TreeMap<Integer, Integer> readerSnapshots = new TreeMap<Integer, Integer>();
+
+	/**
+	 * Flag indicating that a snapshot cleanup left statements for the readers
+	 * in {@link #readerSnapshots}, so that a new cleanup is scheduled when the
+	 * last of them is done. Guarded by {@link #readerSnapshots}.
+	 */
+	private boolean snapshotCleanupDeferred = false;
+
+	/**
+	 * Incremented when the store is shut down, to abort a snapshot cleanup that
+	 * is still in progress.
+	 */
+	private volatile int cleanupEpoch = 0;
+
+	/**
+	 * Semaphore used to prevent concurrent snapshot cleanups, which would copy
+	 * the same lists.
+	 */
+	private final Object cleanupSemaphore = new Object();
+
 	/**
 	 * Semaphore used to synchronize concurrent access to {@link #syncWithLock()}
 	 * .
@@ -166,6 +366,24 @@ public class MemoryStore extends NotifyingSailBase {
 	 */
 	private final Object snapshotCleanupThreadSemaphore = new Object();
 
+	/**
+	 * Flag indicating that a snapshot cleanup has been scheduled that has not
+	 * been started yet. Guarded by {@link #snapshotCleanupThreadSemaphore}.
+	 */
+	private boolean snapshotCleanupRequested = false;
+
+	/**
+	 * Thread that folds the change log into the data file. See
+	 * {@link #scheduleCompaction()}.
+	 */
+	private volatile Thread compactionThread;
+
+	/**
+	 * Semaphore used to synchronize concurrent access to
+	 * {@link #compactionThread}.
+	 */
+	private final Object compactionThreadSemaphore = new Object();
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -240,6 +458,217 @@ public class MemoryStore extends NotifyingSailBase {
 		return syncDelay;
 	}
 
+	/**
+	 * Sets whether the changes of each transaction are appended to a change log
+	 * instead of rewriting the data file. The cost of a sync then depends on
+	 * the size of the transaction rather than the size of the store. The change
+	 * log is folded into the data file in the background once it has grown
+	 * larger than the data file, and when {@link #sync()} is called. When the
+	 * store is initialized, the change log is replayed on top of the data file.
+	 * <p>
+	 * With a change log, each commit is appended to the log immediately. A sync
+	 * delay of <tt>0</tt> forces the log to disk after each commit; otherwise,
+	 * it is left to the operating system to write it out. This parameter must
+	 * be set before the store is initialized, and only affects persistent
+	 * stores.
+	 * <p>
+	 * The default value for this parameter is <tt>false</tt>, which means that
+	 * the data file is rewritten as specified by the sync delay.
+	 * 
+	 * @param changeLog
+	 *        Indicates whether a change log is used.
+	 * @see #setSyncDelay(long)
+	 */
+	public void setChangeLog(boolean changeLog) {
+		if (isInitialized()) {
+			throw new IllegalStateException("sail has already been initialized");
+		}
+
+		this.changeLog = changeLog;
+	}
+
+	public boolean getChangeLog() {
+		return changeLog;
+	}
+
+	/**
+	 * Sets the maximum number of optimized query plans that are cached by this
+	 * store. Repeated evaluations of the same query model with the same dataset
+	 * and bindings reuse the cached plan instead of running the query
+	 * optimizers again. Cached plans are discarded whenever a transaction
+	 * changes the contents of the store.
+	 * <p>
+	 * The default value for this parameter is <tt>0</tt>, which disables the
+	 * cache.
+	 * 
+	 * @param queryPlanCacheSize
+	 *        The maximum number of cached query plans.
+	 */
+	public void setQueryPlanCacheSize(int queryPlanCacheSize) {
+		if (isInitialized()) {
+			throw new IllegalStateException("sail has already been initialized");
+		}
+
+		this.queryPlanCacheSize = queryPlanCacheSize;
+	}
+
+	public int getQueryPlanCacheSize() {
+		return queryPlanCacheSize;
+	}
+
+	/**
+	 * Gets the cache of optimized query plans, which can be used to monitor its
+	 * hit, miss and eviction counts.
+	 * 
+	 * @return The query plan cache, or <tt>null</tt> if the store has not been
+	 *         initialized or query plans are not cached.
+	 */
+	public QueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	/**
+	 * Sets the maximum number of solutions that query operators that need to
+	 * see all of their input, such as ORDER BY, DISTINCT, GROUP BY and MINUS,
+	 * keep in memory. Solutions in excess of this number are written to
+	 * temporary files.
+	 * <p>
+	 * The default value for this parameter is <tt>0</tt>, which means that all
+	 * solutions are kept in memory.
+	 * 
+	 * @param spillThreshold
+	 *        The maximum number of solutions an operator keeps in memory.
+	 * @see #setTempDir(File)
+	 */
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the directory in which query operators create their temporary files
+	 * when the spill threshold has been exceeded. By default, the system's
+	 * temporary-file directory is used.
+	 * 
+	 * @param tempDir
+	 *        The directory for temporary files, or <tt>null</tt> to use the
+	 *        system's temporary-file directory.
+	 * @see #setSpillThreshold(int)
+	 */
+	public void setTempDir(File tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	public File getTempDir() {
+		return tempDir;
+	}
+
+	/**
+	 * Sets the number of threads on which the arguments of unions and hash joins
+	 * are evaluated concurrently. The threads are shared by all queries. This
+	 * parameter must be set before the store is initialized.
+	 * <p>
+	 * The default value for this parameter is <tt>0</tt>, which means that
+	 * queries are evaluated sequentially on the calling thread.
+	 * 
+	 * @param evaluationThreads
+	 *        The number of threads for concurrent query evaluation.
+	 */
+	public void setEvaluationThreads(int evaluationThreads) {
+		this.evaluationThreads = evaluationThreads;
+	}
+
+	public int getEvaluationThreads() {
+		return evaluationThreads;
+	}
+
+	/**
+	 * Sets whether the order of the joins in queries is adapted to the
+	 * cardinalities that are observed while the joins are evaluated. The
+	 * statement patterns of a join are then re-ordered when the number of
+	 * results that they produce deviates strongly from the estimate that the
+	 * initial order was based on.
+	 * <p>
+	 * The default value for this parameter is <tt>false</tt>, which means that
+	 * joins are evaluated in the order chosen by the query optimizer.
+	 * 
+	 * @param adaptiveJoinOrder
+	 *        Indicates whether the join order is adapted during evaluation.
+	 */
+	public void setAdaptiveJoinOrder(boolean adaptiveJoinOrder) {
+		this.adaptiveJoinOrder = adaptiveJoinOrder;
+	}
+
+	public boolean getAdaptiveJoinOrder() {
+		return adaptiveJoinOrder;
+	}
+
+	/**
+	 * Sets the composite indexes that the memory store maintains in addition to
+	 * the statement lists of subjects, predicates, objects and contexts. Each
+	 * index is specified by two of the characters <tt>s</tt>, <tt>p</tt>,
+	 * <tt>o</tt> and <tt>c</tt>, e.g. <tt>po,sp</tt>, and makes look-ups of
+	 * statements with both components bound proportional to the number of
+	 * results. This parameter must be set before the store is initialized.
+	 * <p>
+	 * By default, no composite indexes are used.
+	 * 
+	 * @param compositeIndexes
+	 *        An index string, e.g. <tt>po,sp</tt>.
+	 */
+	public void setCompositeIndexes(String compositeIndexes) {
+		if (isInitialized()) {
+			throw new IllegalStateException("sail has already been intialized");
+		}
+
+		this.compositeIndexes = compositeIndexes;
+	}
+
+	public String getCompositeIndexes() {
+		return compositeIndexes;
+	}
+
+	/**
+	 * Sets whether statements are stored in compact form. In compact storage
+	 * mode, values are stored in encoded form in a dictionary that assigns an
+	 * integer ID to each of them, and statements are stored as rows of these
+	 * IDs in sorted arrays, rather than as objects in the statement lists of
+	 * their values. This takes about a fifth of the memory, at the cost of
+	 * decoding the values of the statements that queries return, and of
+	 * copying the arrays when statements are removed. Composite indexes are not
+	 * used in compact storage mode. This parameter must be set before the store
+	 * is initialized.
+	 * <p>
+	 * The default value for this parameter is <tt>false</tt>.
+	 * 
+	 * @param compactStorage
+	 *        Indicates whether statements are stored in compact form.
+	 */
+	public void setCompactStorage(boolean compactStorage) {
+		if (isInitialized()) {
+			throw new IllegalStateException("sail has already been intialized");
+		}
+
+		this.compactStorage = compactStorage;
+	}
+
+	public boolean getCompactStorage() {
+		return compactStorage;
+	}
+
+	/**
+	 * Gets the executor on which parts of queries are evaluated concurrently.
+	 * 
+	 * @return The executor, or <tt>null</tt> if the store has not been
+	 *         initialized or queries are evaluated sequentially.
+	 */
+	ExecutorService getEvaluationExecutor() {
+		return evaluationExecutor;
+	}
+
 	/**
 	 * Initializes this repository. If a persistence file is defined for the
 	 * store, the contents will be restored.
@@ -254,6 +683,51 @@ public class MemoryStore extends NotifyingSailBase {
 
 		currentSnapshot = 1;
 
+		boolean upgradeDataFile = false;
+
+		List<CompositeIndex> indexList = new ArrayList<CompositeIndex>();
+		if (compactStorage) {
+			statementTable = new StatementTable();
+
+			if (compositeIndexes != null && compositeIndexes.trim().length() > 0) {
+				logger.warn("Composite indexes are not used in compact storage mode: {}", compositeIndexes);
+			}
+		}
+		else {
+			for (String fieldSeq : CompositeIndex.parseIndexSpecList(compositeIndexes)) {
+				logger.trace("Initializing composite index '{}'...", fieldSeq);
+				indexList.add(new CompositeIndex(fieldSeq));
+			}
+		}
+		indexes = indexList.toArray(new CompositeIndex[indexList.size()]);
+
+		if (queryPlanCacheSize > 0) {
+			queryPlanCache = new QueryPlanCache(queryPlanCacheSize);
+		}
+
+		if (evaluationThreads > 0) {
+			evaluationExecutor = Executors.newFixedThreadPool(evaluationThreads, new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "MemoryStore query evaluator");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		int cleanupThreads = Math.min(MAX_CLEANUP_THREADS, Runtime.getRuntime().availableProcessors());
+		if (cleanupThreads > 1) {
+			cleanupExecutor = Executors.newFixedThreadPool(cleanupThreads, new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "MemoryStore snapshot cleanup");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
 		if (persist) {
 			File dataDir = getDataDir();
 			DirectoryLockManager locker = new DirectoryLockManager(dataDir);
@@ -280,8 +754,12 @@ public class MemoryStore extends NotifyingSailBase {
 				}
 				else {
 					try {
-						new FileIO(this).read(dataFile);
+						FileIO fileIO = new FileIO(this);
+						fileIO.read(dataFile);
 						logger.debug("Data file read successfully");
+
+						// rewrite data files in an older format on the next sync
+						upgradeDataFile = !fileIO.isCurrentFormat();
 					}
 					catch (IOException e) {
 						logger.error("Failed to read data file", e);
@@ -316,34 +794,156 @@ public class MemoryStore extends NotifyingSailBase {
 					throw new SailException("Failed to initialize data file " + dataFile, e);
 				}
 			}
+
+			try {
+				initChangeLog(dataDir);
+			}
+			catch (IOException e) {
+				logger.error("Failed to read change log", e);
+				throw new SailException(e);
+			}
+
+			trimStatementLists();
 		}
 
-		contentsChanged = false;
+		contentsChanged = upgradeDataFile && isWritable() || log != null && log.hasRecords();
 
 		logger.debug("MemoryStore initialized");
 	}
 
+	/**
+	 * Replays the change logs on top of the data that was read from the data
+	 * file and, if a change log is used, opens it for appending. Change logs
+	 * that are not used any more, or that were being folded into the data file
+	 * when the store was shut down, are folded into the data file immediately.
+	 */
+	private void initChangeLog(File dataDir)
+		throws IOException, SailException
+	{
+		logFile = new File(dataDir, LOG_FILE_NAME);
+		oldLogFile = new File(dataDir, OLD_LOG_FILE_NAME);
+
+		// Acquire transaction lock to prevent snapshot cleanup during replay
+		Lock txnLock = getTransactionLock();
+		try {
+			ChangeLog newLog = new ChangeLog(this, logFile);
+
+			int recordCount = new ChangeLog(this, oldLogFile).replay();
+			recordCount += newLog.replay();
+
+			if (recordCount > 0) {
+				logger.debug("Replayed {} transactions from change log", recordCount);
+			}
+
+			if (!isWritable()) {
+				return;
+			}
+
+			if (oldLogFile.exists() || !changeLog && logFile.exists()) {
+				logger.debug("Folding change log into data file...");
+				new FileIO(this).write(syncFile, dataFile);
+				deleteLogFile(oldLogFile);
+				deleteLogFile(logFile);
+				newLog = new ChangeLog(this, logFile);
+			}
+
+			if (changeLog) {
+				newLog.open();
+				log = newLog;
+			}
+		}
+		finally {
+			txnLock.release();
+		}
+	}
+
+	/**
+	 * Releases the capacity that the statement lists have reserved for future
+	 * additions. Called after the data has been loaded, as the lists of a large
+	 * store are otherwise up to twice as large as needed.
+	 */
+	private void trimStatementLists() {
+		statements.trimToSize();
+
+		for (int i = 0; i < statements.size(); i++) {
+			MemStatement st = statements.get(i);
+			st.getSubject().getSubjectStatementList().trimToSize();
+			st.getPredicate().getPredicateStatementList().trimToSize();
+			st.getObject().getObjectStatementList().trimToSize();
+
+			MemResource context = st.getContext();
+			if (context != null) {
+				context.getContextStatementList().trimToSize();
+			}
+		}
+
+		for (CompositeIndex index : indexes) {
+			index.trimToSize();
+		}
+	}
+
+	private void deleteLogFile(File file)
+		throws IOException
+	{
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not delete " + file);
+		}
+	}
+
 	@Override
 	protected void shutDownInternal()
 		throws SailException
 	{
 		try {
 			Lock stLock = statementListLockManager.getWriteLock();
+			Lock txnLock = null;
 
 			try {
+				// Wait for the current chunk of a snapshot cleanup and abort it
+				txnLock = txnLockManager.getExclusiveLock();
+				cleanupEpoch++;
+
 				cancelSyncTimer();
-				syncWithLock();
+
+				if (log != null) {
+					// All changes have been appended to the change log
+					closeChangeLog();
+				}
+				else {
+					syncWithLock();
+				}
 
 				valueFactory.clear();
 				statements.clear();
+				for (CompositeIndex index : indexes) {
+					index.clear();
+				}
+				if (statementTable != null) {
+					statementTable.clear();
+					statementTable = null;
+				}
+				queryPlanCache = null;
 				dataFile = null;
 				syncFile = null;
+				logFile = null;
+				oldLogFile = null;
 			}
 			finally {
+				if (txnLock != null) {
+					txnLock.release();
+				}
 				stLock.release();
 				if (dirLock != null) {
 					dirLock.release();
 				}
+				if (evaluationExecutor != null) {
+					evaluationExecutor.shutdown();
+					evaluationExecutor = null;
+				}
+				if (cleanupExecutor != null) {
+					cleanupExecutor.shutdown();
+					cleanupExecutor = null;
+				}
 			}
 		}
 		catch (InterruptedException e) {
@@ -379,19 +979,79 @@ public class MemoryStore extends NotifyingSailBase {
 		return namespaceStore;
 	}
 
+	protected void setNamespace(String prefix, String name)
+		throws SailException
+	{
+		namespaceStore.setNamespace(prefix, name);
+
+		if (txnLogRecord != null) {
+			try {
+				txnLogRecord.setNamespace(prefix, name);
+			}
+			catch (IOException e) {
+				throw new SailException(e);
+			}
+		}
+	}
+
+	protected void removeNamespace(String prefix)
+		throws SailException
+	{
+		namespaceStore.removeNamespace(prefix);
+
+		if (txnLogRecord != null) {
+			try {
+				txnLogRecord.removeNamespace(prefix);
+			}
+			catch (IOException e) {
+				throw new SailException(e);
+			}
+		}
+	}
+
+	protected void clearNamespaces()
+		throws SailException
+	{
+		namespaceStore.clear();
+
+		if (txnLogRecord != null) {
+			try {
+				txnLogRecord.clearNamespaces();
+			}
+			catch (IOException e) {
+				throw new SailException(e);
+			}
+		}
+	}
+
 	protected MemStatementList getStatements() {
 		return statements;
 	}
 
+	/**
+	 * Gets the statements and values of the store in compact storage mode.
+	 * 
+	 * @return The statement table, or <tt>null</tt> if statements are stored as
+	 *         objects.
+	 */
+	StatementTable getStatementTable() {
+		return statementTable;
+	}
+
 	protected int getCurrentSnapshot() {
 		return currentSnapshot;
 	}
 
+	/**
+	 * Gets a read lock on the statement lists. The lock also pins the current
+	 * snapshot, so that the snapshot cleanup leaves the statements of that
+	 * snapshot and later ones alone until the lock is released.
+	 */
 	protected Lock getStatementsReadLock()
 		throws SailException
 	{
 		try {
-			return statementListLockManager.getReadLock();
+			return new ReaderLock(statementListLockManager.getReadLock());
 		}
 		catch (InterruptedException e) {
 			throw new SailException(e);
@@ -410,6 +1070,11 @@ public class MemoryStore extends NotifyingSailBase {
 	}
 
 	protected int size() {
+		StatementTable statementTable = this.statementTable;
+		if (statementTable != null) {
+			return statementTable.size();
+		}
+
 		return statements.size();
 	}
 
@@ -438,6 +1103,12 @@ public class MemoryStore extends NotifyingSailBase {
 			Class<X> excClass, Resource subj, URI pred, Value obj, boolean explicitOnly, int snapshot,
 			ReadMode readMode, Resource... contexts)
 	{
+		StatementTable statementTable = this.statementTable;
+		if (statementTable != null) {
+			return statementTable.createStatementIterator(excClass, subj, pred, obj, explicitOnly, snapshot,
+					readMode, contexts);
+		}
+
 		// Perform look-ups for value-equivalents of the specified values
 		MemResource memSubj = valueFactory.getMemResource(subj);
 		if (subj != null && memSubj == null) {
@@ -458,6 +1129,7 @@ public class MemoryStore extends NotifyingSailBase {
 		}
 
 		MemResource[] memContexts;
+		MemResource singleContext = null;
 		MemStatementList smallestList;
 
 		if (contexts.length == 0) {
@@ -472,6 +1144,7 @@ public class MemoryStore extends NotifyingSailBase {
 			}
 
 			memContexts = new MemResource[] { memContext };
+			singleContext = memContext;
 			smallestList = memContext.getContextStatementList();
 		}
 		else {
@@ -514,6 +1187,13 @@ public class MemoryStore extends NotifyingSailBase {
 			}
 		}
 
+		for (CompositeIndex index : indexes) {
+			MemStatementList l = index.getStatements(memSubj, memPred, memObj, singleContext);
+			if (l != null && l.size() < smallestList.size()) {
+				smallestList = l;
+			}
+		}
+
 		return new MemStatementIterator<X>(smallestList, memSubj, memPred, memObj, explicitOnly, snapshot,
 				readMode, memContexts);
 	}
@@ -521,6 +1201,10 @@ public class MemoryStore extends NotifyingSailBase {
 	protected Statement addStatement(Resource subj, URI pred, Value obj, Resource context, boolean explicit)
 		throws SailException
 	{
+		if (statementTable != null) {
+			return addTableStatement(subj, pred, obj, context, explicit);
+		}
+
 		assert txnStatements != null;
 
 		// Get or create MemValues for the operands
@@ -546,48 +1230,7 @@ public class MemoryStore extends NotifyingSailBase {
 
 					txnStatements.put(st, st);
 
-					TxnStatus txnStatus = st.getTxnStatus();
-
-					if (txnStatus == TxnStatus.NEUTRAL && !st.isExplicit() && explicit) {
-						// Implicit statement is now added explicitly
-						st.setTxnStatus(TxnStatus.EXPLICIT);
-					}
-					else if (txnStatus == TxnStatus.NEW && !st.isExplicit() && explicit) {
-						// Statement was first added implicitly and now
-						// explicitly
-						st.setExplicit(true);
-					}
-					else if (txnStatus == TxnStatus.DEPRECATED) {
-						if (st.isExplicit() == explicit) {
-							// Statement was removed but is now re-added
-							st.setTxnStatus(TxnStatus.NEUTRAL);
-						}
-						else if (explicit) {
-							// Implicit statement was removed but is now added
-							// explicitly
-							st.setTxnStatus(TxnStatus.EXPLICIT);
-						}
-						else {
-							// Explicit statement was removed but can still be
-							// inferred
-							st.setTxnStatus(TxnStatus.INFERRED);
-						}
-
-						return st;
-					}
-					else if (txnStatus == TxnStatus.INFERRED && st.isExplicit() && explicit) {
-						// Explicit statement was removed but is now re-added
-						st.setTxnStatus(TxnStatus.NEUTRAL);
-					}
-					else if (txnStatus == TxnStatus.ZOMBIE) {
-						// Restore zombie statement
-						st.setTxnStatus(TxnStatus.NEW);
-						st.setExplicit(explicit);
-
-						return st;
-					}
-
-					return null;
+					return updateExistingStatement(st, explicit);
 				}
 			}
 			finally {
@@ -600,6 +1243,7 @@ public class MemoryStore extends NotifyingSailBase {
 				TxnStatus.NEW);
 		statements.add(st);
 		st.addToComponentLists();
+		addToCompositeIndexes(st);
 
 		txnStatements.put(st, st);
 
@@ -609,6 +1253,87 @@ public class MemoryStore extends NotifyingSailBase {
 		return st;
 	}
 
+	/**
+	 * Adds a statement to the statement table in compact storage mode.
+	 */
+	private Statement addTableStatement(Resource subj, URI pred, Value obj, Resource context,
+			boolean explicit)
+	{
+		assert statementTable.isTransactionActive();
+
+		MemStatement st = statementTable.getStatement(subj, pred, obj, context, currentSnapshot + 1);
+		if (st != null) {
+			return updateExistingStatement(st, explicit);
+		}
+
+		return statementTable.addStatement(subj, pred, obj, context, explicit);
+	}
+
+	/**
+	 * Updates the transaction status of a statement that is added while it is
+	 * already present.
+	 * 
+	 * @return The statement if it has been added, <tt>null</tt> if it was
+	 *         present already.
+	 */
+	private Statement updateExistingStatement(MemStatement st, boolean explicit) {
+		TxnStatus txnStatus = st.getTxnStatus();
+
+		if (txnStatus == TxnStatus.NEUTRAL && !st.isExplicit() && explicit) {
+			// Implicit statement is now added explicitly
+			st.setTxnStatus(TxnStatus.EXPLICIT);
+		}
+		else if (txnStatus == TxnStatus.NEW && !st.isExplicit() && explicit) {
+			// Statement was first added implicitly and now explicitly
+			st.setExplicit(true);
+		}
+		else if (txnStatus == TxnStatus.DEPRECATED) {
+			if (st.isExplicit() == explicit) {
+				// Statement was removed but is now re-added
+				st.setTxnStatus(TxnStatus.NEUTRAL);
+			}
+			else if (explicit) {
+				// Implicit statement was removed but is now added explicitly
+				st.setTxnStatus(TxnStatus.EXPLICIT);
+			}
+			else {
+				// Explicit statement was removed but can still be inferred
+				st.setTxnStatus(TxnStatus.INFERRED);
+			}
+
+			return st;
+		}
+		else if (txnStatus == TxnStatus.INFERRED && st.isExplicit() && explicit) {
+			// Explicit statement was removed but is now re-added
+			st.setTxnStatus(TxnStatus.NEUTRAL);
+		}
+		else if (txnStatus == TxnStatus.ZOMBIE) {
+			// Restore zombie statement
+			st.setTxnStatus(TxnStatus.NEW);
+			st.setExplicit(explicit);
+
+			return st;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Adds a new statement to the composite indexes of this store.
+	 */
+	void addToCompositeIndexes(MemStatement st) {
+		for (CompositeIndex index : indexes) {
+			index.add(st);
+		}
+	}
+
+	/**
+	 * Gets the composite indexes of this store.
+	 */
+	CompositeIndex[] getIndexes() {
+		return indexes;
+	}
+
 	protected boolean removeStatement(MemStatement st, boolean explicit)
 		throws SailException
 	{
@@ -637,7 +1362,9 @@ public class MemoryStore extends NotifyingSailBase {
 			st.setTxnStatus(TxnStatus.NEUTRAL);
 		}
 
-		txnStatements.put(st, st);
+		if (statementTable == null) {
+			txnStatements.put(st, st);
+		}
 
 		return statementsRemoved;
 	}
@@ -649,6 +1376,15 @@ public class MemoryStore extends NotifyingSailBase {
 
 		assert txnStatements == null;
 		txnStatements = new IdentityHashMap<MemStatement, MemStatement>();
+
+		if (statementTable != null) {
+			statementTable.startTransaction(currentSnapshot + 1);
+		}
+
+		ChangeLog log = this.log;
+		if (log != null) {
+			txnLogRecord = log.createRecord();
+		}
 	}
 
 	protected void commit()
@@ -659,45 +1395,78 @@ public class MemoryStore extends NotifyingSailBase {
 		boolean statementsAdded = false;
 		boolean statementsRemoved = false;
 		boolean statementsDeprecated = false;
+		boolean mergeDue = false;
+		int changeCount = 0;
 
 		int txnSnapshot = currentSnapshot + 1;
 
-		for (MemStatement st : txnStatements.keySet()) {
-			TxnStatus txnStatus = st.getTxnStatus();
-
-			if (txnStatus == TxnStatus.NEUTRAL) {
-				continue;
-			}
-			else if (txnStatus == TxnStatus.NEW) {
-				statementsAdded = true;
-			}
-			else if (txnStatus == TxnStatus.DEPRECATED) {
-				st.setTillSnapshot(txnSnapshot);
-				statementsRemoved = true;
+		synchronized (logSemaphore) {
+			// Log the transaction before applying it, so that a failure leaves
+			// the transaction open for rollback
+			if (txnLogRecord != null) {
+				logTransaction();
 			}
-			else if (txnStatus == TxnStatus.ZOMBIE) {
-				st.setTillSnapshot(txnSnapshot);
-				statementsDeprecated = true;
+
+			if (statementTable != null) {
+				StatementTable.Changes changes = statementTable.commit(txnSnapshot);
+				statementsAdded = changes.addedCount > 0;
+				statementsRemoved = changes.removedCount > 0;
+				statementsDeprecated = changes.deprecated;
+				changeCount = changes.addedCount + changes.removedCount;
+				mergeDue = changes.mergeDue;
 			}
-			else if (txnStatus == TxnStatus.EXPLICIT || txnStatus == TxnStatus.INFERRED) {
-				// Deprecate the existing statement...
-				st.setTillSnapshot(txnSnapshot);
-				statementsDeprecated = true;
+			else {
+				for (MemStatement st : txnStatements.keySet()) {
+					TxnStatus txnStatus = st.getTxnStatus();
+
+					if (txnStatus == TxnStatus.NEUTRAL) {
+						continue;
+					}
+					else if (txnStatus == TxnStatus.NEW) {
+						statementsAdded = true;
+						changeCount++;
+					}
+					else if (txnStatus == TxnStatus.DEPRECATED) {
+						st.setTillSnapshot(txnSnapshot);
+						statementsRemoved = true;
+						changeCount++;
+					}
+					else if (txnStatus == TxnStatus.ZOMBIE) {
+						st.setTillSnapshot(txnSnapshot);
+						statementsDeprecated = true;
+					}
+					else if (txnStatus == TxnStatus.EXPLICIT || txnStatus == TxnStatus.INFERRED) {
+						// Deprecate the existing statement...
+						st.setTillSnapshot(txnSnapshot);
+						statementsDeprecated = true;
+
+						// ...and add a clone with modified explicit/implicit flag
+						MemStatement explSt = new MemStatement(st.getSubject(), st.getPredicate(),
+								st.getObject(), st.getContext(), txnStatus == TxnStatus.EXPLICIT, txnSnapshot);
+						statements.add(explSt);
+						explSt.addToComponentLists();
+						addToCompositeIndexes(explSt);
+					}
 
-				// ...and add a clone with modified explicit/implicit flag
-				MemStatement explSt = new MemStatement(st.getSubject(), st.getPredicate(), st.getObject(),
-						st.getContext(), txnStatus == TxnStatus.EXPLICIT, txnSnapshot);
-				statements.add(explSt);
-				explSt.addToComponentLists();
+					st.setTxnStatus(TxnStatus.NEUTRAL);
+				}
 			}
 
-			st.setTxnStatus(TxnStatus.NEUTRAL);
-		}
+			txnStatements = null;
 
-		txnStatements = null;
+			if (statementsAdded || statementsRemoved || statementsDeprecated) {
+				currentSnapshot = txnSnapshot;
+
+				if (queryPlanCache != null) {
+					planCacheChangeCount += changeCount;
 
-		if (statementsAdded || statementsRemoved || statementsDeprecated) {
-			currentSnapshot = txnSnapshot;
+					if (planCacheChangeCount > planCacheStatementCount * PLAN_CACHE_CHANGE_RATIO) {
+						queryPlanCache.invalidate();
+						planCacheStatementCount = size();
+						planCacheChangeCount = 0;
+					}
+				}
+			}
 		}
 
 		if (statementsAdded || statementsRemoved) {
@@ -710,7 +1479,7 @@ public class MemoryStore extends NotifyingSailBase {
 			notifySailChanged(event);
 		}
 
-		if (statementsRemoved || statementsDeprecated) {
+		if (statementsRemoved || statementsDeprecated || mergeDue) {
 			scheduleSnapshotCleanup();
 		}
 	}
@@ -723,6 +1492,11 @@ public class MemoryStore extends NotifyingSailBase {
 
 		boolean statementsDeprecated = false;
 
+		if (statementTable != null) {
+			// the statements of the transaction are simply discarded
+			statementTable.rollback();
+		}
+
 		for (MemStatement st : txnStatements.keySet()) {
 			TxnStatus txnStatus = st.getTxnStatus();
 			if (txnStatus == TxnStatus.NEW || txnStatus == TxnStatus.ZOMBIE) {
@@ -742,16 +1516,73 @@ public class MemoryStore extends NotifyingSailBase {
 		if (statementsDeprecated) {
 			scheduleSnapshotCleanup();
 		}
+
+		if (txnLogRecord != null) {
+			// Namespace changes are not undone by a rollback
+			logTransaction();
+		}
+	}
+
+	/**
+	 * Appends the changes of the active transaction to the change log.
+	 */
+	private void logTransaction()
+		throws SailException
+	{
+		ChangeLog.Record record = txnLogRecord;
+		txnLogRecord = null;
+
+		try {
+			if (statementTable != null) {
+				if (statementTable.isTransactionActive()) {
+					statementTable.logTransaction(record);
+				}
+			}
+			else if (txnStatements != null) {
+				for (MemStatement st : txnStatements.keySet()) {
+					TxnStatus txnStatus = st.getTxnStatus();
+
+					if (txnStatus == TxnStatus.NEW) {
+						record.addStatement(st, st.isExplicit());
+					}
+					else if (txnStatus == TxnStatus.DEPRECATED) {
+						record.removeStatement(st, st.isExplicit());
+					}
+					else if (txnStatus == TxnStatus.EXPLICIT || txnStatus == TxnStatus.INFERRED) {
+						record.removeStatement(st, st.isExplicit());
+						record.addStatement(st, txnStatus == TxnStatus.EXPLICIT);
+					}
+				}
+			}
+
+			if (!record.isEmpty()) {
+				log.append(record, syncDelay == 0L);
+				contentsChanged = true;
+			}
+		}
+		catch (IOException e) {
+			logger.error("Failed to append transaction to change log", e);
+			throw new SailException(e);
+		}
 	}
 
 	protected void scheduleSyncTask()
 		throws SailException
 	{
-		if (!persist) {
+		if (!persist || !isInitialized()) {
+			// Changes that are replayed from the change log on initialization
+			// are synced by initializeInternal()
 			return;
 		}
 
-		if (syncDelay == 0L) {
+		ChangeLog log = this.log;
+		if (log != null) {
+			// The changes have been appended to the change log already
+			if (log.length() > Math.max(MIN_COMPACTION_LOG_SIZE, dataFile.length())) {
+				scheduleCompaction();
+			}
+		}
+		else if (syncDelay == 0L) {
 			// Sync immediately
 			sync();
 		}
@@ -806,7 +1637,8 @@ public class MemoryStore extends NotifyingSailBase {
 	/**
 	 * Synchronizes the contents of this repository with the data that is stored
 	 * on disk. Data will only be written when the contents of the repository and
-	 * data in the file are out of sync.
+	 * data in the file are out of sync. If a change log is used, it is folded
+	 * into the data file.
 	 */
 	public void sync()
 		throws SailException
@@ -838,8 +1670,13 @@ public class MemoryStore extends NotifyingSailBase {
 			if (persist && contentsChanged) {
 				logger.debug("syncing data to file...");
 				try {
-					new FileIO(this).write(syncFile, dataFile);
-					contentsChanged = false;
+					if (log != null) {
+						compactChangeLog();
+					}
+					else {
+						new FileIO(this).write(syncFile, dataFile);
+						contentsChanged = false;
+					}
 					logger.debug("Data synced to file");
 				}
 				catch (IOException e) {
@@ -851,61 +1688,452 @@ public class MemoryStore extends NotifyingSailBase {
 	}
 
 	/**
-	 * Removes statements from old snapshots from the main statement list and
-	 * resets the snapshot to 1 for the rest of the statements.
+	 * Folds the change log into the data file. The records in the log are moved
+	 * to the old log file, and the current snapshot, which contains exactly
+	 * their changes, is written to the data file. The old log file is only
+	 * removed once the data file has been written, and replayed on
+	 * initialization otherwise. Transactions can be committed to the new log
+	 * while the data file is written.
+	 */
+	private void compactChangeLog()
+		throws IOException, SailException
+	{
+		int snapshot;
+
+		synchronized (logSemaphore) {
+			ChangeLog log = this.log;
+			if (log == null) {
+				// Store has been shut down
+				return;
+			}
+
+			snapshot = currentSnapshot;
+			log.moveTo(oldLogFile);
+			contentsChanged = false;
+		}
+
+		boolean success = false;
+		try {
+			new FileIO(this).write(syncFile, dataFile, snapshot);
+			deleteLogFile(oldLogFile);
+			success = true;
+		}
+		finally {
+			if (!success) {
+				contentsChanged = true;
+			}
+		}
+	}
+
+	private void closeChangeLog()
+		throws SailException
+	{
+		synchronized (logSemaphore) {
+			try {
+				log.close();
+			}
+			catch (IOException e) {
+				throw new SailException(e);
+			}
+			finally {
+				log = null;
+				contentsChanged = false;
+			}
+		}
+	}
+
+	protected void scheduleCompaction() {
+		synchronized (compactionThreadSemaphore) {
+			if (compactionThread == null || !compactionThread.isAlive()) {
+				Runnable runnable = new Runnable() {
+
+					public void run() {
+						try {
+							sync();
+						}
+						catch (SailException e) {
+							logger.warn("Unable to compact change log", e);
+						}
+					}
+				};
+
+				compactionThread = new Thread(runnable, "MemoryStore change log compaction");
+				compactionThread.setDaemon(true);
+				compactionThread.start();
+			}
+		}
+	}
+
+	/**
+	 * Removes statements from old snapshots from the main statement list, the
+	 * statement lists of the values and the composite indexes. Each list is
+	 * replaced by a compacted copy, so readers can keep using the old one and
+	 * never wait for the cleanup. Statements that an active reader can still
+	 * see, as it acquired its lock in an older snapshot, are left for a next
+	 * cleanup, which is scheduled when the last of these readers is done.
+	 * <p>
+	 * The cleanup is performed in chunks of about {@link #CLEANUP_CHUNK_SIZE}
+	 * statements, each of which holds the transaction lock only for the time it
+	 * takes to process that chunk, so that no statements are added to the
+	 * lists while they are being copied. Larger lists, such as the object list
+	 * of a common class, are copied in slices over several chunks. The lists
+	 * of a chunk are cleaned concurrently on a dedicated thread pool when
+	 * multiple processors are available.
 	 * 
 	 * @throws InterruptedException
 	 */
 	protected void cleanSnapshots()
 		throws InterruptedException
 	{
-		// System.out.println("cleanSnapshots() starting...");
-		// long startTime = System.currentTimeMillis();
-		MemStatementList statements = this.statements;
+		synchronized (cleanupSemaphore) {
+			int epoch = cleanupEpoch;
 
-		if (statements == null) {
-			// Store has been shut down
-			return;
+			// Statements that were removed in this snapshot or earlier are not
+			// visible to any active reader, nor to readers that start later
+			int snapshot = getOldestReaderSnapshot();
+
+			StatementTable statementTable = this.statementTable;
+			if (statementTable != null) {
+				cleanStatementTable(statementTable, snapshot, epoch);
+			}
+			else {
+				cleanStatementLists(snapshot, epoch);
+			}
+
+			if (currentSnapshot >= SNAPSHOT_RESET_THRESHOLD && epoch == cleanupEpoch) {
+				resetSnapshots();
+			}
+		}
+	}
+
+	/**
+	 * Removes the statements that have been removed in the specified snapshot
+	 * or earlier from the statement lists and the composite indexes.
+	 */
+	private void cleanStatementLists(int snapshot, int epoch)
+		throws InterruptedException
+	{
+		List<MemStatement> staleStatements = removeStaleStatements(snapshot, epoch);
+
+		if (!staleStatements.isEmpty()) {
+			LinkedList<StatementListCleanup> cleanups = new LinkedList<StatementListCleanup>();
+
+			addValueListCleanups(staleStatements, snapshot, cleanups);
+
+			for (CompositeIndex index : indexes) {
+				index.addCleanups(staleStatements, snapshot, CLEANUP_CHUNK_SIZE, cleanups);
+			}
+
+			// the cleanups do not need the stale statements themselves
+			staleStatements = null;
+
+			runCleanups(cleanups, epoch);
+		}
+	}
+
+	/**
+	 * Merges the runs of the statement table in compact storage mode, dropping
+	 * the statements that have been removed in the specified snapshot or
+	 * earlier, and removes the values that are no longer used. The runs are
+	 * merged without holding the transaction lock; it is only held to replace
+	 * the merged runs, and while the unused values are removed.
+	 */
+	private void cleanStatementTable(StatementTable statementTable, int snapshot, int epoch)
+		throws InterruptedException
+	{
+		StatementTable.Merge merge;
+		while ((merge = statementTable.prepareMerge(snapshot)) != null) {
+			Lock txnLock = txnLockManager.getExclusiveLock();
+			try {
+				if (epoch != cleanupEpoch) {
+					return;
+				}
+				statementTable.completeMerge(merge);
+			}
+			finally {
+				txnLock.release();
+			}
+		}
+
+		if (statementTable.isValuePurgeDue()) {
+			Lock txnLock = txnLockManager.getExclusiveLock();
+			try {
+				if (epoch == cleanupEpoch) {
+					statementTable.purgeValues();
+				}
+			}
+			finally {
+				txnLock.release();
+			}
+		}
+	}
+
+	/**
+	 * Removes the statements that have been removed in the specified snapshot
+	 * or earlier from the main statement list.
+	 * 
+	 * @return The removed statements.
+	 */
+	private List<MemStatement> removeStaleStatements(int snapshot, int epoch)
+		throws InterruptedException
+	{
+		final List<MemStatement> staleStatements = new ArrayList<MemStatement>();
+
+		LinkedList<StatementListCleanup> cleanups = new LinkedList<StatementListCleanup>();
+		cleanups.add(new StatementListCleanup(statements, snapshot, CLEANUP_CHUNK_SIZE) {
+
+			@Override
+			protected void statementRemoved(MemStatement st) {
+				staleStatements.add(st);
+			}
+		});
+
+		if (!runCleanups(cleanups, epoch)) {
+			// the values and indexes have been cleared as well
+			staleStatements.clear();
 		}
 
+		return staleStatements;
+	}
+
+	/**
+	 * Creates the cleanups for the statement lists of the subjects,
+	 * predicates, objects and contexts of the specified statements. Lists that
+	 * end up empty are released by their values.
+	 */
+	private void addValueListCleanups(List<MemStatement> staleStatements, final int snapshot,
+			List<StatementListCleanup> cleanups)
+	{
 		// Sets used to keep track of which lists have already been processed
 		HashSet<MemValue> processedSubjects = new HashSet<MemValue>();
 		HashSet<MemValue> processedPredicates = new HashSet<MemValue>();
 		HashSet<MemValue> processedObjects = new HashSet<MemValue>();
 		HashSet<MemValue> processedContexts = new HashSet<MemValue>();
 
-		Lock stLock = statementListLockManager.getWriteLock();
-		try {
-			for (int i = statements.size() - 1; i >= 0; i--) {
-				MemStatement st = statements.get(i);
+		for (MemStatement st : staleStatements) {
+			final MemResource subj = st.getSubject();
+			if (processedSubjects.add(subj)) {
+				cleanups.add(new StatementListCleanup(subj.getSubjectStatementList(), snapshot,
+						CLEANUP_CHUNK_SIZE)
+				{
 
-				if (st.getTillSnapshot() <= currentSnapshot) {
-					MemResource subj = st.getSubject();
-					if (processedSubjects.add(subj)) {
-						subj.cleanSnapshotsFromSubjectStatements(currentSnapshot);
+					@Override
+					protected void listEmptied() {
+						subj.cleanSnapshotsFromSubjectStatements(snapshot);
 					}
+				});
+			}
+
+			final MemURI pred = st.getPredicate();
+			if (processedPredicates.add(pred)) {
+				cleanups.add(new StatementListCleanup(pred.getPredicateStatementList(), snapshot,
+						CLEANUP_CHUNK_SIZE)
+				{
 
-					MemURI pred = st.getPredicate();
-					if (processedPredicates.add(pred)) {
-						pred.cleanSnapshotsFromPredicateStatements(currentSnapshot);
+					@Override
+					protected void listEmptied() {
+						pred.cleanSnapshotsFromPredicateStatements(snapshot);
 					}
+				});
+			}
+
+			final MemValue obj = st.getObject();
+			if (processedObjects.add(obj)) {
+				cleanups.add(new StatementListCleanup(obj.getObjectStatementList(), snapshot,
+						CLEANUP_CHUNK_SIZE)
+				{
 
-					MemValue obj = st.getObject();
-					if (processedObjects.add(obj)) {
-						obj.cleanSnapshotsFromObjectStatements(currentSnapshot);
+					@Override
+					protected void listEmptied() {
+						obj.cleanSnapshotsFromObjectStatements(snapshot);
 					}
+				});
+			}
+
+			final MemResource context = st.getContext();
+			if (context != null && processedContexts.add(context)) {
+				cleanups.add(new StatementListCleanup(context.getContextStatementList(), snapshot,
+						CLEANUP_CHUNK_SIZE)
+				{
 
-					MemResource context = st.getContext();
-					if (context != null && processedContexts.add(context)) {
-						context.cleanSnapshotsFromContextStatements(currentSnapshot);
+					@Override
+					protected void listEmptied() {
+						context.cleanSnapshotsFromContextStatements(snapshot);
 					}
+				});
+			}
+		}
+	}
 
-					// stale statement
-					statements.remove(i);
+	/**
+	 * Runs the supplied list cleanups in chunks of about
+	 * {@link #CLEANUP_CHUNK_SIZE} statements. Each chunk runs the next slice of
+	 * a number of cleanups. Cleanups that have not finished are queued again,
+	 * so a single large list never holds the lock for more than one slice at a
+	 * time.
+	 * 
+	 * @return <tt>false</tt> if the cleanups have been aborted because the
+	 *         store has been shut down.
+	 */
+	private boolean runCleanups(LinkedList<StatementListCleanup> cleanups, int epoch)
+		throws InterruptedException
+	{
+		List<StatementListCleanup> chunk = new ArrayList<StatementListCleanup>();
+
+		while (!cleanups.isEmpty()) {
+			int chunkSize = 0;
+			while (!cleanups.isEmpty() && chunkSize < CLEANUP_CHUNK_SIZE) {
+				StatementListCleanup cleanup = cleanups.removeFirst();
+				chunkSize += cleanup.getNextSliceSize();
+				chunk.add(cleanup);
+			}
+
+			if (!runCleanupChunk(chunk, epoch)) {
+				return false;
+			}
+
+			for (StatementListCleanup cleanup : chunk) {
+				if (!cleanup.isDone()) {
+					cleanups.addLast(cleanup);
 				}
-				else {
-					// Reset snapshot
-					st.setSinceSnapshot(1);
+			}
+			chunk.clear();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Runs the supplied list cleanup tasks while holding the transaction lock,
+	 * on the cleanup threads if there are any. Readers are not blocked.
+	 * 
+	 * @return <tt>false</tt> if the tasks have not been run because the store
+	 *         has been shut down.
+	 */
+	private boolean runCleanupChunk(List<? extends Callable<Object>> tasks, int epoch)
+		throws InterruptedException
+	{
+		Lock txnLock = txnLockManager.getExclusiveLock();
+		try {
+			if (epoch != cleanupEpoch) {
+				return false;
+			}
+
+			ExecutorService executor = cleanupExecutor;
+
+			if (executor == null || tasks.size() == 1) {
+				for (Callable<Object> task : tasks) {
+					task.call();
+				}
+			}
+			else {
+				for (Future<Object> future : executor.invokeAll(tasks)) {
+					future.get();
+				}
+			}
+
+			return true;
+		}
+		catch (InterruptedException e) {
+			throw e;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		catch (Exception e) {
+			// the tasks do not throw checked exceptions
+			throw new RuntimeException(e);
+		}
+		finally {
+			txnLock.release();
+		}
+	}
+
+	/**
+	 * Registers a reader of the current snapshot.
+	 * 
+	 * @return The registered snapshot.
+	 */
+	private int pinSnapshot() {
+		synchronized (readerSnapshots) {
+			int snapshot = currentSnapshot;
+			Integer count = readerSnapshots.get(snapshot);
+			readerSnapshots.put(snapshot, count == null ? 1 : count + 1);
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Unregisters a reader of the specified snapshot. If an earlier cleanup was
+	 * deferred for the readers and this was the last reader of the oldest
+	 * snapshot, a new cleanup is scheduled.
+	 */
+	private void unpinSnapshot(int snapshot) {
+		boolean scheduleCleanup = false;
+
+		synchronized (readerSnapshots) {
+			int count = readerSnapshots.get(snapshot);
+			if (count == 1) {
+				readerSnapshots.remove(snapshot);
+			}
+			else {
+				readerSnapshots.put(snapshot, count - 1);
+			}
+
+			if (snapshotCleanupDeferred
+					&& (readerSnapshots.isEmpty() || readerSnapshots.firstKey() > snapshot))
+			{
+				snapshotCleanupDeferred = false;
+				scheduleCleanup = true;
+			}
+		}
+
+		if (scheduleCleanup) {
+			scheduleSnapshotCleanup();
+		}
+	}
+
+	/**
+	 * Gets the oldest snapshot that an active reader may be reading, or the
+	 * current snapshot if there are no active readers of older snapshots.
+	 */
+	private int getOldestReaderSnapshot() {
+		synchronized (readerSnapshots) {
+			int snapshot = currentSnapshot;
+
+			if (!readerSnapshots.isEmpty() && readerSnapshots.firstKey() < snapshot) {
+				snapshot = readerSnapshots.firstKey();
+				snapshotCleanupDeferred = true;
+			}
+
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Resets the snapshot to 1 for all statements, to prevent the snapshot
+	 * number from overflowing. This requires exclusive access to all statements
+	 * at once, but is only needed after a very large number of transactions.
+	 */
+	private void resetSnapshots()
+		throws InterruptedException
+	{
+		Lock stLock = statementListLockManager.getWriteLock();
+		try {
+			if (statementTable != null) {
+				statementTable.resetSnapshots();
+			}
+
+			for (int i = statements.size() - 1; i >= 0; i--) {
+				MemStatement st = statements.get(i);
+				st.setSinceSnapshot(1);
+
+				if (st.getTillSnapshot() != Integer.MAX_VALUE) {
+					// stale statement that will be removed by the next cleanup
+					st.setTillSnapshot(1);
 				}
 			}
 
@@ -914,24 +2142,37 @@ public class MemoryStore extends NotifyingSailBase {
 		finally {
 			stLock.release();
 		}
-
-		// long endTime = System.currentTimeMillis();
-		// System.out.println("cleanSnapshots() took " + (endTime - startTime) +
-		// " ms");
 	}
 
+	/**
+	 * Schedules a cleanup of old snapshots on the snapshot cleanup thread. If
+	 * the thread is already running, it will perform another cleanup after the
+	 * current one.
+	 */
 	protected void scheduleSnapshotCleanup() {
 		synchronized (snapshotCleanupThreadSemaphore) {
-			if (snapshotCleanupThread == null || !snapshotCleanupThread.isAlive()) {
+			snapshotCleanupRequested = true;
+
+			if (snapshotCleanupThread == null) {
 				Runnable runnable = new Runnable() {
 
 					public void run() {
 						try {
-							cleanSnapshots();
+							while (nextSnapshotCleanup()) {
+								cleanSnapshots();
+							}
 						}
 						catch (InterruptedException e) {
 							logger.warn("snapshot cleanup interrupted");
 						}
+						finally {
+							synchronized (snapshotCleanupThreadSemaphore) {
+								if (snapshotCleanupThread == Thread.currentThread()) {
+									// cleanup ended abnormally
+									snapshotCleanupThread = null;
+								}
+							}
+						}
 					}
 				};
 
@@ -941,4 +2182,55 @@ public class MemoryStore extends NotifyingSailBase {
 			}
 		}
 	}
+
+	/**
+	 * Checks whether another snapshot cleanup has been requested. If not, the
+	 * snapshot cleanup thread is cleared so that the next request starts a new
+	 * one.
+	 */
+	private boolean nextSnapshotCleanup() {
+		synchronized (snapshotCleanupThreadSemaphore) {
+			if (snapshotCleanupRequested) {
+				snapshotCleanupRequested = false;
+				return true;
+			}
+
+			snapshotCleanupThread = null;
+			return false;
+		}
+	}
+
+	/*-------------*
+	 * Inner class *
+	 *-------------*/
+
+	/**
+	 * A read lock on the statement lists that pins the snapshot that was
+	 * current when it was acquired, see {@link #getStatementsReadLock()}.
+	 */
+	private class ReaderLock implements Lock {
+
+		private final Lock lock;
+
+		private final int snapshot;
+
+		private boolean released = false;
+
+		public ReaderLock(Lock lock) {
+			this.lock = lock;
+			this.snapshot = pinSnapshot();
+		}
+
+		public boolean isActive() {
+			return lock.isActive();
+		}
+
+		public synchronized void release() {
+			if (!released) {
+				released = true;
+				unpinSnapshot(snapshot);
+			}
+			lock.release();
+		}
+	}
 }
@@ -29,6 +29,7 @@ import org.openrdf.query.algebra.StatementPattern;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.Var;
 import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.impl.AdaptiveJoinOptimizer;
 import org.openrdf.query.algebra.evaluation.impl.BindingAssigner;
 import org.openrdf.query.algebra.evaluation.impl.CompareOptimizer;
 import org.openrdf.query.algebra.evaluation.impl.ConjunctiveConstraintSplitter;
@@ -46,6 +47,7 @@ import org.openrdf.query.impl.EmptyBindingSet;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.SailReadOnlyException;
 import org.openrdf.sail.helpers.NotifyingSailConnectionBase;
+import org.openrdf.sail.helpers.QueryPlanCache;
 import org.openrdf.sail.inferencer.InferencerConnection;
 import org.openrdf.sail.memory.model.MemResource;
 import org.openrdf.sail.memory.model.MemStatement;
@@ -103,15 +105,6 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 	{
 		logger.trace("Incoming query model:\n{}", tupleExpr);
 
-		// Clone the tuple expression to allow for more aggresive optimizations
-		tupleExpr = tupleExpr.clone();
-
-		if (!(tupleExpr instanceof QueryRoot)) {
-			// Add a dummy root node to the tuple expressions to allow the
-			// optimizers to modify the actual root node
-			tupleExpr = new QueryRoot(tupleExpr);
-		}
-
 		Lock stLock = store.getStatementsReadLock();
 		boolean releaseLock = true;
 
@@ -126,24 +119,40 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 
 			TripleSource tripleSource = new MemTripleSource(includeInferred, snapshot, readMode);
 			EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(tripleSource, dataset);
+			strategy.setSpillThreshold(store.getSpillThreshold());
+			strategy.setTempDir(store.getTempDir());
+			strategy.setExecutor(store.getEvaluationExecutor());
+
+			// Plans that are optimized inside a transaction can depend on
+			// uncommitted data and are therefore never cached
+			QueryPlanCache planCache = transactionActive() ? null : store.getQueryPlanCache();
+			long planEpoch = 0L;
+			TupleExpr plan = null;
+
+			if (planCache == null) {
+				plan = optimize(tupleExpr, dataset, bindings, strategy, true);
+			}
+			else {
+				planEpoch = planCache.getEpoch();
+				plan = planCache.get(tupleExpr, dataset, bindings, includeInferred);
 
-			new BindingAssigner().optimize(tupleExpr, dataset, bindings);
-			new ConstantOptimizer(strategy).optimize(tupleExpr, dataset, bindings);
-			new CompareOptimizer().optimize(tupleExpr, dataset, bindings);
-			new ConjunctiveConstraintSplitter().optimize(tupleExpr, dataset, bindings);
-			new DisjunctiveConstraintOptimizer().optimize(tupleExpr, dataset, bindings);
-			new SameTermFilterOptimizer().optimize(tupleExpr, dataset, bindings);
-			new QueryModelNormalizer().optimize(tupleExpr, dataset, bindings);
-			new QueryJoinOptimizer(new MemEvaluationStatistics()).optimize(tupleExpr, dataset, bindings);
-//			new SubSelectJoinOptimizer().optimize(tupleExpr, dataset, bindings);
-			new IterativeEvaluationOptimizer().optimize(tupleExpr, dataset, bindings);
-			new FilterOptimizer().optimize(tupleExpr, dataset, bindings);
-			new OrderLimitOptimizer().optimize(tupleExpr, dataset, bindings);
-
-			logger.trace("Optimized query model:\n{}", tupleExpr);
+				if (plan == null) {
+					plan = optimize(tupleExpr, dataset, bindings, strategy, false);
+					planCache.put(tupleExpr, dataset, bindings, includeInferred, plan, planEpoch);
+				}
+
+				assignBindings(plan, dataset, bindings, strategy);
+			}
+
+			if (store.getAdaptiveJoinOrder()) {
+				new AdaptiveJoinOptimizer(strategy, new MemEvaluationStatistics()).optimize(plan, dataset,
+						bindings);
+			}
+
+			logger.trace("Optimized query model:\n{}", plan);
 
 			CloseableIteration<BindingSet, QueryEvaluationException> iter;
-			iter = strategy.evaluate(tupleExpr, EmptyBindingSet.getInstance());
+			iter = strategy.evaluate(plan, EmptyBindingSet.getInstance());
 			iter = new LockingIteration<BindingSet, QueryEvaluationException>(stLock, iter);
 			releaseLock = false;
 			return iter;
@@ -158,6 +167,64 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 		}
 	}
 
+	/**
+	 * Applies the store's query optimizers to a copy of the supplied query
+	 * model.
+	 * 
+	 * @param assignBindings
+	 *        Indicates whether the values of the supplied bindings should be
+	 *        assigned to the query model. If not, the result only depends on the
+	 *        names of the bindings and can be cached for evaluations of the query
+	 *        with different binding values, which must then be assigned using
+	 *        {@link #assignBindings(TupleExpr, Dataset, BindingSet, EvaluationStrategyImpl)}.
+	 * @return The optimized copy of the query model.
+	 */
+	protected TupleExpr optimize(TupleExpr tupleExpr, Dataset dataset, BindingSet bindings,
+			EvaluationStrategyImpl strategy, boolean assignBindings)
+	{
+		// Clone the tuple expression to allow for more aggresive optimizations
+		tupleExpr = tupleExpr.clone();
+
+		if (!(tupleExpr instanceof QueryRoot)) {
+			// Add a dummy root node to the tuple expressions to allow the
+			// optimizers to modify the actual root node
+			tupleExpr = new QueryRoot(tupleExpr);
+		}
+
+		if (assignBindings) {
+			new BindingAssigner().optimize(tupleExpr, dataset, bindings);
+		}
+		new ConstantOptimizer(strategy).optimize(tupleExpr, dataset, bindings);
+		new CompareOptimizer().optimize(tupleExpr, dataset, bindings);
+		new ConjunctiveConstraintSplitter().optimize(tupleExpr, dataset, bindings);
+		new DisjunctiveConstraintOptimizer().optimize(tupleExpr, dataset, bindings);
+		new SameTermFilterOptimizer().optimize(tupleExpr, dataset, bindings);
+		new QueryModelNormalizer().optimize(tupleExpr, dataset, bindings);
+		new QueryJoinOptimizer(new MemEvaluationStatistics()).optimize(tupleExpr, dataset, bindings);
+//		new SubSelectJoinOptimizer().optimize(tupleExpr, dataset, bindings);
+		new IterativeEvaluationOptimizer().optimize(tupleExpr, dataset, bindings);
+		new FilterOptimizer().optimize(tupleExpr, dataset, bindings);
+		new OrderLimitOptimizer().optimize(tupleExpr, dataset, bindings);
+
+		return tupleExpr;
+	}
+
+	/**
+	 * Assigns the values of the supplied bindings to a query model that was
+	 * optimized without them, and reapplies the optimizations that can take
+	 * advantage of the assigned values.
+	 * 
+	 * @see #optimize(TupleExpr, Dataset, BindingSet, EvaluationStrategyImpl,
+	 *      boolean)
+	 */
+	protected void assignBindings(TupleExpr plan, Dataset dataset, BindingSet bindings,
+			EvaluationStrategyImpl strategy)
+	{
+		new BindingAssigner().optimize(plan, dataset, bindings);
+		new ConstantOptimizer(strategy).optimize(plan, dataset, bindings);
+		new SameTermFilterOptimizer().optimize(plan, dataset, bindings);
+	}
+
 	@Override
 	protected void closeInternal()
 		throws SailException
@@ -184,19 +251,23 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 					: store.getCurrentSnapshot();
 			final ReadMode readMode = transactionActive() ? ReadMode.TRANSACTION : ReadMode.COMMITTED;
 
+			StatementTable statementTable = store.getStatementTable();
+			if (statementTable != null) {
+				return new CloseableIteratorIteration<MemResource, SailException>(
+						statementTable.getContextIDs(snapshot, readMode).iterator());
+			}
+
 			MemValueFactory valueFactory = store.getValueFactory();
 
-			synchronized (valueFactory) {
-				for (MemResource memResource : valueFactory.getMemURIs()) {
-					if (isContextResource(memResource, snapshot, readMode)) {
-						contextIDs.add(memResource);
-					}
+			for (MemResource memResource : valueFactory.getMemURIs()) {
+				if (isContextResource(memResource, snapshot, readMode)) {
+					contextIDs.add(memResource);
 				}
+			}
 
-				for (MemResource memResource : valueFactory.getMemBNodes()) {
-					if (isContextResource(memResource, snapshot, readMode)) {
-						contextIDs.add(memResource);
-					}
+			for (MemResource memResource : valueFactory.getMemBNodes()) {
+				if (isContextResource(memResource, snapshot, readMode)) {
+					contextIDs.add(memResource);
 				}
 			}
 		}
@@ -558,7 +629,7 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 	{
 		// FIXME: changes to namespace prefixes not isolated in transactions yet
 		try {
-			store.getNamespaceStore().setNamespace(prefix, name);
+			store.setNamespace(prefix, name);
 		}
 		catch (IllegalArgumentException e) {
 			throw new SailException(e.getMessage());
@@ -570,7 +641,7 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 		throws SailException
 	{
 		// FIXME: changes to namespace prefixes not isolated in transactions yet
-		store.getNamespaceStore().removeNamespace(prefix);
+		store.removeNamespace(prefix);
 	}
 
 	@Override
@@ -578,7 +649,7 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 		throws SailException
 	{
 		// FIXME: changes to namespace prefixes not isolated in transactions yet
-		store.getNamespaceStore().clear();
+		store.clearNamespaces();
 	}
 
 	/*-----------------------------*
@@ -633,6 +704,15 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 			return new MemCardinalityCalculator();
 		}
 
+		/**
+		 * Looking up the statements of a value in memory costs about as much as
+		 * hashing a result.
+		 */
+		@Override
+		public double getLookupCost() {
+			return 1.0;
+		}
+
 		protected class MemCardinalityCalculator extends CardinalityCalculator {
 
 			@Override
@@ -657,6 +737,11 @@ public class MemoryStoreConnection extends NotifyingSailConnectionBase implement
 					context = null;
 				}
 
+				StatementTable statementTable = store.getStatementTable();
+				if (statementTable != null) {
+					return statementTable.getCardinality((Resource)subj, (URI)pred, obj, (Resource)context);
+				}
+
 				MemValueFactory valueFactory = store.getValueFactory();
 
 				// Perform look-ups for value-equivalents of the specified values
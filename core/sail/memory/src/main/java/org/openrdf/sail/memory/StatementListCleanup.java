@@ -0,0 +1,140 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.util.concurrent.Callable;
+
+import org.openrdf.sail.memory.model.MemStatement;
+import org.openrdf.sail.memory.model.MemStatementList;
+
+/**
+ * Removes the statements from old snapshots from a single statement list, in
+ * slices of a bounded number of statements. Each call copies the statements
+ * of the next slice that are still needed to a new list, which replaces the
+ * contents of the original list after the last slice. The original list is
+ * never modified in place, so readers can use it without locking while the
+ * cleanup is in progress. The calls must be made while holding the
+ * transaction lock, as statements that are added to the list by a
+ * transaction would otherwise get lost.
+ */
+class StatementListCleanup implements Callable<Object> {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final MemStatementList statements;
+
+	private final int snapshot;
+
+	private final int sliceSize;
+
+	/**
+	 * The statements that have been checked and are kept, created by the first
+	 * call.
+	 */
+	private MemStatementList keptStatements;
+
+	/**
+	 * The index of the next statement to check.
+	 */
+	private int next;
+
+	private boolean done;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new cleanup for the supplied list.
+	 *
+	 * @param snapshot
+	 *        The snapshot in which or before which statements must have been
+	 *        deprecated to be removed.
+	 * @param sliceSize
+	 *        The maximum number of statements to check per call.
+	 */
+	public StatementListCleanup(MemStatementList statements, int snapshot, int sliceSize) {
+		this.statements = statements;
+		this.snapshot = snapshot;
+		this.sliceSize = sliceSize;
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Gets the number of statements that the next call checks, which is at
+	 * least one so that empty lists also count towards the size of a chunk.
+	 */
+	public int getNextSliceSize() {
+		return Math.max(1, Math.min(statements.size() - next, sliceSize));
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	public Object call() {
+		int size = statements.size();
+
+		if (size < next) {
+			// the list has been cleared in the mean time
+			keptStatements = null;
+			done = true;
+			return null;
+		}
+
+		if (keptStatements == null) {
+			keptStatements = new MemStatementList(size);
+		}
+
+		// Statements that have been added since the previous call are checked
+		// as well, they are simply not stale in the cleanup snapshot
+		int end = Math.min(next + sliceSize, size);
+		for (; next < end; next++) {
+			MemStatement st = statements.get(next);
+
+			if (st.getTillSnapshot() <= snapshot) {
+				statementRemoved(st);
+			}
+			else {
+				keptStatements.add(st);
+			}
+		}
+
+		if (next == size) {
+			if (keptStatements.size() < size) {
+				statements.replaceWith(keptStatements);
+			}
+			keptStatements = null;
+			done = true;
+
+			if (statements.isEmpty()) {
+				listEmptied();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Called for each statement that the cleanup removes from the list. The
+	 * default implementation does nothing.
+	 */
+	protected void statementRemoved(MemStatement st) {
+	}
+
+	/**
+	 * Called when the cleanup has removed all statements from the list, to let
+	 * the owner of the list release it. The default implementation does
+	 * nothing.
+	 */
+	protected void listEmptied() {
+	}
+}
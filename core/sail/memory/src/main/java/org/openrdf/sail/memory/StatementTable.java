@@ -0,0 +1,2108 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.EmptyIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.sail.memory.model.MemResource;
+import org.openrdf.sail.memory.model.MemStatement;
+import org.openrdf.sail.memory.model.MemURI;
+import org.openrdf.sail.memory.model.MemValue;
+import org.openrdf.sail.memory.model.ReadMode;
+import org.openrdf.sail.memory.model.TxnStatus;
+
+/**
+ * Stores the statements of a {@link MemoryStore} in compact storage mode.
+ * Instead of as {@link MemStatement} objects in statement lists, statements are
+ * stored as rows of value IDs from a {@link ValueDictionary} in a small number
+ * of immutable runs. Each run is sorted by subject, predicate, object and
+ * context and has permutations of its rows by predicate, object and subject,
+ * by object, subject and predicate, and by context, so that statements can be
+ * looked up by binary search for any combination of bound components. In a
+ * run without contexts and inferred statements, a statement takes 20 bytes.
+ * <p>
+ * The statements that are added in a transaction are collected in a buffer
+ * that only the transaction sees, and become a new run when the transaction
+ * is committed. Runs are merged by the snapshot cleanup, which drops the
+ * statements that no reader can see any more. The cleanup merges a run when
+ * the runs that were committed after it are together at least half its size,
+ * so that there are never more than a logarithmic number of runs and every
+ * statement is copied a logarithmic number of times.
+ * <p>
+ * Like the {@link MemStatement}s in the other mode, statements have the
+ * snapshot in which they were added and the snapshot in which they were
+ * removed. Readers pin the runs and the dictionary of the {@link State} that is
+ * current when they start, and are never blocked. Only the removal snapshots
+ * of committed statements are modified in place, by the store's single
+ * writer. The statements that queries return are views of the rows, see
+ * {@link RowStatement}.
+ */
+class StatementTable {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	private static final int SUBJ = 0;
+
+	private static final int PRED = 1;
+
+	private static final int OBJ = 2;
+
+	private static final int CONTEXT = 3;
+
+	/**
+	 * The component orders of the indexes of a run: the rows themselves, and
+	 * the permutations by predicate, by object and by context.
+	 */
+	private static final int[][] INDEX_ORDERS = {
+			{ SUBJ, PRED, OBJ, CONTEXT },
+			{ PRED, OBJ, SUBJ, CONTEXT },
+			{ OBJ, SUBJ, PRED, CONTEXT },
+			{ CONTEXT, SUBJ, PRED, OBJ } };
+
+	private static final int CONTEXT_INDEX = 3;
+
+	private static final TxnStatus[] TXN_STATUSES = TxnStatus.values();
+
+	private static final Run[] NO_RUNS = new Run[0];
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	/**
+	 * The dictionary and the runs, replaced as a whole when a transaction is
+	 * committed or the runs are merged.
+	 */
+	private volatile State state = new State(new ValueDictionary(), NO_RUNS);
+
+	/**
+	 * The statements of the active transaction, <tt>null</tt> if no transaction
+	 * is active.
+	 */
+	private volatile Buffer buffer;
+
+	/**
+	 * The statements that are being read from a data file, <tt>null</tt> if no
+	 * file is being read.
+	 */
+	private RunBuilder loadedRows;
+
+	/**
+	 * The number of statements that merges have dropped since the unused values
+	 * were last counted. Only used by the snapshot cleanup.
+	 */
+	private long droppedRows = 0;
+
+	/**
+	 * The number of values that were in use when they were last counted. Only
+	 * used by the snapshot cleanup.
+	 */
+	private int liveValueCount = 0;
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Gets the current dictionary and runs.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Gets the number of statements, including those that have been removed but
+	 * not cleaned up yet and those of the active transaction.
+	 */
+	public int size() {
+		long size = 0;
+		for (Run run : state.runs) {
+			size += run.size;
+		}
+
+		Buffer buffer = this.buffer;
+		if (buffer != null) {
+			size += buffer.size;
+		}
+
+		return (int)Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes all statements and values.
+	 */
+	public void clear() {
+		state = new State(new ValueDictionary(), NO_RUNS);
+		buffer = null;
+		loadedRows = null;
+	}
+
+	/**
+	 * Creates an iterator over the statements that match the specified pattern,
+	 * see {@link MemoryStore#createStatementIterator}.
+	 */
+	public <X extends Exception> CloseableIteration<MemStatement, X> createStatementIterator(
+			Class<X> excClass, Resource subj, URI pred, Value obj, boolean explicitOnly, int snapshot,
+			ReadMode readMode, Resource... contexts)
+	{
+		State state = this.state;
+		ValueDictionary dictionary = state.dictionary;
+
+		// IDs of the bound components, 0 for unbound ones
+		int[] pattern = new int[4];
+
+		if (subj != null && (pattern[SUBJ] = dictionary.getID(subj)) == 0 || pred != null
+				&& (pattern[PRED] = dictionary.getID(pred)) == 0 || obj != null
+				&& (pattern[OBJ] = dictionary.getID(obj)) == 0)
+		{
+			// non-existent subject, predicate or object
+			return new EmptyIteration<MemStatement, X>();
+		}
+
+		boolean contextBound = false;
+		int[] contextIDs = null;
+
+		if (contexts.length == 1) {
+			if (contexts[0] != null && (pattern[CONTEXT] = dictionary.getID(contexts[0])) == 0) {
+				// non-existent context
+				return new EmptyIteration<MemStatement, X>();
+			}
+			contextBound = true;
+		}
+		else if (contexts.length > 1) {
+			int[] ids = new int[contexts.length];
+			int count = 0;
+
+			for (Resource context : contexts) {
+				int id = context == null ? 0 : dictionary.getID(context);
+				if (context == null || id != 0) {
+					ids[count++] = id;
+				}
+			}
+
+			if (count == 0) {
+				// no known contexts specified
+				return new EmptyIteration<MemStatement, X>();
+			}
+
+			contextIDs = new int[count];
+			System.arraycopy(ids, 0, contextIDs, 0, count);
+		}
+
+		Buffer buffer = readMode == ReadMode.COMMITTED ? null : this.buffer;
+
+		return new RowIterator<X>(state, buffer, pattern, contextBound, contextIDs, explicitOnly, snapshot,
+				readMode);
+	}
+
+	/**
+	 * Gets the statement of the active transaction with the specified subject,
+	 * predicate, object and context, whatever its transaction status.
+	 *
+	 * @return The statement, or <tt>null</tt> if there is no such statement.
+	 */
+	public MemStatement getStatement(Resource subj, URI pred, Value obj, Resource context, int snapshot) {
+		CloseableIteration<MemStatement, RuntimeException> iter = createStatementIterator(
+				RuntimeException.class, subj, pred, obj, false, snapshot, ReadMode.RAW, context);
+		try {
+			return iter.hasNext() ? iter.next() : null;
+		}
+		finally {
+			iter.close();
+		}
+	}
+
+	/**
+	 * Adds a statement to the active transaction. The caller must have checked
+	 * that the statement is not present already.
+	 *
+	 * @return The new statement, with transaction status {@link TxnStatus#NEW}.
+	 */
+	public MemStatement addStatement(Resource subj, URI pred, Value obj, Resource context, boolean explicit)
+	{
+		ValueDictionary dictionary = state.dictionary;
+
+		int subjID = dictionary.getOrAddID(subj);
+		int predID = dictionary.getOrAddID(pred);
+		int objID = dictionary.getOrAddID(obj);
+		int contextID = context == null ? 0 : dictionary.getOrAddID(context);
+
+		int row = buffer.add(subjID, predID, objID, contextID, explicit);
+
+		return new RowStatement(buffer, row, getView(dictionary, subjID, subj), getView(dictionary, predID,
+				pred), getView(dictionary, objID, obj), getView(dictionary, contextID, context));
+	}
+
+	private MemValue getView(ValueDictionary dictionary, int id, Value value) {
+		if (value instanceof ValueDictionary.View
+				&& ((ValueDictionary.View)value).getDictionary() == dictionary)
+		{
+			return (MemValue)value;
+		}
+		return dictionary.getValue(id);
+	}
+
+	/**
+	 * Adds a statement that has been read from a data file. The statements are
+	 * added to the store by {@link #finishLoad(int)}.
+	 */
+	public void addLoadedStatement(Resource subj, URI pred, Value obj, Resource context, boolean explicit)
+	{
+		ValueDictionary dictionary = state.dictionary;
+
+		if (loadedRows == null) {
+			loadedRows = new RunBuilder();
+		}
+
+		loadedRows.add(dictionary.getOrAddID(subj), dictionary.getOrAddID(pred),
+				dictionary.getOrAddID(obj), context == null ? 0 : dictionary.getOrAddID(context), explicit);
+	}
+
+	/**
+	 * Adds the statements that have been read from a data file to the store as a
+	 * new run.
+	 *
+	 * @param snapshot
+	 *        The snapshot in which the statements are added.
+	 */
+	public void finishLoad(int snapshot) {
+		if (loadedRows != null) {
+			Run run = loadedRows.build(snapshot);
+			loadedRows = null;
+			addRun(run);
+		}
+	}
+
+	private void addRun(Run run) {
+		State state = this.state;
+		Run[] runs = new Run[state.runs.length + 1];
+		System.arraycopy(state.runs, 0, runs, 0, state.runs.length);
+		runs[state.runs.length] = run;
+		this.state = new State(state.dictionary, runs);
+	}
+
+	/**
+	 * Starts a transaction.
+	 *
+	 * @param txnSnapshot
+	 *        The snapshot that the statements of the transaction are added in.
+	 */
+	public void startTransaction(int txnSnapshot) {
+		assert buffer == null;
+		buffer = new Buffer(txnSnapshot);
+	}
+
+	public boolean isTransactionActive() {
+		return buffer != null;
+	}
+
+	/**
+	 * Commits the active transaction: the new statements become a new run, and
+	 * the removed statements get <tt>txnSnapshot</tt> as their removal snapshot.
+	 * Statements whose explicit flag has changed are removed and added again
+	 * with the new flag.
+	 *
+	 * @return The changes that have been committed.
+	 */
+	public Changes commit(int txnSnapshot) {
+		Buffer buffer = this.buffer;
+		Changes changes = new Changes();
+		RunBuilder builder = new RunBuilder();
+
+		for (int row = 0; row < buffer.size; row++) {
+			TxnStatus txnStatus = buffer.getTxnStatus(row);
+
+			if (txnStatus == TxnStatus.NEW) {
+				builder.add(buffer.subjects[row], buffer.predicates[row], buffer.objects[row],
+						buffer.contexts[row], buffer.isExplicit(row));
+				changes.addedCount++;
+			}
+			else if (txnStatus == TxnStatus.ZOMBIE) {
+				changes.deprecated = true;
+			}
+		}
+
+		for (Run run : state.runs) {
+			IntIntMap txnStatuses = run.txnStatuses;
+			if (txnStatuses == null) {
+				continue;
+			}
+
+			for (int i = 0; i < txnStatuses.capacity(); i++) {
+				if (!txnStatuses.isUsed(i)) {
+					continue;
+				}
+
+				int row = txnStatuses.getKey(i);
+				TxnStatus txnStatus = TXN_STATUSES[txnStatuses.getValue(i)];
+
+				if (txnStatus == TxnStatus.DEPRECATED) {
+					run.setTillSnapshot(row, txnSnapshot);
+					changes.removedCount++;
+				}
+				else if (txnStatus == TxnStatus.EXPLICIT || txnStatus == TxnStatus.INFERRED) {
+					// Deprecate the existing statement and add a clone with the
+					// modified explicit flag
+					run.setTillSnapshot(row, txnSnapshot);
+					builder.add(run.subjects[row], run.predicates[row], run.objects[row],
+							run.getContextID(row), txnStatus == TxnStatus.EXPLICIT);
+					changes.deprecated = true;
+				}
+			}
+
+			run.txnStatuses = null;
+		}
+
+		if (builder.size > 0) {
+			addRun(builder.build(txnSnapshot));
+			changes.mergeDue = isMergeDue();
+		}
+
+		this.buffer = null;
+
+		return changes;
+	}
+
+	/**
+	 * Discards the statements of the active transaction and resets the
+	 * transaction status of the committed statements.
+	 */
+	public void rollback() {
+		for (Run run : state.runs) {
+			run.txnStatuses = null;
+		}
+
+		buffer = null;
+	}
+
+	/**
+	 * Adds the changes of the active transaction to a change log record.
+	 */
+	public void logTransaction(ChangeLog.Record record)
+		throws IOException
+	{
+		ValueDictionary dictionary = state.dictionary;
+		Buffer buffer = this.buffer;
+
+		for (int row = 0; row < buffer.size; row++) {
+			if (buffer.getTxnStatus(row) == TxnStatus.NEW) {
+				record.addStatement(createStatement(dictionary, buffer, row), buffer.isExplicit(row));
+			}
+		}
+
+		for (Run run : state.runs) {
+			IntIntMap txnStatuses = run.txnStatuses;
+			if (txnStatuses == null) {
+				continue;
+			}
+
+			for (int i = 0; i < txnStatuses.capacity(); i++) {
+				if (!txnStatuses.isUsed(i)) {
+					continue;
+				}
+
+				int row = txnStatuses.getKey(i);
+				TxnStatus txnStatus = TXN_STATUSES[txnStatuses.getValue(i)];
+
+				if (txnStatus == TxnStatus.DEPRECATED) {
+					record.removeStatement(createStatement(dictionary, run, row), run.isExplicit(row));
+				}
+				else if (txnStatus == TxnStatus.EXPLICIT || txnStatus == TxnStatus.INFERRED) {
+					MemStatement st = createStatement(dictionary, run, row);
+					record.removeStatement(st, run.isExplicit(row));
+					record.addStatement(st, txnStatus == TxnStatus.EXPLICIT);
+				}
+			}
+		}
+	}
+
+	private RowStatement createStatement(ValueDictionary dictionary, Rows rows, int row) {
+		return new RowStatement(rows, row, dictionary.getValue(rows.subjects[row]),
+				dictionary.getValue(rows.predicates[row]), dictionary.getValue(rows.objects[row]),
+				dictionary.getValue(rows.getContextID(row)));
+	}
+
+	/**
+	 * Gets the resources that are used as the context of a statement.
+	 */
+	public List<MemResource> getContextIDs(int snapshot, ReadMode readMode) {
+		State state = this.state;
+		Buffer buffer = readMode == ReadMode.COMMITTED ? null : this.buffer;
+
+		BitSet contextIDs = new BitSet();
+
+		for (Run run : state.runs) {
+			int[] index = run.indexes[CONTEXT_INDEX];
+			if (index == null) {
+				continue;
+			}
+
+			int[] contexts = run.contexts;
+			int position = 0;
+			while (position < index.length) {
+				int row = index[position];
+				int context = contexts[row];
+
+				if (!contextIDs.get(context)) {
+					if (!run.isInSnapshot(row, snapshot) || !isVisible(run, row, false, readMode)) {
+						position++;
+						continue;
+					}
+					contextIDs.set(context);
+				}
+
+				// skip the other statements in this context
+				position = upperBound(contexts, index, position, index.length, context);
+			}
+		}
+
+		if (buffer != null) {
+			for (int row = 0; row < buffer.size; row++) {
+				int context = buffer.contexts[row];
+				if (context != 0 && buffer.isInSnapshot(row, snapshot) && isVisible(buffer, row, false, readMode)) {
+					contextIDs.set(context);
+				}
+			}
+		}
+
+		List<MemResource> result = new ArrayList<MemResource>(contextIDs.cardinality());
+		for (int id = contextIDs.nextSetBit(0); id >= 0; id = contextIDs.nextSetBit(id + 1)) {
+			result.add((MemResource)state.dictionary.getValue(id));
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates the number of statements that match the specified pattern, as
+	 * the smallest number of statements with one of the bound components.
+	 */
+	public double getCardinality(Resource subj, URI pred, Value obj, Resource context) {
+		State state = this.state;
+		ValueDictionary dictionary = state.dictionary;
+		Value[] values = { subj, pred, obj, context };
+
+		long cardinality = -1;
+
+		for (int component = SUBJ; component <= CONTEXT; component++) {
+			if (values[component] == null) {
+				continue;
+			}
+
+			int id = dictionary.getID(values[component]);
+			if (id == 0) {
+				// non-existent value
+				return 0.0;
+			}
+
+			long count = 0;
+
+			for (Run run : state.runs) {
+				int[] index = run.indexes[component];
+				int[] column = run.getColumn(component);
+				int length = index == null ? run.size : index.length;
+
+				if (column != null) {
+					int start = lowerBound(column, index, 0, length, id);
+					count += upperBound(column, index, start, length, id) - start;
+				}
+			}
+
+			Buffer buffer = this.buffer;
+			if (buffer != null) {
+				count += buffer.getCount(component, id);
+			}
+
+			if (cardinality < 0 || count < cardinality) {
+				cardinality = count;
+			}
+		}
+
+		if (cardinality < 0) {
+			// all wildcards
+			return size();
+		}
+		return cardinality;
+	}
+
+	/**
+	 * Resets the snapshots of all statements to 1, see
+	 * {@link MemoryStore#resetSnapshots()}. Readers must be excluded while this
+	 * method runs.
+	 */
+	public void resetSnapshots() {
+		Buffer buffer = this.buffer;
+		if (buffer != null) {
+			buffer.since = 1;
+		}
+
+		for (Run run : state.runs) {
+			run.since = 1;
+			run.sinceColumn = null;
+
+			int[] till = run.till;
+			if (till != null) {
+				for (int row = 0; row < till.length; row++) {
+					if (till[row] != Integer.MAX_VALUE) {
+						// stale statement that will be removed by the next cleanup
+						till[row] = 1;
+					}
+				}
+			}
+		}
+	}
+
+	/*---------------------------*
+	 * Snapshot cleanup (merges) *
+	 *---------------------------*/
+
+	private boolean isMergeDue() {
+		Run[] runs = state.runs;
+		int n = runs.length;
+		return n >= 2 && runs[n - 2].size <= 2L * runs[n - 1].size;
+	}
+
+	/**
+	 * Selects runs that should be merged and merges them. This is done without
+	 * holding the transaction lock; {@link #completeMerge(Merge)} must be
+	 * called while holding it to replace the merged runs.
+	 *
+	 * @param snapshot
+	 *        The oldest snapshot that a reader can see. Statements that were
+	 *        removed in this snapshot or earlier are dropped.
+	 * @return The merge, or <tt>null</tt> if no runs need to be merged.
+	 */
+	public Merge prepareMerge(int snapshot) {
+		Run[] runs = state.runs;
+
+		int start = -1;
+		int end = runs.length;
+
+		// Merge the newest runs when they are at least half as large as the
+		// run before them
+		if (runs.length >= 2) {
+			long newerRows = runs[runs.length - 1].size;
+			for (int i = runs.length - 2; i >= 0 && runs[i].size <= 2L * newerRows; i--) {
+				start = i;
+				newerRows += runs[i].size;
+			}
+		}
+
+		if (start < 0) {
+			// Rewrite a run of which a quarter can be dropped, or that no longer
+			// needs a column of snapshots
+			for (int i = 0; i < runs.length && start < 0; i++) {
+				Run run = runs[i];
+
+				if (run.deprecatedCount * 4 > run.size && run.getStaleCount(snapshot) * 4 > run.size
+						|| run.sinceColumn != null && run.getMaxSince() <= snapshot)
+				{
+					start = i;
+					end = i + 1;
+				}
+			}
+		}
+
+		if (start < 0) {
+			return null;
+		}
+
+		Run[] inputs = new Run[end - start];
+		System.arraycopy(runs, start, inputs, 0, inputs.length);
+		return new Merge(start, inputs, snapshot);
+	}
+
+	/**
+	 * Replaces the runs of a merge with the merged run. Removals that have been
+	 * committed while the runs were merged are copied to the merged run. The
+	 * caller must hold the transaction lock.
+	 */
+	public void completeMerge(Merge merge) {
+		State state = this.state;
+		Run[] runs = state.runs;
+
+		// Transactions only add runs at the end
+		for (int i = 0; i < merge.inputs.length; i++) {
+			if (merge.start + i >= runs.length || runs[merge.start + i] != merge.inputs[i]) {
+				return;
+			}
+		}
+
+		Run output = merge.output;
+		long inputRows = 0;
+
+		for (int i = 0; i < merge.inputs.length; i++) {
+			Run input = merge.inputs[i];
+			int[] rowMap = merge.rowMaps[i];
+			int[] till = input.till;
+
+			inputRows += input.size;
+
+			if (till != null) {
+				for (int row = 0; row < till.length; row++) {
+					if (till[row] != Integer.MAX_VALUE && rowMap[row] >= 0) {
+						output.setTillSnapshot(rowMap[row], till[row]);
+					}
+				}
+			}
+		}
+
+		droppedRows += inputRows - output.size;
+
+		List<Run> newRuns = new ArrayList<Run>(runs.length);
+		for (int i = 0; i < merge.start; i++) {
+			newRuns.add(runs[i]);
+		}
+		if (output.size > 0) {
+			newRuns.add(output);
+		}
+		for (int i = merge.start + merge.inputs.length; i < runs.length; i++) {
+			newRuns.add(runs[i]);
+		}
+
+		this.state = new State(state.dictionary, newRuns.toArray(new Run[newRuns.size()]));
+	}
+
+	/**
+	 * Checks whether enough statements have been dropped or values added since
+	 * the values were last counted that it is worth counting the values that
+	 * are still in use.
+	 */
+	public boolean isValuePurgeDue() {
+		long rowCount = 0;
+		for (Run run : state.runs) {
+			rowCount += run.size;
+		}
+
+		return droppedRows * 4 > rowCount || state.dictionary.size() > 2L * liveValueCount + 1024;
+	}
+
+	/**
+	 * Removes the values that are no longer used by any statement from the
+	 * dictionary, if they are at least a quarter of the values. This replaces
+	 * the dictionary and the value IDs of all runs. The caller must hold the
+	 * transaction lock and no transaction may be active.
+	 *
+	 * @return <tt>true</tt> if values have been removed.
+	 */
+	public boolean purgeValues() {
+		assert buffer == null;
+
+		State state = this.state;
+		int valueCount = state.dictionary.size();
+
+		BitSet live = new BitSet(valueCount);
+		for (Run run : state.runs) {
+			for (int component = SUBJ; component <= CONTEXT; component++) {
+				int[] column = run.getColumn(component);
+				if (column != null) {
+					for (int id : column) {
+						live.set(id);
+					}
+				}
+			}
+		}
+		// the default context
+		live.clear(0);
+
+		liveValueCount = live.cardinality();
+		droppedRows = 0;
+
+		if ((valueCount - 1 - liveValueCount) * 4 <= valueCount - 1) {
+			return false;
+		}
+
+		int[] idMap = new int[valueCount];
+		ValueDictionary dictionary = state.dictionary.compact(live, idMap);
+
+		Run[] runs = new Run[state.runs.length];
+		for (int i = 0; i < runs.length; i++) {
+			runs[i] = state.runs[i].remap(idMap);
+		}
+
+		this.state = new State(dictionary, runs);
+		return true;
+	}
+
+	/*------------------*
+	 * Helper functions *
+	 *------------------*/
+
+	/**
+	 * Checks whether a row in the snapshot must be returned by an iterator in
+	 * the specified read mode, following the rules of the MemStatementIterator.
+	 */
+	private static boolean isVisible(Rows rows, int row, boolean explicitOnly, ReadMode readMode) {
+		if (readMode == ReadMode.COMMITTED) {
+			// Only read committed statements. Uncommitted statements are not in
+			// the runs.
+			return !explicitOnly || rows.isExplicit(row);
+		}
+		else if (readMode == ReadMode.TRANSACTION) {
+			// Pretend that the transaction has already been committed
+			TxnStatus txnStatus = rows.getTxnStatus(row);
+
+			if (txnStatus == TxnStatus.DEPRECATED || txnStatus == TxnStatus.ZOMBIE) {
+				return false;
+			}
+
+			return !explicitOnly || (rows.isExplicit(row) || txnStatus == TxnStatus.EXPLICIT)
+					&& txnStatus != TxnStatus.INFERRED;
+		}
+		else {
+			// Ignore the transaction status
+			return !explicitOnly || rows.isExplicit(row);
+		}
+	}
+
+	private static int compare(int[][] keys, int row1, int row2) {
+		for (int[] key : keys) {
+			if (key != null) {
+				int v1 = key[row1];
+				int v2 = key[row2];
+				if (v1 != v2) {
+					return v1 < v2 ? -1 : 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the first position in <tt>[start, end)</tt> at which the row of the
+	 * index has a value in <tt>column</tt> that is not smaller than
+	 * <tt>value</tt>. A <tt>null</tt> index stands for the rows themselves.
+	 */
+	private static int lowerBound(int[] column, int[] index, int start, int end, int value) {
+		while (start < end) {
+			int mid = (start + end) >>> 1;
+			if (column[index == null ? mid : index[mid]] < value) {
+				start = mid + 1;
+			}
+			else {
+				end = mid;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Gets the first position in <tt>[start, end)</tt> at which the row of the
+	 * index has a value in <tt>column</tt> that is larger than <tt>value</tt>.
+	 */
+	private static int upperBound(int[] column, int[] index, int start, int end, int value) {
+		while (start < end) {
+			int mid = (start + end) >>> 1;
+			if (column[index == null ? mid : index[mid]] <= value) {
+				start = mid + 1;
+			}
+			else {
+				end = mid;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Sorts the first <tt>length</tt> rows of an array by the values of the
+	 * specified columns, a <tt>null</tt> column counting as all 0. This is a
+	 * merge sort that starts from the ascending sequences in the array, so
+	 * that it merges the rows of presorted runs in linear time per run.
+	 */
+	static void sort(int[] rows, int length, int[][] keys) {
+		if (length < 2) {
+			return;
+		}
+
+		// the start of each ascending sequence, followed by length
+		int[] bounds = new int[length + 1];
+		int count = 1;
+		for (int i = 1; i < length; i++) {
+			if (compare(keys, rows[i - 1], rows[i]) > 0) {
+				bounds[count++] = i;
+			}
+		}
+		bounds[count] = length;
+
+		int[] src = rows;
+		int[] dst = new int[length];
+
+		while (count > 1) {
+			int newCount = 0;
+
+			for (int i = 0; i < count; i += 2) {
+				int lo = bounds[i];
+				int mid = bounds[Math.min(i + 1, count)];
+				int hi = bounds[Math.min(i + 2, count)];
+
+				int a = lo, b = mid, out = lo;
+				while (a < mid && b < hi) {
+					dst[out++] = compare(keys, src[a], src[b]) <= 0 ? src[a++] : src[b++];
+				}
+				System.arraycopy(src, a, dst, out, mid - a);
+				System.arraycopy(src, b, dst, out + mid - a, hi - b);
+
+				bounds[newCount++] = lo;
+			}
+
+			bounds[newCount] = length;
+			count = newCount;
+
+			int[] tmp = src;
+			src = dst;
+			dst = tmp;
+		}
+
+		if (src != rows) {
+			System.arraycopy(src, 0, rows, 0, length);
+		}
+	}
+
+	/*------------------*
+	 * Inner class Rows *
+	 *------------------*/
+
+	/**
+	 * Statements stored as rows of value IDs.
+	 */
+	static abstract class Rows {
+
+		int[] subjects;
+
+		int[] predicates;
+
+		int[] objects;
+
+		/**
+		 * The context IDs, <tt>null</tt> if all statements are in the default
+		 * context.
+		 */
+		int[] contexts;
+
+		int getContextID(int row) {
+			return contexts == null ? 0 : contexts[row];
+		}
+
+		int[] getColumn(int component) {
+			switch (component) {
+				case SUBJ:
+					return subjects;
+				case PRED:
+					return predicates;
+				case OBJ:
+					return objects;
+				default:
+					return contexts;
+			}
+		}
+
+		abstract int getSinceSnapshot(int row);
+
+		abstract int getTillSnapshot(int row);
+
+		boolean isInSnapshot(int row, int snapshot) {
+			return snapshot >= getSinceSnapshot(row) && snapshot < getTillSnapshot(row);
+		}
+
+		abstract boolean isExplicit(int row);
+
+		abstract void setExplicit(int row, boolean explicit);
+
+		abstract TxnStatus getTxnStatus(int row);
+
+		abstract void setTxnStatus(int row, TxnStatus txnStatus);
+	}
+
+	/*-----------------*
+	 * Inner class Run *
+	 *-----------------*/
+
+	/**
+	 * An immutable, sorted set of committed statements. Only the removal
+	 * snapshots change, and the transaction statuses of the active transaction
+	 * are kept in a map that only the writer uses.
+	 */
+	static class Run extends Rows {
+
+		final int size;
+
+		/**
+		 * The permutations of the rows in the orders of {@link #INDEX_ORDERS}.
+		 * The first is <tt>null</tt>, as the rows are sorted in that order. The
+		 * context index only contains rows with a context and is <tt>null</tt>
+		 * if there are none.
+		 */
+		final int[][] indexes;
+
+		/**
+		 * A bit for each inferred statement, <tt>null</tt> if all statements are
+		 * explicit.
+		 */
+		final long[] inferred;
+
+		/**
+		 * The snapshot in which all statements were added, unless
+		 * {@link #sinceColumn} is not <tt>null</tt>.
+		 */
+		int since;
+
+		/**
+		 * The snapshot in which each statement was added, <tt>null</tt> if they
+		 * were all added in {@link #since}.
+		 */
+		int[] sinceColumn;
+
+		/**
+		 * The snapshot in which each statement was removed, <tt>null</tt> if no
+		 * statement has been removed. Allocated and modified by the writer only.
+		 */
+		volatile int[] till;
+
+		/**
+		 * The number of statements that have been removed. Modified by the
+		 * writer only.
+		 */
+		volatile int deprecatedCount;
+
+		/**
+		 * The transaction status of the statements that the active transaction
+		 * has modified, by row. Only used by the writer.
+		 */
+		IntIntMap txnStatuses;
+
+		Run(int size, int[] subjects, int[] predicates, int[] objects, int[] contexts, int[][] indexes,
+				long[] inferred, int since, int[] sinceColumn)
+		{
+			this.size = size;
+			this.subjects = subjects;
+			this.predicates = predicates;
+			this.objects = objects;
+			this.contexts = contexts;
+			this.indexes = indexes;
+			this.inferred = inferred;
+			this.since = since;
+			this.sinceColumn = sinceColumn;
+		}
+
+		@Override
+		int getSinceSnapshot(int row) {
+			int[] sinceColumn = this.sinceColumn;
+			return sinceColumn == null ? since : sinceColumn[row];
+		}
+
+		@Override
+		int getTillSnapshot(int row) {
+			int[] till = this.till;
+			return till == null ? Integer.MAX_VALUE : till[row];
+		}
+
+		void setTillSnapshot(int row, int snapshot) {
+			int[] till = this.till;
+			if (till == null) {
+				till = new int[size];
+				Arrays.fill(till, Integer.MAX_VALUE);
+				till[row] = snapshot;
+				this.till = till;
+			}
+			else {
+				till[row] = snapshot;
+			}
+			deprecatedCount++;
+		}
+
+		@Override
+		boolean isExplicit(int row) {
+			return inferred == null || (inferred[row >>> 6] & 1L << row) == 0;
+		}
+
+		@Override
+		void setExplicit(int row, boolean explicit) {
+			// only called for statements that have been added in the active
+			// transaction
+			throw new UnsupportedOperationException("committed statements can not be modified");
+		}
+
+		@Override
+		TxnStatus getTxnStatus(int row) {
+			IntIntMap txnStatuses = this.txnStatuses;
+			return txnStatuses == null ? TxnStatus.NEUTRAL : TXN_STATUSES[txnStatuses.get(row, 0)];
+		}
+
+		@Override
+		void setTxnStatus(int row, TxnStatus txnStatus) {
+			if (txnStatuses == null) {
+				txnStatuses = new IntIntMap();
+			}
+			txnStatuses.put(row, txnStatus.ordinal());
+		}
+
+		int getMaxSince() {
+			int[] sinceColumn = this.sinceColumn;
+			if (sinceColumn == null) {
+				return since;
+			}
+
+			int max = 0;
+			for (int s : sinceColumn) {
+				max = Math.max(max, s);
+			}
+			return max;
+		}
+
+		/**
+		 * Counts the statements that were removed in the specified snapshot or
+		 * earlier.
+		 */
+		int getStaleCount(int snapshot) {
+			int[] till = this.till;
+			int count = 0;
+			if (till != null) {
+				for (int t : till) {
+					if (t <= snapshot) {
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Creates a copy of this run with the value IDs replaced by those in
+		 * <tt>idMap</tt>, which must preserve their order. The copy shares the
+		 * indexes, the snapshots and the flags of this run.
+		 */
+		Run remap(int[] idMap) {
+			Run run = new Run(size, remap(subjects, idMap), remap(predicates, idMap), remap(objects, idMap),
+					remap(contexts, idMap), indexes, inferred, since, sinceColumn);
+			run.till = till;
+			run.deprecatedCount = deprecatedCount;
+			return run;
+		}
+
+		private static int[] remap(int[] column, int[] idMap) {
+			if (column == null) {
+				return null;
+			}
+
+			int[] result = new int[column.length];
+			for (int i = 0; i < column.length; i++) {
+				result[i] = idMap[column[i]];
+			}
+			return result;
+		}
+	}
+
+	/*------------------------*
+	 * Inner class RunBuilder *
+	 *------------------------*/
+
+	/**
+	 * Collects statements in any order and sorts them into a run.
+	 */
+	private static class RunBuilder {
+
+		int size = 0;
+
+		int[] subjects = new int[16];
+
+		int[] predicates = new int[16];
+
+		int[] objects = new int[16];
+
+		int[] contexts = new int[16];
+
+		long[] inferred = new long[1];
+
+		boolean hasContexts = false;
+
+		boolean hasInferred = false;
+
+		public void add(int subj, int pred, int obj, int context, boolean explicit) {
+			if (size == subjects.length) {
+				int capacity = size + (size >> 1);
+				subjects = grow(subjects, capacity);
+				predicates = grow(predicates, capacity);
+				objects = grow(objects, capacity);
+				contexts = grow(contexts, capacity);
+			}
+			if (size >>> 6 == inferred.length) {
+				long[] newInferred = new long[inferred.length * 2];
+				System.arraycopy(inferred, 0, newInferred, 0, inferred.length);
+				inferred = newInferred;
+			}
+
+			subjects[size] = subj;
+			predicates[size] = pred;
+			objects[size] = obj;
+			contexts[size] = context;
+			if (!explicit) {
+				inferred[size >>> 6] |= 1L << size;
+				hasInferred = true;
+			}
+			if (context != 0) {
+				hasContexts = true;
+			}
+			size++;
+		}
+
+		/**
+		 * Sorts the statements into a run.
+		 *
+		 * @param since
+		 *        The snapshot in which the statements were added.
+		 */
+		public Run build(int since) {
+			int[] order = new int[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			sort(order, size, new int[][] { subjects, predicates, objects, contexts });
+
+			int[] subjColumn = new int[size];
+			int[] predColumn = new int[size];
+			int[] objColumn = new int[size];
+			int[] contextColumn = hasContexts ? new int[size] : null;
+			long[] inferredBits = hasInferred ? new long[(size + 63) >>> 6] : null;
+
+			for (int row = 0; row < size; row++) {
+				int i = order[row];
+				subjColumn[row] = subjects[i];
+				predColumn[row] = predicates[i];
+				objColumn[row] = objects[i];
+				if (contextColumn != null) {
+					contextColumn[row] = contexts[i];
+				}
+				if (inferredBits != null && (inferred[i >>> 6] & 1L << i) != 0) {
+					inferredBits[row >>> 6] |= 1L << row;
+				}
+			}
+
+			int[][] columns = { subjColumn, predColumn, objColumn, contextColumn };
+			int[][] indexes = new int[4][];
+
+			for (int index = 1; index < 3; index++) {
+				for (int row = 0; row < size; row++) {
+					order[row] = row;
+				}
+				indexes[index] = sortIndex(order, size, columns, index);
+				order = new int[size];
+			}
+
+			if (contextColumn != null) {
+				int count = 0;
+				for (int row = 0; row < size; row++) {
+					if (contextColumn[row] != 0) {
+						order[count++] = row;
+					}
+				}
+				indexes[CONTEXT_INDEX] = sortIndex(order, count, columns, CONTEXT_INDEX);
+			}
+
+			return new Run(size, subjColumn, predColumn, objColumn, contextColumn, indexes, inferredBits,
+					since, null);
+		}
+
+		private static int[] grow(int[] array, int capacity) {
+			int[] result = new int[capacity];
+			System.arraycopy(array, 0, result, 0, array.length);
+			return result;
+		}
+	}
+
+	/**
+	 * Sorts rows in the order of an index.
+	 *
+	 * @return The first <tt>length</tt> sorted rows.
+	 */
+	private static int[] sortIndex(int[] rows, int length, int[][] columns, int index) {
+		int[] order = INDEX_ORDERS[index];
+		sort(rows, length, new int[][] {
+				columns[order[0]],
+				columns[order[1]],
+				columns[order[2]],
+				columns[order[3]] });
+
+		if (rows.length == length) {
+			return rows;
+		}
+		int[] result = new int[length];
+		System.arraycopy(rows, 0, result, 0, length);
+		return result;
+	}
+
+	/*--------------------*
+	 * Inner class Buffer *
+	 *--------------------*/
+
+	/**
+	 * The statements that have been added in the active transaction, with an
+	 * index of the rows by each of their components. Only used by the writer.
+	 */
+	static class Buffer extends Rows {
+
+		private static final int EXPLICIT_FLAG = 0x40;
+
+		private static final int TXN_STATUS_MASK = 0x3F;
+
+		/**
+		 * The snapshot in which the statements are added, only modified by
+		 * {@link StatementTable#resetSnapshots()}.
+		 */
+		int since;
+
+		int size = 0;
+
+		/**
+		 * The explicit flag and the transaction status of each statement, as in
+		 * {@link MemStatement}.
+		 */
+		private byte[] flags = new byte[16];
+
+		/**
+		 * For each component, the previous row with the same value, or -1.
+		 */
+		private final int[][] previousRows = new int[4][16];
+
+		/**
+		 * For each component, the last row with each value.
+		 */
+		private final IntIntMap[] lastRows = new IntIntMap[4];
+
+		/**
+		 * For each component, the number of rows with each value.
+		 */
+		private final IntIntMap[] counts = new IntIntMap[4];
+
+		Buffer(int since) {
+			this.since = since;
+			subjects = new int[16];
+			predicates = new int[16];
+			objects = new int[16];
+			contexts = new int[16];
+			for (int component = SUBJ; component <= CONTEXT; component++) {
+				lastRows[component] = new IntIntMap();
+				counts[component] = new IntIntMap();
+			}
+		}
+
+		int add(int subj, int pred, int obj, int context, boolean explicit) {
+			if (size == subjects.length) {
+				int capacity = size * 2;
+				subjects = RunBuilder.grow(subjects, capacity);
+				predicates = RunBuilder.grow(predicates, capacity);
+				objects = RunBuilder.grow(objects, capacity);
+				contexts = RunBuilder.grow(contexts, capacity);
+				for (int component = SUBJ; component <= CONTEXT; component++) {
+					previousRows[component] = RunBuilder.grow(previousRows[component], capacity);
+				}
+				byte[] newFlags = new byte[capacity];
+				System.arraycopy(flags, 0, newFlags, 0, size);
+				flags = newFlags;
+			}
+
+			int row = size;
+			subjects[row] = subj;
+			predicates[row] = pred;
+			objects[row] = obj;
+			contexts[row] = context;
+			flags[row] = (byte)((explicit ? EXPLICIT_FLAG : 0) | TxnStatus.NEW.ordinal());
+
+			for (int component = SUBJ; component <= CONTEXT; component++) {
+				int id = getColumn(component)[row];
+				previousRows[component][row] = lastRows[component].get(id, -1);
+				lastRows[component].put(id, row);
+				counts[component].put(id, counts[component].get(id, 0) + 1);
+			}
+
+			size = row + 1;
+			return row;
+		}
+
+		/**
+		 * Gets the number of rows with the supplied value for a component.
+		 */
+		int getCount(int component, int id) {
+			return counts[component].get(id, 0);
+		}
+
+		int getLastRow(int component, int id) {
+			return lastRows[component].get(id, -1);
+		}
+
+		int getPreviousRow(int component, int row) {
+			return previousRows[component][row];
+		}
+
+		@Override
+		int getSinceSnapshot(int row) {
+			return since;
+		}
+
+		@Override
+		int getTillSnapshot(int row) {
+			return Integer.MAX_VALUE;
+		}
+
+		@Override
+		boolean isExplicit(int row) {
+			return (flags[row] & EXPLICIT_FLAG) != 0;
+		}
+
+		@Override
+		void setExplicit(int row, boolean explicit) {
+			if (explicit) {
+				flags[row] = (byte)(flags[row] | EXPLICIT_FLAG);
+			}
+			else {
+				flags[row] = (byte)(flags[row] & ~EXPLICIT_FLAG);
+			}
+		}
+
+		@Override
+		TxnStatus getTxnStatus(int row) {
+			return TXN_STATUSES[flags[row] & TXN_STATUS_MASK];
+		}
+
+		@Override
+		void setTxnStatus(int row, TxnStatus txnStatus) {
+			flags[row] = (byte)(flags[row] & EXPLICIT_FLAG | txnStatus.ordinal());
+		}
+	}
+
+	/*-------------------*
+	 * Inner class State *
+	 *-------------------*/
+
+	/**
+	 * A dictionary and the runs whose value IDs refer to it.
+	 */
+	static class State {
+
+		final ValueDictionary dictionary;
+
+		final Run[] runs;
+
+		State(ValueDictionary dictionary, Run[] runs) {
+			this.dictionary = dictionary;
+			this.runs = runs;
+		}
+
+		public ValueDictionary getDictionary() {
+			return dictionary;
+		}
+
+		/**
+		 * Gets the committed statements of a snapshot.
+		 */
+		public RowCursor getRows(int snapshot) {
+			return new RowCursor(runs, snapshot);
+		}
+	}
+
+	/*-----------------------*
+	 * Inner class RowCursor *
+	 *-----------------------*/
+
+	/**
+	 * Iterates over the value IDs of the committed statements of a snapshot.
+	 */
+	static class RowCursor {
+
+		private final Run[] runs;
+
+		private final int snapshot;
+
+		private int runIdx = 0;
+
+		private int row = -1;
+
+		RowCursor(Run[] runs, int snapshot) {
+			this.runs = runs;
+			this.snapshot = snapshot;
+		}
+
+		public boolean next() {
+			while (runIdx < runs.length) {
+				Run run = runs[runIdx];
+				while (++row < run.size) {
+					if (run.isInSnapshot(row, snapshot)) {
+						return true;
+					}
+				}
+				runIdx++;
+				row = -1;
+			}
+			return false;
+		}
+
+		public int getSubjectID() {
+			return runs[runIdx].subjects[row];
+		}
+
+		public int getPredicateID() {
+			return runs[runIdx].predicates[row];
+		}
+
+		public int getObjectID() {
+			return runs[runIdx].objects[row];
+		}
+
+		/**
+		 * @return The ID of the context, 0 for the default context.
+		 */
+		public int getContextID() {
+			return runs[runIdx].getContextID(row);
+		}
+
+		public boolean isExplicit() {
+			return runs[runIdx].isExplicit(row);
+		}
+	}
+
+	/*-------------------*
+	 * Inner class Merge *
+	 *-------------------*/
+
+	/**
+	 * Merges a sequence of runs into one, dropping the statements that were
+	 * removed in a snapshot that no reader can see any more.
+	 */
+	static class Merge {
+
+		final int start;
+
+		final Run[] inputs;
+
+		/**
+		 * For each input, the row of each of its statements in the output, or
+		 * -1 if it has been dropped.
+		 */
+		final int[][] rowMaps;
+
+		final Run output;
+
+		Merge(int start, Run[] inputs, int snapshot) {
+			this.start = start;
+			this.inputs = inputs;
+			this.rowMaps = new int[inputs.length][];
+
+			int size = 0;
+			boolean hasContexts = false;
+			boolean hasInferred = false;
+			int maxSince = 0;
+			boolean sameSince = true;
+
+			for (int i = 0; i < inputs.length; i++) {
+				Run input = inputs[i];
+				int[] rowMap = new int[input.size];
+				for (int row = 0; row < input.size; row++) {
+					if (input.getTillSnapshot(row) <= snapshot) {
+						rowMap[row] = -1;
+					}
+					else {
+						size++;
+					}
+				}
+				rowMaps[i] = rowMap;
+
+				hasContexts |= input.contexts != null;
+				hasInferred |= input.inferred != null;
+				maxSince = Math.max(maxSince, input.getMaxSince());
+				sameSince &= input.sinceColumn == null && input.since == inputs[0].since;
+			}
+
+			int[] subjects = new int[size];
+			int[] predicates = new int[size];
+			int[] objects = new int[size];
+			int[] contexts = hasContexts ? new int[size] : null;
+			long[] inferred = hasInferred ? new long[(size + 63) >>> 6] : null;
+
+			// All statements can be seen in the snapshots that readers can use
+			// if they were added in the oldest of these
+			boolean needSinceColumn = maxSince > snapshot && !sameSince;
+			int[] sinceColumn = needSinceColumn ? new int[size] : null;
+			int since = maxSince > snapshot ? inputs[0].since : 0;
+
+			// Merge the sorted rows of the inputs
+			int[] positions = new int[inputs.length];
+			for (int i = 0; i < inputs.length; i++) {
+				positions[i] = nextRow(rowMaps[i], -1);
+			}
+
+			for (int out = 0; out < size; out++) {
+				int best = -1;
+				for (int i = 0; i < inputs.length; i++) {
+					if (positions[i] < inputs[i].size
+							&& (best < 0 || compareRows(inputs[i], positions[i], inputs[best], positions[best]) < 0))
+					{
+						best = i;
+					}
+				}
+
+				Run input = inputs[best];
+				int row = positions[best];
+
+				subjects[out] = input.subjects[row];
+				predicates[out] = input.predicates[row];
+				objects[out] = input.objects[row];
+				if (contexts != null) {
+					contexts[out] = input.getContextID(row);
+				}
+				if (inferred != null && !input.isExplicit(row)) {
+					inferred[out >>> 6] |= 1L << out;
+				}
+				if (sinceColumn != null) {
+					sinceColumn[out] = input.getSinceSnapshot(row);
+				}
+
+				rowMaps[best][row] = out;
+				positions[best] = nextRow(rowMaps[best], row);
+			}
+
+			int[][] columns = { subjects, predicates, objects, contexts };
+			int[][] indexes = new int[4][];
+
+			for (int index = 1; index < 4; index++) {
+				indexes[index] = mergeIndex(index, columns);
+			}
+
+			output = new Run(size, subjects, predicates, objects, contexts, indexes, inferred, since,
+					sinceColumn);
+		}
+
+		/**
+		 * Gets the first row after <tt>row</tt> that is not dropped.
+		 */
+		private static int nextRow(int[] rowMap, int row) {
+			row++;
+			while (row < rowMap.length && rowMap[row] < 0) {
+				row++;
+			}
+			return row;
+		}
+
+		private static int compareRows(Run run1, int row1, Run run2, int row2) {
+			int[] order = INDEX_ORDERS[0];
+			for (int component : order) {
+				int[] column1 = run1.getColumn(component);
+				int[] column2 = run2.getColumn(component);
+				int v1 = column1 == null ? 0 : column1[row1];
+				int v2 = column2 == null ? 0 : column2[row2];
+				if (v1 != v2) {
+					return v1 < v2 ? -1 : 1;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Merges the indexes of the inputs, mapped to the rows of the output.
+		 */
+		private int[] mergeIndex(int index, int[][] columns) {
+			int size = 0;
+			int[][] inputIndexes = new int[inputs.length][];
+
+			for (int i = 0; i < inputs.length; i++) {
+				int[] inputIndex = inputs[i].indexes[index];
+				if (inputIndex == null) {
+					if (index == CONTEXT_INDEX) {
+						// the input has no rows with a context
+						inputIndex = new int[0];
+					}
+					else {
+						throw new IllegalStateException("Missing index " + index);
+					}
+				}
+
+				// map the index to the output, dropping the rows that have been
+				// dropped
+				int[] rowMap = rowMaps[i];
+				int[] mapped = new int[inputIndex.length];
+				int count = 0;
+				for (int row : inputIndex) {
+					if (rowMap[row] >= 0) {
+						mapped[count++] = rowMap[row];
+					}
+				}
+				if (count < mapped.length) {
+					int[] trimmed = new int[count];
+					System.arraycopy(mapped, 0, trimmed, 0, count);
+					mapped = trimmed;
+				}
+
+				inputIndexes[i] = mapped;
+				size += count;
+			}
+
+			if (index == CONTEXT_INDEX && columns[CONTEXT] == null) {
+				return null;
+			}
+
+			int[] order = INDEX_ORDERS[index];
+			int[][] keys = {
+					columns[order[0]],
+					columns[order[1]],
+					columns[order[2]],
+					columns[order[3]] };
+
+			int[] result = new int[size];
+			int[] positions = new int[inputs.length];
+
+			for (int out = 0; out < size; out++) {
+				int best = -1;
+				for (int i = 0; i < inputs.length; i++) {
+					if (positions[i] < inputIndexes[i].length
+							&& (best < 0 || compare(keys, inputIndexes[i][positions[i]],
+									inputIndexes[best][positions[best]]) < 0))
+					{
+						best = i;
+					}
+				}
+				result[out] = inputIndexes[best][positions[best]++];
+			}
+
+			return result;
+		}
+	}
+
+	/*---------------------*
+	 * Inner class Changes *
+	 *---------------------*/
+
+	/**
+	 * The changes of a committed transaction.
+	 */
+	static class Changes {
+
+		int addedCount = 0;
+
+		int removedCount = 0;
+
+		/**
+		 * Indicates that statements have been deprecated without being removed,
+		 * because they have been added and removed in the same transaction or
+		 * because their explicit flag has changed.
+		 */
+		boolean deprecated = false;
+
+		/**
+		 * Indicates that the runs should be merged, as the newest run is at
+		 * least half as large as the one before it.
+		 */
+		boolean mergeDue = false;
+	}
+
+	/*----------------------*
+	 * Inner class IntIntMap *
+	 *----------------------*/
+
+	/**
+	 * A hash map from non-negative ints to ints, with open addressing.
+	 */
+	static class IntIntMap {
+
+		/**
+		 * The keys plus one, 0 for free slots.
+		 */
+		private int[] keys = new int[16];
+
+		private int[] values = new int[16];
+
+		private int size = 0;
+
+		public int get(int key, int missingValue) {
+			int mask = keys.length - 1;
+			for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+				int k = keys[i];
+				if (k == 0) {
+					return missingValue;
+				}
+				if (k == key + 1) {
+					return values[i];
+				}
+			}
+		}
+
+		public void put(int key, int value) {
+			if (4 * size >= 3 * keys.length) {
+				rehash();
+			}
+
+			int mask = keys.length - 1;
+			for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+				int k = keys[i];
+				if (k == 0) {
+					keys[i] = key + 1;
+					values[i] = value;
+					size++;
+					return;
+				}
+				if (k == key + 1) {
+					values[i] = value;
+					return;
+				}
+			}
+		}
+
+		public int capacity() {
+			return keys.length;
+		}
+
+		public boolean isUsed(int slot) {
+			return keys[slot] != 0;
+		}
+
+		public int getKey(int slot) {
+			return keys[slot] - 1;
+		}
+
+		public int getValue(int slot) {
+			return values[slot];
+		}
+
+		private void rehash() {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+
+			keys = new int[oldKeys.length * 2];
+			values = new int[oldKeys.length * 2];
+			size = 0;
+
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					put(oldKeys[i] - 1, oldValues[i]);
+				}
+			}
+		}
+
+		private static int hash(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/*--------------------------*
+	 * Inner class RowStatement *
+	 *--------------------------*/
+
+	/**
+	 * A view of a row as a {@link MemStatement}. The values are decoded when
+	 * the view is created; the flags and snapshots are read from the row, and
+	 * changes to the transaction status are written to it.
+	 */
+	static class RowStatement extends MemStatement {
+
+		private static final long serialVersionUID = 4412279683207340409L;
+
+		private final transient Rows rows;
+
+		private final int row;
+
+		RowStatement(Rows rows, int row, MemValue subject, MemValue predicate, MemValue object,
+				MemValue context)
+		{
+			super((MemResource)subject, (MemURI)predicate, object, (MemResource)context, rows.isExplicit(row),
+					rows.getSinceSnapshot(row), rows.getTxnStatus(row));
+			this.rows = rows;
+			this.row = row;
+			super.setTillSnapshot(rows.getTillSnapshot(row));
+		}
+
+		@Override
+		public int getSinceSnapshot() {
+			return rows == null ? super.getSinceSnapshot() : rows.getSinceSnapshot(row);
+		}
+
+		@Override
+		public void setSinceSnapshot(int snapshot) {
+			throw new UnsupportedOperationException("snapshots are maintained by the statement table");
+		}
+
+		@Override
+		public int getTillSnapshot() {
+			return rows == null ? super.getTillSnapshot() : rows.getTillSnapshot(row);
+		}
+
+		@Override
+		public void setTillSnapshot(int snapshot) {
+			throw new UnsupportedOperationException("snapshots are maintained by the statement table");
+		}
+
+		@Override
+		public boolean isInSnapshot(int snapshot) {
+			return rows == null ? super.isInSnapshot(snapshot) : rows.isInSnapshot(row, snapshot);
+		}
+
+		@Override
+		public boolean isExplicit() {
+			return rows == null ? super.isExplicit() : rows.isExplicit(row);
+		}
+
+		@Override
+		public void setExplicit(boolean explicit) {
+			rows.setExplicit(row, explicit);
+			super.setExplicit(explicit);
+		}
+
+		@Override
+		public TxnStatus getTxnStatus() {
+			return rows == null ? super.getTxnStatus() : rows.getTxnStatus(row);
+		}
+
+		@Override
+		public void setTxnStatus(TxnStatus txnStatus) {
+			rows.setTxnStatus(row, txnStatus);
+			super.setTxnStatus(txnStatus);
+		}
+	}
+
+	/*-------------------------*
+	 * Inner class RowIterator *
+	 *-------------------------*/
+
+	/**
+	 * Iterates over the rows that match a pattern, in the runs and, unless the
+	 * read mode is {@link ReadMode#COMMITTED}, in the buffer of the active
+	 * transaction.
+	 */
+	private static class RowIterator<X extends Exception> extends LookAheadIteration<MemStatement, X> {
+
+		private final State state;
+
+		private final Buffer buffer;
+
+		/**
+		 * The IDs of the subject, predicate, object and context of the pattern,
+		 * 0 for unbound components. The context is only bound if
+		 * {@link #contextBound} is set, as 0 also stands for the default context.
+		 */
+		private final int[] pattern;
+
+		private final boolean contextBound;
+
+		/**
+		 * The IDs of the contexts of the pattern if there is more than one.
+		 */
+		private final int[] contextIDs;
+
+		private final boolean explicitOnly;
+
+		private final int snapshot;
+
+		private final ReadMode readMode;
+
+		/**
+		 * The index that is used to look up the pattern in the runs.
+		 */
+		private final int index;
+
+		/**
+		 * The number of components of the index that are bound.
+		 */
+		private final int prefixLength;
+
+		/**
+		 * The component whose rows in the buffer are iterated over, -1 to
+		 * iterate over all rows in the buffer.
+		 */
+		private final int bufferComponent;
+
+		private int runIdx = -1;
+
+		private int position;
+
+		private int end;
+
+		/**
+		 * The next row of the buffer to check, -1 if there are none.
+		 */
+		private int bufferRow = -2;
+
+		private final int[] lastIDs = { -1, -1, -1, -1 };
+
+		private final MemValue[] lastValues = new MemValue[4];
+
+		public RowIterator(State state, Buffer buffer, int[] pattern, boolean contextBound, int[] contextIDs,
+				boolean explicitOnly, int snapshot, ReadMode readMode)
+		{
+			this.state = state;
+			this.buffer = buffer;
+			this.pattern = pattern;
+			this.contextBound = contextBound;
+			this.contextIDs = contextIDs;
+			this.explicitOnly = explicitOnly;
+			this.snapshot = snapshot;
+			this.readMode = readMode;
+
+			// Use the index with the longest bound prefix
+			int bestIndex = 0;
+			int bestLength = 0;
+			for (int index = 0; index < INDEX_ORDERS.length; index++) {
+				if (index == CONTEXT_INDEX && (!contextBound || pattern[CONTEXT] == 0)) {
+					// the context index does not contain the default context
+					continue;
+				}
+
+				int length = 0;
+				while (length < 4 && isBound(INDEX_ORDERS[index][length])) {
+					length++;
+				}
+				if (length > bestLength) {
+					bestIndex = index;
+					bestLength = length;
+				}
+			}
+			this.index = bestIndex;
+			this.prefixLength = bestLength;
+
+			// Use the smallest list of rows of a bound component in the buffer
+			int component = -1;
+			if (buffer != null) {
+				int smallest = buffer.size;
+				for (int c = SUBJ; c <= CONTEXT; c++) {
+					if (isBound(c) && buffer.getCount(c, pattern[c]) <= smallest) {
+						component = c;
+						smallest = buffer.getCount(c, pattern[c]);
+					}
+				}
+			}
+			this.bufferComponent = component;
+		}
+
+		private boolean isBound(int component) {
+			return component == CONTEXT ? contextBound : pattern[component] != 0;
+		}
+
+		@Override
+		protected MemStatement getNextElement() {
+			Run[] runs = state.runs;
+
+			while (runIdx < runs.length) {
+				if (runIdx >= 0) {
+					Run run = runs[runIdx];
+					int[] index = run.indexes[this.index];
+
+					while (position < end) {
+						int row = index == null ? position : index[position];
+						position++;
+
+						if (matches(run, row)) {
+							return createStatement(run, row);
+						}
+					}
+				}
+
+				if (++runIdx < runs.length) {
+					findRange(runs[runIdx]);
+				}
+			}
+
+			if (buffer != null) {
+				if (bufferRow == -2) {
+					bufferRow = bufferComponent < 0 ? buffer.size - 1 : buffer.getLastRow(bufferComponent,
+							pattern[bufferComponent]);
+				}
+
+				while (bufferRow >= 0) {
+					int row = bufferRow;
+					bufferRow = bufferComponent < 0 ? row - 1 : buffer.getPreviousRow(bufferComponent, row);
+
+					if (matches(buffer, row)) {
+						return createStatement(buffer, row);
+					}
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Sets {@link #position} and {@link #end} to the range of positions in
+		 * the index of the run that match the bound prefix of the pattern.
+		 */
+		private void findRange(Run run) {
+			int[] index = run.indexes[this.index];
+			int start = 0;
+			int end = index == null ? run.size : index.length;
+
+			for (int i = 0; i < prefixLength && start < end; i++) {
+				int component = INDEX_ORDERS[this.index][i];
+				int[] column = run.getColumn(component);
+				int id = pattern[component];
+
+				if (column == null) {
+					// no contexts in this run
+					if (id != 0) {
+						end = start;
+					}
+				}
+				else {
+					start = lowerBound(column, index, start, end, id);
+					end = upperBound(column, index, start, end, id);
+				}
+			}
+
+			this.position = start;
+			this.end = end;
+		}
+
+		private boolean matches(Rows rows, int row) {
+			if (pattern[SUBJ] != 0 && rows.subjects[row] != pattern[SUBJ] || pattern[PRED] != 0
+					&& rows.predicates[row] != pattern[PRED] || pattern[OBJ] != 0
+					&& rows.objects[row] != pattern[OBJ])
+			{
+				return false;
+			}
+
+			if (contextBound && rows.getContextID(row) != pattern[CONTEXT]) {
+				return false;
+			}
+
+			if (contextIDs != null) {
+				int context = rows.getContextID(row);
+				boolean matchingContext = false;
+				for (int i = 0; i < contextIDs.length && !matchingContext; i++) {
+					matchingContext = contextIDs[i] == context;
+				}
+				if (!matchingContext) {
+					return false;
+				}
+			}
+
+			return rows.isInSnapshot(row, snapshot) && isVisible(rows, row, explicitOnly, readMode);
+		}
+
+		private MemStatement createStatement(Rows rows, int row) {
+			return new RowStatement(rows, row, getValue(SUBJ, rows.subjects[row]), getValue(PRED,
+					rows.predicates[row]), getValue(OBJ, rows.objects[row]), getValue(CONTEXT,
+					rows.getContextID(row)));
+		}
+
+		/**
+		 * Decodes a value, reusing the value of the previous statement if it has
+		 * the same ID.
+		 */
+		private MemValue getValue(int component, int id) {
+			if (lastIDs[component] != id) {
+				lastIDs[component] = id;
+				lastValues[component] = state.dictionary.getValue(id);
+			}
+			return lastValues[component];
+		}
+	}
+}
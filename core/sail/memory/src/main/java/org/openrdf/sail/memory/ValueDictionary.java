@@ -0,0 +1,718 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.util.URIUtil;
+import org.openrdf.sail.memory.model.MemBNode;
+import org.openrdf.sail.memory.model.MemLiteral;
+import org.openrdf.sail.memory.model.MemURI;
+import org.openrdf.sail.memory.model.MemValue;
+
+/**
+ * Assigns integer IDs to the values of a {@link MemoryStore} in compact
+ * storage mode. Rather than as objects, the values are kept in encoded form in
+ * pages of {@link #PAGE_SIZE} bytes. A URI is stored as a reference to its
+ * namespace and its local name, a literal as a reference to its language or
+ * datatype and its label. Namespaces, languages and datatypes are stored once
+ * in a table of names that is shared by dictionaries that are compacted from
+ * one another.
+ * <p>
+ * IDs start at 1; the ID 0 stands for the default context. Values can only be
+ * added, one thread at a time. Readers look up and decode values without
+ * locking: a value is published by incrementing the volatile {@link #size}
+ * after it has been written, and readers ignore the IDs they have not seen in
+ * the size. Unused values are removed by copying the others to a new
+ * dictionary, see {@link #compact(BitSet, int[])}.
+ */
+class ValueDictionary {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	private static final int PAGE_BITS = 20;
+
+	/**
+	 * The size of the pages that values are stored in.
+	 */
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	/**
+	 * Values are stored at addresses that are a multiple of 4, which allows
+	 * the offsets of 8 GB of values to be stored in an int.
+	 */
+	private static final int ALIGNMENT_BITS = 2;
+
+	/**
+	 * Values whose encoding is larger than this are stored in arrays of their
+	 * own, rather than in a page.
+	 */
+	private static final int LARGE_VALUE_SIZE = PAGE_SIZE / 16;
+
+	private static final int MAX_PAGES = 1 << (31 - PAGE_BITS + ALIGNMENT_BITS);
+
+	private static final byte URI_VALUE = 1;
+
+	private static final byte BNODE_VALUE = 2;
+
+	private static final byte PLAIN_LITERAL_VALUE = 3;
+
+	private static final byte LANG_LITERAL_VALUE = 4;
+
+	private static final byte DATATYPE_LITERAL_VALUE = 5;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final Names names;
+
+	/**
+	 * The number of IDs that have been assigned, plus one for the ID 0.
+	 */
+	private volatile int size = 1;
+
+	/**
+	 * The addresses of the values by ID, divided by 4. A negative number
+	 * <tt>-(i + 1)</tt> refers to the <tt>i</tt>-th large value.
+	 */
+	private volatile int[] offsets = new int[1024];
+
+	/**
+	 * An open addressing hash table of IDs. The table is replaced when it is
+	 * grown, so a reader always sees a consistent table.
+	 */
+	private volatile int[] table = new int[2048];
+
+	private volatile byte[][] pages = new byte[16][];
+
+	private volatile byte[][] largeValues = new byte[16][];
+
+	/*
+	 * State of the writer, guarded by this dictionary.
+	 */
+
+	private int pageCount = 0;
+
+	private int pagePosition = PAGE_SIZE;
+
+	private int largeValueCount = 0;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	public ValueDictionary() {
+		this(new Names());
+	}
+
+	private ValueDictionary(Names names) {
+		this.names = names;
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Gets the number of IDs that have been assigned, plus one for the ID 0.
+	 * All IDs are smaller than this number.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the ID of the supplied value.
+	 *
+	 * @return The ID, or <tt>0</tt> if the value is not in this dictionary.
+	 */
+	public int getID(Value value) {
+		if (value instanceof View) {
+			View view = (View)value;
+			if (view.getDictionary() == this) {
+				return view.getValueID();
+			}
+		}
+
+		Encoder key = new Encoder();
+		if (!key.encode(value, names, false)) {
+			// the namespace, language or datatype is unknown
+			return 0;
+		}
+
+		return lookup(key, key.hash());
+	}
+
+	/**
+	 * Gets the ID of the supplied value, adding it to this dictionary if it is
+	 * not in it yet.
+	 */
+	public synchronized int getOrAddID(Value value) {
+		if (value instanceof View) {
+			View view = (View)value;
+			if (view.getDictionary() == this) {
+				return view.getValueID();
+			}
+		}
+
+		Encoder key = new Encoder();
+		key.encode(value, names, true);
+		int hash = key.hash();
+
+		int id = lookup(key, hash);
+		if (id == 0) {
+			id = add(key.bytes, 0, key.length, hash);
+		}
+		return id;
+	}
+
+	/**
+	 * Gets the value with the supplied ID.
+	 *
+	 * @return The value, or <tt>null</tt> for the ID 0.
+	 */
+	public MemValue getValue(int id) {
+		if (id == 0) {
+			return null;
+		}
+
+		Decoder decoder = getDecoder(id);
+		byte type = decoder.readByte();
+
+		int nameIndex = -1;
+		if (type == URI_VALUE || type == LANG_LITERAL_VALUE || type == DATATYPE_LITERAL_VALUE) {
+			nameIndex = decoder.readVarInt();
+		}
+
+		String string = decoder.readString();
+
+		switch (type) {
+			case URI_VALUE:
+				return new URIView(this, id, names.get(nameIndex), string);
+			case BNODE_VALUE:
+				return new BNodeView(this, id, string);
+			case PLAIN_LITERAL_VALUE:
+				return new LiteralView(this, id, string);
+			case LANG_LITERAL_VALUE:
+				return new LiteralView(this, id, string, names.get(nameIndex));
+			case DATATYPE_LITERAL_VALUE:
+				return new LiteralView(this, id, string, names.getURI(nameIndex));
+			default:
+				throw new IllegalStateException("Invalid value type: " + type);
+		}
+	}
+
+	/**
+	 * Copies the values whose IDs are set in <tt>live</tt> to a new dictionary.
+	 * The new IDs are assigned in the order of the old IDs, so that statements
+	 * that are sorted by the old IDs are also sorted by the new ones.
+	 *
+	 * @param live
+	 *        The IDs of the values to copy.
+	 * @param idMap
+	 *        An array of at least {@link #size()} elements that the new ID of
+	 *        each copied value is stored in.
+	 * @return The new dictionary.
+	 */
+	public synchronized ValueDictionary compact(BitSet live, int[] idMap) {
+		ValueDictionary dictionary = new ValueDictionary(names);
+		int size = this.size;
+
+		for (int id = live.nextSetBit(1); id >= 0 && id < size; id = live.nextSetBit(id + 1)) {
+			Decoder decoder = getDecoder(id);
+
+			int length = decoder.getEncodedLength();
+			idMap[id] = dictionary.add(decoder.data, decoder.position, length,
+					hash(decoder.data, decoder.position, length));
+		}
+
+		return dictionary;
+	}
+
+	private int lookup(Encoder key, int hash) {
+		// the size must be read before the arrays
+		int size = this.size;
+		int[] table = this.table;
+		int mask = table.length - 1;
+
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			int id = table[i];
+			if (id == 0) {
+				return 0;
+			}
+			if (id < size && matches(id, key)) {
+				return id;
+			}
+		}
+	}
+
+	private boolean matches(int id, Encoder key) {
+		Decoder decoder = getDecoder(id);
+
+		byte[] data = decoder.data;
+		int position = decoder.position;
+
+		// Encodings with different headers differ before the end of either
+		if (data.length - position < key.length) {
+			return false;
+		}
+		byte[] keyBytes = key.bytes;
+		for (int i = 0; i < key.length; i++) {
+			if (data[position + i] != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int add(byte[] data, int start, int length, int hash) {
+		int id = size;
+
+		if (id == offsets.length) {
+			int[] newOffsets = new int[id + (id >> 1)];
+			System.arraycopy(offsets, 0, newOffsets, 0, id);
+			offsets = newOffsets;
+		}
+
+		if (length > LARGE_VALUE_SIZE) {
+			if (largeValueCount == largeValues.length) {
+				byte[][] newLargeValues = new byte[largeValueCount * 2][];
+				System.arraycopy(largeValues, 0, newLargeValues, 0, largeValueCount);
+				largeValues = newLargeValues;
+			}
+			byte[] value = new byte[length];
+			System.arraycopy(data, start, value, 0, length);
+			largeValues[largeValueCount] = value;
+			offsets[id] = -(++largeValueCount);
+		}
+		else {
+			if (pagePosition + length > PAGE_SIZE) {
+				if (pageCount == MAX_PAGES) {
+					throw new IllegalStateException("Value dictionary is full");
+				}
+				if (pageCount == pages.length) {
+					byte[][] newPages = new byte[pageCount * 2][];
+					System.arraycopy(pages, 0, newPages, 0, pageCount);
+					pages = newPages;
+				}
+				pages[pageCount++] = new byte[PAGE_SIZE];
+				pagePosition = 0;
+			}
+			System.arraycopy(data, start, pages[pageCount - 1], pagePosition, length);
+			long address = (long)(pageCount - 1) << PAGE_BITS | pagePosition;
+			offsets[id] = (int)(address >>> ALIGNMENT_BITS);
+			pagePosition += (length + (1 << ALIGNMENT_BITS) - 1) & -(1 << ALIGNMENT_BITS);
+		}
+
+		// keep the table at most three quarters full
+		if (4 * id >= 3 * table.length) {
+			rehash(table.length * 2, id);
+		}
+		insert(table, id, hash);
+
+		// publish the value
+		size = id + 1;
+
+		return id;
+	}
+
+	private void rehash(int capacity, int size) {
+		int[] newTable = new int[capacity];
+
+		for (int id = 1; id < size; id++) {
+			Decoder decoder = getDecoder(id);
+
+			insert(newTable, id, hash(decoder.data, decoder.position, decoder.getEncodedLength()));
+		}
+
+		table = newTable;
+	}
+
+	private static void insert(int[] table, int id, int hash) {
+		int mask = table.length - 1;
+		int i = hash & mask;
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = id;
+	}
+
+	/**
+	 * Gets a decoder that is positioned at the start of the encoded value with
+	 * the supplied ID.
+	 */
+	private Decoder getDecoder(int id) {
+		int offset = offsets[id];
+
+		if (offset >= 0) {
+			long address = (long)offset << ALIGNMENT_BITS;
+			return new Decoder(pages[(int)(address >>> PAGE_BITS)], (int)(address & (PAGE_SIZE - 1)));
+		}
+		else {
+			return new Decoder(largeValues[-offset - 1], 0);
+		}
+	}
+
+	private static int hash(byte[] data, int start, int length) {
+		int h = 0;
+		for (int i = start; i < start + length; i++) {
+			h = 31 * h + data[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/*-------------------*
+	 * Inner class Names *
+	 *-------------------*/
+
+	/**
+	 * The namespaces, languages and datatypes of the values, by index. Names
+	 * are only added, never removed.
+	 */
+	private static class Names {
+
+		private final ConcurrentHashMap<String, Integer> indexes = new ConcurrentHashMap<String, Integer>();
+
+		private volatile String[] names = new String[64];
+
+		/**
+		 * The datatypes as URI objects, created when they are first needed. A
+		 * reader that does not see the URI that another reader created just
+		 * creates another one.
+		 */
+		private volatile URI[] uris = new URI[64];
+
+		private int count = 0;
+
+		public int getIndex(String name) {
+			Integer index = indexes.get(name);
+			return index == null ? -1 : index;
+		}
+
+		public synchronized int getOrAddIndex(String name) {
+			Integer index = indexes.get(name);
+			if (index != null) {
+				return index;
+			}
+
+			if (count == names.length) {
+				String[] newNames = new String[count * 2];
+				System.arraycopy(names, 0, newNames, 0, count);
+				URI[] newURIs = new URI[count * 2];
+				System.arraycopy(uris, 0, newURIs, 0, count);
+				uris = newURIs;
+				names = newNames;
+			}
+			names[count] = name;
+			indexes.put(name, count);
+			return count++;
+		}
+
+		public String get(int index) {
+			return names[index];
+		}
+
+		public URI getURI(int index) {
+			URI[] uris = this.uris;
+			URI uri = uris[index];
+			if (uri == null) {
+				uri = new URIImpl(names[index]);
+				uris[index] = uri;
+			}
+			return uri;
+		}
+	}
+
+	/*---------------------*
+	 * Inner class Encoder *
+	 *---------------------*/
+
+	/**
+	 * Encodes a value to the bytes that are stored in the dictionary.
+	 */
+	private static class Encoder {
+
+		byte[] bytes = new byte[64];
+
+		int length = 0;
+
+		/**
+		 * @param addNames
+		 *        Indicates whether an unknown namespace, language or datatype is
+		 *        added to the names.
+		 * @return <tt>false</tt> if the namespace, language or datatype of the
+		 *         value is unknown and <tt>addNames</tt> is <tt>false</tt>.
+		 */
+		public boolean encode(Value value, Names names, boolean addNames) {
+			String name;
+			String string;
+			byte type;
+
+			if (value instanceof URI) {
+				String uri = value.toString();
+				int localNameIdx;
+				try {
+					localNameIdx = URIUtil.getLocalNameIndex(uri);
+				}
+				catch (IllegalArgumentException e) {
+					localNameIdx = 0;
+				}
+				type = URI_VALUE;
+				name = uri.substring(0, localNameIdx);
+				string = uri.substring(localNameIdx);
+			}
+			else if (value instanceof BNode) {
+				type = BNODE_VALUE;
+				name = null;
+				string = ((BNode)value).getID();
+			}
+			else if (value instanceof Literal) {
+				Literal literal = (Literal)value;
+				string = literal.getLabel();
+				if (literal.getDatatype() != null) {
+					type = DATATYPE_LITERAL_VALUE;
+					name = literal.getDatatype().toString();
+				}
+				else if (literal.getLanguage() != null) {
+					type = LANG_LITERAL_VALUE;
+					name = literal.getLanguage();
+				}
+				else {
+					type = PLAIN_LITERAL_VALUE;
+					name = null;
+				}
+			}
+			else {
+				throw new IllegalArgumentException("unexpected value type: " + value.getClass());
+			}
+
+			length = 0;
+			ensureCapacity(11 + 3 * string.length());
+			bytes[length++] = type;
+
+			if (name != null) {
+				int index = addNames ? names.getOrAddIndex(name) : names.getIndex(name);
+				if (index < 0) {
+					return false;
+				}
+				writeVarInt(index);
+			}
+
+			writeString(string);
+			return true;
+		}
+
+		public int hash() {
+			return ValueDictionary.hash(bytes, 0, length);
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (bytes.length < capacity) {
+				bytes = new byte[capacity];
+			}
+		}
+
+		private void writeVarInt(int value) {
+			while ((value & ~0x7F) != 0) {
+				bytes[length++] = (byte)(value & 0x7F | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte)value;
+		}
+
+		/**
+		 * Writes the length of the encoded string followed by its characters.
+		 * Each char is encoded like a code point in UTF-8, so that strings with
+		 * unpaired surrogates are stored without loss.
+		 */
+		private void writeString(String string) {
+			int encodedLength = 0;
+			for (int i = 0; i < string.length(); i++) {
+				char c = string.charAt(i);
+				encodedLength += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+			}
+
+			writeVarInt(encodedLength);
+
+			for (int i = 0; i < string.length(); i++) {
+				char c = string.charAt(i);
+				if (c < 0x80) {
+					bytes[length++] = (byte)c;
+				}
+				else if (c < 0x800) {
+					bytes[length++] = (byte)(0xC0 | c >> 6);
+					bytes[length++] = (byte)(0x80 | c & 0x3F);
+				}
+				else {
+					bytes[length++] = (byte)(0xE0 | c >> 12);
+					bytes[length++] = (byte)(0x80 | c >> 6 & 0x3F);
+					bytes[length++] = (byte)(0x80 | c & 0x3F);
+				}
+			}
+		}
+	}
+
+	/*---------------------*
+	 * Inner class Decoder *
+	 *---------------------*/
+
+	private static class Decoder {
+
+		final byte[] data;
+
+		int position;
+
+		public Decoder(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		public byte readByte() {
+			return data[position++];
+		}
+
+		/**
+		 * Gets the length of the encoded value that starts at the current
+		 * position, without moving the position.
+		 */
+		public int getEncodedLength() {
+			int start = position;
+			byte type = readByte();
+			if (type == URI_VALUE || type == LANG_LITERAL_VALUE || type == DATATYPE_LITERAL_VALUE) {
+				readVarInt();
+			}
+			int length = readVarInt() + position - start;
+			position = start;
+			return length;
+		}
+
+		public int readVarInt() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = data[position++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+
+		public String readString() {
+			int end = readVarInt() + position;
+			char[] chars = new char[end - position];
+			int count = 0;
+
+			while (position < end) {
+				int b = data[position++] & 0xFF;
+				if (b < 0x80) {
+					chars[count++] = (char)b;
+				}
+				else if (b < 0xE0) {
+					chars[count++] = (char)((b & 0x1F) << 6 | data[position++] & 0x3F);
+				}
+				else {
+					int b2 = data[position++] & 0x3F;
+					chars[count++] = (char)((b & 0x0F) << 12 | b2 << 6 | data[position++] & 0x3F);
+				}
+			}
+
+			return new String(chars, 0, count);
+		}
+	}
+
+	/*-------------*
+	 * Value views *
+	 *-------------*/
+
+	/**
+	 * A value that has been decoded from a dictionary and knows its ID.
+	 */
+	interface View extends MemValue {
+
+		public ValueDictionary getDictionary();
+
+		public int getValueID();
+	}
+
+	static class URIView extends MemURI implements View {
+
+		private static final long serialVersionUID = -5306287612226305707L;
+
+		private final int id;
+
+		public URIView(ValueDictionary dictionary, int id, String namespace, String localName) {
+			super(dictionary, namespace, localName);
+			this.id = id;
+		}
+
+		public ValueDictionary getDictionary() {
+			return (ValueDictionary)getCreator();
+		}
+
+		public int getValueID() {
+			return id;
+		}
+	}
+
+	static class BNodeView extends MemBNode implements View {
+
+		private static final long serialVersionUID = 3581420716283962787L;
+
+		private final int id;
+
+		public BNodeView(ValueDictionary dictionary, int id, String nodeID) {
+			super(dictionary, nodeID);
+			this.id = id;
+		}
+
+		public ValueDictionary getDictionary() {
+			return (ValueDictionary)getCreator();
+		}
+
+		public int getValueID() {
+			return id;
+		}
+	}
+
+	static class LiteralView extends MemLiteral implements View {
+
+		private static final long serialVersionUID = -1484524004633187451L;
+
+		private final int id;
+
+		public LiteralView(ValueDictionary dictionary, int id, String label) {
+			super(dictionary, label);
+			this.id = id;
+		}
+
+		public LiteralView(ValueDictionary dictionary, int id, String label, String language) {
+			super(dictionary, label, language);
+			this.id = id;
+		}
+
+		public LiteralView(ValueDictionary dictionary, int id, String label, URI datatype) {
+			super(dictionary, label, datatype);
+			this.id = id;
+		}
+
+		public ValueDictionary getDictionary() {
+			return (ValueDictionary)getCreator();
+		}
+
+		public int getValueID() {
+			return id;
+		}
+	}
+}
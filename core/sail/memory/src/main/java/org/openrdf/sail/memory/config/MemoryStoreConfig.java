@@ -5,8 +5,16 @@
  */
 package org.openrdf.sail.memory.config;
 
+import static org.openrdf.sail.memory.config.MemoryStoreSchema.ADAPTIVE_JOIN_ORDER;
+import static org.openrdf.sail.memory.config.MemoryStoreSchema.CHANGE_LOG;
+import static org.openrdf.sail.memory.config.MemoryStoreSchema.COMPACT_STORAGE;
+import static org.openrdf.sail.memory.config.MemoryStoreSchema.COMPOSITE_INDEXES;
+import static org.openrdf.sail.memory.config.MemoryStoreSchema.EVALUATION_THREADS;
 import static org.openrdf.sail.memory.config.MemoryStoreSchema.PERSIST;
+import static org.openrdf.sail.memory.config.MemoryStoreSchema.QUERY_PLAN_CACHE_SIZE;
+import static org.openrdf.sail.memory.config.MemoryStoreSchema.SPILL_THRESHOLD;
 import static org.openrdf.sail.memory.config.MemoryStoreSchema.SYNC_DELAY;
+import static org.openrdf.sail.memory.config.MemoryStoreSchema.TEMP_DIR;
 
 import org.openrdf.model.Graph;
 import org.openrdf.model.Literal;
@@ -25,6 +33,22 @@ public class MemoryStoreConfig extends SailImplConfigBase {
 
 	private long syncDelay = 0L;
 
+	private int queryPlanCacheSize = 0;
+
+	private int spillThreshold = 0;
+
+	private String tempDir;
+
+	private int evaluationThreads = 0;
+
+	private boolean adaptiveJoinOrder = false;
+
+	private boolean changeLog = false;
+
+	private String compositeIndexes;
+
+	private boolean compactStorage = false;
+
 	public MemoryStoreConfig() {
 		super(MemoryStoreFactory.SAIL_TYPE);
 	}
@@ -55,6 +79,70 @@ public class MemoryStoreConfig extends SailImplConfigBase {
 		this.syncDelay = syncDelay;
 	}
 
+	public int getQueryPlanCacheSize() {
+		return queryPlanCacheSize;
+	}
+
+	public void setQueryPlanCacheSize(int queryPlanCacheSize) {
+		this.queryPlanCacheSize = queryPlanCacheSize;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public String getTempDir() {
+		return tempDir;
+	}
+
+	public void setTempDir(String tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	public int getEvaluationThreads() {
+		return evaluationThreads;
+	}
+
+	public void setEvaluationThreads(int evaluationThreads) {
+		this.evaluationThreads = evaluationThreads;
+	}
+
+	public boolean getAdaptiveJoinOrder() {
+		return adaptiveJoinOrder;
+	}
+
+	public void setAdaptiveJoinOrder(boolean adaptiveJoinOrder) {
+		this.adaptiveJoinOrder = adaptiveJoinOrder;
+	}
+
+	public boolean getChangeLog() {
+		return changeLog;
+	}
+
+	public void setChangeLog(boolean changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	public String getCompositeIndexes() {
+		return compositeIndexes;
+	}
+
+	public void setCompositeIndexes(String compositeIndexes) {
+		this.compositeIndexes = compositeIndexes;
+	}
+
+	public boolean getCompactStorage() {
+		return compactStorage;
+	}
+
+	public void setCompactStorage(boolean compactStorage) {
+		this.compactStorage = compactStorage;
+	}
+
 	@Override
 	public Resource export(Graph graph)
 	{
@@ -68,6 +156,38 @@ public class MemoryStoreConfig extends SailImplConfigBase {
 			graph.add(implNode, SYNC_DELAY, graph.getValueFactory().createLiteral(syncDelay));
 		}
 
+		if (queryPlanCacheSize != 0) {
+			graph.add(implNode, QUERY_PLAN_CACHE_SIZE, graph.getValueFactory().createLiteral(queryPlanCacheSize));
+		}
+
+		if (spillThreshold != 0) {
+			graph.add(implNode, SPILL_THRESHOLD, graph.getValueFactory().createLiteral(spillThreshold));
+		}
+
+		if (tempDir != null) {
+			graph.add(implNode, TEMP_DIR, graph.getValueFactory().createLiteral(tempDir));
+		}
+
+		if (evaluationThreads != 0) {
+			graph.add(implNode, EVALUATION_THREADS, graph.getValueFactory().createLiteral(evaluationThreads));
+		}
+
+		if (adaptiveJoinOrder) {
+			graph.add(implNode, ADAPTIVE_JOIN_ORDER, graph.getValueFactory().createLiteral(adaptiveJoinOrder));
+		}
+
+		if (changeLog) {
+			graph.add(implNode, CHANGE_LOG, graph.getValueFactory().createLiteral(changeLog));
+		}
+
+		if (compositeIndexes != null) {
+			graph.add(implNode, COMPOSITE_INDEXES, graph.getValueFactory().createLiteral(compositeIndexes));
+		}
+
+		if (compactStorage) {
+			graph.add(implNode, COMPACT_STORAGE, graph.getValueFactory().createLiteral(compactStorage));
+		}
+
 		return implNode;
 	}
 
@@ -99,6 +219,86 @@ public class MemoryStoreConfig extends SailImplConfigBase {
 							+ " property, found " + syncDelayValue);
 				}
 			}
+
+			Literal queryPlanCacheSizeValue = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					QUERY_PLAN_CACHE_SIZE);
+			if (queryPlanCacheSizeValue != null) {
+				try {
+					setQueryPlanCacheSize((queryPlanCacheSizeValue).intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new SailConfigException("Integer value required for " + QUERY_PLAN_CACHE_SIZE
+							+ " property, found " + queryPlanCacheSizeValue);
+				}
+			}
+
+			Literal spillThresholdValue = GraphUtil.getOptionalObjectLiteral(graph, implNode, SPILL_THRESHOLD);
+			if (spillThresholdValue != null) {
+				try {
+					setSpillThreshold((spillThresholdValue).intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new SailConfigException("Integer value required for " + SPILL_THRESHOLD
+							+ " property, found " + spillThresholdValue);
+				}
+			}
+
+			Literal tempDirValue = GraphUtil.getOptionalObjectLiteral(graph, implNode, TEMP_DIR);
+			if (tempDirValue != null) {
+				setTempDir(tempDirValue.getLabel());
+			}
+
+			Literal evaluationThreadsValue = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					EVALUATION_THREADS);
+			if (evaluationThreadsValue != null) {
+				try {
+					setEvaluationThreads((evaluationThreadsValue).intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new SailConfigException("Integer value required for " + EVALUATION_THREADS
+							+ " property, found " + evaluationThreadsValue);
+				}
+			}
+
+			Literal adaptiveJoinOrderValue = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					ADAPTIVE_JOIN_ORDER);
+			if (adaptiveJoinOrderValue != null) {
+				try {
+					setAdaptiveJoinOrder((adaptiveJoinOrderValue).booleanValue());
+				}
+				catch (IllegalArgumentException e) {
+					throw new SailConfigException("Boolean value required for " + ADAPTIVE_JOIN_ORDER
+							+ " property, found " + adaptiveJoinOrderValue);
+				}
+			}
+
+			Literal changeLogValue = GraphUtil.getOptionalObjectLiteral(graph, implNode, CHANGE_LOG);
+			if (changeLogValue != null) {
+				try {
+					setChangeLog((changeLogValue).booleanValue());
+				}
+				catch (IllegalArgumentException e) {
+					throw new SailConfigException("Boolean value required for " + CHANGE_LOG
+							+ " property, found " + changeLogValue);
+				}
+			}
+
+			Literal compositeIndexesValue = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					COMPOSITE_INDEXES);
+			if (compositeIndexesValue != null) {
+				setCompositeIndexes(compositeIndexesValue.getLabel());
+			}
+
+			Literal compactStorageValue = GraphUtil.getOptionalObjectLiteral(graph, implNode, COMPACT_STORAGE);
+			if (compactStorageValue != null) {
+				try {
+					setCompactStorage((compactStorageValue).booleanValue());
+				}
+				catch (IllegalArgumentException e) {
+					throw new SailConfigException("Boolean value required for " + COMPACT_STORAGE
+							+ " property, found " + compactStorageValue);
+				}
+			}
 		}
 		catch (GraphUtilException e) {
 			throw new SailConfigException(e.getMessage(), e);
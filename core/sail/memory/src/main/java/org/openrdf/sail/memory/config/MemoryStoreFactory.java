@@ -5,6 +5,8 @@
  */
 package org.openrdf.sail.memory.config;
 
+import java.io.File;
+
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.config.SailConfigException;
 import org.openrdf.sail.config.SailFactory;
@@ -51,6 +53,16 @@ public class MemoryStoreFactory implements SailFactory {
 
 			memoryStore.setPersist(memConfig.getPersist());
 			memoryStore.setSyncDelay(memConfig.getSyncDelay());
+			memoryStore.setChangeLog(memConfig.getChangeLog());
+			memoryStore.setQueryPlanCacheSize(memConfig.getQueryPlanCacheSize());
+			memoryStore.setSpillThreshold(memConfig.getSpillThreshold());
+			if (memConfig.getTempDir() != null) {
+				memoryStore.setTempDir(new File(memConfig.getTempDir()));
+			}
+			memoryStore.setEvaluationThreads(memConfig.getEvaluationThreads());
+			memoryStore.setAdaptiveJoinOrder(memConfig.getAdaptiveJoinOrder());
+			memoryStore.setCompositeIndexes(memConfig.getCompositeIndexes());
+			memoryStore.setCompactStorage(memConfig.getCompactStorage());
 		}
 
 		return memoryStore;
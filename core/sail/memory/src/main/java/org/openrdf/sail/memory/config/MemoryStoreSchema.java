@@ -27,9 +27,41 @@ public class MemoryStoreSchema {
 	/** <tt>http://www.openrdf.org/config/sail/memory#syncDelay</tt> */
 	public final static URI SYNC_DELAY;
 
+	/** <tt>http://www.openrdf.org/config/sail/memory#queryPlanCacheSize</tt> */
+	public final static URI QUERY_PLAN_CACHE_SIZE;
+
+	/** <tt>http://www.openrdf.org/config/sail/memory#spillThreshold</tt> */
+	public final static URI SPILL_THRESHOLD;
+
+	/** <tt>http://www.openrdf.org/config/sail/memory#tempDir</tt> */
+	public final static URI TEMP_DIR;
+
+	/** <tt>http://www.openrdf.org/config/sail/memory#evaluationThreads</tt> */
+	public final static URI EVALUATION_THREADS;
+
+	/** <tt>http://www.openrdf.org/config/sail/memory#adaptiveJoinOrder</tt> */
+	public final static URI ADAPTIVE_JOIN_ORDER;
+
+	/** <tt>http://www.openrdf.org/config/sail/memory#changeLog</tt> */
+	public final static URI CHANGE_LOG;
+
+	/** <tt>http://www.openrdf.org/config/sail/memory#compositeIndexes</tt> */
+	public final static URI COMPOSITE_INDEXES;
+
+	/** <tt>http://www.openrdf.org/config/sail/memory#compactStorage</tt> */
+	public final static URI COMPACT_STORAGE;
+
 	static {
 		ValueFactory factory = ValueFactoryImpl.getInstance();
 		PERSIST = factory.createURI(NAMESPACE, "persist");
 		SYNC_DELAY = factory.createURI(NAMESPACE, "syncDelay");
+		QUERY_PLAN_CACHE_SIZE = factory.createURI(NAMESPACE, "queryPlanCacheSize");
+		SPILL_THRESHOLD = factory.createURI(NAMESPACE, "spillThreshold");
+		TEMP_DIR = factory.createURI(NAMESPACE, "tempDir");
+		EVALUATION_THREADS = factory.createURI(NAMESPACE, "evaluationThreads");
+		ADAPTIVE_JOIN_ORDER = factory.createURI(NAMESPACE, "adaptiveJoinOrder");
+		CHANGE_LOG = factory.createURI(NAMESPACE, "changeLog");
+		COMPOSITE_INDEXES = factory.createURI(NAMESPACE, "compositeIndexes");
+		COMPACT_STORAGE = factory.createURI(NAMESPACE, "compactStorage");
 	}
 }
@@ -68,20 +68,23 @@ public class MemBNode extends BNodeImpl implements MemResource {
 	}
 
 	public MemStatementList getSubjectStatementList() {
-		if (subjectStatements == null) {
+		// the list may be released concurrently by the snapshot cleanup
+		MemStatementList statements = subjectStatements;
+		if (statements == null) {
 			return EMPTY_LIST;
 		}
 		else {
-			return subjectStatements;
+			return statements;
 		}
 	}
 
 	public int getSubjectStatementCount() {
-		if (subjectStatements == null) {
+		MemStatementList statements = subjectStatements;
+		if (statements == null) {
 			return 0;
 		}
 		else {
-			return subjectStatements.size();
+			return statements.size();
 		}
 	}
 
@@ -112,20 +115,22 @@ public class MemBNode extends BNodeImpl implements MemResource {
 	}
 
 	public MemStatementList getObjectStatementList() {
-		if (objectStatements == null) {
+		MemStatementList statements = objectStatements;
+		if (statements == null) {
 			return EMPTY_LIST;
 		}
 		else {
-			return objectStatements;
+			return statements;
 		}
 	}
 
 	public int getObjectStatementCount() {
-		if (objectStatements == null) {
+		MemStatementList statements = objectStatements;
+		if (statements == null) {
 			return 0;
 		}
 		else {
-			return objectStatements.size();
+			return statements.size();
 		}
 	}
 
@@ -156,20 +161,22 @@ public class MemBNode extends BNodeImpl implements MemResource {
 	}
 
 	public MemStatementList getContextStatementList() {
-		if (contextStatements == null) {
+		MemStatementList statements = contextStatements;
+		if (statements == null) {
 			return EMPTY_LIST;
 		}
 		else {
-			return contextStatements;
+			return statements;
 		}
 	}
 
 	public int getContextStatementCount() {
-		if (contextStatements == null) {
+		MemStatementList statements = contextStatements;
+		if (statements == null) {
 			return 0;
 		}
 		else {
-			return contextStatements.size();
+			return statements.size();
 		}
 	}
 
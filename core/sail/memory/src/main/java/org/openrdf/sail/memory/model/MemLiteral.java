@@ -91,20 +91,23 @@ public class MemLiteral extends LiteralImpl implements MemValue {
 	}
 
 	public MemStatementList getObjectStatementList() {
-		if (objectStatements == null) {
+		// the list may be released concurrently by the snapshot cleanup
+		MemStatementList statements = objectStatements;
+		if (statements == null) {
 			return EMPTY_LIST;
 		}
 		else {
-			return objectStatements;
+			return statements;
 		}
 	}
 
 	public int getObjectStatementCount() {
-		if (objectStatements == null) {
+		MemStatementList statements = objectStatements;
+		if (statements == null) {
 			return 0;
 		}
 		else {
-			return objectStatements.size();
+			return statements.size();
 		}
 	}
 
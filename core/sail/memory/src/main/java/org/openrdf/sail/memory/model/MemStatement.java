@@ -19,15 +19,29 @@ public class MemStatement extends ContextStatementImpl {
 
 	private static final long serialVersionUID = -3073275483628334134L;
 
+	private static final TxnStatus[] TXN_STATUSES = TxnStatus.values();
+
+	private static final int EXPLICIT_FLAG = 0x40;
+
+	private static final int TXN_STATUS_MASK = 0x3F;
+
 	/*-----------*
 	 * Variables *
 	 *-----------*/
 
 	/**
-	 * Flag indicating whether or not this statement has been added explicitly or
-	 * that it has been inferred.
+	 * The ordinal of the status of this statement during a transaction, combined
+	 * with {@link #EXPLICIT_FLAG} if this statement has been added explicitly
+	 * rather than inferred. Both are kept in a single byte as this saves a word
+	 * per statement.
+	 * <p>
+	 * The setters update the byte with an unsynchronized read-modify-write.
+	 * This is safe because statements are only modified by the store's single
+	 * writer, which holds the store's exclusive transaction lock, or while the
+	 * statement is being created or loaded and is not yet visible to other
+	 * threads. Readers do not take a lock and rely on the field being volatile.
 	 */
-	private volatile boolean explicit;
+	private volatile byte flags;
 
 	/**
 	 * Identifies the snapshot in which this statement was introduced.
@@ -40,11 +54,6 @@ public class MemStatement extends ContextStatementImpl {
 	 */
 	private volatile int tillSnapshot = Integer.MAX_VALUE;
 
-	/**
-	 * Flag indicating the status of of this statement during a transaction.
-	 */
-	private volatile TxnStatus txnStatus;
-
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -78,9 +87,9 @@ public class MemStatement extends ContextStatementImpl {
 			boolean explicit, int sinceSnapshot, TxnStatus txnStatus)
 	{
 		super(subject, predicate, object, context);
-		setExplicit(explicit);
-		setSinceSnapshot(sinceSnapshot);
-		setTxnStatus(txnStatus);
+		// assigned directly, as subclasses may override the setters
+		this.flags = (byte)((explicit ? EXPLICIT_FLAG : 0) | txnStatus.ordinal());
+		this.sinceSnapshot = sinceSnapshot;
 	}
 
 	/*---------*
@@ -127,20 +136,33 @@ public class MemStatement extends ContextStatementImpl {
 		return snapshot >= sinceSnapshot && snapshot < tillSnapshot;
 	}
 
+	/**
+	 * Sets the explicit flag. Callers must hold the store's transaction lock,
+	 * see {@link #flags}.
+	 */
 	public void setExplicit(boolean explicit) {
-		this.explicit = explicit;
+		if (explicit) {
+			flags = (byte)(flags | EXPLICIT_FLAG);
+		}
+		else {
+			flags = (byte)(flags & ~EXPLICIT_FLAG);
+		}
 	}
 
 	public boolean isExplicit() {
-		return explicit;
+		return (flags & EXPLICIT_FLAG) != 0;
 	}
 
+	/**
+	 * Sets the transaction status. Callers must hold the store's transaction
+	 * lock, see {@link #flags}.
+	 */
 	public void setTxnStatus(TxnStatus txnStatus) {
-		this.txnStatus = txnStatus;
+		flags = (byte)(flags & EXPLICIT_FLAG | txnStatus.ordinal());
 	}
 
 	public TxnStatus getTxnStatus() {
-		return txnStatus;
+		return TXN_STATUSES[flags & TXN_STATUS_MASK];
 	}
 
 	/**
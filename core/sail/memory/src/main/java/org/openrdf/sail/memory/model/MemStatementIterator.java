@@ -62,6 +62,19 @@ public class MemStatementIterator<X extends Exception> extends LookAheadIteratio
 	 */
 	private final ReadMode readMode;
 
+	/**
+	 * The statements over which to iterate, pinned when the first statement is
+	 * requested. The snapshot cleanup replaces the arrays of the statement
+	 * lists instead of modifying them, so this array remains valid while the
+	 * cleanup is in progress.
+	 */
+	private MemStatement[] statements;
+
+	/**
+	 * The number of statements in {@link #statements}.
+	 */
+	private int statementCount;
+
 	/**
 	 * The index of the last statement that has been returned.
 	 */
@@ -116,10 +129,22 @@ public class MemStatementIterator<X extends Exception> extends LookAheadIteratio
 	 * <tt>null</tt>.
 	 */
 	protected MemStatement getNextElement() {
+		if (statements == null) {
+			// the size must be read before the array
+			int size = statementList.size();
+			statements = statementList.getStatementArray();
+			statementCount = Math.min(size, statements.length);
+		}
+
 		statementIdx++;
 
-		for (; statementIdx < statementList.size(); statementIdx++) {
-			MemStatement st = statementList.get(statementIdx);
+		for (; statementIdx < statementCount; statementIdx++) {
+			MemStatement st = statements[statementIdx];
+
+			if (st == null) {
+				// the list has been compacted or cleared after the size was read
+				break;
+			}
 
 			if (st.isInSnapshot(snapshot) && (subject == null || subject == st.getSubject())
 					&& (predicate == null || predicate == st.getPredicate())
@@ -10,6 +10,12 @@ import java.util.Arrays;
 /**
  * A dedicated data structure for storing MemStatement objects, offering
  * operations optimized for their use in the memory Sail.
+ * <p>
+ * Statements are only ever appended to the array that holds them. Snapshot
+ * cleanup does not remove statements from that array, but replaces it with a
+ * compacted copy (see {@link #replaceWith(MemStatementList)}), so readers that
+ * have pinned the array with {@link #getStatementArray()} can keep using it
+ * without any locking.
  */
 public class MemStatementList {
 
@@ -64,7 +70,7 @@ public class MemStatementList {
 	public void add(MemStatement st) {
 		if (size == statements.length) {
 			// Grow array
-			growArray((size == 0) ? 1 : 2 * size);
+			resizeArray((size == 0) ? 1 : 2 * size);
 		}
 
 		statements[size] = st;
@@ -74,7 +80,7 @@ public class MemStatementList {
 	public void addAll(MemStatementList other) {
 		if (size + other.size >= statements.length) {
 			// Grow array
-			growArray(size + other.size);
+			resizeArray(size + other.size);
 		}
 
 		System.arraycopy(other.statements, 0, statements, size, other.size);
@@ -108,38 +114,71 @@ public class MemStatementList {
 		}
 	}
 
+	/**
+	 * Reduces the capacity of this list to its size, releasing the memory that
+	 * was reserved for future additions.
+	 */
+	public void trimToSize() {
+		if (statements.length > size) {
+			resizeArray(size);
+		}
+	}
+
 	public void clear() {
 		Arrays.fill(statements, 0, size, null);
 		size = 0;
 	}
 
+	/**
+	 * Removes the statements that have been deprecated in the specified
+	 * snapshot or earlier from this list, by replacing its contents with a
+	 * compacted copy.
+	 */
 	public void cleanSnapshots(int currentSnapshot) {
-		int i = size - 1;
+		MemStatementList keptStatements = new MemStatementList(size);
 
-		// remove all deprecated statements from the end of the list
-		for (; i >= 0; i--) {
-			if (statements[i].getTillSnapshot() <= currentSnapshot) {
-				--size;
-				statements[i] = null;
-			}
-			else {
-				i--;
-				break;
+		for (int i = 0; i < size; i++) {
+			if (statements[i].getTillSnapshot() > currentSnapshot) {
+				keptStatements.add(statements[i]);
 			}
 		}
 
-		// remove all deprecated statements that are not at the end of the list
-		for (; i >= 0; i--) {
-			if (statements[i].getTillSnapshot() <= currentSnapshot) {
-				// replace statement with last statement in the list
-				--size;
-				statements[i] = statements[size];
-				statements[size] = null;
-			}
+		if (keptStatements.size < size) {
+			replaceWith(keptStatements);
 		}
 	}
 
-	private void growArray(int newSize) {
+	/**
+	 * Replaces the contents of this list with the contents of the supplied
+	 * list, which should not be used afterwards. The array that held the
+	 * previous contents is not modified, so readers that are iterating over it
+	 * are not affected. The caller must make sure that no statements are added
+	 * to this list concurrently.
+	 */
+	public void replaceWith(MemStatementList other) {
+		if (other.size < other.statements.length / 4) {
+			// most statements have been removed, release the unused capacity
+			other.trimToSize();
+		}
+
+		// readers read the size before the array, see getStatementArray()
+		statements = other.statements;
+		size = other.size;
+	}
+
+	/**
+	 * Gets the array that currently holds the statements of this list. The
+	 * first {@link #size()} elements of the array are the statements of this
+	 * list, if the size was read <em>before</em> calling this method: a
+	 * concurrent {@link #replaceWith(MemStatementList)} can make the array
+	 * shorter than that size or leave <tt>null</tt> elements in it, which
+	 * mark the end of the statements.
+	 */
+	MemStatement[] getStatementArray() {
+		return statements;
+	}
+
+	private void resizeArray(int newSize) {
 		MemStatement[] newArray = new MemStatement[newSize];
 		System.arraycopy(statements, 0, newArray, 0, size);
 		statements = newArray;
@@ -140,20 +140,23 @@ public class MemURI implements URI, MemResource {
 	}
 
 	public MemStatementList getSubjectStatementList() {
-		if (subjectStatements == null) {
+		// read the field once, snapshot cleanup may release the list concurrently
+		MemStatementList statements = subjectStatements;
+		if (statements == null) {
 			return EMPTY_LIST;
 		}
 		else {
-			return subjectStatements;
+			return statements;
 		}
 	}
 
 	public int getSubjectStatementCount() {
-		if (subjectStatements == null) {
+		MemStatementList statements = subjectStatements;
+		if (statements == null) {
 			return 0;
 		}
 		else {
-			return subjectStatements.size();
+			return statements.size();
 		}
 	}
 
@@ -189,11 +192,12 @@ public class MemURI implements URI, MemResource {
 	 * @return a MemStatementList containing the statements.
 	 */
 	public MemStatementList getPredicateStatementList() {
-		if (predicateStatements == null) {
+		MemStatementList statements = predicateStatements;
+		if (statements == null) {
 			return EMPTY_LIST;
 		}
 		else {
-			return predicateStatements;
+			return statements;
 		}
 	}
 
@@ -203,11 +207,12 @@ public class MemURI implements URI, MemResource {
 	 * @return An integer larger than or equal to 0.
 	 */
 	public int getPredicateStatementCount() {
-		if (predicateStatements == null) {
+		MemStatementList statements = predicateStatements;
+		if (statements == null) {
 			return 0;
 		}
 		else {
-			return predicateStatements.size();
+			return statements.size();
 		}
 	}
 
@@ -254,20 +259,22 @@ public class MemURI implements URI, MemResource {
 	}
 
 	public MemStatementList getObjectStatementList() {
-		if (objectStatements == null) {
+		MemStatementList statements = objectStatements;
+		if (statements == null) {
 			return EMPTY_LIST;
 		}
 		else {
-			return objectStatements;
+			return statements;
 		}
 	}
 
 	public int getObjectStatementCount() {
-		if (objectStatements == null) {
+		MemStatementList statements = objectStatements;
+		if (statements == null) {
 			return 0;
 		}
 		else {
-			return objectStatements.size();
+			return statements.size();
 		}
 	}
 
@@ -296,20 +303,22 @@ public class MemURI implements URI, MemResource {
 	}
 
 	public MemStatementList getContextStatementList() {
-		if (contextStatements == null) {
+		MemStatementList statements = contextStatements;
+		if (statements == null) {
 			return EMPTY_LIST;
 		}
 		else {
-			return contextStatements;
+			return statements;
 		}
 	}
 
 	public int getContextStatementCount() {
-		if (contextStatements == null) {
+		MemStatementList statements = contextStatements;
+		if (statements == null) {
 			return 0;
 		}
 		else {
-			return contextStatements.size();
+			return statements.size();
 		}
 	}
 
@@ -29,7 +29,9 @@ import org.openrdf.model.vocabulary.XMLSchema;
 
 /**
  * A factory for MemValue objects that keeps track of created objects to prevent
- * the creation of duplicate objects, minimizing memory usage as a result.
+ * the creation of duplicate objects, minimizing memory usage as a result. The
+ * factory can be used by multiple threads concurrently without locking; two
+ * threads that create equal values at the same time get the same object.
  * 
  * @author Arjohn Kampman
  * @author David Huynh
@@ -126,7 +128,7 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * See getMemValue() for description.
 	 */
-	public synchronized MemURI getMemURI(URI uri) {
+	public MemURI getMemURI(URI uri) {
 		if (isOwnMemValue(uri)) {
 			return (MemURI)uri;
 		}
@@ -138,7 +140,7 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * See getMemValue() for description.
 	 */
-	public synchronized MemBNode getMemBNode(BNode bnode) {
+	public MemBNode getMemBNode(BNode bnode) {
 		if (isOwnMemValue(bnode)) {
 			return (MemBNode)bnode;
 		}
@@ -150,7 +152,7 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * See getMemValue() for description.
 	 */
-	public synchronized MemLiteral getMemLiteral(Literal literal) {
+	public MemLiteral getMemLiteral(Literal literal) {
 		if (isOwnMemValue(literal)) {
 			return (MemLiteral)literal;
 		}
@@ -170,9 +172,8 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * Gets all URIs that are managed by this value factory.
 	 * <p>
-	 * <b>Warning:</b> This method is not synchronized. To iterate over the
-	 * returned set in a thread-safe way, this method should only be called while
-	 * synchronizing on this object.
+	 * The returned set can be iterated over while values are being created
+	 * concurrently; such values may or may not be included.
 	 * 
 	 * @return An unmodifiable Set of MemURI objects.
 	 */
@@ -183,9 +184,8 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * Gets all bnodes that are managed by this value factory.
 	 * <p>
-	 * <b>Warning:</b> This method is not synchronized. To iterate over the
-	 * returned set in a thread-safe way, this method should only be called while
-	 * synchronizing on this object.
+	 * The returned set can be iterated over while values are being created
+	 * concurrently; such values may or may not be included.
 	 * 
 	 * @return An unmodifiable Set of MemBNode objects.
 	 */
@@ -196,9 +196,8 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * Gets all literals that are managed by this value factory.
 	 * <p>
-	 * <b>Warning:</b> This method is not synchronized. To iterate over the
-	 * returned set in a thread-safe way, this method should only be called while
-	 * synchronizing on this object.
+	 * The returned set can be iterated over while values are being created
+	 * concurrently; such values may or may not be included.
 	 * 
 	 * @return An unmodifiable Set of MemURI objects.
 	 */
@@ -246,28 +245,17 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * See {@link #getOrCreateMemValue(Value)} for description.
 	 */
-	public synchronized MemURI getOrCreateMemURI(URI uri) {
+	public MemURI getOrCreateMemURI(URI uri) {
 		MemURI memURI = getMemURI(uri);
 
 		if (memURI == null) {
 			// Namespace strings are relatively large objects and are shared
 			// between uris
-			String namespace = uri.getNamespace();
-			String sharedNamespace = namespaceRegistry.get(namespace);
+			String namespace = namespaceRegistry.getOrAdd(uri.getNamespace());
 
-			if (sharedNamespace == null) {
-				// New namespace, add it to the registry
-				namespaceRegistry.add(namespace);
-			}
-			else {
-				// Use the shared namespace
-				namespace = sharedNamespace;
-			}
-
-			// Create a MemURI and add it to the registry
-			memURI = new MemURI(this, namespace, uri.getLocalName());
-			boolean wasNew = uriRegistry.add(memURI);
-			assert wasNew : "Created a duplicate MemURI for URI " + uri;
+			// Create a MemURI and add it to the registry, unless another thread
+			// has just done so
+			memURI = uriRegistry.getOrAdd(new MemURI(this, namespace, uri.getLocalName()));
 		}
 
 		return memURI;
@@ -276,13 +264,11 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * See {@link #getOrCreateMemValue(Value)} for description.
 	 */
-	public synchronized MemBNode getOrCreateMemBNode(BNode bnode) {
+	public MemBNode getOrCreateMemBNode(BNode bnode) {
 		MemBNode memBNode = getMemBNode(bnode);
 
 		if (memBNode == null) {
-			memBNode = new MemBNode(this, bnode.getID());
-			boolean wasNew = bnodeRegistry.add(memBNode);
-			assert wasNew : "Created a duplicate MemBNode for bnode " + bnode;
+			memBNode = bnodeRegistry.getOrAdd(new MemBNode(this, bnode.getID()));
 		}
 
 		return memBNode;
@@ -291,7 +277,7 @@ public class MemValueFactory extends ValueFactoryBase {
 	/**
 	 * See {@link #getOrCreateMemValue(Value)} for description.
 	 */
-	public synchronized MemLiteral getOrCreateMemLiteral(Literal literal) {
+	public MemLiteral getOrCreateMemLiteral(Literal literal) {
 		MemLiteral memLiteral = getMemLiteral(literal);
 
 		if (memLiteral == null) {
@@ -334,19 +320,18 @@ public class MemValueFactory extends ValueFactoryBase {
 				memLiteral = new MemLiteral(this, label);
 			}
 
-			boolean wasNew = literalRegistry.add(memLiteral);
-			assert wasNew : "Created a duplicate MemLiteral for literal " + literal;
+			memLiteral = literalRegistry.getOrAdd(memLiteral);
 		}
 
 		return memLiteral;
 	}
 
-	public synchronized URI createURI(String uri) {
+	public URI createURI(String uri) {
 		URI tempURI = new URIImpl(uri);
 		return getOrCreateMemURI(tempURI);
 	}
 
-	public synchronized URI createURI(String namespace, String localName) {
+	public URI createURI(String namespace, String localName) {
 		URI tempURI = null;
 
 		// Reuse supplied namespace and local name strings if possible
@@ -364,60 +349,52 @@ public class MemValueFactory extends ValueFactoryBase {
 		return getOrCreateMemURI(tempURI);
 	}
 
-	public synchronized BNode createBNode(String nodeID) {
+	public BNode createBNode(String nodeID) {
 		BNode tempBNode = new BNodeImpl(nodeID);
 		return getOrCreateMemBNode(tempBNode);
 	}
 
-	public synchronized Literal createLiteral(String value) {
+	public Literal createLiteral(String value) {
 		Literal tempLiteral = new LiteralImpl(value);
 		return getOrCreateMemLiteral(tempLiteral);
 	}
 
-	public synchronized Literal createLiteral(String value, String language) {
+	public Literal createLiteral(String value, String language) {
 		Literal tempLiteral = new LiteralImpl(value, language);
 		return getOrCreateMemLiteral(tempLiteral);
 	}
 
-	public synchronized Literal createLiteral(String value, URI datatype) {
+	public Literal createLiteral(String value, URI datatype) {
 		Literal tempLiteral = new LiteralImpl(value, datatype);
 		return getOrCreateMemLiteral(tempLiteral);
 	}
 
 	@Override
-	public synchronized Literal createLiteral(boolean value) {
+	public Literal createLiteral(boolean value) {
 		MemLiteral newLiteral = new BooleanMemLiteral(this, value);
 		return getSharedLiteral(newLiteral);
 	}
 
 	@Override
-	protected synchronized Literal createIntegerLiteral(Number n, URI datatype) {
+	protected Literal createIntegerLiteral(Number n, URI datatype) {
 		MemLiteral newLiteral = new IntegerMemLiteral(this, BigInteger.valueOf(n.longValue()), datatype);
 		return getSharedLiteral(newLiteral);
 	}
 
 	@Override
-	protected synchronized Literal createFPLiteral(Number n, URI datatype) {
+	protected Literal createFPLiteral(Number n, URI datatype) {
 		MemLiteral newLiteral = new NumericMemLiteral(this, n, datatype);
 		return getSharedLiteral(newLiteral);
 	}
 
 	@Override
-	public synchronized Literal createLiteral(XMLGregorianCalendar calendar) {
+	public Literal createLiteral(XMLGregorianCalendar calendar) {
 		MemLiteral newLiteral = new CalendarMemLiteral(this, calendar);
 		return getSharedLiteral(newLiteral);
 	}
 
 	private Literal getSharedLiteral(MemLiteral newLiteral) {
-		MemLiteral sharedLiteral = literalRegistry.get(newLiteral);
-
-		if (sharedLiteral == null) {
-			boolean wasNew = literalRegistry.add(newLiteral);
-			assert wasNew : "Created a duplicate MemLiteral for literal " + newLiteral;
-			sharedLiteral = newLiteral;
-		}
-
-		return sharedLiteral;
+		return literalRegistry.getOrAdd(newLiteral);
 	}
 
 	public Statement createStatement(Resource subject, URI predicate, Value object) {
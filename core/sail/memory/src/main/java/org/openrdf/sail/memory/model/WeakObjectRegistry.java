@@ -5,12 +5,14 @@
  */
 package org.openrdf.sail.memory.model;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * An object registry that uses weak references to keep track of the stored
@@ -19,6 +21,11 @@ import java.util.WeakHashMap;
  * in another data structure, reducing memory usage. The objects that are being
  * stored should properly implement the {@link Object#equals} and
  * {@link Object#hashCode} methods.
+ * <p>
+ * The registry is thread-safe and does not block concurrent lookups and
+ * additions; use {@link #getOrAdd(Object)} to add an object unless an
+ * equivalent one has been added concurrently. Iterators are weakly
+ * consistent, like those of a {@link ConcurrentHashMap}.
  */
 public class WeakObjectRegistry<E> extends AbstractSet<E> {
 
@@ -27,9 +34,16 @@ public class WeakObjectRegistry<E> extends AbstractSet<E> {
 	 *-----------*/
 
 	/**
-	 * The hash map that is used to store the objects.
+	 * The hash map that is used to store the objects. Each weak reference is
+	 * stored as both key and value.
 	 */
-	private final Map<E, WeakReference<E>> objectMap = new WeakHashMap<E, WeakReference<E>>();
+	private final ConcurrentMap<Object, WeakKey<E>> objectMap = new ConcurrentHashMap<Object, WeakKey<E>>();
+
+	/**
+	 * The queue on which the references to garbage collected objects are
+	 * placed, so that they can be removed from {@link #objectMap}.
+	 */
+	private final ReferenceQueue<E> queue = new ReferenceQueue<E>();
 
 	/*--------------*
 	 * Constructors *
@@ -68,10 +82,15 @@ public class WeakObjectRegistry<E> extends AbstractSet<E> {
 	 * @param key
 	 *        The object that should be used as the search key for the operation.
 	 * @return A stored object that is equal to the supplied key, or
-	 *         <tt>null</tt> if no such object was found.
+	 *         <tt>null</tt> if no such object was found or if <tt>key</tt> is
+	 *         <tt>null</tt>.
 	 */
 	public E get(Object key) {
-		WeakReference<E> weakRef = objectMap.get(key);
+		if (key == null) {
+			return null;
+		}
+
+		WeakKey<E> weakRef = objectMap.get(new LookupKey(key));
 
 		if (weakRef != null) {
 			return weakRef.get();
@@ -80,15 +99,72 @@ public class WeakObjectRegistry<E> extends AbstractSet<E> {
 		return null;
 	}
 
+	/**
+	 * Retrieves the stored object that is equal to the supplied object, adding
+	 * the supplied object if there is no such object. This is an atomic
+	 * operation: when called concurrently with equal objects, all calls return
+	 * the same object.
+	 * 
+	 * @return The stored object that is equal to the supplied object, which is
+	 *         the supplied object itself if it has been added.
+	 */
+	public E getOrAdd(E object) {
+		expungeStaleEntries();
+
+		WeakKey<E> ref = new WeakKey<E>(object, queue);
+
+		while (true) {
+			WeakKey<E> existingRef = objectMap.putIfAbsent(ref, ref);
+
+			if (existingRef == null) {
+				return object;
+			}
+
+			E existing = existingRef.get();
+			if (existing != null) {
+				return existing;
+			}
+
+			// the existing object has just been garbage collected
+			objectMap.remove(existingRef, existingRef);
+		}
+	}
+
 	@Override
 	public Iterator<E> iterator()
 	{
-		return objectMap.keySet().iterator();
+		final Iterator<WeakKey<E>> refIter = objectMap.values().iterator();
+
+		return new Iterator<E>() {
+
+			private E next;
+
+			public boolean hasNext() {
+				while (next == null && refIter.hasNext()) {
+					next = refIter.next().get();
+				}
+				return next != null;
+			}
+
+			public E next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				E result = next;
+				next = null;
+				return result;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	@Override
 	public int size()
 	{
+		expungeStaleEntries();
 		return objectMap.size();
 	}
 
@@ -101,24 +177,17 @@ public class WeakObjectRegistry<E> extends AbstractSet<E> {
 	@Override
 	public boolean add(E object)
 	{
-		WeakReference<E> ref = new WeakReference<E>(object);
-
-		ref = objectMap.put(object, ref);
-
-		if (ref != null && ref.get() != null) {
-			// A duplicate was added which replaced the existing object. Undo this
-			// operation.
-			objectMap.put(ref.get(), ref);
-			return false;
-		}
-
-		return true;
+		return getOrAdd(object) == object;
 	}
 
 	@Override
 	public boolean remove(Object o)
 	{
-		WeakReference<E> ref = objectMap.remove(o);
+		if (o == null) {
+			return false;
+		}
+
+		WeakKey<E> ref = objectMap.remove(new LookupKey(o));
 		return ref != null && ref.get() != null;
 	}
 
@@ -126,5 +195,89 @@ public class WeakObjectRegistry<E> extends AbstractSet<E> {
 	public void clear()
 	{
 		objectMap.clear();
+		expungeStaleEntries();
+	}
+
+	/**
+	 * Removes the entries of the objects that have been garbage collected.
+	 */
+	private void expungeStaleEntries() {
+		Object ref;
+		while ((ref = queue.poll()) != null) {
+			objectMap.remove(ref, ref);
+		}
+	}
+
+	/*---------------*
+	 * Inner classes *
+	 *---------------*/
+
+	/**
+	 * A weak reference to a stored object, which is equal to the references to
+	 * and lookup keys for equal objects.
+	 */
+	private static class WeakKey<E> extends WeakReference<E> {
+
+		private final int hash;
+
+		public WeakKey(E object, ReferenceQueue<E> queue) {
+			super(object, queue);
+			this.hash = object.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+
+			Object object = get();
+			if (object == null) {
+				// garbage collected, only equal to itself
+				return false;
+			}
+
+			if (other instanceof WeakKey) {
+				return object.equals(((WeakKey<?>)other).get());
+			}
+			else if (other instanceof LookupKey) {
+				return object.equals(((LookupKey)other).object);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * A key for looking up the reference to an object that is equal to the
+	 * supplied one.
+	 */
+	private static class LookupKey {
+
+		private final Object object;
+
+		public LookupKey(Object object) {
+			this.object = object;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other instanceof WeakKey) {
+				return other.equals(this);
+			}
+			else if (other instanceof LookupKey) {
+				return object.equals(((LookupKey)other).object);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return object.hashCode();
+		}
 	}
 }
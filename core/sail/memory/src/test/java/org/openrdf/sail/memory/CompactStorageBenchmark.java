@@ -0,0 +1,92 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import junit.framework.TestCase;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.sail.SailConnection;
+
+/**
+ * Compares the heap that a store takes per statement with statements stored as
+ * objects and in compact storage mode.
+ */
+public class CompactStorageBenchmark extends TestCase {
+
+	private static final int STATEMENT_COUNT = 500000;
+
+	public void testHeapUsage()
+		throws Exception
+	{
+		double objectBytes = getBytesPerStatement(false);
+		double compactBytes = getBytesPerStatement(true);
+
+		System.out.println(STATEMENT_COUNT + " statements: " + Math.round(objectBytes)
+				+ " bytes per statement as objects, " + Math.round(compactBytes)
+				+ " bytes per statement in compact storage mode");
+	}
+
+	private double getBytesPerStatement(boolean compactStorage)
+		throws Exception
+	{
+		long before = getUsedMemory();
+
+		MemoryStore store = new MemoryStore();
+		store.setCompactStorage(compactStorage);
+		store.initialize();
+		try {
+			ValueFactory vf = ValueFactoryImpl.getInstance();
+
+			SailConnection con = store.getConnection();
+			try {
+				con.begin();
+				for (int i = 0; i < STATEMENT_COUNT; i++) {
+					URI subj = vf.createURI("http://example.org/s" + (i / 5));
+					switch (i % 5) {
+						case 0:
+							con.addStatement(subj, RDF.TYPE, vf.createURI("http://example.org/C" + (i % 50)));
+							break;
+						case 1:
+							con.addStatement(subj, vf.createURI("http://example.org/label"),
+									vf.createLiteral("label " + i));
+							break;
+						case 2:
+							con.addStatement(subj, vf.createURI("http://example.org/value"), vf.createLiteral(i));
+							break;
+						default:
+							con.addStatement(subj, vf.createURI("http://example.org/link" + (i % 5)),
+									vf.createURI("http://example.org/s" + (i * 7919L % (STATEMENT_COUNT / 5))));
+					}
+				}
+				con.commit();
+			}
+			finally {
+				con.close();
+			}
+
+			assertEquals(STATEMENT_COUNT, store.size());
+
+			return (double)(getUsedMemory() - before) / STATEMENT_COUNT;
+		}
+		finally {
+			store.shutDown();
+		}
+	}
+
+	private long getUsedMemory()
+		throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.FileUtil;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.sail.SailConnection;
+
+/**
+ * Compares the time it takes to read a data file with one and with multiple
+ * threads decoding its blocks and registering its values. Multiple threads can
+ * only be faster if at least as many processors are available.
+ */
+public class DataFileLoadBenchmark extends TestCase {
+
+	private static final int STATEMENT_COUNT = 1000000;
+
+	private static final int RUNS = 5;
+
+	private File dataDir;
+
+	private File dataFile;
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		dataDir = FileUtil.createTempDir("memorystore");
+		dataFile = new File(dataDir, "memorystore.data");
+
+		MemoryStore store = new MemoryStore();
+		store.initialize();
+		try {
+			ValueFactory vf = store.getValueFactory();
+
+			SailConnection con = store.getConnection();
+			try {
+				con.begin();
+				for (int i = 0; i < STATEMENT_COUNT; i++) {
+					URI subj = vf.createURI("http://example.org/s" + (i / 5));
+					switch (i % 5) {
+						case 0:
+							con.addStatement(subj, RDF.TYPE, vf.createURI("http://example.org/C" + (i % 50)));
+							break;
+						case 1:
+							con.addStatement(subj, vf.createURI("http://example.org/label"),
+									vf.createLiteral("label " + i));
+							break;
+						case 2:
+							con.addStatement(subj, vf.createURI("http://example.org/value"), vf.createLiteral(i));
+							break;
+						default:
+							con.addStatement(subj, vf.createURI("http://example.org/link" + (i % 5)),
+									vf.createURI("http://example.org/s" + (i * 7919L % (STATEMENT_COUNT / 5))));
+					}
+				}
+				con.commit();
+			}
+			finally {
+				con.close();
+			}
+
+			new FileIO(store).write(new File(dataDir, "memorystore.sync"), dataFile);
+		}
+		finally {
+			store.shutDown();
+		}
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		FileUtil.deleteDir(dataDir);
+	}
+
+	public void testLoad()
+		throws Exception
+	{
+		int processors = Runtime.getRuntime().availableProcessors();
+
+		// Warm up
+		read(1);
+		read(Math.max(2, processors));
+
+		long singleThreadTime = Long.MAX_VALUE;
+		long multiThreadTime = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			singleThreadTime = Math.min(singleThreadTime, read(1));
+			multiThreadTime = Math.min(multiThreadTime, read(Math.max(2, processors)));
+		}
+
+		System.out.println(STATEMENT_COUNT + " statements, " + processors + " processors: "
+				+ singleThreadTime + " ms with 1 thread, " + multiThreadTime + " ms with "
+				+ Math.max(2, processors) + " threads");
+	}
+
+	/**
+	 * Reads the data file into a new store.
+	 *
+	 * @return The time it took in milliseconds.
+	 */
+	private long read(int threads)
+		throws Exception
+	{
+		System.gc();
+
+		MemoryStore store = new MemoryStore();
+		store.initialize();
+		try {
+			FileIO fileIO = new FileIO(store);
+			fileIO.setReaderThreads(threads);
+
+			long startTime = System.currentTimeMillis();
+			fileIO.read(dataFile);
+			long endTime = System.currentTimeMillis();
+
+			assertEquals(STATEMENT_COUNT, store.size());
+
+			return endTime - startTime;
+		}
+		finally {
+			store.shutDown();
+		}
+	}
+}
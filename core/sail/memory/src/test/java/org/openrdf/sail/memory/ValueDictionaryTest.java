@@ -0,0 +1,119 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory;
+
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+/**
+ * Unit tests for class {@link ValueDictionary}.
+ */
+public class ValueDictionaryTest extends TestCase {
+
+	private final Value[] values = {
+			new URIImpl("http://example.org/ns#local"),
+			new URIImpl("http://example.org/ns#"),
+			new URIImpl("urn:isbn:0451450523"),
+			new BNodeImpl("node1"),
+			new LiteralImpl("plain"),
+			new LiteralImpl(""),
+			new LiteralImpl("label", "en"),
+			new LiteralImpl("42", XMLSchema.INT),
+			new LiteralImpl("\u00e9\u4e2d\ud834\udd1e\u0000"),
+			new LiteralImpl("\ud834"),
+			new LiteralImpl(repeat("large value ", ValueDictionary.PAGE_SIZE / 64)) };
+
+	public void testGetOrAddID() {
+		ValueDictionary dictionary = new ValueDictionary();
+
+		int[] ids = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ids[i] = dictionary.getOrAddID(values[i]);
+			assertEquals(i + 1, ids[i]);
+		}
+
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(ids[i], dictionary.getOrAddID(values[i]));
+			assertEquals(ids[i], dictionary.getID(values[i]));
+			assertEquals(values[i], dictionary.getValue(ids[i]));
+			assertEquals(ids[i], dictionary.getID(dictionary.getValue(ids[i])));
+		}
+
+		assertEquals(values.length + 1, dictionary.size());
+		assertNull(dictionary.getValue(0));
+		assertEquals(0, dictionary.getID(new URIImpl("http://example.org/ns#other")));
+		assertEquals(0, dictionary.getID(new URIImpl("http://example.org/other#local")));
+		assertEquals(0, dictionary.getID(new LiteralImpl("label", "fr")));
+		assertEquals(0, dictionary.getID(new LiteralImpl("label")));
+	}
+
+	public void testManyValues() {
+		ValueDictionary dictionary = new ValueDictionary();
+
+		// enough to fill several pages and rehash the table a number of times
+		int count = 200000;
+		for (int i = 0; i < count; i++) {
+			assertEquals(i + 1, dictionary.getOrAddID(new URIImpl("http://example.org/ns" + (i % 7) + "#" + i)));
+		}
+
+		for (int i = 0; i < count; i += 97) {
+			URIImpl uri = new URIImpl("http://example.org/ns" + (i % 7) + "#" + i);
+			assertEquals(i + 1, dictionary.getID(uri));
+			assertEquals(uri, dictionary.getValue(i + 1));
+		}
+	}
+
+	public void testCompact() {
+		ValueDictionary dictionary = new ValueDictionary();
+		for (Value value : values) {
+			dictionary.getOrAddID(value);
+		}
+
+		BitSet live = new BitSet();
+		for (int id = 1; id <= values.length; id += 2) {
+			live.set(id);
+		}
+
+		int[] idMap = new int[dictionary.size()];
+		ValueDictionary compacted = dictionary.compact(live, idMap);
+
+		assertEquals(live.cardinality() + 1, compacted.size());
+
+		int previousID = 0;
+		for (int id = 1; id <= values.length; id++) {
+			Value value = values[id - 1];
+			if (live.get(id)) {
+				assertTrue(idMap[id] > previousID);
+				previousID = idMap[id];
+				assertEquals(idMap[id], compacted.getID(value));
+				assertEquals(value, compacted.getValue(idMap[id]));
+			}
+			else {
+				assertEquals(0, compacted.getID(value));
+			}
+		}
+
+		// the original dictionary is not modified
+		for (int id = 1; id <= values.length; id++) {
+			assertEquals(values[id - 1], dictionary.getValue(id));
+		}
+	}
+
+	private static String repeat(String s, int count) {
+		StringBuilder sb = new StringBuilder(s.length() * count);
+		for (int i = 0; i < count; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+}
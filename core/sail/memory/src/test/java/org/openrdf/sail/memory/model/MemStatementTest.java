@@ -0,0 +1,97 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory.model;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for class {@link MemStatement}.
+ */
+public class MemStatementTest extends TestCase {
+
+	/**
+	 * Verifies that the explicit flag and the transaction status, which share a
+	 * single field, can be updated independently.
+	 */
+	public void testExplicitAndTxnStatus()
+		throws Exception
+	{
+		MemURI uri = new MemURI(this, "urn:", "x");
+
+		for (TxnStatus txnStatus : TxnStatus.values()) {
+			for (boolean explicit : new boolean[] { true, false }) {
+				MemStatement st = new MemStatement(uri, uri, uri, null, explicit, 1, txnStatus);
+				assertEquals(explicit, st.isExplicit());
+				assertEquals(txnStatus, st.getTxnStatus());
+
+				for (TxnStatus newStatus : TxnStatus.values()) {
+					st.setTxnStatus(newStatus);
+					assertEquals(explicit, st.isExplicit());
+					assertEquals(newStatus, st.getTxnStatus());
+				}
+
+				st.setExplicit(!explicit);
+				assertEquals(!explicit, st.isExplicit());
+				assertEquals(TxnStatus.ZOMBIE, st.getTxnStatus());
+			}
+		}
+	}
+
+	public void testTrimStatementList()
+		throws Exception
+	{
+		MemURI uri = new MemURI(this, "urn:", "x");
+		MemStatementList list = new MemStatementList(16);
+
+		for (int i = 1; i <= 10; i++) {
+			MemStatement st = new MemStatement(uri, uri, uri, null, true, i);
+			st.setTillSnapshot(i < 10 ? 5 : Integer.MAX_VALUE);
+			list.add(st);
+		}
+
+		list.trimToSize();
+		assertEquals(10, list.size());
+
+		list.cleanSnapshots(5);
+		assertEquals(1, list.size());
+		assertEquals(10, list.get(0).getSinceSnapshot());
+
+		list.add(new MemStatement(uri, uri, uri, null, true, 11));
+		assertEquals(2, list.size());
+	}
+
+	/**
+	 * Verifies that an iterator that has started before a statement list is
+	 * cleaned still returns the statements of its snapshot.
+	 */
+	public void testIterateDuringClean()
+		throws Exception
+	{
+		MemURI uri = new MemURI(this, "urn:", "x");
+		MemStatementList list = new MemStatementList();
+
+		for (int i = 0; i < 100; i++) {
+			MemStatement st = new MemStatement(uri, uri, uri, null, true, 1);
+			st.setTillSnapshot(i % 3 == 0 ? Integer.MAX_VALUE : 5);
+			list.add(st);
+		}
+
+		MemStatementIterator<Exception> iter = new MemStatementIterator<Exception>(list, null, null, null,
+				false, 4, ReadMode.COMMITTED);
+		assertTrue(iter.hasNext());
+
+		list.cleanSnapshots(5);
+		assertEquals(34, list.size());
+
+		int count = 1;
+		iter.next();
+		while (iter.hasNext()) {
+			iter.next();
+			count++;
+		}
+		assertEquals(100, count);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.memory.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+
+/**
+ * Unit tests for class {@link WeakObjectRegistry}.
+ */
+public class WeakObjectRegistryTest extends TestCase {
+
+	public void testGetOrAdd()
+		throws Exception
+	{
+		WeakObjectRegistry<String> registry = new WeakObjectRegistry<String>();
+
+		String first = new String("abc");
+		String second = new String("abc");
+
+		assertNull(registry.get("abc"));
+		assertSame(first, registry.getOrAdd(first));
+		assertSame(first, registry.getOrAdd(second));
+		assertSame(first, registry.get(second));
+		assertFalse(registry.add(second));
+
+		assertEquals(1, registry.size());
+		assertTrue(registry.contains("abc"));
+		assertSame(first, registry.iterator().next());
+
+		assertTrue(registry.remove("abc"));
+		assertNull(registry.get("abc"));
+		assertEquals(0, registry.size());
+	}
+
+	/**
+	 * Verifies that threads that create the same values concurrently all get
+	 * the same objects.
+	 */
+	public void testConcurrentValueCreation()
+		throws Exception
+	{
+		final MemValueFactory valueFactory = new MemValueFactory();
+		final int valueCount = 10000;
+
+		List<Callable<URI[]>> tasks = new ArrayList<Callable<URI[]>>();
+		for (int t = 0; t < 4; t++) {
+			tasks.add(new Callable<URI[]>() {
+
+				public URI[] call() {
+					URI[] uris = new URI[valueCount];
+					for (int i = 0; i < valueCount; i++) {
+						uris[i] = valueFactory.createURI("urn:ns" + (i % 10) + "#" + i);
+					}
+					return uris;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<Future<URI[]>> futures = executor.invokeAll(tasks);
+			URI[] expected = futures.get(0).get();
+
+			for (Future<URI[]> future : futures) {
+				URI[] uris = future.get();
+				for (int i = 0; i < valueCount; i++) {
+					assertSame(expected[i], uris[i]);
+				}
+			}
+
+			assertEquals(valueCount, valueFactory.getMemURIs().size());
+			assertSame(expected[5], valueFactory.getMemURI(new URIImpl("urn:ns5#5")));
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
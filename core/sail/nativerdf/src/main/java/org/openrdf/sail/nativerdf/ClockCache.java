@@ -0,0 +1,314 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.util.Arrays;
+
+/**
+ * Base class for the fixed-size caches of {@link ValueStore}. The cached
+ * entries are spread over a number of segments, each guarded by its own lock,
+ * so that concurrent readers rarely contend with each other. Each segment
+ * stores its entries in plain arrays that are indexed by an
+ * open-addressing hash table of <tt>int</tt>s and evicts entries using the
+ * CLOCK algorithm: every entry has a reference bit that is set when the entry
+ * is accessed, and the clock hand evicts the first entry it encounters whose
+ * bit is not set, clearing the bits it passes along the way.
+ */
+abstract class ClockCache {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	/**
+	 * The maximum number of segments of a cache.
+	 */
+	private static final int MAX_SEGMENTS = 16;
+
+	/**
+	 * The minimum number of entries per segment, used to limit the number of
+	 * segments of small caches.
+	 */
+	private static final int MIN_SEGMENT_CAPACITY = 8;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final int capacity;
+
+	/**
+	 * The number of hash bits that are used to select a segment.
+	 */
+	private final int segmentBits;
+
+	protected final Segment[] segments;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	protected ClockCache(int capacity) {
+		this.capacity = Math.max(0, capacity);
+
+		int segmentCount = Math.min(MAX_SEGMENTS,
+				Integer.highestOneBit(Math.max(1, this.capacity / MIN_SEGMENT_CAPACITY)));
+		segmentBits = Integer.numberOfTrailingZeros(segmentCount);
+
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			// Spread the remainder over the first segments
+			int segmentCapacity = this.capacity / segmentCount + (i < this.capacity % segmentCount ? 1 : 0);
+			segments[i] = createSegment(segmentCapacity);
+		}
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	protected abstract Segment createSegment(int capacity);
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of entries that are currently cached.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the number of lookups that were answered from the cache.
+	 */
+	public long getHitCount() {
+		long hitCount = 0L;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				hitCount += segment.hitCount;
+			}
+		}
+		return hitCount;
+	}
+
+	/**
+	 * Gets the number of lookups that could not be answered from the cache.
+	 */
+	public long getMissCount() {
+		long missCount = 0L;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				missCount += segment.missCount;
+			}
+		}
+		return missCount;
+	}
+
+	/**
+	 * Removes all entries from the cache. The hit and miss counts are retained.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Spreads the bits of the supplied hash code so that both the segment
+	 * selection and the table index within a segment get well-distributed
+	 * values.
+	 */
+	protected static int hash(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	protected final Segment segmentFor(int hash) {
+		if (segmentBits == 0) {
+			return segments[0];
+		}
+		return segments[hash >>> (32 - segmentBits)];
+	}
+
+	@Override
+	public String toString() {
+		long hitCount = getHitCount();
+		long missCount = getMissCount();
+		long lookups = hitCount + missCount;
+
+		StringBuilder sb = new StringBuilder(64);
+		sb.append(getClass().getSimpleName());
+		sb.append("[size=").append(size()).append('/').append(capacity);
+		sb.append(", hits=").append(hitCount);
+		sb.append(", misses=").append(missCount);
+		if (lookups > 0L) {
+			sb.append(", hitRatio=").append(hitCount * 100L / lookups).append('%');
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+
+	/*---------------------*
+	 * Inner class Segment *
+	 *---------------------*/
+
+	/**
+	 * A segment of a cache. Entries are stored in slots <tt>0..size-1</tt> of
+	 * the entry arrays; the hash table maps hash codes to these slots. All
+	 * methods must be called while holding the segment's lock.
+	 */
+	protected static abstract class Segment {
+
+		protected final int capacity;
+
+		/**
+		 * Open-addressing hash table containing entry slot numbers plus one, a
+		 * value of <tt>0</tt> indicates an empty table position.
+		 */
+		protected final int[] table;
+
+		protected final int mask;
+
+		/**
+		 * The (spread) hash codes of the entries.
+		 */
+		protected final int[] hashes;
+
+		protected final boolean[] referenced;
+
+		protected int size;
+
+		/**
+		 * The entry slot that the clock hand is currently pointing at.
+		 */
+		private int hand;
+
+		protected long hitCount;
+
+		protected long missCount;
+
+		protected Segment(int capacity) {
+			this.capacity = capacity;
+
+			// Keep the table at most half full
+			int tableSize = Integer.highestOneBit(Math.max(1, capacity) * 4 - 1);
+			table = new int[tableSize];
+			mask = tableSize - 1;
+
+			hashes = new int[capacity];
+			referenced = new boolean[capacity];
+		}
+
+		/**
+		 * Returns a slot for a new entry with the specified hash code, evicting
+		 * another entry if the segment is full, and adds it to the hash table.
+		 * The caller is responsible for storing the entry's key and value in the
+		 * slot.
+		 * 
+		 * @return The slot for the new entry, or <tt>-1</tt> if the segment has
+		 *         no capacity.
+		 */
+		protected final int allocate(int hash) {
+			int slot;
+			if (capacity == 0) {
+				return -1;
+			}
+			else if (size < capacity) {
+				slot = size++;
+			}
+			else {
+				slot = evict();
+			}
+
+			hashes[slot] = hash;
+			referenced[slot] = false;
+
+			int i = hash & mask;
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = slot + 1;
+
+			return slot;
+		}
+
+		/**
+		 * Advances the clock hand to the first entry that has not been
+		 * referenced since the hand last passed it and removes that entry from
+		 * the hash table.
+		 */
+		private int evict() {
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) % capacity;
+			}
+
+			int victim = hand;
+			hand = (hand + 1) % capacity;
+
+			removeFromTable(victim);
+			release(victim);
+
+			return victim;
+		}
+
+		/**
+		 * Removes the table position for the specified slot, shifting back
+		 * subsequent entries of the same probe sequence to close the gap.
+		 */
+		private void removeFromTable(int slot) {
+			int i = hashes[slot] & mask;
+			while (table[i] != slot + 1) {
+				i = (i + 1) & mask;
+			}
+
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+
+				int entry = table[j];
+				if (entry == 0) {
+					break;
+				}
+
+				int home = hashes[entry - 1] & mask;
+
+				// Move the entry if its home position is not in (i, j]
+				boolean inRange = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+				if (!inRange) {
+					table[i] = entry;
+					i = j;
+				}
+			}
+
+			table[i] = 0;
+		}
+
+		/**
+		 * Releases any object references that are held by the specified slot.
+		 */
+		protected abstract void release(int slot);
+
+		protected void clear() {
+			for (int i = 0; i < size; i++) {
+				release(i);
+			}
+			Arrays.fill(table, 0);
+			size = 0;
+			hand = 0;
+		}
+	}
+}
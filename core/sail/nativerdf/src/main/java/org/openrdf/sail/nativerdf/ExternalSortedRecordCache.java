@@ -0,0 +1,269 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.openrdf.sail.nativerdf.btree.RecordComparator;
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
+
+/**
+ * A cache for fixed size byte array records that returns the records in sorted
+ * order, skipping duplicates. Records are collected in memory and spilled to
+ * temporary files as sorted runs once a configurable number of records has been
+ * collected. The runs are merged when the records are requested. Contrary to
+ * {@link SortedRecordCache}, storing records only involves sequential file
+ * access, which makes this cache well suited for sorting large numbers of
+ * records. The temporary files are deleted upon calling {@link #discard()}.
+ */
+final class ExternalSortedRecordCache extends RecordCache {
+
+	/*------------*
+	 * Attributes *
+	 *------------*/
+
+	private final File cacheDir;
+
+	private final int recordSize;
+
+	private final int runSize;
+
+	private final Comparator<byte[]> comparator;
+
+	/**
+	 * The records that have not yet been spilled to a run.
+	 */
+	private final List<byte[]> buffer;
+
+	/**
+	 * Sorted runs of records that have been spilled to disk.
+	 */
+	private final List<RecordCache> runs = new ArrayList<RecordCache>();
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	public ExternalSortedRecordCache(File cacheDir, int recordSize, int runSize,
+			final RecordComparator recordComparator)
+		throws IOException
+	{
+		super(Long.MAX_VALUE);
+
+		if (runSize < 1) {
+			throw new IllegalArgumentException("runSize must be positive, is: " + runSize);
+		}
+
+		this.cacheDir = cacheDir;
+		this.recordSize = recordSize;
+		this.runSize = runSize;
+		this.buffer = new ArrayList<byte[]>(Math.min(runSize, 1024));
+
+		comparator = new Comparator<byte[]>() {
+
+			public int compare(byte[] record1, byte[] record2) {
+				return recordComparator.compareBTreeValues(record1, record2, 0, record2.length);
+			}
+		};
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	@Override
+	protected void storeRecordInternal(byte[] data)
+		throws IOException
+	{
+		buffer.add(data.clone());
+
+		if (buffer.size() >= runSize) {
+			spillBuffer();
+		}
+	}
+
+	/**
+	 * Sorts the buffered records and writes them to a new run.
+	 */
+	private void spillBuffer()
+		throws IOException
+	{
+		Collections.sort(buffer, comparator);
+
+		RecordCache run = new SequentialRecordCache(cacheDir, recordSize);
+		runs.add(run);
+
+		for (byte[] record : buffer) {
+			run.storeRecord(record);
+		}
+
+		buffer.clear();
+	}
+
+	@Override
+	protected RecordIterator getRecordsInternal() {
+		// Merge the spilled runs with the records that are still in memory
+		Collections.sort(buffer, comparator);
+
+		List<RecordIterator> iters = new ArrayList<RecordIterator>(runs.size() + 1);
+		for (RecordCache run : runs) {
+			iters.add(run.getRecords());
+		}
+		iters.add(new BufferIterator(buffer));
+
+		return new MergeIterator(iters);
+	}
+
+	@Override
+	protected void clearInternal()
+		throws IOException
+	{
+		buffer.clear();
+		discardRuns();
+	}
+
+	@Override
+	public void discard()
+		throws IOException
+	{
+		buffer.clear();
+		discardRuns();
+	}
+
+	private void discardRuns()
+		throws IOException
+	{
+		try {
+			for (RecordCache run : runs) {
+				run.discard();
+			}
+		}
+		finally {
+			runs.clear();
+		}
+	}
+
+	/*----------------------------*
+	 * Inner class BufferIterator *
+	 *----------------------------*/
+
+	private static class BufferIterator implements RecordIterator {
+
+		private final List<byte[]> records;
+
+		private int index;
+
+		public BufferIterator(List<byte[]> records) {
+			this.records = records;
+		}
+
+		public byte[] next() {
+			if (index < records.size()) {
+				return records.get(index++);
+			}
+			return null;
+		}
+
+		public void set(byte[] record) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() {
+		}
+	}
+
+	/*---------------------------*
+	 * Inner class MergeIterator *
+	 *---------------------------*/
+
+	/**
+	 * Merges a number of sorted record iterators, skipping duplicate records.
+	 */
+	private class MergeIterator implements RecordIterator {
+
+		private final List<RecordIterator> iters;
+
+		private final PriorityQueue<RunHead> heads;
+
+		private boolean initialized;
+
+		private byte[] previous;
+
+		public MergeIterator(List<RecordIterator> iters) {
+			this.iters = iters;
+			this.heads = new PriorityQueue<RunHead>(iters.size());
+		}
+
+		public byte[] next()
+			throws IOException
+		{
+			if (!initialized) {
+				for (RecordIterator iter : iters) {
+					byte[] record = iter.next();
+					if (record != null) {
+						heads.add(new RunHead(record, iter));
+					}
+				}
+				initialized = true;
+			}
+
+			RunHead head;
+			while ((head = heads.poll()) != null) {
+				byte[] record = head.record;
+
+				head.record = head.iter.next();
+				if (head.record != null) {
+					heads.add(head);
+				}
+
+				if (previous == null || comparator.compare(previous, record) != 0) {
+					previous = record;
+					return record;
+				}
+			}
+
+			return null;
+		}
+
+		public void set(byte[] record) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close()
+			throws IOException
+		{
+			heads.clear();
+			for (RecordIterator iter : iters) {
+				iter.close();
+			}
+		}
+	}
+
+	/**
+	 * The next record of a run, ordered by that record.
+	 */
+	private class RunHead implements Comparable<RunHead> {
+
+		private byte[] record;
+
+		private final RecordIterator iter;
+
+		public RunHead(byte[] record, RecordIterator iter) {
+			this.record = record;
+			this.iter = iter;
+		}
+
+		public int compareTo(RunHead other) {
+			return comparator.compare(record, other.record);
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.BindingImpl;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.sail.nativerdf.model.NativeValue;
+
+/**
+ * A {@link BindingSet} that stores the values of its own bindings as value IDs
+ * of a {@link ValueStore}. The actual values are only read from the value
+ * store when they are requested. Bindings from the parent binding set that was
+ * supplied to the evaluation are passed through unchanged.
+ */
+class IDBindingSet implements BindingSet {
+
+	private static final long serialVersionUID = 7205460251394718052L;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final transient ValueStore valueStore;
+
+	private final BindingSet parent;
+
+	private final String[] names;
+
+	/**
+	 * The value IDs of the bindings, {@link NativeValue#UNKNOWN_ID} for unbound
+	 * names.
+	 */
+	private final int[] ids;
+
+	/**
+	 * The values of the bindings that have been resolved so far.
+	 */
+	private final Value[] values;
+
+	/**
+	 * The names of the bindings that are visible, or <tt>null</tt> if all
+	 * bindings are visible.
+	 */
+	private final Set<String> scope;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new binding set.
+	 * 
+	 * @param valueStore
+	 *        The value store to resolve the value IDs with.
+	 * @param parent
+	 *        The parent bindings, which take precedence over the bindings for
+	 *        the same names in <tt>names</tt>.
+	 * @param names
+	 *        The names of the ID-based bindings.
+	 * @param ids
+	 *        The value IDs of the bindings. The array is not copied.
+	 * @param scope
+	 *        The names of the bindings that are visible, or <tt>null</tt> if
+	 *        all bindings are visible.
+	 */
+	public IDBindingSet(ValueStore valueStore, BindingSet parent, String[] names, int[] ids,
+			Set<String> scope)
+	{
+		this.valueStore = valueStore;
+		this.parent = parent;
+		this.names = names;
+		this.ids = ids;
+		this.values = new Value[ids.length];
+		this.scope = scope;
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	public ValueStore getValueStore() {
+		return valueStore;
+	}
+
+	/**
+	 * Gets the value ID of the binding with the specified name, if that binding
+	 * is stored as an ID.
+	 * 
+	 * @return The value ID, or {@link NativeValue#UNKNOWN_ID} if this binding
+	 *         set has no ID for the binding.
+	 */
+	public int getID(String bindingName) {
+		if (!isVisible(bindingName)) {
+			return NativeValue.UNKNOWN_ID;
+		}
+
+		if (parent instanceof IDBindingSet && ((IDBindingSet)parent).valueStore == valueStore) {
+			int id = ((IDBindingSet)parent).getID(bindingName);
+			if (id != NativeValue.UNKNOWN_ID) {
+				return id;
+			}
+		}
+
+		if (parent.hasBinding(bindingName)) {
+			return NativeValue.UNKNOWN_ID;
+		}
+
+		int idx = indexOf(bindingName);
+		return idx == -1 ? NativeValue.UNKNOWN_ID : ids[idx];
+	}
+
+	public Set<String> getBindingNames() {
+		Set<String> bindingNames = new LinkedHashSet<String>();
+
+		for (String name : parent.getBindingNames()) {
+			if (isVisible(name)) {
+				bindingNames.add(name);
+			}
+		}
+
+		for (int i = 0; i < names.length; i++) {
+			if (ids[i] != NativeValue.UNKNOWN_ID && isVisible(names[i])) {
+				bindingNames.add(names[i]);
+			}
+		}
+
+		return bindingNames;
+	}
+
+	public Value getValue(String bindingName) {
+		if (!isVisible(bindingName)) {
+			return null;
+		}
+
+		Value value = parent.getValue(bindingName);
+
+		if (value == null) {
+			int idx = indexOf(bindingName);
+			if (idx != -1) {
+				value = getValue(idx);
+			}
+		}
+
+		return value;
+	}
+
+	private Value getValue(int idx) {
+		Value value = values[idx];
+
+		if (value == null && ids[idx] != NativeValue.UNKNOWN_ID) {
+			try {
+				value = valueStore.getValue(ids[idx]);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Unable to read value for ID " + ids[idx], e);
+			}
+
+			values[idx] = value;
+		}
+
+		return value;
+	}
+
+	public Binding getBinding(String bindingName) {
+		Value value = getValue(bindingName);
+
+		if (value != null) {
+			return new BindingImpl(bindingName, value);
+		}
+
+		return null;
+	}
+
+	public boolean hasBinding(String bindingName) {
+		if (!isVisible(bindingName)) {
+			return false;
+		}
+
+		if (parent.hasBinding(bindingName)) {
+			return true;
+		}
+
+		int idx = indexOf(bindingName);
+		return idx != -1 && ids[idx] != NativeValue.UNKNOWN_ID;
+	}
+
+	public Iterator<Binding> iterator() {
+		Set<String> bindingNames = getBindingNames();
+		List<Binding> bindings = new ArrayList<Binding>(bindingNames.size());
+
+		for (String name : bindingNames) {
+			bindings.add(getBinding(name));
+		}
+
+		return bindings.iterator();
+	}
+
+	public int size() {
+		return getBindingNames().size();
+	}
+
+	private int indexOf(String bindingName) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(bindingName)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isVisible(String bindingName) {
+		return scope == null || scope.contains(bindingName);
+	}
+
+	/**
+	 * Creates a copy of this binding set in which all values have been
+	 * resolved.
+	 */
+	public BindingSet materialize() {
+		MapBindingSet result = new MapBindingSet(names.length + parent.size());
+
+		for (Binding binding : this) {
+			result.addBinding(binding);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Serializes a materialized copy of this binding set, as the value store
+	 * can not be serialized.
+	 */
+	private Object writeReplace() {
+		return materialize();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+
+		if (other instanceof BindingSet) {
+			int otherSize = 0;
+
+			// Compare other's bindings to own
+			for (Binding binding : (BindingSet)other) {
+				Value ownValue = getValue(binding.getName());
+
+				if (!binding.getValue().equals(ownValue)) {
+					// Unequal bindings for this name
+					return false;
+				}
+
+				otherSize++;
+			}
+
+			// All bindings have been matched, sets are equal if this binding set
+			// doesn't have any additional bindings.
+			return otherSize == size();
+		}
+
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		int hashCode = 0;
+
+		for (Binding binding : this) {
+			hashCode ^= binding.hashCode();
+		}
+
+		return hashCode;
+	}
+
+	@Override
+	public String toString() {
+		return materialize().toString();
+	}
+}
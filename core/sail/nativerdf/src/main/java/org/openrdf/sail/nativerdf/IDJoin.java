@@ -0,0 +1,1312 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import info.aduna.io.ByteArrayUtil;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.EmptyIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.SESAME;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.Not;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.QueryModelVisitor;
+import org.openrdf.query.algebra.SameTerm;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.StatementPattern.Scope;
+import org.openrdf.query.algebra.SubQueryValueOperator;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.ValueExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
+import org.openrdf.query.algebra.evaluation.impl.ExternalSet;
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
+import org.openrdf.sail.nativerdf.model.NativeValue;
+
+/**
+ * Evaluates a tree of joins and filters over statement patterns on the value
+ * IDs of a native store. The statement patterns are evaluated as nested loops
+ * in the order of the original tree, looking up matching triples in the
+ * triple store with the IDs that have been bound so far. The results are
+ * {@link IDBindingSet}s, which only read their values from the value store
+ * when requested. Filters are evaluated on lazy binding sets as well, and
+ * <tt>sameTerm</tt> comparisons between variables and constants are evaluated
+ * on the IDs directly.
+ * <p>
+ * If the results are projected and filtered for duplicates, the duplicates can
+ * be removed by this node, comparing the IDs of the projected bindings rather
+ * than their values.
+ * <p>
+ * If the first two statement patterns share a variable, they can be evaluated
+ * as a merge join instead: both patterns are then read with a single scan over
+ * an index that is sorted on the shared variable, rather than looking up the
+ * matches of the second pattern for every match of the first one. If the
+ * shared variable is bound when the node is evaluated, or if the indexes do
+ * not supply the required sort orders, the patterns are evaluated as nested
+ * loops.
+ */
+class IDJoin extends ExternalSet {
+
+	private static final long serialVersionUID = -3340406470524437383L;
+
+	/**
+	 * The offsets of the subject, predicate, object and context IDs in triple
+	 * records.
+	 */
+	private static final int[] FIELD_IDX = {
+			TripleStore.SUBJ_IDX,
+			TripleStore.PRED_IDX,
+			TripleStore.OBJ_IDX,
+			TripleStore.CONTEXT_IDX };
+
+	/**
+	 * The names of the subject, predicate, object and context fields in
+	 * triple indexes.
+	 */
+	private static final char[] FIELD_NAMES = { 's', 'p', 'o', 'c' };
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	/**
+	 * The tuple expression that is evaluated by this node.
+	 */
+	private final TupleExpr expr;
+
+	private final NativeTripleSource tripleSource;
+
+	private final EvaluationStrategy strategy;
+
+	private final Dataset dataset;
+
+	/**
+	 * The names of the variables of the statement patterns.
+	 */
+	private final String[] names;
+
+	/**
+	 * The values of the constant variables, indexed like {@link #names}.
+	 */
+	private final Value[] constants;
+
+	private final Step[] steps;
+
+	/**
+	 * The indexes of the variables that duplicates are filtered on, or
+	 * <tt>null</tt> if duplicates should not be filtered.
+	 */
+	private int[] distinctVars;
+
+	/**
+	 * The step that evaluates the first two statement patterns as a merge
+	 * join, or <tt>null</tt> if these are evaluated as nested loops.
+	 */
+	private MergeStep mergeStep;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	public IDJoin(TupleExpr expr, NativeTripleSource tripleSource, EvaluationStrategy strategy,
+			Dataset dataset)
+	{
+		this.expr = expr;
+		this.tripleSource = tripleSource;
+		this.strategy = strategy;
+		this.dataset = dataset;
+
+		List<String> nameList = new ArrayList<String>();
+		List<Value> constantList = new ArrayList<Value>();
+		List<Step> stepList = new ArrayList<Step>();
+		addSteps(expr, nameList, constantList, stepList);
+
+		names = nameList.toArray(new String[nameList.size()]);
+		constants = constantList.toArray(new Value[constantList.size()]);
+		steps = stepList.toArray(new Step[stepList.size()]);
+
+		expr.setParentNode(this);
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Checks whether the supplied tuple expression can be evaluated by an
+	 * IDJoin, i.e. whether it only consists of nested loop joins, filters and
+	 * statement patterns.
+	 */
+	public static boolean isSupported(TupleExpr expr) {
+		if (expr instanceof StatementPattern) {
+			return true;
+		}
+		else if (expr instanceof Join) {
+			Join join = (Join)expr;
+			return !join.isHashJoin() && isSupported(join.getLeftArg()) && isSupported(join.getRightArg());
+		}
+		else if (expr instanceof Filter) {
+			return isSupported(((Filter)expr).getArg());
+		}
+		return false;
+	}
+
+	private void addSteps(TupleExpr expr, List<String> nameList, List<Value> constantList,
+			List<Step> stepList)
+	{
+		if (expr instanceof StatementPattern) {
+			StatementPattern sp = (StatementPattern)expr;
+			int subjVar = addVar(sp.getSubjectVar(), nameList, constantList);
+			int predVar = addVar(sp.getPredicateVar(), nameList, constantList);
+			int objVar = addVar(sp.getObjectVar(), nameList, constantList);
+			int contextVar = addVar(sp.getContextVar(), nameList, constantList);
+			stepList.add(new PatternStep(sp, subjVar, predVar, objVar, contextVar));
+		}
+		else if (expr instanceof Join) {
+			Join join = (Join)expr;
+			addSteps(join.getLeftArg(), nameList, constantList, stepList);
+			addSteps(join.getRightArg(), nameList, constantList, stepList);
+		}
+		else if (expr instanceof Filter) {
+			Filter filter = (Filter)expr;
+			addSteps(filter.getArg(), nameList, constantList, stepList);
+			stepList.add(new FilterStep(filter, nameList));
+		}
+		else {
+			throw new IllegalArgumentException("Unsupported tuple expression: " + expr.getClass());
+		}
+	}
+
+	private int addVar(Var var, List<String> nameList, List<Value> constantList) {
+		if (var == null) {
+			return -1;
+		}
+
+		int idx = nameList.indexOf(var.getName());
+		if (idx == -1) {
+			idx = nameList.size();
+			nameList.add(var.getName());
+			constantList.add(null);
+		}
+
+		if (var.hasValue()) {
+			constantList.set(idx, var.getValue());
+		}
+
+		return idx;
+	}
+
+	/**
+	 * Lets this node filter duplicate results, comparing the bindings with the
+	 * specified names. Bindings with other names are ignored, which is only
+	 * correct if these are removed by a projection.
+	 */
+	public void setDistinct(Set<String> bindingNames) {
+		List<Integer> varList = new ArrayList<Integer>();
+		for (int i = 0; i < names.length; i++) {
+			if (bindingNames.contains(names[i])) {
+				varList.add(i);
+			}
+		}
+
+		distinctVars = new int[varList.size()];
+		for (int i = 0; i < distinctVars.length; i++) {
+			distinctVars[i] = varList.get(i);
+		}
+	}
+
+	public boolean isDistinct() {
+		return distinctVars != null;
+	}
+
+	/**
+	 * Gets the first two statement patterns of the evaluated expression, if
+	 * these are joined directly and can be evaluated as a merge join.
+	 * 
+	 * @return The two statement patterns, or <tt>null</tt> if the expression
+	 *         does not start with two statement patterns.
+	 */
+	public StatementPattern[] getLeadingPatterns() {
+		if (steps.length >= 2 && steps[0] instanceof PatternStep && steps[1] instanceof PatternStep) {
+			return new StatementPattern[] {
+					((PatternStep)steps[0]).pattern,
+					((PatternStep)steps[1]).pattern };
+		}
+		return null;
+	}
+
+	/**
+	 * Lets this node evaluate the first two statement patterns as a merge join
+	 * on the variable with the specified name.
+	 * 
+	 * @throws IllegalArgumentException
+	 *         If the first two statement patterns do not share the specified
+	 *         variable.
+	 */
+	public void setMergeJoin(String bindingName) {
+		if (getLeadingPatterns() == null) {
+			throw new IllegalArgumentException("Expression does not start with two statement patterns");
+		}
+
+		int joinVar = Arrays.asList(names).indexOf(bindingName);
+		PatternStep left = (PatternStep)steps[0];
+		PatternStep right = (PatternStep)steps[1];
+		int leftField = left.indexOf(joinVar);
+		int rightField = right.indexOf(joinVar);
+
+		if (joinVar == -1 || constants[joinVar] != null || leftField == -1 || rightField == -1) {
+			throw new IllegalArgumentException("Statement patterns do not share variable " + bindingName);
+		}
+
+		mergeStep = new MergeStep(left, right, joinVar, leftField, rightField);
+	}
+
+	/**
+	 * Gets the name of the variable that the first two statement patterns are
+	 * merge joined on.
+	 * 
+	 * @return The name of the variable, or <tt>null</tt> if all statement
+	 *         patterns are evaluated as nested loops.
+	 */
+	public String getMergeJoinVar() {
+		return mergeStep == null ? null : names[mergeStep.joinVar];
+	}
+
+	@Override
+	public Set<String> getBindingNames() {
+		return expr.getBindingNames();
+	}
+
+	@Override
+	public Set<String> getAssuredBindingNames() {
+		return expr.getAssuredBindingNames();
+	}
+
+	@Override
+	public <X extends Exception> void visitChildren(QueryModelVisitor<X> visitor)
+		throws X
+	{
+		expr.visit(visitor);
+	}
+
+	@Override
+	public String getSignature() {
+		StringBuilder sb = new StringBuilder(super.getSignature());
+
+		if (mergeStep != null) {
+			sb.append(" (merge join on ").append(names[mergeStep.joinVar]).append(")");
+		}
+		if (isDistinct()) {
+			sb.append(" (distinct)");
+		}
+
+		return sb.toString();
+	}
+
+	@Override
+	public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(BindingSet bindings)
+		throws QueryEvaluationException
+	{
+		try {
+			ValueStore valueStore = tripleSource.getValueStore();
+
+			int[] ids = new int[names.length];
+			for (int i = 0; i < names.length; i++) {
+				int id = NativeValue.UNKNOWN_ID;
+
+				Value value = constants[i];
+				if (value == null && bindings instanceof IDBindingSet
+						&& ((IDBindingSet)bindings).getValueStore() == valueStore)
+				{
+					id = ((IDBindingSet)bindings).getID(names[i]);
+				}
+				if (value == null && id == NativeValue.UNKNOWN_ID) {
+					value = bindings.getValue(names[i]);
+				}
+				if (value != null) {
+					id = valueStore.getID(value);
+					if (id == NativeValue.UNKNOWN_ID) {
+						// Values that are not in the store do not match any pattern
+						return new EmptyIteration<BindingSet, QueryEvaluationException>();
+					}
+				}
+
+				ids[i] = id;
+			}
+
+			return new IDJoinIteration(bindings, ids, getContexts(Scope.DEFAULT_CONTEXTS),
+					getContexts(Scope.NAMED_CONTEXTS));
+		}
+		catch (IOException e) {
+			throw convert(e);
+		}
+	}
+
+	/**
+	 * Determines the contexts to query for patterns with the specified scope,
+	 * following the semantics of
+	 * {@link EvaluationStrategy#evaluate(TupleExpr, BindingSet)} for
+	 * statement patterns.
+	 */
+	private Contexts getContexts(Scope scope)
+		throws IOException
+	{
+		if (dataset == null) {
+			return new Contexts(false, null, null);
+		}
+
+		Set<URI> graphs;
+		boolean emptyGraph;
+		if (scope == Scope.DEFAULT_CONTEXTS) {
+			graphs = dataset.getDefaultGraphs();
+			emptyGraph = graphs.isEmpty() && !dataset.getNamedGraphs().isEmpty();
+		}
+		else {
+			graphs = dataset.getNamedGraphs();
+			emptyGraph = graphs.isEmpty() && !dataset.getDefaultGraphs().isEmpty();
+		}
+
+		if (emptyGraph) {
+			return new Contexts(true, null, null);
+		}
+		else if (graphs.isEmpty()) {
+			return new Contexts(false, null, null);
+		}
+
+		ValueStore valueStore = tripleSource.getValueStore();
+
+		int[] contextIDs = new int[graphs.size()];
+		int[] graphIDs = new int[graphs.size()];
+		int contextCount = 0;
+		int graphCount = 0;
+
+		for (URI graph : graphs) {
+			int graphID = graph == null ? NativeValue.UNKNOWN_ID : valueStore.getID(graph);
+			if (graphID != NativeValue.UNKNOWN_ID) {
+				graphIDs[graphCount++] = graphID;
+			}
+
+			if (graph == null || SESAME.NIL.equals(graph)) {
+				contextIDs[contextCount++] = 0;
+			}
+			else if (graphID != NativeValue.UNKNOWN_ID) {
+				contextIDs[contextCount++] = graphID;
+			}
+		}
+
+		return new Contexts(false, truncate(contextIDs, contextCount), truncate(graphIDs, graphCount));
+	}
+
+	private static int[] truncate(int[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+
+		int[] result = new int[length];
+		System.arraycopy(array, 0, result, 0, length);
+		return result;
+	}
+
+	private static QueryEvaluationException convert(IOException e) {
+		if (e instanceof ClosedByInterruptException) {
+			return new QueryInterruptedException(e);
+		}
+		return new QueryEvaluationException(e);
+	}
+
+	/*----------------------*
+	 * Inner class Contexts *
+	 *----------------------*/
+
+	/**
+	 * The contexts of the dataset that statement patterns with a specific scope
+	 * are matched against.
+	 */
+	private static class Contexts {
+
+		/**
+		 * Flag indicating that the pattern does not match any contexts.
+		 */
+		public final boolean empty;
+
+		/**
+		 * The IDs of the contexts to query, using 0 for the null context, or
+		 * <tt>null</tt> if all contexts should be queried.
+		 */
+		public final int[] contextIDs;
+
+		/**
+		 * The IDs of the graph URIs of the dataset, used to check context
+		 * variables that have already been bound.
+		 */
+		public final int[] graphIDs;
+
+		public Contexts(boolean empty, int[] contextIDs, int[] graphIDs) {
+			this.empty = empty;
+			this.contextIDs = contextIDs;
+			this.graphIDs = graphIDs;
+		}
+	}
+
+	/*------------------*
+	 * Inner class Step *
+	 *------------------*/
+
+	private static abstract class Step {
+	}
+
+	/*-------------------------*
+	 * Inner class PatternStep *
+	 *-------------------------*/
+
+	private static class PatternStep extends Step {
+
+		public final StatementPattern pattern;
+
+		public final Scope scope;
+
+		/**
+		 * The indexes of the subject, predicate, object and context variables,
+		 * -1 for missing variables.
+		 */
+		public final int[] vars;
+
+		public PatternStep(StatementPattern pattern, int subjVar, int predVar, int objVar, int contextVar) {
+			this.pattern = pattern;
+			this.scope = pattern.getScope();
+			this.vars = new int[] { subjVar, predVar, objVar, contextVar };
+		}
+
+		/**
+		 * Gets the position of the first occurrence of the specified variable
+		 * in this pattern.
+		 * 
+		 * @return The position, 0 for the subject to 3 for the context, or -1 if
+		 *         the variable does not occur in this pattern.
+		 */
+		public int indexOf(int var) {
+			for (int i = 0; i < 4; i++) {
+				if (vars[i] == var) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/*-----------------------*
+	 * Inner class MergeStep *
+	 *-----------------------*/
+
+	/**
+	 * Two statement patterns that are evaluated as a merge join on a shared
+	 * variable.
+	 */
+	private static class MergeStep extends Step {
+
+		public final PatternStep left;
+
+		public final PatternStep right;
+
+		public final int joinVar;
+
+		/**
+		 * The positions of the join variable in the left and right pattern.
+		 */
+		public final int leftField, rightField;
+
+		public MergeStep(PatternStep left, PatternStep right, int joinVar, int leftField, int rightField) {
+			this.left = left;
+			this.right = right;
+			this.joinVar = joinVar;
+			this.leftField = leftField;
+			this.rightField = rightField;
+		}
+	}
+
+	/*------------------------*
+	 * Inner class FilterStep *
+	 *------------------------*/
+
+	private class FilterStep extends Step {
+
+		public final ValueExpr condition;
+
+		/**
+		 * The names of the bindings that are in scope for the filter, or
+		 * <tt>null</tt> if all bindings are in scope.
+		 */
+		public final Set<String> scope;
+
+		/**
+		 * The variable indexes of the operands of a <tt>sameTerm</tt>
+		 * condition, -1 for constant operands.
+		 */
+		public final int leftVar, rightVar;
+
+		public final Value leftValue, rightValue;
+
+		/**
+		 * Flag indicating that the condition is a <tt>sameTerm</tt> condition
+		 * that can be evaluated on value IDs.
+		 */
+		public final boolean sameTerm;
+
+		public final boolean negated;
+
+		public FilterStep(Filter filter, List<String> nameList) {
+			this.condition = filter.getCondition();
+			this.scope = isPartOfSubQuery(filter) ? null : filter.getBindingNames();
+
+			ValueExpr expr = condition;
+			boolean negated = false;
+			if (expr instanceof Not && ((Not)expr).getArg() instanceof SameTerm) {
+				expr = ((Not)expr).getArg();
+				negated = true;
+			}
+
+			if (expr instanceof SameTerm) {
+				ValueExpr left = ((SameTerm)expr).getLeftArg();
+				ValueExpr right = ((SameTerm)expr).getRightArg();
+
+				leftVar = getVar(left, nameList);
+				rightVar = getVar(right, nameList);
+				leftValue = getValue(left);
+				rightValue = getValue(right);
+
+				sameTerm = (leftVar != -1 || leftValue != null) && (rightVar != -1 || rightValue != null)
+						&& (leftVar != -1 || rightVar != -1);
+			}
+			else {
+				leftVar = rightVar = -1;
+				leftValue = rightValue = null;
+				sameTerm = false;
+			}
+
+			this.negated = negated;
+		}
+
+		private int getVar(ValueExpr expr, List<String> nameList) {
+			if (expr instanceof Var && !((Var)expr).hasValue()) {
+				return nameList.indexOf(((Var)expr).getName());
+			}
+			return -1;
+		}
+
+		private Value getValue(ValueExpr expr) {
+			if (expr instanceof Var) {
+				return ((Var)expr).getValue();
+			}
+			else if (expr instanceof ValueConstant) {
+				return ((ValueConstant)expr).getValue();
+			}
+			return null;
+		}
+
+		private boolean isPartOfSubQuery(QueryModelNode node) {
+			if (node instanceof SubQueryValueOperator) {
+				return true;
+			}
+
+			QueryModelNode parent = node.getParentNode();
+			return parent != null && isPartOfSubQuery(parent);
+		}
+
+		public boolean isVisible(int var) {
+			return scope == null || scope.contains(names[var]);
+		}
+	}
+
+	/*-----------------------------*
+	 * Inner class IDJoinIteration *
+	 *-----------------------------*/
+
+	private class IDJoinIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+		private final BindingSet bindings;
+
+		/**
+		 * The currently bound value IDs of the variables.
+		 */
+		private final int[] ids;
+
+		private final Contexts defaultContexts;
+
+		private final Contexts namedContexts;
+
+		/**
+		 * The IDs of the constant operands of <tt>sameTerm</tt> filters, indexed
+		 * by step.
+		 */
+		private final int[] leftValueIDs, rightValueIDs;
+
+		/**
+		 * The triple iterators of the pattern steps.
+		 */
+		private final RecordIterator[] iterators;
+
+		/**
+		 * The contexts that are queried by the pattern steps.
+		 */
+		private final int[][] contexts;
+
+		/**
+		 * The index of the context that is currently queried by the pattern
+		 * steps.
+		 */
+		private final int[] contextIdx;
+
+		/**
+		 * Flags indicating that a pattern step only matches statements that
+		 * have a context.
+		 */
+		private final boolean[] requireContext;
+
+		/**
+		 * Bit masks indicating which of the subject, predicate, object and
+		 * context variables are bound by the pattern steps.
+		 */
+		private final int[] bindMasks;
+
+		/**
+		 * The value IDs of the variables that are bound by the pattern steps.
+		 */
+		private final int[] lookupIDs;
+
+		private final boolean[] filterDone;
+
+		private final Set<IDTuple> distinctTuples;
+
+		/**
+		 * The steps that are evaluated, starting with a {@link MergeStep} if the
+		 * first two statement patterns are evaluated as a merge join.
+		 */
+		private final Step[] plan;
+
+		/**
+		 * The sorted triple iterators of the left and right pattern of the merge
+		 * step.
+		 */
+		private RecordIterator leftIter, rightIter;
+
+		/**
+		 * The next triples of the left and right pattern of the merge step.
+		 */
+		private byte[] leftNext, rightNext;
+
+		/**
+		 * The triples of the left and right pattern of the merge step that share
+		 * the current value of the join variable.
+		 */
+		private final List<byte[]> leftGroup = new ArrayList<byte[]>();
+
+		private final List<byte[]> rightGroup = new ArrayList<byte[]>();
+
+		/**
+		 * The positions of the current pair of triples in the groups.
+		 */
+		private int leftGroupIdx, rightGroupIdx;
+
+		/**
+		 * Flags indicating that the left and right pattern of the merge step only
+		 * match statements that have a context.
+		 */
+		private boolean leftRequireContext, rightRequireContext;
+
+		/**
+		 * The bit masks of the variables that are bound by the left and right
+		 * pattern of the merge step.
+		 */
+		private int leftBindMask, rightBindMask;
+
+		/**
+		 * The step that is currently being advanced, -1 before the first step
+		 * has been started.
+		 */
+		private int depth = -1;
+
+		public IDJoinIteration(BindingSet bindings, int[] ids, Contexts defaultContexts,
+				Contexts namedContexts)
+			throws IOException
+		{
+			this.bindings = bindings;
+			this.ids = ids;
+			this.defaultContexts = defaultContexts;
+			this.namedContexts = namedContexts;
+
+			leftValueIDs = new int[steps.length];
+			rightValueIDs = new int[steps.length];
+			iterators = new RecordIterator[steps.length];
+			contexts = new int[steps.length][];
+			contextIdx = new int[steps.length];
+			requireContext = new boolean[steps.length];
+			bindMasks = new int[steps.length];
+			lookupIDs = new int[4];
+			filterDone = new boolean[steps.length];
+
+			plan = createPlan();
+
+			ValueStore valueStore = tripleSource.getValueStore();
+			for (int i = 0; i < plan.length; i++) {
+				if (plan[i] instanceof FilterStep) {
+					FilterStep filterStep = (FilterStep)plan[i];
+					if (filterStep.sameTerm) {
+						if (filterStep.leftValue != null) {
+							leftValueIDs[i] = valueStore.getID(filterStep.leftValue);
+						}
+						if (filterStep.rightValue != null) {
+							rightValueIDs[i] = valueStore.getID(filterStep.rightValue);
+						}
+					}
+				}
+			}
+
+			distinctTuples = isDistinct() ? new HashSet<IDTuple>() : null;
+		}
+
+		@Override
+		protected BindingSet getNextElement()
+			throws QueryEvaluationException
+		{
+			try {
+				if (depth == -1) {
+					if (plan.length == 0) {
+						return null;
+					}
+					depth = 0;
+					enter(0);
+				}
+
+				while (depth >= 0) {
+					if (advance(depth)) {
+						if (depth == plan.length - 1) {
+							if (distinctTuples == null || distinctTuples.add(new IDTuple(ids, distinctVars))) {
+								return new IDBindingSet(tripleSource.getValueStore(), bindings, names,
+										ids.clone(), null);
+							}
+						}
+						else {
+							depth++;
+							enter(depth);
+						}
+					}
+					else {
+						depth--;
+					}
+				}
+
+				return null;
+			}
+			catch (IOException e) {
+				throw convert(e);
+			}
+		}
+
+		/**
+		 * Prepares the specified step for matching with the currently bound
+		 * variables.
+		 */
+		private void enter(int step)
+			throws IOException
+		{
+			if (plan[step] instanceof FilterStep) {
+				filterDone[step] = false;
+				return;
+			}
+			else if (plan[step] instanceof MergeStep) {
+				// The sorted iterators have been opened by createPlan()
+				return;
+			}
+
+			PatternStep patternStep = (PatternStep)plan[step];
+			bindMasks[step] = getBindMask(patternStep);
+			contexts[step] = getContexts(patternStep);
+			requireContext[step] = isContextRequired(patternStep);
+			contextIdx[step] = -1;
+			iterators[step] = null;
+		}
+
+		/**
+		 * Creates a bit mask indicating which of the subject, predicate, object
+		 * and context variables of a pattern step are currently unbound.
+		 */
+		private int getBindMask(PatternStep patternStep) {
+			int[] vars = patternStep.vars;
+
+			int bindMask = 0;
+			for (int i = 0; i < 4; i++) {
+				if (vars[i] != -1 && ids[vars[i]] == NativeValue.UNKNOWN_ID) {
+					bindMask |= 1 << i;
+				}
+			}
+
+			return bindMask;
+		}
+
+		/**
+		 * Determines the contexts to query for a pattern step with the
+		 * currently bound variables.
+		 */
+		private int[] getContexts(PatternStep patternStep) {
+			int[] vars = patternStep.vars;
+			int contextID = vars[3] == -1 ? NativeValue.UNKNOWN_ID : ids[vars[3]];
+			Contexts datasetContexts = patternStep.scope == Scope.DEFAULT_CONTEXTS ? defaultContexts
+					: namedContexts;
+
+			if (datasetContexts.empty) {
+				return new int[0];
+			}
+			else if (datasetContexts.contextIDs == null) {
+				return new int[] { contextID };
+			}
+			else if (contextID != NativeValue.UNKNOWN_ID) {
+				if (contains(datasetContexts.graphIDs, contextID)) {
+					return new int[] { contextID };
+				}
+				else {
+					// Statement pattern specifies a context that is not part of the
+					// dataset
+					return new int[0];
+				}
+			}
+			else {
+				return datasetContexts.contextIDs;
+			}
+		}
+
+		/**
+		 * Checks whether a pattern step should skip statements in the null
+		 * context. Named contexts are matched by retrieving all statements and
+		 * filtering out the statements that do not have a context.
+		 */
+		private boolean isContextRequired(PatternStep patternStep) {
+			int[] vars = patternStep.vars;
+			int contextID = vars[3] == -1 ? NativeValue.UNKNOWN_ID : ids[vars[3]];
+			Contexts datasetContexts = patternStep.scope == Scope.DEFAULT_CONTEXTS ? defaultContexts
+					: namedContexts;
+
+			return contextID == NativeValue.UNKNOWN_ID && datasetContexts.contextIDs == null
+					&& patternStep.scope == Scope.NAMED_CONTEXTS;
+		}
+
+		/**
+		 * Determines the steps to evaluate. The first two statement patterns are
+		 * evaluated as a merge join if this has been requested, the join variable
+		 * is not bound by the supplied bindings and both patterns can be read in
+		 * the order of the join variable.
+		 */
+		private Step[] createPlan()
+			throws IOException
+		{
+			if (mergeStep == null || ids[mergeStep.joinVar] != NativeValue.UNKNOWN_ID) {
+				return steps;
+			}
+
+			leftIter = getSortedTriples(mergeStep.left, mergeStep.leftField);
+			if (leftIter == null) {
+				return steps;
+			}
+
+			rightIter = getSortedTriples(mergeStep.right, mergeStep.rightField);
+			if (rightIter == null) {
+				leftIter.close();
+				leftIter = null;
+				return steps;
+			}
+
+			leftRequireContext = isContextRequired(mergeStep.left);
+			rightRequireContext = isContextRequired(mergeStep.right);
+			leftBindMask = getBindMask(mergeStep.left);
+			rightBindMask = getBindMask(mergeStep.right);
+
+			leftNext = nextTriple(leftIter, leftRequireContext);
+			rightNext = nextTriple(rightIter, rightRequireContext);
+
+			Step[] plan = new Step[steps.length - 1];
+			plan[0] = mergeStep;
+			System.arraycopy(steps, 2, plan, 1, steps.length - 2);
+			return plan;
+		}
+
+		/**
+		 * Gets the triples matching a pattern step, sorted by the field at the
+		 * specified position.
+		 * 
+		 * @return The sorted triples, or <tt>null</tt> if these can not be
+		 *         retrieved with a single index scan.
+		 */
+		private RecordIterator getSortedTriples(PatternStep patternStep, int sortField)
+			throws IOException
+		{
+			int[] stepContexts = getContexts(patternStep);
+			if (stepContexts.length != 1) {
+				// Triples from several contexts would have to be merged first
+				return null;
+			}
+
+			int[] vars = patternStep.vars;
+			for (int i = 0; i < 3; i++) {
+				lookupIDs[i] = vars[i] == -1 ? NativeValue.UNKNOWN_ID : ids[vars[i]];
+			}
+			lookupIDs[3] = stepContexts[0];
+
+			if (lookupIDs[sortField] != NativeValue.UNKNOWN_ID) {
+				return null;
+			}
+
+			return tripleSource.getTriplesSortedBy(lookupIDs[0], lookupIDs[1], lookupIDs[2], lookupIDs[3],
+					FIELD_NAMES[sortField]);
+		}
+
+		private byte[] nextTriple(RecordIterator iter, boolean requireContext)
+			throws IOException
+		{
+			byte[] triple;
+			while ((triple = iter.next()) != null) {
+				if (!requireContext || ByteArrayUtil.getInt(triple, TripleStore.CONTEXT_IDX) != 0) {
+					break;
+				}
+			}
+			return triple;
+		}
+
+		/**
+		 * Advances the merge step to the next pair of matching triples.
+		 * 
+		 * @return <tt>true</tt> if a matching pair was found, <tt>false</tt> if
+		 *         the merge step is exhausted.
+		 */
+		private boolean advanceMerge()
+			throws IOException
+		{
+			int[] leftVars = mergeStep.left.vars;
+			int[] rightVars = mergeStep.right.vars;
+
+			// Undo the bindings of the previous match
+			undoBindings(rightVars, rightBindMask);
+			undoBindings(leftVars, leftBindMask);
+
+			while (true) {
+				while (leftGroupIdx < leftGroup.size()) {
+					if (rightGroupIdx < rightGroup.size()) {
+						byte[] leftTriple = leftGroup.get(leftGroupIdx);
+						byte[] rightTriple = rightGroup.get(rightGroupIdx++);
+
+						if (bind(leftTriple, leftVars, leftBindMask)) {
+							if (bind(rightTriple, rightVars, rightBindMask)) {
+								return true;
+							}
+							undoBindings(leftVars, leftBindMask);
+						}
+					}
+					else {
+						leftGroupIdx++;
+						rightGroupIdx = 0;
+					}
+				}
+
+				if (!nextGroups()) {
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * Reads the next groups of triples from the left and right pattern of
+		 * the merge step that share a value for the join variable.
+		 * 
+		 * @return <tt>false</tt> if one of the patterns is exhausted.
+		 */
+		private boolean nextGroups()
+			throws IOException
+		{
+			leftGroup.clear();
+			rightGroup.clear();
+			leftGroupIdx = 0;
+			rightGroupIdx = 0;
+
+			int leftOffset = FIELD_IDX[mergeStep.leftField];
+			int rightOffset = FIELD_IDX[mergeStep.rightField];
+
+			while (leftNext != null && rightNext != null) {
+				int leftKey = ByteArrayUtil.getInt(leftNext, leftOffset);
+				int rightKey = ByteArrayUtil.getInt(rightNext, rightOffset);
+
+				if (leftKey < rightKey) {
+					leftNext = nextTriple(leftIter, leftRequireContext);
+				}
+				else if (leftKey > rightKey) {
+					rightNext = nextTriple(rightIter, rightRequireContext);
+				}
+				else {
+					while (leftNext != null && ByteArrayUtil.getInt(leftNext, leftOffset) == leftKey) {
+						leftGroup.add(leftNext);
+						leftNext = nextTriple(leftIter, leftRequireContext);
+					}
+					while (rightNext != null && ByteArrayUtil.getInt(rightNext, rightOffset) == rightKey) {
+						rightGroup.add(rightNext);
+						rightNext = nextTriple(rightIter, rightRequireContext);
+					}
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Advances the specified step to its next match.
+		 * 
+		 * @return <tt>true</tt> if the step found a match, <tt>false</tt> if it
+		 *         is exhausted.
+		 */
+		private boolean advance(int step)
+			throws IOException, QueryEvaluationException
+		{
+			if (plan[step] instanceof FilterStep) {
+				if (filterDone[step]) {
+					return false;
+				}
+				filterDone[step] = true;
+				return isTrue(step);
+			}
+			else if (plan[step] instanceof MergeStep) {
+				return advanceMerge();
+			}
+
+			int[] vars = ((PatternStep)plan[step]).vars;
+			int bindMask = bindMasks[step];
+
+			// Undo the bindings of the previous match
+			for (int i = 0; i < 4; i++) {
+				if ((bindMask & (1 << i)) != 0) {
+					ids[vars[i]] = NativeValue.UNKNOWN_ID;
+				}
+			}
+
+			while (true) {
+				if (iterators[step] == null) {
+					if (++contextIdx[step] >= contexts[step].length) {
+						return false;
+					}
+
+					for (int i = 0; i < 3; i++) {
+						lookupIDs[i] = vars[i] == -1 ? NativeValue.UNKNOWN_ID : ids[vars[i]];
+					}
+
+					iterators[step] = tripleSource.getTriples(lookupIDs[0], lookupIDs[1], lookupIDs[2],
+							contexts[step][contextIdx[step]]);
+				}
+
+				byte[] triple = iterators[step].next();
+
+				if (triple == null) {
+					iterators[step].close();
+					iterators[step] = null;
+					continue;
+				}
+
+				if (requireContext[step] && ByteArrayUtil.getInt(triple, TripleStore.CONTEXT_IDX) == 0) {
+					continue;
+				}
+
+				if (bindMask == 0 || bind(triple, vars, bindMask)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Binds the variables of a pattern step to the values of the supplied
+		 * triple, verifying the values of variables that occur more than once in
+		 * the pattern.
+		 */
+		private boolean bind(byte[] triple, int[] vars, int bindMask) {
+			for (int i = 0; i < 4; i++) {
+				if ((bindMask & (1 << i)) == 0) {
+					continue;
+				}
+
+				int id = ByteArrayUtil.getInt(triple, FIELD_IDX[i]);
+				int var = vars[i];
+
+				if (ids[var] != NativeValue.UNKNOWN_ID) {
+					// Variable was bound by an earlier position in this pattern
+					if (ids[var] != id) {
+						undoBindings(vars, bindMask);
+						return false;
+					}
+				}
+				else if (i < 3 || id != 0) {
+					// Statements in the null context do not bind the context var
+					ids[var] = id;
+				}
+			}
+
+			return true;
+		}
+
+		private void undoBindings(int[] vars, int bindMask) {
+			for (int i = 0; i < 4; i++) {
+				if ((bindMask & (1 << i)) != 0) {
+					ids[vars[i]] = NativeValue.UNKNOWN_ID;
+				}
+			}
+		}
+
+		private boolean isTrue(int step)
+			throws QueryEvaluationException
+		{
+			FilterStep filterStep = (FilterStep)plan[step];
+
+			if (filterStep.sameTerm) {
+				int leftID = leftValueIDs[step];
+				if (filterStep.leftVar != -1) {
+					if (!filterStep.isVisible(filterStep.leftVar)) {
+						return false;
+					}
+					leftID = ids[filterStep.leftVar];
+				}
+
+				int rightID = rightValueIDs[step];
+				if (filterStep.rightVar != -1) {
+					if (!filterStep.isVisible(filterStep.rightVar)) {
+						return false;
+					}
+					rightID = ids[filterStep.rightVar];
+				}
+
+				if (filterStep.leftVar != -1 && leftID == NativeValue.UNKNOWN_ID
+						|| filterStep.rightVar != -1 && rightID == NativeValue.UNKNOWN_ID)
+				{
+					// Unbound variable
+					return false;
+				}
+
+				return (leftID == rightID) != filterStep.negated;
+			}
+
+			BindingSet scopeBindings = new IDBindingSet(tripleSource.getValueStore(), bindings, names,
+					ids.clone(), filterStep.scope);
+			try {
+				return strategy.isTrue(filterStep.condition, scopeBindings);
+			}
+			catch (ValueExprEvaluationException e) {
+				// failed to evaluate condition
+				return false;
+			}
+			catch (IllegalStateException e) {
+				if (e.getCause() instanceof IOException) {
+					throw convert((IOException)e.getCause());
+				}
+				throw e;
+			}
+		}
+
+		private boolean contains(int[] array, int value) {
+			for (int element : array) {
+				if (element == value) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		protected void handleClose()
+			throws QueryEvaluationException
+		{
+			try {
+				super.handleClose();
+			}
+			finally {
+				IOException closeException = null;
+				if (leftIter != null) {
+					try {
+						leftIter.close();
+					}
+					catch (IOException e) {
+						closeException = e;
+					}
+					leftIter = null;
+				}
+				if (rightIter != null) {
+					try {
+						rightIter.close();
+					}
+					catch (IOException e) {
+						closeException = e;
+					}
+					rightIter = null;
+				}
+				for (int i = 0; i < iterators.length; i++) {
+					if (iterators[i] != null) {
+						try {
+							iterators[i].close();
+						}
+						catch (IOException e) {
+							closeException = e;
+						}
+						iterators[i] = null;
+					}
+				}
+				if (closeException != null) {
+					throw convert(closeException);
+				}
+			}
+		}
+	}
+
+	/*---------------------*
+	 * Inner class IDTuple *
+	 *---------------------*/
+
+	/**
+	 * The value IDs of a selection of variables, used to filter duplicates.
+	 */
+	private static class IDTuple {
+
+		private final int[] ids;
+
+		private final int hashCode;
+
+		public IDTuple(int[] ids, int[] vars) {
+			this.ids = new int[vars.length];
+			for (int i = 0; i < vars.length; i++) {
+				this.ids[i] = ids[vars[i]];
+			}
+			this.hashCode = Arrays.hashCode(this.ids);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof IDTuple && Arrays.equals(ids, ((IDTuple)other).ids);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.ArbitraryLengthPath;
+import org.openrdf.query.algebra.Distinct;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.ProjectionElem;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.Service;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.ZeroLengthPath;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.QueryOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+
+/**
+ * A query optimizer that replaces trees of joins and filters over statement
+ * patterns with {@link IDJoin}s, which evaluate them on the value IDs of the
+ * native store. This optimizer should be applied after all other
+ * optimizations, as it fixes the join order and the placement of filters.
+ * <p>
+ * If the first two statement patterns of such a tree share a variable, the
+ * optimizer lets the {@link IDJoin} evaluate them as a merge join when the
+ * estimated cost of scanning both patterns in full is lower than that of
+ * looking up the matches of the second pattern for every match of the first
+ * one.
+ */
+class IDJoinOptimizer implements QueryOptimizer {
+
+	/**
+	 * The estimated cost of looking up the matches of a statement pattern in an
+	 * index, relative to the cost of reading a triple during an index scan.
+	 */
+	private static final double LOOKUP_COST = 20.0;
+
+	private final NativeTripleSource tripleSource;
+
+	private final EvaluationStrategy strategy;
+
+	private final EvaluationStatistics statistics;
+
+	public IDJoinOptimizer(NativeTripleSource tripleSource, EvaluationStrategy strategy,
+			EvaluationStatistics statistics)
+	{
+		this.tripleSource = tripleSource;
+		this.strategy = strategy;
+		this.statistics = statistics;
+	}
+
+	public void optimize(TupleExpr tupleExpr, Dataset dataset, BindingSet bindings) {
+		tupleExpr.visit(new IDJoinVisitor(dataset));
+	}
+
+	/*---------------------------*
+	 * Inner class IDJoinVisitor *
+	 *---------------------------*/
+
+	protected class IDJoinVisitor extends QueryModelVisitorBase<RuntimeException> {
+
+		private final Dataset dataset;
+
+		public IDJoinVisitor(Dataset dataset) {
+			this.dataset = dataset;
+		}
+
+		@Override
+		public void meet(Join node) {
+			if (IDJoin.isSupported(node)) {
+				replace(node);
+			}
+			else {
+				super.meet(node);
+			}
+		}
+
+		@Override
+		public void meet(Filter node) {
+			if (IDJoin.isSupported(node)) {
+				replace(node);
+			}
+			else {
+				super.meet(node);
+			}
+		}
+
+		@Override
+		public void meet(StatementPattern node) {
+			replace(node);
+		}
+
+		@Override
+		public void meet(Distinct node) {
+			super.meet(node);
+
+			// Filter duplicates on the IDs of the projected bindings
+			if (node.getArg() instanceof Projection) {
+				Projection projection = (Projection)node.getArg();
+
+				if (projection.getArg() instanceof IDJoin) {
+					Set<String> sourceNames = new HashSet<String>();
+					for (ProjectionElem elem : projection.getProjectionElemList().getElements()) {
+						sourceNames.add(elem.getSourceName());
+					}
+
+					((IDJoin)projection.getArg()).setDistinct(sourceNames);
+					node.replaceWith(projection);
+				}
+			}
+		}
+
+		@Override
+		public void meet(ArbitraryLengthPath node) {
+			// Path expressions are rewritten during evaluation
+		}
+
+		@Override
+		public void meet(ZeroLengthPath node) {
+			// Path expressions are rewritten during evaluation
+		}
+
+		@Override
+		public void meet(Service node) {
+			// Service expressions are evaluated remotely
+		}
+
+		private void replace(TupleExpr expr) {
+			// The IDJoin becomes the parent of the expression
+			QueryModelNode parent = expr.getParentNode();
+			IDJoin idJoin = new IDJoin(expr, tripleSource, strategy, dataset);
+			parent.replaceChildNode(expr, idJoin);
+
+			StatementPattern[] patterns = idJoin.getLeadingPatterns();
+			if (patterns != null) {
+				String joinVar = getJoinVar(patterns[0], patterns[1]);
+				if (joinVar != null && isMergeJoinCheaper(patterns[0], patterns[1])) {
+					idJoin.setMergeJoin(joinVar);
+				}
+			}
+		}
+
+		/**
+		 * Gets the name of a variable that is shared by the two statement
+		 * patterns, preferring variables that occur earlier in the left pattern.
+		 * 
+		 * @return The variable name, or <tt>null</tt> if the patterns do not
+		 *         share any variables.
+		 */
+		private String getJoinVar(StatementPattern left, StatementPattern right) {
+			for (Var leftVar : left.getVarList()) {
+				if (leftVar.hasValue()) {
+					continue;
+				}
+
+				for (Var rightVar : right.getVarList()) {
+					if (leftVar.getName().equals(rightVar.getName())) {
+						return leftVar.getName();
+					}
+				}
+			}
+
+			return null;
+		}
+
+		private boolean isMergeJoinCheaper(StatementPattern left, StatementPattern right) {
+			double leftCard = statistics.getCardinality(left);
+			double rightCard = statistics.getCardinality(right);
+
+			double nestedLoopCost = leftCard * LOOKUP_COST;
+			double mergeJoinCost = leftCard + rightCard;
+
+			return mergeJoinCost < nestedLoopCost;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+/**
+ * A fixed-size concurrent cache that maps <tt>int</tt> keys to objects,
+ * without boxing the keys.
+ */
+class IntKeyCache<V> extends ClockCache {
+
+	public IntKeyCache(int capacity) {
+		super(capacity);
+	}
+
+	@Override
+	protected Segment createSegment(int capacity) {
+		return new IntKeySegment(capacity);
+	}
+
+	/**
+	 * Gets the cached value for the specified key.
+	 * 
+	 * @return The cached value, or <tt>null</tt> if the key is not cached.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int hash = hash(key);
+		IntKeySegment segment = (IntKeySegment)segmentFor(hash);
+
+		synchronized (segment) {
+			int slot = segment.find(key, hash);
+
+			if (slot == -1) {
+				segment.missCount++;
+				return null;
+			}
+
+			segment.hitCount++;
+			segment.referenced[slot] = true;
+			return (V)segment.values[slot];
+		}
+	}
+
+	/**
+	 * Caches the supplied value for the specified key, possibly evicting
+	 * another entry.
+	 */
+	public void put(int key, V value) {
+		int hash = hash(key);
+		IntKeySegment segment = (IntKeySegment)segmentFor(hash);
+
+		synchronized (segment) {
+			int slot = segment.find(key, hash);
+
+			if (slot == -1) {
+				slot = segment.allocate(hash);
+
+				if (slot == -1) {
+					return;
+				}
+
+				segment.keys[slot] = key;
+			}
+
+			segment.values[slot] = value;
+		}
+	}
+
+	/*---------------------------*
+	 * Inner class IntKeySegment *
+	 *---------------------------*/
+
+	private static class IntKeySegment extends Segment {
+
+		private final int[] keys;
+
+		private final Object[] values;
+
+		public IntKeySegment(int capacity) {
+			super(capacity);
+			keys = new int[capacity];
+			values = new Object[capacity];
+		}
+
+		public int find(int key, int hash) {
+			int i = hash & mask;
+			int entry;
+			while ((entry = table[i]) != 0) {
+				if (keys[entry - 1] == key) {
+					return entry - 1;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		@Override
+		protected void release(int slot) {
+			values[slot] = null;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+/**
+ * A fixed-size concurrent cache that maps objects to <tt>int</tt> values,
+ * without boxing the values. Keys are compared using
+ * {@link Object#equals(Object)}.
+ */
+class IntValueCache<K> extends ClockCache {
+
+	/**
+	 * The value that is returned by {@link #get(Object)} for keys that are not
+	 * cached.
+	 */
+	private final int missingValue;
+
+	public IntValueCache(int capacity, int missingValue) {
+		super(capacity);
+		this.missingValue = missingValue;
+	}
+
+	@Override
+	protected Segment createSegment(int capacity) {
+		return new IntValueSegment(capacity);
+	}
+
+	/**
+	 * Gets the cached value for the specified key.
+	 * 
+	 * @return The cached value, or the <tt>missingValue</tt> that was specified
+	 *         in the constructor if the key is not cached.
+	 */
+	public int get(Object key) {
+		int hash = hash(key.hashCode());
+		IntValueSegment segment = (IntValueSegment)segmentFor(hash);
+
+		synchronized (segment) {
+			int slot = segment.find(key, hash);
+
+			if (slot == -1) {
+				segment.missCount++;
+				return missingValue;
+			}
+
+			segment.hitCount++;
+			segment.referenced[slot] = true;
+			return segment.values[slot];
+		}
+	}
+
+	/**
+	 * Caches the supplied value for the specified key, possibly evicting
+	 * another entry.
+	 */
+	public void put(K key, int value) {
+		int hash = hash(key.hashCode());
+		IntValueSegment segment = (IntValueSegment)segmentFor(hash);
+
+		synchronized (segment) {
+			int slot = segment.find(key, hash);
+
+			if (slot == -1) {
+				slot = segment.allocate(hash);
+
+				if (slot == -1) {
+					return;
+				}
+
+				segment.keys[slot] = key;
+			}
+
+			segment.values[slot] = value;
+		}
+	}
+
+	/*-----------------------------*
+	 * Inner class IntValueSegment *
+	 *-----------------------------*/
+
+	private static class IntValueSegment extends Segment {
+
+		private final Object[] keys;
+
+		private final int[] values;
+
+		public IntValueSegment(int capacity) {
+			super(capacity);
+			keys = new Object[capacity];
+			values = new int[capacity];
+		}
+
+		public int find(Object key, int hash) {
+			int i = hash & mask;
+			int entry;
+			while ((entry = table[i]) != 0) {
+				int slot = entry - 1;
+				if (hashes[slot] == hash && key.equals(keys[slot])) {
+					return slot;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		@Override
+		protected void release(int slot) {
+			keys[slot] = null;
+		}
+	}
+}
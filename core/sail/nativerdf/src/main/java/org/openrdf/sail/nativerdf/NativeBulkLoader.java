@@ -0,0 +1,178 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.aduna.concurrent.locks.Lock;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.DefaultSailChangedEvent;
+
+/**
+ * Loads large amounts of RDF data into an empty {@link NativeStore}. Instead of
+ * adding statements to each index one by one, the loader assigns value IDs to
+ * the parsed statements and collects the resulting triples in a temporary
+ * file. Once parsing has finished, the triples are sorted in the order of each
+ * index using an external merge sort, after which the indexes are built
+ * bottom-up from the sorted triples. This is much faster than adding the
+ * statements through a connection and produces smaller, densely filled index
+ * files.
+ * <p>
+ * The load is not executed as a regular transaction: the store must be empty,
+ * other transactions are blocked while data is being loaded and an interrupted
+ * load (e.g. due to a crash) can leave the store partially filled.
+ */
+public class NativeBulkLoader {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final NativeStore nativeStore;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	/**
+	 * Creates a new bulk loader for the supplied (initialized) native store.
+	 */
+	public NativeBulkLoader(NativeStore nativeStore) {
+		this.nativeStore = nativeStore;
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Parses RDF data from the supplied input stream using the specified parser
+	 * and loads the statements into the native store. Statements without a
+	 * context are added to the default context. Namespace declarations are only
+	 * stored for prefixes that haven't been defined yet.
+	 * 
+	 * @param parser
+	 *        The parser to use for parsing the data. The parser's RDF handler
+	 *        is replaced by this method.
+	 * @param in
+	 *        The input stream to read the data from.
+	 * @param baseURI
+	 *        The URI associated with the data in the input stream.
+	 * @return The number of loaded statements, excluding duplicates.
+	 * @throws SailException
+	 *         If the store is not empty, or if the statements could not be
+	 *         stored.
+	 */
+	public long load(RDFParser parser, InputStream in, String baseURI)
+		throws IOException, RDFParseException, SailException
+	{
+		TripleStore tripleStore = nativeStore.getTripleStore();
+
+		if (tripleStore == null) {
+			throw new IllegalStateException("Native store not initialized");
+		}
+
+		Lock txnLock = nativeStore.getTransactionLock();
+		try {
+			if (!tripleStore.isEmpty()) {
+				throw new SailException("Bulk loading requires an empty store");
+			}
+
+			long tripleCount;
+
+			RecordCache triples = new SequentialRecordCache(nativeStore.getDataDir(), TripleStore.RECORD_LENGTH);
+			try {
+				parser.setRDFHandler(new TripleCollector(triples));
+				parser.parse(in, baseURI);
+
+				logger.debug("Parsed {} statements, building indexes", triples.getRecordCount());
+
+				nativeStore.getValueStore().sync();
+				nativeStore.getNamespaceStore().sync();
+				tripleCount = tripleStore.bulkLoad(triples);
+			}
+			catch (RDFHandlerException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new SailException(e);
+			}
+			finally {
+				triples.discard();
+			}
+
+			DefaultSailChangedEvent event = new DefaultSailChangedEvent(nativeStore);
+			event.setStatementsAdded(tripleCount > 0L);
+			nativeStore.notifySailChanged(event);
+
+			return tripleCount;
+		}
+		finally {
+			txnLock.release();
+		}
+	}
+
+	/*-----------------------------*
+	 * Inner class TripleCollector *
+	 *-----------------------------*/
+
+	/**
+	 * Stores the values of parsed statements in the value store and collects
+	 * the corresponding triples in a record cache.
+	 */
+	private class TripleCollector extends RDFHandlerBase {
+
+		private final RecordCache triples;
+
+		private final ValueStore valueStore;
+
+		public TripleCollector(RecordCache triples) {
+			this.triples = triples;
+			this.valueStore = nativeStore.getValueStore();
+		}
+
+		@Override
+		public void handleNamespace(String prefix, String name) {
+			NamespaceStore namespaceStore = nativeStore.getNamespaceStore();
+			if (namespaceStore.getNamespace(prefix) == null) {
+				namespaceStore.setNamespace(prefix, name);
+			}
+		}
+
+		@Override
+		public void handleStatement(Statement st)
+			throws RDFHandlerException
+		{
+			try {
+				int subjID = valueStore.storeValue(st.getSubject());
+				int predID = valueStore.storeValue(st.getPredicate());
+				int objID = valueStore.storeValue(st.getObject());
+
+				Resource context = st.getContext();
+				int contextID = context == null ? 0 : valueStore.storeValue(context);
+
+				triples.storeRecord(TripleStore.getData(subjID, predID, objID, contextID,
+						TripleStore.EXPLICIT_FLAG));
+			}
+			catch (IOException e) {
+				throw new RDFHandlerException(e);
+			}
+		}
+	}
+}
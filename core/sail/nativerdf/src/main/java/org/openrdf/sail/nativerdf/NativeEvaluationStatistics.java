@@ -6,6 +6,7 @@
 package org.openrdf.sail.nativerdf;
 
 import java.io.IOException;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +37,40 @@ class NativeEvaluationStatistics extends EvaluationStatistics {
 		return new NativeCardinalityCalculator();
 	}
 
+	/**
+	 * Estimates the cardinality of statement patterns with a constant predicate
+	 * using the predicate statistics of the triple store. Patterns with a
+	 * constant context are not supported, as the statistics do not distinguish
+	 * between contexts.
+	 */
+	@Override
+	public double getCardinality(StatementPattern sp, Set<String> boundVars) {
+		Var predVar = sp.getPredicateVar();
+		Var contextVar = sp.getContextVar();
+
+		if (!(predVar.getValue() instanceof URI) || contextVar != null && contextVar.hasValue()) {
+			return -1.0;
+		}
+
+		Var subjVar = sp.getSubjectVar();
+		Var objVar = sp.getObjectVar();
+
+		Value subj = subjVar.getValue();
+		if (subj != null && !(subj instanceof Resource)) {
+			// See SES-970
+			return -1.0;
+		}
+
+		try {
+			return nativeStore.cardinality((Resource)subj, boundVars.contains(subjVar.getName()),
+					(URI)predVar.getValue(), objVar.getValue(), boundVars.contains(objVar.getName()));
+		}
+		catch (IOException e) {
+			log.error("Failed to estimate statement pattern cardinality", e);
+			return -1.0;
+		}
+	}
+
 	protected class NativeCardinalityCalculator extends CardinalityCalculator {
 
 		@Override
@@ -11,6 +11,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import info.aduna.concurrent.locks.ExclusiveLockManager;
 import info.aduna.concurrent.locks.Lock;
@@ -31,6 +34,7 @@ import org.openrdf.sail.NotifyingSailConnection;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.helpers.DirectoryLockManager;
 import org.openrdf.sail.helpers.NotifyingSailBase;
+import org.openrdf.sail.helpers.QueryPlanCache;
 import org.openrdf.sail.nativerdf.btree.RecordIterator;
 import org.openrdf.sail.nativerdf.model.NativeValue;
 
@@ -67,6 +71,61 @@ public class NativeStore extends NotifyingSailBase {
 
 	private volatile int namespaceIDCacheSize = ValueStore.NAMESPACE_ID_CACHE_SIZE;
 
+	private volatile int nodeCacheSize = TripleStore.NODE_CACHE_SIZE;
+
+	/**
+	 * Flag indicating whether index nodes and values should be read from memory
+	 * mapped views of the data files. By default, this feature is disabled.
+	 */
+	private volatile boolean memoryMapped = false;
+
+	/**
+	 * The number of threads that are used to update the triple indexes. By
+	 * default, indexes are updated sequentially by the calling thread.
+	 */
+	private volatile int indexUpdateThreads = 1;
+
+	/**
+	 * Flag indicating whether queries should be evaluated on value IDs,
+	 * resolving the actual values only when they are needed.
+	 */
+	private volatile boolean lateMaterialization = false;
+
+	/**
+	 * The maximum number of optimized query plans that are cached. By default,
+	 * query plans are not cached.
+	 */
+	private volatile int queryPlanCacheSize = 0;
+
+	private volatile QueryPlanCache queryPlanCache;
+
+	/**
+	 * The maximum number of solutions that query operators keep in memory. By
+	 * default, all solutions are kept in memory.
+	 */
+	private volatile int spillThreshold = 0;
+
+	/**
+	 * The directory for the temporary files of query operators, or
+	 * <tt>null</tt> for the system's temporary-file directory.
+	 */
+	private volatile File tempDir;
+
+	/**
+	 * The number of threads on which parts of queries are evaluated
+	 * concurrently. By default, queries are evaluated by the calling thread
+	 * only.
+	 */
+	private volatile int evaluationThreads = 0;
+
+	/**
+	 * Flag indicating whether the order of joins is adapted to the
+	 * cardinalities that are observed during query evaluation.
+	 */
+	private volatile boolean adaptiveJoinOrder = false;
+
+	private volatile ExecutorService evaluationExecutor;
+
 	private volatile TripleStore tripleStore;
 
 	private volatile ValueStore valueStore;
@@ -157,6 +216,169 @@ public class NativeStore extends NotifyingSailBase {
 		this.namespaceIDCacheSize = namespaceIDCacheSize;
 	}
 
+	/**
+	 * Sets the number of B-Tree nodes that are cached for each triple index,
+	 * must be called before initialization. The default is
+	 * {@link TripleStore#NODE_CACHE_SIZE}.
+	 * 
+	 * @throws IllegalArgumentException
+	 *         If <tt>nodeCacheSize</tt> is smaller than 1.
+	 */
+	public void setNodeCacheSize(int nodeCacheSize) {
+		if (nodeCacheSize < 1) {
+			throw new IllegalArgumentException("node cache size must be larger than 0: " + nodeCacheSize);
+		}
+		this.nodeCacheSize = nodeCacheSize;
+	}
+
+	public int getNodeCacheSize() {
+		return nodeCacheSize;
+	}
+
+	/**
+	 * Specifies whether index nodes and values should be read from memory
+	 * mapped views of the data files instead of through file channel reads,
+	 * must be called before initialization. This avoids a system call for every
+	 * read, which can significantly speed up lookups when the data files fit in
+	 * the operating system's page cache, but consumes a lot of virtual address
+	 * space. By default, this feature is disabled.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	public boolean getMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Sets the number of threads that are used to update the triple indexes,
+	 * must be called before initialization. With more than one thread, updates
+	 * are applied to the indexes in parallel, each index being updated by a
+	 * single thread. This speeds up writes to stores with multiple indexes on
+	 * machines with multiple cores and disks. By default, a single thread is
+	 * used, meaning that the indexes are updated one after another.
+	 */
+	public void setIndexUpdateThreads(int indexUpdateThreads) {
+		this.indexUpdateThreads = indexUpdateThreads;
+	}
+
+	public int getIndexUpdateThreads() {
+		return indexUpdateThreads;
+	}
+
+	/**
+	 * Enables or disables late materialization of query results. When enabled,
+	 * joins of statement patterns are evaluated on the internal value IDs of
+	 * the store and the actual values are only fetched from disk when they are
+	 * needed, e.g. when they are projected or used in a filter. This avoids
+	 * reading values of intermediate variables that never reach the query
+	 * result. By default, late materialization is disabled.
+	 */
+	public void setLateMaterialization(boolean lateMaterialization) {
+		this.lateMaterialization = lateMaterialization;
+	}
+
+	public boolean getLateMaterialization() {
+		return lateMaterialization;
+	}
+
+	/**
+	 * Sets the maximum number of optimized query plans that are cached by this
+	 * store. Repeated evaluations of the same query model with the same dataset
+	 * and bindings reuse the cached plan instead of running the query
+	 * optimizers again. Cached plans are discarded whenever the contents of the
+	 * store change. A size of <tt>0</tt>, the default, disables the cache.
+	 * This parameter must be set before the store is initialized.
+	 */
+	public void setQueryPlanCacheSize(int queryPlanCacheSize) {
+		this.queryPlanCacheSize = queryPlanCacheSize;
+	}
+
+	public int getQueryPlanCacheSize() {
+		return queryPlanCacheSize;
+	}
+
+	/**
+	 * Gets the cache of optimized query plans, which can be used to monitor its
+	 * hit, miss and eviction counts.
+	 * 
+	 * @return The query plan cache, or <tt>null</tt> if the store has not been
+	 *         initialized or query plans are not cached.
+	 */
+	public QueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	/**
+	 * Sets the maximum number of solutions that query operators that need to
+	 * see all of their input, such as ORDER BY, DISTINCT, GROUP BY and MINUS,
+	 * keep in memory. Solutions in excess of this number are written to
+	 * temporary files. A threshold of <tt>0</tt>, the default, keeps all
+	 * solutions in memory.
+	 */
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the directory in which query operators create their temporary files
+	 * when the spill threshold has been exceeded. By default, the system's
+	 * temporary-file directory is used.
+	 */
+	public void setTempDir(File tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	public File getTempDir() {
+		return tempDir;
+	}
+
+	/**
+	 * Sets the number of threads on which the arguments of unions and hash joins
+	 * are evaluated concurrently, must be called before initialization. The
+	 * threads are shared by all queries. A value of <tt>0</tt>, the default,
+	 * evaluates queries sequentially on the calling thread.
+	 */
+	public void setEvaluationThreads(int evaluationThreads) {
+		this.evaluationThreads = evaluationThreads;
+	}
+
+	public int getEvaluationThreads() {
+		return evaluationThreads;
+	}
+
+	/**
+	 * Sets whether the order of the joins in queries is adapted to the
+	 * cardinalities that are observed while the joins are evaluated. Statement
+	 * patterns are then re-ordered when the number of results that they produce
+	 * deviates strongly from the estimate that the initial order was based on.
+	 * Joins that are evaluated on value IDs because of late materialization
+	 * keep their order. By default, joins are evaluated in the order chosen by
+	 * the query optimizer.
+	 */
+	public void setAdaptiveJoinOrder(boolean adaptiveJoinOrder) {
+		this.adaptiveJoinOrder = adaptiveJoinOrder;
+	}
+
+	public boolean getAdaptiveJoinOrder() {
+		return adaptiveJoinOrder;
+	}
+
+	/**
+	 * Gets the executor on which parts of queries are evaluated concurrently.
+	 * 
+	 * @return The executor, or <tt>null</tt> if the store has not been
+	 *         initialized or queries are evaluated sequentially.
+	 */
+	ExecutorService getEvaluationExecutor() {
+		return evaluationExecutor;
+	}
+
 	/**
 	 * Initializes this NativeStore.
 	 * 
@@ -197,8 +419,24 @@ public class NativeStore extends NotifyingSailBase {
 		try {
 			namespaceStore = new NamespaceStore(dataDir);
 			valueStore = new ValueStore(dataDir, forceSync, valueCacheSize, valueIDCacheSize,
-					namespaceCacheSize, namespaceIDCacheSize);
-			tripleStore = new TripleStore(dataDir, tripleIndexes, forceSync);
+					namespaceCacheSize, namespaceIDCacheSize, memoryMapped);
+			tripleStore = new TripleStore(dataDir, tripleIndexes, forceSync, nodeCacheSize, memoryMapped,
+					indexUpdateThreads);
+
+			if (queryPlanCacheSize > 0) {
+				queryPlanCache = new QueryPlanCache(queryPlanCacheSize);
+			}
+
+			if (evaluationThreads > 0) {
+				evaluationExecutor = Executors.newFixedThreadPool(evaluationThreads, new ThreadFactory() {
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "NativeStore query evaluator");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
 		}
 		catch (IOException e) {
 			// NativeStore initialization failed, release any allocated files
@@ -234,6 +472,7 @@ public class NativeStore extends NotifyingSailBase {
 			tripleStore.close();
 			valueStore.close();
 			namespaceStore.close();
+			queryPlanCache = null;
 
 			logger.debug("NativeStore shut down");
 		}
@@ -242,6 +481,10 @@ public class NativeStore extends NotifyingSailBase {
 		}
 		finally {
 			dirLock.release();
+			if (evaluationExecutor != null) {
+				evaluationExecutor.shutdown();
+				evaluationExecutor = null;
+			}
 		}
 	}
 
@@ -483,4 +726,47 @@ public class NativeStore extends NotifyingSailBase {
 
 		return tripleStore.cardinality(subjID, predID, objID, contextID);
 	}
+
+	/**
+	 * Estimates the number of statements with the specified predicate, where
+	 * the subject and object may be bound to values that are not known in
+	 * advance. Statements are counted regardless of their context.
+	 * 
+	 * @param subj
+	 *        The subject, or <tt>null</tt> if the subject is unbound or its
+	 *        value is not known in advance.
+	 * @param subjBound
+	 *        Indicates whether the subject is bound.
+	 * @param pred
+	 *        The predicate.
+	 * @param obj
+	 *        The object, or <tt>null</tt> if the object is unbound or its value
+	 *        is not known in advance.
+	 * @param objBound
+	 *        Indicates whether the object is bound.
+	 * @return The estimated number of statements, or a negative value if no
+	 *         estimate is available.
+	 */
+	protected double cardinality(Resource subj, boolean subjBound, URI pred, Value obj, boolean objBound)
+		throws IOException
+	{
+		if (subj != null && valueStore.getID(subj) == NativeValue.UNKNOWN_ID) {
+			return 0;
+		}
+
+		int predID = valueStore.getID(pred);
+		if (predID == NativeValue.UNKNOWN_ID) {
+			return 0;
+		}
+
+		int objID = NativeValue.UNKNOWN_ID;
+		if (obj != null) {
+			objID = valueStore.getID(obj);
+			if (objID == NativeValue.UNKNOWN_ID) {
+				return 0;
+			}
+		}
+
+		return tripleStore.cardinality(subjBound || subj != null, predID, objBound || obj != null, objID);
+	}
 }
@@ -14,6 +14,7 @@ import java.util.List;
 import info.aduna.concurrent.locks.Lock;
 import info.aduna.iteration.CloseableIteration;
 import info.aduna.iteration.CloseableIteratorIteration;
+import info.aduna.iteration.ConvertingIteration;
 import info.aduna.iteration.ExceptionConvertingIteration;
 import info.aduna.iteration.Iterations;
 
@@ -30,11 +31,13 @@ import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.algebra.QueryRoot;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.impl.AdaptiveJoinOptimizer;
 import org.openrdf.query.algebra.evaluation.impl.BindingAssigner;
 import org.openrdf.query.algebra.evaluation.impl.CompareOptimizer;
 import org.openrdf.query.algebra.evaluation.impl.ConjunctiveConstraintSplitter;
 import org.openrdf.query.algebra.evaluation.impl.ConstantOptimizer;
 import org.openrdf.query.algebra.evaluation.impl.DisjunctiveConstraintOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
 import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
 import org.openrdf.query.algebra.evaluation.impl.FilterOptimizer;
 import org.openrdf.query.algebra.evaluation.impl.IterativeEvaluationOptimizer;
@@ -47,6 +50,7 @@ import org.openrdf.query.impl.EmptyBindingSet;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.helpers.DefaultSailChangedEvent;
 import org.openrdf.sail.helpers.NotifyingSailConnectionBase;
+import org.openrdf.sail.helpers.QueryPlanCache;
 import org.openrdf.sail.inferencer.InferencerConnection;
 import org.openrdf.sail.nativerdf.btree.RecordIterator;
 import org.openrdf.sail.nativerdf.model.NativeValue;
@@ -102,6 +106,87 @@ public class NativeStoreConnection extends NotifyingSailConnectionBase implement
 	{
 		logger.trace("Incoming query model:\n{}", tupleExpr);
 
+		// Plans that are optimized inside a transaction can depend on
+		// uncommitted data and are therefore never cached
+		QueryPlanCache planCache = transactionActive() ? null : nativeStore.getQueryPlanCache();
+
+		try {
+			NativeTripleSource tripleSource = new NativeTripleSource(nativeStore, includeInferred,
+					transactionActive());
+			EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(tripleSource, dataset);
+			strategy.setSpillThreshold(nativeStore.getSpillThreshold());
+			strategy.setTempDir(nativeStore.getTempDir());
+			strategy.setExecutor(nativeStore.getEvaluationExecutor());
+			EvaluationStatistics statistics = new NativeEvaluationStatistics(nativeStore);
+
+			TupleExpr plan;
+
+			if (planCache == null) {
+				plan = optimize(tupleExpr, dataset, bindings, strategy, statistics, true);
+			}
+			else {
+				long planEpoch = planCache.getEpoch();
+				plan = planCache.get(tupleExpr, dataset, bindings, includeInferred);
+
+				if (plan == null) {
+					plan = optimize(tupleExpr, dataset, bindings, strategy, statistics, false);
+					planCache.put(tupleExpr, dataset, bindings, includeInferred, plan, planEpoch);
+				}
+
+				assignBindings(plan, dataset, bindings, strategy);
+			}
+
+			if (nativeStore.getLateMaterialization()) {
+				new IDJoinOptimizer(tripleSource, strategy, statistics).optimize(plan, dataset, bindings);
+			}
+
+			if (nativeStore.getAdaptiveJoinOrder()) {
+				new AdaptiveJoinOptimizer(strategy, statistics).optimize(plan, dataset, bindings);
+			}
+
+			logger.trace("Optimized query model:\n{}", plan);
+
+			CloseableIteration<BindingSet, QueryEvaluationException> result = strategy.evaluate(plan,
+					EmptyBindingSet.getInstance());
+
+			if (nativeStore.getLateMaterialization()) {
+				// Resolve any remaining value IDs while the store is guaranteed to
+				// be available
+				result = new ConvertingIteration<BindingSet, BindingSet, QueryEvaluationException>(result) {
+
+					@Override
+					protected BindingSet convert(BindingSet bindingSet) {
+						if (bindingSet instanceof IDBindingSet) {
+							return ((IDBindingSet)bindingSet).materialize();
+						}
+						return bindingSet;
+					}
+				};
+			}
+
+			return result;
+		}
+		catch (QueryEvaluationException e) {
+			throw new SailException(e);
+		}
+	}
+
+	/**
+	 * Applies the store's query optimizers to a copy of the supplied query
+	 * model.
+	 * 
+	 * @param assignBindings
+	 *        Indicates whether the values of the supplied bindings should be
+	 *        assigned to the query model. If not, the result only depends on the
+	 *        names of the bindings and can be cached for evaluations of the query
+	 *        with different binding values, which must then be assigned using
+	 *        {@link #assignBindings(TupleExpr, Dataset, BindingSet, EvaluationStrategyImpl)}.
+	 * @return The optimized copy of the query model.
+	 */
+	protected TupleExpr optimize(TupleExpr tupleExpr, Dataset dataset, BindingSet bindings,
+			EvaluationStrategyImpl strategy, EvaluationStatistics statistics, boolean assignBindings)
+		throws SailException
+	{
 		// Clone the tuple expression to allow for more aggressive optimizations
 		tupleExpr = tupleExpr.clone();
 
@@ -111,34 +196,43 @@ public class NativeStoreConnection extends NotifyingSailConnectionBase implement
 			tupleExpr = new QueryRoot(tupleExpr);
 		}
 
-		try {
-			replaceValues(tupleExpr);
-
-			NativeTripleSource tripleSource = new NativeTripleSource(nativeStore, includeInferred,
-					transactionActive());
-			EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(tripleSource, dataset);
+		replaceValues(tupleExpr);
 
+		if (assignBindings) {
 			new BindingAssigner().optimize(tupleExpr, dataset, bindings);
-			new ConstantOptimizer(strategy).optimize(tupleExpr, dataset, bindings);
-			new CompareOptimizer().optimize(tupleExpr, dataset, bindings);
-			new ConjunctiveConstraintSplitter().optimize(tupleExpr, dataset, bindings);
-			new DisjunctiveConstraintOptimizer().optimize(tupleExpr, dataset, bindings);
-			new SameTermFilterOptimizer().optimize(tupleExpr, dataset, bindings);
-			new QueryModelNormalizer().optimize(tupleExpr, dataset, bindings);
-//			new SubSelectJoinOptimizer().optimize(tupleExpr, dataset, bindings);
-			new QueryJoinOptimizer(new NativeEvaluationStatistics(nativeStore)).optimize(tupleExpr, dataset,
-					bindings);
-			new IterativeEvaluationOptimizer().optimize(tupleExpr, dataset, bindings);
-			new FilterOptimizer().optimize(tupleExpr, dataset, bindings);
-			new OrderLimitOptimizer().optimize(tupleExpr, dataset, bindings);
-
-			logger.trace("Optimized query model:\n{}", tupleExpr);
-
-			return strategy.evaluate(tupleExpr, EmptyBindingSet.getInstance());
-		}
-		catch (QueryEvaluationException e) {
-			throw new SailException(e);
 		}
+		new ConstantOptimizer(strategy).optimize(tupleExpr, dataset, bindings);
+		new CompareOptimizer().optimize(tupleExpr, dataset, bindings);
+		new ConjunctiveConstraintSplitter().optimize(tupleExpr, dataset, bindings);
+		new DisjunctiveConstraintOptimizer().optimize(tupleExpr, dataset, bindings);
+		new SameTermFilterOptimizer().optimize(tupleExpr, dataset, bindings);
+		new QueryModelNormalizer().optimize(tupleExpr, dataset, bindings);
+//		new SubSelectJoinOptimizer().optimize(tupleExpr, dataset, bindings);
+		// Joins that are evaluated on value IDs are cheaper than hash joins of
+		// materialized values
+		boolean hashJoins = !nativeStore.getLateMaterialization();
+		new QueryJoinOptimizer(statistics, hashJoins).optimize(tupleExpr, dataset, bindings);
+		new IterativeEvaluationOptimizer().optimize(tupleExpr, dataset, bindings);
+		new FilterOptimizer().optimize(tupleExpr, dataset, bindings);
+		new OrderLimitOptimizer().optimize(tupleExpr, dataset, bindings);
+
+		return tupleExpr;
+	}
+
+	/**
+	 * Assigns the values of the supplied bindings to a query model that was
+	 * optimized without them, and reapplies the optimizations that can take
+	 * advantage of the assigned values.
+	 * 
+	 * @see #optimize(TupleExpr, Dataset, BindingSet, EvaluationStrategyImpl,
+	 *      EvaluationStatistics, boolean)
+	 */
+	protected void assignBindings(TupleExpr plan, Dataset dataset, BindingSet bindings,
+			EvaluationStrategyImpl strategy)
+	{
+		new BindingAssigner().optimize(plan, dataset, bindings);
+		new ConstantOptimizer(strategy).optimize(plan, dataset, bindings);
+		new SameTermFilterOptimizer().optimize(plan, dataset, bindings);
 	}
 
 	protected void replaceValues(TupleExpr tupleExpr)
@@ -304,7 +398,17 @@ public class NativeStoreConnection extends NotifyingSailConnectionBase implement
 		try {
 			nativeStore.getValueStore().sync();
 			nativeStore.getNamespaceStore().sync();
-			nativeStore.getTripleStore().commit();
+
+			TripleStore tripleStore = nativeStore.getTripleStore();
+			long statisticsVersion = tripleStore.getStatisticsVersion();
+			tripleStore.commit();
+
+			// Cached plans are based on the statistics and only need to be
+			// replaced when these have changed materially
+			QueryPlanCache planCache = nativeStore.getQueryPlanCache();
+			if (planCache != null && tripleStore.getStatisticsVersion() != statisticsVersion) {
+				planCache.invalidate();
+			}
 
 			txnLock.release();
 		}
@@ -19,6 +19,7 @@ import org.openrdf.model.ValueFactory;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.QueryInterruptedException;
 import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
 
 public class NativeTripleSource implements TripleSource {
 
@@ -81,6 +82,66 @@ public class NativeTripleSource implements TripleSource {
 		}
 	}
 
+	/**
+	 * Gets the triples that match the specified pattern of value IDs, taking
+	 * this triple source's settings for inferred statements and transaction
+	 * isolation into account.
+	 * 
+	 * @param subj
+	 *        The ID of the subject, or <tt>-1</tt> to indicate a wildcard.
+	 * @param pred
+	 *        The ID of the predicate, or <tt>-1</tt> to indicate a wildcard.
+	 * @param obj
+	 *        The ID of the object, or <tt>-1</tt> to indicate a wildcard.
+	 * @param context
+	 *        The ID of the context, <tt>0</tt> for the null context or
+	 *        <tt>-1</tt> to indicate a wildcard.
+	 */
+	protected RecordIterator getTriples(int subj, int pred, int obj, int context)
+		throws IOException
+	{
+		TripleStore tripleStore = nativeStore.getTripleStore();
+
+		if (includeInferred) {
+			// Get both explicit and inferred statements
+			return tripleStore.getTriples(subj, pred, obj, context, readTransaction);
+		}
+		else {
+			// Only get explicit statements
+			return tripleStore.getTriples(subj, pred, obj, context, true, readTransaction);
+		}
+	}
+
+	/**
+	 * Gets the triples matching the specified pattern from the triple store,
+	 * sorted by the ID of one of the unbound fields.
+	 * 
+	 * @param sortField
+	 *        The field to sort the triples on: <tt>'s'</tt>, <tt>'p'</tt>,
+	 *        <tt>'o'</tt> or <tt>'c'</tt>.
+	 * @return The matching triples, or <tt>null</tt> if the triple store does
+	 *         not have an index that supplies the triples in this order.
+	 * @see #getTriples(int, int, int, int)
+	 */
+	protected RecordIterator getTriplesSortedBy(int subj, int pred, int obj, int context, char sortField)
+		throws IOException
+	{
+		TripleStore tripleStore = nativeStore.getTripleStore();
+
+		if (includeInferred) {
+			// Get both explicit and inferred statements
+			return tripleStore.getTriplesSortedBy(subj, pred, obj, context, sortField, readTransaction);
+		}
+		else {
+			// Only get explicit statements
+			return tripleStore.getTriplesSortedBy(subj, pred, obj, context, sortField, true, readTransaction);
+		}
+	}
+
+	protected ValueStore getValueStore() {
+		return nativeStore.getValueStore();
+	}
+
 	public ValueFactory getValueFactory() {
 		return nativeStore.getValueFactory();
 	}
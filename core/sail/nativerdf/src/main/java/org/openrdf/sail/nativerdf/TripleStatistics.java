@@ -0,0 +1,680 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import info.aduna.io.ByteArrayUtil;
+import info.aduna.io.IOUtil;
+
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
+import org.openrdf.sail.nativerdf.model.NativeValue;
+
+/**
+ * Per-predicate statistics on the triples in a {@link TripleStore}, persisted
+ * to a file on disk. For each predicate, the statistics record the number of
+ * triples, estimates of the number of distinct subjects and objects and the
+ * most frequent objects (the "heavy hitters", e.g. the most frequently used
+ * classes for <tt>rdf:type</tt>). The statistics are updated incrementally when
+ * transactions are committed and are used to estimate the cardinality of
+ * statement patterns without accessing the indexes.
+ * <p>
+ * Distinct counts are estimated using HyperLogLog sketches, which cannot
+ * account for removed triples. The statistics are therefore rebuilt from the
+ * triple data once the number of removed triples exceeds the number of
+ * remaining triples. The statistics file is deleted when its contents become
+ * outdated and the statistics are rebuilt when no file is found, for example
+ * after a crash. Updated statistics are written to a new file that replaces
+ * the deleted one, so that a crash while writing never leaves a partially
+ * written statistics file.
+ * <p>
+ * The statistics have a {@link #getVersion() version} that is incremented
+ * whenever they change materially, i.e. when the triple count of a predicate
+ * changes by more than {@link #MATERIAL_CHANGE_RATIO} or when they are
+ * rebuilt. Cached query plans that are based on the statistics only need to
+ * be replaced when the version changes.
+ */
+class TripleStatistics {
+
+	/*-----------*
+	 * Constants *
+	 *-----------*/
+
+	/**
+	 * Magic number "Triple STatistics" to detect whether the file is actually a
+	 * triple statistics file. The first three bytes of the file should be equal
+	 * to this magic number.
+	 */
+	private static final byte[] MAGIC_NUMBER = new byte[] { 't', 's', 't' };
+
+	/**
+	 * The file format version number, stored as the fourth byte in triple
+	 * statistics files.
+	 */
+	private static final byte FILE_FORMAT_VERSION = 1;
+
+	private static final int HEADER_LENGTH = MAGIC_NUMBER.length + 1;
+
+	private static final String FILE_NAME = "triples-stats.dat";
+
+	private static final String SYNC_FILE_NAME = "triples-stats.sync";
+
+	/**
+	 * The number of index bits of the HyperLogLog sketches, resulting in
+	 * sketches of 256 registers with a standard error of about 6.5%.
+	 */
+	private static final int SKETCH_BITS = 8;
+
+	private static final int SKETCH_SIZE = 1 << SKETCH_BITS;
+
+	/**
+	 * The maximum number of objects that are tracked as heavy hitters per
+	 * predicate.
+	 */
+	static final int HEAVY_HITTER_CAPACITY = 32;
+
+	/**
+	 * The number of updates after which the statistics are written to disk,
+	 * limiting the amount of work that is lost in case of a crash.
+	 */
+	private static final long SYNC_THRESHOLD = 100000L;
+
+	/**
+	 * The relative change in the triple count of a predicate at which the
+	 * statistics are considered to have changed materially.
+	 */
+	private static final double MATERIAL_CHANGE_RATIO = 0.1;
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private final File file;
+
+	private final File syncFile;
+
+	private final Map<Integer, PredicateStatistics> predicateStats = new HashMap<Integer, PredicateStatistics>();
+
+	/**
+	 * The number of triples that have been removed since the statistics were
+	 * last rebuilt.
+	 */
+	private long removedCount;
+
+	/**
+	 * The number of updates since the statistics were last written to disk.
+	 */
+	private long unsyncedUpdates;
+
+	/**
+	 * Flag indicating whether the statistics have changed and need to be
+	 * written to file.
+	 */
+	private boolean needsSync = false;
+
+	/**
+	 * Flag indicating whether the statistics need to be rebuilt from the triple
+	 * data.
+	 */
+	private boolean needsRebuild = false;
+
+	private long version = 0L;
+
+	/**
+	 * Flag indicating whether the statistics have changed materially since the
+	 * version was last incremented.
+	 */
+	private boolean materialChange = false;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+	public TripleStatistics(File dir)
+		throws IOException
+	{
+		file = new File(dir, FILE_NAME);
+		syncFile = new File(dir, SYNC_FILE_NAME);
+
+		// Remove any partially written file that was left behind by a crash
+		syncFile.delete();
+
+		if (file.length() > 0L) {
+			load();
+			newVersion();
+		}
+		else {
+			needsRebuild = true;
+		}
+	}
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	/**
+	 * Checks whether the statistics are missing or outdated and need to be
+	 * rebuilt using {@link #rebuild(RecordIterator)}.
+	 */
+	public synchronized boolean needsRebuild() {
+		return needsRebuild;
+	}
+
+	/**
+	 * Gets the version of the statistics, which is incremented whenever the
+	 * statistics change materially.
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Marks the statistics as outdated, for example because a transaction was
+	 * committed without knowing which triples were updated.
+	 */
+	public synchronized void invalidate()
+		throws IOException
+	{
+		needsRebuild = true;
+		newVersion();
+		scheduleSync();
+	}
+
+	/**
+	 * Rebuilds the statistics from scratch.
+	 *
+	 * @param triples
+	 *        An iterator over all committed triples.
+	 */
+	public synchronized void rebuild(RecordIterator triples)
+		throws IOException
+	{
+		predicateStats.clear();
+		removedCount = 0L;
+
+		byte[] data;
+		while ((data = triples.next()) != null) {
+			getPredicateStatistics(ByteArrayUtil.getInt(data, TripleStore.PRED_IDX), true).add(data);
+		}
+
+		needsRebuild = false;
+		newVersion();
+		scheduleSync();
+		sync();
+	}
+
+	/**
+	 * Clears the statistics, e.g. because all triples have been removed.
+	 */
+	public synchronized void clear()
+		throws IOException
+	{
+		predicateStats.clear();
+		removedCount = 0L;
+		needsRebuild = false;
+		newVersion();
+		scheduleSync();
+	}
+
+	/**
+	 * Registers a triple that has been added by a committed transaction.
+	 */
+	public synchronized void tripleAdded(byte[] data)
+		throws IOException
+	{
+		PredicateStatistics stats = getPredicateStatistics(ByteArrayUtil.getInt(data, TripleStore.PRED_IDX),
+				true);
+		stats.add(data);
+		checkMaterialChange(stats);
+
+		unsyncedUpdates++;
+		scheduleSync();
+	}
+
+	/**
+	 * Registers a triple that has been removed by a committed transaction.
+	 */
+	public synchronized void tripleRemoved(byte[] data)
+		throws IOException
+	{
+		PredicateStatistics stats = getPredicateStatistics(ByteArrayUtil.getInt(data, TripleStore.PRED_IDX),
+				false);
+
+		if (stats != null) {
+			stats.remove(data);
+			checkMaterialChange(stats);
+			if (stats.tripleCount <= 0L) {
+				predicateStats.remove(stats.predID);
+			}
+		}
+
+		removedCount++;
+		unsyncedUpdates++;
+		scheduleSync();
+	}
+
+	/**
+	 * Called after the updates of a transaction have been registered. Writes the
+	 * statistics to disk if enough updates have accumulated, marks the
+	 * statistics for rebuilding if many triples have been removed and
+	 * increments the version if the statistics have changed materially.
+	 */
+	public synchronized void commit()
+		throws IOException
+	{
+		if (removedCount > Math.max(SYNC_THRESHOLD, getTripleCount())) {
+			needsRebuild = true;
+		}
+		else if (unsyncedUpdates >= SYNC_THRESHOLD) {
+			sync();
+		}
+
+		if (materialChange) {
+			newVersion();
+		}
+	}
+
+	/**
+	 * Gets the total number of triples.
+	 */
+	public synchronized long getTripleCount() {
+		long count = 0L;
+		for (PredicateStatistics stats : predicateStats.values()) {
+			count += stats.tripleCount;
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates the number of triples matching a pattern with a specific
+	 * predicate. Estimates are based on the assumption that the subject and
+	 * object are independent of each other.
+	 *
+	 * @param subjBound
+	 *        Indicates whether the subject is bound to a (possibly unknown)
+	 *        value.
+	 * @param predID
+	 *        The ID of the predicate.
+	 * @param objBound
+	 *        Indicates whether the object is bound to a (possibly unknown)
+	 *        value.
+	 * @param objID
+	 *        The ID of the object value, or {@link NativeValue#UNKNOWN_ID} if the
+	 *        object is unbound or its value is not known in advance.
+	 * @return The estimated number of matching triples.
+	 */
+	public synchronized double getCardinality(boolean subjBound, int predID, boolean objBound, int objID) {
+		PredicateStatistics stats = predicateStats.get(predID);
+
+		if (stats == null) {
+			return 0.0;
+		}
+
+		double cardinality = stats.tripleCount;
+
+		if (subjBound) {
+			cardinality /= stats.getDistinctSubjectCount();
+		}
+
+		if (objBound) {
+			if (objID == NativeValue.UNKNOWN_ID) {
+				cardinality /= stats.getDistinctObjectCount();
+			}
+			else {
+				cardinality *= stats.getObjectCount(objID) / stats.tripleCount;
+			}
+		}
+
+		return cardinality;
+	}
+
+	/**
+	 * Writes the statistics to disk, if they have changed.
+	 */
+	public synchronized void sync()
+		throws IOException
+	{
+		if (needsSync && !needsRebuild) {
+			int length = HEADER_LENGTH + 12;
+			for (PredicateStatistics stats : predicateStats.values()) {
+				length += stats.getSerializedLength();
+			}
+
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			buf.put(MAGIC_NUMBER);
+			buf.put(FILE_FORMAT_VERSION);
+			buf.putLong(removedCount);
+			buf.putInt(predicateStats.size());
+			for (PredicateStatistics stats : predicateStats.values()) {
+				stats.serialize(buf);
+			}
+			IOUtil.writeBytes(buf.array(), syncFile);
+
+			// prefer atomic renameTo operations
+			boolean renamed = syncFile.renameTo(file);
+
+			if (!renamed) {
+				// tolerate renameTo that does not work if destination exists
+				if (syncFile.exists() && file.exists()) {
+					file.delete();
+					renamed = syncFile.renameTo(file);
+				}
+			}
+
+			if (!renamed) {
+				throw new IOException("Could not rename " + syncFile + " to " + file.getName());
+			}
+
+			needsSync = false;
+			unsyncedUpdates = 0L;
+		}
+	}
+
+	public synchronized void close()
+		throws IOException
+	{
+		sync();
+	}
+
+	private void scheduleSync()
+		throws IOException
+	{
+		if (needsSync == false) {
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Unable to delete outdated triple statistics: " + file);
+			}
+			needsSync = true;
+		}
+	}
+
+	private void load()
+		throws IOException
+	{
+		byte[] data = IOUtil.readBytes(file);
+
+		if (data.length < HEADER_LENGTH
+				|| !Arrays.equals(MAGIC_NUMBER, ByteArrayUtil.get(data, 0, MAGIC_NUMBER.length)))
+		{
+			throw new IOException("File doesn't contain compatible triple statistics: " + file);
+		}
+
+		byte version = data[MAGIC_NUMBER.length];
+		if (version > FILE_FORMAT_VERSION) {
+			throw new IOException("Unable to read triple statistics file; it uses a newer file format");
+		}
+		else if (version != FILE_FORMAT_VERSION) {
+			throw new IOException("Unable to read triple statistics file; invalid file format version: "
+					+ version);
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+		removedCount = buf.getLong();
+
+		int predicateCount = buf.getInt();
+		for (int i = 0; i < predicateCount; i++) {
+			PredicateStatistics stats = PredicateStatistics.deserialize(buf);
+			predicateStats.put(stats.predID, stats);
+		}
+	}
+
+	private void checkMaterialChange(PredicateStatistics stats) {
+		if (!materialChange) {
+			long change = Math.abs(stats.tripleCount - stats.versionTripleCount);
+			materialChange = change > stats.versionTripleCount * MATERIAL_CHANGE_RATIO;
+		}
+	}
+
+	/**
+	 * Increments the version and records the current triple counts as the ones
+	 * that future changes are compared to.
+	 */
+	private void newVersion() {
+		version++;
+		materialChange = false;
+
+		for (PredicateStatistics stats : predicateStats.values()) {
+			stats.versionTripleCount = stats.tripleCount;
+		}
+	}
+
+	private PredicateStatistics getPredicateStatistics(int predID, boolean create) {
+		PredicateStatistics stats = predicateStats.get(predID);
+
+		if (stats == null && create) {
+			stats = new PredicateStatistics(predID);
+			predicateStats.put(predID, stats);
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Hashes a value ID for use in a HyperLogLog sketch.
+	 */
+	private static int hash(int id) {
+		// Finalization step of MurmurHash3
+		int h = id;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static void addToSketch(byte[] sketch, int id) {
+		int h = hash(id);
+		int register = h >>> (32 - SKETCH_BITS);
+		byte rank = (byte)Math.min(Integer.numberOfLeadingZeros(h << SKETCH_BITS) + 1, 32 - SKETCH_BITS + 1);
+
+		if (rank > sketch[register]) {
+			sketch[register] = rank;
+		}
+	}
+
+	private static double estimateDistinctCount(byte[] sketch) {
+		double sum = 0.0;
+		int zeroCount = 0;
+
+		for (byte rank : sketch) {
+			sum += 1.0 / (1L << rank);
+			if (rank == 0) {
+				zeroCount++;
+			}
+		}
+
+		double alpha = 0.7213 / (1.0 + 1.079 / SKETCH_SIZE);
+		double estimate = alpha * SKETCH_SIZE * SKETCH_SIZE / sum;
+
+		if (estimate <= 2.5 * SKETCH_SIZE && zeroCount > 0) {
+			// Small range correction
+			estimate = SKETCH_SIZE * Math.log((double)SKETCH_SIZE / zeroCount);
+		}
+
+		return estimate;
+	}
+
+	/*---------------------------------*
+	 * Inner class PredicateStatistics *
+	 *---------------------------------*/
+
+	private static class PredicateStatistics {
+
+		private final int predID;
+
+		private long tripleCount;
+
+		/**
+		 * The triple count when the version of the statistics was last
+		 * incremented, not persisted.
+		 */
+		private long versionTripleCount;
+
+		private final byte[] subjectSketch = new byte[SKETCH_SIZE];
+
+		private final byte[] objectSketch = new byte[SKETCH_SIZE];
+
+		/**
+		 * The most frequent objects, tracked using the Space-Saving algorithm.
+		 * An object's actual count lies between its count minus its error and its
+		 * count.
+		 */
+		private final int[] heavyHitterIDs = new int[HEAVY_HITTER_CAPACITY];
+
+		private final long[] heavyHitterCounts = new long[HEAVY_HITTER_CAPACITY];
+
+		private final long[] heavyHitterErrors = new long[HEAVY_HITTER_CAPACITY];
+
+		private int heavyHitterCount;
+
+		/**
+		 * Flag indicating whether objects have been evicted from the heavy
+		 * hitters. If not, the heavy hitters contain the exact counts of all
+		 * objects.
+		 */
+		private boolean heavyHittersEvicted;
+
+		public PredicateStatistics(int predID) {
+			this.predID = predID;
+		}
+
+		public void add(byte[] data) {
+			tripleCount++;
+
+			addToSketch(subjectSketch, ByteArrayUtil.getInt(data, TripleStore.SUBJ_IDX));
+
+			int objID = ByteArrayUtil.getInt(data, TripleStore.OBJ_IDX);
+			addToSketch(objectSketch, objID);
+
+			int idx = indexOfHeavyHitter(objID);
+			if (idx >= 0) {
+				heavyHitterCounts[idx]++;
+			}
+			else if (heavyHitterCount < HEAVY_HITTER_CAPACITY) {
+				heavyHitterIDs[heavyHitterCount] = objID;
+				heavyHitterCounts[heavyHitterCount] = 1L;
+				heavyHitterErrors[heavyHitterCount] = 0L;
+				heavyHitterCount++;
+			}
+			else {
+				// Replace the least frequent object
+				int minIdx = indexOfLeastFrequent();
+				long minCount = heavyHitterCounts[minIdx];
+				heavyHitterIDs[minIdx] = objID;
+				heavyHitterCounts[minIdx] = minCount + 1L;
+				heavyHitterErrors[minIdx] = minCount;
+				heavyHittersEvicted = true;
+			}
+		}
+
+		public void remove(byte[] data) {
+			tripleCount--;
+
+			int idx = indexOfHeavyHitter(ByteArrayUtil.getInt(data, TripleStore.OBJ_IDX));
+			if (idx >= 0 && heavyHitterCounts[idx] > 0L) {
+				heavyHitterCounts[idx]--;
+				heavyHitterErrors[idx] = Math.min(heavyHitterErrors[idx], heavyHitterCounts[idx]);
+			}
+		}
+
+		public double getDistinctSubjectCount() {
+			return Math.max(1.0, Math.min(tripleCount, estimateDistinctCount(subjectSketch)));
+		}
+
+		public double getDistinctObjectCount() {
+			return Math.max(1.0, Math.min(tripleCount, estimateDistinctCount(objectSketch)));
+		}
+
+		/**
+		 * Estimates the number of triples with the specified object.
+		 */
+		public double getObjectCount(int objID) {
+			if (!heavyHittersEvicted) {
+				// Heavy hitters contain all objects
+				int idx = indexOfHeavyHitter(objID);
+				return idx >= 0 ? heavyHitterCounts[idx] : 0.0;
+			}
+
+			// Spread the triples that are not attributed to any of the heavy
+			// hitters evenly over the remaining objects
+			long guaranteedCount = 0L;
+			for (int i = 0; i < heavyHitterCount; i++) {
+				guaranteedCount += heavyHitterCounts[i] - heavyHitterErrors[i];
+			}
+
+			double remainingObjects = Math.max(1.0, getDistinctObjectCount() - heavyHitterCount);
+			double uniformCount = Math.max(0L, tripleCount - guaranteedCount) / remainingObjects;
+
+			int idx = indexOfHeavyHitter(objID);
+			if (idx >= 0) {
+				long count = heavyHitterCounts[idx];
+				return Math.max(count - heavyHitterErrors[idx], Math.min(uniformCount, count));
+			}
+			else {
+				// Objects that are not tracked are less frequent than any of the
+				// heavy hitters
+				return Math.min(uniformCount, heavyHitterCounts[indexOfLeastFrequent()]);
+			}
+		}
+
+		private int indexOfHeavyHitter(int objID) {
+			for (int i = 0; i < heavyHitterCount; i++) {
+				if (heavyHitterIDs[i] == objID) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private int indexOfLeastFrequent() {
+			int minIdx = 0;
+			for (int i = 1; i < heavyHitterCount; i++) {
+				if (heavyHitterCounts[i] < heavyHitterCounts[minIdx]) {
+					minIdx = i;
+				}
+			}
+			return minIdx;
+		}
+
+		public int getSerializedLength() {
+			return 4 + 8 + 2 * SKETCH_SIZE + 1 + 4 + heavyHitterCount * (4 + 8 + 8);
+		}
+
+		public void serialize(ByteBuffer buf) {
+			buf.putInt(predID);
+			buf.putLong(tripleCount);
+			buf.put(subjectSketch);
+			buf.put(objectSketch);
+			buf.put(heavyHittersEvicted ? (byte)1 : (byte)0);
+			buf.putInt(heavyHitterCount);
+			for (int i = 0; i < heavyHitterCount; i++) {
+				buf.putInt(heavyHitterIDs[i]);
+				buf.putLong(heavyHitterCounts[i]);
+				buf.putLong(heavyHitterErrors[i]);
+			}
+		}
+
+		public static PredicateStatistics deserialize(ByteBuffer buf) {
+			PredicateStatistics stats = new PredicateStatistics(buf.getInt());
+			stats.tripleCount = buf.getLong();
+			buf.get(stats.subjectSketch);
+			buf.get(stats.objectSketch);
+			stats.heavyHittersEvicted = buf.get() != 0;
+			stats.heavyHitterCount = buf.getInt();
+			for (int i = 0; i < stats.heavyHitterCount; i++) {
+				stats.heavyHitterIDs[i] = buf.getInt();
+				stats.heavyHitterCounts[i] = buf.getLong();
+				stats.heavyHitterErrors[i] = buf.getLong();
+			}
+			return stats;
+		}
+	}
+}
@@ -11,15 +11,25 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,6 +62,31 @@ class TripleStore {
 	 */
 	private static final String DEFAULT_INDEXES = "spoc,posc";
 
+	/**
+	 * The default number of nodes that are cached per triple index.
+	 */
+	public static final int NODE_CACHE_SIZE = BTree.DEFAULT_NODE_CACHE_SIZE;
+
+	/**
+	 * The number of stored triples that are collected before they are added to
+	 * the secondary indexes when updating indexes in parallel.
+	 */
+	static final int INDEX_UPDATE_BATCH_SIZE = 4096;
+
+	/**
+	 * The number of triples that are sorted in memory before being spilled to
+	 * disk as a sorted run when {@link #bulkLoad(RecordCache) bulk loading}
+	 * triples.
+	 */
+	static final int BULK_LOAD_RUN_SIZE = 256 * 1024;
+
+	/**
+	 * The number of updated triples that are sorted in memory before being
+	 * spilled to disk as a sorted run when committing a transaction to the
+	 * secondary indexes.
+	 */
+	static final int UPDATE_SORT_RUN_SIZE = 64 * 1024;
+
 	/**
 	 * The file name for the properties file.
 	 */
@@ -79,9 +114,22 @@ class TripleStore {
 	 * store.
 	 * <li>version 10a: Introduces transaction flags, this is backwards
 	 * compatible with version 10.
+	 * <li>version 11: Stores the nodes of the BTree indexes in compressed form.
+	 * Indexes of version 10 stores are converted automatically.
 	 * </ul>
 	 */
-	private static final int SCHEME_VERSION = 10;
+	private static final int SCHEME_VERSION = 11;
+
+	/**
+	 * The suffix of the filename prefix for indexes that are being converted to
+	 * compressed nodes.
+	 */
+	private static final String UPGRADE_SUFFIX = "-upgrade";
+
+	/**
+	 * The extensions of the files that make up a BTree index.
+	 */
+	private static final String[] BTREE_FILE_EXTENSIONS = { ".dat", ".alloc" };
 
 	// 17 bytes are used to represent a triple:
 	// byte 0-3 : subject
@@ -148,10 +196,38 @@ class TripleStore {
 
 	private final boolean forceSync;
 
+	private final int nodeCacheSize;
+
+	private final boolean memoryMapped;
+
 	private final TxnStatusFile txnStatusFile;
 
+	/**
+	 * The triples that have been updated in the current transaction, sorted in
+	 * the order of the first index. Commits and rollbacks merge these triples
+	 * into each index rather than scanning the indexes for pending updates.
+	 */
 	private volatile RecordCache updatedTriplesCache;
 
+	/**
+	 * Executor for updating the indexes in parallel, <tt>null</tt> if indexes
+	 * are updated sequentially.
+	 */
+	private final ExecutorService indexUpdateExecutor;
+
+	/**
+	 * Triples that have been stored, but that have not yet been added to the
+	 * indexes, mapped by their subject, predicate, object and context IDs. Only
+	 * used when indexes are updated in parallel. Access to this map must be
+	 * synchronized on the map itself.
+	 */
+	private final Map<ByteBuffer, byte[]> pendingTriples = new LinkedHashMap<ByteBuffer, byte[]>();
+
+	/**
+	 * Statistics on the committed triples, used for cardinality estimates.
+	 */
+	private final TripleStatistics statistics;
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -164,11 +240,57 @@ class TripleStore {
 
 	public TripleStore(File dir, String indexSpecStr, boolean forceSync)
 		throws IOException, SailException
+	{
+		this(dir, indexSpecStr, forceSync, NODE_CACHE_SIZE);
+	}
+
+	public TripleStore(File dir, String indexSpecStr, boolean forceSync, int nodeCacheSize)
+		throws IOException, SailException
+	{
+		this(dir, indexSpecStr, forceSync, nodeCacheSize, false);
+	}
+
+	public TripleStore(File dir, String indexSpecStr, boolean forceSync, int nodeCacheSize,
+			boolean memoryMapped)
+		throws IOException, SailException
+	{
+		this(dir, indexSpecStr, forceSync, nodeCacheSize, memoryMapped, 1);
+	}
+
+	/**
+	 * Creates a new TripleStore.
+	 * 
+	 * @param indexUpdateThreads
+	 *        The number of threads to use for updating the indexes. If larger
+	 *        than 1, updates are applied to the indexes in parallel, each index
+	 *        being updated by a single thread.
+	 */
+	public TripleStore(File dir, String indexSpecStr, boolean forceSync, int nodeCacheSize,
+			boolean memoryMapped, int indexUpdateThreads)
+		throws IOException, SailException
 	{
 		this.dir = dir;
 		this.forceSync = forceSync;
+		this.nodeCacheSize = nodeCacheSize;
+		this.memoryMapped = memoryMapped;
 		this.txnStatusFile = new TxnStatusFile(dir);
 
+		if (indexUpdateThreads > 1) {
+			indexUpdateExecutor = Executors.newFixedThreadPool(indexUpdateThreads, new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "TripleStore index updater");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		else {
+			indexUpdateExecutor = null;
+		}
+
+		this.statistics = new TripleStatistics(dir);
+
 		File propFile = new File(dir, PROPERTIES_FILE);
 
 		if (!propFile.exists()) {
@@ -192,6 +314,7 @@ class TripleStore {
 
 			// Initialize existing indexes
 			Set<String> indexSpecs = getIndexSpecs();
+			recoverIndexUpgrades(indexSpecs);
 			initIndexes(indexSpecs);
 
 			// Check transaction status
@@ -203,6 +326,9 @@ class TripleStore {
 				processUncompletedTransaction(txnStatus);
 			}
 
+			// Convert indexes from older versions to compressed nodes
+			compressIndexes();
+
 			// Compare the existing indexes with the requested indexes
 			Set<String> reqIndexSpecs = parseIndexSpecList(indexSpecStr);
 
@@ -216,6 +342,10 @@ class TripleStore {
 			}
 		}
 
+		if (statistics.needsRebuild()) {
+			rebuildStatistics();
+		}
+
 		if (!String.valueOf(SCHEME_VERSION).equals(properties.getProperty(VERSION_KEY))
 				|| !indexSpecStr.equals(properties.getProperty(INDEXES_KEY)))
 		{
@@ -315,6 +445,114 @@ class TripleStore {
 		}
 	}
 
+	/**
+	 * Cleans up after an index conversion that was interrupted by a crash. If
+	 * the original index files still exist, the converted index is incomplete
+	 * and is discarded. Otherwise, the original files have already been deleted
+	 * and the converted index files are moved into place.
+	 */
+	private void recoverIndexUpgrades(Set<String> indexSpecs)
+		throws IOException
+	{
+		for (String fieldSeq : indexSpecs) {
+			String prefix = getIndexFilenamePrefix(fieldSeq);
+			String upgradePrefix = prefix + UPGRADE_SUFFIX;
+
+			if (!new File(dir, upgradePrefix + ".dat").exists()) {
+				continue;
+			}
+
+			if (new File(dir, prefix + ".dat").exists()) {
+				logger.info("Discarding incomplete conversion of {} index", fieldSeq);
+				deleteIndexFiles(upgradePrefix);
+			}
+			else {
+				logger.info("Completing conversion of {} index", fieldSeq);
+				renameIndexFiles(upgradePrefix, prefix);
+			}
+		}
+	}
+
+	/**
+	 * Converts any indexes that do not use compressed nodes yet. Each index is
+	 * bulk loaded into a new, compressed BTree, which then replaces the original
+	 * index files.
+	 */
+	private void compressIndexes()
+		throws IOException
+	{
+		for (int i = 0; i < indexes.size(); i++) {
+			TripleIndex index = indexes.get(i);
+			BTree btree = index.getBTree();
+
+			if (btree.isCompressed()) {
+				continue;
+			}
+
+			String fieldSeq = new String(index.getFieldSeq());
+			String prefix = getIndexFilenamePrefix(fieldSeq);
+			String upgradePrefix = prefix + UPGRADE_SUFFIX;
+
+			logger.info("Converting {} index to compressed format...", fieldSeq);
+
+			BTree upgradedBTree = new BTree(dir, upgradePrefix, 2048, RECORD_LENGTH, index.tripleComparator,
+					forceSync, nodeCacheSize, memoryMapped, true);
+			try {
+				RecordIterator iter = btree.iterateAll();
+				try {
+					upgradedBTree.bulkLoad(iter);
+				}
+				finally {
+					iter.close();
+				}
+			}
+			finally {
+				upgradedBTree.close();
+			}
+
+			if (!btree.delete()) {
+				throw new IOException("Unable to delete file(s) of " + fieldSeq + " index");
+			}
+			renameIndexFiles(upgradePrefix, prefix);
+
+			indexes.set(i, new TripleIndex(fieldSeq));
+
+			logger.info("Converted {} index", fieldSeq);
+		}
+	}
+
+	private static String getIndexFilenamePrefix(String fieldSeq) {
+		return "triples-" + fieldSeq;
+	}
+
+	private void deleteIndexFiles(String prefix)
+		throws IOException
+	{
+		for (String ext : BTREE_FILE_EXTENSIONS) {
+			File file = new File(dir, prefix + ext);
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Unable to delete file " + file);
+			}
+		}
+	}
+
+	private void renameIndexFiles(String fromPrefix, String toPrefix)
+		throws IOException
+	{
+		// Move the data file last, its presence marks a completed conversion
+		for (int i = BTREE_FILE_EXTENSIONS.length - 1; i >= 0; i--) {
+			File fromFile = new File(dir, fromPrefix + BTREE_FILE_EXTENSIONS[i]);
+			File toFile = new File(dir, toPrefix + BTREE_FILE_EXTENSIONS[i]);
+
+			if (fromFile.exists()) {
+				toFile.delete();
+				if (!fromFile.renameTo(toFile)) {
+					throw new IOException("Unable to rename file " + fromFile + " to " + toFile);
+				}
+			}
+		}
+	}
+
 	private void processUncompletedTransaction(TxnStatus txnStatus)
 		throws IOException
 	{
@@ -438,10 +676,21 @@ class TripleStore {
 	public void close()
 		throws IOException
 	{
+		if (indexUpdateExecutor != null) {
+			indexUpdateExecutor.shutdown();
+		}
+
+		// Pending triples are part of an unfinished transaction, which will be
+		// rolled back when the store is reopened
+		synchronized (pendingTriples) {
+			pendingTriples.clear();
+		}
+
 		for (TripleIndex index : indexes) {
 			index.getBTree().close();
 		}
 		
+		statistics.close();
 		txnStatusFile.close();
 		
 		// Should have been removed upon commit() or rollback(), but just to be sure
@@ -521,6 +770,72 @@ class TripleStore {
 		return btreeIter;
 	}
 
+	/**
+	 * Gets the triples matching the specified pattern, sorted by the ID of one
+	 * of the unbound fields. The triples are read with a single scan over an
+	 * index that starts with the bound fields of the pattern, followed by the
+	 * field to sort on.
+	 * 
+	 * @param sortField
+	 *        The field to sort the triples on: <tt>'s'</tt>, <tt>'p'</tt>,
+	 *        <tt>'o'</tt> or <tt>'c'</tt>.
+	 * @return The matching triples, or <tt>null</tt> if none of the indexes
+	 *         can supply the triples in the requested order.
+	 * @see #getTriples(int, int, int, int, boolean)
+	 */
+	public RecordIterator getTriplesSortedBy(int subj, int pred, int obj, int context, char sortField,
+			boolean readTransaction)
+		throws IOException
+	{
+		if (readTransaction) {
+			// Don't read removed statements
+			return getTriplesSortedBy(subj, pred, obj, context, sortField, 0, TripleStore.REMOVED_FLAG);
+		}
+		else {
+			// Don't read added statements
+			return getTriplesSortedBy(subj, pred, obj, context, sortField, 0, TripleStore.ADDED_FLAG);
+		}
+	}
+
+	/**
+	 * Gets the explicit or all triples matching the specified pattern, sorted
+	 * by the ID of one of the unbound fields.
+	 * 
+	 * @return The matching triples, or <tt>null</tt> if none of the indexes
+	 *         can supply the triples in the requested order.
+	 * @see #getTriples(int, int, int, int, boolean, boolean)
+	 * @see #getTriplesSortedBy(int, int, int, int, char, boolean)
+	 */
+	public RecordIterator getTriplesSortedBy(int subj, int pred, int obj, int context, char sortField,
+			boolean explicit, boolean readTransaction)
+		throws IOException
+	{
+		int flags = 0;
+		int flagsMask = 0;
+
+		if (readTransaction) {
+			flagsMask |= TripleStore.REMOVED_FLAG;
+			// 'explicit' is handled through an ExplicitStatementFilter
+		}
+		else {
+			flagsMask |= TripleStore.ADDED_FLAG;
+
+			if (explicit) {
+				flags |= TripleStore.EXPLICIT_FLAG;
+				flagsMask |= TripleStore.EXPLICIT_FLAG;
+			}
+		}
+
+		RecordIterator btreeIter = getTriplesSortedBy(subj, pred, obj, context, sortField, flags, flagsMask);
+
+		if (btreeIter != null && readTransaction && explicit) {
+			// Filter implicit statements from the result
+			btreeIter = new ExplicitStatementFilter(btreeIter);
+		}
+
+		return btreeIter;
+	}
+
 	/*-------------------------------------*
 	 * Inner class ExplicitStatementFilter *
 	 *-------------------------------------*/
@@ -569,14 +884,56 @@ class TripleStore {
 	private RecordIterator getTriples(int subj, int pred, int obj, int context, int flags, int flagsMask)
 		throws IOException
 	{
+		flushPendingTriples();
+
 		TripleIndex index = getBestIndex(subj, pred, obj, context);
 		boolean doRangeSearch = index.getPatternScore(subj, pred, obj, context) > 0;
 		return getTriplesUsingIndex(subj, pred, obj, context, flags, flagsMask, index, doRangeSearch);
 	}
 
+	private RecordIterator getTriplesSortedBy(int subj, int pred, int obj, int context, char sortField,
+			int flags, int flagsMask)
+		throws IOException
+	{
+		flushPendingTriples();
+
+		for (TripleIndex index : indexes) {
+			int score = index.getPatternScore(subj, pred, obj, context);
+			char[] fieldSeq = index.getFieldSeq();
+
+			if (score == getBoundFieldCount(subj, pred, obj, context) && score < fieldSeq.length
+					&& fieldSeq[score] == sortField)
+			{
+				// All bound fields precede the sort field in this index
+				return getTriplesUsingIndex(subj, pred, obj, context, flags, flagsMask, index, score > 0);
+			}
+		}
+
+		return null;
+	}
+
+	private int getBoundFieldCount(int subj, int pred, int obj, int context) {
+		int count = 0;
+		if (subj >= 0) {
+			count++;
+		}
+		if (pred >= 0) {
+			count++;
+		}
+		if (obj >= 0) {
+			count++;
+		}
+		if (context >= 0) {
+			count++;
+		}
+		return count;
+	}
+
 	private RecordIterator getAllTriplesSortedByContext(int flags, int flagsMask)
 		throws IOException
 	{
+		flushPendingTriples();
+
 		for (TripleIndex index : indexes) {
 			if (index.getFieldSeq()[0] == 'c') {
 				// found a context-first index
@@ -609,6 +966,13 @@ class TripleStore {
 	protected double cardinality(int subj, int pred, int obj, int context)
 		throws IOException
 	{
+		if (subj < 0 && pred >= 0 && obj < 0 && context < 0 && !statistics.needsRebuild()) {
+			// Use the predicate statistics rather than probing the indexes. The
+			// statistics only give averages for bound subjects and objects, so the
+			// indexes give better estimates when their IDs are known.
+			return statistics.getCardinality(false, pred, false, -1);
+		}
+
 		TripleIndex index = getBestIndex(subj, pred, obj, context);
 		BTree btree = index.btree;
 
@@ -626,6 +990,40 @@ class TripleStore {
 		return rangeSize;
 	}
 
+	/**
+	 * Estimates the number of triples matching a pattern with the specified
+	 * predicate, where the subject and object may be bound to values that are
+	 * not known in advance, e.g. because they are bound by other parts of a
+	 * query. Triples are counted regardless of their context.
+	 * 
+	 * @param subjBound
+	 *        Indicates whether the subject is bound.
+	 * @param pred
+	 *        The predicate ID.
+	 * @param objBound
+	 *        Indicates whether the object is bound.
+	 * @param obj
+	 *        The object ID, or <tt>-1</tt> if the object is unbound or its value
+	 *        is not known in advance.
+	 * @return The estimated number of matching triples, or a negative value if
+	 *         no statistics are available.
+	 */
+	protected double cardinality(boolean subjBound, int pred, boolean objBound, int obj) {
+		if (statistics.needsRebuild()) {
+			return -1.0;
+		}
+		return statistics.getCardinality(subjBound, pred, objBound, obj);
+	}
+
+	/**
+	 * Gets the version of the triple statistics that are used for cardinality
+	 * estimates. The version is incremented whenever the statistics change
+	 * materially.
+	 */
+	public long getStatisticsVersion() {
+		return statistics.getVersion();
+	}
+
 	protected TripleIndex getBestIndex(int subj, int pred, int obj, int context) {
 		int bestScore = -1;
 		TripleIndex bestIndex = null;
@@ -644,9 +1042,15 @@ class TripleStore {
 	public void clear()
 		throws IOException
 	{
+		synchronized (pendingTriples) {
+			pendingTriples.clear();
+		}
+
 		for (TripleIndex index : indexes) {
 			index.getBTree().clear();
 		}
+
+		statistics.clear();
 	}
 
 	public boolean storeTriple(int subj, int pred, int obj, int context)
@@ -655,13 +1059,81 @@ class TripleStore {
 		return storeTriple(subj, pred, obj, context, true);
 	}
 
+	/**
+	 * Checks whether this triple store contains any triples, including
+	 * uncommitted ones.
+	 */
+	public boolean isEmpty()
+		throws IOException
+	{
+		flushPendingTriples();
+
+		RecordIterator iter = indexes.get(0).getBTree().iterateAll();
+		try {
+			return iter.next() == null;
+		}
+		finally {
+			iter.close();
+		}
+	}
+
+	/**
+	 * Loads the supplied triples into this (empty) triple store, bypassing the
+	 * transaction mechanism. For each index, the triples are sorted in index
+	 * order using an external merge sort, after which the index' BTree is built
+	 * bottom-up from the sorted triples. Duplicate triples are ignored.
+	 * 
+	 * @param triples
+	 *        The triples to load, in arbitrary order. The triples are stored
+	 *        as-is, so their flags should only indicate whether they are
+	 *        explicit.
+	 * @return The number of distinct triples that were loaded.
+	 * @throws IllegalStateException
+	 *         If this triple store is not empty.
+	 */
+	protected long bulkLoad(RecordCache triples)
+		throws IOException
+	{
+		if (!isEmpty()) {
+			throw new IllegalStateException("Bulk loading requires an empty triple store");
+		}
+
+		long tripleCount = 0L;
+
+		for (TripleIndex index : indexes) {
+			logger.debug("Bulk loading {} index", index);
+
+			RecordCache sortedTriples = new ExternalSortedRecordCache(dir, RECORD_LENGTH, BULK_LOAD_RUN_SIZE,
+					index.tripleComparator);
+			try {
+				sortedTriples.storeRecords(triples);
+
+				RecordIterator iter = sortedTriples.getRecords();
+				try {
+					tripleCount = index.getBTree().bulkLoad(iter);
+				}
+				finally {
+					iter.close();
+				}
+			}
+			finally {
+				sortedTriples.discard();
+			}
+		}
+
+		sync();
+		rebuildStatistics();
+
+		return tripleCount;
+	}
+
 	public boolean storeTriple(int subj, int pred, int obj, int context, boolean explicit)
 		throws IOException
 	{
 		boolean stAdded = false;
 
 		byte[] data = getData(subj, pred, obj, context, 0);
-		byte[] storedData = indexes.get(0).getBTree().get(data);
+		byte[] storedData = getStoredData(data);
 
 		if (storedData == null) {
 			// Statement does not yet exist
@@ -719,8 +1191,13 @@ class TripleStore {
 		}
 
 		if (storedData == null || !Arrays.equals(data, storedData)) {
-			for (TripleIndex index : indexes) {
-				index.getBTree().insert(data);
+			if (indexUpdateExecutor == null) {
+				for (TripleIndex index : indexes) {
+					index.getBTree().insert(data);
+				}
+			}
+			else {
+				addPendingTriple(data);
 			}
 
 			updatedTriplesCache.storeRecord(data);
@@ -790,19 +1267,26 @@ class TripleStore {
 			updatedTriplesCache.storeRecords(removedTriplesCache);
 
 			// Set the REMOVED flag by overwriting the affected records
-			for (TripleIndex index : indexes) {
-				BTree btree = index.getBTree();
+			final RecordCache removedTriples = removedTriplesCache;
+			updateIndexes(indexes, new IndexUpdate() {
 
-				RecordIterator recIter = removedTriplesCache.getRecords();
-				try {
-					while ((data = recIter.next()) != null) {
-						btree.insert(data);
+				public void apply(TripleIndex index)
+					throws IOException
+				{
+					BTree btree = index.getBTree();
+
+					RecordIterator recIter = removedTriples.getRecords();
+					try {
+						byte[] data;
+						while ((data = recIter.next()) != null) {
+							btree.insert(data);
+						}
+					}
+					finally {
+						recIter.close();
 					}
 				}
-				finally {
-					recIter.close();
-				}
-			}
+			});
 		}
 		finally {
 			removedTriplesCache.discard();
@@ -816,74 +1300,68 @@ class TripleStore {
 	{
 		txnStatusFile.setTxnStatus(TxnStatus.ACTIVE);
 
-		// Create a record cache for storing updated triples with a maximum of
-		// some 10% of the number of triples
-		long maxRecords = indexes.get(0).getBTree().getValueCountEstimate() / 10L;
+		// Create a record cache for storing updated triples. The cache is not
+		// bounded, so that the cost of a commit depends on the size of the
+		// transaction rather than the size of the indexes.
 		if (updatedTriplesCache == null) {
-			updatedTriplesCache = new SortedRecordCache(dir, RECORD_LENGTH, maxRecords, new TripleComparator(
-					"spoc"));
+			updatedTriplesCache = new SortedRecordCache(dir, RECORD_LENGTH, indexes.get(0).tripleComparator);
 		}
 		else {
 			assert updatedTriplesCache.getRecordCount() == 0L : "updatedTripleCache should have been cleared upon commit or rollback";
-			updatedTriplesCache.setMaxRecords(maxRecords);
 		}
 	}
 
+	/**
+	 * Gets the triples that have been updated in the current transaction,
+	 * sorted in the order of the specified index. Merging the updates in index
+	 * order makes subsequent updates hit the same (cached) BTree nodes. For
+	 * the secondary indexes, the updates are sorted in memory and spilled to
+	 * sorted runs for large transactions, which are merged in a single pass.
+	 * Callers must {@link RecordCache#discard() discard} the returned cache
+	 * when it is not the {@link #updatedTriplesCache} itself.
+	 */
+	private RecordCache getSortedUpdates(TripleIndex index)
+		throws IOException
+	{
+		if (index == indexes.get(0)) {
+			return updatedTriplesCache;
+		}
+
+		RecordCache sortedUpdates = new ExternalSortedRecordCache(dir, RECORD_LENGTH, UPDATE_SORT_RUN_SIZE,
+				index.tripleComparator);
+		sortedUpdates.storeRecords(updatedTriplesCache);
+		return sortedUpdates;
+	}
+
 	public void commit()
 		throws IOException
 	{
+		// Add any pending triples to the indexes and write all indexes to disk
+		// before marking the transaction as committing. Recovery from a crashed
+		// commit updates each index from its own contents, so triples that were
+		// still pending would otherwise never reach the indexes.
+		sync();
+
 		txnStatusFile.setTxnStatus(TxnStatus.COMMITTING);
 
 		// updatedTriplesCache will be null when recovering from a crashed commit
-		boolean validCache = updatedTriplesCache != null && updatedTriplesCache.isValid();
-
-		for (TripleIndex index : indexes) {
-			BTree btree = index.getBTree();
+		final boolean validCache = updatedTriplesCache != null && updatedTriplesCache.isValid();
 
-			RecordIterator iter;
-			if (validCache) {
-				// Use the cached set of updated triples
-				iter = updatedTriplesCache.getRecords();
-			}
-			else {
-				// Cache is invalid; too much updates(?). Iterate over all triples
-				iter = btree.iterateAll();
-			}
-
-			try {
-				byte[] data;
-				while ((data = iter.next()) != null) {
-					byte flags = data[FLAG_IDX];
-					boolean wasAdded = (flags & ADDED_FLAG) != 0;
-					boolean wasRemoved = (flags & REMOVED_FLAG) != 0;
-					boolean wasToggled = (flags & TOGGLE_EXPLICIT_FLAG) != 0;
+		if (validCache) {
+			updateStatistics();
+		}
+		else {
+			statistics.invalidate();
+		}
 
-					if (wasRemoved) {
-						btree.remove(data);
-					}
-					else if (wasAdded || wasToggled) {
-						if (wasToggled) {
-							data[FLAG_IDX] ^= EXPLICIT_FLAG;
-						}
-						if (wasAdded) {
-							data[FLAG_IDX] ^= ADDED_FLAG;
-						}
+		updateIndexes(indexes, new IndexUpdate() {
 
-						if (validCache) {
-							// We're iterating the cache
-							btree.insert(data);
-						}
-						else {
-							// We're iterating the BTree itself
-							iter.set(data);
-						}
-					}
-				}
-			}
-			finally {
-				iter.close();
+			public void apply(TripleIndex index)
+				throws IOException
+			{
+				commit(index, validCache);
 			}
-		}
+		});
 
 		if (updatedTriplesCache != null) {
 			updatedTriplesCache.clear();
@@ -891,10 +1369,118 @@ class TripleStore {
 
 		sync();
 
+		if (statistics.needsRebuild()) {
+			rebuildStatistics();
+		}
+
 		txnStatusFile.setTxnStatus(TxnStatus.NONE);
 		// checkAllCommitted();
 	}
 
+	/**
+	 * Registers the triples that are added and removed by the current
+	 * transaction with the triple statistics.
+	 */
+	private void updateStatistics()
+		throws IOException
+	{
+		RecordIterator iter = updatedTriplesCache.getRecords();
+		try {
+			byte[] data;
+			while ((data = iter.next()) != null) {
+				byte flags = data[FLAG_IDX];
+				boolean wasAdded = (flags & ADDED_FLAG) != 0;
+				boolean wasRemoved = (flags & REMOVED_FLAG) != 0;
+
+				if (wasAdded && !wasRemoved) {
+					statistics.tripleAdded(data);
+				}
+				else if (wasRemoved && !wasAdded) {
+					statistics.tripleRemoved(data);
+				}
+			}
+		}
+		finally {
+			iter.close();
+		}
+
+		statistics.commit();
+	}
+
+	private void rebuildStatistics()
+		throws IOException
+	{
+		logger.debug("Rebuilding triple statistics...");
+
+		RecordIterator iter = indexes.get(0).getBTree().iterateAll();
+		try {
+			statistics.rebuild(iter);
+		}
+		finally {
+			iter.close();
+		}
+
+		logger.debug("Triple statistics rebuilt");
+	}
+
+	/**
+	 * Commits the updates of the current transaction to the specified index.
+	 */
+	private void commit(TripleIndex index, boolean validCache)
+		throws IOException
+	{
+		BTree btree = index.getBTree();
+
+		RecordCache sortedUpdates = null;
+		RecordIterator iter;
+		if (validCache) {
+			// Merge the cached set of updated triples in index order
+			sortedUpdates = getSortedUpdates(index);
+			iter = sortedUpdates.getRecords();
+		}
+		else {
+			// No cache to recover from; iterate over all triples
+			iter = btree.iterateAll();
+		}
+
+		try {
+			byte[] data;
+			while ((data = iter.next()) != null) {
+				byte flags = data[FLAG_IDX];
+				boolean wasAdded = (flags & ADDED_FLAG) != 0;
+				boolean wasRemoved = (flags & REMOVED_FLAG) != 0;
+				boolean wasToggled = (flags & TOGGLE_EXPLICIT_FLAG) != 0;
+
+				if (wasRemoved) {
+					btree.remove(data);
+				}
+				else if (wasAdded || wasToggled) {
+					if (wasToggled) {
+						data[FLAG_IDX] ^= EXPLICIT_FLAG;
+					}
+					if (wasAdded) {
+						data[FLAG_IDX] ^= ADDED_FLAG;
+					}
+
+					if (validCache) {
+						// We're iterating the cache
+						btree.insert(data);
+					}
+					else {
+						// We're iterating the BTree itself
+						iter.set(data);
+					}
+				}
+			}
+		}
+		finally {
+			iter.close();
+			if (sortedUpdates != null && sortedUpdates != updatedTriplesCache) {
+				sortedUpdates.discard();
+			}
+		}
+	}
+
 	private void checkAllCommitted()
 		throws IOException
 	{
@@ -922,76 +1508,258 @@ class TripleStore {
 	public void rollback()
 		throws IOException
 	{
+		// Bring the indexes in line before marking the transaction as rolling
+		// back, see commit()
+		sync();
+
 		txnStatusFile.setTxnStatus(TxnStatus.ROLLING_BACK);
 
 		// updatedTriplesCache will be null when recovering from a crash
-		boolean validCache = updatedTriplesCache != null && updatedTriplesCache.isValid();
+		final boolean validCache = updatedTriplesCache != null && updatedTriplesCache.isValid();
+
+		updateIndexes(indexes, new IndexUpdate() {
+
+			public void apply(TripleIndex index)
+				throws IOException
+			{
+				rollback(index, validCache);
+			}
+		});
+
+		if (updatedTriplesCache != null) {
+			updatedTriplesCache.clear();
+		}
+
+		sync();
+
+		txnStatusFile.setTxnStatus(TxnStatus.NONE);
+	}
 
+	/**
+	 * Rolls back the updates of the current transaction in the specified index.
+	 */
+	private void rollback(TripleIndex index, boolean validCache)
+		throws IOException
+	{
 		byte txnFlagsMask = ~(ADDED_FLAG | REMOVED_FLAG | TOGGLE_EXPLICIT_FLAG);
 
-		for (TripleIndex index : indexes) {
-			BTree btree = index.getBTree();
+		BTree btree = index.getBTree();
 
-			RecordIterator iter;
-			if (validCache) {
-				// Use the cached set of updated triples
-				iter = updatedTriplesCache.getRecords();
-			}
-			else {
-				// Cache is invalid; too much updates(?). Iterate over all triples
-				iter = btree.iterateAll();
-			}
+		RecordCache sortedUpdates = null;
+		RecordIterator iter;
+		if (validCache) {
+			// Merge the cached set of updated triples in index order
+			sortedUpdates = getSortedUpdates(index);
+			iter = sortedUpdates.getRecords();
+		}
+		else {
+			// No cache to recover from; iterate over all triples
+			iter = btree.iterateAll();
+		}
 
-			try {
-				byte[] data = null;
-				while ((data = iter.next()) != null) {
-					byte flags = data[FLAG_IDX];
-					boolean wasAdded = (flags & ADDED_FLAG) != 0;
-					boolean wasRemoved = (flags & REMOVED_FLAG) != 0;
-					boolean wasToggled = (flags & TOGGLE_EXPLICIT_FLAG) != 0;
+		try {
+			byte[] data = null;
+			while ((data = iter.next()) != null) {
+				byte flags = data[FLAG_IDX];
+				boolean wasAdded = (flags & ADDED_FLAG) != 0;
+				boolean wasRemoved = (flags & REMOVED_FLAG) != 0;
+				boolean wasToggled = (flags & TOGGLE_EXPLICIT_FLAG) != 0;
+
+				if (wasAdded) {
+					btree.remove(data);
+				}
+				else {
+					if (wasRemoved || wasToggled) {
+						data[FLAG_IDX] &= txnFlagsMask;
 
-					if (wasAdded) {
-						btree.remove(data);
-					}
-					else {
-						if (wasRemoved || wasToggled) {
-							data[FLAG_IDX] &= txnFlagsMask;
-
-							if (validCache) {
-								// We're iterating the cache
-								btree.insert(data);
-							}
-							else {
-								// We're iterating the BTree itself
-								iter.set(data);
-							}
+						if (validCache) {
+							// We're iterating the cache
+							btree.insert(data);
+						}
+						else {
+							// We're iterating the BTree itself
+							iter.set(data);
 						}
 					}
 				}
 			}
-			finally {
-				iter.close();
+		}
+		finally {
+			iter.close();
+			if (sortedUpdates != null && sortedUpdates != updatedTriplesCache) {
+				sortedUpdates.discard();
 			}
 		}
+	}
 
-		if (updatedTriplesCache != null) {
-			updatedTriplesCache.clear();
+	protected void sync()
+		throws IOException
+	{
+		flushPendingTriples();
+
+		updateIndexes(indexes, new IndexUpdate() {
+
+			public void apply(TripleIndex index)
+				throws IOException
+			{
+				index.getBTree().sync();
+			}
+		});
+	}
+
+	/**
+	 * Gets the stored version of a triple, taking pending triples into account.
+	 * 
+	 * @return The stored data, or <tt>null</tt> if the triple has not been
+	 *         stored.
+	 */
+	private byte[] getStoredData(byte[] data)
+		throws IOException
+	{
+		if (indexUpdateExecutor != null) {
+			synchronized (pendingTriples) {
+				byte[] pendingData = pendingTriples.get(getPendingKey(data));
+				if (pendingData != null) {
+					return pendingData;
+				}
+			}
 		}
 
-		sync();
+		return indexes.get(0).getBTree().get(data);
+	}
 
-		txnStatusFile.setTxnStatus(TxnStatus.NONE);
+	private static ByteBuffer getPendingKey(byte[] data) {
+		return ByteBuffer.wrap(data, 0, FLAG_IDX);
 	}
 
-	protected void sync()
+	/**
+	 * Queues a triple for addition to the indexes. The queued triples are added
+	 * to all indexes in parallel once a batch of
+	 * {@link #INDEX_UPDATE_BATCH_SIZE} triples has been collected, or when the
+	 * indexes are read. A triple that is stored again while it is still pending
+	 * replaces the pending version.
+	 */
+	private void addPendingTriple(byte[] data)
 		throws IOException
 	{
-		for (TripleIndex index : indexes) {
-			index.getBTree().sync();
+		synchronized (pendingTriples) {
+			pendingTriples.put(getPendingKey(data), data);
+
+			if (pendingTriples.size() >= INDEX_UPDATE_BATCH_SIZE) {
+				flushPendingTriples();
+			}
+		}
+	}
+
+	/**
+	 * Adds any pending triples to the indexes.
+	 */
+	private void flushPendingTriples()
+		throws IOException
+	{
+		synchronized (pendingTriples) {
+			if (pendingTriples.isEmpty()) {
+				return;
+			}
+
+			final List<byte[]> batch = new ArrayList<byte[]>(pendingTriples.values());
+			pendingTriples.clear();
+
+			updateIndexes(indexes, new IndexUpdate() {
+
+				public void apply(TripleIndex index)
+					throws IOException
+				{
+					// Add the triples in index order to improve node cache hits
+					final TripleComparator comparator = index.tripleComparator;
+					List<byte[]> sortedBatch = new ArrayList<byte[]>(batch);
+					Collections.sort(sortedBatch, new Comparator<byte[]>() {
+
+						public int compare(byte[] data1, byte[] data2) {
+							return comparator.compareBTreeValues(data1, data2, 0, data2.length);
+						}
+					});
+
+					BTree btree = index.getBTree();
+					for (byte[] data : sortedBatch) {
+						btree.insert(data);
+					}
+				}
+			});
 		}
 	}
 
-	private byte[] getData(int subj, int pred, int obj, int context, int flags) {
+	/**
+	 * Applies an update to each of the specified indexes. If an executor for
+	 * parallel index updates has been configured, each index is updated by a
+	 * separate task and this method waits for all tasks to finish.
+	 */
+	private void updateIndexes(List<TripleIndex> targetIndexes, final IndexUpdate update)
+		throws IOException
+	{
+		if (indexUpdateExecutor == null || targetIndexes.size() <= 1) {
+			for (TripleIndex index : targetIndexes) {
+				update.apply(index);
+			}
+			return;
+		}
+
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(targetIndexes.size());
+		for (final TripleIndex index : targetIndexes) {
+			futures.add(indexUpdateExecutor.submit(new Callable<Object>() {
+
+				public Object call()
+					throws IOException
+				{
+					update.apply(index);
+					return null;
+				}
+			}));
+		}
+
+		// Wait for all updates to finish, even if one of them fails
+		Throwable failure = null;
+		boolean interrupted = false;
+
+		for (Future<Object> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+				catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException)failure;
+		}
+		else if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		}
+		else if (failure instanceof Error) {
+			throw (Error)failure;
+		}
+		else if (failure != null) {
+			IOException ioe = new IOException("Index update failed");
+			ioe.initCause(failure);
+			throw ioe;
+		}
+	}
+
+	static byte[] getData(int subj, int pred, int obj, int context, int flags) {
 		byte[] data = new byte[RECORD_LENGTH];
 
 		ByteArrayUtil.putInt(subj, data, SUBJ_IDX);
@@ -1077,6 +1845,19 @@ class TripleStore {
 		}
 	}
 
+	/*-----------------------*
+	 * Interface IndexUpdate *
+	 *-----------------------*/
+
+	/**
+	 * An update that is applied to a single triple index.
+	 */
+	private interface IndexUpdate {
+
+		public void apply(TripleIndex index)
+			throws IOException;
+	}
+
 	/*-------------------------*
 	 * Inner class TripleIndex *
 	 *-------------------------*/
@@ -1091,11 +1872,8 @@ class TripleStore {
 			throws IOException
 		{
 			tripleComparator = new TripleComparator(fieldSeq);
-			btree = new BTree(dir, getFilenamePrefix(fieldSeq), 2048, RECORD_LENGTH, tripleComparator, forceSync);
-		}
-
-		private String getFilenamePrefix(String fieldSeq) {
-			return "triples-" + fieldSeq;
+			btree = new BTree(dir, getIndexFilenamePrefix(fieldSeq), 2048, RECORD_LENGTH, tripleComparator, forceSync,
+					nodeCacheSize, memoryMapped, true);
 		}
 
 		public char[] getFieldSeq() {
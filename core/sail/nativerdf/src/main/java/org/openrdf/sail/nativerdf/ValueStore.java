@@ -8,6 +8,9 @@ package org.openrdf.sail.nativerdf;
 import java.io.File;
 import java.io.IOException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import info.aduna.concurrent.locks.Lock;
 import info.aduna.concurrent.locks.ReadWriteLockManager;
 import info.aduna.concurrent.locks.WritePrefReadWriteLockManager;
@@ -75,6 +78,8 @@ public class ValueStore extends ValueFactoryBase {
 	 * Variables *
 	 *-----------*/
 
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
 	/**
 	 * Used to do the actual storage of values, once they're translated to byte
 	 * arrays.
@@ -96,28 +101,28 @@ public class ValueStore extends ValueFactoryBase {
 	private volatile ValueStoreRevision revision;
 
 	/**
-	 * A simple cache containing the [VALUE_CACHE_SIZE] most-recently used values
-	 * stored by their ID.
+	 * A concurrent cache containing the [VALUE_CACHE_SIZE] most-recently used
+	 * values stored by their ID.
 	 */
-	private final LRUCache<Integer, NativeValue> valueCache;
+	private final IntKeyCache<NativeValue> valueCache;
 
 	/**
-	 * A simple cache containing the [ID_CACHE_SIZE] most-recently used value-IDs
-	 * stored by their value.
+	 * A concurrent cache containing the [ID_CACHE_SIZE] most-recently used
+	 * value-IDs stored by their value.
 	 */
-	private final LRUCache<NativeValue, Integer> valueIDCache;
+	private final IntValueCache<NativeValue> valueIDCache;
 
 	/**
-	 * A simple cache containing the [NAMESPACE_CACHE_SIZE] most-recently used
-	 * namespaces stored by their ID.
+	 * A concurrent cache containing the [NAMESPACE_CACHE_SIZE] most-recently
+	 * used namespaces stored by their ID.
 	 */
-	private final LRUCache<Integer, String> namespaceCache;
+	private final IntKeyCache<String> namespaceCache;
 
 	/**
-	 * A simple cache containing the [NAMESPACE_ID_CACHE_SIZE] most-recently used
-	 * namespace-IDs stored by their namespace.
+	 * A concurrent cache containing the [NAMESPACE_ID_CACHE_SIZE] most-recently
+	 * used namespace-IDs stored by their namespace.
 	 */
-	private final LRUCache<String, Integer> namespaceIDCache;
+	private final IntValueCache<String> namespaceIDCache;
 
 	/*--------------*
 	 * Constructors *
@@ -139,14 +144,22 @@ public class ValueStore extends ValueFactoryBase {
 	public ValueStore(File dataDir, boolean forceSync, int valueCacheSize, int valueIDCacheSize,
 			int namespaceCacheSize, int namespaceIDCacheSize)
 		throws IOException
+	{
+		this(dataDir, forceSync, valueCacheSize, valueIDCacheSize, namespaceCacheSize, namespaceIDCacheSize,
+				false);
+	}
+
+	public ValueStore(File dataDir, boolean forceSync, int valueCacheSize, int valueIDCacheSize,
+			int namespaceCacheSize, int namespaceIDCacheSize, boolean memoryMapped)
+		throws IOException
 	{
 		super();
-		dataStore = new DataStore(dataDir, FILENAME_PREFIX, forceSync);
+		dataStore = new DataStore(dataDir, FILENAME_PREFIX, forceSync, memoryMapped);
 
-		valueCache = new LRUCache<Integer, NativeValue>(valueCacheSize);
-		valueIDCache = new LRUCache<NativeValue, Integer>(valueIDCacheSize);
-		namespaceCache = new LRUCache<Integer, String>(namespaceCacheSize);
-		namespaceIDCache = new LRUCache<String, Integer>(namespaceIDCacheSize);
+		valueCache = new IntKeyCache<NativeValue>(valueCacheSize);
+		valueIDCache = new IntValueCache<NativeValue>(valueIDCacheSize, NativeValue.UNKNOWN_ID);
+		namespaceCache = new IntKeyCache<String>(namespaceCacheSize);
+		namespaceIDCache = new IntValueCache<String>(namespaceIDCacheSize, NativeValue.UNKNOWN_ID);
 
 		setNewRevision();
 	}
@@ -177,6 +190,22 @@ public class ValueStore extends ValueFactoryBase {
 		return lockManager.getReadLock();
 	}
 
+	/**
+	 * Gets the cache that maps value IDs to values, e.g. to inspect its hit and
+	 * miss counts.
+	 */
+	ClockCache getValueCache() {
+		return valueCache;
+	}
+
+	/**
+	 * Gets the cache that maps values to value IDs, e.g. to inspect its hit and
+	 * miss counts.
+	 */
+	ClockCache getValueIDCache() {
+		return valueIDCache;
+	}
+
 	/**
 	 * Gets the value for the specified ID.
 	 * 
@@ -191,8 +220,7 @@ public class ValueStore extends ValueFactoryBase {
 		throws IOException
 	{
 		// Check value cache
-		Integer cacheID = new Integer(id);
-		NativeValue resultValue = valueCache.get(cacheID);
+		NativeValue resultValue = valueCache.get(id);
 
 		if (resultValue == null) {
 			// Value not in cache, fetch it from file
@@ -202,7 +230,7 @@ public class ValueStore extends ValueFactoryBase {
 				resultValue = data2value(id, data);
 
 				// Store value in cache
-				valueCache.put(cacheID, resultValue);
+				valueCache.put(id, resultValue);
 			}
 		}
 
@@ -238,17 +266,15 @@ public class ValueStore extends ValueFactoryBase {
 		}
 
 		// Check cache
-		Integer cachedID = valueIDCache.get(value);
-
-		if (cachedID != null) {
-			int id = cachedID.intValue();
+		int cachedID = valueIDCache.get(value);
 
+		if (cachedID != NativeValue.UNKNOWN_ID) {
 			if (isOwnValue) {
 				// Store id in value for fast access in any consecutive calls
-				((NativeValue)value).setInternalID(id, revision);
+				((NativeValue)value).setInternalID(cachedID, revision);
 			}
 
-			return id;
+			return cachedID;
 		}
 
 		// ID not cached, search in file
@@ -266,7 +292,7 @@ public class ValueStore extends ValueFactoryBase {
 					// Store id in cache
 					NativeValue nv = getNativeValue(value);
 					nv.setInternalID(id, revision);
-					valueIDCache.put(nv, new Integer(id));
+					valueIDCache.put(nv, id);
 				}
 			}
 
@@ -307,17 +333,15 @@ public class ValueStore extends ValueFactoryBase {
 		}
 
 		// ID not stored in value itself, try the ID cache
-		Integer cachedID = valueIDCache.get(value);
-
-		if (cachedID != null) {
-			int id = cachedID.intValue();
+		int cachedID = valueIDCache.get(value);
 
+		if (cachedID != NativeValue.UNKNOWN_ID) {
 			if (isOwnValue) {
 				// Store id in value for fast access in any consecutive calls
-				((NativeValue)value).setInternalID(id, revision);
+				((NativeValue)value).setInternalID(cachedID, revision);
 			}
 
-			return id;
+			return cachedID;
 		}
 
 		// Unable to get internal ID in a cheap way, just store it in the data
@@ -332,7 +356,7 @@ public class ValueStore extends ValueFactoryBase {
 		nv.setInternalID(id, revision);
 
 		// Update cache
-		valueIDCache.put(nv, new Integer(id));
+		valueIDCache.put(nv, id);
 
 		return id;
 	}
@@ -393,6 +417,7 @@ public class ValueStore extends ValueFactoryBase {
 	public void close()
 		throws IOException
 	{
+		logger.debug("Value cache statistics: {}, {}", valueCache, valueIDCache);
 		dataStore.close();
 	}
 
@@ -574,9 +599,9 @@ public class ValueStore extends ValueFactoryBase {
 	private int getNamespaceID(String namespace, boolean create)
 		throws IOException
 	{
-		Integer cacheID = namespaceIDCache.get(namespace);
-		if (cacheID != null) {
-			return cacheID.intValue();
+		int cacheID = namespaceIDCache.get(namespace);
+		if (cacheID != NativeValue.UNKNOWN_ID) {
+			return cacheID;
 		}
 
 		byte[] namespaceData = namespace.getBytes("UTF-8");
@@ -590,7 +615,7 @@ public class ValueStore extends ValueFactoryBase {
 		}
 
 		if (id != -1) {
-			namespaceIDCache.put(namespace, new Integer(id));
+			namespaceIDCache.put(namespace, id);
 		}
 
 		return id;
@@ -599,14 +624,13 @@ public class ValueStore extends ValueFactoryBase {
 	private String getNamespace(int id)
 		throws IOException
 	{
-		Integer cacheID = new Integer(id);
-		String namespace = namespaceCache.get(cacheID);
+		String namespace = namespaceCache.get(id);
 
 		if (namespace == null) {
 			byte[] namespaceData = dataStore.getData(id);
 			namespace = new String(namespaceData, "UTF-8");
 
-			namespaceCache.put(cacheID, namespace);
+			namespaceCache.put(id, namespace);
 		}
 
 		return namespace;
@@ -12,13 +12,12 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
@@ -64,22 +63,41 @@ public class BTree {
 	 */
 	private static final byte FILE_FORMAT_VERSION = 1;
 
+	/**
+	 * The file format version number for BTree files that store their nodes in
+	 * compressed form, see {@link Node#write()}.
+	 */
+	private static final byte COMPRESSED_FILE_FORMAT_VERSION = 2;
+
+	/**
+	 * The factor by which the maximum number of values in compressed nodes is
+	 * increased compared to uncompressed nodes of the same block size. The
+	 * actual number of values in a compressed node is limited by the size of
+	 * its encoded form, which must fit in a single block.
+	 */
+	private static final int COMPRESSED_NODE_CAPACITY_FACTOR = 2;
+
+	/**
+	 * The length of the header of compressed nodes: the encoded length, the
+	 * value count and a leaf flag.
+	 */
+	private static final int COMPRESSED_NODE_HEADER_LENGTH = 9;
+
 	/**
 	 * The length of the header field.
 	 */
 	private static final int HEADER_LENGTH = 16;
 
 	/**
-	 * The size of the node cache. Note that this is not a hard limit. All nodes
-	 * that are actively used are always cached. Also, a minimum of
-	 * {@link NODE_CACHE_SIZE} nodes of unused nodes is kept in the cache.
+	 * The default size of the node cache. Note that this is not a hard limit.
+	 * All nodes that are actively used are always cached.
 	 */
-	private static final int NODE_CACHE_SIZE = 10;
+	public static final int DEFAULT_NODE_CACHE_SIZE = 256;
 
 	/**
-	 * The minimum number of most recently released nodes to keep in the cache.
+	 * The number of lock stripes used by the node cache. Must be a power of two.
 	 */
-	private static final int MIN_MRU_CACHE_SIZE = 4;
+	private static final int NODE_CACHE_LOCK_STRIPES = 64;
 
 	/*-----------*
 	 * Variables *
@@ -92,6 +110,11 @@ public class BTree {
 	 */
 	private final NioFile nioFile;
 
+	/**
+	 * Flag indicating whether nodes are stored in compressed form.
+	 */
+	private final boolean compressed;
+
 	/**
 	 * Flag indicating whether file writes should be forced to disk using
 	 * {@link FileChannel#force(boolean)}.
@@ -115,18 +138,10 @@ public class BTree {
 	 */
 
 	/**
-	 * Map containing cached nodes, indexed by their ID.
+	 * Cache containing the nodes that are in use and a number of recently
+	 * released nodes.
 	 */
-	private final Map<Integer, Node> nodeCache = new HashMap<Integer, Node>(NODE_CACHE_SIZE);
-
-	/**
-	 * Map of cached nodes that are no longer "in use", sorted from least
-	 * recently used to most recently used. This collection is used to remove
-	 * nodes from the cache when it is full. Note: needs to be synchronized
-	 * through nodeCache (data strucures should prob be merged in a NodeCache
-	 * class)
-	 */
-	private final Map<Integer, Node> mruNodes = new LinkedHashMap<Integer, Node>(NODE_CACHE_SIZE);
+	private final NodeCache nodeCache;
 
 	/* 
 	 * Info about allocated and unused nodes in the file 
@@ -176,6 +191,19 @@ public class BTree {
 	 */
 	private final int nodeSize;
 
+	/**
+	 * The size of the bitmap that precedes each value of a compressed node.
+	 * Value derived from valueSize.
+	 */
+	private final int bitmapSize;
+
+	/**
+	 * The maximum size of an encoded value in a compressed node in bytes: the
+	 * bitmap, the value and a child node ID. Value derived from bitmapSize and
+	 * valueSize.
+	 */
+	private final int compressedSlotSize;
+
 	/*-----------*
 	 * Variables *
 	 *-----------*/
@@ -307,6 +335,121 @@ public class BTree {
 	public BTree(File dataDir, String filenamePrefix, int blockSize, int valueSize,
 			RecordComparator comparator, boolean forceSync)
 		throws IOException
+	{
+		this(dataDir, filenamePrefix, blockSize, valueSize, comparator, forceSync, DEFAULT_NODE_CACHE_SIZE);
+	}
+
+	/**
+	 * Creates a new BTree that uses the supplied <tt>RecordComparator</tt> to
+	 * compare the values that are or will be stored in the B-Tree.
+	 * 
+	 * @param dataDir
+	 *        The directory for the BTree data.
+	 * @param filenamePrefix
+	 *        The prefix for all files used by this BTree.
+	 * @param blockSize
+	 *        The size (in bytes) of a file block for a single node. Ideally, the
+	 *        size specified is the size of a block in the used file system.
+	 * @param valueSize
+	 *        The size (in bytes) of the fixed-length values that are or will be
+	 *        stored in the B-Tree.
+	 * @param comparator
+	 *        The <tt>RecordComparator</tt> to use for determining whether one
+	 *        value is smaller, larger or equal to another.
+	 * @param forceSync
+	 *        Flag indicating whether updates should be synced to disk forcefully
+	 *        by calling {@link FileChannel#force(boolean)}. This may have a
+	 *        severe impact on write performance.
+	 * @param nodeCacheSize
+	 *        The number of nodes to keep in the node cache. Nodes that are in
+	 *        use are always cached, even if this exceeds the specified size.
+	 * @throws IOException
+	 *         In case the initialization of the B-Tree file failed.
+	 */
+	public BTree(File dataDir, String filenamePrefix, int blockSize, int valueSize,
+			RecordComparator comparator, boolean forceSync, int nodeCacheSize)
+		throws IOException
+	{
+		this(dataDir, filenamePrefix, blockSize, valueSize, comparator, forceSync, nodeCacheSize, false);
+	}
+
+	/**
+	 * Creates a new BTree that uses the supplied <tt>RecordComparator</tt> to
+	 * compare the values that are or will be stored in the B-Tree.
+	 * 
+	 * @param dataDir
+	 *        The directory for the BTree data.
+	 * @param filenamePrefix
+	 *        The prefix for all files used by this BTree.
+	 * @param blockSize
+	 *        The size (in bytes) of a file block for a single node. Ideally, the
+	 *        size specified is the size of a block in the used file system.
+	 * @param valueSize
+	 *        The size (in bytes) of the fixed-length values that are or will be
+	 *        stored in the B-Tree.
+	 * @param comparator
+	 *        The <tt>RecordComparator</tt> to use for determining whether one
+	 *        value is smaller, larger or equal to another.
+	 * @param forceSync
+	 *        Flag indicating whether updates should be synced to disk forcefully
+	 *        by calling {@link FileChannel#force(boolean)}. This may have a
+	 *        severe impact on write performance.
+	 * @param nodeCacheSize
+	 *        The number of nodes to keep in the node cache. Nodes that are in
+	 *        use are always cached, even if this exceeds the specified size.
+	 * @param memoryMapped
+	 *        Flag indicating whether nodes should be read from a memory mapped
+	 *        view of the BTree file rather than through the file channel.
+	 * @throws IOException
+	 *         In case the initialization of the B-Tree file failed.
+	 */
+	public BTree(File dataDir, String filenamePrefix, int blockSize, int valueSize,
+			RecordComparator comparator, boolean forceSync, int nodeCacheSize, boolean memoryMapped)
+		throws IOException
+	{
+		this(dataDir, filenamePrefix, blockSize, valueSize, comparator, forceSync, nodeCacheSize, memoryMapped,
+				false);
+	}
+
+	/**
+	 * Creates a new BTree that uses the supplied <tt>RecordComparator</tt> to
+	 * compare the values that are or will be stored in the B-Tree.
+	 * 
+	 * @param dataDir
+	 *        The directory for the BTree data.
+	 * @param filenamePrefix
+	 *        The prefix for all files used by this BTree.
+	 * @param blockSize
+	 *        The size (in bytes) of a file block for a single node. Ideally, the
+	 *        size specified is the size of a block in the used file system.
+	 * @param valueSize
+	 *        The size (in bytes) of the fixed-length values that are or will be
+	 *        stored in the B-Tree.
+	 * @param comparator
+	 *        The <tt>RecordComparator</tt> to use for determining whether one
+	 *        value is smaller, larger or equal to another.
+	 * @param forceSync
+	 *        Flag indicating whether updates should be synced to disk forcefully
+	 *        by calling {@link FileChannel#force(boolean)}. This may have a
+	 *        severe impact on write performance.
+	 * @param nodeCacheSize
+	 *        The number of nodes to keep in the node cache. Nodes that are in
+	 *        use are always cached, even if this exceeds the specified size.
+	 * @param memoryMapped
+	 *        Flag indicating whether nodes should be read from a memory mapped
+	 *        view of the BTree file rather than through the file channel.
+	 * @param compressed
+	 *        Flag indicating whether nodes should be stored in compressed form.
+	 *        Compressed nodes hold more values per block, at the cost of
+	 *        encoding and decoding nodes when they are written and read. This
+	 *        parameter is ignored for existing files, which keep their format.
+	 * @throws IOException
+	 *         In case the initialization of the B-Tree file failed.
+	 */
+	public BTree(File dataDir, String filenamePrefix, int blockSize, int valueSize,
+			RecordComparator comparator, boolean forceSync, int nodeCacheSize, boolean memoryMapped,
+			boolean compressed)
+		throws IOException
 	{
 		if (dataDir == null) {
 			throw new IllegalArgumentException("dataDir must not be null");
@@ -327,11 +470,15 @@ public class BTree {
 		if (comparator == null) {
 			throw new IllegalArgumentException("comparator muts not be null");
 		}
+		if (nodeCacheSize < 1) {
+			throw new IllegalArgumentException("node cache size must be larger than 0");
+		}
 
 		File file = new File(dataDir, filenamePrefix + ".dat");
-		this.nioFile = new NioFile(file);
+		this.nioFile = new NioFile(file, "rw", memoryMapped);
 		this.comparator = comparator;
 		this.forceSync = forceSync;
+		this.nodeCache = new NodeCache(nodeCacheSize);
 
 		File allocFile = new File(dataDir, filenamePrefix + ".alloc");
 		allocatedNodesList = new AllocatedNodesList(allocFile, this);
@@ -340,6 +487,7 @@ public class BTree {
 			// Empty file, initialize it with the specified parameters
 			this.blockSize = blockSize;
 			this.valueSize = valueSize;
+			this.compressed = compressed;
 			this.rootNodeID = 0;
 			this.height = 0;
 
@@ -362,17 +510,19 @@ public class BTree {
 			this.rootNodeID = buf.getInt();
 
 			if (Arrays.equals(MAGIC_NUMBER, magicNumber)) {
-				if (version > FILE_FORMAT_VERSION) {
+				if (version > COMPRESSED_FILE_FORMAT_VERSION) {
 					throw new IOException("Unable to read BTree file " + file + "; it uses a newer file format");
 				}
-				else if (version != FILE_FORMAT_VERSION) {
+				else if (version != FILE_FORMAT_VERSION && version != COMPRESSED_FILE_FORMAT_VERSION) {
 					throw new IOException("Unable to read BTree file " + file + "; invalid file format version: " + version);
 				}
+				this.compressed = version == COMPRESSED_FILE_FORMAT_VERSION;
 			}
 			else if (Arrays.equals(OLD_MAGIC_NUMBER, magicNumber)) {
 				if (version != 1) {
 					throw new IOException("Unable to read BTree file " + file + "; invalid file format version: " + version);
 				}
+				this.compressed = false;
 				// Write new magic number to file
 				logger.info("Updating file header for btree file '{}'", file.getAbsolutePath());
 				writeFileHeader();
@@ -389,11 +539,23 @@ public class BTree {
 		}
 
 		// Calculate derived properties
+		int capacity = this.compressed ? COMPRESSED_NODE_CAPACITY_FACTOR * this.blockSize : this.blockSize;
 		slotSize = 4 + this.valueSize;
-		branchFactor = 1 + (this.blockSize - 8) / slotSize;
+		branchFactor = 1 + (capacity - 8) / slotSize;
 		// bf=30 --> mvc=14; bf=29 --> mvc=14
 		minValueCount = (branchFactor - 1) / 2;
 		nodeSize = 8 + (branchFactor - 1) * slotSize;
+		bitmapSize = (this.valueSize + 7) / 8;
+		compressedSlotSize = bitmapSize + this.valueSize + 4;
+
+		if (this.compressed && this.blockSize < COMPRESSED_NODE_HEADER_LENGTH + 4 + 8 * compressedSlotSize) {
+			// Splitting a node that no longer fits in a block must produce two
+			// nodes that do fit
+			nioFile.close();
+			allocatedNodesList.close(false);
+			throw new IllegalArgumentException(
+					"block size to small; compressed nodes must at least be able to store eight values");
+		}
 
 		// System.out.println("blockSize=" + this.blockSize);
 		// System.out.println("valueSize=" + this.valueSize);
@@ -464,10 +626,7 @@ public class BTree {
 
 			closed = true;
 
-			synchronized (nodeCache) {
-				nodeCache.clear();
-				mruNodes.clear();
-			}
+			nodeCache.clear();
 
 			try {
 				nioFile.close();
@@ -492,13 +651,7 @@ public class BTree {
 		btreeLock.readLock().lock();
 		try {
 			// Write any changed nodes that still reside in the cache to disk
-			synchronized (nodeCache) {
-				for (Node node : nodeCache.values()) {
-					if (node.dataChanged()) {
-						node.write();
-					}
-				}
-			}
+			nodeCache.writeChangedNodes();
 
 			if (forceSync) {
 				nioFile.force(false);
@@ -841,18 +994,7 @@ public class BTree {
 			if (insertResult.overflowValue != null) {
 				// Root node overflowed, create a new root node and insert overflow
 				// value-nodeID pair in it
-				Node newRootNode = createNewNode();
-				newRootNode.setChildNodeID(0, rootNode.getID());
-				newRootNode.insertValueNodeIDPair(0, insertResult.overflowValue, insertResult.overflowNodeID);
-
-				rootNodeID = newRootNode.getID();
-				writeFileHeader();
-				newRootNode.release();
-
-				// update the cached depth of this BTree
-				if (height >= 0) {
-					height++;
-				}
+				createNewRootNode(rootNode, insertResult.overflowValue, insertResult.overflowNodeID);
 			}
 
 			rootNode.release();
@@ -864,6 +1006,27 @@ public class BTree {
 		}
 	}
 
+	/**
+	 * Adds a new level to the B-Tree by creating a new root node with the
+	 * current root node and the specified node as its children.
+	 */
+	private void createNewRootNode(Node rootNode, byte[] medianValue, int rightNodeID)
+		throws IOException
+	{
+		Node newRootNode = createNewNode();
+		newRootNode.setChildNodeID(0, rootNode.getID());
+		newRootNode.insertValueNodeIDPair(0, medianValue, rightNodeID);
+
+		rootNodeID = newRootNode.getID();
+		writeFileHeader();
+		newRootNode.release();
+
+		// update the cached depth of this BTree
+		if (height >= 0) {
+			height++;
+		}
+	}
+
 	private InsertResult insertInTree(byte[] value, int nodeID, Node node)
 		throws IOException
 	{
@@ -881,6 +1044,11 @@ public class BTree {
 			// value to prevent possibly unnecessary disk writes
 			if (!Arrays.equals(value, insertResult.oldValue)) {
 				node.setValue(valueIdx, value);
+
+				if (node.isOversized()) {
+					// The compressed node grew too large
+					splitNode(node, insertResult);
+				}
 			}
 		}
 		else {
@@ -926,11 +1094,29 @@ public class BTree {
 		else {
 			// Leaf node is not full, simply add the value to it
 			node.insertValueNodeIDPair(valueIdx, value, nodeID);
+
+			if (node.isOversized()) {
+				// The compressed node grew too large
+				splitNode(node, insertResult);
+			}
 		}
 
 		return insertResult;
 	}
 
+	/**
+	 * Splits a node that does not fit in a block, storing the median value and
+	 * the ID of the new node in the supplied insert result.
+	 */
+	private void splitNode(Node node, InsertResult insertResult)
+		throws IOException
+	{
+		Node newNode = createNewNode();
+		insertResult.overflowValue = node.split(newNode);
+		insertResult.overflowNodeID = newNode.getID();
+		newNode.release();
+	}
+
 	/**
 	 * struct-like class used to represent the result of an insert operation.
 	 */
@@ -995,6 +1181,13 @@ public class BTree {
 						height--;
 					}
 				}
+				else if (rootNode.isOversized()) {
+					// The compressed root node grew too large, split it
+					Node newNode = createNewNode();
+					byte[] medianValue = rootNode.split(newNode);
+					createNewRootNode(rootNode, medianValue, newNode.getID());
+					newNode.release();
+				}
 
 				rootNode.release();
 			}
@@ -1098,13 +1291,13 @@ public class BTree {
 	private void balanceChildNode(Node parentNode, Node childNode, int childIdx)
 		throws IOException
 	{
-		if (childNode.getValueCount() < minValueCount) {
+		if (childNode.isUnderflowing()) {
 			// Child node contains too few values, try to borrow one from its right
 			// sibling
 			Node rightSibling = (childIdx < parentNode.getValueCount()) ? parentNode.getChildNode(childIdx + 1)
 					: null;
 
-			if (rightSibling != null && rightSibling.getValueCount() > minValueCount) {
+			if (rightSibling != null && rightSibling.canSpareValue()) {
 				// Right sibling has enough values to give one up
 				parentNode.rotateLeft(childIdx, childNode, rightSibling);
 			}
@@ -1113,7 +1306,7 @@ public class BTree {
 				// left sibling
 				Node leftSibling = (childIdx > 0) ? parentNode.getChildNode(childIdx - 1) : null;
 
-				if (leftSibling != null && leftSibling.getValueCount() > minValueCount) {
+				if (leftSibling != null && leftSibling.canSpareValue()) {
 					// Left sibling has enough values to give one up
 					parentNode.rotateRight(childIdx, leftSibling, childNode);
 				}
@@ -1122,9 +1315,11 @@ public class BTree {
 					// merge the child node with its left or right sibling
 					if (leftSibling != null) {
 						leftSibling.mergeWithRightSibling(parentNode.removeValueRight(childIdx - 1), childNode);
+						splitOversizedChildNode(parentNode, leftSibling, childIdx - 1);
 					}
 					else {
 						childNode.mergeWithRightSibling(parentNode.removeValueRight(childIdx), rightSibling);
+						splitOversizedChildNode(parentNode, childNode, childIdx);
 					}
 				}
 
@@ -1137,6 +1332,149 @@ public class BTree {
 				rightSibling.release();
 			}
 		}
+		else {
+			splitOversizedChildNode(parentNode, childNode, childIdx);
+		}
+	}
+
+	/**
+	 * Splits the specified child node if it no longer fits in a block, which
+	 * can happen to compressed nodes when values are replaced or merged. The
+	 * median value is inserted in the parent node, using the spare slot of the
+	 * parent node if needed. The parent node is split in turn by its own
+	 * parent, or by {@link #remove(byte[])} if it is the root node.
+	 */
+	private void splitOversizedChildNode(Node parentNode, Node childNode, int childIdx)
+		throws IOException
+	{
+		if (childNode.isOversized()) {
+			Node newNode = createNewNode();
+			byte[] medianValue = childNode.split(newNode);
+			parentNode.insertValueNodeIDPair(childIdx, medianValue, newNode.getID());
+			newNode.release();
+		}
+	}
+
+	/**
+	 * Fills an empty B-Tree with the supplied values. Rather than inserting
+	 * the values one by one, the B-Tree is built bottom-up: values are appended
+	 * to the rightmost node of each level, filling all nodes to their maximum
+	 * capacity, except for the rightmost nodes that are topped up from their
+	 * left siblings to satisfy the minimum value count. This is considerably
+	 * faster than inserting the values individually and produces a smaller,
+	 * denser file.
+	 * 
+	 * @param values
+	 *        The values to store in the B-Tree, sorted in ascending order
+	 *        according to this B-Tree's comparator and without duplicates. The
+	 *        iterator is not closed by this method.
+	 * @return The number of values that were stored in the B-Tree.
+	 * @throws IllegalStateException
+	 *         If the B-Tree is not empty.
+	 * @throws IllegalArgumentException
+	 *         If the supplied values are not strictly ascending.
+	 * @throws IOException
+	 *         If an I/O error occurred.
+	 */
+	public long bulkLoad(RecordIterator values)
+		throws IOException
+	{
+		btreeLock.writeLock().lock();
+		try {
+			if (rootNodeID != 0) {
+				throw new IllegalStateException("Bulk loading requires an empty BTree: " + getFile());
+			}
+
+			// The rightmost node of each level, leaf level first
+			List<Node> levelNodes = new ArrayList<Node>();
+			long valueCount = 0L;
+
+			try {
+				byte[] previous = null;
+				byte[] value;
+				while ((value = values.next()) != null) {
+					if (previous != null && comparator.compareBTreeValues(previous, value, 0, valueSize) >= 0) {
+						throw new IllegalArgumentException("Values not in strictly ascending order: " + getFile());
+					}
+					appendValue(levelNodes, 0, value, 0);
+					previous = value;
+					valueCount++;
+				}
+
+				// Top up the rightmost nodes from their left siblings. This is done
+				// top-down as the rightmost non-leaf nodes can be empty too.
+				for (int level = levelNodes.size() - 2; level >= 0; level--) {
+					Node node = levelNodes.get(level);
+					Node parentNode = levelNodes.get(level + 1);
+
+					if (node.isEmpty() || node.isUnderflowing()) {
+						int nodeIdx = parentNode.getValueCount();
+						Node leftSibling = parentNode.getChildNode(nodeIdx - 1);
+						try {
+							while (node.isEmpty() || node.isUnderflowing()) {
+								parentNode.rotateRight(nodeIdx, leftSibling, node);
+							}
+						}
+						finally {
+							leftSibling.release();
+						}
+					}
+				}
+
+				if (!levelNodes.isEmpty()) {
+					rootNodeID = levelNodes.get(levelNodes.size() - 1).getID();
+					height = levelNodes.size();
+					writeFileHeader();
+				}
+
+				return valueCount;
+			}
+			finally {
+				for (Node node : levelNodes) {
+					node.release();
+				}
+			}
+		}
+		finally {
+			btreeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a value and the ID of the node to its right to the rightmost node
+	 * at the specified level, starting a new node if that node is full. In the
+	 * latter case, the value is moved up to the parent level instead, with the
+	 * new node as its right child.
+	 */
+	private void appendValue(List<Node> levelNodes, int level, byte[] value, int rightNodeID)
+		throws IOException
+	{
+		if (levelNodes.isEmpty()) {
+			// First value, create the first leaf node
+			levelNodes.add(createNewNode());
+		}
+
+		Node node = levelNodes.get(level);
+
+		if (!node.isFull()) {
+			node.insertValueNodeIDPair(node.getValueCount(), value, rightNodeID);
+		}
+		else {
+			Node newNode = createNewNode();
+			newNode.setChildNodeID(0, rightNodeID);
+
+			if (level + 1 == levelNodes.size()) {
+				// Full node is the current root, create a new root node for it
+				Node parentNode = createNewNode();
+				parentNode.setChildNodeID(0, node.getID());
+				levelNodes.add(parentNode);
+			}
+
+			appendValue(levelNodes, level + 1, value, newNode.getID());
+
+			levelNodes.set(level, newNode);
+			node.release();
+		}
 	}
 
 	/**
@@ -1150,10 +1488,7 @@ public class BTree {
 	{
 		btreeLock.writeLock().lock();
 		try {
-			synchronized (nodeCache) {
-				nodeCache.clear();
-				mruNodes.clear();
-			}
+			nodeCache.clear();
 			nioFile.truncate(HEADER_LENGTH);
 
 			if (rootNodeID != 0) {
@@ -1172,21 +1507,7 @@ public class BTree {
 		throws IOException
 	{
 		int newNodeID = allocatedNodesList.allocateNode();
-
-		Node node = new Node(newNodeID);
-
-		synchronized (nodeCache) {
-			if (nodeCache.size() >= NODE_CACHE_SIZE && mruNodes.size() > MIN_MRU_CACHE_SIZE) {
-				// Make some room for the new node
-				expelNodeFromCache();
-			}
-
-			node.use();
-
-			nodeCache.put(node.getID(), node);
-		}
-
-		return node;
+		return nodeCache.createNode(newNodeID);
 	}
 
 	Node readRootNode()
@@ -1205,88 +1526,28 @@ public class BTree {
 			throw new IllegalArgumentException("id must be larger than 0, is: " + id + " in " + getFile());
 		}
 
-		// Check node cache
-		synchronized (nodeCache) {
-			Node node = nodeCache.get(id);
-
-			if (node != null) {
-				// Found node in cache
-				int usageCount = node.use();
-				if (usageCount == 1) {
-					mruNodes.remove(id);
-				}
-			}
-			else {
-				if (nodeCache.size() >= NODE_CACHE_SIZE && mruNodes.size() > MIN_MRU_CACHE_SIZE) {
-					// Make some room for the new node
-					expelNodeFromCache();
-				}
-
-				// Read node from disk and add to cache
-				node = new Node(id);
-
-				// FIXME: this blocks the (synchronized) access to the cache for
-				// quite some time
-				node.read();
-
-				nodeCache.put(id, node);
-
-				node.use();
-			}
-
-			return node;
-		}
-	}
-
-	private void releaseNode(Node node)
-		throws IOException
-	{
-		// Note: this method is called by Node.release(), which already
-		// synchronizes on nodeCache. This method should not be called directly to
-		// prevent concurrency issues!!!
-
-		// synchronized (nodeCache) {
-		if (node.isEmpty() && node.isLeaf()) {
-			// Discard node
-			node.write();
-			nodeCache.remove(node.getID());
-
-			// allow the node ID to be reused
-			synchronized (allocatedNodesList) {
-				allocatedNodesList.freeNode(node.getID());
-
-				int maxNodeID = allocatedNodesList.getMaxNodeID();
-				if (node.getID() > maxNodeID) {
-					// Shrink file
-					nioFile.truncate(nodeID2offset(maxNodeID) + nodeSize);
-				}
-			}
-		}
-		else {
-			mruNodes.put(node.getID(), node);
-
-			if (nodeCache.size() > NODE_CACHE_SIZE && mruNodes.size() > MIN_MRU_CACHE_SIZE) {
-				expelNodeFromCache();
-			}
-		}
-		// }
+		return nodeCache.readNode(id);
 	}
 
 	/**
-	 * Tries to expel the least recently used node from the cache.
+	 * Discards a node that has become empty, allowing its ID to be reused.
 	 */
-	private void expelNodeFromCache()
+	private void discardNode(Node node)
 		throws IOException
 	{
-		if (!mruNodes.isEmpty()) {
-			Iterator<Node> iter = mruNodes.values().iterator();
-			Node lruNode = iter.next();
-
-			if (lruNode.dataChanged()) {
-				lruNode.write();
+		synchronized (allocatedNodesList) {
+			allocatedNodesList.freeNode(node.getID());
+
+			int maxNodeID = allocatedNodesList.getMaxNodeID();
+			if (node.getID() > maxNodeID) {
+				// Shrink file
+				if (compressed) {
+					nioFile.truncate(nodeID2offset(maxNodeID) + blockSize);
+				}
+				else {
+					nioFile.truncate(nodeID2offset(maxNodeID) + nodeSize);
+				}
 			}
-			iter.remove();
-			nodeCache.remove(lruNode.getID());
 		}
 	}
 
@@ -1295,7 +1556,7 @@ public class BTree {
 	{
 		ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
 		buf.put(MAGIC_NUMBER);
-		buf.put(FILE_FORMAT_VERSION);
+		buf.put(compressed ? COMPRESSED_FILE_FORMAT_VERSION : FILE_FORMAT_VERSION);
 		buf.putInt(blockSize);
 		buf.putInt(valueSize);
 		buf.putInt(rootNodeID);
@@ -1313,6 +1574,220 @@ public class BTree {
 		return (int)(offset / blockSize);
 	}
 
+	/**
+	 * Checks whether this BTree stores its nodes in compressed form.
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/*-----------------------*
+	 * Inner class NodeCache *
+	 *-----------------------*/
+
+	/**
+	 * A concurrent cache for the nodes of this BTree. Lookups are guarded by a
+	 * set of striped locks rather than a single global lock, so that threads
+	 * that access different nodes do not contend with each other and a node
+	 * that is being read from disk only blocks access to nodes in the same
+	 * stripe. Nodes that are in use are never evicted. Unused nodes are evicted
+	 * using the CLOCK (second chance) algorithm once the cache grows beyond its
+	 * capacity.
+	 */
+	private class NodeCache {
+
+		private final ConcurrentHashMap<Integer, Node> nodes;
+
+		private final Object[] locks = new Object[NODE_CACHE_LOCK_STRIPES];
+
+		private final int capacity;
+
+		/**
+		 * Lock that allows only a single thread at a time to evict nodes.
+		 */
+		private final ReentrantLock evictionLock = new ReentrantLock();
+
+		/**
+		 * The position of the clock hand, guarded by {@link #evictionLock}.
+		 */
+		private Iterator<Node> clockHand;
+
+		public NodeCache(int capacity) {
+			this.capacity = capacity;
+			this.nodes = new ConcurrentHashMap<Integer, Node>(capacity + 1, 0.75f, NODE_CACHE_LOCK_STRIPES);
+
+			for (int i = 0; i < locks.length; i++) {
+				locks[i] = new Object();
+			}
+		}
+
+		private Object getLock(int nodeID) {
+			return locks[nodeID & (NODE_CACHE_LOCK_STRIPES - 1)];
+		}
+
+		/**
+		 * Gets the node with the specified ID, reading it from disk if it isn't
+		 * cached yet. The node's usage count is incremented.
+		 */
+		public Node readNode(int id)
+			throws IOException
+		{
+			Node node;
+
+			synchronized (getLock(id)) {
+				node = nodes.get(id);
+
+				if (node == null) {
+					// Read node from disk and add to cache. Only lookups of nodes
+					// in the same lock stripe are blocked during the read.
+					node = new Node(id);
+					node.read();
+					nodes.put(id, node);
+				}
+
+				node.usageCount++;
+				node.recentlyUsed = true;
+			}
+
+			evictNodes();
+
+			return node;
+		}
+
+		/**
+		 * Adds a new, empty node with the specified ID to the cache. The node's
+		 * usage count is set to <tt>1</tt>.
+		 */
+		public Node createNode(int id)
+			throws IOException
+		{
+			Node node = new Node(id);
+
+			synchronized (getLock(id)) {
+				node.usageCount = 1;
+				node.recentlyUsed = true;
+				nodes.put(id, node);
+			}
+
+			evictNodes();
+
+			return node;
+		}
+
+		public int use(Node node) {
+			synchronized (getLock(node.id)) {
+				node.recentlyUsed = true;
+				return ++node.usageCount;
+			}
+		}
+
+		public void release(Node node)
+			throws IOException
+		{
+			boolean discarded = false;
+
+			synchronized (getLock(node.id)) {
+				assert node.usageCount > 0 : "Releasing node while usage count is " + node.usageCount;
+
+				node.usageCount--;
+
+				if (node.usageCount == 0 && node.isEmpty() && node.isLeaf()) {
+					// Discard node
+					node.write();
+					nodes.remove(node.id);
+					discarded = true;
+				}
+			}
+
+			if (discarded) {
+				discardNode(node);
+			}
+			else {
+				evictNodes();
+			}
+		}
+
+		/**
+		 * Evicts unused nodes from the cache until the cache no longer exceeds
+		 * its capacity, or until all remaining nodes are in use. Changed nodes
+		 * are written to disk before they are evicted. If another thread is
+		 * already evicting nodes, this method returns immediately.
+		 */
+		private void evictNodes()
+			throws IOException
+		{
+			if (nodes.size() <= capacity || !evictionLock.tryLock()) {
+				return;
+			}
+
+			try {
+				// Each node gets at most two chances per eviction round
+				int maxInspections = 2 * nodes.size();
+
+				for (int i = 0; i < maxInspections && nodes.size() > capacity; i++) {
+					if (clockHand == null || !clockHand.hasNext()) {
+						clockHand = nodes.values().iterator();
+
+						if (!clockHand.hasNext()) {
+							break;
+						}
+					}
+
+					Node node = clockHand.next();
+
+					synchronized (getLock(node.id)) {
+						if (node.usageCount > 0 || nodes.get(node.id) != node) {
+							continue;
+						}
+
+						if (node.recentlyUsed) {
+							// Give the node a second chance
+							node.recentlyUsed = false;
+							continue;
+						}
+
+						if (node.dataChanged()) {
+							node.write();
+						}
+						nodes.remove(node.id);
+					}
+				}
+			}
+			finally {
+				evictionLock.unlock();
+			}
+		}
+
+		/**
+		 * Writes all changed nodes in the cache to disk.
+		 */
+		public void writeChangedNodes()
+			throws IOException
+		{
+			for (Node node : nodes.values()) {
+				synchronized (getLock(node.id)) {
+					if (node.dataChanged()) {
+						node.write();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Removes all nodes from the cache, discarding any changes.
+		 */
+		public void clear() {
+			evictionLock.lock();
+			try {
+				nodes.clear();
+				clockHand = null;
+			}
+			finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
 	/*------------------*
 	 * Inner class Node *
 	 *------------------*/
@@ -1328,12 +1803,27 @@ public class BTree {
 		/** The number of values containined in this node. */
 		private int valueCount;
 
-		/** The number of objects currently 'using' this node. */
+		/**
+		 * The number of objects currently 'using' this node. Guarded by the node
+		 * cache's lock for this node's ID.
+		 */
 		private int usageCount;
 
+		/**
+		 * Flag indicating whether this node has been used since the node cache
+		 * last considered it for eviction.
+		 */
+		private volatile boolean recentlyUsed;
+
 		/** Flag indicating whether the contents of data has changed. */
 		private boolean dataChanged;
 
+		/**
+		 * The size of this node in compressed form, or <tt>-1</tt> if it needs
+		 * to be recalculated.
+		 */
+		private int encodedSize = -1;
+
 		/** Registered listeners that want to be notified of changes to the node. */
 		private final LinkedList<NodeListener> listeners = new LinkedList<NodeListener>();
 
@@ -1372,27 +1862,13 @@ public class BTree {
 		}
 
 		public int use() {
-			// synchronize on nodeCache because release() can call
-			// releaseNode(Node) and readNode(int) calls this method
-			synchronized (nodeCache) {
-				return ++usageCount;
-			}
+			return nodeCache.use(this);
 		}
 
 		public void release()
 			throws IOException
 		{
-			// synchronize on nodeCache because this method can call
-			// releaseNode(Node) and readNode(int) can call use()
-			synchronized (nodeCache) {
-				assert usageCount > 0 : "Releasing node while usage count is " + usageCount;
-
-				usageCount--;
-
-				if (usageCount == 0) {
-					releaseNode(this);
-				}
-			}
+			nodeCache.release(this);
 		}
 
 		public int getUsageCount() {
@@ -1426,8 +1902,41 @@ public class BTree {
 			return valueCount == 0;
 		}
 
+		/**
+		 * Checks if this node has room for another value. Compressed nodes are
+		 * also full when another value might not fit in their block.
+		 */
 		public boolean isFull() {
-			return valueCount == branchFactor - 1;
+			return valueCount == branchFactor - 1 || compressed
+					&& getEncodedSize() + compressedSlotSize > blockSize;
+		}
+
+		/**
+		 * Checks if this node contains more values than can be stored, which
+		 * can temporarily be the case for compressed nodes that grew beyond
+		 * their block, or for nodes that use their spare slot.
+		 */
+		public boolean isOversized() {
+			return valueCount > branchFactor - 1 || compressed && getEncodedSize() > blockSize;
+		}
+
+		/**
+		 * Checks if this node contains too few values. Compressed nodes are only
+		 * considered to contain too few values when they also fill less than a
+		 * third of their block, so that merging them with a sibling that cannot
+		 * {@link #canSpareValue() spare a value} produces a node that fits in a
+		 * block.
+		 */
+		public boolean isUnderflowing() {
+			return valueCount < minValueCount && (!compressed || getEncodedSize() < blockSize / 3);
+		}
+
+		/**
+		 * Checks if this node can give up a value to a sibling that contains too
+		 * few values.
+		 */
+		public boolean canSpareValue() {
+			return valueCount > minValueCount || compressed && getEncodedSize() > blockSize / 2;
 		}
 
 		public byte[] getValue(int valueIdx) {
@@ -1443,7 +1952,7 @@ public class BTree {
 			assert valueIdx < valueCount : "valueIdx out of range (" + valueIdx + " >= " + valueCount + ")";
 
 			ByteArrayUtil.put(value, data, valueIdx2offset(valueIdx));
-			dataChanged = true;
+			setDataChanged();
 		}
 
 		/**
@@ -1473,7 +1982,7 @@ public class BTree {
 
 			setValueCount(--valueCount);
 
-			dataChanged = true;
+			setDataChanged();
 
 			notifyValueRemoved(valueIdx);
 
@@ -1505,7 +2014,7 @@ public class BTree {
 
 			setValueCount(--valueCount);
 
-			dataChanged = true;
+			setDataChanged();
 
 			notifyValueRemoved(valueIdx);
 
@@ -1525,7 +2034,7 @@ public class BTree {
 			assert nodeID >= 0 : "nodeID must not be negative, is: " + nodeID;
 
 			ByteArrayUtil.putInt(nodeID, data, nodeIdx2offset(nodeIdx));
-			dataChanged = true;
+			setDataChanged();
 		}
 
 		public Node getChildNode(int nodeIdx)
@@ -1592,7 +2101,7 @@ public class BTree {
 
 			notifyValueAdded(valueIdx);
 
-			dataChanged = true;
+			setDataChanged();
 		}
 
 		public void insertNodeIDValuePair(int nodeIdx, int nodeID, byte[] value) {
@@ -1615,7 +2124,7 @@ public class BTree {
 
 			notifyValueAdded(nodeIdx);
 
-			dataChanged = true;
+			setDataChanged();
 		}
 
 		/**
@@ -1633,14 +2142,29 @@ public class BTree {
 			// can be done because data got one spare slot when it was allocated.
 			insertValueNodeIDPair(newValueIdx, newValue, newNodeID);
 
-			assert valueCount == branchFactor : "Node contains " + valueCount + " values, expected "
-					+ branchFactor;
+			assert compressed || valueCount == branchFactor : "Node contains " + valueCount
+					+ " values, expected " + branchFactor;
+
+			return split(newNode);
+		}
+
+		/**
+		 * Splits the node, moving the values right of the median value to the
+		 * supplied new node and returning the median value. For uncompressed
+		 * nodes, the median is the middle value. For compressed nodes, the
+		 * median is chosen such that both halves have about the same encoded
+		 * size.
+		 */
+		public byte[] split(Node newNode)
+			throws IOException
+		{
+			assert valueCount >= 3 : "Node contains too few values to be split: " + valueCount;
 
-			// Node now contains exactly [branchFactor] values. The median
-			// value at index [branchFactor/2] is moved to the parent
-			// node, the values left of the median stay in this node, the
-			// values right of the median are moved to the new node.
-			int medianIdx = branchFactor / 2;
+			// The median value is moved to the parent node, the values left of
+			// the median stay in this node, the values right of the median are
+			// moved to the new node.
+			int totalValueCount = valueCount;
+			int medianIdx = compressed ? getEncodedMedianIdx() : valueCount / 2;
 			int medianOffset = valueIdx2offset(medianIdx);
 			int splitOffset = medianOffset + valueSize;
 
@@ -1656,8 +2180,9 @@ public class BTree {
 
 			// Update the value counts
 			setValueCount(medianIdx);
-			newNode.setValueCount(branchFactor - medianIdx - 1);
-			newNode.dataChanged = true;
+			newNode.setValueCount(totalValueCount - medianIdx - 1);
+			setDataChanged();
+			newNode.setDataChanged();
 
 			notifyNodeSplit(newNode, medianIdx);
 
@@ -1684,7 +2209,7 @@ public class BTree {
 
 			rightSibling.clearData(4, valueIdx2offset(rightSibling.valueCount));
 			rightSibling.setValueCount(0);
-			rightSibling.dataChanged = true;
+			rightSibling.setDataChanged();
 
 			rightSibling.notifyNodeMerged(this, rightIdx);
 		}
@@ -1812,6 +2337,11 @@ public class BTree {
 		public void read()
 			throws IOException
 		{
+			if (compressed) {
+				readCompressed();
+				return;
+			}
+
 			ByteBuffer buf = ByteBuffer.wrap(data);
 
 			// Don't fill the spare slot in data:
@@ -1827,6 +2357,11 @@ public class BTree {
 		public void write()
 			throws IOException
 		{
+			if (compressed) {
+				writeCompressed();
+				return;
+			}
+
 			ByteBuffer buf = ByteBuffer.wrap(data);
 
 			// Don't write the spare slot in data to the file:
@@ -1860,6 +2395,83 @@ public class BTree {
 		private void setValueCount(int valueCount) {
 			this.valueCount = valueCount;
 			ByteArrayUtil.putInt(valueCount, data, 0);
+			encodedSize = -1;
+		}
+
+		private void setDataChanged() {
+			dataChanged = true;
+			encodedSize = -1;
+		}
+
+		/**
+		 * Gets the size of this node in compressed form, see
+		 * {@link #writeCompressed()}.
+		 */
+		public int getEncodedSize() {
+			if (encodedSize < 0) {
+				boolean leaf = isLeaf();
+				int size = COMPRESSED_NODE_HEADER_LENGTH + (leaf ? 0 : 4);
+				for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
+					size += getEncodedValueSize(valueIdx, valueIdx - 1, leaf);
+				}
+				encodedSize = size;
+			}
+			return encodedSize;
+		}
+
+		/**
+		 * Gets the size of the specified value in compressed form when it is
+		 * preceded by the value at <tt>prevValueIdx</tt>, or when it is the first
+		 * value of a node if <tt>prevValueIdx</tt> is <tt>-1</tt>.
+		 */
+		private int getEncodedValueSize(int valueIdx, int prevValueIdx, boolean leaf) {
+			int offset = valueIdx2offset(valueIdx);
+			int prevOffset = prevValueIdx >= 0 ? valueIdx2offset(prevValueIdx) : -1;
+
+			int size = bitmapSize + (leaf ? 0 : 4);
+			for (int i = 0; i < valueSize; i++) {
+				byte prevB = prevOffset >= 0 ? data[prevOffset + i] : 0;
+				if (data[offset + i] != prevB) {
+					size++;
+				}
+			}
+			return size;
+		}
+
+		/**
+		 * Gets the index of the median value that splits this compressed node in
+		 * two halves with the smallest maximum encoded size. The first value of
+		 * the right half is stored in full, so the encoded size of a half is not
+		 * simply proportional to its number of values.
+		 */
+		private int getEncodedMedianIdx() {
+			boolean leaf = isLeaf();
+			int headerSize = COMPRESSED_NODE_HEADER_LENGTH + (leaf ? 0 : 4);
+
+			int[] valueSizes = new int[valueCount];
+			int totalSize = 0;
+			for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
+				valueSizes[valueIdx] = getEncodedValueSize(valueIdx, valueIdx - 1, leaf);
+				totalSize += valueSizes[valueIdx];
+			}
+
+			int medianIdx = valueCount / 2;
+			int minSize = Integer.MAX_VALUE;
+
+			int leftSize = 0;
+			for (int idx = 1; idx < valueCount - 1; idx++) {
+				leftSize += valueSizes[idx - 1];
+				int rightSize = totalSize - leftSize - valueSizes[idx] - valueSizes[idx + 1]
+						+ getEncodedValueSize(idx + 1, -1, leaf);
+
+				int size = headerSize + Math.max(leftSize, rightSize);
+				if (size < minSize) {
+					minSize = size;
+					medianIdx = idx;
+				}
+			}
+
+			return medianIdx;
 		}
 
 		private int valueIdx2offset(int id) {
@@ -1869,6 +2481,134 @@ public class BTree {
 		private int nodeIdx2offset(int id) {
 			return 4 + id * slotSize;
 		}
+
+		/**
+		 * Reads a compressed node, see {@link #writeCompressed()} for a
+		 * description of the format.
+		 */
+		private void readCompressed()
+			throws IOException
+		{
+			byte[] encoded = new byte[blockSize];
+
+			// The last node in the file may be shorter than a block
+			nioFile.read(ByteBuffer.wrap(encoded), nodeID2offset(id));
+
+			int encodedLength = ByteArrayUtil.getInt(encoded, 0);
+			if (encodedLength > blockSize) {
+				throw new IOException("Invalid length of compressed node " + id + ": " + encodedLength + " in "
+						+ getFile());
+			}
+
+			Arrays.fill(data, (byte)0);
+			encodedSize = -1;
+
+			if (encodedLength == 0) {
+				// Node has never been written
+				valueCount = 0;
+				return;
+			}
+
+			int count = ByteArrayUtil.getInt(encoded, 4);
+			boolean leaf = encoded[8] != 0;
+			int pos = COMPRESSED_NODE_HEADER_LENGTH;
+
+			if (!leaf) {
+				System.arraycopy(encoded, pos, data, nodeIdx2offset(0), 4);
+				pos += 4;
+			}
+
+			int prevOffset = -1;
+			for (int valueIdx = 0; valueIdx < count; valueIdx++) {
+				int offset = valueIdx2offset(valueIdx);
+				int bitmapPos = pos;
+				pos += bitmapSize;
+
+				for (int i = 0; i < valueSize; i++) {
+					if ((encoded[bitmapPos + (i >>> 3)] & (1 << (i & 7))) != 0) {
+						data[offset + i] = encoded[pos++];
+					}
+					else if (prevOffset >= 0) {
+						data[offset + i] = data[prevOffset + i];
+					}
+				}
+
+				if (!leaf) {
+					System.arraycopy(encoded, pos, data, offset + valueSize, 4);
+					pos += 4;
+				}
+
+				prevOffset = offset;
+			}
+
+			setValueCount(count);
+		}
+
+		/**
+		 * Writes the node in compressed form. Compressed nodes start with a
+		 * header consisting of the length of the encoded node, the number of
+		 * values and a flag indicating whether the node is a leaf. For non-leaf
+		 * nodes, this is followed by the ID of the leftmost child node. Each
+		 * value is then stored as a bitmap indicating which of its bytes differ
+		 * from the previous value, followed by the differing bytes and, for
+		 * non-leaf nodes, the ID of the child node to the right of the value.
+		 * Leaf nodes do not store child node IDs at all. The encoded node must
+		 * fit in the node's block; nodes that grow beyond their block are split
+		 * before they are written, see {@link #isOversized()}.
+		 */
+		private void writeCompressed()
+			throws IOException
+		{
+			int encodedSize = getEncodedSize();
+			if (encodedSize > blockSize) {
+				throw new IOException("Compressed node " + id + " does not fit in a block: " + encodedSize
+						+ " bytes in " + getFile());
+			}
+
+			byte[] encoded = new byte[encodedSize];
+
+			boolean leaf = isLeaf();
+			int pos = COMPRESSED_NODE_HEADER_LENGTH;
+
+			if (!leaf) {
+				System.arraycopy(data, nodeIdx2offset(0), encoded, pos, 4);
+				pos += 4;
+			}
+
+			int prevOffset = -1;
+			for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
+				int offset = valueIdx2offset(valueIdx);
+				int bitmapPos = pos;
+				pos += bitmapSize;
+
+				for (int i = 0; i < valueSize; i++) {
+					byte b = data[offset + i];
+					byte prevB = prevOffset >= 0 ? data[prevOffset + i] : 0;
+
+					if (b != prevB) {
+						encoded[bitmapPos + (i >>> 3)] |= (byte)(1 << (i & 7));
+						encoded[pos++] = b;
+					}
+				}
+
+				if (!leaf) {
+					System.arraycopy(data, offset + valueSize, encoded, pos, 4);
+					pos += 4;
+				}
+
+				prevOffset = offset;
+			}
+
+			assert pos == encodedSize : "Encoded " + pos + " bytes, expected " + encodedSize;
+
+			ByteArrayUtil.putInt(pos, encoded, 0);
+			ByteArrayUtil.putInt(valueCount, encoded, 4);
+			encoded[8] = leaf ? (byte)1 : (byte)0;
+
+			nioFile.write(ByteBuffer.wrap(encoded), nodeID2offset(id));
+
+			dataChanged = false;
+		}
 	}
 
 	/*--------------------------*
@@ -2548,39 +3288,33 @@ public class BTree {
 		out.println("branch factor   = " + branchFactor);
 		out.println("min value count = " + minValueCount);
 		out.println("node size       = " + nodeSize);
+		out.println("compressed      = " + compressed);
 		out.println();
 
 		int nodeCount = 0;
 		int valueCount = 0;
 
-		ByteBuffer buf = ByteBuffer.allocate(nodeSize);
 		for (long offset = blockSize; offset < nioFile.size(); offset += blockSize) {
-			nioFile.read(buf, offset);
-			buf.rewind();
+			Node node = new Node(offset2nodeID(offset));
+			node.read();
 
-			int nodeID = offset2nodeID(offset);
-			int count = buf.getInt();
+			int count = node.getValueCount();
 			nodeCount++;
 			valueCount += count;
-			out.print("node " + nodeID + ": ");
+			out.print("node " + node.getID() + ": ");
 			out.print("count=" + count + " ");
 
-			byte[] value = new byte[valueSize];
-
 			for (int i = 0; i < count; i++) {
 				// node ID
-				out.print(buf.getInt());
+				out.print(node.getChildNodeID(i));
 
 				// value
-				buf.get(value);
-				out.print("[" + ByteArrayUtil.toHexString(value) + "]");
+				out.print("[" + ByteArrayUtil.toHexString(node.getValue(i)) + "]");
 				// out.print("["+new String(value)+"]");
 			}
 
 			// last node ID
-			out.println(buf.getInt());
-
-			buf.clear();
+			out.println(node.getChildNodeID(count));
 		}
 		out.println("#nodes          = " + nodeCount);
 		out.println("#values         = " + valueCount);
@@ -5,9 +5,18 @@
  */
 package org.openrdf.sail.nativerdf.config;
 
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.ADAPTIVE_JOIN_ORDER;
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.EVALUATION_THREADS;
 import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.FORCE_SYNC;
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.INDEX_UPDATE_THREADS;
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.LATE_MATERIALIZATION;
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.MEMORY_MAPPED;
 import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.NAMESPACE_CACHE_SIZE;
 import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.NAMESPACE_ID_CACHE_SIZE;
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.NODE_CACHE_SIZE;
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.QUERY_PLAN_CACHE_SIZE;
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.SPILL_THRESHOLD;
+import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.TEMP_DIR;
 import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.TRIPLE_INDEXES;
 import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.VALUE_CACHE_SIZE;
 import static org.openrdf.sail.nativerdf.config.NativeStoreSchema.VALUE_ID_CACHE_SIZE;
@@ -34,6 +43,8 @@ public class NativeStoreConfig extends SailImplConfigBase {
 
 	private boolean forceSync = false;
 
+	private boolean memoryMapped = false;
+
 	private int valueCacheSize = -1;
 
 	private int valueIDCacheSize = -1;
@@ -42,6 +53,22 @@ public class NativeStoreConfig extends SailImplConfigBase {
 
 	private int namespaceIDCacheSize = -1;
 
+	private int nodeCacheSize = -1;
+
+	private int indexUpdateThreads = -1;
+
+	private boolean lateMaterialization = false;
+
+	private int queryPlanCacheSize = -1;
+
+	private int spillThreshold = -1;
+
+	private String tempDir;
+
+	private int evaluationThreads = -1;
+
+	private boolean adaptiveJoinOrder = false;
+
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -80,6 +107,14 @@ public class NativeStoreConfig extends SailImplConfigBase {
 		this.forceSync = forceSync;
 	}
 
+	public boolean getMemoryMapped() {
+		return memoryMapped;
+	}
+
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
 	public int getValueCacheSize() {
 		return valueCacheSize;
 	}
@@ -112,6 +147,70 @@ public class NativeStoreConfig extends SailImplConfigBase {
 		this.namespaceIDCacheSize = namespaceIDCacheSize;
 	}
 
+	public int getNodeCacheSize() {
+		return nodeCacheSize;
+	}
+
+	public void setNodeCacheSize(int nodeCacheSize) {
+		this.nodeCacheSize = nodeCacheSize;
+	}
+
+	public int getIndexUpdateThreads() {
+		return indexUpdateThreads;
+	}
+
+	public void setIndexUpdateThreads(int indexUpdateThreads) {
+		this.indexUpdateThreads = indexUpdateThreads;
+	}
+
+	public boolean getLateMaterialization() {
+		return lateMaterialization;
+	}
+
+	public void setLateMaterialization(boolean lateMaterialization) {
+		this.lateMaterialization = lateMaterialization;
+	}
+
+	public int getQueryPlanCacheSize() {
+		return queryPlanCacheSize;
+	}
+
+	public void setQueryPlanCacheSize(int queryPlanCacheSize) {
+		this.queryPlanCacheSize = queryPlanCacheSize;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public String getTempDir() {
+		return tempDir;
+	}
+
+	public void setTempDir(String tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	public int getEvaluationThreads() {
+		return evaluationThreads;
+	}
+
+	public void setEvaluationThreads(int evaluationThreads) {
+		this.evaluationThreads = evaluationThreads;
+	}
+
+	public boolean getAdaptiveJoinOrder() {
+		return adaptiveJoinOrder;
+	}
+
+	public void setAdaptiveJoinOrder(boolean adaptiveJoinOrder) {
+		this.adaptiveJoinOrder = adaptiveJoinOrder;
+	}
+
 	@Override
 	public Resource export(Graph graph) {
 		Resource implNode = super.export(graph);
@@ -123,6 +222,9 @@ public class NativeStoreConfig extends SailImplConfigBase {
 		if (forceSync) {
 			graph.add(implNode, FORCE_SYNC, vf.createLiteral(forceSync));
 		}
+		if (memoryMapped) {
+			graph.add(implNode, MEMORY_MAPPED, vf.createLiteral(memoryMapped));
+		}
 		if (valueCacheSize >= 0) {
 			graph.add(implNode, VALUE_CACHE_SIZE, vf.createLiteral(valueCacheSize));
 		}
@@ -135,6 +237,30 @@ public class NativeStoreConfig extends SailImplConfigBase {
 		if (namespaceIDCacheSize >= 0) {
 			graph.add(implNode, NAMESPACE_ID_CACHE_SIZE, vf.createLiteral(namespaceIDCacheSize));
 		}
+		if (nodeCacheSize >= 0) {
+			graph.add(implNode, NODE_CACHE_SIZE, vf.createLiteral(nodeCacheSize));
+		}
+		if (indexUpdateThreads >= 0) {
+			graph.add(implNode, INDEX_UPDATE_THREADS, vf.createLiteral(indexUpdateThreads));
+		}
+		if (lateMaterialization) {
+			graph.add(implNode, LATE_MATERIALIZATION, vf.createLiteral(lateMaterialization));
+		}
+		if (queryPlanCacheSize >= 0) {
+			graph.add(implNode, QUERY_PLAN_CACHE_SIZE, vf.createLiteral(queryPlanCacheSize));
+		}
+		if (spillThreshold >= 0) {
+			graph.add(implNode, SPILL_THRESHOLD, vf.createLiteral(spillThreshold));
+		}
+		if (tempDir != null) {
+			graph.add(implNode, TEMP_DIR, vf.createLiteral(tempDir));
+		}
+		if (evaluationThreads >= 0) {
+			graph.add(implNode, EVALUATION_THREADS, vf.createLiteral(evaluationThreads));
+		}
+		if (adaptiveJoinOrder) {
+			graph.add(implNode, ADAPTIVE_JOIN_ORDER, vf.createLiteral(adaptiveJoinOrder));
+		}
 
 		return implNode;
 	}
@@ -162,6 +288,17 @@ public class NativeStoreConfig extends SailImplConfigBase {
 				}
 			}
 
+			Literal memoryMappedLit = GraphUtil.getOptionalObjectLiteral(graph, implNode, MEMORY_MAPPED);
+			if (memoryMappedLit != null) {
+				try {
+					setMemoryMapped(memoryMappedLit.booleanValue());
+				}
+				catch (IllegalArgumentException e) {
+					throw new SailConfigException("Boolean value required for " + MEMORY_MAPPED
+							+ " property, found " + memoryMappedLit);
+				}
+			}
+
 			Literal valueCacheSizeLit = GraphUtil.getOptionalObjectLiteral(graph, implNode, VALUE_CACHE_SIZE);
 			if (valueCacheSizeLit != null) {
 				try {
@@ -208,6 +345,97 @@ public class NativeStoreConfig extends SailImplConfigBase {
 							+ " property, found " + namespaceIDCacheSizeLit);
 				}
 			}
+
+			Literal nodeCacheSizeLit = GraphUtil.getOptionalObjectLiteral(graph, implNode, NODE_CACHE_SIZE);
+			if (nodeCacheSizeLit != null) {
+				try {
+					setNodeCacheSize(nodeCacheSizeLit.intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new SailConfigException("Integer value required for " + NODE_CACHE_SIZE
+							+ " property, found " + nodeCacheSizeLit);
+				}
+				if (getNodeCacheSize() < 1) {
+					throw new SailConfigException("Positive value required for " + NODE_CACHE_SIZE
+							+ " property, found " + nodeCacheSizeLit);
+				}
+			}
+
+			Literal indexUpdateThreadsLit = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					INDEX_UPDATE_THREADS);
+			if (indexUpdateThreadsLit != null) {
+				try {
+					setIndexUpdateThreads(indexUpdateThreadsLit.intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new SailConfigException("Integer value required for " + INDEX_UPDATE_THREADS
+							+ " property, found " + indexUpdateThreadsLit);
+				}
+			}
+
+			Literal lateMaterializationLit = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					LATE_MATERIALIZATION);
+			if (lateMaterializationLit != null) {
+				try {
+					setLateMaterialization(lateMaterializationLit.booleanValue());
+				}
+				catch (IllegalArgumentException e) {
+					throw new SailConfigException("Boolean value required for " + LATE_MATERIALIZATION
+							+ " property, found " + lateMaterializationLit);
+				}
+			}
+
+			Literal queryPlanCacheSizeLit = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					QUERY_PLAN_CACHE_SIZE);
+			if (queryPlanCacheSizeLit != null) {
+				try {
+					setQueryPlanCacheSize(queryPlanCacheSizeLit.intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new SailConfigException("Integer value required for " + QUERY_PLAN_CACHE_SIZE
+							+ " property, found " + queryPlanCacheSizeLit);
+				}
+			}
+
+			Literal spillThresholdLit = GraphUtil.getOptionalObjectLiteral(graph, implNode, SPILL_THRESHOLD);
+			if (spillThresholdLit != null) {
+				try {
+					setSpillThreshold(spillThresholdLit.intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new SailConfigException("Integer value required for " + SPILL_THRESHOLD
+							+ " property, found " + spillThresholdLit);
+				}
+			}
+
+			Literal tempDirLit = GraphUtil.getOptionalObjectLiteral(graph, implNode, TEMP_DIR);
+			if (tempDirLit != null) {
+				setTempDir(tempDirLit.getLabel());
+			}
+
+			Literal evaluationThreadsLit = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					EVALUATION_THREADS);
+			if (evaluationThreadsLit != null) {
+				try {
+					setEvaluationThreads(evaluationThreadsLit.intValue());
+				}
+				catch (NumberFormatException e) {
+					throw new SailConfigException("Integer value required for " + EVALUATION_THREADS
+							+ " property, found " + evaluationThreadsLit);
+				}
+			}
+
+			Literal adaptiveJoinOrderLit = GraphUtil.getOptionalObjectLiteral(graph, implNode,
+					ADAPTIVE_JOIN_ORDER);
+			if (adaptiveJoinOrderLit != null) {
+				try {
+					setAdaptiveJoinOrder(adaptiveJoinOrderLit.booleanValue());
+				}
+				catch (IllegalArgumentException e) {
+					throw new SailConfigException("Boolean value required for " + ADAPTIVE_JOIN_ORDER
+							+ " property, found " + adaptiveJoinOrderLit);
+				}
+			}
 		}
 		catch (GraphUtilException e) {
 			throw new SailConfigException(e.getMessage(), e);
@@ -5,6 +5,8 @@
  */
 package org.openrdf.sail.nativerdf.config;
 
+import java.io.File;
+
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.config.SailConfigException;
 import org.openrdf.sail.config.SailFactory;
@@ -51,6 +53,7 @@ public class NativeStoreFactory implements SailFactory {
 
 			nativeStore.setTripleIndexes(nativeConfig.getTripleIndexes());
 			nativeStore.setForceSync(nativeConfig.getForceSync());
+			nativeStore.setMemoryMapped(nativeConfig.getMemoryMapped());
 
 			if (nativeConfig.getValueCacheSize() >= 0) {
 				nativeStore.setValueCacheSize(nativeConfig.getValueCacheSize());
@@ -64,6 +67,26 @@ public class NativeStoreFactory implements SailFactory {
 			if (nativeConfig.getNamespaceIDCacheSize() >= 0) {
 				nativeStore.setNamespaceIDCacheSize(nativeConfig.getNamespaceIDCacheSize());
 			}
+			if (nativeConfig.getNodeCacheSize() > 0) {
+				nativeStore.setNodeCacheSize(nativeConfig.getNodeCacheSize());
+			}
+			if (nativeConfig.getIndexUpdateThreads() >= 0) {
+				nativeStore.setIndexUpdateThreads(nativeConfig.getIndexUpdateThreads());
+			}
+			nativeStore.setLateMaterialization(nativeConfig.getLateMaterialization());
+			if (nativeConfig.getQueryPlanCacheSize() >= 0) {
+				nativeStore.setQueryPlanCacheSize(nativeConfig.getQueryPlanCacheSize());
+			}
+			if (nativeConfig.getSpillThreshold() >= 0) {
+				nativeStore.setSpillThreshold(nativeConfig.getSpillThreshold());
+			}
+			if (nativeConfig.getTempDir() != null) {
+				nativeStore.setTempDir(new File(nativeConfig.getTempDir()));
+			}
+			if (nativeConfig.getEvaluationThreads() >= 0) {
+				nativeStore.setEvaluationThreads(nativeConfig.getEvaluationThreads());
+			}
+			nativeStore.setAdaptiveJoinOrder(nativeConfig.getAdaptiveJoinOrder());
 		}
 
 		return nativeStore;
@@ -39,6 +39,33 @@ public class NativeStoreSchema {
 	/** <tt>http://www.openrdf.org/config/sail/native#namespaceIDCacheSize</tt> */
 	public final static URI NAMESPACE_ID_CACHE_SIZE;
 
+	/** <tt>http://www.openrdf.org/config/sail/native#nodeCacheSize</tt> */
+	public final static URI NODE_CACHE_SIZE;
+
+	/** <tt>http://www.openrdf.org/config/sail/native#memoryMapped</tt> */
+	public final static URI MEMORY_MAPPED;
+
+	/** <tt>http://www.openrdf.org/config/sail/native#indexUpdateThreads</tt> */
+	public final static URI INDEX_UPDATE_THREADS;
+
+	/** <tt>http://www.openrdf.org/config/sail/native#lateMaterialization</tt> */
+	public final static URI LATE_MATERIALIZATION;
+
+	/** <tt>http://www.openrdf.org/config/sail/native#queryPlanCacheSize</tt> */
+	public final static URI QUERY_PLAN_CACHE_SIZE;
+
+	/** <tt>http://www.openrdf.org/config/sail/native#spillThreshold</tt> */
+	public final static URI SPILL_THRESHOLD;
+
+	/** <tt>http://www.openrdf.org/config/sail/native#tempDir</tt> */
+	public final static URI TEMP_DIR;
+
+	/** <tt>http://www.openrdf.org/config/sail/native#evaluationThreads</tt> */
+	public final static URI EVALUATION_THREADS;
+
+	/** <tt>http://www.openrdf.org/config/sail/native#adaptiveJoinOrder</tt> */
+	public final static URI ADAPTIVE_JOIN_ORDER;
+
 	static {
 		ValueFactory factory = ValueFactoryImpl.getInstance();
 		TRIPLE_INDEXES = factory.createURI(NAMESPACE, "tripleIndexes");
@@ -47,5 +74,14 @@ public class NativeStoreSchema {
 		VALUE_ID_CACHE_SIZE = factory.createURI(NAMESPACE, "valueIDCacheSize");
 		NAMESPACE_CACHE_SIZE = factory.createURI(NAMESPACE, "namespaceCacheSize");
 		NAMESPACE_ID_CACHE_SIZE = factory.createURI(NAMESPACE, "namespaceIDCacheSize");
+		NODE_CACHE_SIZE = factory.createURI(NAMESPACE, "nodeCacheSize");
+		MEMORY_MAPPED = factory.createURI(NAMESPACE, "memoryMapped");
+		INDEX_UPDATE_THREADS = factory.createURI(NAMESPACE, "indexUpdateThreads");
+		LATE_MATERIALIZATION = factory.createURI(NAMESPACE, "lateMaterialization");
+		QUERY_PLAN_CACHE_SIZE = factory.createURI(NAMESPACE, "queryPlanCacheSize");
+		SPILL_THRESHOLD = factory.createURI(NAMESPACE, "spillThreshold");
+		TEMP_DIR = factory.createURI(NAMESPACE, "tempDir");
+		EVALUATION_THREADS = factory.createURI(NAMESPACE, "evaluationThreads");
+		ADAPTIVE_JOIN_ORDER = factory.createURI(NAMESPACE, "adaptiveJoinOrder");
 	}
 }
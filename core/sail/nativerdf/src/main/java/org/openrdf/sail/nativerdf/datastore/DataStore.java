@@ -47,9 +47,15 @@ public class DataStore {
 	public DataStore(File dataDir, String filePrefix, boolean forceSync)
 		throws IOException
 	{
-		dataFile = new DataFile(new File(dataDir, filePrefix + ".dat"), forceSync);
-		idFile = new IDFile(new File(dataDir, filePrefix + ".id"), forceSync);
-		hashFile = new HashFile(new File(dataDir, filePrefix + ".hash"), forceSync);
+		this(dataDir, filePrefix, forceSync, false);
+	}
+
+	public DataStore(File dataDir, String filePrefix, boolean forceSync, boolean memoryMapped)
+		throws IOException
+	{
+		dataFile = new DataFile(new File(dataDir, filePrefix + ".dat"), forceSync, memoryMapped);
+		idFile = new IDFile(new File(dataDir, filePrefix + ".id"), forceSync, memoryMapped);
+		hashFile = new HashFile(new File(dataDir, filePrefix + ".hash"), forceSync, memoryMapped);
 	}
 
 	/*---------*
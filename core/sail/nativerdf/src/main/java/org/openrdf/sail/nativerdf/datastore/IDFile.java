@@ -67,7 +67,24 @@ public class IDFile {
 	public IDFile(File file, boolean forceSync)
 		throws IOException
 	{
-		this.nioFile = new NioFile(file);
+		this(file, forceSync, false);
+	}
+
+	/**
+	 * Creates a new IDFile.
+	 * 
+	 * @param file
+	 *        The file to use.
+	 * @param forceSync
+	 *        Flag indicating whether updates should be synced to disk forcefully.
+	 * @param memoryMapped
+	 *        Flag indicating whether reads should be served from a memory mapped
+	 *        view of the file.
+	 */
+	public IDFile(File file, boolean forceSync, boolean memoryMapped)
+		throws IOException
+	{
+		this.nioFile = new NioFile(file, "rw", memoryMapped);
 		this.forceSync = forceSync;
 
 		try {
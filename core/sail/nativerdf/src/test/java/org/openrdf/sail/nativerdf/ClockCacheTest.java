@@ -0,0 +1,129 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link IntKeyCache} and {@link IntValueCache} classes.
+ */
+public class ClockCacheTest extends TestCase {
+
+	public void testGetPut() {
+		IntKeyCache<String> cache = new IntKeyCache<String>(100);
+
+		assertNull(cache.get(1));
+
+		cache.put(1, "one");
+		cache.put(2, "two");
+		assertEquals("one", cache.get(1));
+		assertEquals("two", cache.get(2));
+		assertEquals(2, cache.size());
+
+		cache.put(1, "uno");
+		assertEquals("uno", cache.get(1));
+		assertEquals(2, cache.size());
+
+		assertEquals(3L, cache.getHitCount());
+		assertEquals(1L, cache.getMissCount());
+
+		cache.clear();
+		assertNull(cache.get(1));
+		assertEquals(0, cache.size());
+	}
+
+	public void testCapacity() {
+		IntKeyCache<Integer> cache = new IntKeyCache<Integer>(1000);
+
+		for (int i = 0; i < 10000; i++) {
+			cache.put(i, i);
+			assertTrue(cache.size() <= 1000);
+		}
+
+		// All cached entries must map to their own value
+		int cached = 0;
+		for (int i = 0; i < 10000; i++) {
+			Integer value = cache.get(i);
+			if (value != null) {
+				assertEquals(i, value.intValue());
+				cached++;
+			}
+		}
+		assertEquals(1000, cached);
+	}
+
+	public void testSecondChance() {
+		// A single segment
+		IntKeyCache<String> cache = new IntKeyCache<String>(8);
+
+		for (int i = 0; i < 8; i++) {
+			cache.put(i, "v" + i);
+		}
+
+		// Reference all entries except the first one, which is then evicted
+		for (int i = 1; i < 8; i++) {
+			cache.get(i);
+		}
+		cache.put(8, "v8");
+
+		assertNull(cache.get(0));
+		for (int i = 1; i <= 8; i++) {
+			assertEquals("v" + i, cache.get(i));
+		}
+	}
+
+	public void testZeroCapacity() {
+		IntKeyCache<String> cache = new IntKeyCache<String>(0);
+		cache.put(1, "one");
+		assertNull(cache.get(1));
+
+		IntValueCache<String> idCache = new IntValueCache<String>(0, -1);
+		idCache.put("one", 1);
+		assertEquals(-1, idCache.get("one"));
+	}
+
+	public void testIntValueCache() {
+		IntValueCache<String> cache = new IntValueCache<String>(100, -1);
+
+		assertEquals(-1, cache.get("one"));
+
+		cache.put("one", 1);
+		cache.put("two", 2);
+		assertEquals(1, cache.get(new String("one")));
+		assertEquals(2, cache.get("two"));
+
+		assertEquals(2L, cache.getHitCount());
+		assertEquals(1L, cache.getMissCount());
+	}
+
+	public void testRandomAccess() {
+		IntValueCache<String> cache = new IntValueCache<String>(64, -1);
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		Random random = new Random(42L);
+
+		// Churn through many more keys than the cache can hold, exercising
+		// eviction and the removal of entries from the hash table
+		for (int i = 0; i < 100000; i++) {
+			String key = "key" + random.nextInt(500);
+			int cachedValue = cache.get(key);
+
+			if (cachedValue == -1) {
+				int value = random.nextInt(Integer.MAX_VALUE);
+				cache.put(key, value);
+				expected.put(key, value);
+			}
+			else {
+				assertEquals(expected.get(key).intValue(), cachedValue);
+			}
+		}
+
+		assertEquals(64, cache.size());
+	}
+}
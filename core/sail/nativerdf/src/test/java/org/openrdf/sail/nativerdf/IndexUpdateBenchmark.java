@@ -0,0 +1,114 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.FileUtil;
+
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
+
+/**
+ * Compares the time it takes to store and commit triples in a
+ * {@link TripleStore} with two and four indexes, with the indexes updated
+ * sequentially and in parallel. The parallel updates can only be faster if
+ * there are at least as many processors available as there are indexes.
+ */
+public class IndexUpdateBenchmark extends TestCase {
+
+	private static final int TRIPLE_COUNT = 500000;
+
+	private static final int TXN_SIZE = 50000;
+
+	public void testTwoIndexes()
+		throws Exception
+	{
+		compare("spoc,posc");
+	}
+
+	public void testFourIndexes()
+		throws Exception
+	{
+		compare("spoc,posc,opsc,cspo");
+	}
+
+	private void compare(String indexSpec)
+		throws Exception
+	{
+		int indexCount = indexSpec.split(",").length;
+
+		// Warm up
+		for (int i = 0; i < 2; i++) {
+			run(indexSpec, 1);
+			run(indexSpec, indexCount);
+		}
+
+		long sequentialTime = run(indexSpec, 1);
+		long parallelTime = run(indexSpec, indexCount);
+
+		System.out.println(indexCount + " indexes, " + Runtime.getRuntime().availableProcessors()
+				+ " processors: " + sequentialTime + " ms sequential, " + parallelTime + " ms parallel");
+	}
+
+	/**
+	 * Stores and commits {@link #TRIPLE_COUNT} triples in transactions of
+	 * {@link #TXN_SIZE} triples.
+	 *
+	 * @return The time it took in milliseconds.
+	 */
+	private long run(String indexSpec, int indexUpdateThreads)
+		throws Exception
+	{
+		File dataDir = FileUtil.createTempDir("nativestore");
+		try {
+			TripleStore tripleStore = new TripleStore(dataDir, indexSpec, false, TripleStore.NODE_CACHE_SIZE,
+					false, indexUpdateThreads);
+			try {
+				long startTime = System.currentTimeMillis();
+
+				for (int i = 0; i < TRIPLE_COUNT; i += TXN_SIZE) {
+					tripleStore.startTransaction();
+					for (int j = i + 1; j <= i + TXN_SIZE; j++) {
+						// spread the triples over the indexes
+						tripleStore.storeTriple(j, j % 97 + 1, (j * 31) % 10007 + 1, j % 5);
+					}
+					tripleStore.commit();
+				}
+
+				long endTime = System.currentTimeMillis();
+
+				assertEquals(TRIPLE_COUNT / 97, count(tripleStore, -1, 97, -1, -1));
+				assertEquals(TRIPLE_COUNT / 5, count(tripleStore, -1, -1, -1, 1));
+
+				return endTime - startTime;
+			}
+			finally {
+				tripleStore.close();
+			}
+		}
+		finally {
+			FileUtil.deleteDir(dataDir);
+		}
+	}
+
+	private int count(TripleStore tripleStore, int subj, int pred, int obj, int context)
+		throws Exception
+	{
+		int count = 0;
+		RecordIterator iter = tripleStore.getTriples(subj, pred, obj, context);
+		try {
+			while (iter.next() != null) {
+				count++;
+			}
+		}
+		finally {
+			iter.close();
+		}
+		return count;
+	}
+}
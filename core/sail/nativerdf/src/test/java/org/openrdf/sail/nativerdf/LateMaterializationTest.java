@@ -0,0 +1,265 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.FileUtil;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iterations;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.Distinct;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.Not;
+import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.ProjectionElem;
+import org.openrdf.query.algebra.ProjectionElemList;
+import org.openrdf.query.algebra.SameTerm;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.sail.SailConnection;
+
+/**
+ * Tests the evaluation of queries on value IDs by a {@link NativeStore} with
+ * late materialization enabled.
+ */
+public class LateMaterializationTest extends TestCase {
+
+	private static final String NS = "http://example.org/";
+
+	private static final int PERSON_COUNT = 100;
+
+	private File dataDir;
+
+	private NativeStore store;
+
+	private URI knows;
+
+	private URI name;
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		dataDir = FileUtil.createTempDir("nativestore");
+		store = new NativeStore(dataDir, "spoc,posc,psoc");
+		store.setLateMaterialization(true);
+		store.initialize();
+
+		ValueFactory vf = store.getValueFactory();
+		knows = vf.createURI(NS, "knows");
+		name = vf.createURI(NS, "name");
+
+		SailConnection con = store.getConnection();
+		try {
+			con.begin();
+			for (int i = 0; i < PERSON_COUNT; i++) {
+				URI person = vf.createURI(NS, "person" + i);
+				con.addStatement(person, name, vf.createLiteral("Person " + i));
+				if (i > 0) {
+					con.addStatement(vf.createURI(NS, "person" + (i - 1)), knows, person);
+				}
+			}
+			con.commit();
+		}
+		finally {
+			con.close();
+		}
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		store.shutDown();
+		FileUtil.deleteDir(dataDir);
+		dataDir = null;
+
+		super.tearDown();
+	}
+
+	public void testProjectedValuesOnly()
+		throws Exception
+	{
+		// ?x knows ?y . ?y name ?n
+		TupleExpr join = new Join(pattern("x", knows, "y"), pattern("y", name, "n"));
+		TupleExpr query = new Projection(join, new ProjectionElemList(new ProjectionElem("x")));
+
+		ClockCache valueCache = store.getValueStore().getValueCache();
+		long lookups = valueCache.getHitCount() + valueCache.getMissCount();
+
+		List<BindingSet> result = evaluate(query);
+		assertEquals(PERSON_COUNT - 1, result.size());
+		for (BindingSet bindings : result) {
+			assertTrue(bindings.getValue("x") instanceof URI);
+			assertEquals(1, bindings.size());
+		}
+
+		// Only the values of ?x should have been read
+		assertEquals(PERSON_COUNT - 1, valueCache.getHitCount() + valueCache.getMissCount() - lookups);
+	}
+
+	public void testDistinct()
+		throws Exception
+	{
+		// SELECT DISTINCT ?p WHERE { ?s ?p ?o }
+		TupleExpr pattern = new StatementPattern(new Var("s"), new Var("p"), new Var("o"));
+		TupleExpr query = new Distinct(new Projection(pattern, new ProjectionElemList(new ProjectionElem("p"))));
+
+		ClockCache valueCache = store.getValueStore().getValueCache();
+		long lookups = valueCache.getHitCount() + valueCache.getMissCount();
+
+		List<BindingSet> result = evaluate(query);
+		assertEquals(2, result.size());
+		assertFalse(result.get(0).equals(result.get(1)));
+
+		// Duplicates should have been removed before reading any values
+		assertEquals(2, valueCache.getHitCount() + valueCache.getMissCount() - lookups);
+	}
+
+	public void testSameTerm()
+		throws Exception
+	{
+		// ?x knows ?z . ?y knows ?z . FILTER(!sameTerm(?x, ?y))
+		TupleExpr join = new Join(pattern("x", knows, "z"), pattern("y", knows, "z"));
+		assertEquals(PERSON_COUNT - 1, evaluate(join).size());
+
+		TupleExpr filter = new Filter(join.clone(), new Not(new SameTerm(new Var("x"), new Var("y"))));
+		assertEquals(0, evaluate(filter).size());
+	}
+
+	public void testFilter()
+		throws Exception
+	{
+		// ?x knows ?y . ?y name ?n . FILTER(?n = "Person 5")
+		Value label = store.getValueFactory().createLiteral("Person 5");
+		TupleExpr join = new Join(pattern("x", knows, "y"), pattern("y", name, "n"));
+		TupleExpr query = new Filter(join, new Compare(new Var("n"), new ValueConstant(label)));
+
+		List<BindingSet> result = evaluate(query);
+		assertEquals(1, result.size());
+		assertEquals(store.getValueFactory().createURI(NS, "person4"), result.get(0).getValue("x"));
+		assertEquals(label, result.get(0).getValue("n"));
+	}
+
+	public void testBoundVariables()
+		throws Exception
+	{
+		// ?x knows ?y . ?y knows ?z with ?x bound
+		TupleExpr join = new Join(pattern("x", knows, "y"), pattern("y", knows, "z"));
+
+		ValueFactory vf = store.getValueFactory();
+		MapBindingSet bindings = new MapBindingSet();
+		bindings.addBinding("x", vf.createURI(NS, "person10"));
+
+		SailConnection con = store.getConnection();
+		try {
+			List<BindingSet> result = Iterations.asList(con.evaluate(join, null, bindings, false));
+			assertEquals(1, result.size());
+			assertEquals(vf.createURI(NS, "person12"), result.get(0).getValue("z"));
+
+			// Unknown values never match
+			bindings.addBinding("x", vf.createURI(NS, "unknown"));
+			assertTrue(Iterations.asList(con.evaluate(join, null, bindings, false)).isEmpty());
+		}
+		finally {
+			con.close();
+		}
+	}
+
+	public void testMergeJoin()
+		throws Exception
+	{
+		// ?x knows ?y . ?y name ?n
+		TupleExpr join = new Join(pattern("x", knows, "y"), pattern("y", name, "n"));
+		Projection query = new Projection(join, new ProjectionElemList(new ProjectionElem("x"),
+				new ProjectionElem("n")));
+
+		Projection plan = query.clone();
+		NativeTripleSource tripleSource = new NativeTripleSource(store, true, false);
+		new IDJoinOptimizer(tripleSource, new EvaluationStrategyImpl(tripleSource),
+				new NativeEvaluationStatistics(store)).optimize(plan, null, EmptyBindingSet.getInstance());
+
+		assertTrue(plan.getArg() instanceof IDJoin);
+		assertEquals("y", ((IDJoin)plan.getArg()).getMergeJoinVar());
+
+		List<BindingSet> result = evaluate(query);
+		assertEquals(PERSON_COUNT - 1, result.size());
+
+		ValueFactory vf = store.getValueFactory();
+		for (BindingSet bindings : result) {
+			String x = ((URI)bindings.getValue("x")).getLocalName();
+			int i = Integer.parseInt(x.substring("person".length()));
+			assertEquals(vf.createLiteral("Person " + (i + 1)), bindings.getValue("n"));
+		}
+	}
+
+	public void testMergeJoinDuplicateKeys()
+		throws Exception
+	{
+		// ?x name ?n . ?y name ?n, where every name is shared by two persons
+		ValueFactory vf = store.getValueFactory();
+		SailConnection con = store.getConnection();
+		try {
+			con.begin();
+			for (int i = 0; i < PERSON_COUNT; i++) {
+				con.addStatement(vf.createURI(NS, "alias" + i), name, vf.createLiteral("Person " + i));
+			}
+			con.commit();
+		}
+		finally {
+			con.close();
+		}
+
+		TupleExpr join = new Join(pattern("x", name, "n"), pattern("y", name, "n"));
+		assertEquals(4 * PERSON_COUNT, evaluate(join).size());
+	}
+
+	private StatementPattern pattern(String subjVar, URI pred, String objVar) {
+		return new StatementPattern(new Var(subjVar), new Var("-const-" + pred.getLocalName(), pred),
+				new Var(objVar));
+	}
+
+	private List<BindingSet> evaluate(TupleExpr query)
+		throws Exception
+	{
+		SailConnection con = store.getConnection();
+		try {
+			CloseableIteration<? extends BindingSet, QueryEvaluationException> iter = con.evaluate(query,
+					null, EmptyBindingSet.getInstance(), false);
+			try {
+				List<BindingSet> result = new ArrayList<BindingSet>();
+				while (iter.hasNext()) {
+					result.add(iter.next());
+				}
+				return result;
+			}
+			finally {
+				iter.close();
+			}
+		}
+		finally {
+			con.close();
+		}
+	}
+}
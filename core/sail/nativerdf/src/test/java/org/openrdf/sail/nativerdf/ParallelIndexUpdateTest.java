@@ -0,0 +1,87 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
+
+/**
+ * Runs the {@link TripleStoreTest} tests on a {@link TripleStore} that updates
+ * its indexes in parallel.
+ */
+public class ParallelIndexUpdateTest extends TripleStoreTest {
+
+	public ParallelIndexUpdateTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected TripleStore createTripleStore(File dataDir)
+		throws Exception
+	{
+		return new TripleStore(dataDir, "spoc,posc,cosp", false, TripleStore.NODE_CACHE_SIZE, false, 3);
+	}
+
+	public void testReadPendingTriples()
+		throws Exception
+	{
+		int tripleCount = TripleStore.INDEX_UPDATE_BATCH_SIZE + 100;
+
+		tripleStore.startTransaction();
+		for (int i = 1; i <= tripleCount; i++) {
+			tripleStore.storeTriple(i, 1, i % 5 + 1, i % 2);
+		}
+
+		// Triples that haven't been added to the posc and cosp indexes yet must
+		// still be visible to the transaction
+		assertEquals(tripleCount, countTransactionTriples(-1, 1, -1, -1));
+		assertEquals(tripleCount / 2, countTransactionTriples(-1, -1, -1, 1));
+
+		// Store an existing triple again, as inferred
+		tripleStore.storeTriple(1, 1, 2, 1, false);
+		tripleStore.commit();
+
+		assertEquals(tripleCount, countCommittedTriples(-1, 1, -1, -1));
+		assertEquals(tripleCount / 2, countCommittedTriples(-1, -1, -1, 1));
+	}
+
+	public void testUpdatePendingTriple()
+		throws Exception
+	{
+		tripleStore.startTransaction();
+		assertTrue(tripleStore.storeTriple(1, 2, 3, 0, false));
+		assertFalse(tripleStore.storeTriple(1, 2, 3, 0, true));
+		assertEquals(1, countTransactionTriples(1, -1, -1, -1));
+		tripleStore.commit();
+
+		// The pending inferred triple must have been made explicit
+		RecordIterator iter = tripleStore.getTriples(1, 2, 3, 0, true, false);
+		try {
+			assertNotNull(iter.next());
+			assertNull(iter.next());
+		}
+		finally {
+			iter.close();
+		}
+	}
+
+	private int countTransactionTriples(int subj, int pred, int obj, int context)
+		throws Exception
+	{
+		int count = 0;
+		RecordIterator iter = tripleStore.getTriples(subj, pred, obj, context, true);
+		try {
+			while (iter.next() != null) {
+				count++;
+			}
+		}
+		finally {
+			iter.close();
+		}
+		return count;
+	}
+}
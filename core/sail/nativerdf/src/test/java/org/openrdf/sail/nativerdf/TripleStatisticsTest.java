@@ -0,0 +1,178 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.FileUtil;
+
+/**
+ * Tests the cardinality estimates that a {@link TripleStore} derives from its
+ * {@link TripleStatistics}.
+ */
+public class TripleStatisticsTest extends TestCase {
+
+	private static final int TYPE = 1;
+
+	private static final int LABEL = 2;
+
+	private static final int FREQUENT_CLASS = 10;
+
+	private static final int RARE_CLASS = 20;
+
+	private File dataDir;
+
+	private TripleStore tripleStore;
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		dataDir = FileUtil.createTempDir("nativestore");
+		tripleStore = new TripleStore(dataDir, "spoc,posc");
+
+		// 1000 instances of a frequent class, 1 instance each of 100 other
+		// classes, all instances have a label
+		tripleStore.startTransaction();
+		for (int i = 0; i < 1000; i++) {
+			tripleStore.storeTriple(1000 + i, TYPE, FREQUENT_CLASS, 0);
+			tripleStore.storeTriple(1000 + i, LABEL, 5000 + i, 0);
+		}
+		for (int i = 0; i < 100; i++) {
+			tripleStore.storeTriple(3000 + i, TYPE, RARE_CLASS + i, 0);
+			tripleStore.storeTriple(3000 + i, LABEL, 7000 + i, 0);
+		}
+		tripleStore.commit();
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		tripleStore.close();
+		FileUtil.deleteDir(dataDir);
+		dataDir = null;
+
+		super.tearDown();
+	}
+
+	public void testPredicateCount()
+		throws Exception
+	{
+		assertEquals(1100.0, tripleStore.cardinality(-1, TYPE, -1, -1), 0.0);
+		assertEquals(1100.0, tripleStore.cardinality(-1, LABEL, -1, -1), 0.0);
+		assertEquals(0.0, tripleStore.cardinality(-1, 3, -1, -1), 0.0);
+	}
+
+	public void testSkewedObjects()
+		throws Exception
+	{
+		assertEquals(1000.0, tripleStore.cardinality(false, TYPE, true, FREQUENT_CLASS), 100.0);
+		assertEquals(1.0, tripleStore.cardinality(false, TYPE, true, RARE_CLASS + 50), 1.0);
+	}
+
+	public void testBoundVariables()
+		throws Exception
+	{
+		// Each subject has a single label
+		assertEquals(1.0, tripleStore.cardinality(true, LABEL, false, -1), 0.2);
+
+		// About 101 distinct classes
+		assertEquals(1100.0 / 101, tripleStore.cardinality(false, TYPE, true, -1), 2.0);
+	}
+
+	public void testRemove()
+		throws Exception
+	{
+		tripleStore.startTransaction();
+		tripleStore.removeTriples(-1, TYPE, FREQUENT_CLASS, -1);
+		tripleStore.commit();
+
+		assertEquals(100.0, tripleStore.cardinality(-1, TYPE, -1, -1), 0.0);
+		assertEquals(0.0, tripleStore.cardinality(false, TYPE, true, FREQUENT_CLASS), 1.0);
+	}
+
+	public void testVersion()
+		throws Exception
+	{
+		long version = tripleStore.getStatisticsVersion();
+
+		// Small changes to the triple counts keep the version
+		tripleStore.startTransaction();
+		for (int i = 0; i < 50; i++) {
+			tripleStore.storeTriple(9000 + i, TYPE, FREQUENT_CLASS, 0);
+		}
+		tripleStore.commit();
+		assertEquals(version, tripleStore.getStatisticsVersion());
+
+		// Changes accumulate across transactions
+		tripleStore.startTransaction();
+		for (int i = 50; i < 150; i++) {
+			tripleStore.storeTriple(9000 + i, TYPE, FREQUENT_CLASS, 0);
+		}
+		tripleStore.commit();
+		assertTrue(tripleStore.getStatisticsVersion() > version);
+
+		// New predicates are always a material change
+		version = tripleStore.getStatisticsVersion();
+		tripleStore.startTransaction();
+		tripleStore.storeTriple(9000, 3, 1, 0);
+		tripleStore.commit();
+		assertTrue(tripleStore.getStatisticsVersion() > version);
+	}
+
+	public void testRollback()
+		throws Exception
+	{
+		tripleStore.startTransaction();
+		tripleStore.storeTriple(9000, TYPE, FREQUENT_CLASS, 0);
+		tripleStore.rollback();
+
+		assertEquals(1100.0, tripleStore.cardinality(-1, TYPE, -1, -1), 0.0);
+	}
+
+	public void testReopen()
+		throws Exception
+	{
+		double estimate = tripleStore.cardinality(false, TYPE, true, FREQUENT_CLASS);
+
+		tripleStore.close();
+		tripleStore = new TripleStore(dataDir, "spoc,posc");
+
+		assertEquals(1100.0, tripleStore.cardinality(-1, TYPE, -1, -1), 0.0);
+		assertEquals(estimate, tripleStore.cardinality(false, TYPE, true, FREQUENT_CLASS), 0.0);
+	}
+
+	public void testOutdatedFile()
+		throws Exception
+	{
+		// The statistics of the committed triples have not been written yet, the
+		// outdated file must not be mistaken for current statistics after a crash
+		File statsFile = new File(dataDir, "triples-stats.dat");
+		assertFalse(statsFile.exists());
+
+		tripleStore.close();
+		assertTrue(statsFile.exists());
+		assertFalse(new File(dataDir, "triples-stats.sync").exists());
+
+		tripleStore = new TripleStore(dataDir, "spoc,posc");
+		assertEquals(1100.0, tripleStore.cardinality(-1, TYPE, -1, -1), 0.0);
+	}
+
+	public void testRebuild()
+		throws Exception
+	{
+		tripleStore.close();
+		assertTrue(new File(dataDir, "triples-stats.dat").delete());
+		tripleStore = new TripleStore(dataDir, "spoc,posc");
+
+		assertEquals(1100.0, tripleStore.cardinality(-1, TYPE, -1, -1), 0.0);
+		assertEquals(1000.0, tripleStore.cardinality(false, TYPE, true, FREQUENT_CLASS), 100.0);
+	}
+}
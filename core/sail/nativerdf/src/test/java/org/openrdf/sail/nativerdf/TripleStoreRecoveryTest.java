@@ -6,6 +6,7 @@
 package org.openrdf.sail.nativerdf;
 
 import java.io.File;
+import java.io.IOException;
 
 import junit.framework.TestCase;
 
@@ -112,4 +113,154 @@ public class TripleStoreRecoveryTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Crashes a commit after the pending triples have been added to the
+	 * secondary indexes, but before the transaction has been marked as
+	 * committing. The transaction must be rolled back in all indexes.
+	 */
+	public void testCrashBeforeCommitting()
+		throws Exception
+	{
+		CrashingTripleStore tripleStore = new CrashingTripleStore(dataDir);
+		try {
+			tripleStore.startTransaction();
+			storePendingTriples(tripleStore);
+
+			tripleStore.crashOnSync = true;
+			try {
+				tripleStore.commit();
+				fail("commit should have crashed");
+			}
+			catch (IOException e) {
+				// expected
+			}
+		}
+		finally {
+			tripleStore.close();
+		}
+
+		TripleStore recoveredStore = createParallelTripleStore();
+		try {
+			assertIndexCounts(recoveredStore, 0);
+		}
+		finally {
+			recoveredStore.close();
+		}
+	}
+
+	/**
+	 * Crashes a commit right after the transaction has been marked as
+	 * committing. The secondary indexes must contain the triples that were
+	 * still pending when commit was called.
+	 */
+	public void testCrashAfterCommitting()
+		throws Exception
+	{
+		CrashingTripleStore tripleStore = new CrashingTripleStore(dataDir);
+		try {
+			tripleStore.startTransaction();
+			storePendingTriples(tripleStore);
+
+			tripleStore.crashOnSync = true;
+			try {
+				tripleStore.commit();
+				fail("commit should have crashed");
+			}
+			catch (IOException e) {
+				// expected
+			}
+		}
+		finally {
+			tripleStore.close();
+		}
+
+		// Pretend that the commit crashed after writing its status
+		TxnStatusFile txnStatusFile = new TxnStatusFile(dataDir);
+		try {
+			txnStatusFile.setTxnStatus(TxnStatus.COMMITTING);
+		}
+		finally {
+			txnStatusFile.close();
+		}
+
+		TripleStore recoveredStore = createParallelTripleStore();
+		try {
+			assertIndexCounts(recoveredStore, 10);
+		}
+		finally {
+			recoveredStore.close();
+		}
+	}
+
+	private TripleStore createParallelTripleStore()
+		throws Exception
+	{
+		return new TripleStore(dataDir, "spoc,posc,cosp", false, TripleStore.NODE_CACHE_SIZE, false, 3);
+	}
+
+	/**
+	 * Stores fewer triples than {@link TripleStore#INDEX_UPDATE_BATCH_SIZE}, so
+	 * that they are only added to the posc and cosp indexes when the
+	 * transaction is committed.
+	 */
+	private void storePendingTriples(TripleStore tripleStore)
+		throws IOException
+	{
+		for (int i = 1; i <= 10; i++) {
+			tripleStore.storeTriple(i, 1, 2, 3);
+		}
+	}
+
+	/**
+	 * Checks the number of triples in each of the spoc, posc and cosp indexes.
+	 */
+	private void assertIndexCounts(TripleStore tripleStore, int expectedCount)
+		throws IOException
+	{
+		assertEquals(expectedCount, count(tripleStore.getTriples(-1, -1, -1, -1)));
+		assertEquals(expectedCount, count(tripleStore.getTriples(-1, 1, -1, -1)));
+		assertEquals(expectedCount, count(tripleStore.getTriples(-1, -1, -1, 3)));
+	}
+
+	private int count(RecordIterator iter)
+		throws IOException
+	{
+		try {
+			int count = 0;
+			while (iter.next() != null) {
+				count++;
+			}
+			return count;
+		}
+		finally {
+			iter.close();
+		}
+	}
+
+	/**
+	 * A triple store with updates of its secondary indexes in parallel that
+	 * simulates a crash after it has been synced.
+	 */
+	private static class CrashingTripleStore extends TripleStore {
+
+		boolean crashOnSync;
+
+		public CrashingTripleStore(File dataDir)
+			throws Exception
+		{
+			super(dataDir, "spoc,posc,cosp", false, TripleStore.NODE_CACHE_SIZE, false, 3);
+		}
+
+		@Override
+		protected void sync()
+			throws IOException
+		{
+			super.sync();
+
+			if (crashOnSync) {
+				crashOnSync = false;
+				throw new IOException("simulated crash");
+			}
+		}
+	}
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.FileUtil;
+
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
+
+/**
+ * Tests the commit and rollback of transactions on a {@link TripleStore} with
+ * multiple indexes.
+ */
+public class TripleStoreTest extends TestCase {
+
+	private File dataDir;
+
+	protected TripleStore tripleStore;
+
+	public TripleStoreTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		dataDir = FileUtil.createTempDir("nativestore");
+		tripleStore = createTripleStore(dataDir);
+	}
+
+	protected TripleStore createTripleStore(File dataDir)
+		throws Exception
+	{
+		return new TripleStore(dataDir, "spoc,posc,cosp");
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		tripleStore.close();
+		FileUtil.deleteDir(dataDir);
+		dataDir = null;
+
+		super.tearDown();
+	}
+
+	public void testCommit()
+		throws Exception
+	{
+		tripleStore.startTransaction();
+		for (int i = 1; i <= 1000; i++) {
+			tripleStore.storeTriple(i, 1000 - i, i % 7 + 1, i % 3);
+		}
+		tripleStore.commit();
+
+		tripleStore.startTransaction();
+		assertEquals(1, tripleStore.removeTriples(1, -1, -1, -1));
+		tripleStore.storeTriple(2000, 1, 1, 0, false);
+		tripleStore.commit();
+
+		assertEquals(1000, countCommittedTriples(-1, -1, -1, -1));
+		assertEquals(0, countCommittedTriples(1, -1, -1, -1));
+		assertEquals(1, countCommittedTriples(2000, -1, -1, -1));
+		assertEquals(143, countCommittedTriples(-1, -1, 1, -1));
+		assertEquals(333, countCommittedTriples(-1, -1, -1, 2));
+	}
+
+	public void testRollback()
+		throws Exception
+	{
+		tripleStore.startTransaction();
+		for (int i = 1; i <= 100; i++) {
+			tripleStore.storeTriple(i, 1, 1, 0);
+		}
+		tripleStore.commit();
+
+		tripleStore.startTransaction();
+		tripleStore.removeTriples(-1, -1, -1, 0);
+		tripleStore.storeTriple(200, 1, 1, 0);
+		tripleStore.rollback();
+
+		assertEquals(100, countCommittedTriples(-1, -1, -1, -1));
+		assertEquals(100, countCommittedTriples(-1, 1, -1, -1));
+		assertEquals(0, countCommittedTriples(200, -1, -1, -1));
+	}
+
+	/**
+	 * Counts the matching triples, checking that none of them carries any
+	 * transaction flags.
+	 */
+	protected int countCommittedTriples(int subj, int pred, int obj, int context)
+		throws Exception
+	{
+		byte txnFlags = TripleStore.ADDED_FLAG | TripleStore.REMOVED_FLAG | TripleStore.TOGGLE_EXPLICIT_FLAG;
+
+		int count = 0;
+		RecordIterator iter = tripleStore.getTriples(subj, pred, obj, context);
+		try {
+			for (byte[] data = iter.next(); data != null; data = iter.next()) {
+				assertEquals(0, data[TripleStore.FLAG_IDX] & txnFlags);
+				count++;
+			}
+		}
+		finally {
+			iter.close();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.FileUtil;
+
+import org.openrdf.sail.nativerdf.btree.BTree;
+import org.openrdf.sail.nativerdf.btree.DefaultRecordComparator;
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
+
+/**
+ * Tests the conversion of version 10 triple stores to compressed index nodes.
+ */
+public class TripleStoreUpgradeTest extends TestCase {
+
+	private static final int TRIPLE_COUNT = 5000;
+
+	private File dataDir;
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		dataDir = FileUtil.createTempDir("nativestore");
+		createVersion10Store();
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		FileUtil.deleteDir(dataDir);
+		dataDir = null;
+
+		super.tearDown();
+	}
+
+	public void testUpgrade()
+		throws Exception
+	{
+		TripleStore tripleStore = new TripleStore(dataDir, "spoc");
+		try {
+			assertEquals(TRIPLE_COUNT, countTriples(tripleStore, -1));
+			assertEquals(1, countTriples(tripleStore, 42));
+		}
+		finally {
+			tripleStore.close();
+		}
+
+		assertFalse(new File(dataDir, "triples-spoc-upgrade.dat").exists());
+		BTree btree = openIndex(false);
+		try {
+			assertTrue(btree.isCompressed());
+		}
+		finally {
+			btree.close();
+		}
+
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(new File(dataDir, "triples.prop"));
+		try {
+			properties.load(in);
+		}
+		finally {
+			in.close();
+		}
+		assertEquals("11", properties.getProperty("version"));
+	}
+
+	public void testDiscardIncompleteUpgrade()
+		throws Exception
+	{
+		// Simulate a conversion that was interrupted before it completed
+		BTree upgradeBTree = new BTree(dataDir, "triples-spoc-upgrade", 2048, TripleStore.RECORD_LENGTH,
+				new DefaultRecordComparator(), false, BTree.DEFAULT_NODE_CACHE_SIZE, false, true);
+		upgradeBTree.insert(TripleStore.getData(1, 1, 1, 1, TripleStore.EXPLICIT_FLAG));
+		upgradeBTree.close();
+
+		TripleStore tripleStore = new TripleStore(dataDir, "spoc");
+		try {
+			assertEquals(TRIPLE_COUNT, countTriples(tripleStore, -1));
+		}
+		finally {
+			tripleStore.close();
+		}
+
+		assertFalse(new File(dataDir, "triples-spoc-upgrade.dat").exists());
+	}
+
+	/**
+	 * Creates a store with a single, uncompressed spoc index. The byte order of
+	 * the default comparator matches the spoc order of positive IDs.
+	 */
+	private void createVersion10Store()
+		throws Exception
+	{
+		BTree btree = openIndex(false);
+		for (int i = 1; i <= TRIPLE_COUNT; i++) {
+			btree.insert(TripleStore.getData(i, i % 10 + 1, i % 100 + 1, 0, TripleStore.EXPLICIT_FLAG));
+		}
+		btree.close();
+
+		Properties properties = new Properties();
+		properties.setProperty("version", "10");
+		properties.setProperty("triple-indexes", "spoc");
+
+		OutputStream out = new FileOutputStream(new File(dataDir, "triples.prop"));
+		try {
+			properties.store(out, null);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private BTree openIndex(boolean compressed)
+		throws Exception
+	{
+		return new BTree(dataDir, "triples-spoc", 2048, TripleStore.RECORD_LENGTH, new DefaultRecordComparator(),
+				false, BTree.DEFAULT_NODE_CACHE_SIZE, false, compressed);
+	}
+
+	private int countTriples(TripleStore tripleStore, int subj)
+		throws Exception
+	{
+		int count = 0;
+		RecordIterator iter = tripleStore.getTriples(subj, -1, -1, -1);
+		try {
+			while (iter.next() != null) {
+				count++;
+			}
+		}
+		finally {
+			iter.close();
+		}
+		return count;
+	}
+}
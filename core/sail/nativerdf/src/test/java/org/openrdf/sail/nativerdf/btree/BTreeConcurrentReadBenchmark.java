@@ -0,0 +1,179 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf.btree;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import info.aduna.io.ByteArrayUtil;
+import info.aduna.io.FileUtil;
+
+/**
+ * Measures the throughput of concurrent point lookups and range scans on a
+ * single BTree for an increasing number of reader threads.
+ */
+public class BTreeConcurrentReadBenchmark extends TestCase {
+
+	private static final int VALUE_COUNT = 500 * 1000;
+
+	private static final int LOOKUPS_PER_THREAD = 200 * 1000;
+
+	private static final int NODE_CACHE_SIZE = 1024;
+
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16 };
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+	private File dir;
+
+	private BTree btree;
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		super.setUp();
+		dir = FileUtil.createTempDir("btree");
+		btree = new BTree(dir, "test", 2048, 8, new DefaultRecordComparator(), false, NODE_CACHE_SIZE);
+
+		byte[] data = new byte[8];
+		for (long value = 0L; value < VALUE_COUNT; value++) {
+			ByteArrayUtil.putLong(value, data, 0);
+			btree.insert(data);
+		}
+		btree.sync();
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		try {
+			btree.delete();
+			FileUtil.deleteDir(dir);
+		}
+		finally {
+			super.tearDown();
+		}
+	}
+
+	public void testConcurrentLookups()
+		throws Exception
+	{
+		for (int threadCount : THREAD_COUNTS) {
+			runReaders(threadCount, false);
+		}
+	}
+
+	public void testConcurrentRangeScans()
+		throws Exception
+	{
+		for (int threadCount : THREAD_COUNTS) {
+			runReaders(threadCount, true);
+		}
+	}
+
+	private void runReaders(int threadCount, final boolean rangeScan)
+		throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Callable<Long>> readers = new ArrayList<Callable<Long>>(threadCount);
+			for (int i = 0; i < threadCount; i++) {
+				final long seed = i;
+				readers.add(new Callable<Long>() {
+
+					public Long call()
+						throws Exception
+					{
+						return rangeScan ? scanRanges(seed) : lookupValues(seed);
+					}
+				});
+			}
+
+			long startTime = System.currentTimeMillis();
+
+			long resultCount = 0L;
+			for (Future<Long> future : executor.invokeAll(readers)) {
+				resultCount += future.get();
+			}
+
+			long endTime = System.currentTimeMillis();
+
+			assertTrue(resultCount > 0L);
+			printThroughput(startTime, endTime, threadCount, rangeScan ? "range scans" : "lookups");
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private long lookupValues(long seed)
+		throws Exception
+	{
+		Random random = new Random(seed);
+		byte[] key = new byte[8];
+
+		long found = 0L;
+		for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+			ByteArrayUtil.putLong(random.nextInt(VALUE_COUNT), key, 0);
+			if (btree.get(key) != null) {
+				found++;
+			}
+		}
+
+		return found;
+	}
+
+	private long scanRanges(long seed)
+		throws Exception
+	{
+		Random random = new Random(seed);
+		byte[] minData = new byte[8];
+		byte[] maxData = new byte[8];
+
+		long found = 0L;
+		for (int i = 0; i < LOOKUPS_PER_THREAD / 20; i++) {
+			long minValue = random.nextInt(VALUE_COUNT);
+			ByteArrayUtil.putLong(minValue, minData, 0);
+			ByteArrayUtil.putLong(minValue + 20L, maxData, 0);
+
+			RecordIterator iter = btree.iterateRange(minData, maxData);
+			try {
+				while (iter.next() != null) {
+					found++;
+				}
+			}
+			finally {
+				iter.close();
+			}
+		}
+
+		return found;
+	}
+
+	private void printThroughput(long startTime, long endTime, int threadCount, String operation) {
+		long duration = Math.max(1L, endTime - startTime);
+		long opsPerThread = operation.equals("lookups") ? LOOKUPS_PER_THREAD : LOOKUPS_PER_THREAD / 20;
+		long throughput = 1000L * threadCount * opsPerThread / duration;
+		System.out.println(threadCount + " thread(s): " + duration + " ms for " + operation + " ("
+				+ throughput + " ops/s)");
+	}
+}
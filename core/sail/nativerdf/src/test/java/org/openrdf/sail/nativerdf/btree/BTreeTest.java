@@ -6,8 +6,11 @@
 package org.openrdf.sail.nativerdf.btree;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -23,7 +26,7 @@ public class BTreeTest extends TestCase {
 	 * Constants *
 	 *-----------*/
 
-	private static List<byte[]> TEST_VALUES = new ArrayList<byte[]>(256);
+	static List<byte[]> TEST_VALUES = new ArrayList<byte[]>(256);
 
 	private static List<byte[]> RANDOMIZED_TEST_VALUES = new ArrayList<byte[]>(256);
 
@@ -56,7 +59,13 @@ public class BTreeTest extends TestCase {
 	{
 		super.setUp();
 		dir = FileUtil.createTempDir("btree");
-		btree = new BTree(dir, "test", 85, 1);
+		btree = createBTree(dir);
+	}
+
+	protected BTree createBTree(File dir)
+		throws IOException
+	{
+		return new BTree(dir, "test", 85, 1);
 	}
 
 	@Override
@@ -156,6 +165,51 @@ public class BTreeTest extends TestCase {
 		btree.clear();
 	}
 
+	public void testBulkLoad()
+		throws Exception
+	{
+		final Iterator<byte[]> valueIter = TEST_VALUES.iterator();
+		long valueCount = btree.bulkLoad(new RecordIterator() {
+
+			public byte[] next() {
+				return valueIter.hasNext() ? valueIter.next() : null;
+			}
+
+			public void set(byte[] record) {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+			}
+		});
+		assertEquals(TEST_VALUES.size(), valueCount);
+
+		RecordIterator iter = btree.iterateAll();
+		try {
+			for (byte[] value : TEST_VALUES) {
+				assertTrue(Arrays.equals(value, iter.next()));
+			}
+			assertNull(iter.next());
+		}
+		finally {
+			iter.close();
+		}
+
+		// The bulk loaded tree must support regular updates
+		for (byte[] value : RANDOMIZED_TEST_VALUES) {
+			assertNotNull(btree.get(value));
+			assertNotNull(btree.remove(value));
+		}
+
+		iter = btree.iterateAll();
+		try {
+			assertNull(iter.next());
+		}
+		finally {
+			iter.close();
+		}
+	}
+
 	/* Test for SES-527
 		public void testRootNodeSplit()
 			throws Exception
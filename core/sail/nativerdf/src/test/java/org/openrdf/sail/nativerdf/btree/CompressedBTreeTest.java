@@ -0,0 +1,206 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package org.openrdf.sail.nativerdf.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import info.aduna.io.FileUtil;
+
+/**
+ * Runs the {@link BTreeTest} tests on a BTree that stores its nodes in
+ * compressed form.
+ */
+public class CompressedBTreeTest extends BTreeTest {
+
+	@Override
+	protected BTree createBTree(File dir)
+		throws IOException
+	{
+		return new BTree(dir, "test", 85, 1, new DefaultRecordComparator(), false, BTree.DEFAULT_NODE_CACHE_SIZE,
+				false, true);
+	}
+
+	public void testReopen()
+		throws Exception
+	{
+		File dir = FileUtil.createTempDir("btree");
+		try {
+			BTree btree = createBTree(dir);
+			for (byte[] value : TEST_VALUES) {
+				btree.insert(value);
+			}
+			btree.close();
+
+			// The file format determines whether nodes are compressed
+			btree = new BTree(dir, "test", 85, 1);
+			try {
+				assertTrue(btree.isCompressed());
+
+				RecordIterator iter = btree.iterateAll();
+				try {
+					for (byte[] value : TEST_VALUES) {
+						assertTrue(Arrays.equals(value, iter.next()));
+					}
+					assertNull(iter.next());
+				}
+				finally {
+					iter.close();
+				}
+			}
+			finally {
+				btree.delete();
+			}
+		}
+		finally {
+			FileUtil.deleteDir(dir);
+		}
+	}
+
+	/**
+	 * Values that hardly compress fill compressed nodes before they reach
+	 * their maximum number of values, which requires nodes to be split on their
+	 * encoded size.
+	 */
+	public void testIncompressibleValues()
+		throws Exception
+	{
+		Random random = new Random(42L);
+		List<byte[]> values = createRandomValues(random);
+
+		File dir = FileUtil.createTempDir("btree");
+		try {
+			BTree btree = new BTree(dir, "test", 256, 8, new DefaultRecordComparator(), false,
+					BTree.DEFAULT_NODE_CACHE_SIZE, false, true);
+			try {
+				for (byte[] value : values) {
+					btree.insert(value);
+				}
+				btree.close();
+
+				btree = new BTree(dir, "test", 256, 8);
+				assertValues(btree, values);
+
+				Collections.shuffle(values, random);
+				List<byte[]> removedValues = values.subList(0, values.size() / 2);
+				for (byte[] value : removedValues) {
+					assertNotNull(btree.remove(value));
+				}
+				removedValues.clear();
+				btree.close();
+
+				btree = new BTree(dir, "test", 256, 8);
+				assertValues(btree, values);
+			}
+			finally {
+				btree.delete();
+			}
+		}
+		finally {
+			FileUtil.deleteDir(dir);
+		}
+	}
+
+	public void testBulkLoadIncompressibleValues()
+		throws Exception
+	{
+		Random random = new Random(42L);
+		List<byte[]> values = createRandomValues(random);
+
+		final DefaultRecordComparator comparator = new DefaultRecordComparator();
+		Collections.sort(values, new Comparator<byte[]>() {
+
+			public int compare(byte[] value1, byte[] value2) {
+				return comparator.compareBTreeValues(value1, value2, 0, value2.length);
+			}
+		});
+
+		File dir = FileUtil.createTempDir("btree");
+		try {
+			BTree btree = new BTree(dir, "test", 256, 8, comparator, false, BTree.DEFAULT_NODE_CACHE_SIZE,
+					false, true);
+			try {
+				final Iterator<byte[]> valueIter = values.iterator();
+				btree.bulkLoad(new RecordIterator() {
+
+					public byte[] next() {
+						return valueIter.hasNext() ? valueIter.next() : null;
+					}
+
+					public void set(byte[] record) {
+						throw new UnsupportedOperationException();
+					}
+
+					public void close() {
+					}
+				});
+				btree.close();
+
+				btree = new BTree(dir, "test", 256, 8);
+				assertValues(btree, values);
+
+				Collections.shuffle(values, random);
+				List<byte[]> removedValues = values.subList(0, values.size() / 2);
+				for (byte[] value : removedValues) {
+					assertNotNull(btree.remove(value));
+				}
+				removedValues.clear();
+				assertValues(btree, values);
+			}
+			finally {
+				btree.delete();
+			}
+		}
+		finally {
+			FileUtil.deleteDir(dir);
+		}
+	}
+
+	/**
+	 * Creates 5000 distinct random values of 8 bytes.
+	 */
+	private List<byte[]> createRandomValues(Random random) {
+		Set<String> keys = new HashSet<String>();
+		List<byte[]> values = new ArrayList<byte[]>();
+		while (values.size() < 5000) {
+			byte[] value = new byte[8];
+			random.nextBytes(value);
+			if (keys.add(Arrays.toString(value))) {
+				values.add(value);
+			}
+		}
+		return values;
+	}
+
+	private void assertValues(BTree btree, List<byte[]> values)
+		throws IOException
+	{
+		for (byte[] value : values) {
+			assertTrue(Arrays.equals(value, btree.get(value)));
+		}
+
+		int count = 0;
+		RecordIterator iter = btree.iterateAll();
+		try {
+			while (iter.next() != null) {
+				count++;
+			}
+		}
+		finally {
+			iter.close();
+		}
+		assertEquals(values.size(), count);
+	}
+}
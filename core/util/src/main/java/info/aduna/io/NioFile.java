@@ -8,11 +8,19 @@ package info.aduna.io;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * File wrapper that protects against concurrent file closing events due to e.g.
@@ -21,21 +29,69 @@ import java.nio.channels.WritableByteChannel;
  * the channel. The thread that causes the {@link ClosedByInterruptException} is
  * not protected, assuming the interrupt is intended to end the thread's
  * operation.
+ * <p>
+ * Optionally, reads can be served from read-only memory mappings of the file
+ * instead of through the file channel. The file is mapped in segments of
+ * {@value #MAPPED_SEGMENT_SIZE} bytes that are mapped lazily. The segment at
+ * the end of a growing file is only remapped once the file has grown to twice
+ * the size of its current mapping, until then reads past the mapping go
+ * through the file channel. Writes always go through the file channel.
+ * <p>
+ * Mappings are accessed while holding a read lock. Truncating or closing the
+ * file takes the corresponding write lock and unmaps all segments, including
+ * those that have been replaced by larger mappings, so that no reader can
+ * access a mapping beyond the end of the file and so that the file can be
+ * truncated on platforms that do not allow truncating mapped files. JVMs that
+ * do not support explicit unmapping release the mappings on garbage
+ * collection.
  * 
  * @author Arjohn Kampman
  */
 public final class NioFile {
 
+	/**
+	 * The size of the segments in which memory mapped files are mapped. Must be
+	 * a power of two.
+	 */
+	public static final int MAPPED_SEGMENT_SIZE = 1 << 26;
+
+	private static final MappedByteBuffer[] NO_SEGMENTS = new MappedByteBuffer[0];
+
 	private final File file;
 
 	private final String mode;
 
+	private final boolean memoryMapped;
+
 	private volatile RandomAccessFile raf;
 
 	private volatile FileChannel fc;
 
 	private volatile boolean explictlyClosed;
 
+	/**
+	 * The memory mapped segments of the file, only used when
+	 * {@link #memoryMapped} is <tt>true</tt>. Entries can be <tt>null</tt> for
+	 * segments that haven't been mapped yet. The array is replaced rather than
+	 * modified when segments are (re)mapped.
+	 */
+	private volatile MappedByteBuffer[] segments = NO_SEGMENTS;
+
+	/**
+	 * Segments that have been replaced by larger mappings of the same region.
+	 * Readers may still be using them, so they are only unmapped when all
+	 * segments are discarded.
+	 */
+	private final List<MappedByteBuffer> replacedSegments = new ArrayList<MappedByteBuffer>();
+
+	/**
+	 * Guards the use of the mapped segments: readers hold the read lock while
+	 * they access a segment, discarding the segments requires the write lock.
+	 * The write lock must be acquired before synchronizing on this object, as
+	 * readers synchronize on it while holding the read lock.
+	 */
+	private final ReadWriteLock mappingLock = new ReentrantReadWriteLock();
+
 	public NioFile(File file)
 		throws IOException
 	{
@@ -44,9 +100,27 @@ public final class NioFile {
 
 	public NioFile(File file, String mode)
 		throws IOException
+	{
+		this(file, mode, false);
+	}
+
+	/**
+	 * Creates a new NioFile.
+	 * 
+	 * @param file
+	 *        The file to open, is created when it doesn't exist yet.
+	 * @param mode
+	 *        The access mode, see {@link RandomAccessFile}.
+	 * @param memoryMapped
+	 *        Flag indicating whether reads should be served from memory mapped
+	 *        regions of the file.
+	 */
+	public NioFile(File file, String mode, boolean memoryMapped)
+		throws IOException
 	{
 		this.file = file;
 		this.mode = mode;
+		this.memoryMapped = memoryMapped;
 
 		if (!file.exists()) {
 			boolean created = file.createNewFile();
@@ -79,17 +153,34 @@ public final class NioFile {
 		open();
 	}
 
-	public synchronized void close()
+	public void close()
 		throws IOException
 	{
-		explictlyClosed = true;
-		raf.close();
+		Lock lock = mappingLock.writeLock();
+		lock.lock();
+		try {
+			synchronized (this) {
+				explictlyClosed = true;
+				discardSegments();
+				raf.close();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	public boolean isClosed() {
 		return explictlyClosed;
 	}
 
+	/**
+	 * Checks whether reads are served from memory mapped regions of the file.
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
 	public File getFile() {
 		return file;
 	}
@@ -135,16 +226,37 @@ public final class NioFile {
 	public void truncate(long size)
 		throws IOException
 	{
-		while (true) {
-			try {
-				fc.truncate(size);
-				return;
+		Lock lock = null;
+		if (memoryMapped) {
+			// exclude readers of mapped segments until the file has been
+			// truncated
+			lock = mappingLock.writeLock();
+			lock.lock();
+		}
+
+		try {
+			if (memoryMapped) {
+				synchronized (this) {
+					discardSegments();
+				}
 			}
-			catch (ClosedByInterruptException e) {
-				throw e;
+
+			while (true) {
+				try {
+					fc.truncate(size);
+					break;
+				}
+				catch (ClosedByInterruptException e) {
+					throw e;
+				}
+				catch (ClosedChannelException e) {
+					reopen(e);
+				}
 			}
-			catch (ClosedChannelException e) {
-				reopen(e);
+		}
+		finally {
+			if (lock != null) {
+				lock.unlock();
 			}
 		}
 	}
@@ -213,6 +325,27 @@ public final class NioFile {
 	public int read(ByteBuffer buf, long offset)
 		throws IOException
 	{
+		if (memoryMapped) {
+			Lock lock = mappingLock.readLock();
+			lock.lock();
+			try {
+				int length = buf.remaining();
+				ByteBuffer segment = getMappedSegment(offset, length);
+
+				if (segment != null) {
+					ByteBuffer region = segment.duplicate();
+					int segmentOffset = getSegmentOffset(offset);
+					region.limit(segmentOffset + length);
+					region.position(segmentOffset);
+					buf.put(region);
+					return length;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
 		while (true) {
 			try {
 				return fc.read(buf, offset);
@@ -263,6 +396,20 @@ public final class NioFile {
 	public long readLong(long offset)
 		throws IOException
 	{
+		if (memoryMapped) {
+			Lock lock = mappingLock.readLock();
+			lock.lock();
+			try {
+				ByteBuffer segment = getMappedSegment(offset, 8);
+				if (segment != null) {
+					return segment.getLong(getSegmentOffset(offset));
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
 		ByteBuffer buf = ByteBuffer.allocate(8);
 		read(buf, offset);
 		return buf.getLong(0);
@@ -279,8 +426,159 @@ public final class NioFile {
 	public int readInt(long offset)
 		throws IOException
 	{
+		if (memoryMapped) {
+			Lock lock = mappingLock.readLock();
+			lock.lock();
+			try {
+				ByteBuffer segment = getMappedSegment(offset, 4);
+				if (segment != null) {
+					return segment.getInt(getSegmentOffset(offset));
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
 		ByteBuffer buf = ByteBuffer.allocate(4);
 		read(buf, offset);
 		return buf.getInt(0);
 	}
+
+	private static int getSegmentOffset(long offset) {
+		return (int)(offset & (MAPPED_SEGMENT_SIZE - 1));
+	}
+
+	/**
+	 * Gets the mapped segment containing the <tt>length</tt> bytes starting at
+	 * <tt>offset</tt>, mapping (or remapping) the segment if needed. Callers
+	 * must hold the read lock of {@link #mappingLock} while they use the
+	 * returned buffer. Only absolute get-methods should be used on the returned
+	 * buffer; use {@link ByteBuffer#duplicate()} for relative access.
+	 * 
+	 * @return The mapped segment, or <tt>null</tt> if the region is not
+	 *         completely contained in the mapped part of the file or spans
+	 *         multiple segments. In that case, the region should be read through
+	 *         the file channel.
+	 */
+	private ByteBuffer getMappedSegment(long offset, int length)
+		throws IOException
+	{
+		int segmentOffset = getSegmentOffset(offset);
+
+		if (length > MAPPED_SEGMENT_SIZE - segmentOffset) {
+			// region spans multiple segments
+			return null;
+		}
+
+		int segmentIdx = (int)(offset / MAPPED_SEGMENT_SIZE);
+		MappedByteBuffer[] currentSegments = segments;
+
+		if (segmentIdx < currentSegments.length) {
+			MappedByteBuffer segment = currentSegments[segmentIdx];
+			if (segment != null && segment.capacity() >= segmentOffset + length) {
+				return segment;
+			}
+		}
+
+		return mapSegment(segmentIdx, segmentOffset + length);
+	}
+
+	private synchronized ByteBuffer mapSegment(int segmentIdx, int minLength)
+		throws IOException
+	{
+		MappedByteBuffer[] currentSegments = segments;
+		MappedByteBuffer oldSegment = null;
+
+		if (segmentIdx < currentSegments.length) {
+			// segment may have been mapped by another thread in the meantime
+			oldSegment = currentSegments[segmentIdx];
+			if (oldSegment != null && oldSegment.capacity() >= minLength) {
+				return oldSegment;
+			}
+		}
+
+		long segmentStart = (long)segmentIdx * MAPPED_SEGMENT_SIZE;
+		long mapLength = Math.min(MAPPED_SEGMENT_SIZE, size() - segmentStart);
+
+		if (mapLength < minLength) {
+			// region extends beyond the end of the file
+			return null;
+		}
+
+		if (oldSegment != null && mapLength < MAPPED_SEGMENT_SIZE && mapLength < 2L * oldSegment.capacity())
+		{
+			// the file has not grown enough since the segment was mapped, read
+			// the region through the file channel rather than remapping the
+			// segment for every read near the end of a growing file
+			return null;
+		}
+
+		MappedByteBuffer segment;
+		while (true) {
+			try {
+				segment = fc.map(MapMode.READ_ONLY, segmentStart, mapLength);
+				break;
+			}
+			catch (ClosedByInterruptException e) {
+				throw e;
+			}
+			catch (ClosedChannelException e) {
+				reopen(e);
+			}
+		}
+
+		MappedByteBuffer[] newSegments = new MappedByteBuffer[Math.max(segmentIdx + 1,
+				currentSegments.length)];
+		System.arraycopy(currentSegments, 0, newSegments, 0, currentSegments.length);
+		newSegments[segmentIdx] = segment;
+		segments = newSegments;
+
+		if (oldSegment != null) {
+			replacedSegments.add(oldSegment);
+		}
+
+		return segment;
+	}
+
+	/**
+	 * Unmaps all segments. Callers must hold the write lock of
+	 * {@link #mappingLock} and synchronize on this object.
+	 */
+	private void discardSegments() {
+		for (MappedByteBuffer segment : segments) {
+			if (segment != null) {
+				unmap(segment);
+			}
+		}
+		for (MappedByteBuffer segment : replacedSegments) {
+			unmap(segment);
+		}
+
+		segments = NO_SEGMENTS;
+		replacedSegments.clear();
+	}
+
+	/**
+	 * Releases a mapping without waiting for it to be garbage collected. The
+	 * buffer must not be accessed afterwards. This is not part of the public
+	 * API of the JVM; if it is not supported, the mapping is left to the garbage
+	 * collector.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+
+			if (cleaner != null) {
+				Method cleanMethod = cleaner.getClass().getMethod("clean");
+				cleanMethod.setAccessible(true);
+				cleanMethod.invoke(cleaner);
+			}
+		}
+		catch (Exception e) {
+			// not supported by this JVM
+		}
+	}
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright Aduna (http://www.aduna-software.com/) (c) 2013.
+ *
+ * Licensed under the Aduna BSD-style license.
+ */
+package info.aduna.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for class {@link NioFile} with memory mapping enabled.
+ */
+public class NioFileTest extends TestCase {
+
+	private File file;
+
+	private NioFile nioFile;
+
+	@Override
+	protected void setUp()
+		throws Exception
+	{
+		file = File.createTempFile("niofile", ".dat");
+		nioFile = new NioFile(file, "rw", true);
+	}
+
+	@Override
+	protected void tearDown()
+		throws Exception
+	{
+		nioFile.close();
+		file.delete();
+	}
+
+	public void testReadWhileGrowing()
+		throws Exception
+	{
+		for (int i = 0; i < 10000; i++) {
+			nioFile.writeInt(i, 4L * i);
+			assertEquals(i, nioFile.readInt(4L * i));
+		}
+
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, nioFile.readInt(4L * i));
+		}
+	}
+
+	public void testTruncateWhileMapped()
+		throws Exception
+	{
+		writeLongs(0, 1000);
+		assertEquals(999, nioFile.readLong(8L * 999));
+
+		nioFile.truncate(8L * 500);
+		assertEquals(8L * 500, nioFile.size());
+		assertEquals(499, nioFile.readLong(8L * 499));
+
+		// reads past the end of the file do not fill the buffer
+		assertEquals(0, nioFile.readLong(8L * 500));
+
+		// grow the file again, the new data must be visible
+		nioFile.writeLong(-1, 8L * 999);
+		assertEquals(-1, nioFile.readLong(8L * 999));
+		assertEquals(0, nioFile.readLong(8L * 500));
+		assertEquals(499, nioFile.readLong(8L * 499));
+	}
+
+	public void testTruncateWithConcurrentReader()
+		throws Exception
+	{
+		final int count = 100000;
+		writeLongs(0, count);
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread reader = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					for (int round = 0; round < 20; round++) {
+						for (int i = 0; i < count; i += 7) {
+							// values beyond the end of the truncated file read as 0
+							long value = nioFile.readLong(8L * i);
+							if (value != i && value != 0) {
+								throw new AssertionError("read " + value + " at index " + i);
+							}
+						}
+					}
+				}
+				catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+		reader.start();
+
+		for (int i = 0; i < 20; i++) {
+			nioFile.truncate(8L * count / 2);
+			writeLongs(count / 2, count);
+		}
+
+		reader.join();
+		assertNull(String.valueOf(failure.get()), failure.get());
+	}
+
+	private void writeLongs(int from, int to)
+		throws IOException
+	{
+		for (int i = from; i < to; i++) {
+			nioFile.writeLong(i, 8L * i);
+		}
+	}
+}